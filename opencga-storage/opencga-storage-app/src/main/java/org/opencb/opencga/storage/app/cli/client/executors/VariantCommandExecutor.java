@@ -70,6 +70,7 @@ import java.nio.file.Paths;
 import java.util.*;
 import java.util.function.Function;
 
+import static org.opencb.opencga.storage.app.cli.client.options.StorageVariantCommandOptions.CompactGenotypesCommandOptions.COMPACT_GENOTYPES_COMMAND;
 import static org.opencb.opencga.storage.app.cli.client.options.StorageVariantCommandOptions.FillGapsCommandOptions.FILL_GAPS_COMMAND;
 import static org.opencb.opencga.storage.app.cli.client.options.StorageVariantCommandOptions.FillMissingCommandOptions.FILL_MISSING_COMMAND;
 import static org.opencb.opencga.storage.app.cli.client.options.StorageVariantCommandOptions.GenericAnnotationDeleteCommandOptions.ANNOTATION_DELETE_COMMAND;
@@ -190,6 +191,11 @@ public class VariantCommandExecutor extends CommandExecutor {
                         variantCommandOptions.fillMissingCommandOptions.dbName);
                 fillMissing();
                 break;
+            case COMPACT_GENOTYPES_COMMAND:
+                configure(variantCommandOptions.compactGenotypesCommandOptions.commonOptions,
+                        variantCommandOptions.compactGenotypesCommandOptions.dbName);
+                compactGenotypes();
+                break;
             case "export":
                 configure(variantCommandOptions.exportVariantsCommandOptions.queryOptions.commonOptions,
                         variantCommandOptions.exportVariantsCommandOptions.queryOptions.commonQueryOptions.dbName);
@@ -621,6 +627,15 @@ public class VariantCommandExecutor extends CommandExecutor {
         variantStorageEngine.fillMissing(cliOptions.study, options, cliOptions.overwrite);
     }
 
+    private void compactGenotypes() throws StorageEngineException {
+        StorageVariantCommandOptions.CompactGenotypesCommandOptions cliOptions = variantCommandOptions.compactGenotypesCommandOptions;
+
+        ObjectMap options = storageConfiguration.getVariant().getOptions();
+        options.putAll(cliOptions.commonOptions.params);
+
+        variantStorageEngine.compactGenotypes(cliOptions.study, !cliOptions.expand, options);
+    }
+
     private void export() throws URISyntaxException, StorageEngineException, IOException {
         StorageVariantCommandOptions.VariantExportCommandOptions exportVariantsCommandOptions = variantCommandOptions.exportVariantsCommandOptions;
 //
@@ -53,6 +53,7 @@ public class StorageVariantCommandOptions {
     public final VariantStatsCommandOptions statsVariantsCommandOptions;
     public final FillGapsCommandOptions fillGapsCommandOptions;
     public final FillMissingCommandOptions fillMissingCommandOptions;
+    public final CompactGenotypesCommandOptions compactGenotypesCommandOptions;
     public final VariantExportCommandOptions exportVariantsCommandOptions;
     public final VariantSearchCommandOptions searchVariantsCommandOptions;
 
@@ -80,6 +81,7 @@ public class StorageVariantCommandOptions {
         this.statsVariantsCommandOptions = new VariantStatsCommandOptions();
         this.fillGapsCommandOptions = new FillGapsCommandOptions();
         this.fillMissingCommandOptions = new FillMissingCommandOptions();
+        this.compactGenotypesCommandOptions = new CompactGenotypesCommandOptions();
         this.exportVariantsCommandOptions = new VariantExportCommandOptions();
         this.searchVariantsCommandOptions = new VariantSearchCommandOptions();
     }
@@ -712,6 +714,25 @@ public class StorageVariantCommandOptions {
         public boolean overwrite;
     }
 
+    @Parameters(commandNames = {CompactGenotypesCommandOptions.COMPACT_GENOTYPES_COMMAND}, commandDescription = CompactGenotypesCommandOptions.COMPACT_GENOTYPES_COMMAND_DESCRIPTION)
+    public class CompactGenotypesCommandOptions {
+
+        public static final String COMPACT_GENOTYPES_COMMAND = "compact-genotypes";
+        public static final String COMPACT_GENOTYPES_COMMAND_DESCRIPTION = "[EXPERIMENTAL] Migrate the genotypes of a study to a compact binary encoding, or back to the default encoding.";
+
+        @ParametersDelegate
+        public GeneralCliOptions.CommonOptions commonOptions = commonCommandOptions;
+
+        @Parameter(names = {"--study"}, description = "Study", required = true, arity = 1)
+        public String study;
+
+        @Parameter(names = {"--expand"}, description = "Restore the default encoding of the genotypes")
+        public boolean expand;
+
+        @Parameter(names = {"-d", "--database"}, description = "DataBase name", required = true, arity = 1)
+        public String dbName;
+    }
+
     /**
      *  benchmark: specific options
      */
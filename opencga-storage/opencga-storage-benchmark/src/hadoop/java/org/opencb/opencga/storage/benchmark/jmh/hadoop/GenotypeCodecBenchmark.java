@@ -0,0 +1,58 @@
+/*
+ * Copyright 2015-2017 OpenCB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opencb.opencga.storage.benchmark.jmh.hadoop;
+
+import org.openjdk.jmh.annotations.*;
+import org.opencb.opencga.storage.hadoop.variant.index.family.GenotypeCodec;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding of parent genotypes for the family index.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GenotypeCodecBenchmark {
+
+    // Common genotypes, and some that fall into the slow path of the codec
+    private static final String[] GENOTYPES = {"0/0", "0/1", "1/1", "0|1", "1|0", "./.", "0", "1", "1/2", "./1", "?/?", "2/2"};
+
+    @Benchmark
+    public int encode() {
+        int sum = 0;
+        for (String gt : GENOTYPES) {
+            sum += GenotypeCodec.encode(gt);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int encodeParents() {
+        int sum = 0;
+        for (String father : GENOTYPES) {
+            for (String mother : GENOTYPES) {
+                sum += GenotypeCodec.encode(father, mother);
+            }
+        }
+        return sum;
+    }
+
+}
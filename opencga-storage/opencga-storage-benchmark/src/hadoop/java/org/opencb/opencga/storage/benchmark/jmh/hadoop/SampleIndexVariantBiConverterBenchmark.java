@@ -0,0 +1,115 @@
+/*
+ * Copyright 2015-2017 OpenCB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opencb.opencga.storage.benchmark.jmh.hadoop;
+
+import org.openjdk.jmh.annotations.*;
+import org.opencb.biodata.models.variant.Variant;
+import org.opencb.biodata.models.variant.avro.VariantType;
+import org.opencb.opencga.storage.benchmark.jmh.BenchmarkVariants;
+import org.opencb.opencga.storage.hadoop.variant.index.sample.SampleIndexVariantBiConverter;
+import org.opencb.opencga.storage.hadoop.variant.index.sample.SampleIndexVariantBiConverter.SampleIndexVariantIterator;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of the variants of one SampleIndex batch.
+ *
+ * The filter benchmarks compare building every variant before filtering ({@link #filterVariants}, the baseline) with
+ * filtering over the encoded variants and building only the survivors ({@link #filterViews}). Run with "-prof gc"
+ * to get the allocated bytes per operation (gc.alloc.rate.norm) next to the average time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SampleIndexVariantBiConverterBenchmark {
+
+    @Param({"1000"})
+    public int batchSize;
+
+    private SampleIndexVariantBiConverter converter;
+    private List<Variant> variants;
+    private byte[] bytes;
+
+    @Setup
+    public void setup() {
+        converter = new SampleIndexVariantBiConverter();
+        variants = BenchmarkVariants.variants(batchSize, Collections.emptyList());
+        bytes = converter.toBytes(variants);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return converter.toBytes(variants);
+    }
+
+    @Benchmark
+    public List<Variant> decode() {
+        return converter.toVariants(BenchmarkVariants.CHROMOSOME, 0, bytes, 0, bytes.length);
+    }
+
+    @Benchmark
+    public int decodeView() {
+        // Iterate over the lightweight views, without creating the variant objects
+        SampleIndexVariantIterator iterator = converter.toVariantsIterator(BenchmarkVariants.CHROMOSOME, 0, bytes, 0, bytes.length);
+        int snvs = 0;
+        while (iterator.hasNext()) {
+            if (iterator.nextView().isSnv()) {
+                snvs++;
+            }
+            iterator.skip();
+        }
+        return snvs;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int filterVariants() {
+        // Baseline. Build all the variants, then filter
+        SampleIndexVariantIterator iterator = converter.toVariantsIterator(BenchmarkVariants.CHROMOSOME, 0, bytes, 0, bytes.length);
+        int indels = 0;
+        while (iterator.hasNext()) {
+            if (iterator.next().getType() == VariantType.INDEL) {
+                indels++;
+            }
+        }
+        return indels;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int filterViews() {
+        // Discard the SNVs over the encoded variant. Build only the remaining variants
+        SampleIndexVariantIterator iterator = converter.toVariantsIterator(BenchmarkVariants.CHROMOSOME, 0, bytes, 0, bytes.length);
+        int indels = 0;
+        while (iterator.hasNext()) {
+            if (iterator.nextView().isSnv()) {
+                iterator.skip();
+            } else if (iterator.next().getType() == VariantType.INDEL) {
+                indels++;
+            }
+        }
+        return indels;
+    }
+
+}
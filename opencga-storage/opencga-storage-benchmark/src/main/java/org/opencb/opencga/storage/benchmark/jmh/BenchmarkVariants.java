@@ -0,0 +1,118 @@
+/*
+ * Copyright 2015-2017 OpenCB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opencb.opencga.storage.benchmark.jmh;
+
+import org.opencb.biodata.models.variant.Variant;
+import org.opencb.biodata.models.variant.VariantBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Deterministic synthetic input for the JMH benchmarks, so results are comparable between runs and releases.
+ */
+public final class BenchmarkVariants {
+
+    public static final String STUDY = "study";
+    public static final String CHROMOSOME = "1";
+    public static final long SEED = 42;
+
+    private static final String[] BASES = {"A", "C", "G", "T"};
+    private static final String[] GENOTYPES = {"0/0", "0/0", "0/0", "0/1", "0/1", "1/1", "./.", "0|1", "1|0", "1/1"};
+
+    private BenchmarkVariants() {
+    }
+
+    public static List<String> samples(int numSamples) {
+        List<String> samples = new ArrayList<>(numSamples);
+        for (int i = 0; i < numSamples; i++) {
+            samples.add("S" + i);
+        }
+        return samples;
+    }
+
+    /**
+     * Generate a sorted list of biallelic SNVs and short indels, with random genotypes.
+     *
+     * @param numVariants Number of variants
+     * @param samples     Samples of the study
+     * @return List of variants
+     */
+    public static List<Variant> variants(int numVariants, List<String> samples) {
+        Random random = new Random(SEED);
+        List<Variant> variants = new ArrayList<>(numVariants);
+        int start = 10000;
+        for (int i = 0; i < numVariants; i++) {
+            start += 1 + random.nextInt(200);
+            String[] alleles = alleles(random, i);
+            String reference = alleles[0].isEmpty() ? "-" : alleles[0];
+            VariantBuilder builder = Variant.newBuilder(CHROMOSOME + ':' + start + ':' + reference + ':' + alleles[1])
+                    .setStudyId(STUDY)
+                    .setFormat("GT");
+            for (String sample : samples) {
+                builder.addSample(sample, GENOTYPES[random.nextInt(GENOTYPES.length)]);
+            }
+            variants.add(builder.build());
+        }
+        return variants;
+    }
+
+    /**
+     * Generate VCF data lines, without header, equivalent to {@link #variants}.
+     *
+     * @param numVariants Number of variants
+     * @param samples     Samples of the file
+     * @return List of VCF lines
+     */
+    public static List<String> vcfLines(int numVariants, List<String> samples) {
+        Random random = new Random(SEED);
+        List<String> lines = new ArrayList<>(numVariants);
+        int start = 10000;
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < numVariants; i++) {
+            start += 1 + random.nextInt(200);
+            String[] alleles = alleles(random, i);
+            String reference = alleles[0];
+            String alternate = alleles[1];
+            sb.setLength(0);
+            sb.append(CHROMOSOME).append('\t').append(start).append("\t.\t");
+            // Indels in VCF include the preceding base
+            if (reference.isEmpty()) {
+                sb.append('N').append('\t').append('N').append(alternate);
+            } else {
+                sb.append(reference).append('\t').append(alternate);
+            }
+            sb.append("\t100\tPASS\t.\tGT");
+            for (int s = 0; s < samples.size(); s++) {
+                sb.append('\t').append(GENOTYPES[random.nextInt(GENOTYPES.length)]);
+            }
+            lines.add(sb.toString());
+        }
+        return lines;
+    }
+
+    private static String[] alleles(Random random, int i) {
+        int ref = random.nextInt(BASES.length);
+        if (i % 10 == 9) {
+            // Insertion
+            return new String[]{"", BASES[ref] + BASES[random.nextInt(BASES.length)]};
+        }
+        int alt = (ref + 1 + random.nextInt(BASES.length - 1)) % BASES.length;
+        return new String[]{BASES[ref], BASES[alt]};
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2015-2017 OpenCB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opencb.opencga.storage.benchmark.jmh;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Runs the JMH micro benchmarks, writing the results as JSON.
+ *
+ * If a baseline result file is given, typically the one from the previous release, the new results are compared
+ * against it and the execution fails if any benchmark is slower than the given threshold.
+ *
+ * With "--gc", the allocated bytes per operation are recorded as well, and compared as any other time per operation.
+ *
+ * Usage: JmhBenchmarkRunner [--include regex]* [--output result.json] [--baseline baseline.json] [--threshold 0.1] [--gc]
+ */
+public final class JmhBenchmarkRunner {
+
+    public static final String DEFAULT_OUTPUT = "jmh-result.json";
+    public static final double DEFAULT_THRESHOLD = 0.1;
+    public static final String ALLOCATION_METRIC = "\u00B7gc.alloc.rate.norm";
+    public static final String ALLOCATION_MODE = "alloc";
+
+    private static Logger logger = LoggerFactory.getLogger(JmhBenchmarkRunner.class);
+
+    private JmhBenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws RunnerException, IOException {
+        List<String> includes = new ArrayList<>();
+        String output = DEFAULT_OUTPUT;
+        String baseline = null;
+        double threshold = DEFAULT_THRESHOLD;
+        boolean gc = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--include":
+                    includes.add(args[++i]);
+                    break;
+                case "--output":
+                    output = args[++i];
+                    break;
+                case "--baseline":
+                    baseline = args[++i];
+                    break;
+                case "--threshold":
+                    threshold = Double.parseDouble(args[++i]);
+                    break;
+                case "--gc":
+                    gc = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument " + args[i]);
+            }
+        }
+        if (includes.isEmpty()) {
+            includes.add(JmhBenchmarkRunner.class.getPackage().getName() + ".*");
+        }
+
+        ChainedOptionsBuilder builder = new OptionsBuilder()
+                .resultFormat(ResultFormatType.JSON)
+                .result(output);
+        includes.forEach(builder::include);
+        if (gc) {
+            builder.addProfiler(GCProfiler.class);
+        }
+        new Runner(builder.build()).run();
+        logger.info("Benchmark results written to " + output);
+
+        if (baseline != null) {
+            Map<String, Score> baselineScores;
+            Map<String, Score> scores;
+            try (InputStream is = Files.newInputStream(Paths.get(baseline))) {
+                baselineScores = readScores(is);
+            }
+            try (InputStream is = Files.newInputStream(Paths.get(output))) {
+                scores = readScores(is);
+            }
+            List<String> regressions = findRegressions(baselineScores, scores, threshold);
+            if (!regressions.isEmpty()) {
+                regressions.forEach(logger::error);
+                System.exit(1);
+            }
+            logger.info("No regressions found against baseline " + baseline);
+        }
+    }
+
+    /**
+     * Read the primary metric of each benchmark from a JMH JSON result file.
+     * If the GC profiler was used, the allocated bytes per operation are read as well, with the key of the benchmark
+     * followed by {@link #ALLOCATION_METRIC}.
+     *
+     * @param is InputStream with the JSON result
+     * @return Map from benchmark name, including its params, to score
+     * @throws IOException if the result can not be read
+     */
+    public static Map<String, Score> readScores(InputStream is) throws IOException {
+        JsonNode results = new ObjectMapper().readTree(is);
+        Map<String, Score> scores = new LinkedHashMap<>();
+        for (JsonNode result : results) {
+            StringBuilder key = new StringBuilder(result.get("benchmark").asText());
+            JsonNode params = result.get("params");
+            if (params != null) {
+                // Sort params, so the key does not depend on the order in the file
+                SortedMap<String, String> sortedParams = new TreeMap<>();
+                params.fields().forEachRemaining(entry -> sortedParams.put(entry.getKey(), entry.getValue().asText()));
+                key.append(sortedParams);
+            }
+            JsonNode primaryMetric = result.get("primaryMetric");
+            scores.put(key.toString(), new Score(
+                    result.get("mode").asText(),
+                    primaryMetric.get("score").asDouble(),
+                    primaryMetric.get("scoreUnit").asText()));
+            JsonNode allocation = result.path("secondaryMetrics").get(ALLOCATION_METRIC);
+            if (allocation != null) {
+                // Lower is better, regardless of the mode of the benchmark
+                scores.put(key + ALLOCATION_METRIC, new Score(
+                        ALLOCATION_MODE,
+                        allocation.get("score").asDouble(),
+                        allocation.get("scoreUnit").asText()));
+            }
+        }
+        return scores;
+    }
+
+    /**
+     * Compare two sets of results. Benchmarks not present in both sets, or with different mode or unit, are ignored.
+     *
+     * @param baseline  Baseline scores
+     * @param scores    New scores
+     * @param threshold Maximum accepted relative degradation, from 0 to 1
+     * @return Description of each regression found. Empty list if none.
+     */
+    public static List<String> findRegressions(Map<String, Score> baseline, Map<String, Score> scores, double threshold) {
+        List<String> regressions = new ArrayList<>();
+        for (Map.Entry<String, Score> entry : scores.entrySet()) {
+            Score before = baseline.get(entry.getKey());
+            Score after = entry.getValue();
+            if (before == null || !before.getMode().equals(after.getMode()) || !before.getUnit().equals(after.getUnit())
+                    || before.getScore() <= 0) {
+                continue;
+            }
+            double change = (after.getScore() - before.getScore()) / before.getScore();
+            // For throughput, higher is better. For any other mode (time per operation), lower is better.
+            double degradation = after.isThroughput() ? -change : change;
+            if (degradation > threshold) {
+                regressions.add(String.format("Regression in %s : %.3f %s -> %.3f %s (%+.1f%%)", entry.getKey(),
+                        before.getScore(), before.getUnit(), after.getScore(), after.getUnit(), change * 100));
+            }
+        }
+        return regressions;
+    }
+
+    public static class Score {
+        private final String mode;
+        private final double score;
+        private final String unit;
+
+        public Score(String mode, double score, String unit) {
+            this.mode = mode;
+            this.score = score;
+            this.unit = unit;
+        }
+
+        public String getMode() {
+            return mode;
+        }
+
+        public double getScore() {
+            return score;
+        }
+
+        public String getUnit() {
+            return unit;
+        }
+
+        public boolean isThroughput() {
+            return "thrpt".equals(mode);
+        }
+
+        @Override
+        public String toString() {
+            return score + " " + unit + " (" + mode + ")";
+        }
+    }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015-2017 OpenCB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opencb.opencga.storage.benchmark.jmh;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.openjdk.jmh.annotations.*;
+import org.opencb.opencga.storage.mongodb.variant.converters.SampleIdsBinaryConverter;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read latency of the genotypes of one batch of MongoDB variant documents, with the sample ids stored as arrays
+ * (default encoding) or as compact binaries. Only the returned samples are visited, as in DocumentToSamplesConverter.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SampleIdsBinaryConverterBenchmark {
+
+    @Param({"1000", "10000"})
+    public int numSamples;
+
+    @Param({"10", "1000"})
+    public int numReturnedSamples;
+
+    // Fraction of samples with a non default genotype
+    @Param({"0.05", "0.5"})
+    public double altFraction;
+
+    @Param({"1000"})
+    public int batchSize;
+
+    private List<Document> expanded;
+    private List<Document> compact;
+    private Set<Integer> returnedSamples;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        expanded = new ArrayList<>(batchSize);
+        compact = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            List<Integer> het = new ArrayList<>();
+            List<Integer> homAlt = new ArrayList<>();
+            for (int sampleId = 1; sampleId <= numSamples; sampleId++) {
+                double r = random.nextDouble();
+                if (r < altFraction * 0.2) {
+                    homAlt.add(sampleId);
+                } else if (r < altFraction) {
+                    het.add(sampleId);
+                }
+            }
+            expanded.add(new Document("0|1", het).append("1|1", homAlt));
+            compact.add(new Document("0|1", new Binary(SampleIdsBinaryConverter.encode(het)))
+                    .append("1|1", new Binary(SampleIdsBinaryConverter.encode(homAlt))));
+        }
+        returnedSamples = new HashSet<>();
+        for (int sampleId = 1; sampleId <= Math.min(numReturnedSamples, numSamples); sampleId++) {
+            returnedSamples.add(sampleId);
+        }
+    }
+
+    @Benchmark
+    public int readExpanded() {
+        return read(expanded);
+    }
+
+    @Benchmark
+    public int readCompact() {
+        return read(compact);
+    }
+
+    private int read(List<Document> genotypes) {
+        int[] found = {0};
+        for (Document document : genotypes) {
+            for (Object value : document.values()) {
+                SampleIdsBinaryConverter.forEach(value, returnedSamples, sampleId -> found[0]++);
+            }
+        }
+        return found[0];
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015-2017 OpenCB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opencb.opencga.storage.benchmark.jmh;
+
+import org.openjdk.jmh.annotations.*;
+import org.opencb.commons.datastore.core.Query;
+import org.opencb.opencga.storage.core.variant.adaptors.VariantQueryUtils;
+import org.opencb.opencga.storage.core.variant.query.VariantQueryParser;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static org.opencb.opencga.storage.core.variant.adaptors.VariantQueryParam.*;
+
+/**
+ * Parsing of the query values that every query goes through, independently of the storage engine.
+ *
+ * The full {@link VariantQueryParser#preProcessQuery} requires a metadata manager, so only the
+ * static, metadata independent, parsers are measured here.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VariantQueryParserBenchmark {
+
+    private String genotypeFilter;
+    private String consequenceTypeFilter;
+    private String populationFrequencyFilter;
+    private Query xrefQuery;
+    private Query formatQuery;
+
+    @Setup
+    public void setup() {
+        StringBuilder gt = new StringBuilder();
+        for (String sample : BenchmarkVariants.samples(50)) {
+            if (gt.length() > 0) {
+                gt.append(';');
+            }
+            gt.append(sample).append(":0/1,1/1,0|1,1|0");
+        }
+        genotypeFilter = gt.toString();
+        consequenceTypeFilter = "missense_variant,stop_gained,SO:0001587,frameshift_variant,splice_donor_variant,"
+                + "splice_acceptor_variant,start_lost,stop_lost,lof";
+        populationFrequencyFilter = "1kG_phase3:ALL<0.01;GNOMAD_GENOMES:ALL<0.01;GNOMAD_EXOMES:ALL<0.01;1kG_phase3:EUR<0.05";
+
+        xrefQuery = new Query()
+                .append(ID.key(), "1:1000:A:C,rs1234,2:2000:-:TT,rs5678,COSM1234,RCV000000001")
+                .append(GENE.key(), "BRCA2,TP53,KRAS,EGFR")
+                .append(ANNOT_XREF.key(), "ENST00000380152,ENSG00000139618,rs9999,HP:0001250");
+        formatQuery = new Query()
+                .append(SAMPLE.key(), "S0,S1,S2")
+                .append(FORMAT.key(), "S0:DP>10;GQ>20;S1:DP>10;S2:AD>5")
+                .append(INFO.key(), "file1:QUAL>50;FILTER=PASS;file2:DP>30");
+    }
+
+    @Benchmark
+    public Object splitValue() {
+        return VariantQueryUtils.splitValue(consequenceTypeFilter);
+    }
+
+    @Benchmark
+    public Object parseGenotypeFilter() {
+        Map<Object, List<String>> map = new LinkedHashMap<>();
+        VariantQueryUtils.parseGenotypeFilter(genotypeFilter, map);
+        return map;
+    }
+
+    @Benchmark
+    public Object parseConsequenceTypes() {
+        return VariantQueryUtils.parseConsequenceTypes(VariantQueryUtils.splitValue(consequenceTypeFilter).getValue());
+    }
+
+    @Benchmark
+    public Object splitPopulationFrequency() {
+        List<String[]> operators = new ArrayList<>();
+        for (String value : VariantQueryUtils.splitValue(populationFrequencyFilter).getValue()) {
+            operators.add(VariantQueryUtils.splitOperator(value));
+        }
+        return operators;
+    }
+
+    @Benchmark
+    public Object parseXrefs() {
+        return VariantQueryParser.parseXrefs(xrefQuery);
+    }
+
+    @Benchmark
+    public Object parseFormatAndInfo() {
+        return Arrays.asList(VariantQueryUtils.parseFormat(formatQuery), VariantQueryUtils.parseInfo(formatQuery));
+    }
+
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2015-2017 OpenCB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opencb.opencga.storage.benchmark.jmh;
+
+import org.openjdk.jmh.annotations.*;
+import org.opencb.biodata.models.variant.StudyEntry;
+import org.opencb.biodata.models.variant.Variant;
+import org.opencb.biodata.models.variant.metadata.Aggregation;
+import org.opencb.opencga.storage.core.variant.stats.VariantStatisticsCalculator;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stats calculation of one batch of variants for a set of cohorts.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VariantStatisticsCalculatorBenchmark {
+
+    @Param({"100", "1000"})
+    public int numSamples;
+
+    @Param({"1000"})
+    public int batchSize;
+
+    private List<Variant> variants;
+    private Map<String, Set<String>> cohorts;
+    private VariantStatisticsCalculator calculator;
+
+    @Setup
+    public void setup() {
+        List<String> samples = BenchmarkVariants.samples(numSamples);
+        variants = BenchmarkVariants.variants(batchSize, samples);
+        cohorts = new LinkedHashMap<>();
+        cohorts.put(StudyEntry.DEFAULT_COHORT, new HashSet<>(samples));
+        cohorts.put("HALF", new HashSet<>(samples.subList(0, numSamples / 2)));
+        calculator = new VariantStatisticsCalculator(true);
+        calculator.setAggregationType(Aggregation.NONE, null);
+    }
+
+    @Benchmark
+    public Object calculateBatch() {
+        return calculator.calculateBatch(variants, BenchmarkVariants.STUDY, cohorts);
+    }
+
+}
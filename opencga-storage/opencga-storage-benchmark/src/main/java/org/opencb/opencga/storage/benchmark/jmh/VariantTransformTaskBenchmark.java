@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015-2017 OpenCB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opencb.opencga.storage.benchmark.jmh;
+
+import htsjdk.variant.vcf.VCFFormatHeaderLine;
+import htsjdk.variant.vcf.VCFHeader;
+import htsjdk.variant.vcf.VCFHeaderLine;
+import htsjdk.variant.vcf.VCFHeaderLineType;
+import htsjdk.variant.vcf.VCFHeaderVersion;
+import org.openjdk.jmh.annotations.*;
+import org.opencb.biodata.models.variant.VariantFileMetadata;
+import org.opencb.biodata.tools.variant.stats.VariantSetStatsCalculator;
+import org.opencb.opencga.storage.core.variant.transform.VariantAvroTransformTask;
+import org.opencb.opencga.storage.core.variant.transform.VariantJsonTransformTask;
+import org.opencb.opencga.storage.core.variant.transform.VariantTransformTask;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transformation of one batch of VCF lines into the intermediate avro or json format.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VariantTransformTaskBenchmark {
+
+    @Param({"avro", "json"})
+    public String format;
+
+    @Param({"10", "500"})
+    public int numSamples;
+
+    @Param({"1000"})
+    public int batchSize;
+
+    private List<String> lines;
+    private VariantTransformTask<?> task;
+
+    @Setup
+    public void setup() {
+        List<String> samples = BenchmarkVariants.samples(numSamples);
+        lines = BenchmarkVariants.vcfLines(batchSize, samples);
+
+        Set<VCFHeaderLine> headerLines = Collections.singleton(
+                new VCFFormatHeaderLine("GT", 1, VCFHeaderLineType.String, "Genotype"));
+        VCFHeader header = new VCFHeader(headerLines, samples);
+        VariantFileMetadata fileMetadata = new VariantFileMetadata("1", "benchmark.vcf");
+        fileMetadata.setSampleIds(samples);
+        VariantSetStatsCalculator statsCalculator = new VariantSetStatsCalculator(BenchmarkVariants.STUDY, fileMetadata);
+
+        if (format.equals("avro")) {
+            task = new VariantAvroTransformTask(header, VCFHeaderVersion.VCF4_2, BenchmarkVariants.STUDY, fileMetadata,
+                    statsCalculator, false, false);
+        } else {
+            task = new VariantJsonTransformTask(header, VCFHeaderVersion.VCF4_2, BenchmarkVariants.STUDY, fileMetadata,
+                    statsCalculator, false, false);
+        }
+        task.setFailOnError(true);
+        task.pre();
+    }
+
+    @Benchmark
+    public Object transform() {
+        return task.apply(lines);
+    }
+
+}
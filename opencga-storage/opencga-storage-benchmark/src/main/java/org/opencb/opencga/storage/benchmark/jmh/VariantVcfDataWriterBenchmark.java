@@ -0,0 +1,77 @@
+/*
+ * Copyright 2015-2017 OpenCB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opencb.opencga.storage.benchmark.jmh;
+
+import org.openjdk.jmh.annotations.*;
+import org.opencb.biodata.models.variant.Variant;
+import org.opencb.opencga.storage.core.metadata.StudyConfiguration;
+import org.opencb.opencga.storage.core.variant.io.VariantVcfDataWriter;
+
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion and output of one batch of variants to VCF.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VariantVcfDataWriterBenchmark {
+
+    private static final OutputStream NULL_OUTPUT_STREAM = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    @Param({"10", "500"})
+    public int numSamples;
+
+    @Param({"1000"})
+    public int batchSize;
+
+    private List<Variant> variants;
+    private VariantVcfDataWriter writer;
+
+    @Setup
+    public void setup() {
+        variants = BenchmarkVariants.variants(batchSize, BenchmarkVariants.samples(numSamples));
+        StudyConfiguration studyConfiguration = new StudyConfiguration(1, BenchmarkVariants.STUDY);
+        writer = new VariantVcfDataWriter(studyConfiguration, NULL_OUTPUT_STREAM, null, null);
+        writer.pre();
+    }
+
+    @TearDown
+    public void tearDown() {
+        writer.post();
+        writer.close();
+    }
+
+    @Benchmark
+    public boolean write() {
+        return writer.write(variants);
+    }
+
+}
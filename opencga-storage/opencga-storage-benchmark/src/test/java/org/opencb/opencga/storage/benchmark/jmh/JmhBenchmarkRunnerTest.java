@@ -0,0 +1,79 @@
+package org.opencb.opencga.storage.benchmark.jmh;
+
+import org.junit.Test;
+import org.opencb.opencga.storage.benchmark.jmh.JmhBenchmarkRunner.Score;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class JmhBenchmarkRunnerTest {
+
+    @Test
+    public void testReadScores() throws Exception {
+        String json = "[{\"benchmark\":\"a.B.transform\",\"mode\":\"thrpt\",\"params\":{\"numSamples\":\"10\",\"format\":\"avro\"},"
+                + "\"primaryMetric\":{\"score\":120.5,\"scoreError\":1.2,\"scoreUnit\":\"ops/s\"}},"
+                + "{\"benchmark\":\"a.C.parse\",\"mode\":\"avgt\","
+                + "\"primaryMetric\":{\"score\":3.5,\"scoreError\":0.1,\"scoreUnit\":\"us/op\"}}]";
+        Map<String, Score> scores = JmhBenchmarkRunner.readScores(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+
+        assertEquals(2, scores.size());
+        Score score = scores.get("a.B.transform{format=avro, numSamples=10}");
+        assertNotNull(score);
+        assertTrue(score.isThroughput());
+        assertEquals(120.5, score.getScore(), 0.0001);
+        assertEquals("ops/s", score.getUnit());
+        assertFalse(scores.get("a.C.parse").isThroughput());
+    }
+
+    @Test
+    public void testReadAllocationScores() throws Exception {
+        String json = "[{\"benchmark\":\"a.B.filter\",\"mode\":\"thrpt\","
+                + "\"primaryMetric\":{\"score\":120.5,\"scoreError\":1.2,\"scoreUnit\":\"ops/s\"},"
+                + "\"secondaryMetrics\":{\"\u00B7gc.alloc.rate\":{\"score\":500.0,\"scoreUnit\":\"MB/sec\"},"
+                + "\"\u00B7gc.alloc.rate.norm\":{\"score\":2048.0,\"scoreUnit\":\"B/op\"}}}]";
+        Map<String, Score> scores = JmhBenchmarkRunner.readScores(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+
+        assertEquals(2, scores.size());
+        Score allocation = scores.get("a.B.filter" + JmhBenchmarkRunner.ALLOCATION_METRIC);
+        assertNotNull(allocation);
+        assertEquals(2048.0, allocation.getScore(), 0.0001);
+        assertEquals("B/op", allocation.getUnit());
+
+        // More bytes per operation is a regression, even for throughput benchmarks
+        Map<String, Score> newScores = new LinkedHashMap<>(scores);
+        newScores.put("a.B.filter" + JmhBenchmarkRunner.ALLOCATION_METRIC, new Score(JmhBenchmarkRunner.ALLOCATION_MODE, 4096, "B/op"));
+        assertEquals(1, JmhBenchmarkRunner.findRegressions(scores, newScores, 0.1).size());
+    }
+
+    @Test
+    public void testFindRegressions() {
+        Map<String, Score> baseline = new LinkedHashMap<>();
+        baseline.put("thrpt", new Score("thrpt", 100, "ops/s"));
+        baseline.put("avgt", new Score("avgt", 10, "us/op"));
+        baseline.put("unitChanged", new Score("avgt", 10, "us/op"));
+
+        Map<String, Score> scores = new LinkedHashMap<>();
+        scores.put("thrpt", new Score("thrpt", 95, "ops/s"));
+        scores.put("avgt", new Score("avgt", 10.5, "us/op"));
+        scores.put("unitChanged", new Score("avgt", 100, "ns/op"));
+        scores.put("new", new Score("avgt", 100, "us/op"));
+        assertEquals(0, JmhBenchmarkRunner.findRegressions(baseline, scores, 0.1).size());
+
+        scores.put("thrpt", new Score("thrpt", 80, "ops/s"));
+        scores.put("avgt", new Score("avgt", 12, "us/op"));
+        List<String> regressions = JmhBenchmarkRunner.findRegressions(baseline, scores, 0.1);
+        assertEquals(2, regressions.size());
+        assertTrue(regressions.get(0).contains("thrpt"));
+        assertTrue(regressions.get(1).contains("avgt"));
+
+        // Improvements are never regressions
+        scores.put("thrpt", new Score("thrpt", 200, "ops/s"));
+        scores.put("avgt", new Score("avgt", 1, "us/op"));
+        assertEquals(0, JmhBenchmarkRunner.findRegressions(baseline, scores, 0.1).size());
+    }
+}
@@ -17,181 +17,347 @@
 package org.opencb.opencga.storage.core.cache;
 
 import org.apache.commons.codec.digest.DigestUtils;
-import org.apache.commons.lang3.StringUtils;
+import org.opencb.commons.datastore.core.ObjectMap;
 import org.opencb.commons.datastore.core.Query;
 import org.opencb.commons.datastore.core.QueryOptions;
 import org.opencb.commons.datastore.core.QueryResult;
 import org.opencb.opencga.storage.core.config.CacheConfiguration;
 import org.opencb.opencga.storage.core.config.StorageConfiguration;
-import org.redisson.Config;
-import org.redisson.Redisson;
-import org.redisson.RedissonClient;
-import org.redisson.client.RedisConnectionException;
-import org.redisson.codec.JsonJacksonCodec;
-import org.redisson.codec.KryoCodec;
-import org.redisson.core.RKeys;
-import org.redisson.core.RMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.*;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
+ * Two level query result cache.
+ *
+ * The first tier is a bounded in-process cache. The second one is an optional remote cache, shared between processes.
+ * Results found only in the remote tier are promoted to the local tier.
+ * If the remote tier fails, it is disabled and the queries fall back to the database. The remote tier is retried after a back-off.
+ * Invalidations are propagated through the remote tier to the local tier of every process sharing it.
+ *
  * Created by wasim on 26/10/16.
  */
 public class CacheManager {
 
-    private StorageConfiguration storageConfiguration;
+    public static final String CACHE = "cache";
+    public static final String ALIGNMENT_TYPE = "aln";
+    public static final String VARIANT_TYPE = "var";
 
-    private Config redissonConfig;
-    private Set<String> allowedTypesSet;
-    private RedissonClient redissonClient;
-    private boolean redisState;
+    private static final String PREFIX_DATABASE_KEY = "ocga:";
+    // Max back-off of the remote tier retries is remoteRetryInterval * 2^MAX_RETRY_SHIFT
+    private static final int MAX_RETRY_SHIFT = 4;
+    // QueryOptions that do not modify the result of the query
+    private static final Set<String> IGNORED_OPTIONS = new HashSet<>(Arrays.asList(CACHE, "sId", "sessionId", QueryOptions.TIMEOUT));
+    // Params where the order of the values modifies the result of the query
+    private static final Set<String> ORDERED_PARAMS = new HashSet<>(Arrays.asList("includesample", "includefile", "includestudy",
+            QueryOptions.SORT));
 
+    private final Logger logger = LoggerFactory.getLogger(CacheManager.class);
 
-    private static final String PREFIX_DATABASE_KEY = "ocga:";
+    private StorageConfiguration storageConfiguration;
+    private Set<String> allowedTypesSet;
+
+    private LocalCacheTier localTier;
+    private CacheTier remoteTier;
+    private TierMetrics localMetrics;
+    private TierMetrics remoteMetrics;
+    private volatile int remoteFailures;
+    private volatile long remoteRetryTime;
+    // Invalidations that could not be sent to the remote tier while it was unavailable
+    private final Set<String> pendingRemoteInvalidations = ConcurrentHashMap.newKeySet();
 
     public CacheManager() {
     }
 
     public CacheManager(StorageConfiguration configuration) {
+        this(configuration, null);
+    }
 
-        CacheConfiguration cache;
-
+    /**
+     * Create a new CacheManager.
+     *
+     * @param configuration Storage configuration
+     * @param remoteTier    Remote tier to use. If null, will create a Redis tier if enabled by the configuration.
+     */
+    public CacheManager(StorageConfiguration configuration, CacheTier remoteTier) {
         if (configuration != null && configuration.getCache() != null) {
 
             this.storageConfiguration = configuration;
-
-            cache = configuration.getCache();
-            redissonConfig = new Config();
-
-            String host = (StringUtils.isNotEmpty(cache.getHost()))
-                    ? cache.getHost()
-                    : CacheConfiguration.DEFAULT_HOST;
-            redissonConfig.useSingleServer().setAddress(host);
-
-            String codec = (StringUtils.isNotEmpty(cache.getSerialization()))
-                    ? cache.getSerialization()
-                    : CacheConfiguration.DEFAULT_SERIALIZATION;
+            CacheConfiguration cache = configuration.getCache();
 
             this.allowedTypesSet = new HashSet<>(Arrays.asList(cache.getAllowedTypes().split(",")));
 
+            this.localTier = new LocalCacheTier(cache.getLocalMaxSize(), cache.getTtl());
+            this.localMetrics = new TierMetrics(localTier.getName());
 
-            if (StringUtils.isNotEmpty(cache.getPassword())) {
-                redissonConfig.useSingleServer().setPassword(cache.getPassword());
+            if (remoteTier == null && cache.isRemoteActive()) {
+                remoteTier = new RedisCacheTier(cache);
             }
-
-            if ("KRYO".equalsIgnoreCase(codec)) {
-                redissonConfig.setCodec(new KryoCodec());
-            } else {
-                redissonConfig.setCodec(new JsonJacksonCodec());
+            this.remoteTier = remoteTier;
+            if (remoteTier != null) {
+                remoteMetrics = new TierMetrics(remoteTier.getName());
+                // Invalidations from any process sharing the remote tier
+                remoteTier.addInvalidationListener(localTier::invalidate);
             }
-
-            redisState = true;
-
-//            redissonClient = Redisson.create(redissonConfig);
-            redissonClient = null;
         }
     }
 
-
+    /**
+     * Get a cached result. First looks into the local tier, and then into the remote tier.
+     *
+     * @param key Key, created with {@link #createKey}
+     * @param <T> Type of the result
+     * @return Cached result, or null if missing
+     */
     public <T> QueryResult<T> get(String key) {
+        if (!isActive()) {
+            return null;
+        }
+        long start = System.nanoTime();
+        QueryResult<T> queryResult = localTier.get(key);
+        localMetrics.register(queryResult != null, start);
+        if (queryResult != null || !isRemoteActive()) {
+            return queryResult;
+        }
 
-        QueryResult<T> queryResult = new QueryResult<>();
-        if (isActive()) {
-            long start = System.currentTimeMillis();
-            RMap<Integer, Map<String, Object>> map = getRedissonClient().getMap(key);
-
-            try {
-                // We only retrieve the first field of the HASH, which is the only one that exist.
-                Map<Integer, Map<String, Object>> result = map.getAll(new HashSet<>(Collections.singletonList(0)));
-
-                if (result != null && !result.isEmpty()) {
-                    Object resultMap = result.get(0).get("result");
-                    queryResult = (QueryResult<T>) resultMap;
-                    queryResult.setDbTime((int) (System.currentTimeMillis() - start));
-                }
-            } catch (RedisConnectionException e) {
-                redisState = false;
-                queryResult.setWarningMsg("Unable to connect to Redis Cache, Please query WITHOUT Cache (Falling back to Database)");
-                return queryResult;
-            }
+        start = System.nanoTime();
+        try {
+            queryResult = remoteTier.get(key);
+        } catch (RuntimeException e) {
+            remoteFailed(e);
+            return null;
+        }
+        remoteMetrics.register(queryResult != null, start);
+        if (queryResult != null) {
+            localTier.put(key, queryResult);
         }
         return queryResult;
     }
 
     public void set(String key, Query query, QueryResult queryResult) {
-
         if (isActive()) {
-            if (queryResult.getDbTime() >= storageConfiguration.getCache().getSlowThreshold()
-                    && queryResult.getResult().size() >= storageConfiguration.getCache().getMaxResultSize()) {
-                RMap<Integer, Map<String, Object>> map = getRedissonClient().getMap(key);
-                Map<String, Object> record = new HashMap<>();
-                record.put("query", query);
-                record.put("result", queryResult);
-                try {
-                    map.fastPut(0, record);
-                } catch (RedisConnectionException e) {
-                    redisState = false;
-                    queryResult.setWarningMsg("Unable to connect to Redis Cache, Please query WITHOUT Cache (Falling back to Database)");
+            CacheConfiguration cache = storageConfiguration.getCache();
+            if (queryResult.getDbTime() >= cache.getSlowThreshold()
+                    && (queryResult.getResult() == null || queryResult.getResult().size() <= cache.getMaxResultSize())) {
+                localTier.put(key, queryResult);
+                if (isRemoteActive()) {
+                    try {
+                        remoteTier.put(key, queryResult);
+                    } catch (RuntimeException e) {
+                        remoteFailed(e);
+                    }
                 }
             }
         }
     }
 
-    public String createKey(String studyId, String allowedType, Query query, QueryOptions queryOptions) {
-
-        queryOptions.remove("cache");
-        queryOptions.remove("sId");
-
-        StringBuilder key = new StringBuilder(PREFIX_DATABASE_KEY);
-        key.append(studyId).append(":").append(allowedType);
-        SortedMap<String, SortedSet<Object>> map = new TreeMap<>();
-
-        for (String item : query.keySet()) {
-            map.put(item.toLowerCase(), new TreeSet<>(query.getAsStringList(item)));
+    /**
+     * Create a normalized key for the given query. Equivalent queries produce the same key.
+     *
+     * Param names are case insensitive, empty params are discarded, and the order of the values is ignored, unless it modifies
+     * the result of the query. The given query and options are not modified.
+     *
+     * @param database     Database or namespace of the query. Used to invalidate the results.
+     * @param allowedType  Type of query
+     * @param query        Query
+     * @param queryOptions Query options
+     * @return Cache key
+     */
+    public String createKey(String database, String allowedType, Query query, QueryOptions queryOptions) {
+        SortedMap<String, Collection<String>> map = new TreeMap<>();
+        if (query != null) {
+            addToKeyMap(map, query, Collections.emptySet());
         }
-
-        for (String item : queryOptions.keySet()) {
-            map.put(item.toLowerCase(), new TreeSet<>(queryOptions.getAsStringList(item)));
+        if (queryOptions != null) {
+            addToKeyMap(map, queryOptions, IGNORED_OPTIONS);
         }
 
         String sha1 = DigestUtils.sha1Hex(map.toString());
-        key.append(":").append(sha1);
+        return getKeyPrefix(database, allowedType) + sha1;
+    }
+
+    private void addToKeyMap(SortedMap<String, Collection<String>> map, ObjectMap params, Set<String> ignored) {
+        for (Map.Entry<String, Object> entry : params.entrySet()) {
+            if (ignored.contains(entry.getKey()) || entry.getValue() == null) {
+                continue;
+            }
+            String key = entry.getKey().toLowerCase();
+            List<String> values = new ArrayList<>();
+            for (String value : params.getAsStringList(entry.getKey())) {
+                value = value.trim();
+                if (!value.isEmpty()) {
+                    values.add(value);
+                }
+            }
+            if (values.isEmpty()) {
+                continue;
+            }
+            map.put(key, ORDERED_PARAMS.contains(key) ? values : new TreeSet<>(values));
+        }
+    }
 
-        queryOptions.add("cache", "true");
-        return key.toString();
+    /**
+     * Remove all the cached results from a database.
+     *
+     * @param database Database or namespace
+     */
+    public void invalidate(String database) {
+        if (localTier == null) {
+            return;
+        }
+        String prefix = getKeyPrefix(database, "");
+        logger.debug("Invalidate cache {}", prefix);
+        localTier.invalidate(prefix);
+        invalidateRemote(prefix);
     }
 
     public boolean isActive() {
-        return storageConfiguration.getCache().isActive() && redisState;
+        return storageConfiguration != null && storageConfiguration.getCache().isActive();
+    }
+
+    /**
+     * Check if the cache can be used for a query with the given options. Queries can skip the cache with {@link #CACHE}=false.
+     *
+     * @param allowedType Type of query
+     * @param options     Query options
+     * @return If the cache should be used
+     */
+    public boolean isActive(String allowedType, QueryOptions options) {
+        return isActive() && isTypeAllowed(allowedType) && (options == null || options.getBoolean(CACHE, true));
     }
 
     public boolean isTypeAllowed(String type) {
         return allowedTypesSet.contains(type);
     }
 
-    public void clear() {
-        RKeys redisKeys = getRedissonClient().getKeys();
-        redisKeys.deleteByPattern(PREFIX_DATABASE_KEY + "*");
+    /**
+     * Get the metrics of each tier.
+     *
+     * @return List of metrics
+     */
+    public List<ObjectMap> getMetrics() {
+        List<ObjectMap> metrics = new ArrayList<>(2);
+        if (localMetrics != null) {
+            metrics.add(localMetrics.toObjectMap().append("size", localTier.size()));
+        }
+        if (remoteMetrics != null) {
+            metrics.add(remoteMetrics.toObjectMap().append("active", isRemoteActive()));
+        }
+        return metrics;
     }
 
-    public void clear(Pattern pattern) {
-        RKeys redisKeys = getRedissonClient().getKeys();
-        redisKeys.deleteByPattern(pattern.toString());
+    public void clear() {
+        if (localTier == null) {
+            return;
+        }
+        localTier.invalidate(PREFIX_DATABASE_KEY);
+        invalidateRemote(PREFIX_DATABASE_KEY);
     }
 
     public void close() {
-        if (redissonClient != null) {
-            redissonClient.shutdown();
-            redissonClient = null;
+        if (localTier != null) {
+            localTier.close();
+        }
+        if (remoteTier != null) {
+            remoteTier.close();
+        }
+    }
+
+    private void invalidateRemote(String prefix) {
+        if (remoteTier == null) {
+            return;
+        }
+        if (isRemoteActive()) {
+            try {
+                remoteTier.invalidate(prefix);
+                return;
+            } catch (RuntimeException e) {
+                remoteFailed(e);
+            }
+        }
+        // Do not lose the invalidation. The remote tier could still contain stale results when it is available again.
+        pendingRemoteInvalidations.add(prefix);
+    }
+
+    private boolean isRemoteActive() {
+        if (remoteTier == null) {
+            return false;
+        } else if (remoteFailures == 0) {
+            return true;
+        } else {
+            return retryRemote();
+        }
+    }
+
+    private synchronized boolean retryRemote() {
+        if (remoteFailures == 0) {
+            return true;
         }
+        if (System.currentTimeMillis() < remoteRetryTime) {
+            return false;
+        }
+        try {
+            remoteTier.ping();
+            for (Iterator<String> iterator = pendingRemoteInvalidations.iterator(); iterator.hasNext();) {
+                remoteTier.invalidate(iterator.next());
+                iterator.remove();
+            }
+        } catch (RuntimeException e) {
+            remoteFailed(e);
+            return false;
+        }
+        // Invalidations published by other processes while the remote tier was unavailable were lost
+        localTier.invalidate(PREFIX_DATABASE_KEY);
+        logger.info("Remote cache '{}' available again after {} failures", remoteTier.getName(), remoteFailures);
+        remoteFailures = 0;
+        return true;
+    }
+
+    private synchronized void remoteFailed(RuntimeException e) {
+        remoteMetrics.errors.increment();
+        remoteFailures++;
+        long backOff = storageConfiguration.getCache().getRemoteRetryInterval() << Math.min(remoteFailures - 1, MAX_RETRY_SHIFT);
+        remoteRetryTime = System.currentTimeMillis() + backOff;
+        logger.warn("Unable to connect to remote cache '" + remoteTier.getName() + "'. Disable remote cache for " + backOff + "ms.", e);
     }
 
-    private synchronized RedissonClient getRedissonClient() {
-        if (redissonClient == null) {
-            redissonClient = Redisson.create(redissonConfig);
+    private String getKeyPrefix(String database, String allowedType) {
+        return PREFIX_DATABASE_KEY + database + ":" + allowedType;
+    }
+
+    private static final class TierMetrics {
+        private final String name;
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder getTimeNanos = new LongAdder();
+
+        private TierMetrics(String name) {
+            this.name = name;
+        }
+
+        private void register(boolean hit, long startNanos) {
+            getTimeNanos.add(System.nanoTime() - startNanos);
+            if (hit) {
+                hits.increment();
+            } else {
+                misses.increment();
+            }
+        }
+
+        private ObjectMap toObjectMap() {
+            long hits = this.hits.sum();
+            long requests = hits + misses.sum();
+            return new ObjectMap("name", name)
+                    .append("hits", hits)
+                    .append("misses", misses.sum())
+                    .append("errors", errors.sum())
+                    .append("hitRate", requests == 0 ? 0 : ((double) hits) / requests)
+                    .append("avgGetTimeMs", requests == 0 ? 0 : getTimeNanos.sum() / 1000000.0 / requests);
         }
-        return redissonClient;
     }
 
 }
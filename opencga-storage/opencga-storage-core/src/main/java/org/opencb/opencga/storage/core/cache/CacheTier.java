@@ -0,0 +1,78 @@
+/*
+ * Copyright 2015-2017 OpenCB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opencb.opencga.storage.core.cache;
+
+import org.opencb.commons.datastore.core.QueryResult;
+
+import java.util.function.Consumer;
+
+/**
+ * One level of the {@link CacheManager}. Stores query results by key.
+ *
+ * Implementations must be thread safe. Errors accessing the cache must be reported with a {@link RuntimeException}, so the
+ * {@link CacheManager} can fall back to the database.
+ */
+public interface CacheTier extends AutoCloseable {
+
+    /**
+     * @return Name of the tier, used to report metrics.
+     */
+    String getName();
+
+    /**
+     * Get a cached result.
+     *
+     * @param key Key
+     * @param <T> Type of the result
+     * @return Cached value, or null if missing
+     */
+    <T> QueryResult<T> get(String key);
+
+    /**
+     * Store a result.
+     *
+     * @param key         Key
+     * @param queryResult Value
+     */
+    void put(String key, QueryResult<?> queryResult);
+
+    /**
+     * Remove all the elements with a key starting with the given prefix.
+     *
+     * @param keyPrefix Key prefix
+     */
+    void invalidate(String keyPrefix);
+
+    /**
+     * Register a listener to be notified of every invalidation of this tier, including the ones made by other processes
+     * sharing the tier.
+     *
+     * @param listener Listener receiving the invalidated key prefix
+     */
+    void addInvalidationListener(Consumer<String> listener);
+
+    /**
+     * Check that the tier is reachable.
+     *
+     * @throws RuntimeException if the tier is not available
+     */
+    void ping();
+
+    @Override
+    void close();
+
+}
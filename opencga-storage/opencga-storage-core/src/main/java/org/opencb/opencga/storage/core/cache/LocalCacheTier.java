@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015-2017 OpenCB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opencb.opencga.storage.core.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.opencb.commons.datastore.core.QueryResult;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Bounded in-JVM cache tier. The weight of each entry is the number of results it contains.
+ */
+public class LocalCacheTier implements CacheTier {
+
+    private final String name;
+    private final Cache<String, QueryResult<?>> cache;
+    private final List<Consumer<String>> invalidationListeners = new CopyOnWriteArrayList<>();
+
+    public LocalCacheTier(long maxWeight, long ttlMs) {
+        this("local", maxWeight, ttlMs);
+    }
+
+    public LocalCacheTier(String name, long maxWeight, long ttlMs) {
+        this.name = name;
+        CacheBuilder<String, QueryResult<?>> builder = CacheBuilder.newBuilder()
+                .maximumWeight(maxWeight)
+                .weigher((String key, QueryResult<?> value) -> value.getResult() == null ? 1 : value.getResult().size() + 1);
+        if (ttlMs > 0) {
+            builder.expireAfterWrite(ttlMs, TimeUnit.MILLISECONDS);
+        }
+        cache = builder.build();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> QueryResult<T> get(String key) {
+        return (QueryResult<T>) cache.getIfPresent(key);
+    }
+
+    @Override
+    public void put(String key, QueryResult<?> queryResult) {
+        cache.put(key, queryResult);
+    }
+
+    @Override
+    public void invalidate(String keyPrefix) {
+        cache.asMap().keySet().removeIf(key -> key.startsWith(keyPrefix));
+        invalidationListeners.forEach(listener -> listener.accept(keyPrefix));
+    }
+
+    @Override
+    public void addInvalidationListener(Consumer<String> listener) {
+        invalidationListeners.add(listener);
+    }
+
+    @Override
+    public void ping() {
+        // In-process tier. Always available
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    @Override
+    public void close() {
+        cache.invalidateAll();
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2015-2017 OpenCB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opencb.opencga.storage.core.cache;
+
+import org.apache.commons.lang3.StringUtils;
+import org.opencb.commons.datastore.core.QueryResult;
+import org.opencb.opencga.storage.core.config.CacheConfiguration;
+import org.redisson.Config;
+import org.redisson.Redisson;
+import org.redisson.RedissonClient;
+import org.redisson.codec.JsonJacksonCodec;
+import org.redisson.codec.KryoCodec;
+import org.redisson.core.RMap;
+import org.redisson.core.RTopic;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Remote cache tier backed by Redis. The client is created lazily on the first access.
+ *
+ * Invalidations are published to a Redis topic, so every process sharing this Redis can drop its local copies.
+ */
+public class RedisCacheTier implements CacheTier {
+
+    private static final String INVALIDATIONS_TOPIC = "ocga:invalidations";
+
+    private final Config redissonConfig;
+    private final long ttlMs;
+    private final List<Consumer<String>> invalidationListeners = new CopyOnWriteArrayList<>();
+    private RedissonClient redissonClient;
+
+    public RedisCacheTier(CacheConfiguration cache) {
+        redissonConfig = new Config();
+
+        String host = (StringUtils.isNotEmpty(cache.getHost()))
+                ? cache.getHost()
+                : CacheConfiguration.DEFAULT_HOST;
+        redissonConfig.useSingleServer().setAddress(host);
+
+        String codec = (StringUtils.isNotEmpty(cache.getSerialization()))
+                ? cache.getSerialization()
+                : CacheConfiguration.DEFAULT_SERIALIZATION;
+
+        if (StringUtils.isNotEmpty(cache.getPassword())) {
+            redissonConfig.useSingleServer().setPassword(cache.getPassword());
+        }
+
+        if ("KRYO".equalsIgnoreCase(codec)) {
+            redissonConfig.setCodec(new KryoCodec());
+        } else {
+            redissonConfig.setCodec(new JsonJacksonCodec());
+        }
+        ttlMs = cache.getTtl();
+    }
+
+    @Override
+    public String getName() {
+        return "redis";
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> QueryResult<T> get(String key) {
+        RMap<Integer, Map<String, Object>> map = getRedissonClient().getMap(key);
+
+        // We only retrieve the first field of the HASH, which is the only one that exist.
+        Map<Integer, Map<String, Object>> result = map.getAll(new HashSet<>(Collections.singletonList(0)));
+        if (result != null && !result.isEmpty()) {
+            return (QueryResult<T>) result.get(0).get("result");
+        } else {
+            return null;
+        }
+    }
+
+    @Override
+    public void put(String key, QueryResult<?> queryResult) {
+        RMap<Integer, Map<String, Object>> map = getRedissonClient().getMap(key);
+        Map<String, Object> record = new HashMap<>();
+        record.put("result", queryResult);
+        map.fastPut(0, record);
+        if (ttlMs > 0) {
+            map.expire(ttlMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void invalidate(String keyPrefix) {
+        RedissonClient client = getRedissonClient();
+        client.getKeys().deleteByPattern(keyPrefix + "*");
+        client.<String>getTopic(INVALIDATIONS_TOPIC).publish(keyPrefix);
+    }
+
+    @Override
+    public void addInvalidationListener(Consumer<String> listener) {
+        invalidationListeners.add(listener);
+    }
+
+    @Override
+    public void ping() {
+        if (!getRedissonClient().getNodesGroup().pingAll()) {
+            throw new IllegalStateException("Redis server not available");
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (redissonClient != null) {
+            redissonClient.shutdown();
+            redissonClient = null;
+        }
+    }
+
+    private synchronized RedissonClient getRedissonClient() {
+        if (redissonClient == null) {
+            RedissonClient client = Redisson.create(redissonConfig);
+            try {
+                RTopic<String> topic = client.getTopic(INVALIDATIONS_TOPIC);
+                topic.addListener((channel, keyPrefix) -> invalidationListeners.forEach(listener -> listener.accept(keyPrefix)));
+            } catch (RuntimeException e) {
+                // Do not keep a client without subscription. Invalidations from other processes would be missed.
+                client.shutdown();
+                throw e;
+            }
+            redissonClient = client;
+        }
+        return redissonClient;
+    }
+}
@@ -35,6 +35,26 @@ public class CacheConfiguration {
     private int maxResultSize;
     private String password;
 
+    /**
+     * Max number of results stored in the in-process cache tier.
+     */
+    private long localMaxSize;
+
+    /**
+     * Time to live of the cached results, in milliseconds.
+     */
+    private long ttl;
+
+    /**
+     * Use the remote cache tier (Redis) located at {@link #host}.
+     */
+    private boolean remoteActive;
+
+    /**
+     * Time to wait before retrying a failed remote cache tier, in milliseconds. Doubled on each consecutive failure.
+     */
+    private long remoteRetryInterval;
+
     /**
      * Accepted values are: aln(alignment), var(variant).
      */
@@ -46,6 +66,10 @@ public class CacheConfiguration {
     public static final String DEFAULT_HOST = "localhost:6379";
     public static final String DEFAULT_PASSWORD = "";
     public static final int DEFAULT_MAX_FILE_SIZE = 500;
+    public static final long DEFAULT_LOCAL_MAX_SIZE = 100000;
+    public static final long DEFAULT_TTL = 300000;
+    public static final boolean DEFAULT_REMOTE_ACTIVE = false;
+    public static final long DEFAULT_REMOTE_RETRY_INTERVAL = 30000;
 
     public CacheConfiguration() {
         this(DEFAULT_HOST, DEFAULT_ACTVE, DEFAULT_SERIALIZATION, 50, DEFAULT_MAX_FILE_SIZE, DEFAULT_PASSWORD,
@@ -61,6 +85,10 @@ public class CacheConfiguration {
         this.maxResultSize = maxFileSize;
         this.password = password;
         this.allowedTypes = allowedTypes;
+        this.localMaxSize = DEFAULT_LOCAL_MAX_SIZE;
+        this.ttl = DEFAULT_TTL;
+        this.remoteActive = DEFAULT_REMOTE_ACTIVE;
+        this.remoteRetryInterval = DEFAULT_REMOTE_RETRY_INTERVAL;
     }
 
     @Override
@@ -72,6 +100,10 @@ public class CacheConfiguration {
                 + ", slowThreshold=" + slowThreshold
                 + ", maxResultSize=" + maxResultSize
                 + ", allowedTypes='" + allowedTypes + '\''
+                + ", localMaxSize=" + localMaxSize
+                + ", ttl=" + ttl
+                + ", remoteActive=" + remoteActive
+                + ", remoteRetryInterval=" + remoteRetryInterval
                 + '}');
         return sb.toString();
     }
@@ -138,4 +170,40 @@ public class CacheConfiguration {
         this.allowedTypes = allowedTypes;
         return this;
     }
+
+    public long getLocalMaxSize() {
+        return localMaxSize;
+    }
+
+    public CacheConfiguration setLocalMaxSize(long localMaxSize) {
+        this.localMaxSize = localMaxSize;
+        return this;
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    public CacheConfiguration setTtl(long ttl) {
+        this.ttl = ttl;
+        return this;
+    }
+
+    public boolean isRemoteActive() {
+        return remoteActive;
+    }
+
+    public CacheConfiguration setRemoteActive(boolean remoteActive) {
+        this.remoteActive = remoteActive;
+        return this;
+    }
+
+    public long getRemoteRetryInterval() {
+        return remoteRetryInterval;
+    }
+
+    public CacheConfiguration setRemoteRetryInterval(long remoteRetryInterval) {
+        this.remoteRetryInterval = remoteRetryInterval;
+        return this;
+    }
 }
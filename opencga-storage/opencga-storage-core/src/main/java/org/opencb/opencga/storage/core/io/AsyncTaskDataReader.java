@@ -0,0 +1,137 @@
+package org.opencb.opencga.storage.core.io;
+
+import org.opencb.commons.io.DataReader;
+import org.opencb.commons.run.Task;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * DataReader that applies a task to the batches of another DataReader using multiple threads.
+ *
+ * Batches are read from the source in the caller thread, so the source does not need to be thread safe,
+ * while the task is executed in a thread pool, with up to "2 x numThreads" batches in flight.
+ * Results are returned in the same order as the source batches, in batches of at most the requested size.
+ */
+public class AsyncTaskDataReader<S, T> implements DataReader<T> {
+
+    private final DataReader<S> source;
+    private final Task<S, T> task;
+    private final int numThreads;
+    private final int sourceBatchSize;
+    private final Deque<Future<List<T>>> pending = new ArrayDeque<>();
+    private final Deque<T> buffer = new ArrayDeque<>();
+    private ExecutorService executor;
+    private boolean sourceExhausted;
+
+    /**
+     * @param source          Source reader
+     * @param task            Task to apply to each batch. Must be thread safe.
+     * @param numThreads      Number of threads to execute the task
+     * @param sourceBatchSize Batch size to read from the source
+     */
+    public AsyncTaskDataReader(DataReader<S> source, Task<S, T> task, int numThreads, int sourceBatchSize) {
+        this.source = source;
+        this.task = task;
+        this.numThreads = Math.max(1, numThreads);
+        this.sourceBatchSize = sourceBatchSize;
+    }
+
+    @Override
+    public boolean open() {
+        return source.open();
+    }
+
+    @Override
+    public boolean pre() {
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(numThreads, r -> {
+            Thread thread = new Thread(r, "async-task-reader-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            task.pre();
+        } catch (Exception e) {
+            throw propagate(e);
+        }
+        return source.pre();
+    }
+
+    @Override
+    public List<T> read(int batchSize) {
+        // The task may return more elements than read from the source. Buffer them, and return at most batchSize elements.
+        boolean hasNext = true;
+        while (buffer.size() < batchSize && hasNext) {
+            hasNext = readNext();
+        }
+        List<T> result = new ArrayList<>(Math.min(batchSize, buffer.size()));
+        while (result.size() < batchSize && !buffer.isEmpty()) {
+            result.add(buffer.pollFirst());
+        }
+        return result;
+    }
+
+    private boolean readNext() {
+        fill();
+        Future<List<T>> future = pending.pollFirst();
+        if (future == null) {
+            return false;
+        }
+        try {
+            buffer.addAll(future.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw propagate(e.getCause());
+        }
+        return true;
+    }
+
+    private void fill() {
+        while (!sourceExhausted && pending.size() < numThreads * 2) {
+            List<S> batch = source.read(sourceBatchSize);
+            if (batch == null || batch.isEmpty()) {
+                sourceExhausted = true;
+            } else {
+                pending.add(executor.submit(() -> task.apply(batch)));
+            }
+        }
+    }
+
+    @Override
+    public boolean post() {
+        try {
+            task.post();
+        } catch (Exception e) {
+            throw propagate(e);
+        }
+        return source.post();
+    }
+
+    @Override
+    public boolean close() {
+        for (Future<List<T>> future : pending) {
+            future.cancel(true);
+        }
+        pending.clear();
+        buffer.clear();
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        return source.close();
+    }
+
+    private static RuntimeException propagate(Throwable e) {
+        if (e instanceof RuntimeException) {
+            return (RuntimeException) e;
+        } else {
+            return new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package org.opencb.opencga.storage.core.io.avro;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileConstants;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.specific.SpecificData;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.opencb.commons.io.DataReader;
+import org.opencb.commons.run.Task;
+import org.opencb.opencga.storage.core.io.AsyncTaskDataReader;
+import org.xerial.snappy.Snappy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the raw blocks of an Avro data file, without decompressing nor decoding them.
+ *
+ * Blocks are decoded with {@link BlockDecoder}, which can be executed in parallel.
+ * See {@link #parallelReader(InputStream, Class, int)}.
+ * Supported codecs are "null", "deflate" and "snappy".
+ */
+public class AvroBlockReader implements DataReader<AvroBlockReader.Block> {
+
+    private static final byte[] MAGIC = new byte[]{'O', 'b', 'j', 1};
+
+    private final InputStream inputStream;
+    private BinaryDecoder decoder;
+    private Schema schema;
+    private String codec;
+    private final byte[] sync = new byte[DataFileConstants.SYNC_SIZE];
+    private final byte[] blockSync = new byte[DataFileConstants.SYNC_SIZE];
+
+    public AvroBlockReader(InputStream inputStream) {
+        this.inputStream = inputStream;
+    }
+
+    /**
+     * Build a reader that decodes the blocks of the Avro file using multiple threads.
+     *
+     * @param inputStream   Avro data file
+     * @param clazz         Avro specific class to read
+     * @param numThreads    Number of threads to decode the blocks
+     * @param <T>           Record type
+     * @return              DataReader
+     */
+    public static <T> DataReader<T> parallelReader(InputStream inputStream, Class<T> clazz, int numThreads) {
+        return new AsyncTaskDataReader<>(new AvroBlockReader(inputStream), new BlockDecoder<>(clazz), numThreads, 1);
+    }
+
+    @Override
+    public boolean open() {
+        decoder = DecoderFactory.get().binaryDecoder(inputStream, null);
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            decoder.readFixed(magic);
+            if (!Arrays.equals(MAGIC, magic)) {
+                throw new IOException("Not an Avro data file");
+            }
+            Map<String, byte[]> meta = new HashMap<>();
+            for (long n = decoder.readMapStart(); n != 0; n = decoder.mapNext()) {
+                for (long i = 0; i < n; i++) {
+                    String key = decoder.readString();
+                    ByteBuffer value = decoder.readBytes(null);
+                    byte[] bytes = new byte[value.remaining()];
+                    value.get(bytes);
+                    meta.put(key, bytes);
+                }
+            }
+            decoder.readFixed(sync);
+            schema = new Schema.Parser().parse(new String(meta.get(DataFileConstants.SCHEMA), StandardCharsets.UTF_8));
+            byte[] codecBytes = meta.get(DataFileConstants.CODEC);
+            codec = codecBytes == null ? DataFileConstants.NULL_CODEC : new String(codecBytes, StandardCharsets.UTF_8);
+            if (!codec.equals(DataFileConstants.NULL_CODEC)
+                    && !codec.equals(DataFileConstants.DEFLATE_CODEC)
+                    && !codec.equals(DataFileConstants.SNAPPY_CODEC)) {
+                throw new IOException("Unsupported avro codec '" + codec + "'");
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return true;
+    }
+
+    @Override
+    public List<Block> read(int batchSize) {
+        List<Block> blocks = new ArrayList<>(batchSize);
+        try {
+            while (blocks.size() < batchSize && !decoder.isEnd()) {
+                long count = decoder.readLong();
+                long size = decoder.readLong();
+                if (size > Integer.MAX_VALUE || size < 0) {
+                    throw new IOException("Invalid block size " + size);
+                }
+                byte[] data = new byte[(int) size];
+                decoder.readFixed(data);
+                decoder.readFixed(blockSync);
+                if (!Arrays.equals(sync, blockSync)) {
+                    throw new IOException("Invalid sync marker");
+                }
+                blocks.add(new Block(schema, codec, count, data));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return blocks;
+    }
+
+    @Override
+    public boolean close() {
+        try {
+            inputStream.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return true;
+    }
+
+    public Schema getSchema() {
+        return schema;
+    }
+
+    public String getCodec() {
+        return codec;
+    }
+
+    /**
+     * Compressed block of an Avro data file.
+     */
+    public static class Block {
+        private final Schema schema;
+        private final String codec;
+        private final long count;
+        private final byte[] data;
+
+        public Block(Schema schema, String codec, long count, byte[] data) {
+            this.schema = schema;
+            this.codec = codec;
+            this.count = count;
+            this.data = data;
+        }
+
+        public Schema getSchema() {
+            return schema;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public byte[] decompress() throws IOException {
+            switch (codec) {
+                case DataFileConstants.NULL_CODEC:
+                    return data;
+                case DataFileConstants.DEFLATE_CODEC:
+                    return inflate(data);
+                case DataFileConstants.SNAPPY_CODEC:
+                    return uncompressSnappy(data);
+                default:
+                    throw new IOException("Unsupported avro codec '" + codec + "'");
+            }
+        }
+
+        private static byte[] inflate(byte[] data) throws IOException {
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(data);
+                ByteArrayOutputStream os = new ByteArrayOutputStream(data.length * 4);
+                byte[] buffer = new byte[8192];
+                while (!inflater.finished()) {
+                    int n = inflater.inflate(buffer);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    os.write(buffer, 0, n);
+                }
+                return os.toByteArray();
+            } catch (DataFormatException e) {
+                throw new IOException(e);
+            } finally {
+                inflater.end();
+            }
+        }
+
+        private static byte[] uncompressSnappy(byte[] data) throws IOException {
+            // Snappy blocks are followed by the CRC32 checksum of the uncompressed data
+            int length = data.length - 4;
+            byte[] uncompressed = new byte[Snappy.uncompressedLength(data, 0, length)];
+            Snappy.uncompress(data, 0, length, uncompressed, 0);
+            CRC32 crc32 = new CRC32();
+            crc32.update(uncompressed, 0, uncompressed.length);
+            if ((int) crc32.getValue() != ByteBuffer.wrap(data, length, 4).getInt()) {
+                throw new IOException("Checksum failure");
+            }
+            return uncompressed;
+        }
+    }
+
+    /**
+     * Task to decompress and decode Avro blocks. Thread safe.
+     *
+     * @param <T> Record type
+     */
+    public static class BlockDecoder<T> implements Task<Block, T> {
+        private final Schema readerSchema;
+        private final ThreadLocal<Map<Schema, SpecificDatumReader<T>>> datumReaders = ThreadLocal.withInitial(HashMap::new);
+
+        public BlockDecoder(Class<T> clazz) {
+            readerSchema = SpecificData.get().getSchema(clazz);
+        }
+
+        @Override
+        public List<T> apply(List<Block> blocks) throws IOException {
+            int count = 0;
+            for (Block block : blocks) {
+                count += block.getCount();
+            }
+            List<T> records = new ArrayList<>(count);
+            BinaryDecoder decoder = null;
+            for (Block block : blocks) {
+                SpecificDatumReader<T> datumReader = datumReaders.get()
+                        .computeIfAbsent(block.getSchema(), writerSchema -> new SpecificDatumReader<>(writerSchema, readerSchema));
+                decoder = DecoderFactory.get().binaryDecoder(block.decompress(), decoder);
+                for (long i = 0; i < block.getCount(); i++) {
+                    records.add(datumReader.read(null, decoder));
+                }
+            }
+            return records;
+        }
+    }
+}
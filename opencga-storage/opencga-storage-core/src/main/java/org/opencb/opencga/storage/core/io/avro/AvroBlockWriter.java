@@ -0,0 +1,76 @@
+package org.opencb.opencga.storage.core.io.avro;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.opencb.commons.io.DataWriter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.List;
+
+/**
+ * Writes records into an Avro data file. Records are grouped in compressed blocks, that can be read and decoded
+ * in parallel with {@link AvroBlockReader}.
+ */
+public class AvroBlockWriter<T> implements DataWriter<T> {
+
+    public static final String DEFAULT_CODEC = "snappy";
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    private final Schema schema;
+    private final OutputStream outputStream;
+    private final DataFileWriter<T> writer;
+
+    public AvroBlockWriter(Schema schema, OutputStream outputStream) {
+        this(schema, DEFAULT_CODEC, DEFAULT_BLOCK_SIZE, outputStream);
+    }
+
+    /**
+     * @param schema        Avro schema
+     * @param codec         Compression codec. One of "null", "deflate" or "snappy"
+     * @param blockSize     Approximate size in bytes of each uncompressed block
+     * @param outputStream  Output stream. Closed when closing the writer
+     */
+    public AvroBlockWriter(Schema schema, String codec, int blockSize, OutputStream outputStream) {
+        this.schema = schema;
+        this.outputStream = outputStream;
+        writer = new DataFileWriter<>(new SpecificDatumWriter<T>(schema));
+        writer.setCodec(CodecFactory.fromString(codec == null || codec.isEmpty() ? "null" : codec.replace("gzip", "deflate")));
+        writer.setSyncInterval(blockSize);
+    }
+
+    @Override
+    public boolean open() {
+        try {
+            writer.create(schema, outputStream);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean write(List<T> batch) {
+        try {
+            for (T t : batch) {
+                writer.append(t);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean close() {
+        try {
+            writer.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return true;
+    }
+}
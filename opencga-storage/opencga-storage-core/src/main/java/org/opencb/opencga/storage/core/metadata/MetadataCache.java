@@ -1,18 +1,92 @@
 package org.opencb.opencga.storage.core.metadata;
 
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.BiFunction;
+import java.util.function.ToIntFunction;
 
 /**
+ * Bounded cache for metadata values, indexed by study and resource id.
+ *
+ * Values are stored in a two-level map (study -> resource) so lookups do not need to build any composite key.
+ * The total weight of the cache is limited. Once exceeded, the least recently accessed entries are evicted.
+ * Entries older than the TTL are recomputed on access.
+ *
  * Created by jacobo on 27/02/19.
  */
 public class MetadataCache<ID, R> {
 
-    private final ConcurrentHashMap<String, R> cache;
+    public static final long DEFAULT_MAX_WEIGHT = 100000;
+    public static final long DEFAULT_TTL_MS = TimeUnit.HOURS.toMillis(1);
+    // After an eviction, the cache will be filled up to this ratio of the max weight
+    private static final double EVICTION_FILL_RATIO = 0.9;
+
+    private final ConcurrentHashMap<Integer, ConcurrentHashMap<ID, Entry<R>>> cache;
     private final BiFunction<Integer, ID, R> function;
+    private final ToIntFunction<R> weigher;
+    private final long maxWeight;
+    private final long ttlNanos;
+
+    private final AtomicLong weight = new AtomicLong();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    private final LongAdder expirationCount = new LongAdder();
+
+    private static final class Entry<R> {
+        private final R value;
+        private final int weight;
+        private final long writeTime;
+        private volatile long lastAccess;
+
+        private Entry(R value, int weight, long now) {
+            this.value = value;
+            this.weight = weight;
+            this.writeTime = now;
+            this.lastAccess = now;
+        }
+    }
+
+    private static final class EvictionCandidate<ID, R> {
+        private final ConcurrentHashMap<ID, Entry<R>> studyCache;
+        private final ID id;
+        private final Entry<R> entry;
+        // Copy the last access time, so it does not change while sorting
+        private final long lastAccess;
+
+        private EvictionCandidate(ConcurrentHashMap<ID, Entry<R>> studyCache, ID id, Entry<R> entry) {
+            this.studyCache = studyCache;
+            this.id = id;
+            this.entry = entry;
+            this.lastAccess = entry.lastAccess;
+        }
+    }
 
     public MetadataCache(BiFunction<Integer, ID, R> function) {
+        this(function, r -> 1, DEFAULT_MAX_WEIGHT, DEFAULT_TTL_MS);
+    }
+
+    /**
+     * Creates a bounded metadata cache.
+     *
+     * @param function  Function to load missing values
+     * @param weigher   Weight of each value. Must be positive.
+     * @param maxWeight Max total weight of the cache. Non positive values for unbounded cache.
+     * @param ttlMs     Time to live of each entry, in milliseconds. Non positive values for no expiration.
+     */
+    public MetadataCache(BiFunction<Integer, ID, R> function, ToIntFunction<R> weigher, long maxWeight, long ttlMs) {
         this.function = function;
+        this.weigher = weigher;
+        this.maxWeight = maxWeight > 0 ? maxWeight : Long.MAX_VALUE;
+        this.ttlNanos = ttlMs > 0 ? TimeUnit.MILLISECONDS.toNanos(ttlMs) : Long.MAX_VALUE;
         this.cache = new ConcurrentHashMap<>();
     }
 
@@ -24,17 +98,7 @@ public class MetadataCache<ID, R> {
      * @return        Value
      */
     public R get(int studyId, ID id) {
-        String key = getKey(studyId, id);
-
-        // Avoid unnecessary synchronize blocks.
-        // ConcurrentHashMap::get does not have any synchronization block
-        R r = cache.get(key);
-        if (r != null) {
-            return r;
-        } else {
-            // Use this method to avoid executing the function twice
-            return cache.computeIfAbsent(key, k -> this.function.apply(studyId, id));
-        }
+        return get(studyId, id, null);
     }
 
     /**
@@ -46,35 +110,226 @@ public class MetadataCache<ID, R> {
      * @return Value
      */
     public R get(int studyId, ID id, R invalidValue) {
-        String key = getKey(studyId, id);
+        ConcurrentHashMap<ID, Entry<R>> studyCache = getStudyCache(studyId);
+        long now = System.nanoTime();
 
         // Avoid unnecessary synchronize blocks.
         // ConcurrentHashMap::get does not have any synchronization block
-        R r = cache.get(key);
-        if (r == null || r.equals(invalidValue)) {
-            // Use this method to avoid executing the function twice
-            return cache.compute(key, (k, v) -> {
-                if (v == null || v.equals(invalidValue)) {
-                    return this.function.apply(studyId, id);
-                } else {
+        Entry<R> entry = studyCache.get(id);
+        if (entry != null && isValid(entry, invalidValue, now)) {
+            entry.lastAccess = now;
+            hitCount.increment();
+            return entry.value;
+        }
+        missCount.increment();
+
+        // Use this method to avoid executing the function twice
+        entry = studyCache.compute(id, (k, v) -> {
+            if (v != null) {
+                if (isValid(v, invalidValue, now)) {
                     return v;
                 }
-            });
-        } else {
-            return r;
-        }
+                if (isExpired(v, now)) {
+                    expirationCount.increment();
+                }
+            }
+            // Load before updating the weight. If the load fails, the old entry is kept and so is its weight.
+            R value = this.function.apply(studyId, id);
+            Entry<R> newEntry = value == null ? null : new Entry<>(value, weigher.applyAsInt(value), now);
+            if (newEntry != null) {
+                weight.addAndGet(newEntry.weight);
+            }
+            if (v != null) {
+                weight.addAndGet(-v.weight);
+            }
+            return newEntry;
+        });
+        evictIfNeeded();
+        return entry == null ? null : entry.value;
     }
 
     public void put(int studyId, ID id, R value) {
-        cache.put(getKey(studyId, id), value);
+        Entry<R> entry = new Entry<>(value, weigher.applyAsInt(value), System.nanoTime());
+        weight.addAndGet(entry.weight);
+        Entry<R> old = getStudyCache(studyId).put(id, entry);
+        if (old != null) {
+            weight.addAndGet(-old.weight);
+        }
+        evictIfNeeded();
+    }
+
+    /**
+     * Remove a value from the cache. Next read will call the load function.
+     *
+     * @param studyId Study id
+     * @param id      Resource id
+     */
+    public void invalidate(int studyId, ID id) {
+        ConcurrentHashMap<ID, Entry<R>> studyCache = cache.get(studyId);
+        if (studyCache != null && id != null) {
+            Entry<R> old = studyCache.remove(id);
+            if (old != null) {
+                weight.addAndGet(-old.weight);
+            }
+        }
+    }
+
+    /**
+     * Remove all the values from a study.
+     *
+     * @param studyId Study id
+     */
+    public void invalidate(int studyId) {
+        ConcurrentHashMap<ID, Entry<R>> studyCache = cache.get(studyId);
+        if (studyCache != null) {
+            // Remove entries one by one, so concurrent loads on this study are not lost from the weight count
+            for (Map.Entry<ID, Entry<R>> entry : studyCache.entrySet()) {
+                if (studyCache.remove(entry.getKey(), entry.getValue())) {
+                    weight.addAndGet(-entry.getValue().weight);
+                }
+            }
+        }
     }
 
     public void clear() {
-        cache.clear();
+        for (Integer studyId : cache.keySet()) {
+            invalidate(studyId);
+        }
     }
 
-    private String getKey(int studyId, ID id) {
-        return studyId + "_" + id;
+    public long size() {
+        long size = 0;
+        for (ConcurrentHashMap<ID, Entry<R>> studyCache : cache.values()) {
+            size += studyCache.size();
+        }
+        return size;
+    }
+
+    public long weight() {
+        return weight.get();
+    }
+
+    public Stats getStats() {
+        return new Stats(hitCount.sum(), missCount.sum(), evictionCount.sum(), expirationCount.sum(), size(), weight());
+    }
+
+    private ConcurrentHashMap<ID, Entry<R>> getStudyCache(int studyId) {
+        ConcurrentHashMap<ID, Entry<R>> studyCache = cache.get(studyId);
+        if (studyCache == null) {
+            studyCache = cache.computeIfAbsent(studyId, k -> new ConcurrentHashMap<>());
+        }
+        return studyCache;
+    }
+
+    private boolean isValid(Entry<R> entry, R invalidValue, long now) {
+        return !isExpired(entry, now) && (invalidValue == null || !entry.value.equals(invalidValue));
+    }
+
+    private boolean isExpired(Entry<R> entry, long now) {
+        return now - entry.writeTime > ttlNanos;
+    }
+
+    /**
+     * Evict the least recently accessed entries, if the cache is over its max weight.
+     * Only one thread evicts at a time. Other threads will continue without blocking.
+     */
+    private void evictIfNeeded() {
+        if (weight.get() <= maxWeight || !evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            if (weight.get() <= maxWeight) {
+                return;
+            }
+            long now = System.nanoTime();
+            List<EvictionCandidate<ID, R>> candidates = new ArrayList<>();
+            for (ConcurrentHashMap<ID, Entry<R>> studyCache : cache.values()) {
+                for (Map.Entry<ID, Entry<R>> entry : studyCache.entrySet()) {
+                    if (isExpired(entry.getValue(), now)) {
+                        if (studyCache.remove(entry.getKey(), entry.getValue())) {
+                            weight.addAndGet(-entry.getValue().weight);
+                            expirationCount.increment();
+                        }
+                    } else {
+                        candidates.add(new EvictionCandidate<>(studyCache, entry.getKey(), entry.getValue()));
+                    }
+                }
+            }
+            candidates.sort(Comparator.comparingLong(c -> c.lastAccess));
+
+            long targetWeight = (long) (maxWeight * EVICTION_FILL_RATIO);
+            for (EvictionCandidate<ID, R> candidate : candidates) {
+                if (weight.get() <= targetWeight) {
+                    break;
+                }
+                if (candidate.studyCache.remove(candidate.id, candidate.entry)) {
+                    weight.addAndGet(-candidate.entry.weight);
+                    evictionCount.increment();
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    public static class Stats {
+        private final long hitCount;
+        private final long missCount;
+        private final long evictionCount;
+        private final long expirationCount;
+        private final long size;
+        private final long weight;
+
+        public Stats(long hitCount, long missCount, long evictionCount, long expirationCount, long size, long weight) {
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.evictionCount = evictionCount;
+            this.expirationCount = expirationCount;
+            this.size = size;
+            this.weight = weight;
+        }
+
+        public long getHitCount() {
+            return hitCount;
+        }
+
+        public long getMissCount() {
+            return missCount;
+        }
+
+        public double getHitRate() {
+            long requests = hitCount + missCount;
+            return requests == 0 ? 1.0 : ((double) hitCount) / requests;
+        }
+
+        public long getEvictionCount() {
+            return evictionCount;
+        }
+
+        public long getExpirationCount() {
+            return expirationCount;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getWeight() {
+            return weight;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats{"
+                    + "hitCount=" + hitCount
+                    + ", missCount=" + missCount
+                    + ", hitRate=" + getHitRate()
+                    + ", evictionCount=" + evictionCount
+                    + ", expirationCount=" + expirationCount
+                    + ", size=" + size
+                    + ", weight=" + weight
+                    + '}';
+        }
     }
 
 }
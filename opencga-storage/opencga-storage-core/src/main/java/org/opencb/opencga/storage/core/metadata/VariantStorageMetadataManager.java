@@ -44,6 +44,7 @@ import java.net.URI;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiFunction;
@@ -85,60 +86,83 @@ public class VariantStorageMetadataManager implements AutoCloseable {
     private final MetadataCache<String, Integer> cohortIdCache;
     private final MetadataCache<Integer, String> cohortNameCache;
 
+    private final List<DataChangeListener> dataChangeListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Listener to be notified when the variants data of a study is modified. i.e. new files loaded or removed, new annotation,
+     * new stats...
+     */
+    @FunctionalInterface
+    public interface DataChangeListener {
+        /**
+         * @param studyId Modified study. Negative if affects the whole project.
+         * @param reason  Operation that modified the data.
+         */
+        void onDataChange(int studyId, String reason);
+    }
+
     public VariantStorageMetadataManager(VariantStorageMetadataDBAdaptorFactory dbAdaptorFactory) {
+        this(dbAdaptorFactory, new ObjectMap());
+    }
+
+    public VariantStorageMetadataManager(VariantStorageMetadataDBAdaptorFactory dbAdaptorFactory, ObjectMap options) {
+        long maxWeight = options.getLong(VariantStorageEngine.Options.METADATA_CACHE_MAX_WEIGHT.key(),
+                VariantStorageEngine.Options.METADATA_CACHE_MAX_WEIGHT.defaultValue());
+        long ttl = options.getLong(VariantStorageEngine.Options.METADATA_CACHE_TTL.key(),
+                VariantStorageEngine.Options.METADATA_CACHE_TTL.defaultValue());
         this.projectDBAdaptor = dbAdaptorFactory.buildProjectMetadataDBAdaptor();
         this.studyDBAdaptor = dbAdaptorFactory.buildStudyMetadataDBAdaptor();
         this.fileDBAdaptor = dbAdaptorFactory.buildFileMetadataDBAdaptor();
         this.sampleDBAdaptor = dbAdaptorFactory.buildSampleMetadataDBAdaptor();
         this.cohortDBAdaptor = dbAdaptorFactory.buildCohortMetadataDBAdaptor();
         this.taskDBAdaptor = dbAdaptorFactory.buildTaskDBAdaptor();
-        sampleIdCache = new MetadataCache<>(sampleDBAdaptor::getSampleId);
+        sampleIdCache = new MetadataCache<>(sampleDBAdaptor::getSampleId, v -> 1, maxWeight, ttl);
         sampleNameCache = new MetadataCache<>((studyId, sampleId) -> {
             SampleMetadata sampleMetadata = sampleDBAdaptor.getSampleMetadata(studyId, sampleId, null);
             if (sampleMetadata == null) {
                 throw VariantQueryException.sampleNotFound(sampleId, studyId);
             }
             return sampleMetadata.getName();
-        });
+        }, v -> 1, maxWeight, ttl);
         sampleIdIndexedCache = new MetadataCache<>((studyId, sampleId) -> {
             SampleMetadata sampleMetadata = sampleDBAdaptor.getSampleMetadata(studyId, sampleId, null);
             if (sampleMetadata == null) {
                 throw VariantQueryException.sampleNotFound(sampleId, studyId);
             }
             return sampleMetadata.isIndexed();
-        });
+        }, v -> 1, maxWeight, ttl);
 
-        fileIdCache = new MetadataCache<>(fileDBAdaptor::getFileId);
+        fileIdCache = new MetadataCache<>(fileDBAdaptor::getFileId, v -> 1, maxWeight, ttl);
         fileNameCache = new MetadataCache<>((studyId, fileId) -> {
             FileMetadata fileMetadata = fileDBAdaptor.getFileMetadata(studyId, fileId, null);
             if (fileMetadata == null) {
                 throw VariantQueryException.fileNotFound(fileId, studyId);
             }
             return fileMetadata.getName();
-        });
+        }, v -> 1, maxWeight, ttl);
         fileIdIndexedCache = new MetadataCache<>((studyId, fileId) -> {
             FileMetadata fileMetadata = fileDBAdaptor.getFileMetadata(studyId, fileId, null);
             if (fileMetadata == null) {
                 throw VariantQueryException.fileNotFound(fileId, studyId);
             }
             return fileMetadata.isIndexed();
-        });
+        }, v -> 1, maxWeight, ttl);
         fileIdsFromSampleIdCache = new MetadataCache<>((studyId, sampleId) -> {
             SampleMetadata sampleMetadata = getSampleMetadata(studyId, sampleId);
             if (sampleMetadata == null) {
                 throw VariantQueryException.sampleNotFound(sampleId, studyId);
             }
             return sampleMetadata.getFiles();
-        });
+        }, files -> files.size() + 1, maxWeight, ttl);
 
-        cohortIdCache = new MetadataCache<>(cohortDBAdaptor::getCohortId);
+        cohortIdCache = new MetadataCache<>(cohortDBAdaptor::getCohortId, v -> 1, maxWeight, ttl);
         cohortNameCache = new MetadataCache<>((studyId, cohortId) -> {
             CohortMetadata cohortMetadata = cohortDBAdaptor.getCohortMetadata(studyId, cohortId, null);
             if (cohortMetadata == null) {
                 throw VariantQueryException.cohortNotFound(cohortId, studyId, getAvailableCohorts(studyId));
             }
             return cohortMetadata.getName();
-        });
+        }, v -> 1, maxWeight, ttl);
     }
 
     public long lockStudy(int studyId) throws StorageEngineException {
@@ -474,6 +498,9 @@ public class VariantStorageMetadataManager implements AutoCloseable {
     public void unsecureUpdateFileMetadata(int studyId, FileMetadata file) {
         file.setStudyId(studyId);
         fileDBAdaptor.updateFileMetadata(studyId, file, null);
+        fileIdCache.invalidate(studyId, file.getName());
+        fileNameCache.invalidate(studyId, file.getId());
+        fileIdIndexedCache.invalidate(studyId, file.getId());
     }
 
     public <E extends Exception> FileMetadata updateFileMetadata(int studyId, int fileId, UpdateFunction<FileMetadata, E> update)
@@ -632,6 +659,10 @@ public class VariantStorageMetadataManager implements AutoCloseable {
     public void unsecureUpdateSampleMetadata(int studyId, SampleMetadata sample) {
         sample.setStudyId(studyId);
         sampleDBAdaptor.updateSampleMetadata(studyId, sample, null);
+        sampleIdCache.invalidate(studyId, sample.getName());
+        sampleNameCache.invalidate(studyId, sample.getId());
+        sampleIdIndexedCache.invalidate(studyId, sample.getId());
+        fileIdsFromSampleIdCache.invalidate(studyId, sample.getId());
     }
 
     public <E extends Exception> SampleMetadata updateSampleMetadata(int studyId, int sampleId, UpdateFunction<SampleMetadata, E> update)
@@ -751,6 +782,8 @@ public class VariantStorageMetadataManager implements AutoCloseable {
     public void unsecureUpdateCohortMetadata(int studyId, CohortMetadata cohort) {
         cohort.setStudyId(studyId);
         cohortDBAdaptor.updateCohortMetadata(studyId, cohort, null);
+        cohortIdCache.invalidate(studyId, cohort.getName());
+        cohortNameCache.invalidate(studyId, cohort.getId());
     }
 
     public <E extends Exception> CohortMetadata updateCohortMetadata(int studyId, int cohortId, UpdateFunction<CohortMetadata, E> update)
@@ -949,6 +982,33 @@ public class VariantStorageMetadataManager implements AutoCloseable {
             task.setId(newTaskId(studyId));
         }
         taskDBAdaptor.updateTask(studyId, task, null);
+        if (TaskMetadata.Status.READY.equals(task.currentStatus())) {
+            notifyDataChange(studyId, task.getName());
+        }
+    }
+
+    public void addDataChangeListener(DataChangeListener listener) {
+        dataChangeListeners.add(Objects.requireNonNull(listener));
+    }
+
+    public void removeDataChangeListener(DataChangeListener listener) {
+        dataChangeListeners.remove(listener);
+    }
+
+    /**
+     * Notify all the registered {@link DataChangeListener} that the variants data of a study was modified.
+     *
+     * @param studyId Modified study. Negative if affects the whole project.
+     * @param reason  Operation that modified the data.
+     */
+    public void notifyDataChange(int studyId, String reason) {
+        for (DataChangeListener listener : dataChangeListeners) {
+            try {
+                listener.onDataChange(studyId, reason);
+            } catch (RuntimeException e) {
+                logger.warn("Error notifying data change from study " + studyId, e);
+            }
+        }
     }
 
     public <E extends Exception> TaskMetadata updateTask(int studyId, int taskId, UpdateFunction<TaskMetadata, E> update)
@@ -1507,6 +1567,40 @@ public class VariantStorageMetadataManager implements AutoCloseable {
         }
     }
 
+    /**
+     * Get the stats of all the internal metadata caches.
+     *
+     * @return Map from cache name to cache stats
+     */
+    public Map<String, MetadataCache.Stats> getCacheStats() {
+        Map<String, MetadataCache.Stats> stats = new LinkedHashMap<>();
+        stats.put("sampleId", sampleIdCache.getStats());
+        stats.put("sampleName", sampleNameCache.getStats());
+        stats.put("sampleIdIndexed", sampleIdIndexedCache.getStats());
+        stats.put("fileId", fileIdCache.getStats());
+        stats.put("fileName", fileNameCache.getStats());
+        stats.put("fileIdIndexed", fileIdIndexedCache.getStats());
+        stats.put("fileIdsFromSampleId", fileIdsFromSampleIdCache.getStats());
+        stats.put("cohortId", cohortIdCache.getStats());
+        stats.put("cohortName", cohortNameCache.getStats());
+        return stats;
+    }
+
+    /**
+     * Remove all the cached values. Next reads will go to the database.
+     */
+    public void invalidateCaches() {
+        sampleIdCache.clear();
+        sampleNameCache.clear();
+        sampleIdIndexedCache.clear();
+        fileIdCache.clear();
+        fileNameCache.clear();
+        fileIdIndexedCache.clear();
+        fileIdsFromSampleIdCache.clear();
+        cohortIdCache.clear();
+        cohortNameCache.clear();
+    }
+
     @Override
     public void close() throws IOException {
         studyDBAdaptor.close();
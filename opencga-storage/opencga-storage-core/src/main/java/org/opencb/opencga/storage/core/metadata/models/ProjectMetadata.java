@@ -4,6 +4,7 @@ import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.apache.commons.lang3.builder.ToStringStyle;
 import org.opencb.commons.datastore.core.ObjectMap;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantQueryException;
+import org.opencb.opencga.storage.core.variant.stats.sketch.CountMinSketch;
 
 import java.util.*;
 
@@ -23,6 +24,8 @@ public class ProjectMetadata {
 
     private Map<String, Integer> counters;
 
+    private CountMinSketch annotationSketch;
+
     private ObjectMap attributes;
 
     public static class VariantAnnotationSets {
@@ -230,7 +233,8 @@ public class ProjectMetadata {
     }
 
     public ProjectMetadata copy() {
-        return new ProjectMetadata(species, assembly, release, new ObjectMap(attributes), new HashMap<>(counters), annotation);
+        return new ProjectMetadata(species, assembly, release, new ObjectMap(attributes), new HashMap<>(counters), annotation)
+                .setAnnotationSketch(annotationSketch == null ? null : annotationSketch.copy());
     }
 
     public String getSpecies() {
@@ -278,6 +282,20 @@ public class ProjectMetadata {
         return this;
     }
 
+    /**
+     * Frequency sketch of the consequence types and biotypes of the annotated variants.
+     *
+     * @return Annotation sketch, or null if the variants were not annotated since the sketches were introduced
+     */
+    public CountMinSketch getAnnotationSketch() {
+        return annotationSketch;
+    }
+
+    public ProjectMetadata setAnnotationSketch(CountMinSketch annotationSketch) {
+        this.annotationSketch = annotationSketch;
+        return this;
+    }
+
     public ObjectMap getAttributes() {
         return attributes;
     }
@@ -8,6 +8,7 @@ import org.opencb.biodata.models.variant.metadata.VariantFileHeaderSimpleLine;
 import org.opencb.biodata.tools.variant.stats.AggregationUtils;
 import org.opencb.commons.datastore.core.ObjectMap;
 import org.opencb.opencga.storage.core.metadata.StudyConfiguration;
+import org.opencb.opencga.storage.core.variant.stats.sketch.VariantSketch;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -29,6 +30,7 @@ public class StudyMetadata {
     private Aggregation aggregation;
     private Long timeStamp;
     private VariantFileHeader variantHeader;
+    private VariantSketch variantSketch;
 
     private ObjectMap attributes;
 
@@ -118,6 +120,20 @@ public class StudyMetadata {
         return this;
     }
 
+    /**
+     * Cardinality sketches of the variants loaded in this study. Used to estimate counts without querying.
+     *
+     * @return Variant sketch, or null if no file has been loaded since the sketches were introduced
+     */
+    public VariantSketch getVariantSketch() {
+        return variantSketch;
+    }
+
+    public StudyMetadata setVariantSketch(VariantSketch variantSketch) {
+        this.variantSketch = variantSketch;
+        return this;
+    }
+
     public ObjectMap getAttributes() {
         return attributes;
     }
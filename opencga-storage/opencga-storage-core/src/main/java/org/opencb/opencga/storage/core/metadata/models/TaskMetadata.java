@@ -17,6 +17,7 @@
 package org.opencb.opencga.storage.core.metadata.models;
 
 import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.opencb.commons.datastore.core.ObjectMap;
 
 import java.util.*;
 
@@ -53,6 +54,7 @@ public class TaskMetadata {
     private long timestamp;
     private final TreeMap<Date, Status> status = new TreeMap<>(Date::compareTo);
     private Type type = Type.OTHER;
+    private ObjectMap attributes = new ObjectMap();
 
     public TaskMetadata() {
     }
@@ -73,6 +75,7 @@ public class TaskMetadata {
         this.timestamp = batch.timestamp;
         this.status.putAll(batch.status);
         this.type = batch.type;
+        this.attributes = new ObjectMap(batch.attributes);
     }
 
     public boolean sameOperation(Collection<Integer> fileIds, Type type, String jobOperationName) {
@@ -162,6 +165,15 @@ public class TaskMetadata {
         return this;
     }
 
+    public ObjectMap getAttributes() {
+        return attributes;
+    }
+
+    public TaskMetadata setAttributes(ObjectMap attributes) {
+        this.attributes = attributes;
+        return this;
+    }
+
     @Override
     public String toString() {
         return new ToStringBuilder(this)
@@ -171,6 +183,7 @@ public class TaskMetadata {
                 .append("timestamp", timestamp)
                 .append("status", status)
                 .append("type", type)
+                .append("attributes", attributes)
                 .toString();
     }
 }
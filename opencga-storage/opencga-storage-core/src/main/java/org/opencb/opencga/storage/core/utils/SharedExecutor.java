@@ -0,0 +1,477 @@
+package org.opencb.opencga.storage.core.utils;
+
+import org.opencb.commons.datastore.core.ObjectMap;
+import org.opencb.opencga.storage.core.variant.adaptors.VariantQueryException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import static org.opencb.opencga.storage.core.variant.VariantStorageEngine.Options.*;
+
+/**
+ * Process-wide executor for the background work of the variant queries, shared by all the running queries.
+ *
+ * The number of threads is bounded, so the number of concurrent queries does not multiply the number of threads.
+ * Tasks waiting for other tasks must be able to continue from the calling thread if the executor is busy,
+ * like {@link #runAll}, to avoid deadlocks.
+ *
+ * Conversion tasks (see {@link Session}) run in their own set of threads. Background tasks, like prefetching iterators,
+ * usually wait for conversion tasks, so sharing the threads could block all of them waiting for conversions that can not start.
+ * Conversion tasks never wait for other tasks.
+ */
+public final class SharedExecutor {
+
+    private static volatile SharedExecutor instance;
+    private static final Logger LOGGER = LoggerFactory.getLogger(SharedExecutor.class);
+
+    private final int threads;
+    private final ThreadPoolExecutor executor;
+
+    private final int conversionThreads;
+    private final int batchSize;
+    private final int maxPendingBatches;
+    private final BlockingQueue<Session> readySessions = new LinkedBlockingQueue<>();
+    private boolean conversionThreadsStarted = false;
+
+    private final AtomicInteger activeSessions = new AtomicInteger();
+    private final AtomicInteger conversionQueueDepth = new AtomicInteger();
+    private final AtomicInteger maxConversionQueueDepth = new AtomicInteger();
+    private final LongAdder conversionTasks = new LongAdder();
+    private final LongAdder convertedElements = new LongAdder();
+    private final LongAdder timeConverting = new LongAdder();
+    private final LongAdder timeQueued = new LongAdder();
+
+    SharedExecutor(int threads) {
+        this(threads, QUERY_CONVERSION_THREADS.defaultValue(), QUERY_CONVERSION_BATCH_SIZE.defaultValue(),
+                QUERY_CONVERSION_MAX_PENDING_BATCHES.defaultValue());
+    }
+
+    SharedExecutor(int threads, int conversionThreads, int batchSize, int maxPendingBatches) {
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.conversionThreads = conversionThreads > 0 ? conversionThreads : Runtime.getRuntime().availableProcessors();
+        this.batchSize = Math.max(1, batchSize);
+        this.maxPendingBatches = Math.max(1, maxPendingBatches);
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(this.threads, this.threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                r -> {
+                    Thread t = new Thread(r, "variant-query-" + threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        // Release idle threads. There is no need to shutdown this executor
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Initialize the process-wide executor from the configuration of the storage engine. Only the first call creates the executor.
+     * Must never be initialized from the options of a query, as the executor is shared by all the queries.
+     *
+     * @param engineOptions Storage engine options.
+     *                      See {@link org.opencb.opencga.storage.core.variant.VariantStorageEngine.Options#QUERY_EXECUTOR_THREADS}
+     *                      and {@link org.opencb.opencga.storage.core.variant.VariantStorageEngine.Options#QUERY_CONVERSION_THREADS}
+     * @return              Shared executor
+     */
+    public static SharedExecutor init(ObjectMap engineOptions) {
+        ObjectMap map = engineOptions == null ? new ObjectMap() : engineOptions;
+        int threads = map.getInt(QUERY_EXECUTOR_THREADS.key(), QUERY_EXECUTOR_THREADS.defaultValue());
+        int conversionThreads = map.getInt(QUERY_CONVERSION_THREADS.key(), QUERY_CONVERSION_THREADS.defaultValue());
+        if (instance == null) {
+            synchronized (SharedExecutor.class) {
+                if (instance == null) {
+                    instance = new SharedExecutor(threads, conversionThreads,
+                            map.getInt(QUERY_CONVERSION_BATCH_SIZE.key(), QUERY_CONVERSION_BATCH_SIZE.defaultValue()),
+                            map.getInt(QUERY_CONVERSION_MAX_PENDING_BATCHES.key(), QUERY_CONVERSION_MAX_PENDING_BATCHES.defaultValue()));
+                    LOGGER.info("Create shared variant query executor with {} threads and {} conversion threads",
+                            instance.threads, instance.conversionThreads);
+                    return instance;
+                }
+            }
+        }
+        if (threads > 0 && threads != instance.threads || conversionThreads > 0 && conversionThreads != instance.conversionThreads) {
+            LOGGER.warn("Shared variant query executor already created with {} threads and {} conversion threads. "
+                    + "Ignore new configuration with {} threads and {} conversion threads",
+                    instance.threads, instance.conversionThreads, threads, conversionThreads);
+        }
+        return instance;
+    }
+
+    /**
+     * Get the process-wide executor, as initialized by the storage engine with {@link #init}.
+     * If not initialized, the executor is created with the default configuration.
+     *
+     * @return Shared executor
+     */
+    public static SharedExecutor getInstance() {
+        if (instance == null) {
+            return init(null);
+        }
+        return instance;
+    }
+
+    /**
+     * Executor for background tasks, like prefetching iterators.
+     *
+     * @return Executor service. Must not be shutdown.
+     */
+    public ExecutorService getExecutorService() {
+        return executor;
+    }
+
+    /**
+     * Run all the tasks, using up to "parallelism" threads, including the calling thread.
+     *
+     * The calling thread also runs tasks, so all the tasks are executed even if the executor is busy.
+     * If any task fails, the pending tasks are skipped and the error is thrown once the running tasks finish.
+     *
+     * @param tasks         Tasks to run
+     * @param parallelism   Max number of tasks running concurrently
+     */
+    public void runAll(List<? extends Runnable> tasks, int parallelism) {
+        int size = tasks.size();
+        AtomicInteger next = new AtomicInteger();
+        CountDownLatch finished = new CountDownLatch(size);
+        AtomicReference<RuntimeException> error = new AtomicReference<>();
+        Runnable worker = () -> {
+            for (int i = next.getAndIncrement(); i < size; i = next.getAndIncrement()) {
+                try {
+                    tasks.get(i).run();
+                } catch (RuntimeException e) {
+                    if (!error.compareAndSet(null, e)) {
+                        error.get().addSuppressed(e);
+                    }
+                    // Skip the tasks not started
+                    for (int skipped = next.getAndSet(size); skipped < size; skipped++) {
+                        finished.countDown();
+                    }
+                } finally {
+                    finished.countDown();
+                }
+            }
+        };
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 1; i < Math.min(parallelism, size); i++) {
+            futures.add(executor.submit(worker));
+        }
+        worker.run();
+        // All the tasks were taken. Workers not started yet have nothing to do
+        for (Future<?> future : futures) {
+            future.cancel(false);
+        }
+        try {
+            finished.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw VariantQueryException.internalException(e);
+        }
+        if (error.get() != null) {
+            throw error.get();
+        }
+    }
+
+    /**
+     * Open a new conversion session. Each query should use its own session, and close it when finished.
+     *
+     * Sessions are served in round-robin, one task at a time, so a query reading a large table does not delay the conversion
+     * of the rest of queries, while a single query can still use all the conversion threads when there is no contention.
+     *
+     * @return  new session
+     */
+    public Session newSession() {
+        startConversionThreads();
+        activeSessions.incrementAndGet();
+        return new Session();
+    }
+
+    /**
+     * Report the conversion time of elements converted out of this executor, e.g. rows of a JDBC ResultSet, which can not be
+     * handed to other threads.
+     *
+     * @param elements  Number of converted elements
+     * @param nanos     Conversion time in nanoseconds
+     */
+    public void reportConversion(int elements, long nanos) {
+        convertedElements.add(elements);
+        timeConverting.add(nanos);
+    }
+
+    public ObjectMap getMetrics() {
+        long tasks = conversionTasks.sum();
+        return new ObjectMap()
+                .append("threads", threads)
+                .append("activeTasks", executor.getActiveCount())
+                .append("queuedTasks", executor.getQueue().size())
+                .append("completedTasks", executor.getCompletedTaskCount())
+                .append("conversionThreads", conversionThreads)
+                .append("batchSize", batchSize)
+                .append("maxPendingBatches", maxPendingBatches)
+                .append("activeSessions", activeSessions.get())
+                .append("conversionQueueDepth", conversionQueueDepth.get())
+                .append("maxConversionQueueDepth", maxConversionQueueDepth.get())
+                .append("conversionTasks", tasks)
+                .append("convertedElements", convertedElements.sum())
+                .append("timeConvertingMs", TimeUnit.NANOSECONDS.toMillis(timeConverting.sum()))
+                .append("avgConversionQueueTimeMs", tasks == 0 ? 0 : timeQueued.sum() / 1000000.0 / tasks);
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public int getConversionThreads() {
+        return conversionThreads;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public int getMaxPendingBatches() {
+        return maxPendingBatches;
+    }
+
+    private synchronized void startConversionThreads() {
+        if (!conversionThreadsStarted) {
+            // Only started when needed. Not all the storage engines use conversion sessions
+            for (int i = 0; i < conversionThreads; i++) {
+                Thread thread = new Thread(this::convert, "variant-converter-" + (i + 1));
+                thread.setDaemon(true);
+                thread.start();
+            }
+            conversionThreadsStarted = true;
+        }
+    }
+
+    private void convert() {
+        while (true) {
+            Session session;
+            try {
+                session = readySessions.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            Task<?> task = session.poll();
+            if (task != null) {
+                conversionQueueDepth.decrementAndGet();
+                timeQueued.add(System.nanoTime() - task.submitted);
+                task.run();
+                conversionTasks.increment();
+            }
+        }
+    }
+
+    private final class Task<T> extends FutureTask<T> {
+        private final long submitted = System.nanoTime();
+
+        private Task(Callable<T> callable) {
+            super(callable);
+        }
+    }
+
+    /**
+     * Conversion session of one query.
+     */
+    public final class Session implements AutoCloseable {
+        private final Queue<Task<?>> tasks = new ArrayDeque<>();
+        private final AtomicLong timeConverting = new AtomicLong();
+        private boolean scheduled = false;
+        private boolean closed = false;
+
+        private Session() {
+        }
+
+        /**
+         * Convert the elements from the given iterator, preserving the order.
+         *
+         * The input iterator is read by the calling thread, in batches of "batchSize" elements, keeping at most
+         * "maxPendingBatches" batches pending to be converted or consumed.
+         *
+         * @param input     Input iterator
+         * @param converter Converter function. Must be thread safe
+         * @param <I>       Input type
+         * @param <O>       Output type
+         * @return          Iterator over the converted elements
+         */
+        public <I, O> Iterator<O> convert(Iterator<I> input, Function<I, O> converter) {
+            return convert(input, converter, 0);
+        }
+
+        /**
+         * Convert the elements from the given iterator, preserving the order.
+         *
+         * The input iterator is read by the calling thread, in batches of "batchSize" elements, keeping at most
+         * "maxPendingBatches" batches pending to be converted or consumed. If the number of elements to be consumed is known,
+         * the elements read ahead are also bounded by that limit.
+         *
+         * @param input     Input iterator
+         * @param converter Converter function. Must be thread safe
+         * @param limit     Expected number of elements to consume, or 0 if unknown. The input iterator is not limited.
+         * @param <I>       Input type
+         * @param <O>       Output type
+         * @return          Iterator over the converted elements
+         */
+        public <I, O> Iterator<O> convert(Iterator<I> input, Function<I, O> converter, int limit) {
+            if (limit > 0 && limit < batchSize * maxPendingBatches) {
+                int limitBatchSize = Math.min(batchSize, limit);
+                int limitPendingBatches = (limit + limitBatchSize - 1) / limitBatchSize;
+                return new ConvertIterator<>(input, converter, limitBatchSize, limitPendingBatches);
+            } else {
+                return new ConvertIterator<>(input, converter, batchSize, maxPendingBatches);
+            }
+        }
+
+        /**
+         * Submit a conversion task.
+         *
+         * @param callable  Conversion task
+         * @param <T>       Output type
+         * @return          Future result
+         */
+        public <T> Future<T> submit(Callable<T> callable) {
+            Task<T> task = new Task<>(() -> {
+                long start = System.nanoTime();
+                try {
+                    return callable.call();
+                } finally {
+                    long time = System.nanoTime() - start;
+                    timeConverting.addAndGet(time);
+                    SharedExecutor.this.timeConverting.add(time);
+                }
+            });
+            boolean schedule;
+            synchronized (this) {
+                if (closed) {
+                    throw new RejectedExecutionException("Conversion session closed");
+                }
+                tasks.add(task);
+                schedule = !scheduled;
+                scheduled = true;
+            }
+            maxConversionQueueDepth.accumulateAndGet(conversionQueueDepth.incrementAndGet(), Math::max);
+            if (schedule) {
+                readySessions.add(this);
+            }
+            return task;
+        }
+
+        private Task<?> poll() {
+            Task<?> task;
+            boolean reschedule;
+            synchronized (this) {
+                task = tasks.poll();
+                reschedule = !tasks.isEmpty();
+                scheduled = reschedule;
+            }
+            if (reschedule) {
+                // Back to the tail of the queue, after the rest of sessions
+                readySessions.add(this);
+            }
+            return task;
+        }
+
+        /**
+         * Total time converting elements from this session, excluding the time queued.
+         *
+         * @return  Time in nanoseconds
+         */
+        public long getTimeConverting() {
+            return timeConverting.get();
+        }
+
+        @Override
+        public void close() {
+            List<Task<?>> pending;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                pending = new ArrayList<>(tasks);
+                tasks.clear();
+            }
+            conversionQueueDepth.addAndGet(-pending.size());
+            for (Task<?> task : pending) {
+                task.cancel(false);
+            }
+            activeSessions.decrementAndGet();
+        }
+
+        private final class ConvertIterator<I, O> implements Iterator<O> {
+            private final Iterator<I> input;
+            private final Function<I, O> converter;
+            private final int convertBatchSize;
+            private final int maxPending;
+            private final Deque<Future<List<O>>> pendingBatches;
+            private Iterator<O> batch = Collections.emptyIterator();
+
+            private ConvertIterator(Iterator<I> input, Function<I, O> converter, int convertBatchSize, int maxPending) {
+                this.input = input;
+                this.converter = converter;
+                this.convertBatchSize = convertBatchSize;
+                this.maxPending = maxPending;
+                pendingBatches = new ArrayDeque<>(maxPending);
+            }
+
+            @Override
+            public boolean hasNext() {
+                while (!batch.hasNext()) {
+                    fill();
+                    if (pendingBatches.isEmpty()) {
+                        return false;
+                    }
+                    batch = get(pendingBatches.poll()).iterator();
+                    fill();
+                }
+                return true;
+            }
+
+            @Override
+            public O next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return batch.next();
+            }
+
+            private void fill() {
+                // The batch being consumed also counts as pending
+                while (pendingBatches.size() + (batch.hasNext() ? 1 : 0) < maxPending && input.hasNext()) {
+                    List<I> elements = new ArrayList<>(convertBatchSize);
+                    while (elements.size() < convertBatchSize && input.hasNext()) {
+                        elements.add(input.next());
+                    }
+                    pendingBatches.add(submit(() -> {
+                        List<O> converted = new ArrayList<>(elements.size());
+                        for (I element : elements) {
+                            converted.add(converter.apply(element));
+                        }
+                        convertedElements.add(elements.size());
+                        return converted;
+                    }));
+                }
+            }
+
+            private List<O> get(Future<List<O>> future) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException(e);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        }
+    }
+}
@@ -23,6 +23,7 @@ import org.opencb.biodata.models.metadata.SampleSetType;
 import org.opencb.biodata.models.variant.StudyEntry;
 import org.opencb.biodata.models.variant.Variant;
 import org.opencb.biodata.models.variant.avro.VariantAnnotation;
+import org.opencb.biodata.models.variant.avro.VariantAvro;
 import org.opencb.biodata.models.variant.metadata.Aggregation;
 import org.opencb.biodata.models.variant.metadata.VariantMetadata;
 import org.opencb.cellbase.client.config.ClientConfiguration;
@@ -37,6 +38,7 @@ import org.opencb.opencga.core.common.TimeUtils;
 import org.opencb.opencga.core.results.VariantQueryResult;
 import org.opencb.opencga.storage.core.StorageEngine;
 import org.opencb.opencga.storage.core.StoragePipelineResult;
+import org.opencb.opencga.storage.core.cache.CacheManager;
 import org.opencb.opencga.storage.core.config.StorageConfiguration;
 import org.opencb.opencga.storage.core.exceptions.StorageEngineException;
 import org.opencb.opencga.storage.core.exceptions.StoragePipelineException;
@@ -46,6 +48,7 @@ import org.opencb.opencga.storage.core.metadata.VariantMetadataFactory;
 import org.opencb.opencga.storage.core.metadata.VariantStorageMetadataManager;
 import org.opencb.opencga.storage.core.metadata.models.*;
 import org.opencb.opencga.storage.core.utils.CellBaseUtils;
+import org.opencb.opencga.storage.core.utils.SharedExecutor;
 import org.opencb.opencga.storage.core.variant.adaptors.*;
 import org.opencb.opencga.storage.core.variant.adaptors.iterators.MultiVariantDBIterator;
 import org.opencb.opencga.storage.core.variant.adaptors.iterators.VariantDBIterator;
@@ -90,6 +93,7 @@ import static org.opencb.opencga.storage.core.variant.search.VariantSearchUtils.
 public abstract class VariantStorageEngine extends StorageEngine<VariantDBAdaptor> implements VariantIterable {
 
     private final AtomicReference<VariantSearchManager> variantSearchManager = new AtomicReference<>();
+    private final AtomicReference<CacheManager> cacheManager = new AtomicReference<>();
     private final List<VariantQueryExecutor> lazyVariantQueryExecutorsList = new ArrayList<>();
     private CellBaseUtils cellBaseUtils;
 
@@ -196,6 +200,22 @@ public abstract class VariantStorageEngine extends StorageEngine<VariantDBAdapto
         INTERSECT_ACTIVE("search.intersect.active", true),                       // Allow intersect queries with the SearchEngine (Solr)
         INTERSECT_ALWAYS("search.intersect.always", false),                      // Force intersect queries
         INTERSECT_PARAMS_THRESHOLD("search.intersect.params.threshold", 3),      // Minimum number of QueryParams in the query to intersect
+        INTERSECT_ANNOTATION_MAX_COUNT("search.intersect.annotation.max_count", 50000), // Intersect if fewer variants match the ct+biotype
+
+        METADATA_CACHE_MAX_WEIGHT("metadata.cache.max_weight", 100000L), // Max weight of each metadata cache. Usually, one per element
+        METADATA_CACHE_TTL("metadata.cache.ttl", 3600000L),              // Time to live of the metadata cache entries, in milliseconds
+
+        // Max number of batch sub-queries in flight in the MultiVariantDBIterator. Use 1 to execute them sequentially.
+        MULTI_ITERATOR_PIPELINE_QUERIES("multiIteratorPipelineQueries", 3),
+
+        // Threads of the process-wide executor for the background work of the queries. 0 for one thread per core
+        QUERY_EXECUTOR_THREADS("query.executor.threads", 16),
+        // Threads of the process-wide executor converting the results of the queries. 0 for one thread per core
+        QUERY_CONVERSION_THREADS("query.executor.conversion.threads", 0),
+        // Number of results converted by each task
+        QUERY_CONVERSION_BATCH_SIZE("query.executor.conversion.batch_size", 50),
+        // Max number of batches read ahead by each query, pending to be converted or consumed
+        QUERY_CONVERSION_MAX_PENDING_BATCHES("query.executor.conversion.max_pending_batches", 8),
 
         APPROXIMATE_COUNT_SAMPLING_SIZE("approximateCountSamplingSize", 1000),
         APPROXIMATE_COUNT("approximateCount", false);
@@ -230,6 +250,15 @@ public abstract class VariantStorageEngine extends StorageEngine<VariantDBAdapto
         super(storageEngineId, configuration);
     }
 
+    @Override
+    public void setConfiguration(StorageConfiguration configuration, String storageEngineId, String dbName) {
+        super.setConfiguration(configuration, storageEngineId, dbName);
+        if (configuration != null && configuration.getStorageEngine(storageEngineId) != null) {
+            // The executor is shared by all the queries of the process. Size it from the engine configuration
+            SharedExecutor.init(getOptions());
+        }
+    }
+
     /**
      * Loads the given file into an empty database.
      *
@@ -413,11 +442,29 @@ public abstract class VariantStorageEngine extends StorageEngine<VariantDBAdapto
     }
 
     public void saveAnnotation(String name, ObjectMap params) throws StorageEngineException, VariantAnnotatorException {
-        newVariantAnnotationManager(params).saveAnnotation(name, params);
+        VariantAnnotator annotator = newVariantAnnotator(params);
+        try {
+            newVariantAnnotationManager(annotator).saveAnnotation(name, params);
+        } finally {
+            shutdown(annotator);
+        }
     }
 
     public void deleteAnnotation(String name, ObjectMap params) throws StorageEngineException, VariantAnnotatorException {
-        newVariantAnnotationManager(params).deleteAnnotation(name, params);
+        VariantAnnotator annotator = newVariantAnnotator(params);
+        try {
+            newVariantAnnotationManager(annotator).deleteAnnotation(name, params);
+        } finally {
+            shutdown(annotator);
+        }
+    }
+
+    private static void shutdown(VariantAnnotator annotator) throws StorageEngineException {
+        try {
+            annotator.shutdown();
+        } catch (IOException e) {
+            throw new StorageEngineException("Error releasing variant annotator", e);
+        }
     }
 
     public QueryResult<VariantAnnotation> getAnnotation(String name, Query query, QueryOptions options) throws StorageEngineException {
@@ -461,10 +508,12 @@ public abstract class VariantStorageEngine extends StorageEngine<VariantDBAdapto
      */
     protected final VariantAnnotationManager newVariantAnnotationManager(ObjectMap params)
             throws StorageEngineException, VariantAnnotatorException {
+        return newVariantAnnotationManager(newVariantAnnotator(params));
+    }
+
+    private VariantAnnotator newVariantAnnotator(ObjectMap params) throws StorageEngineException, VariantAnnotatorException {
         ProjectMetadata projectMetadata = getMetadataManager().getProjectMetadata();
-        VariantAnnotator annotator = VariantAnnotatorFactory.buildVariantAnnotator(
-                configuration, getStorageEngineId(), projectMetadata, params);
-        return newVariantAnnotationManager(annotator);
+        return VariantAnnotatorFactory.buildVariantAnnotator(configuration, getStorageEngineId(), projectMetadata, params);
     }
 
     /**
@@ -597,6 +646,20 @@ public abstract class VariantStorageEngine extends StorageEngine<VariantDBAdapto
         throw new UnsupportedOperationException("Unsupported familyIndex");
     }
 
+    /**
+     * Change the storage encoding of the genotypes of a study. For advanced users only.
+     * Compact genotypes reduce the size of the database, but may restrict other operations over the study,
+     * depending on the storage engine.
+     *
+     * @param study   Study
+     * @param compact Use the compact encoding if true. Restore the default encoding otherwise.
+     * @param options Other options
+     * @throws StorageEngineException in an error occurs
+     */
+    public void compactGenotypes(String study, boolean compact, ObjectMap options) throws StorageEngineException {
+        throw new UnsupportedOperationException("Unsupported compactGenotypes");
+    }
+
     /**
      * Provide a new VariantStatisticsManager for creating and loading statistics.
      *
@@ -970,6 +1033,43 @@ public abstract class VariantStorageEngine extends StorageEngine<VariantDBAdapto
         return variantSearchManager.get();
     }
 
+    /**
+     * Get the query result cache. The cache is invalidated every time the metadata manager notifies a data change.
+     *
+     * @return CacheManager
+     * @throws StorageEngineException If the cache can not be created
+     */
+    public CacheManager getCacheManager() throws StorageEngineException {
+        if (cacheManager.get() == null) {
+            synchronized (cacheManager) {
+                if (cacheManager.get() == null) {
+                    cacheManager.set(new CacheManager(configuration));
+                }
+            }
+        }
+        return cacheManager.get();
+    }
+
+    /**
+     * Register the data change listeners of the engine in a new metadata manager. Must be called by the implementations
+     * every time a metadata manager is created, so processes that only load, annotate or calculate stats invalidate the
+     * cached results as well.
+     *
+     * @param metadataManager New metadata manager
+     * @return The same metadata manager
+     */
+    protected VariantStorageMetadataManager registerDataChangeListeners(VariantStorageMetadataManager metadataManager) {
+        String database = dbName;
+        metadataManager.addDataChangeListener((studyId, reason) -> {
+            try {
+                getCacheManager().invalidate(database);
+            } catch (StorageEngineException e) {
+                throw VariantQueryException.internalException(e);
+            }
+        });
+        return metadataManager;
+    }
+
     public VariantQueryResult<Variant> getPhased(String variant, String studyName, String sampleName, QueryOptions options, int windowsSize)
             throws StorageEngineException {
         VariantQueryExecutor.setDefaultTimeout(options, getOptions());
@@ -993,7 +1093,59 @@ public abstract class VariantStorageEngine extends StorageEngine<VariantDBAdapto
 
     public VariantQueryResult<Variant> get(Query query, QueryOptions options) {
         query = preProcessQuery(query, options);
-        return getVariantQueryExecutor(query, options).get(query, options);
+        VariantQueryExecutor executor = getVariantQueryExecutor(query, options);
+
+        CacheManager cacheManager;
+        try {
+            cacheManager = getCacheManager();
+        } catch (StorageEngineException e) {
+            throw VariantQueryException.internalException(e);
+        }
+        if (!cacheManager.isActive(CacheManager.VARIANT_TYPE, options)) {
+            return executor.get(query, options);
+        }
+
+        String key = cacheManager.createKey(dbName, CacheManager.VARIANT_TYPE, query, options);
+        QueryResult<Variant> cached = cacheManager.get(key);
+        if (cached != null) {
+            return copyResult(cached);
+        }
+        VariantQueryResult<Variant> result = executor.get(query, options);
+        cacheManager.set(key, query, copyResult(result));
+        return result;
+    }
+
+    /**
+     * Deep copy of a query result. Cached results are shared between queries, and variants are mutable,
+     * so the cache never stores nor returns the instances seen by the caller.
+     *
+     * @param queryResult Query result to copy
+     * @return Independent copy of the result
+     */
+    static VariantQueryResult<Variant> copyResult(QueryResult<Variant> queryResult) {
+        List<Variant> result = null;
+        if (queryResult.getResult() != null) {
+            result = new ArrayList<>(queryResult.getResult().size());
+            for (Variant variant : queryResult.getResult()) {
+                result.add(new Variant(VariantAvro.newBuilder(variant.getImpl()).build()));
+            }
+        }
+        if (queryResult instanceof VariantQueryResult) {
+            VariantQueryResult<Variant> vqr = (VariantQueryResult<Variant>) queryResult;
+            Map<String, List<String>> samples = null;
+            if (vqr.getSamples() != null) {
+                samples = new LinkedHashMap<>();
+                for (Map.Entry<String, List<String>> entry : vqr.getSamples().entrySet()) {
+                    samples.put(entry.getKey(), entry.getValue() == null ? null : new ArrayList<>(entry.getValue()));
+                }
+            }
+            return new VariantQueryResult<>(queryResult.getId(), queryResult.getDbTime(), queryResult.getNumResults(),
+                    queryResult.getNumTotalResults(), queryResult.getWarningMsg(), queryResult.getErrorMsg(), result, samples,
+                    vqr.getSource(), vqr.getApproximateCount(), vqr.getApproximateCountSamplingSize(), vqr.getNumTotalSamples());
+        } else {
+            return new VariantQueryResult<>(queryResult.getId(), queryResult.getDbTime(), queryResult.getNumResults(),
+                    queryResult.getNumTotalResults(), queryResult.getWarningMsg(), queryResult.getErrorMsg(), result, null, null);
+        }
     }
 
     @Override
@@ -1092,8 +1244,27 @@ public abstract class VariantStorageEngine extends StorageEngine<VariantDBAdapto
 
     public QueryResult<Long> count(Query query) throws StorageEngineException {
         query = preProcessQuery(query, null);
-        VariantQueryExecutor variantQueryExecutor = getVariantQueryExecutor(query, new QueryOptions(QueryOptions.COUNT, true));
-        return variantQueryExecutor.count(query);
+        QueryOptions options = new QueryOptions(QueryOptions.COUNT, true);
+        VariantQueryExecutor variantQueryExecutor = getVariantQueryExecutor(query, options);
+
+        CacheManager cacheManager = getCacheManager();
+        if (!cacheManager.isActive(CacheManager.VARIANT_TYPE, null)) {
+            return variantQueryExecutor.count(query);
+        }
+        String key = cacheManager.createKey(dbName, CacheManager.VARIANT_TYPE, query, options);
+        QueryResult<Long> cached = cacheManager.get(key);
+        if (cached != null) {
+            return copyCount(cached);
+        }
+        QueryResult<Long> result = variantQueryExecutor.count(query);
+        cacheManager.set(key, query, copyCount(result));
+        return result;
+    }
+
+    private static QueryResult<Long> copyCount(QueryResult<Long> queryResult) {
+        return new QueryResult<>(queryResult.getId(), queryResult.getDbTime(), queryResult.getNumResults(),
+                queryResult.getNumTotalResults(), queryResult.getWarningMsg(), queryResult.getErrorMsg(),
+                queryResult.getResult() == null ? null : new ArrayList<>(queryResult.getResult()));
     }
 
     /**
@@ -1105,12 +1276,23 @@ public abstract class VariantStorageEngine extends StorageEngine<VariantDBAdapto
      */
     public FacetQueryResult facet(Query query, QueryOptions options) {
         try {
-            return new VariantAggregationExecutor(getVariantSearchManager(), dbName, this, getMetadataManager()).facet(query, options);
+            return getVariantAggregationExecutor().facet(query, options);
         } catch (StorageEngineException e) {
             throw VariantQueryException.internalException(e);
         }
     }
 
+    /**
+     * Create the executor for aggregation queries. Storage engines may provide specialized executors
+     * able to resolve some facets from precomputed values.
+     *
+     * @return VariantAggregationExecutor
+     * @throws StorageEngineException if there is an error creating the executor
+     */
+    protected VariantAggregationExecutor getVariantAggregationExecutor() throws StorageEngineException {
+        return new VariantAggregationExecutor(getVariantSearchManager(), dbName, this, getMetadataManager());
+    }
+
     @Override
     public void close() throws IOException {
         cellBaseUtils = null;
@@ -1122,6 +1304,13 @@ public abstract class VariantStorageEngine extends StorageEngine<VariantDBAdapto
             }
         }
         lazyVariantQueryExecutorsList.clear();
+        if (cacheManager.get() != null) {
+            try {
+                cacheManager.get().close();
+            } finally {
+                cacheManager.set(null);
+            }
+        }
     }
 }
 
@@ -55,6 +55,7 @@ import org.opencb.opencga.storage.core.variant.adaptors.VariantDBAdaptor;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantQueryUtils;
 import org.opencb.opencga.storage.core.variant.io.VariantReaderUtils;
 import org.opencb.opencga.storage.core.variant.io.json.mixin.GenericRecordAvroJsonMixin;
+import org.opencb.opencga.storage.core.variant.stats.sketch.VariantSketch;
 import org.opencb.opencga.storage.core.variant.transform.MalformedVariantHandler;
 import org.opencb.opencga.storage.core.variant.transform.VariantAvroTransformTask;
 import org.opencb.opencga.storage.core.variant.transform.VariantJsonTransformTask;
@@ -91,6 +92,7 @@ public abstract class VariantStoragePipeline implements StoragePipeline {
     protected final IOConnectorProvider ioConnectorProvider;
     private final Logger logger = LoggerFactory.getLogger(VariantStoragePipeline.class);
     protected final ObjectMap transformStats = new ObjectMap();
+    protected VariantSketch transformSketch;
     protected Integer privateFileId;
     protected Integer privateStudyId;
 //    protected StudyMetadata privateStudyMetadata;
@@ -231,6 +233,8 @@ public abstract class VariantStoragePipeline implements StoragePipeline {
         URI outputMalformedVariants = output.resolve(fileName + '.' + VariantReaderUtils.MALFORMED_FILE + ".txt");
         URI outputVariantsFile = output.resolve(fileName + '.' + VariantReaderUtils.VARIANTS_FILE + '.' + format + extension);
         URI outputMetaFile = VariantReaderUtils.getMetaFromTransformedFile(outputVariantsFile);
+        URI outputSketchFile = VariantReaderUtils.getSketchFromTransformedFile(outputVariantsFile);
+        transformSketch = new VariantSketch();
 
         // Close at the end!
         final MalformedVariantHandler malformedHandler;
@@ -290,6 +294,7 @@ public abstract class VariantStoragePipeline implements StoragePipeline {
                         statsCalculator, includeSrc, generateReferenceBlocks)
                         .setFailOnError(failOnError)
                         .addMalformedErrorHandler(malformedHandler)
+                        .setVariantSketch(transformSketch)
                         .configureNormalizer(variantMetadata);
             } else {
                 // TODO Create a utility to determine which extensions are variants files
@@ -300,6 +305,7 @@ public abstract class VariantStoragePipeline implements StoragePipeline {
                         includeSrc, generateReferenceBlocks)
                         .setFailOnError(failOnError)
                         .addMalformedErrorHandler(malformedHandler)
+                        .setVariantSketch(transformSketch)
                         .configureNormalizer(variantMetadata);
             }
 
@@ -361,6 +367,7 @@ public abstract class VariantStoragePipeline implements StoragePipeline {
                         statsCalculator, includeSrc, generateReferenceBlocks)
                         .setFailOnError(failOnError)
                         .addMalformedErrorHandler(malformedHandler)
+                        .setVariantSketch(transformSketch)
                         .configureNormalizer(variantMetadata);
             } else {
                 // TODO Create a utility to determine which extensions are variants files
@@ -371,6 +378,7 @@ public abstract class VariantStoragePipeline implements StoragePipeline {
                         includeSrc, generateReferenceBlocks)
                         .setFailOnError(failOnError)
                         .addMalformedErrorHandler(malformedHandler)
+                        .setVariantSketch(transformSketch)
                         .configureNormalizer(variantMetadata);
             }
 
@@ -411,6 +419,13 @@ public abstract class VariantStoragePipeline implements StoragePipeline {
             throw StorageEngineException.ioException(e);
         }
 
+        // Store the sketch next to the transformed file. Will be merged into the StudyMetadata at the postLoad
+        try (OutputStream outputSketchStream = ioConnectorProvider.newOutputStream(outputSketchFile)) {
+            new ObjectMapper().writeValue(outputSketchStream, transformSketch);
+        } catch (IOException e) {
+            throw StorageEngineException.ioException(e);
+        }
+
 
         // Close the malformed variant handler
         malformedHandler.close();
@@ -627,10 +642,19 @@ public abstract class VariantStoragePipeline implements StoragePipeline {
         // Check loaded variants BEFORE updating the StudyMetadata
         checkLoadedVariants(finalFileIds, getStudyMetadata());
 
+        VariantSketch variantSketch = variantReaderUtils.readVariantSketch(input);
+
         //Update StudyMetadata
         getMetadataManager().updateStudyMetadata(getStudyId(), sm -> {
             securePostLoad(finalFileIds, sm);
             finalSecurePostLoad(finalFileIds, sm);
+            if (variantSketch != null) {
+                if (sm.getVariantSketch() == null) {
+                    sm.setVariantSketch(variantSketch);
+                } else {
+                    sm.getVariantSketch().merge(variantSketch);
+                }
+            }
             return sm;
         });
         return input;
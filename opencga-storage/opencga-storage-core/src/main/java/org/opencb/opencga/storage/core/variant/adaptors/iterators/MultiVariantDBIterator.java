@@ -18,21 +18,31 @@ package org.opencb.opencga.storage.core.variant.adaptors.iterators;
 
 import com.google.common.base.Throwables;
 import org.apache.commons.lang3.time.StopWatch;
+import org.apache.commons.lang3.tuple.Pair;
 import org.opencb.biodata.models.variant.Variant;
 import org.opencb.commons.datastore.core.Query;
 import org.opencb.commons.datastore.core.QueryOptions;
+import org.opencb.opencga.storage.core.utils.SharedExecutor;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantDBAdaptor;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantQueryParam;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.function.BiFunction;
 
+import static org.opencb.opencga.storage.core.variant.VariantStorageEngine.Options.MULTI_ITERATOR_PIPELINE_QUERIES;
+
 /**
  * Iterates multiple variant iterators. Every time that voids one iterator, creates a new one using the iteratorFactory.
  *
+ * If {@link org.opencb.opencga.storage.core.variant.VariantStorageEngine.Options#MULTI_ITERATOR_PIPELINE_QUERIES} is greater
+ * than 1, after the first query, the following queries are executed in background using the {@link SharedExecutor}, keeping
+ * up to that number of queries in flight. Results are returned in the same order as the queries were generated.
+ * Pending queries are cancelled when the limit is reached, or when the iterator is closed.
+ *
  * Created on 04/07/17.
  *
  * @author Jacobo Coll &lt;jacobo167@gmail.com&gt;
@@ -53,6 +63,10 @@ public class MultiVariantDBIterator extends VariantDBIterator {
     private Logger logger = LoggerFactory.getLogger(MultiVariantDBIterator.class);
     private Query query;
     private int numQueries;
+    // Max number of queries in flight, including the current one
+    private final int pipelineQueries;
+    private final Deque<Pair<Query, VariantDBIterator>> pendingQueries = new LinkedList<>();
+    private ExecutorService executor;
 
     /**
      * Creates a multi iterator given a iterator of variants. It will apply the query (if any) to all the variants in the iterator.
@@ -98,6 +112,10 @@ public class MultiVariantDBIterator extends VariantDBIterator {
         this.options.remove(QueryOptions.LIMIT);
         this.options.remove(QueryOptions.SKIP);
 
+        pipelineQueries = Math.max(1, this.options.getInt(MULTI_ITERATOR_PIPELINE_QUERIES.key(),
+                MULTI_ITERATOR_PIPELINE_QUERIES.defaultValue()));
+        this.options.remove(MULTI_ITERATOR_PIPELINE_QUERIES.key());
+
         query = null;
         numQueries = 0;
     }
@@ -107,6 +125,7 @@ public class MultiVariantDBIterator extends VariantDBIterator {
         init();
         if (numResults >= maxResults) {
             terminateIterator();
+            terminatePendingQueries();
             return false;
         } else if (!fetch(variantDBIterator::hasNext)) {
             nextVariantIterator();
@@ -125,29 +144,87 @@ public class MultiVariantDBIterator extends VariantDBIterator {
      * Get the next non-empty valid {@link #variantDBIterator}. If none, use {@link #emptyIterator()}
      */
     private void nextVariantIterator() {
-        while (!fetch(variantDBIterator::hasNext) && fetch(queryIterator::hasNext)) {
+        while (!fetch(variantDBIterator::hasNext) && (!pendingQueries.isEmpty() || fetch(queryIterator::hasNext))) {
             terminateIterator();
-            numQueries++;
-            QueryOptions options;
-            int limit;
-            if (maxResults != Integer.MAX_VALUE) {
-                // We are expecting no more than maxResults - numResults
-                // Modify the limit in the query
-                limit = maxResults - numResults;
-                options = new QueryOptions(this.options).append(QueryOptions.LIMIT, limit);
-            } else {
-                limit = Integer.MAX_VALUE;
-                options = this.options;
+            // Do not pipeline the first query. Most of the queries with small limits are resolved with only one query.
+            boolean pipeline = pipelineQueries > 1 && numQueries > 0;
+            Pair<Query, VariantDBIterator> pair = pendingQueries.isEmpty() ? nextQuery(false) : pendingQueries.poll();
+            if (pipeline) {
+                while (pendingQueries.size() < pipelineQueries - 1 && fetch(queryIterator::hasNext)) {
+                    pendingQueries.add(nextQuery(true));
+                }
             }
-            query = fetch(() -> queryIterator.next(numResults, limit));
-
-            variantDBIterator = fetch(() -> iteratorFactory.apply(query, options));
+            numQueries++;
+            query = pair.getKey();
+            variantDBIterator = pair.getValue();
         }
         if (!fetch(variantDBIterator::hasNext)) {
             terminateIterator();
         }
     }
 
+    private Pair<Query, VariantDBIterator> nextQuery(boolean background) {
+        QueryOptions options;
+        int limit;
+        if (maxResults != Integer.MAX_VALUE) {
+            // We are expecting no more than maxResults - numResults
+            // Modify the limit in the query.
+            // Queries in flight may return some of these results, so this is an upper bound.
+            limit = maxResults - numResults;
+            options = new QueryOptions(this.options).append(QueryOptions.LIMIT, limit);
+        } else {
+            limit = Integer.MAX_VALUE;
+            options = this.options;
+        }
+        Query query = fetch(() -> queryIterator.next(numResults, limit));
+
+        VariantDBIterator iterator;
+        if (background) {
+            iterator = new PrefetchVariantDBIterator(() -> iteratorFactory.apply(query, options), getExecutor(),
+                    VariantQueryIterator.MAX_BATCH_SIZE);
+        } else {
+            iterator = fetch(() -> iteratorFactory.apply(query, options));
+        }
+        return Pair.of(query, iterator);
+    }
+
+    private void terminatePendingQueries() {
+        Exception exception = null;
+        for (Pair<Query, VariantDBIterator> pair : pendingQueries) {
+            try {
+                pair.getValue().close();
+            } catch (Exception e) {
+                if (exception == null) {
+                    exception = e;
+                } else {
+                    exception.addSuppressed(e);
+                }
+            }
+        }
+        pendingQueries.clear();
+        if (exception != null) {
+            throw Throwables.propagate(exception);
+        }
+    }
+
+    private ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = SharedExecutor.getInstance().getExecutorService();
+        }
+        return executor;
+    }
+
+    /**
+     * Use a specific executor for the pipelined queries, instead of the shared one.
+     *
+     * @param executor Executor service
+     * @return this
+     */
+    public MultiVariantDBIterator setExecutor(ExecutorService executor) {
+        this.executor = executor;
+        return this;
+    }
+
     private void terminateIterator() {
         // Accumulate statistics from previous iterator.
         timeFetching += variantDBIterator.getTimeFetching();
@@ -204,7 +281,11 @@ public class MultiVariantDBIterator extends VariantDBIterator {
 
     @Override
     public void close() throws Exception {
-        terminateIterator();
+        try {
+            terminateIterator();
+        } finally {
+            terminatePendingQueries();
+        }
         super.close();
     }
 
@@ -0,0 +1,222 @@
+package org.opencb.opencga.storage.core.variant.adaptors.iterators;
+
+import org.opencb.biodata.models.variant.Variant;
+import org.opencb.opencga.storage.core.variant.adaptors.VariantQueryException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Reads the delegated iterator in background, using the given executor, and keeps up to "bufferSize" variants prefetched.
+ * The order of the delegated iterator is preserved. The delegated iterator can be created lazily, so the cost of opening
+ * it is also paid in background.
+ *
+ * If the background task has not started when the first element is requested (e.g. all the threads of the executor
+ * are busy), the delegated iterator is read from the calling thread. This avoids deadlocks when several prefetch
+ * iterators are consumed by the same thread sharing a bounded executor.
+ *
+ * Closing the iterator stops the background task. If the iterator is never closed, the background task gives up after
+ * waiting "consumerTimeoutMs" for the consumer to take more variants, and closes the delegated iterator.
+ */
+public class PrefetchVariantDBIterator extends VariantDBIterator {
+
+    private static final Variant END_MARKER = new Variant();
+    private static final long OFFER_TIMEOUT_MS = 100;
+    private static final long CLOSE_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(30);
+    public static final long DEFAULT_CONSUMER_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(10);
+
+    private static final int PENDING = 0;
+    private static final int RUNNING = 1;
+    private static final int FINISHED = 2;
+    private static final int INLINE = 3;
+
+    private final Supplier<? extends VariantDBIterator> supplier;
+    private volatile VariantDBIterator delegated;
+    private final BlockingQueue<Variant> buffer;
+    private final AtomicInteger status = new AtomicInteger(PENDING);
+    private final CountDownLatch producerFinished = new CountDownLatch(1);
+    private final Future<?> future;
+    private final long consumerTimeoutMs;
+    private final AtomicBoolean delegatedClosed = new AtomicBoolean(false);
+    private volatile boolean closed = false;
+    private volatile RuntimeException exception = null;
+    private Variant next = null;
+    private boolean exhausted = false;
+    private int count = 0;
+    private final Logger logger = LoggerFactory.getLogger(PrefetchVariantDBIterator.class);
+
+    public PrefetchVariantDBIterator(VariantDBIterator delegated, ExecutorService executor, int bufferSize) {
+        this(() -> delegated, executor, bufferSize);
+    }
+
+    public PrefetchVariantDBIterator(Supplier<? extends VariantDBIterator> supplier, ExecutorService executor, int bufferSize) {
+        this(supplier, executor, bufferSize, DEFAULT_CONSUMER_TIMEOUT_MS);
+    }
+
+    /**
+     * Create a new PrefetchVariantDBIterator.
+     *
+     * @param supplier          Supplier of the delegated iterator. Called only once.
+     * @param executor          Executor for the background task
+     * @param bufferSize        Max number of prefetched variants
+     * @param consumerTimeoutMs Max time to wait for the consumer to take more variants before giving up
+     */
+    public PrefetchVariantDBIterator(Supplier<? extends VariantDBIterator> supplier, ExecutorService executor, int bufferSize,
+                                     long consumerTimeoutMs) {
+        this.supplier = supplier;
+        this.buffer = new ArrayBlockingQueue<>(Math.max(1, bufferSize));
+        this.consumerTimeoutMs = consumerTimeoutMs;
+        this.future = executor.submit(this::prefetch);
+    }
+
+    private void prefetch() {
+        if (!status.compareAndSet(PENDING, RUNNING)) {
+            // Closed, or read from the calling thread
+            return;
+        }
+        try {
+            delegated = supplier.get();
+            while (!closed && delegated.hasNext()) {
+                if (!put(delegated.next())) {
+                    return;
+                }
+            }
+        } catch (RuntimeException e) {
+            exception = e;
+        } finally {
+            status.set(FINISHED);
+            // Best effort. The consumer also detects the end of the producer if the buffer is full
+            buffer.offer(END_MARKER);
+            producerFinished.countDown();
+        }
+    }
+
+    private boolean put(Variant variant) {
+        long deadline = System.currentTimeMillis() + consumerTimeoutMs;
+        try {
+            while (!closed) {
+                if (buffer.offer(variant, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+                if (System.currentTimeMillis() > deadline) {
+                    // Consumer is gone without closing this iterator. Release the delegated iterator.
+                    logger.warn("Prefetched variants not consumed after " + consumerTimeoutMs + "ms. Stop prefetch and close iterator");
+                    exception = VariantQueryException.internalException(
+                            new TimeoutException("Prefetch stopped after " + consumerTimeoutMs + "ms without consumer"));
+                    closeDelegated();
+                    return false;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            exception = VariantQueryException.internalException(e);
+        } catch (Exception e) {
+            exception = VariantQueryException.internalException(e);
+        }
+        return false;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next != null) {
+            return true;
+        }
+        if (exhausted) {
+            return false;
+        }
+        if (status.get() == PENDING && status.compareAndSet(PENDING, INLINE)) {
+            // Background task never started. Read from this thread.
+            future.cancel(false);
+            delegated = supplier.get();
+        }
+        if (status.get() == INLINE) {
+            if (fetch(delegated::hasNext)) {
+                next = fetch(delegated::next);
+            } else {
+                exhausted = true;
+            }
+            return next != null;
+        }
+
+        Variant variant;
+        try {
+            variant = fetch(this::take);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw VariantQueryException.internalException(e);
+        }
+        if (variant == END_MARKER) {
+            exhausted = true;
+            if (exception != null) {
+                throw exception;
+            }
+            return false;
+        }
+        next = variant;
+        return true;
+    }
+
+    private Variant take() throws InterruptedException {
+        while (true) {
+            Variant variant = buffer.poll(OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (variant != null) {
+                return variant;
+            }
+            if (producerFinished.getCount() == 0) {
+                // The end marker might not fit in the buffer
+                variant = buffer.poll();
+                return variant == null ? END_MARKER : variant;
+            }
+        }
+    }
+
+    @Override
+    public Variant next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException("No more elements found");
+        }
+        Variant variant = next;
+        next = null;
+        count++;
+        return variant;
+    }
+
+    @Override
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public long getTimeConverting() {
+        VariantDBIterator iterator = delegated;
+        return iterator == null ? 0 : iterator.getTimeConverting();
+    }
+
+    @Override
+    public void close() throws Exception {
+        // The producer checks the closed flag. Do not interrupt it, as it could be in the middle of a read from the delegated iterator.
+        closed = true;
+        future.cancel(false);
+        if (!status.compareAndSet(PENDING, FINISHED)) {
+            // Producer may be running. Wait for it before closing the delegated iterator
+            if (status.get() != INLINE && !producerFinished.await(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                logger.warn("Prefetch task did not finish after " + CLOSE_TIMEOUT_MS + "ms");
+            }
+        }
+        buffer.clear();
+        closeDelegated();
+        super.close();
+    }
+
+    private void closeDelegated() throws Exception {
+        VariantDBIterator iterator = delegated;
+        if (iterator != null && delegatedClosed.compareAndSet(false, true)) {
+            iterator.close();
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package org.opencb.opencga.storage.core.variant.annotation;
+
+import org.opencb.biodata.models.variant.Variant;
+import org.opencb.biodata.models.variant.avro.VariantAnnotation;
+import org.opencb.opencga.storage.core.variant.annotation.annotators.VariantAnnotator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Controls the number of concurrent requests and the number of variants per request sent to the annotator.
+ *
+ * Uses an AIMD (additive increase, multiplicative decrease) policy driven by the observed latency:
+ * <ul>
+ *     <li>Fast responses (below the target latency) increase the concurrency by one every "concurrency" requests,
+ *     and grow the batch size.</li>
+ *     <li>Slow responses (above the target latency) reduce the batch size and the concurrency slightly.</li>
+ *     <li>Errors and timeouts halve both. Failed requests are retried after a backoff.</li>
+ * </ul>
+ *
+ * Requests are executed in a separate thread, and abandoned after the timeout. Only timeouts and I/O errors are retried.
+ */
+public class AdaptiveAnnotationController {
+
+    private static final double SLOW_DECREASE_FACTOR = 0.8;
+    private static final double ERROR_DECREASE_FACTOR = 0.5;
+    private static final int BATCH_SIZE_STEPS = 20;
+
+    private final VariantAnnotator annotator;
+    private final int maxConcurrency;
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    private final long targetLatencyMs;
+    private final long timeoutMs;
+    private final int maxRetries;
+    private final long retryBackoffMs;
+    private final ExecutorService executor;
+
+    private double concurrency;
+    private double batchSize;
+    private int inFlight;
+    private long requests;
+    private long errors;
+    private long annotatedVariants;
+    private long annotationTimeMs;
+
+    private static Logger logger = LoggerFactory.getLogger(AdaptiveAnnotationController.class);
+
+    public AdaptiveAnnotationController(VariantAnnotator annotator, int concurrency, int maxConcurrency,
+                                        int batchSize, int maxBatchSize, long targetLatencyMs, long timeoutMs,
+                                        int maxRetries, long retryBackoffMs) {
+        this.annotator = annotator;
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.minBatchSize = Math.max(1, Math.min(this.maxBatchSize, this.maxBatchSize / BATCH_SIZE_STEPS));
+        this.targetLatencyMs = targetLatencyMs;
+        this.timeoutMs = timeoutMs;
+        this.maxRetries = maxRetries;
+        this.retryBackoffMs = retryBackoffMs;
+        this.concurrency = Math.max(1, Math.min(this.maxConcurrency, concurrency));
+        this.batchSize = Math.max(minBatchSize, Math.min(this.maxBatchSize, batchSize));
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "adaptive-annotator-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Annotate a list of variants, splitting it in batches of the current batch size.
+     *
+     * @param variants Variants to annotate
+     * @return Variant annotations, in the same order
+     * @throws VariantAnnotatorException if the annotator keeps failing after all the retries
+     */
+    public List<VariantAnnotation> annotate(List<Variant> variants) throws VariantAnnotatorException {
+        List<VariantAnnotation> annotations = new ArrayList<>(variants.size());
+        int i = 0;
+        while (i < variants.size()) {
+            List<Variant> batch = variants.subList(i, Math.min(variants.size(), i + getBatchSize()));
+            annotations.addAll(annotateBatch(batch));
+            i += batch.size();
+        }
+        return annotations;
+    }
+
+    private List<VariantAnnotation> annotateBatch(List<Variant> batch) throws VariantAnnotatorException {
+        int retry = 0;
+        while (true) {
+            acquire();
+            long start = System.currentTimeMillis();
+            Future<List<VariantAnnotation>> future = executor.submit(() -> annotator.annotate(batch));
+            List<VariantAnnotation> annotations;
+            try {
+                annotations = future.get(timeoutMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                future.cancel(true);
+                release();
+                Thread.currentThread().interrupt();
+                throw new VariantAnnotatorException("Interrupted while waiting for the annotator", e);
+            } catch (ExecutionException | TimeoutException e) {
+                future.cancel(true);
+                release();
+                onError(batch.size(), System.currentTimeMillis() - start);
+                Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+                if (retry >= maxRetries || !isRetriable(cause)) {
+                    throw propagate(cause);
+                }
+                retry++;
+                logger.warn("Error annotating batch of {} variants. Retry {}/{} : {}", batch.size(), retry, maxRetries,
+                        cause.toString());
+                backoff(retry);
+                continue;
+            }
+            release();
+            onSuccess(batch.size(), System.currentTimeMillis() - start);
+            return annotations;
+        }
+    }
+
+    /**
+     * Only transient errors are retried: timeouts and I/O errors, or any exception caused by them.
+     *
+     * @param e Error
+     * @return if the request should be retried
+     */
+    static boolean isRetriable(Throwable e) {
+        while (e != null) {
+            if (e instanceof IOException || e instanceof TimeoutException) {
+                return true;
+            }
+            e = e.getCause();
+        }
+        return false;
+    }
+
+    private static VariantAnnotatorException propagate(Throwable e) {
+        if (e instanceof VariantAnnotatorException) {
+            return (VariantAnnotatorException) e;
+        } else if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        } else if (e instanceof Error) {
+            throw (Error) e;
+        } else if (e instanceof TimeoutException) {
+            return new VariantAnnotatorException("Timeout annotating variants", e);
+        } else {
+            return new VariantAnnotatorException("Error annotating variants", e);
+        }
+    }
+
+    private synchronized void acquire() throws VariantAnnotatorException {
+        try {
+            while (inFlight >= getConcurrency()) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new VariantAnnotatorException("Interrupted while waiting for the annotator", e);
+        }
+        inFlight++;
+    }
+
+    private synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    synchronized void onSuccess(int numVariants, long latencyMs) {
+        requests++;
+        annotatedVariants += numVariants;
+        annotationTimeMs += latencyMs;
+        if (latencyMs > timeoutMs) {
+            logger.warn("Annotation of {} variants took {}ms, over the timeout of {}ms", numVariants, latencyMs, timeoutMs);
+            decrease(ERROR_DECREASE_FACTOR);
+        } else if (latencyMs > targetLatencyMs) {
+            decrease(SLOW_DECREASE_FACTOR);
+        } else {
+            concurrency = Math.min(maxConcurrency, concurrency + 1 / concurrency);
+            if (latencyMs < targetLatencyMs / 2) {
+                batchSize = Math.min(maxBatchSize, batchSize + Math.max(1, maxBatchSize / BATCH_SIZE_STEPS));
+            }
+        }
+    }
+
+    synchronized void onError(int numVariants, long latencyMs) {
+        requests++;
+        errors++;
+        annotationTimeMs += latencyMs;
+        decrease(ERROR_DECREASE_FACTOR);
+    }
+
+    private void decrease(double factor) {
+        concurrency = Math.max(1, concurrency * factor);
+        batchSize = Math.max(minBatchSize, batchSize * factor);
+        notifyAll();
+    }
+
+    private void backoff(int retry) throws VariantAnnotatorException {
+        try {
+            TimeUnit.MILLISECONDS.sleep(retryBackoffMs * retry);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new VariantAnnotatorException("Interrupted while waiting to retry", e);
+        }
+    }
+
+    /**
+     * Stop the threads executing the requests. Pending requests are interrupted.
+     */
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    public synchronized int getConcurrency() {
+        return (int) concurrency;
+    }
+
+    public synchronized int getBatchSize() {
+        return (int) batchSize;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public synchronized long getErrors() {
+        return errors;
+    }
+
+    /**
+     * @return Annotated variants per second of annotator time.
+     */
+    public synchronized double getThroughput() {
+        return annotationTimeMs == 0 ? 0 : annotatedVariants * 1000.0 / annotationTimeMs;
+    }
+
+    /**
+     * @return Average latency in milliseconds of the annotator requests.
+     */
+    public synchronized long getAverageLatency() {
+        return requests == 0 ? 0 : annotationTimeMs / requests;
+    }
+
+    public synchronized String status() {
+        return "concurrency " + getConcurrency() + "/" + maxConcurrency
+                + ", batch size " + getBatchSize() + "/" + maxBatchSize
+                + ", avg latency " + getAverageLatency() + "ms"
+                + (errors > 0 ? ", errors " + errors : "");
+    }
+
+    @Override
+    public String toString() {
+        return "AdaptiveAnnotationController{" + status() + '}';
+    }
+}
@@ -26,6 +26,8 @@ import org.opencb.biodata.models.core.Region;
 import org.opencb.biodata.models.variant.Variant;
 import org.opencb.biodata.models.variant.VariantFileMetadata;
 import org.opencb.biodata.models.variant.avro.AdditionalAttribute;
+import org.opencb.biodata.models.variant.avro.ConsequenceType;
+import org.opencb.biodata.models.variant.avro.SequenceOntologyTerm;
 import org.opencb.biodata.models.variant.avro.VariantAnnotation;
 import org.opencb.biodata.models.variant.metadata.VariantStudyMetadata;
 import org.opencb.commons.ProgressLogger;
@@ -34,13 +36,14 @@ import org.opencb.commons.datastore.core.Query;
 import org.opencb.commons.datastore.core.QueryOptions;
 import org.opencb.commons.io.DataReader;
 import org.opencb.commons.io.DataWriter;
-import org.opencb.commons.io.avro.AvroDataReader;
-import org.opencb.commons.io.avro.AvroDataWriter;
 import org.opencb.commons.run.ParallelTaskRunner;
 import org.opencb.commons.run.Task;
 import org.opencb.opencga.core.common.TimeUtils;
 import org.opencb.opencga.core.common.UriUtils;
 import org.opencb.opencga.storage.core.exceptions.StorageEngineException;
+import org.opencb.opencga.storage.core.io.AsyncTaskDataReader;
+import org.opencb.opencga.storage.core.io.avro.AvroBlockReader;
+import org.opencb.opencga.storage.core.io.avro.AvroBlockWriter;
 import org.opencb.opencga.storage.core.io.managers.IOConnectorProvider;
 import org.opencb.opencga.storage.core.metadata.VariantStorageMetadataManager;
 import org.opencb.opencga.storage.core.metadata.models.FileMetadata;
@@ -49,12 +52,14 @@ import org.opencb.opencga.storage.core.variant.adaptors.VariantDBAdaptor;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantField;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantQueryParam;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantQueryUtils;
+import org.opencb.opencga.storage.core.variant.annotation.annotators.AbstractCellBaseVariantAnnotator;
 import org.opencb.opencga.storage.core.variant.annotation.annotators.VariantAnnotator;
 import org.opencb.opencga.storage.core.variant.io.VariantReaderUtils;
 import org.opencb.opencga.storage.core.variant.io.db.VariantAnnotationDBWriter;
 import org.opencb.opencga.storage.core.variant.io.db.VariantDBReader;
 import org.opencb.opencga.storage.core.variant.io.json.VariantAnnotationJsonDataReader;
 import org.opencb.opencga.storage.core.variant.io.json.VariantAnnotationJsonDataWriter;
+import org.opencb.opencga.storage.core.variant.stats.sketch.CountMinSketch;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -87,10 +92,26 @@ public class DefaultVariantAnnotationManager extends VariantAnnotationManager {
     public static final String BATCH_SIZE = "batchSize";
     public static final String NUM_WRITERS = "numWriters";
     public static final String NUM_THREADS = "numThreads";
+    // Adapt the concurrency and batch size to the annotator latency. Disabled by default. See AdaptiveAnnotationController
+    public static final String ADAPTIVE = "annotation.adaptive";
+    public static final String MAX_NUM_THREADS = "annotation.adaptive.maxNumThreads";
+    public static final String MAX_BATCH_SIZE = "annotation.adaptive.maxBatchSize";
+    public static final String TARGET_LATENCY = "annotation.adaptive.targetLatency";
+    public static final String TIMEOUT = "annotation.adaptive.timeout";
+    public static final String MAX_RETRIES = "annotation.adaptive.maxRetries";
+    public static final String RETRY_BACKOFF = "annotation.adaptive.retryBackoff";
+    // Write the intermediate annotation file in avro format. Otherwise, use json (default).
+    public static final String ANNOTATION_FILE_AVRO = "annotation.file.avro";
+    public static final String ANNOTATION_FILE_AVRO_CODEC = "annotation.file.avro.codec";
+    // Annotate and load without intermediate file
+    public static final String STREAMING = "annotation.streaming";
+    public static final int DEFAULT_NUM_DECODE_THREADS = 4;
 
     protected VariantDBAdaptor dbAdaptor;
     protected VariantAnnotator variantAnnotator;
     private final AtomicLong numAnnotationsToLoad = new AtomicLong(0);
+    // Overwriting the annotation of all the variants. The previous annotation sketch can be discarded
+    private boolean replaceAnnotationSketch = false;
     protected static Logger logger = LoggerFactory.getLogger(DefaultVariantAnnotationManager.class);
     protected Map<Integer, List<Integer>> filesToBeAnnotated = new HashMap<>();
     private final IOConnectorProvider ioConnectorProvider;
@@ -108,6 +129,16 @@ public class DefaultVariantAnnotationManager extends VariantAnnotationManager {
 
     @Override
     public long annotate(Query query, ObjectMap params) throws VariantAnnotatorException, IOException, StorageEngineException {
+        try {
+            return annotateAndLoad(query, params);
+        } finally {
+            // Each annotation manager is used only once. Release the annotator, e.g. the lock of its persistent cache
+            variantAnnotator.shutdown();
+        }
+    }
+
+    private long annotateAndLoad(Query query, ObjectMap params)
+            throws VariantAnnotatorException, IOException, StorageEngineException {
 
         String annotationFileStr = params.getString(LOAD_FILE);
         boolean doCreate = params.getBoolean(CREATE);
@@ -120,9 +151,27 @@ public class DefaultVariantAnnotationManager extends VariantAnnotationManager {
         if (!overwrite) {
             query.put(VariantQueryParam.ANNOTATION_EXISTS.key(), false);
         }
+        replaceAnnotationSketch = overwrite && doCreate && VariantQueryUtils.validParams(query, true).isEmpty();
 
         preAnnotate(query, doCreate, doLoad, params);
 
+        if (doCreate && doLoad && params.getBoolean(STREAMING, false)) {
+            dbAdaptor.getMetadataManager().updateProjectMetadata(projectMetadata -> {
+                checkCurrentAnnotation(variantAnnotator, projectMetadata, overwrite);
+                return projectMetadata;
+            });
+            long start = System.currentTimeMillis();
+            logger.info("Starting annotation, without intermediate file");
+            logger.info("Query : {} ", query.toJson());
+            streamAnnotation(query, params);
+            logger.info("Finished annotation {}ms", System.currentTimeMillis() - start);
+            dbAdaptor.getMetadataManager().updateProjectMetadata(projectMetadata -> {
+                updateCurrentAnnotation(variantAnnotator, projectMetadata, overwrite);
+                return projectMetadata;
+            });
+            return numAnnotationsToLoad.get();
+        }
+
         URI annotationFile;
         if (doCreate) {
             dbAdaptor.getMetadataManager().updateProjectMetadata(projectMetadata -> {
@@ -176,22 +225,128 @@ public class DefaultVariantAnnotationManager extends VariantAnnotationManager {
     public URI createAnnotation(URI outDir, String fileName, Query query, ObjectMap params) throws VariantAnnotatorException {
 
         boolean gzip = params == null || params.getBoolean("gzip", true);
-        boolean avro = params == null || params.getBoolean("annotation.file.avro", false);
+        boolean avro = params != null && params.getBoolean(ANNOTATION_FILE_AVRO, false);
 
-        URI fileUri = outDir.resolve(fileName + ".annot" + (avro ? ".avro" : ".json") + (gzip ? ".gz" : ""));
+        // Avro files are compressed by blocks. Do not compress the whole file, so it can be decoded in parallel.
+        URI fileUri = outDir.resolve(fileName + ".annot" + (avro ? ".avro" : ".json" + (gzip ? ".gz" : "")));
 
-        /** Getting iterator from OpenCGA Variant database. **/
-        QueryOptions iteratorQueryOptions = getIteratorQueryOptions(query, params);
+        AnnotationPipeline pipeline = new AnnotationPipeline(query, params);
+        try {
+            final DataWriter<VariantAnnotation> variantAnnotationDataWriter;
+            try {
+                if (avro) {
+                    String codec = params.getString(ANNOTATION_FILE_AVRO_CODEC, gzip ? AvroBlockWriter.DEFAULT_CODEC : "null");
+                    variantAnnotationDataWriter = new AvroBlockWriter<>(VariantAnnotation.getClassSchema(), codec,
+                            AvroBlockWriter.DEFAULT_BLOCK_SIZE, ioConnectorProvider.newOutputStream(fileUri));
+                } else {
+                    variantAnnotationDataWriter = new VariantAnnotationJsonDataWriter(ioConnectorProvider.newOutputStream(fileUri));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
 
-        int batchSize = 200;
-        int numThreads = 8;
-        if (params != null) { //Parse query options
-            batchSize = params.getInt(BATCH_SIZE, batchSize);
-            numThreads = params.getInt(NUM_THREADS, numThreads);
+            ParallelTaskRunner.Config config = ParallelTaskRunner.Config.builder()
+                    .setNumTasks(pipeline.numThreads)
+                    .setBatchSize(pipeline.batchSize)
+                    .setAbortOnFail(true)
+                    .setSorted(false).build();
+            ParallelTaskRunner<Variant, VariantAnnotation> parallelTaskRunner =
+                    new ParallelTaskRunner<>(pipeline.variantDataReader, pipeline.annotationTask, variantAnnotationDataWriter, config);
+            parallelTaskRunner.run();
+        } catch (ExecutionException e) {
+            throw new VariantAnnotatorException("Error creating annotations", e);
+        } finally {
+            pipeline.close();
         }
+        pipeline.logStats();
 
+        return fileUri;
+    }
+
+    /**
+     * Annotate and load the variants without an intermediate file.
+     * Annotations are streamed from the {@link VariantAnnotator} to the database writers.
+     *
+     * @param query  Query for those variants to annotate.
+     * @param params Specific params.
+     * @throws VariantAnnotatorException if there is an error creating the annotations
+     * @throws IOException               if there is an error loading the annotations
+     * @throws StorageEngineException    if there is an error loading the annotations
+     */
+    public void streamAnnotation(Query query, ObjectMap params)
+            throws VariantAnnotatorException, IOException, StorageEngineException {
+        AnnotationPipeline pipeline = new AnnotationPipeline(query, params);
+        DataReader<VariantAnnotation> reader = new AsyncTaskDataReader<>(pipeline.variantDataReader, pipeline.annotationTask,
+                pipeline.numThreads, pipeline.batchSize);
         try {
-            DataReader<Variant> variantDataReader = getVariantDataReader(query, iteratorQueryOptions, params);
+            loadVariantAnnotation(reader, params);
+        } finally {
+            pipeline.close();
+        }
+        pipeline.logStats();
+    }
+
+    /**
+     * Reader of the variants to annotate, and the task to annotate them.
+     */
+    private final class AnnotationPipeline {
+        private final DataReader<Variant> variantDataReader;
+        private final Task<Variant, VariantAnnotation> annotationTask;
+        private final AdaptiveAnnotationController controller;
+        private final AbstractCellBaseVariantAnnotator cellBaseAnnotator;
+        private final int batchSize;
+        private final int numThreads;
+
+        private AnnotationPipeline(Query query, ObjectMap params) throws VariantAnnotatorException {
+            /** Getting iterator from OpenCGA Variant database. **/
+            QueryOptions iteratorQueryOptions = getIteratorQueryOptions(query, params);
+
+            int batchSize = 200;
+            int numThreads = 8;
+            if (params != null) { //Parse query options
+                batchSize = params.getInt(BATCH_SIZE, batchSize);
+                numThreads = params.getInt(NUM_THREADS, numThreads);
+            }
+            if (params != null && params.getBoolean(ADAPTIVE, false)) {
+                // By default, never exceed the configured batch size and number of threads
+                controller = new AdaptiveAnnotationController(variantAnnotator,
+                        numThreads, params.getInt(MAX_NUM_THREADS, numThreads),
+                        batchSize, params.getInt(MAX_BATCH_SIZE, batchSize),
+                        params.getLong(TARGET_LATENCY, 10000),
+                        params.getLong(TIMEOUT, 60000),
+                        params.getInt(MAX_RETRIES, 3),
+                        params.getLong(RETRY_BACKOFF, 1000));
+                // The controller splits the read batches, and limits the number of concurrent requests
+                batchSize = controller.getMaxBatchSize();
+                numThreads = controller.getMaxConcurrency();
+                logger.info("Adaptive annotation: {}", controller.status());
+            } else {
+                controller = null;
+            }
+            this.batchSize = batchSize;
+            this.numThreads = numThreads;
+
+            if (variantAnnotator instanceof AbstractCellBaseVariantAnnotator
+                    && ((AbstractCellBaseVariantAnnotator) variantAnnotator).getCache() != null) {
+                cellBaseAnnotator = (AbstractCellBaseVariantAnnotator) variantAnnotator;
+                String prefill = params == null
+                        ? null
+                        : params.getString(AbstractCellBaseVariantAnnotator.ANNOTATOR_CELLBASE_DISK_CACHE_PREFILL);
+                if (StringUtils.isNotEmpty(prefill)) {
+                    try {
+                        URI prefillUri = UriUtils.createUri(prefill);
+                        // The size identifies the version of the dump. Each version is only loaded once into the cache
+                        String dumpId = prefillUri + ":" + ioConnectorProvider.size(prefillUri);
+                        cellBaseAnnotator.prefillCache(dumpId, newVariantAnnotationDataReader(prefillUri));
+                    } catch (IOException | URISyntaxException e) {
+                        throw new VariantAnnotatorException("Error filling annotation cache from " + prefill, e);
+                    }
+                }
+            } else {
+                cellBaseAnnotator = null;
+            }
+
+            variantDataReader = getVariantDataReader(query, iteratorQueryOptions, params);
             ProgressLogger progressLogger;
             if (params != null && params.getBoolean(QueryOptions.SKIP_COUNT, false)) {
                 progressLogger = new ProgressLogger("Annotated variants:", iteratorQueryOptions.getLong(QueryOptions.LIMIT, 0), 200);
@@ -204,45 +359,45 @@ public class DefaultVariantAnnotationManager extends VariantAnnotationManager {
                     return countVariantsToAnnotate(query, params);
                 }, 200);
             }
-            Task<Variant, VariantAnnotation> annotationTask = variantList -> {
+            annotationTask = variantList -> {
                 List<VariantAnnotation> variantAnnotationList;
                 long start = System.currentTimeMillis();
                 logger.debug("Annotating batch of {} genomic variants.", variantList.size());
-                variantAnnotationList = variantAnnotator.annotate(variantList);
+                if (controller == null) {
+                    variantAnnotationList = variantAnnotator.annotate(variantList);
+                } else {
+                    variantAnnotationList = controller.annotate(variantList);
+                }
+                long time = System.currentTimeMillis() - start;
                 progressLogger.increment(variantList.size(),
-                        () -> ", up to position " + variantList.get(variantList.size() - 1).toString());
+                        () -> ", up to position " + variantList.get(variantList.size() - 1).toString()
+                                + ". Batch of " + variantList.size() + " variants in " + time + "ms"
+                                + (controller == null ? "" : ", " + controller.status()));
                 numAnnotationsToLoad.addAndGet(variantList.size());
 
                 logger.debug("Annotated batch of {} genomic variants. Time: {}s", variantList.size(),
                         (System.currentTimeMillis() - start) / 1000.0);
                 return variantAnnotationList;
             };
+        }
 
-            final DataWriter<VariantAnnotation> variantAnnotationDataWriter;
-            if (avro) {
-                //FIXME
-                variantAnnotationDataWriter = new AvroDataWriter<>(null, gzip, VariantAnnotation.getClassSchema());
-            } else {
-                try {
-                    variantAnnotationDataWriter = new VariantAnnotationJsonDataWriter(ioConnectorProvider.newOutputStream(fileUri));
-                } catch (IOException e) {
-                    throw new UncheckedIOException(e);
-                }
+        private void close() {
+            if (controller != null) {
+                controller.close();
             }
-
-            ParallelTaskRunner.Config config = ParallelTaskRunner.Config.builder()
-                    .setNumTasks(numThreads)
-                    .setBatchSize(batchSize)
-                    .setAbortOnFail(true)
-                    .setSorted(false).build();
-            ParallelTaskRunner<Variant, VariantAnnotation> parallelTaskRunner =
-                    new ParallelTaskRunner<>(variantDataReader, annotationTask, variantAnnotationDataWriter, config);
-            parallelTaskRunner.run();
-        } catch (ExecutionException e) {
-            throw new VariantAnnotatorException("Error creating annotations", e);
         }
 
-        return fileUri;
+        private void logStats() {
+            if (controller != null) {
+                logger.info("Adaptive annotation: {}, throughput {} variants/s", controller.status(),
+                        String.format("%.1f", controller.getThroughput()));
+            }
+            if (cellBaseAnnotator != null) {
+                logger.info("Annotation cache hits: {}, misses: {}, hit rate: {}%. {}",
+                        cellBaseAnnotator.getCacheHits(), cellBaseAnnotator.getCacheMisses(),
+                        String.format("%.2f", cellBaseAnnotator.getCacheHitRate() * 100), cellBaseAnnotator.getCache());
+            }
+        }
     }
 
     protected DataReader<Variant> getVariantDataReader(Query query, QueryOptions iteratorQueryOptions, ObjectMap params) {
@@ -288,6 +443,19 @@ public class DefaultVariantAnnotationManager extends VariantAnnotationManager {
      * @throws StorageEngineException if there is a problem creating or running the {@link ParallelTaskRunner}
      */
     public void loadVariantAnnotation(URI uri, ObjectMap params) throws IOException, StorageEngineException {
+        loadVariantAnnotation(newVariantAnnotationDataReader(uri), params);
+    }
+
+    /**
+     * Loads variant annotations from a reader into the selected Variant DataBase.
+     *
+     * @param annotationReader  Variant annotations reader
+     * @param params            Specific params.
+     * @throws IOException IOException thrown
+     * @throws StorageEngineException if there is a problem creating or running the {@link ParallelTaskRunner}
+     */
+    protected void loadVariantAnnotation(DataReader<VariantAnnotation> annotationReader, ObjectMap params)
+            throws IOException, StorageEngineException {
 
         final int batchSize = params.getInt(DefaultVariantAnnotationManager.BATCH_SIZE, 100);
         final int numConsumers = params.getInt(DefaultVariantAnnotationManager.NUM_WRITERS, 6);
@@ -299,7 +467,14 @@ public class DefaultVariantAnnotationManager extends VariantAnnotationManager {
                 .setSorted(false).build();
         DataReader<VariantAnnotation> reader;
 
-        reader = newVariantAnnotationDataReader(uri);
+        // The reader runs in one single thread, so the sketch does not need to be thread safe
+        CountMinSketch annotationSketch = new CountMinSketch();
+        reader = annotationReader.then((Task<VariantAnnotation, VariantAnnotation>) batch -> {
+            for (VariantAnnotation annotation : batch) {
+                addAnnotationTerms(annotationSketch, annotation);
+            }
+            return batch;
+        });
         try {
             ProgressLogger progressLogger = new ProgressLogger("Loaded annotations: ", numAnnotationsToLoad.get());
             ParallelTaskRunner<VariantAnnotation, ?> ptr = buildLoadAnnotationParallelTaskRunner(reader, config, progressLogger, params);
@@ -308,6 +483,16 @@ public class DefaultVariantAnnotationManager extends VariantAnnotationManager {
             throw new StorageEngineException("Error loading variant annotation", e);
         }
 
+        dbAdaptor.getMetadataManager().updateProjectMetadata(projectMetadata -> {
+            // Partial overwrites are merged. Variants annotated again are counted twice, but estimations are upper bounds anyway
+            if (replaceAnnotationSketch || projectMetadata.getAnnotationSketch() == null) {
+                projectMetadata.setAnnotationSketch(annotationSketch);
+            } else {
+                projectMetadata.getAnnotationSketch().merge(annotationSketch);
+            }
+            return projectMetadata;
+        });
+
         postLoadAnnotation();
 
     }
@@ -319,11 +504,37 @@ public class DefaultVariantAnnotationManager extends VariantAnnotationManager {
                                 .setProgressLogger(progressLogger), null, config);
     }
 
+    /**
+     * Count the consequence types and biotypes of a variant annotation. Each term is counted once per variant.
+     *
+     * @param sketch        Sketch to update
+     * @param annotation    Variant annotation
+     */
+    protected static void addAnnotationTerms(CountMinSketch sketch, VariantAnnotation annotation) {
+        if (annotation.getConsequenceTypes() == null) {
+            return;
+        }
+        Set<String> terms = new HashSet<>();
+        for (ConsequenceType consequenceType : annotation.getConsequenceTypes()) {
+            if (consequenceType.getSequenceOntologyTerms() != null) {
+                for (SequenceOntologyTerm term : consequenceType.getSequenceOntologyTerms()) {
+                    terms.add(term.getName());
+                }
+            }
+            if (StringUtils.isNotEmpty(consequenceType.getBiotype())) {
+                terms.add(consequenceType.getBiotype());
+            }
+        }
+        for (String term : terms) {
+            sketch.add(term);
+        }
+    }
+
     protected DataReader<VariantAnnotation> newVariantAnnotationDataReader(URI uri) throws IOException {
         DataReader<VariantAnnotation> reader;
         if (VariantReaderUtils.isAvro(uri.toString())) {
-            // FIXME
-            reader = new AvroDataReader<>(Paths.get(uri).toFile(), VariantAnnotation.class);
+            reader = AvroBlockReader.parallelReader(ioConnectorProvider.newInputStream(uri), VariantAnnotation.class,
+                    DEFAULT_NUM_DECODE_THREADS);
         } else if (VariantReaderUtils.isJson(uri.toString())) {
             reader = new VariantAnnotationJsonDataReader(ioConnectorProvider.newInputStream(uri));
 //        } else if (VariantReaderUtils.isVcf(uri.toString())) {
@@ -438,6 +649,8 @@ public class DefaultVariantAnnotationManager extends VariantAnnotationManager {
                 }
             }
         }
+        // Annotations are shared by all the studies in the project
+        dbAdaptor.getMetadataManager().notifyDataChange(-1, "annotation");
     }
 
     /**
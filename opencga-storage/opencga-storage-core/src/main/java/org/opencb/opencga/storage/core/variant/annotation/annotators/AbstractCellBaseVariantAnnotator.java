@@ -23,16 +23,19 @@ import org.opencb.biodata.models.variant.avro.VariantAnnotation;
 import org.opencb.commons.datastore.core.ObjectMap;
 import org.opencb.commons.datastore.core.QueryOptions;
 import org.opencb.commons.datastore.core.QueryResult;
+import org.opencb.commons.io.DataReader;
 import org.opencb.opencga.storage.core.config.StorageConfiguration;
 import org.opencb.opencga.storage.core.metadata.models.ProjectMetadata;
 import org.opencb.opencga.storage.core.variant.annotation.VariantAnnotatorException;
+import org.opencb.opencga.storage.core.variant.annotation.annotators.cache.VariantAnnotationCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.List;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.opencb.opencga.storage.core.variant.adaptors.VariantField.AdditionalAttributes.GROUP_NAME;
 import static org.opencb.opencga.storage.core.variant.adaptors.VariantField.AdditionalAttributes.VARIANT_ID;
@@ -47,6 +50,11 @@ public abstract class AbstractCellBaseVariantAnnotator extends VariantAnnotator
     public static final String ANNOTATOR_CELLBASE_EXCLUDE = "annotator.cellbase.exclude";
     // Imprecise variants supported by cellbase (REST only)
     public static final String ANNOTATOR_CELLBASE_IMPRECISE_VARIANTS = "annotator.cellbase.imprecise_variants";
+    // Local directory for the persistent annotation cache. Empty to disable the cache.
+    public static final String ANNOTATOR_CELLBASE_DISK_CACHE_PATH = "annotator.cellbase.disk_cache.path";
+    public static final String ANNOTATOR_CELLBASE_DISK_CACHE_MAX_SIZE = "annotator.cellbase.disk_cache.max_size";
+    // Annotation file (json or avro) to fill the persistent annotation cache with before annotating
+    public static final String ANNOTATOR_CELLBASE_DISK_CACHE_PREFILL = "annotator.cellbase.disk_cache.prefill";
     public static final int CELLBASE_VARIANT_THRESHOLD = 5000;
 
     protected static Logger logger = LoggerFactory.getLogger(AbstractCellBaseVariantAnnotator.class);
@@ -55,6 +63,9 @@ public abstract class AbstractCellBaseVariantAnnotator extends VariantAnnotator
     protected final String cellbaseVersion;
     protected final QueryOptions queryOptions;
     protected final boolean impreciseVariants;
+    protected final VariantAnnotationCache cache;
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
 
     public AbstractCellBaseVariantAnnotator(StorageConfiguration storageConfiguration, ProjectMetadata projectMetadata, ObjectMap params)
             throws VariantAnnotatorException {
@@ -80,6 +91,25 @@ public abstract class AbstractCellBaseVariantAnnotator extends VariantAnnotator
         checkNotNull(species, "species");
         checkNotNull(assembly, "assembly");
 
+        cache = openCache(params);
+    }
+
+    private VariantAnnotationCache openCache(ObjectMap params) throws VariantAnnotatorException {
+        String cachePath = params.getString(ANNOTATOR_CELLBASE_DISK_CACHE_PATH);
+        if (StringUtils.isEmpty(cachePath)) {
+            return null;
+        }
+        // Annotations are only reusable with the same data source and the same include/exclude fields
+        String fields = params.getString(ANNOTATOR_CELLBASE_INCLUDE, "") + '|' + params.getString(ANNOTATOR_CELLBASE_EXCLUDE, "");
+        String namespace = (species + '_' + assembly + '_' + cellbaseVersion + '_' + Integer.toHexString(fields.hashCode()))
+                .replaceAll("[^a-zA-Z0-9._-]", "_");
+        Path dir = Paths.get(cachePath).resolve(namespace);
+        long maxSize = params.getLong(ANNOTATOR_CELLBASE_DISK_CACHE_MAX_SIZE, VariantAnnotationCache.DEFAULT_MAX_SIZE);
+        try {
+            return VariantAnnotationCache.open(dir, maxSize);
+        } catch (IOException e) {
+            throw new VariantAnnotatorException("Error opening variant annotation cache at " + dir, e);
+        }
     }
 
     protected static void checkNotNull(String value, String name) throws VariantAnnotatorException {
@@ -99,8 +129,108 @@ public abstract class AbstractCellBaseVariantAnnotator extends VariantAnnotator
 
     @Override
     public final List<VariantAnnotation> annotate(List<Variant> variants) throws VariantAnnotatorException {
-        List<Variant> nonStructuralVariations = filterStructuralVariants(variants);
-        return getVariantAnnotationList(variants, annotateFiltered(nonStructuralVariations));
+        if (cache == null) {
+            List<Variant> nonStructuralVariations = filterStructuralVariants(variants);
+            return getVariantAnnotationList(variants, annotateFiltered(nonStructuralVariations));
+        }
+
+        Map<String, VariantAnnotation> cached = new HashMap<>();
+        List<Variant> misses = new ArrayList<>(variants.size());
+        for (Variant variant : variants) {
+            String key = VariantAnnotationCache.key(variant);
+            VariantAnnotation annotation = key == null ? null : cache.get(key);
+            if (annotation == null) {
+                misses.add(variant);
+            } else {
+                cached.put(key, annotation);
+            }
+        }
+        cacheHits.addAndGet(variants.size() - misses.size());
+        cacheMisses.addAndGet(misses.size());
+        if (misses.isEmpty()) {
+            return orderCached(variants, cached);
+        }
+
+        List<VariantAnnotation> annotations = getVariantAnnotationList(misses, annotateFiltered(filterStructuralVariants(misses)));
+
+        // Merge cached and new annotations, preserving the order of the input variants.
+        // Variants skipped by the annotator have no annotation.
+        Map<String, VariantAnnotation> newAnnotations = new HashMap<>();
+        List<VariantAnnotation> result = new ArrayList<>(variants.size());
+        Iterator<VariantAnnotation> iterator = annotations.iterator();
+        VariantAnnotation next = iterator.hasNext() ? iterator.next() : null;
+        for (Variant variant : variants) {
+            String key = VariantAnnotationCache.key(variant);
+            VariantAnnotation annotation = key == null ? null : cached.get(key);
+            if (annotation == null && next != null && sameVariant(variant, next)) {
+                annotation = next;
+                next = iterator.hasNext() ? iterator.next() : null;
+                if (key != null) {
+                    newAnnotations.put(key, annotation);
+                }
+            }
+            if (annotation != null) {
+                result.add(annotation);
+            }
+        }
+        cache.putAll(newAnnotations);
+        return result;
+    }
+
+    private static List<VariantAnnotation> orderCached(List<Variant> variants, Map<String, VariantAnnotation> cached) {
+        List<VariantAnnotation> result = new ArrayList<>(variants.size());
+        for (Variant variant : variants) {
+            result.add(cached.get(VariantAnnotationCache.key(variant)));
+        }
+        return result;
+    }
+
+    private static boolean sameVariant(Variant variant, VariantAnnotation annotation) {
+        return variant.getChromosome().equals(annotation.getChromosome())
+                && variant.getStart().equals(annotation.getStart())
+                && variant.getReference().equals(annotation.getReference())
+                && variant.getAlternate().equals(annotation.getAlternate());
+    }
+
+    /**
+     * Fill the persistent annotation cache with the annotations from a reader.
+     *
+     * @param dumpId Unique identifier of the annotation dump and its version. Each dump is only loaded once
+     * @param reader Annotation reader. e.g. a previous annotation file
+     * @return Number of annotations added to the cache, or 0 if the cache is disabled
+     * @throws IOException on error filling the cache
+     */
+    public long prefillCache(String dumpId, DataReader<VariantAnnotation> reader) throws IOException {
+        if (cache == null) {
+            return 0;
+        }
+        return cache.prefill(dumpId, reader);
+    }
+
+    @Override
+    public void shutdown() throws IOException {
+        if (cache != null) {
+            // Releases the lock of the cache directory
+            cache.close();
+        }
+    }
+
+    public VariantAnnotationCache getCache() {
+        return cache;
+    }
+
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    public long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    public double getCacheHitRate() {
+        long hits = cacheHits.get();
+        long total = hits + cacheMisses.get();
+        return total == 0 ? 0 : ((double) hits) / total;
     }
 
     protected abstract List<QueryResult<VariantAnnotation>> annotateFiltered(List<Variant> variants) throws VariantAnnotatorException;
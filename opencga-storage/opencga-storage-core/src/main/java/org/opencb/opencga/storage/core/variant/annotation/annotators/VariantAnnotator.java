@@ -48,4 +48,12 @@ public abstract class VariantAnnotator {
 
     public abstract List<ObjectMap> getVariantAnnotatorSourceVersion() throws IOException;
 
+    /**
+     * Release the resources of the annotator. The annotator can not be used after this.
+     *
+     * @throws IOException on error releasing the resources
+     */
+    public void shutdown() throws IOException {
+    }
+
 }
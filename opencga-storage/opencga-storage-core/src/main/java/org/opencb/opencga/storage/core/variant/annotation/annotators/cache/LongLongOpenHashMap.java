@@ -0,0 +1,102 @@
+package org.opencb.opencga.storage.core.variant.annotation.annotators.cache;
+
+import java.util.function.LongPredicate;
+
+/**
+ * Open addressing hash map of primitive longs. Avoids the boxing overhead for indexes with millions of entries.
+ *
+ * Not thread safe. Key 0 is reserved, and is replaced by 1.
+ */
+final class LongLongOpenHashMap {
+
+    private static final long EMPTY = 0;
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private long[] values;
+    private int size;
+    private int mask;
+
+    LongLongOpenHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(MIN_CAPACITY, expectedSize * 2) - 1) << 1;
+        allocate(capacity);
+    }
+
+    long get(long key, long defaultValue) {
+        key = fixKey(key);
+        int i = index(key);
+        while (keys[i] != EMPTY) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return defaultValue;
+    }
+
+    void put(long key, long value) {
+        key = fixKey(key);
+        if ((size + 1) * 4L > keys.length * 3L) {
+            rehash(keys.length << 1);
+        }
+        int i = index(key);
+        while (keys[i] != EMPTY) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        size++;
+    }
+
+    /**
+     * Remove all the entries with a value not matching the predicate.
+     *
+     * @param predicate Values to keep
+     */
+    void retainValues(LongPredicate predicate) {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        allocate(keys.length);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY && predicate.test(oldValues[i])) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new long[capacity];
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    private int index(long key) {
+        // Keys are usually hashes already. Mix anyway, in case of sequential keys
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private static long fixKey(long key) {
+        return key == EMPTY ? 1 : key;
+    }
+}
@@ -0,0 +1,573 @@
+package org.opencb.opencga.storage.core.variant.annotation.annotators.cache;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.opencb.biodata.models.variant.Variant;
+import org.opencb.biodata.models.variant.avro.VariantAnnotation;
+import org.opencb.commons.io.DataReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Persistent key-value cache of variant annotations.
+ *
+ * Annotations are appended, encoded in avro binary, into segment files. Only the active segment is written, the
+ * sealed segments are memory-mapped for reading. An in-memory index maps the hash of each key to its location,
+ * and is rebuilt from the segments when the cache is opened.
+ *
+ * The cache size is bounded. When the total size exceeds the limit, the oldest segment is removed.
+ *
+ * Each cache directory can only be used by one process at a time. Within the process, all the users of the same
+ * directory share the same instance. See {@link #open(Path, long)}. The instance is closed, and the directory released,
+ * when all its users have closed it.
+ */
+public final class VariantAnnotationCache implements Closeable {
+
+    public static final long DEFAULT_MAX_SIZE = 10L * 1024 * 1024 * 1024;
+
+    private static final long MAX_SEGMENT_SIZE = 1024L * 1024 * 1024;
+    private static final long MIN_SEGMENT_SIZE = 1024L * 1024;
+    private static final int MIN_SEGMENTS = 8;
+    // Key hash, key length, value length
+    private static final int HEADER_SIZE = Long.BYTES + Integer.BYTES + Integer.BYTES;
+    private static final int OFFSET_BITS = 40;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+    private static final long NOT_FOUND = -1;
+    private static final String LOCK_FILE = "cache.lock";
+    // Annotation dumps already loaded with #prefill
+    private static final String PREFILL_FILE = "prefill.txt";
+    private static final Pattern SEGMENT_PATTERN = Pattern.compile("^segment-(\\d+)\\.bin$");
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+    private static final Map<Path, VariantAnnotationCache> OPEN_CACHES = new HashMap<>();
+
+    private final Path dir;
+    private final long maxSize;
+    private final long segmentSize;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final TreeMap<Integer, MappedByteBuffer> sealedSegments = new TreeMap<>();
+    private final LongLongOpenHashMap index = new LongLongOpenHashMap(1 << 16);
+    private final FileChannel lockChannel;
+    private final FileLock fileLock;
+    private final ThreadLocal<SpecificDatumWriter<VariantAnnotation>> datumWriter =
+            ThreadLocal.withInitial(() -> new SpecificDatumWriter<>(VariantAnnotation.class));
+    private final ThreadLocal<SpecificDatumReader<VariantAnnotation>> datumReader =
+            ThreadLocal.withInitial(() -> new SpecificDatumReader<>(VariantAnnotation.class));
+    private int activeSegmentId;
+    private FileChannel activeSegment;
+    private long activeSegmentSize;
+    private long totalSize;
+    private boolean closed;
+    // Number of users of this instance. Guarded by OPEN_CACHES
+    private int references = 1;
+
+    private static Logger logger = LoggerFactory.getLogger(VariantAnnotationCache.class);
+
+    private VariantAnnotationCache(Path dir, long maxSize, FileChannel lockChannel, FileLock fileLock) throws IOException {
+        this.dir = dir;
+        this.maxSize = maxSize;
+        this.segmentSize = Math.max(MIN_SEGMENT_SIZE, Math.min(MAX_SEGMENT_SIZE, maxSize / MIN_SEGMENTS));
+        this.lockChannel = lockChannel;
+        this.fileLock = fileLock;
+        load();
+    }
+
+    /**
+     * Open the cache at the given directory. Reuses the instance if it was already opened by this process.
+     *
+     * @param dir       Cache directory
+     * @param maxSize   Max size in bytes of the cache
+     * @return          The cache, or null if the directory is in use by another process
+     * @throws IOException  on error reading the cache
+     */
+    public static VariantAnnotationCache open(Path dir, long maxSize) throws IOException {
+        Path absDir = dir.toAbsolutePath().normalize();
+        synchronized (OPEN_CACHES) {
+            VariantAnnotationCache cache = OPEN_CACHES.get(absDir);
+            if (cache != null) {
+                cache.references++;
+                return cache;
+            }
+            Files.createDirectories(absDir);
+            FileChannel lockChannel = FileChannel.open(absDir.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock fileLock;
+            try {
+                fileLock = lockChannel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                fileLock = null;
+            }
+            if (fileLock == null) {
+                lockChannel.close();
+                logger.warn("Variant annotation cache {} in use by another process. Skip cache", absDir);
+                return null;
+            }
+            cache = new VariantAnnotationCache(absDir, maxSize, lockChannel, fileLock);
+            OPEN_CACHES.put(absDir, cache);
+            return cache;
+        }
+    }
+
+    /**
+     * Build the key of a variant. Only variants with a key can be cached.
+     *
+     * @param variant   Variant
+     * @return          Variant key, or null if the variant can not be cached
+     */
+    public static String key(Variant variant) {
+        if (variant.isSV() || variant.getSv() != null) {
+            // Structural variants depend on other fields (e.g. END, CIPOS, ...)
+            return null;
+        }
+        return key(variant.getChromosome(), variant.getStart(), variant.getReference(), variant.getAlternate());
+    }
+
+    public static String key(VariantAnnotation annotation) {
+        return key(annotation.getChromosome(), annotation.getStart(), annotation.getReference(), annotation.getAlternate());
+    }
+
+    private static String key(String chromosome, Integer start, String reference, String alternate) {
+        return chromosome + ':' + start + ':' + (reference == null ? "" : reference) + ':' + (alternate == null ? "" : alternate);
+    }
+
+    public VariantAnnotation get(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        long hash = hash(keyBytes);
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            long location = index.get(hash, NOT_FOUND);
+            if (location == NOT_FOUND) {
+                return null;
+            }
+            ByteBuffer record = readRecord(location);
+            if (record == null) {
+                return null;
+            }
+            long recordHash = record.getLong();
+            int keyLength = record.getInt();
+            int valueLength = record.getInt();
+            if (recordHash != hash || keyLength != keyBytes.length) {
+                return null;
+            }
+            byte[] recordKey = new byte[keyLength];
+            record.get(recordKey);
+            if (!Arrays.equals(keyBytes, recordKey)) {
+                // Hash collision
+                return null;
+            }
+            byte[] value = new byte[valueLength];
+            record.get(value);
+            return decode(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void put(String key, VariantAnnotation annotation) {
+        putAll(Collections.singletonMap(key, annotation));
+    }
+
+    public void putAll(Map<String, VariantAnnotation> annotations) {
+        if (annotations.isEmpty()) {
+            return;
+        }
+        // Encode outside of the lock
+        List<byte[]> keys = new ArrayList<>(annotations.size());
+        List<byte[]> values = new ArrayList<>(annotations.size());
+        for (Map.Entry<String, VariantAnnotation> entry : annotations.entrySet()) {
+            keys.add(entry.getKey().getBytes(StandardCharsets.UTF_8));
+            values.add(encode(entry.getValue()));
+        }
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            for (int i = 0; i < keys.size(); i++) {
+                byte[] key = keys.get(i);
+                byte[] value = values.get(i);
+                long hash = hash(key);
+                ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + key.length + value.length);
+                record.putLong(hash).putInt(key.length).putInt(value.length).put(key).put(value);
+                record.flip();
+                long offset = activeSegmentSize;
+                while (record.hasRemaining()) {
+                    activeSegment.write(record, offset + record.position());
+                }
+                activeSegmentSize += record.limit();
+                totalSize += record.limit();
+                index.put(hash, location(activeSegmentId, offset));
+                if (activeSegmentSize >= segmentSize) {
+                    rollSegment();
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Fill the cache with the annotations from a reader. e.g. an existing annotation dump.
+     *
+     * Annotations already in the cache are skipped. Each dump is only read once, unless the cache evicts some segment.
+     *
+     * @param dumpId    Unique identifier of the dump and its version. e.g. path, size and modification time.
+     *                  If null, the dump is read even if it was already used.
+     * @param reader    Annotation reader
+     * @return          Number of annotations added
+     * @throws IOException on error registering the dump
+     */
+    public long prefill(String dumpId, DataReader<VariantAnnotation> reader) throws IOException {
+        if (dumpId != null && isPrefilled(dumpId)) {
+            logger.info("Variant annotation cache {} already filled with {}", dir, dumpId);
+            return 0;
+        }
+        long count = 0;
+        long skipped = 0;
+        reader.open();
+        reader.pre();
+        try {
+            List<VariantAnnotation> batch = reader.read(1000);
+            while (!batch.isEmpty()) {
+                Map<String, VariantAnnotation> map = new LinkedHashMap<>(batch.size());
+                for (VariantAnnotation annotation : batch) {
+                    map.put(key(annotation), annotation);
+                }
+                skipped += removePresent(map);
+                putAll(map);
+                count += map.size();
+                batch = reader.read(1000);
+            }
+        } finally {
+            reader.post();
+            reader.close();
+        }
+        if (dumpId != null) {
+            lock.writeLock().lock();
+            try {
+                checkOpen();
+                Files.write(dir.resolve(PREFILL_FILE), Collections.singletonList(dumpId), StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        logger.info("Prefilled variant annotation cache {} with {} annotations. Skip {} annotations already in the cache",
+                dir, count, skipped);
+        return count;
+    }
+
+    private boolean isPrefilled(String dumpId) throws IOException {
+        lock.readLock().lock();
+        try {
+            Path prefillFile = dir.resolve(PREFILL_FILE);
+            return Files.exists(prefillFile) && Files.readAllLines(prefillFile, StandardCharsets.UTF_8).contains(dumpId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Remove from the map the keys already in the cache. Compares only the hash of the keys.
+     *
+     * @param annotations Annotations to add
+     * @return Number of removed annotations
+     */
+    private int removePresent(Map<String, VariantAnnotation> annotations) {
+        int removed = 0;
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            Iterator<String> iterator = annotations.keySet().iterator();
+            while (iterator.hasNext()) {
+                if (index.get(hash(iterator.next().getBytes(StandardCharsets.UTF_8)), NOT_FOUND) != NOT_FOUND) {
+                    iterator.remove();
+                    removed++;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return removed;
+    }
+
+    /**
+     * @return Number of entries in the cache. Might include evicted entries.
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return index.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Size in bytes of all the segments of the cache
+     */
+    public long sizeInBytes() {
+        lock.readLock().lock();
+        try {
+            return totalSize;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public Path getDir() {
+        return dir;
+    }
+
+    /**
+     * Write to disk the pending changes.
+     *
+     * @throws IOException on error writing the cache
+     */
+    public void flush() throws IOException {
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            activeSegment.force(false);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Release this instance. The cache is closed when all the users that opened it have released it.
+     *
+     * @throws IOException on error closing the cache
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (OPEN_CACHES) {
+            if (closed || --references > 0) {
+                return;
+            }
+            lock.writeLock().lock();
+            try {
+                closed = true;
+                activeSegment.force(false);
+                activeSegment.close();
+                sealedSegments.clear();
+                fileLock.release();
+                lockChannel.close();
+            } finally {
+                lock.writeLock().unlock();
+                OPEN_CACHES.remove(dir);
+            }
+        }
+    }
+
+    private void load() throws IOException {
+        List<Integer> segmentIds = new ArrayList<>();
+        try (Stream<Path> stream = Files.list(dir)) {
+            stream.forEach(path -> {
+                Matcher matcher = SEGMENT_PATTERN.matcher(path.getFileName().toString());
+                if (matcher.matches()) {
+                    segmentIds.add(Integer.valueOf(matcher.group(1)));
+                }
+            });
+        }
+        Collections.sort(segmentIds);
+        activeSegmentId = 0;
+        for (int i = 0; i < segmentIds.size(); i++) {
+            Integer segmentId = segmentIds.get(i);
+            long size = loadSegment(segmentId);
+            totalSize += size;
+            if (i == segmentIds.size() - 1 && size < segmentSize) {
+                // Keep appending to the last segment
+                activeSegmentId = segmentId;
+            } else {
+                sealedSegments.put(segmentId, map(segmentId, size));
+                activeSegmentId = segmentId + 1;
+            }
+        }
+        openActiveSegment();
+        logger.info("Open variant annotation cache {} with {} entries in {} segments. Total size {}MB", dir, index.size(),
+                segmentIds.size(), totalSize / 1024 / 1024);
+        evict();
+    }
+
+    /**
+     * Read all the records from one segment to rebuild the index.
+     * Truncates the segment if the last record is incomplete, e.g. the process was killed while writing.
+     *
+     * @param segmentId Segment to read
+     * @return Valid size of the segment
+     * @throws IOException on error reading the segment
+     */
+    private long loadSegment(int segmentId) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentPath(segmentId), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long fileSize = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            long offset = 0;
+            while (offset + HEADER_SIZE <= fileSize) {
+                header.clear();
+                while (header.hasRemaining()) {
+                    if (channel.read(header, offset + header.position()) < 0) {
+                        break;
+                    }
+                }
+                header.flip();
+                long hash = header.getLong();
+                int keyLength = header.getInt();
+                int valueLength = header.getInt();
+                long recordSize = (long) HEADER_SIZE + keyLength + valueLength;
+                if (keyLength < 0 || valueLength < 0 || offset + recordSize > fileSize) {
+                    break;
+                }
+                index.put(hash, location(segmentId, offset));
+                offset += recordSize;
+            }
+            if (offset != fileSize) {
+                logger.warn("Truncate incomplete variant annotation cache segment {} from {} to {} bytes", segmentId, fileSize, offset);
+                channel.truncate(offset);
+            }
+            return offset;
+        }
+    }
+
+    private void openActiveSegment() throws IOException {
+        activeSegment = FileChannel.open(segmentPath(activeSegmentId),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        activeSegmentSize = activeSegment.size();
+    }
+
+    private void rollSegment() throws IOException {
+        activeSegment.force(false);
+        activeSegment.close();
+        sealedSegments.put(activeSegmentId, map(activeSegmentId, activeSegmentSize));
+        activeSegmentId++;
+        openActiveSegment();
+        evict();
+    }
+
+    private void evict() throws IOException {
+        boolean evicted = false;
+        while (totalSize > maxSize && !sealedSegments.isEmpty()) {
+            Map.Entry<Integer, MappedByteBuffer> oldest = sealedSegments.pollFirstEntry();
+            totalSize -= oldest.getValue().capacity();
+            Files.deleteIfExists(segmentPath(oldest.getKey()));
+            logger.info("Evict segment {} from variant annotation cache {}", oldest.getKey(), dir);
+            evicted = true;
+        }
+        if (evicted) {
+            index.retainValues(location -> segmentId(location) == activeSegmentId
+                    || sealedSegments.containsKey(segmentId(location)));
+            // Prefilled annotations might have been evicted
+            Files.deleteIfExists(dir.resolve(PREFILL_FILE));
+        }
+    }
+
+    private MappedByteBuffer map(int segmentId, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentPath(segmentId), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+
+    private ByteBuffer readRecord(long location) throws IOException {
+        int segmentId = segmentId(location);
+        long offset = location & OFFSET_MASK;
+        if (segmentId == activeSegmentId) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(header, offset);
+            header.flip();
+            header.getLong();
+            int recordSize = HEADER_SIZE + header.getInt() + header.getInt();
+            ByteBuffer record = ByteBuffer.allocate(recordSize);
+            readFully(record, offset);
+            record.flip();
+            return record;
+        } else {
+            MappedByteBuffer segment = sealedSegments.get(segmentId);
+            if (segment == null) {
+                // Evicted
+                return null;
+            }
+            ByteBuffer record = segment.duplicate();
+            record.position((int) offset);
+            return record;
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (activeSegment.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of variant annotation cache segment " + activeSegmentId);
+            }
+        }
+    }
+
+    private byte[] encode(VariantAnnotation annotation) {
+        try {
+            ByteArrayOutputStream os = new ByteArrayOutputStream(2048);
+            BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(os, null);
+            datumWriter.get().write(annotation, encoder);
+            encoder.flush();
+            return os.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private VariantAnnotation decode(byte[] value) throws IOException {
+        BinaryDecoder decoder = DecoderFactory.get().binaryDecoder(value, null);
+        return datumReader.get().read(null, decoder);
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Variant annotation cache " + dir + " is closed");
+        }
+    }
+
+    private Path segmentPath(int segmentId) {
+        return dir.resolve(String.format("segment-%06d.bin", segmentId));
+    }
+
+    private static long hash(byte[] key) {
+        return HASH_FUNCTION.hashBytes(key).asLong();
+    }
+
+    private static long location(int segmentId, long offset) {
+        return (((long) segmentId) << OFFSET_BITS) | offset;
+    }
+
+    private static int segmentId(long location) {
+        return (int) (location >>> OFFSET_BITS);
+    }
+
+    @Override
+    public String toString() {
+        return "VariantAnnotationCache{dir=" + dir + ", maxSize=" + maxSize + ", entries=" + index.size() + ", size=" + totalSize + '}';
+    }
+}
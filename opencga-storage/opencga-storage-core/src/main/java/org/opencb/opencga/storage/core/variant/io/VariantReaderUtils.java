@@ -31,6 +31,7 @@ import org.opencb.opencga.storage.core.exceptions.StorageEngineException;
 import org.opencb.opencga.storage.core.io.managers.IOConnectorProvider;
 import org.opencb.opencga.storage.core.variant.io.avro.VariantAvroReader;
 import org.opencb.opencga.storage.core.variant.io.json.VariantJsonReader;
+import org.opencb.opencga.storage.core.variant.stats.sketch.VariantSketch;
 
 import java.io.BufferedInputStream;
 import java.io.IOException;
@@ -51,6 +52,8 @@ public class VariantReaderUtils {
     public static final String METADATA_FILE = "file";
     public static final String METADATA_FORMAT = "json";
     public static final String METADATA_FILE_FORMAT_GZ = METADATA_FILE + "." + METADATA_FORMAT + ".gz";
+    public static final String SKETCH_FILE = "sketch";
+    public static final String SKETCH_FILE_FORMAT_GZ = SKETCH_FILE + "." + METADATA_FORMAT + ".gz";
 
     private static final Pattern VALID_META = Pattern.compile("^.+\\." + METADATA_FILE + "\\." + METADATA_FORMAT + "\\.gz$");
     private static final Pattern VALID_VARIANTS = Pattern.compile("^.+\\." + VARIANTS_FILE + "\\.(avro|json|proto)(\\.(gz|snappy))?$");
@@ -202,6 +205,16 @@ public class VariantReaderUtils {
         return new StringBuilder().append(variantsFile, 0, idx).append(METADATA_FILE_FORMAT_GZ).toString();
     }
 
+    public static URI getSketchFromTransformedFile(URI variantsFile) {
+        return UriUtils.replacePath(variantsFile, getSketchFromTransformedFile(variantsFile.getPath()));
+    }
+
+    public static String getSketchFromTransformedFile(String variantsFile) {
+        checkTransformedVariants(variantsFile);
+        int idx = variantsFile.lastIndexOf(VARIANTS_FILE);
+        return new StringBuilder().append(variantsFile, 0, idx).append(SKETCH_FILE_FORMAT_GZ).toString();
+    }
+
     public static String getFileName(URI uri) {
         return UriUtils.fileName(uri);
     }
@@ -239,6 +252,30 @@ public class VariantReaderUtils {
 
     }
 
+    /**
+     * Read the VariantSketch generated during the transformation of a file.
+     *
+     * @param input Transformed variants file
+     * @return Read VariantSketch, or null if the input is not a transformed file, or the sketch file does not exist
+     * @throws StorageEngineException if there is an error reading
+     */
+    public VariantSketch readVariantSketch(URI input) throws StorageEngineException {
+        if (!isTransformedVariants(input.getPath())) {
+            return null;
+        }
+        URI sketchFile = getSketchFromTransformedFile(input);
+        try {
+            if (!ioConnectorProvider.exists(sketchFile)) {
+                return null;
+            }
+            try (InputStream inputStream = ioConnectorProvider.newInputStream(sketchFile)) {
+                return new ObjectMapper().readValue(inputStream, VariantSketch.class);
+            }
+        } catch (IOException e) {
+            throw StorageEngineException.ioException(e);
+        }
+    }
+
     public VariantFileMetadata readVariantFileMetadata(URI input) throws StorageEngineException {
         return readVariantFileMetadata(input, null, false);
     }
@@ -10,6 +10,7 @@ import org.opencb.opencga.core.common.TimeUtils;
 import org.opencb.opencga.core.results.VariantQueryResult;
 import org.opencb.opencga.storage.core.metadata.VariantStorageMetadataManager;
 import org.opencb.opencga.storage.core.variant.adaptors.iterators.VariantDBIteratorWithCounts;
+import org.opencb.opencga.storage.core.variant.stats.sketch.VariantSketch;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,9 +28,16 @@ import static org.opencb.opencga.storage.core.variant.adaptors.VariantQueryUtils
  */
 public abstract class AbstractTwoPhasedVariantQueryExecutor extends VariantQueryExecutor {
 
+    /**
+     * Proportion of variants from chr1 and the whole genome.
+     * @deprecated Only used as fallback for studies without {@link VariantSketch}. See {@link #getChr1Ratio(Query)}
+     */
+    @Deprecated
     public static final float MAGIC_NUMBER = 12.5F; // Magic number! Proportion of variants from chr1 and the whole genome
     public static final int CHR1_LENGTH = 249250621;
     public static final int CHR1_COUNT_THRESHOLD = 9500; // Less than 2 * MultiVariantDBIterator.VariantQueryIterator.MAX_BATCH_SIZE
+    // Below this proportion of variants in chr1, the extrapolation from chr1 is not reliable
+    public static final float CHR1_MIN_PROPORTION = 0.02F;
     private final String primarySource;
 
     private Logger logger = LoggerFactory.getLogger(AbstractTwoPhasedVariantQueryExecutor.class);
@@ -71,8 +79,9 @@ public abstract class AbstractTwoPhasedVariantQueryExecutor extends VariantQuery
                 result.setNumTotalResults(result.getNumResults() + skip);
             } else if (variantsFromPrimary.hasNext()) {
                 long totalCount;
-                if (!isValidParam(query, REGION)) {
-                    totalCount = estimateTotalCount(variantsFromPrimary, query);
+                Float chr1Ratio = isValidParam(query, REGION) ? null : getChr1Ratio(query);
+                if (chr1Ratio != null) {
+                    totalCount = estimateTotalCount(variantsFromPrimary, query, chr1Ratio);
 //                } else if (sampleIndexDBAdaptor.isFastCount(sampleIndexQuery) && sampleIndexQuery.getSamplesMap().size() == 1) {
 //                    StopWatch stopWatch = StopWatch.createStarted();
 //                    Map.Entry<String, List<String>> entry = sampleIndexQuery.getSamplesMap().entrySet().iterator().next();
@@ -109,7 +118,29 @@ public abstract class AbstractTwoPhasedVariantQueryExecutor extends VariantQuery
         }
     }
 
-    private long estimateTotalCount(VariantDBIteratorWithCounts variantsFromPrimary, Query query) {
+    /**
+     * Get the proportion between the total number of variants and the number of variants in chr1, for the queried studies.
+     *
+     * Uses the {@link VariantSketch} from the studies, or the {@link #MAGIC_NUMBER} if missing.
+     *
+     * @param query Query
+     * @return      Proportion of variants, or null if the chr1 is not representative of the whole dataset
+     */
+    protected Float getChr1Ratio(Query query) {
+        VariantSketch sketch = getVariantSketch(query);
+        if (sketch == null) {
+            return MAGIC_NUMBER;
+        }
+        long total = sketch.cardinality();
+        long chr1 = sketch.cardinality("1");
+        if (chr1 == 0 || chr1 < total * CHR1_MIN_PROPORTION) {
+            logger.info("Only " + chr1 + " out of " + total + " variants in chr1. Unable to extrapolate count from chr1");
+            return null;
+        }
+        return ((float) total) / chr1;
+    }
+
+    private long estimateTotalCount(VariantDBIteratorWithCounts variantsFromPrimary, Query query, float chr1Ratio) {
         long totalCount;
         long chr1Count;
         StopWatch stopWatch = StopWatch.createStarted();
@@ -148,8 +179,8 @@ public abstract class AbstractTwoPhasedVariantQueryExecutor extends VariantQuery
             logger.info("Count variants from chr1 in " + primarySource + " : " + TimeUtils.durationToString(stopWatch));
         }
 
-        logger.info("chr1 count = " + chr1Count);
-        totalCount = (long) (chr1Count * MAGIC_NUMBER);
+        logger.info("chr1 count = " + chr1Count + " , chr1 ratio = " + chr1Ratio);
+        totalCount = (long) (chr1Count * chr1Ratio);
         return totalCount;
     }
 }
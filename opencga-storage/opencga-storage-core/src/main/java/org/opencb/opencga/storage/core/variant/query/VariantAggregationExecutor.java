@@ -14,6 +14,7 @@ import org.opencb.commons.datastore.solr.FacetQueryParser;
 import org.opencb.opencga.storage.core.exceptions.VariantSearchException;
 import org.opencb.opencga.storage.core.metadata.VariantStorageMetadataManager;
 import org.opencb.opencga.storage.core.metadata.models.StudyMetadata;
+import org.opencb.opencga.storage.core.utils.SharedExecutor;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantField;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantIterable;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantQueryException;
@@ -47,6 +48,16 @@ public class VariantAggregationExecutor {
     public static final Pattern CHROM_DENSITY_PATTERN = Pattern.compile("^" + CHROM_DENSITY + "\\[([a-zA-Z0-9:\\-,*]+)](:(\\d+))?$");
     public static final String NESTED_FACET_SEPARATOR = ">>"; // FacetQueryParser.NESTED_FACET_SEPARATOR
     private static final Set<String> ACCEPTED_CHROM_DENSITY_NESTED = new HashSet<>(Arrays.asList("type"));
+    /**
+     * Number of threads used to aggregate. Defaults to the number of available processors.
+     */
+    public static final String AGGREGATION_PARALLELISM = "aggregationParallelism";
+    /**
+     * Min size, in bases, of the partitions of each region to be aggregated independently.
+     * Regions are split in, at most, one partition per thread.
+     */
+    public static final String AGGREGATION_PARTITION_SIZE = "aggregationPartitionSize";
+    public static final int DEFAULT_AGGREGATION_PARTITION_SIZE = 10_000_000;
 
     public VariantAggregationExecutor(VariantSearchManager searchManager, String dbName,
                                       VariantIterable iterable,
@@ -93,13 +104,14 @@ public class VariantAggregationExecutor {
                 && !facet.contains(FacetQueryParser.FACET_SEPARATOR);
         if (isChromDensity && facet.contains(NESTED_FACET_SEPARATOR)) {
             String[] split = facet.split(NESTED_FACET_SEPARATOR);
-            if (split.length == 1) {
-                return true;
-            } else if (split.length == 2) {
-                // Check accepted nested fields
-                return ACCEPTED_CHROM_DENSITY_NESTED.contains(split[1]);
+            // Check accepted nested fields
+            Set<String> nestedFields = new HashSet<>();
+            for (int i = 1; i < split.length; i++) {
+                if (!ACCEPTED_CHROM_DENSITY_NESTED.contains(split[i]) || !nestedFields.add(split[i])) {
+                    return false;
+                }
             }
-            return false;
+            return true;
         } else {
             return isChromDensity;
         }
@@ -115,22 +127,20 @@ public class VariantAggregationExecutor {
 
         String[] split = facet.split(NESTED_FACET_SEPARATOR);
         String chromDensityFacet = split[0];
-        FieldVariantAccumulator nestedFieldAccumulator;
-        if (split.length == 2) {
-            String nestedFieldName;
-            nestedFieldName = split[1];
+        FieldVariantAccumulator nestedFieldAccumulator = null;
+        // Build nested accumulators from the inner to the outer field
+        for (int i = split.length - 1; i > 0; i--) {
+            String nestedFieldName = split[i];
             if (!ACCEPTED_CHROM_DENSITY_NESTED.contains(nestedFieldName)) {
                 throw invalidNestedField(nestedFieldName);
             }
             switch (nestedFieldName) {
                 case "type":
-                    nestedFieldAccumulator = new VariantTypeAccumulator();
+                    nestedFieldAccumulator = new VariantTypeAccumulator(nestedFieldAccumulator);
                     break;
                 default:
                     throw invalidNestedField(nestedFieldName);
             }
-        } else {
-            nestedFieldAccumulator = null;
         }
 
         int step;
@@ -157,31 +167,43 @@ public class VariantAggregationExecutor {
             throw new VariantQueryException("Unable to calculate aggregated stats query without a region or gene");
         }
 
-        List<FacetQueryResult.Bucket> regionBuckets = new ArrayList<>(regions.size());
-        long numMatches = 0;
+        int parallelism = Math.max(1, options.getInt(AGGREGATION_PARALLELISM, Runtime.getRuntime().availableProcessors()));
+        int partitionSize = options.getInt(AGGREGATION_PARTITION_SIZE, DEFAULT_AGGREGATION_PARTITION_SIZE);
+        // Each partition opens its own iterator. Do not split in more partitions than threads
+        long totalLength = 0;
         for (Region region : regions) {
-            Query regionQuery = new Query(query).append(VariantQueryParam.REGION.key(), region);
-            VariantDBIterator iterator = iterable.iterator(
-                    regionQuery,
-                    new QueryOptions()
-                            .append(QueryOptions.INCLUDE, VariantField.ID)
-                            .append(QueryOptions.SORT, true));
+            if (region.getEnd() != Integer.MAX_VALUE) {
+                totalLength += region.getEnd() - region.getStart() + 1;
+            }
+        }
+        partitionSize = (int) Math.min(Integer.MAX_VALUE, Math.max(partitionSize, (totalLength + parallelism - 1) / parallelism));
 
+        // Split each region into partitions, to be accumulated independently
+        List<ChromDensityAccumulator> regionAccumulators = new ArrayList<>(regions.size());
+        List<FacetQueryResult.Field> regionFields = new ArrayList<>(regions.size());
+        List<AccumulatorPartition> partitions = new ArrayList<>();
+        for (Region region : regions) {
             ChromDensityAccumulator chromDensityAccumulator = new ChromDensityAccumulator(region, nestedFieldAccumulator, step);
-
-            logger.info("Query : " + regionQuery.toJson());
-
             FacetQueryResult.Field regionField = chromDensityAccumulator.createField();
-
-            int count = 0;
-            while (iterator.hasNext()) {
-                count++;
-                chromDensityAccumulator.accumulate(regionField, iterator.next());
+            regionAccumulators.add(chromDensityAccumulator);
+            regionFields.add(regionField);
+            for (Region partition : chromDensityAccumulator.partition(partitionSize)) {
+                partitions.add(new AccumulatorPartition(query, chromDensityAccumulator, regionField, partition,
+                        partition.getStart() == region.getStart()));
             }
-            numMatches += count;
+        }
+        logger.info("Aggregate {} regions in {} partitions, using {} threads", regions.size(), partitions.size(), parallelism);
 
-            chromDensityAccumulator.cleanEmptyBuckets(regionField);
-            regionBuckets.add(new FacetQueryResult.Bucket(region.getChromosome(), count, Collections.singletonList(regionField)));
+        SharedExecutor.getInstance().runAll(partitions, parallelism);
+
+        List<FacetQueryResult.Bucket> regionBuckets = new ArrayList<>(regions.size());
+        long numMatches = 0;
+        for (int i = 0; i < regions.size(); i++) {
+            FacetQueryResult.Field regionField = regionFields.get(i);
+            numMatches += regionField.getCount();
+            regionAccumulators.get(i).cleanEmptyBuckets(regionField);
+            regionBuckets.add(new FacetQueryResult.Bucket(regions.get(i).getChromosome(), regionField.getCount(),
+                    Collections.singletonList(regionField)));
         }
 
         FacetQueryResult.Field field = new FacetQueryResult.Field(
@@ -194,29 +216,102 @@ public class VariantAggregationExecutor {
         );
     }
 
-    private interface FieldVariantAccumulator {
+    /**
+     * Portion of a region to be accumulated independently.
+     */
+    private final class AccumulatorPartition implements Runnable {
+        private final Query query;
+        private final FieldVariantAccumulator accumulator;
+        private final FacetQueryResult.Field target;
+        private final Region region;
+        // Variants starting before the partition are accumulated only by the first partition of each region
+        private final boolean first;
+
+        private AccumulatorPartition(Query query, FieldVariantAccumulator accumulator, FacetQueryResult.Field target, Region region,
+                                     boolean first) {
+            this.query = query;
+            this.accumulator = accumulator;
+            this.target = target;
+            this.region = region;
+            this.first = first;
+        }
+
+        @Override
+        public void run() {
+            Query regionQuery = new Query(query).append(VariantQueryParam.REGION.key(), region);
+            logger.debug("Query : {}", regionQuery.toJson());
+
+            FacetQueryResult.Field field = accumulator.createField();
+            VariantDBIterator iterator = iterable.iterator(
+                    regionQuery,
+                    new QueryOptions()
+                            .append(QueryOptions.INCLUDE, VariantField.ID)
+                            .append(QueryOptions.SORT, true));
+            try {
+                while (iterator.hasNext()) {
+                    Variant variant = iterator.next();
+                    if (first || variant.getStart() >= region.getStart()) {
+                        accumulator.accumulate(field, variant);
+                    }
+                }
+            } finally {
+                try {
+                    iterator.close();
+                } catch (Exception e) {
+                    throw VariantQueryException.internalException(e);
+                }
+            }
+
+            synchronized (target) {
+                accumulator.merge(target, field);
+            }
+        }
+    }
+
+    /**
+     * Accumulates variants into the buckets of a facet field. Buckets are predefined, so fields created by
+     * the same accumulator can be accumulated independently and merged afterwards.
+     */
+    private abstract static class FieldVariantAccumulator {
+        protected final FieldVariantAccumulator nestedFieldAccumulator;
+
+        FieldVariantAccumulator(FieldVariantAccumulator nestedFieldAccumulator) {
+            this.nestedFieldAccumulator = nestedFieldAccumulator;
+        }
+
         /**
          * Get field name.
          * @return Field name
          */
-        String getName();
+        abstract String getName();
 
         /**
          * Prepare (if required) the list of buckets for this field.
-         * @return predefined list of buckets.
+         * @return new Field.
          */
-        default FacetQueryResult.Field createField() {
+        FacetQueryResult.Field createField() {
             return new FacetQueryResult.Field(getName(), 0, prepareBuckets());
         }
 
         /**
-         * Prepare (if required) the list of buckets for this field.
+         * Prepare the list of buckets for this field.
          * @return predefined list of buckets.
          */
-        List<FacetQueryResult.Bucket> prepareBuckets();
+        abstract List<FacetQueryResult.Bucket> prepareBuckets();
 
-        default void cleanEmptyBuckets(FacetQueryResult.Field field) {
-            field.getBuckets().removeIf(bucket -> bucket.getCount() == 0);
+        /**
+         * Get the bucket where a variant should be accumulated.
+         * @param variant Variant
+         * @return Position of the bucket, or -1 if the variant should not be accumulated
+         */
+        abstract int getBucketIndex(Variant variant);
+
+        protected FacetQueryResult.Bucket newBucket(String value) {
+            FacetQueryResult.Bucket bucket = new FacetQueryResult.Bucket(value, 0, null);
+            if (nestedFieldAccumulator != null) {
+                bucket.setFields(Collections.singletonList(nestedFieldAccumulator.createField()));
+            }
+            return bucket;
         }
 
         /**
@@ -224,18 +319,53 @@ public class VariantAggregationExecutor {
          * @param field   Field
          * @param variant Variant
          */
-        void accumulate(FacetQueryResult.Field field, Variant variant);
+        void accumulate(FacetQueryResult.Field field, Variant variant) {
+            int idx = getBucketIndex(variant);
+            if (idx >= 0) {
+                field.addCount(1);
+                FacetQueryResult.Bucket bucket = field.getBuckets().get(idx);
+                bucket.addCount(1);
+                if (nestedFieldAccumulator != null) {
+                    nestedFieldAccumulator.accumulate(bucket.getFields().get(0), variant);
+                }
+            }
+        }
+
+        /**
+         * Merge the counts of a field into another. Both fields must have been created by this accumulator.
+         * @param target Field to be updated
+         * @param source Field to merge
+         */
+        void merge(FacetQueryResult.Field target, FacetQueryResult.Field source) {
+            target.addCount(source.getCount());
+            for (int i = 0; i < target.getBuckets().size(); i++) {
+                FacetQueryResult.Bucket targetBucket = target.getBuckets().get(i);
+                FacetQueryResult.Bucket sourceBucket = source.getBuckets().get(i);
+                targetBucket.addCount(sourceBucket.getCount());
+                if (nestedFieldAccumulator != null) {
+                    nestedFieldAccumulator.merge(targetBucket.getFields().get(0), sourceBucket.getFields().get(0));
+                }
+            }
+        }
+
+        void cleanEmptyBuckets(FacetQueryResult.Field field) {
+            field.getBuckets().removeIf(bucket -> bucket.getCount() == 0);
+            if (nestedFieldAccumulator != null) {
+                for (FacetQueryResult.Bucket bucket : field.getBuckets()) {
+                    nestedFieldAccumulator.cleanEmptyBuckets(bucket.getFields().get(0));
+                }
+            }
+        }
     }
 
-    private final class ChromDensityAccumulator implements FieldVariantAccumulator {
+    private final class ChromDensityAccumulator extends FieldVariantAccumulator {
         private final Region region;
-        private final FieldVariantAccumulator nestedFieldAccumulator;
         private final int step;
         private final int numSteps;
 
         private ChromDensityAccumulator(Region region, FieldVariantAccumulator nestedFieldAccumulator, int step) {
+            super(nestedFieldAccumulator);
             this.region = region;
-            this.nestedFieldAccumulator = nestedFieldAccumulator;
             this.step = step;
 
             if (region.getEnd() == Integer.MAX_VALUE) {
@@ -265,6 +395,24 @@ public class VariantAggregationExecutor {
             numSteps = regionLength / step + 1;
         }
 
+        /**
+         * Split the region into consecutive partitions aligned with the buckets.
+         * @param partitionSize Approximate size of each partition
+         * @return List of partitions
+         */
+        private List<Region> partition(int partitionSize) {
+            if (region.getEnd() == Integer.MAX_VALUE) {
+                // Unknown region length
+                return Collections.singletonList(region);
+            }
+            int size = Math.max(1, partitionSize / step) * step;
+            List<Region> partitions = new ArrayList<>();
+            for (long start = region.getStart(); start <= region.getEnd(); start += size) {
+                partitions.add(new Region(region.getChromosome(), (int) start, (int) Math.min(region.getEnd(), start + size - 1)));
+            }
+            return partitions;
+        }
+
         @Override
         public String getName() {
             return VariantField.START.fieldName();
@@ -283,42 +431,22 @@ public class VariantAggregationExecutor {
         public List<FacetQueryResult.Bucket> prepareBuckets() {
             List<FacetQueryResult.Bucket> valueBuckets = new ArrayList<>(numSteps);
             for (int i = 0; i < numSteps; i++) {
-                FacetQueryResult.Bucket bucket = new FacetQueryResult.Bucket(String.valueOf(i * step + region.getStart()), 0, null);
-                if (nestedFieldAccumulator != null) {
-                    bucket.setFields(Collections.singletonList(nestedFieldAccumulator.createField()));
-                }
-                valueBuckets.add(bucket);
+                valueBuckets.add(newBucket(String.valueOf(i * step + region.getStart())));
             }
             return valueBuckets;
         }
 
         @Override
-        public void accumulate(FacetQueryResult.Field field, Variant variant) {
+        int getBucketIndex(Variant variant) {
             int idx = (variant.getStart() - region.getStart()) / step;
-            if (idx < numSteps) {
-                field.addCount(1);
-                FacetQueryResult.Bucket bucket = field.getBuckets().get(idx);
-                bucket.addCount(1);
-                if (nestedFieldAccumulator != null) {
-                    nestedFieldAccumulator.accumulate(bucket.getFields().get(0), variant);
-                }
-            }
-        }
-
-        @Override
-        public void cleanEmptyBuckets(FacetQueryResult.Field field) {
-            field.getBuckets().removeIf(bucket -> bucket.getCount() == 0);
-            if (nestedFieldAccumulator != null) {
-                for (FacetQueryResult.Bucket bucket : field.getBuckets()) {
-                    nestedFieldAccumulator.cleanEmptyBuckets(bucket.getFields().get(0));
-                }
-            }
+            return idx < numSteps ? Math.max(0, idx) : -1;
         }
     }
 
-    private final class VariantTypeAccumulator implements FieldVariantAccumulator {
+    private static final class VariantTypeAccumulator extends FieldVariantAccumulator {
 
-        private VariantTypeAccumulator() {
+        private VariantTypeAccumulator(FieldVariantAccumulator nestedFieldAccumulator) {
+            super(nestedFieldAccumulator);
             // TODO: Accept subset of variant type
         }
 
@@ -331,15 +459,14 @@ public class VariantAggregationExecutor {
         public List<FacetQueryResult.Bucket> prepareBuckets() {
             List<FacetQueryResult.Bucket> buckets = new ArrayList<>(VariantType.values().length);
             for (VariantType variantType : VariantType.values()) {
-                buckets.add(new FacetQueryResult.Bucket(variantType.name(), 0, null));
+                buckets.add(newBucket(variantType.name()));
             }
             return buckets;
         }
 
         @Override
-        public void accumulate(FacetQueryResult.Field field, Variant variant) {
-            field.addCount(1);
-            field.getBuckets().get(variant.getType().ordinal()).addCount(1);
+        int getBucketIndex(Variant variant) {
+            return variant.getType().ordinal();
         }
     }
 
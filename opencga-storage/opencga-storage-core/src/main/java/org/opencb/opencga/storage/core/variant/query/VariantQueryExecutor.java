@@ -1,6 +1,10 @@
 package org.opencb.opencga.storage.core.variant.query;
 
+import org.apache.commons.lang3.EnumUtils;
+import org.apache.commons.lang3.time.StopWatch;
+import org.apache.commons.lang3.tuple.Pair;
 import org.opencb.biodata.models.variant.Variant;
+import org.opencb.biodata.models.variant.avro.VariantType;
 import org.opencb.commons.datastore.core.ObjectMap;
 import org.opencb.commons.datastore.core.Query;
 import org.opencb.commons.datastore.core.QueryOptions;
@@ -8,14 +12,26 @@ import org.opencb.commons.datastore.core.QueryResult;
 import org.opencb.opencga.core.results.VariantQueryResult;
 import org.opencb.opencga.storage.core.exceptions.StorageEngineException;
 import org.opencb.opencga.storage.core.metadata.VariantStorageMetadataManager;
+import org.opencb.opencga.storage.core.metadata.models.ProjectMetadata;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantIterable;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantQueryException;
+import org.opencb.opencga.storage.core.variant.adaptors.VariantQueryParam;
+import org.opencb.opencga.storage.core.variant.adaptors.VariantQueryUtils.QueryOperation;
 import org.opencb.opencga.storage.core.variant.adaptors.iterators.VariantDBIterator;
+import org.opencb.opencga.storage.core.variant.stats.sketch.CountMinSketch;
+import org.opencb.opencga.storage.core.variant.stats.sketch.VariantSketch;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.opencb.opencga.storage.core.variant.VariantStorageEngine.Options.APPROXIMATE_COUNT;
 import static org.opencb.opencga.storage.core.variant.VariantStorageEngine.Options.DEFAULT_TIMEOUT;
 import static org.opencb.opencga.storage.core.variant.VariantStorageEngine.Options.MAX_TIMEOUT;
-import static org.opencb.opencga.storage.core.variant.adaptors.VariantQueryUtils.addDefaultLimit;
-import static org.opencb.opencga.storage.core.variant.adaptors.VariantQueryUtils.addDefaultSampleLimit;
+import static org.opencb.opencga.storage.core.variant.adaptors.VariantQueryParam.*;
+import static org.opencb.opencga.storage.core.variant.adaptors.VariantQueryUtils.*;
 
 /**
  * Created on 01/04/19.
@@ -83,9 +99,133 @@ public abstract class VariantQueryExecutor implements VariantIterable {
     public abstract QueryResult<Long> count(Query query);
 
     public VariantQueryResult<Long> approximateCount(Query query, QueryOptions options) {
+        if (options != null && options.getBoolean(APPROXIMATE_COUNT.key(), false)) {
+            StopWatch watch = StopWatch.createStarted();
+            Long count = sketchCount(query);
+            if (count != null) {
+                int time = (int) watch.getTime(TimeUnit.MILLISECONDS);
+                return new VariantQueryResult<>("count", time, 1, 1, "", "", Collections.singletonList(count), null,
+                        getStorageEngineId(), true, null, null);
+            }
+        }
         return new VariantQueryResult<>(count(query), null);
     }
 
+    /**
+     * Estimate the number of results of a query using the {@link VariantSketch} from the queried studies.
+     *
+     * Only queries filtering by study, variant type or whole chromosomes can be estimated.
+     *
+     * @param query Query
+     * @return      Estimated count, or null if the query can not be estimated
+     */
+    protected Long sketchCount(Query query) {
+        Set<VariantQueryParam> params = validParams(query, true);
+        params.removeAll(Arrays.asList(STUDY, REGION, TYPE));
+        if (!params.isEmpty()) {
+            return null;
+        }
+        if (isValidParam(query, REGION) && isValidParam(query, TYPE)) {
+            // Sketches per chromosome and per type are independent
+            return null;
+        }
+        if (isValidParam(query, STUDY) && splitValue(query.getString(STUDY.key())).getKey() == QueryOperation.AND) {
+            return null;
+        }
+        VariantSketch sketch = getVariantSketch(query);
+        if (sketch == null) {
+            return null;
+        }
+        if (isValidParam(query, REGION)) {
+            long count = 0;
+            for (String region : splitValue(query.getString(REGION.key()), QueryOperation.OR)) {
+                if (region.contains(":")) {
+                    // Only whole chromosomes
+                    return null;
+                }
+                count += sketch.cardinality(region);
+            }
+            return count;
+        } else if (isValidParam(query, TYPE)) {
+            long count = 0;
+            for (String type : splitValue(query.getString(TYPE.key()), QueryOperation.OR)) {
+                if (isNegated(type) || !EnumUtils.isValidEnum(VariantType.class, type.toUpperCase())) {
+                    // Let the regular count report invalid types
+                    return null;
+                }
+                count += sketch.typeCardinality(VariantType.valueOf(type.toUpperCase()));
+            }
+            return count;
+        } else {
+            return sketch.cardinality();
+        }
+    }
+
+    /**
+     * Get the union of the {@link VariantSketch} from the studies of the query.
+     * If the query does not filter by study, use all the studies.
+     *
+     * @param query Query
+     * @return      Merged VariantSketch, or null if any of the studies does not have sketches
+     */
+    protected VariantSketch getVariantSketch(Query query) {
+        List<Integer> studyIds;
+        if (isValidParam(query, STUDY)) {
+            studyIds = metadataManager.getStudyIds(splitValue(query.getString(STUDY.key())).getValue());
+        } else {
+            studyIds = metadataManager.getStudyIds();
+        }
+        if (studyIds.isEmpty()) {
+            return null;
+        }
+        VariantSketch sketch = new VariantSketch();
+        for (Integer studyId : studyIds) {
+            VariantSketch studySketch = metadataManager.getStudyMetadata(studyId).getVariantSketch();
+            if (studySketch == null || studySketch.isEmpty()) {
+                return null;
+            }
+            sketch.merge(studySketch);
+        }
+        return sketch;
+    }
+
+    /**
+     * Estimate the number of variants matching the consequence type and biotype filters of the query,
+     * using the annotation sketch from the {@link ProjectMetadata}. Other filters are ignored.
+     *
+     * @param query Query
+     * @return      Estimated count, never lower than the real count, or null if it can not be estimated
+     */
+    protected Long estimateAnnotationCount(Query query) {
+        ProjectMetadata projectMetadata = metadataManager.getProjectMetadata();
+        CountMinSketch sketch = projectMetadata == null ? null : projectMetadata.getAnnotationSketch();
+        if (sketch == null || sketch.getTotal() == 0) {
+            return null;
+        }
+        Long count = null;
+        for (VariantQueryParam param : Arrays.asList(ANNOT_CONSEQUENCE_TYPE, ANNOT_BIOTYPE)) {
+            if (!isValidParam(query, param)) {
+                continue;
+            }
+            Pair<QueryOperation, List<String>> pair = splitValue(query.getString(param.key()));
+            for (String value : pair.getValue()) {
+                if (isNegated(value)) {
+                    return null;
+                }
+            }
+            List<String> terms = param == ANNOT_CONSEQUENCE_TYPE ? parseConsequenceTypes(pair.getValue()) : pair.getValue();
+            boolean and = pair.getKey() == QueryOperation.AND;
+            long paramCount = and ? Long.MAX_VALUE : 0;
+            for (String term : terms) {
+                long termCount = sketch.estimateCount(term);
+                paramCount = and ? Math.min(paramCount, termCount) : paramCount + termCount;
+            }
+            // Both filters must match. The lowest estimation is still an upper bound
+            count = count == null ? paramCount : Math.min(count, paramCount);
+        }
+        return count;
+    }
+
     protected abstract Object getOrIterator(Query query, QueryOptions options, boolean iterator) throws StorageEngineException;
 
     protected VariantStorageMetadataManager getMetadataManager() {
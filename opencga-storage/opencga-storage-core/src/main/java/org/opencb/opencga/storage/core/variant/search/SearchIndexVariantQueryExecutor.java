@@ -242,6 +242,9 @@ public class SearchIndexVariantQueryExecutor extends AbstractSearchIndexVariantQ
         } else if (useSearchIndex.equals(VariantStorageEngine.UseSearchIndex.YES)
                 || VariantQueryUtils.isValidParam(query, VariantQueryParam.ANNOT_TRAIT)) {
             intersect = true;
+        } else if (isSelectiveAnnotationFilter(query)) {
+            // Few variants to fetch by id from the search engine
+            intersect = true;
         } else {
             // TODO: Improve this heuristic
             // Count only real params
@@ -262,6 +265,15 @@ public class SearchIndexVariantQueryExecutor extends AbstractSearchIndexVariantQ
         return intersect;
     }
 
+    private boolean isSelectiveAnnotationFilter(Query query) {
+        Long count = estimateAnnotationCount(query);
+        int maxCount = getOptions().getInt(INTERSECT_ANNOTATION_MAX_COUNT.key(), INTERSECT_ANNOTATION_MAX_COUNT.defaultValue());
+        if (count != null) {
+            logger.debug("Estimated {} variants matching the annotation filters", count);
+        }
+        return count != null && count <= maxCount;
+    }
+
     protected Iterator<String> variantIdIteratorFromSearch(Query query) {
         return variantIdIteratorFromSearch(query, Integer.MAX_VALUE, 0, null);
     }
@@ -111,6 +111,9 @@ public abstract class VariantStatisticsManager {
             metadataManager.updateCohortMetadata(studyMetadata.getId(), cohortId,
                     cohort -> cohort.setStatsStatus(status));
         }
+        if (!error) {
+            metadataManager.notifyDataChange(studyMetadata.getId(), "stats");
+        }
     }
 
     public static void checkAndUpdateCalculatedCohorts(
@@ -0,0 +1,141 @@
+package org.opencb.opencga.storage.core.variant.stats.sketch;
+
+/**
+ * Count-min sketch. Estimates the frequency of each term, using a fixed amount of memory.
+ *
+ * Estimations never underestimate the real count. The overestimation is bounded by {@code total * e / width}
+ * with probability {@code 1 - exp(-depth)}. Sketches with the same dimensions can be merged.
+ */
+public class CountMinSketch {
+
+    public static final int DEFAULT_DEPTH = 4;
+    public static final int DEFAULT_WIDTH = 256;
+
+    private int depth;
+    private int width;
+    private long[][] table;
+    private long total;
+
+    public CountMinSketch() {
+        this(DEFAULT_DEPTH, DEFAULT_WIDTH);
+    }
+
+    public CountMinSketch(int depth, int width) {
+        if (depth <= 0 || width <= 0) {
+            throw new IllegalArgumentException("Depth and width must be positive. Got depth=" + depth + ", width=" + width);
+        }
+        this.depth = depth;
+        this.width = width;
+        this.table = new long[depth][width];
+        this.total = 0;
+    }
+
+    public CountMinSketch add(String term) {
+        return add(term, 1);
+    }
+
+    public CountMinSketch add(String term, long count) {
+        long hash = HyperLogLog.hash(term);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < depth; i++) {
+            table[i][Math.floorMod(h1 + i * h2, width)] += count;
+        }
+        total += count;
+        return this;
+    }
+
+    /**
+     * Estimate the number of times that a term was added.
+     *
+     * @param term Term
+     * @return Estimated count. Never lower than the real count.
+     */
+    public long estimateCount(String term) {
+        long hash = HyperLogLog.hash(term);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            min = Math.min(min, table[i][Math.floorMod(h1 + i * h2, width)]);
+        }
+        return min;
+    }
+
+    /**
+     * Estimate the frequency of a term, from 0 to 1.
+     *
+     * @param term Term
+     * @return Estimated frequency, or -1 if the sketch is empty
+     */
+    public double estimateFrequency(String term) {
+        if (total == 0) {
+            return -1;
+        }
+        return ((double) estimateCount(term)) / total;
+    }
+
+    public CountMinSketch merge(CountMinSketch other) {
+        if (other.depth != depth || other.width != width) {
+            throw new IllegalArgumentException("Unable to merge CountMinSketch with different dimensions. "
+                    + depth + "x" + width + " != " + other.depth + "x" + other.width);
+        }
+        for (int i = 0; i < depth; i++) {
+            for (int j = 0; j < width; j++) {
+                table[i][j] += other.table[i][j];
+            }
+        }
+        total += other.total;
+        return this;
+    }
+
+    public CountMinSketch copy() {
+        CountMinSketch copy = new CountMinSketch(depth, width);
+        for (int i = 0; i < depth; i++) {
+            System.arraycopy(table[i], 0, copy.table[i], 0, width);
+        }
+        copy.total = total;
+        return copy;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public CountMinSketch setDepth(int depth) {
+        this.depth = depth;
+        return this;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public CountMinSketch setWidth(int width) {
+        this.width = width;
+        return this;
+    }
+
+    public long[][] getTable() {
+        return table;
+    }
+
+    public CountMinSketch setTable(long[][] table) {
+        this.table = table;
+        return this;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public CountMinSketch setTotal(long total) {
+        this.total = total;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "CountMinSketch{depth=" + depth + ", width=" + width + ", total=" + total + '}';
+    }
+}
@@ -0,0 +1,142 @@
+package org.opencb.opencga.storage.core.variant.stats.sketch;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * HyperLogLog cardinality estimator.
+ *
+ * Estimates the number of distinct elements added, using a fixed amount of memory (2^precision bytes),
+ * with a standard error of about 1.04 / sqrt(2^precision). Sketches with the same precision can be merged.
+ *
+ * Registers are serialized as a base64 string, so the sketch can be stored within the metadata objects.
+ */
+public class HyperLogLog {
+
+    public static final int DEFAULT_PRECISION = 10;
+    public static final int MIN_PRECISION = 4;
+    public static final int MAX_PRECISION = 16;
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    private int precision;
+    private byte[] registers;
+
+    public HyperLogLog() {
+        this(DEFAULT_PRECISION);
+    }
+
+    public HyperLogLog(int precision) {
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+            throw new IllegalArgumentException("Precision must be between " + MIN_PRECISION + " and " + MAX_PRECISION
+                    + ". Got " + precision);
+        }
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    public static long hash(String value) {
+        return HASH_FUNCTION.hashString(value, StandardCharsets.UTF_8).asLong();
+    }
+
+    public HyperLogLog add(String value) {
+        return addHash(hash(value));
+    }
+
+    public HyperLogLog addHash(long hash) {
+        int index = (int) (hash >>> (Long.SIZE - precision));
+        // Ensure at least one bit set, to bound the rank
+        long w = (hash << precision) | (1L << (precision - 1));
+        byte rank = (byte) (Long.numberOfLeadingZeros(w) + 1);
+        if (registers[index] < rank) {
+            registers[index] = rank;
+        }
+        return this;
+    }
+
+    public HyperLogLog merge(HyperLogLog other) {
+        if (other.precision != precision) {
+            throw new IllegalArgumentException("Unable to merge HyperLogLog with different precision. "
+                    + precision + " != " + other.precision);
+        }
+        for (int i = 0; i < registers.length; i++) {
+            if (registers[i] < other.registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Estimate the number of distinct elements added to the sketch.
+     *
+     * @return Estimated cardinality
+     */
+    public long cardinality() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        double estimate = alpha(m) * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) {
+            // Small range correction. Use linear counting
+            estimate = m * Math.log((double) m / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    @JsonIgnore
+    public boolean isEmpty() {
+        for (byte register : registers) {
+            if (register != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static double alpha(int m) {
+        switch (m) {
+            case 16:
+                return 0.673;
+            case 32:
+                return 0.697;
+            case 64:
+                return 0.709;
+            default:
+                return 0.7213 / (1 + 1.079 / m);
+        }
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    public HyperLogLog setPrecision(int precision) {
+        this.precision = precision;
+        return this;
+    }
+
+    public String getRegisters() {
+        return Base64.getEncoder().encodeToString(registers);
+    }
+
+    public HyperLogLog setRegisters(String registers) {
+        this.registers = Base64.getDecoder().decode(registers);
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "HyperLogLog{precision=" + precision + ", cardinality=" + cardinality() + '}';
+    }
+}
@@ -0,0 +1,153 @@
+package org.opencb.opencga.storage.core.variant.stats.sketch;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import org.opencb.biodata.models.variant.Variant;
+import org.opencb.biodata.models.variant.avro.VariantType;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Cardinality sketches of the variants loaded in one study.
+ *
+ * Keeps one {@link HyperLogLog} per chromosome and per variant type, so the number of distinct variants can be
+ * estimated without counting. Sketches are filled during the transform step, and merged into the
+ * {@link org.opencb.opencga.storage.core.metadata.models.StudyMetadata} after each load.
+ *
+ * Removing files does not decrease the sketches, so estimations are upper bounds after a file removal.
+ */
+public class VariantSketch {
+
+    private int precision;
+    private Map<String, HyperLogLog> chromosomes;
+    private Map<String, HyperLogLog> types;
+
+    public VariantSketch() {
+        this(HyperLogLog.DEFAULT_PRECISION);
+    }
+
+    public VariantSketch(int precision) {
+        this.precision = precision;
+        this.chromosomes = new HashMap<>();
+        this.types = new HashMap<>();
+    }
+
+    public static String normalizeChromosome(String chromosome) {
+        if (chromosome.length() > 3 && chromosome.regionMatches(true, 0, "chr", 0, 3)) {
+            return chromosome.substring(3);
+        } else {
+            return chromosome;
+        }
+    }
+
+    public synchronized VariantSketch add(Variant variant) {
+        if (variant.getType() == VariantType.NO_VARIATION) {
+            return this;
+        }
+        String chromosome = normalizeChromosome(variant.getChromosome());
+        String id = variant.toString();
+        if (id.startsWith(variant.getChromosome())) {
+            // Use the normalized chromosome, so "chr1:100:A:C" and "1:100:A:C" are the same variant
+            id = chromosome + id.substring(variant.getChromosome().length());
+        }
+        long hash = HyperLogLog.hash(id);
+        chromosomes.computeIfAbsent(chromosome, k -> new HyperLogLog(precision)).addHash(hash);
+        types.computeIfAbsent(variant.getType().name(), k -> new HyperLogLog(precision)).addHash(hash);
+        return this;
+    }
+
+    public synchronized VariantSketch addAll(Collection<Variant> variants) {
+        for (Variant variant : variants) {
+            add(variant);
+        }
+        return this;
+    }
+
+    public synchronized VariantSketch merge(VariantSketch other) {
+        if (other == null) {
+            return this;
+        }
+        merge(chromosomes, other.chromosomes);
+        merge(types, other.types);
+        return this;
+    }
+
+    private void merge(Map<String, HyperLogLog> target, Map<String, HyperLogLog> source) {
+        for (Map.Entry<String, HyperLogLog> entry : source.entrySet()) {
+            target.computeIfAbsent(entry.getKey(), k -> new HyperLogLog(entry.getValue().getPrecision())).merge(entry.getValue());
+        }
+    }
+
+    /**
+     * Estimate the total number of variants in the study.
+     *
+     * @return Estimated number of variants
+     */
+    public long cardinality() {
+        long count = 0;
+        for (HyperLogLog hll : chromosomes.values()) {
+            count += hll.cardinality();
+        }
+        return count;
+    }
+
+    /**
+     * Estimate the number of variants in one chromosome.
+     *
+     * @param chromosome Chromosome
+     * @return Estimated number of variants, or 0 if there are no variants in the chromosome
+     */
+    public long cardinality(String chromosome) {
+        HyperLogLog hll = chromosomes.get(normalizeChromosome(chromosome));
+        return hll == null ? 0 : hll.cardinality();
+    }
+
+    /**
+     * Estimate the number of variants of one type.
+     *
+     * @param type Variant type
+     * @return Estimated number of variants, or 0 if there are no variants of that type
+     */
+    public long typeCardinality(VariantType type) {
+        HyperLogLog hll = types.get(type.name());
+        return hll == null ? 0 : hll.cardinality();
+    }
+
+    @JsonIgnore
+    public boolean isEmpty() {
+        return chromosomes.isEmpty();
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    public VariantSketch setPrecision(int precision) {
+        this.precision = precision;
+        return this;
+    }
+
+    public Map<String, HyperLogLog> getChromosomes() {
+        return chromosomes;
+    }
+
+    public VariantSketch setChromosomes(Map<String, HyperLogLog> chromosomes) {
+        this.chromosomes = chromosomes;
+        return this;
+    }
+
+    public Map<String, HyperLogLog> getTypes() {
+        return types;
+    }
+
+    public VariantSketch setTypes(Map<String, HyperLogLog> types) {
+        this.types = types;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "VariantSketch{chromosomes=" + chromosomes.keySet() + ", cardinality=" + cardinality() + '}';
+    }
+}
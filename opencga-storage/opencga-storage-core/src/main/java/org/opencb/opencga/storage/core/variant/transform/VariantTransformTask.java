@@ -37,6 +37,7 @@ import org.opencb.biodata.tools.variant.converters.avro.VariantContextToVariantC
 import org.opencb.biodata.tools.variant.stats.VariantSetStatsCalculator;
 import org.opencb.commons.run.Task;
 import org.opencb.opencga.storage.core.variant.io.json.mixin.GenericRecordAvroJsonMixin;
+import org.opencb.opencga.storage.core.variant.stats.sketch.VariantSketch;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -70,6 +71,7 @@ public abstract class VariantTransformTask<T> implements Task<String, T> {
     protected final AtomicLong normTime = new AtomicLong(0);
     protected final List<BiConsumer<String, RuntimeException>> errorHandlers = new ArrayList<>();
     protected boolean failOnError = false;
+    protected VariantSketch variantSketch;
     private VariantStudyMetadata metadata;
 
     public VariantTransformTask(VariantFactory factory,
@@ -178,6 +180,9 @@ public abstract class VariantTransformTask<T> implements Task<String, T> {
             transformedVariants.addAll(normalizedVariants);
         }
 
+        if (variantSketch != null) {
+            variantSketch.addAll(transformedVariants);
+        }
         return encodeVariants(transformedVariants);
     }
 
@@ -247,6 +252,17 @@ public abstract class VariantTransformTask<T> implements Task<String, T> {
         return this;
     }
 
+    /**
+     * Fill the given sketch with all the transformed variants. The sketch may be shared between tasks.
+     *
+     * @param variantSketch Variant sketch
+     * @return this
+     */
+    public VariantTransformTask<T> setVariantSketch(VariantSketch variantSketch) {
+        this.variantSketch = variantSketch;
+        return this;
+    }
+
     public VariantTransformTask<T> configureNormalizer(VariantFileHeader header) {
         normalizer.configure(header);
         return this;
@@ -0,0 +1,187 @@
+package org.opencb.opencga.storage.core.cache;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opencb.commons.datastore.core.ObjectMap;
+import org.opencb.commons.datastore.core.Query;
+import org.opencb.commons.datastore.core.QueryOptions;
+import org.opencb.commons.datastore.core.QueryResult;
+import org.opencb.opencga.storage.core.config.CacheConfiguration;
+import org.opencb.opencga.storage.core.config.StorageConfiguration;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class CacheManagerTest {
+
+    private CacheManager cacheManager;
+    private LocalCacheTier remoteTier;
+
+    @Before
+    public void setUp() throws Exception {
+        // Embedded stand-in for the remote tier
+        remoteTier = new LocalCacheTier("embedded", 1000, 60000);
+        cacheManager = new CacheManager(newConfiguration(), remoteTier);
+    }
+
+    @Test
+    public void testCreateKey() {
+        String key1 = cacheManager.createKey("db", CacheManager.VARIANT_TYPE,
+                new Query("gene", "BRCA2,BRCA1").append("type", ""),
+                new QueryOptions(QueryOptions.LIMIT, 10).append(CacheManager.CACHE, true).append(QueryOptions.TIMEOUT, 1000));
+        String key2 = cacheManager.createKey("db", CacheManager.VARIANT_TYPE,
+                new Query("GENE", Arrays.asList("BRCA1", "BRCA2")),
+                new QueryOptions(QueryOptions.LIMIT, "10"));
+        assertEquals(key1, key2);
+        assertTrue(key1.startsWith("ocga:db:var"));
+
+        // Order of included samples modifies the result
+        String key3 = cacheManager.createKey("db", CacheManager.VARIANT_TYPE, new Query("includeSample", "S1,S2"), null);
+        String key4 = cacheManager.createKey("db", CacheManager.VARIANT_TYPE, new Query("includeSample", "S2,S1"), null);
+        assertNotEquals(key3, key4);
+
+        assertNotEquals(key1, cacheManager.createKey("db2", CacheManager.VARIANT_TYPE,
+                new Query("gene", "BRCA1,BRCA2"), new QueryOptions(QueryOptions.LIMIT, 10)));
+    }
+
+    @Test
+    public void testTwoTiers() {
+        String key = cacheManager.createKey("db", CacheManager.VARIANT_TYPE, new Query("gene", "BRCA2"), new QueryOptions());
+        assertNull(cacheManager.get(key));
+
+        cacheManager.set(key, new Query(), newResult(Arrays.asList(1L, 2L)));
+        assertEquals(Arrays.asList(1L, 2L), cacheManager.<Long>get(key).getResult());
+        assertNotNull(remoteTier.get(key));
+
+        // Local tier is empty. Result is promoted from the remote tier
+        CacheManager other = new CacheManager(newConfiguration(), remoteTier);
+        assertEquals(Arrays.asList(1L, 2L), other.<Long>get(key).getResult());
+
+        List<ObjectMap> metrics = other.getMetrics();
+        assertEquals(2, metrics.size());
+        assertEquals(1, metrics.get(0).getInt("misses"));
+        assertEquals(1, metrics.get(1).getInt("hits"));
+
+        other.get(key);
+        assertEquals(1, other.getMetrics().get(0).getInt("hits"));
+    }
+
+    @Test
+    public void testInvalidate() {
+        String key = cacheManager.createKey("db", CacheManager.VARIANT_TYPE, new Query("gene", "BRCA2"), new QueryOptions());
+        String otherDbKey = cacheManager.createKey("db2", CacheManager.VARIANT_TYPE, new Query("gene", "BRCA2"), new QueryOptions());
+        cacheManager.set(key, new Query(), newResult(Collections.singletonList(1L)));
+        cacheManager.set(otherDbKey, new Query(), newResult(Collections.singletonList(1L)));
+
+        cacheManager.invalidate("db");
+        assertNull(cacheManager.get(key));
+        assertNull(remoteTier.get(key));
+        assertNotNull(cacheManager.get(otherDbKey));
+    }
+
+    @Test
+    public void testInvalidateOtherProcesses() {
+        CacheManager other = new CacheManager(newConfiguration(), remoteTier);
+        String key = cacheManager.createKey("db", CacheManager.VARIANT_TYPE, new Query("gene", "BRCA2"), new QueryOptions());
+        cacheManager.set(key, new Query(), newResult(Collections.singletonList(1L)));
+        // Promote to the local tier of the other process
+        assertNotNull(other.get(key));
+
+        cacheManager.invalidate("db");
+        assertNull(other.get(key));
+        assertEquals(2, other.getMetrics().get(0).getInt("misses"));
+    }
+
+    @Test
+    public void testRetryRemoteTier() throws Exception {
+        AtomicBoolean available = new AtomicBoolean(false);
+        LocalCacheTier failingTier = new LocalCacheTier("failing", 1000, 60000) {
+            @Override
+            public <T> QueryResult<T> get(String key) {
+                check();
+                return super.get(key);
+            }
+
+            @Override
+            public void put(String key, QueryResult<?> queryResult) {
+                check();
+                super.put(key, queryResult);
+            }
+
+            @Override
+            public void invalidate(String keyPrefix) {
+                check();
+                super.invalidate(keyPrefix);
+            }
+
+            @Override
+            public void ping() {
+                check();
+            }
+
+            private void check() {
+                if (!available.get()) {
+                    throw new IllegalStateException("Not available");
+                }
+            }
+        };
+        StorageConfiguration configuration = newConfiguration();
+        configuration.getCache().setRemoteRetryInterval(200);
+        cacheManager = new CacheManager(configuration, failingTier);
+
+        String key = cacheManager.createKey("db", CacheManager.VARIANT_TYPE, new Query("gene", "BRCA2"), new QueryOptions());
+        cacheManager.set(key, new Query(), newResult(Collections.singletonList(1L)));
+        assertEquals(1, cacheManager.getMetrics().get(1).getInt("errors"));
+        assertFalse(cacheManager.getMetrics().get(1).getBoolean("active"));
+        // Local tier still works
+        assertNotNull(cacheManager.get(key));
+
+        // Invalidations are kept until the remote tier is available again
+        available.set(true);
+        failingTier.put(key, newResult(Collections.singletonList(1L)));
+        cacheManager.invalidate("db");
+        assertNotNull(failingTier.get(key));
+
+        Thread.sleep(300);
+        assertTrue(cacheManager.getMetrics().get(1).getBoolean("active"));
+        assertNull(failingTier.get(key));
+        assertNull(cacheManager.get(key));
+
+        cacheManager.set(key, new Query(), newResult(Collections.singletonList(1L)));
+        assertNotNull(failingTier.get(key));
+        assertEquals(1, cacheManager.getMetrics().get(1).getInt("errors"));
+    }
+
+    @Test
+    public void testLargeResultsNotCached() {
+        String key = cacheManager.createKey("db", CacheManager.VARIANT_TYPE, new Query(), new QueryOptions());
+        cacheManager.set(key, new Query(), newResult(Collections.nCopies(101, 1L)));
+        assertNull(cacheManager.get(key));
+    }
+
+    @Test
+    public void testSkipCache() {
+        assertTrue(cacheManager.isActive(CacheManager.VARIANT_TYPE, new QueryOptions()));
+        assertFalse(cacheManager.isActive(CacheManager.VARIANT_TYPE, new QueryOptions(CacheManager.CACHE, false)));
+        assertFalse(cacheManager.isActive("other", new QueryOptions()));
+    }
+
+    private static StorageConfiguration newConfiguration() {
+        StorageConfiguration configuration = new StorageConfiguration();
+        configuration.setCache(new CacheConfiguration()
+                .setActive(true)
+                .setSlowThreshold(0)
+                .setMaxResultSize(100)
+                .setLocalMaxSize(1000)
+                .setTtl(60000));
+        return configuration;
+    }
+
+    private static QueryResult<Long> newResult(List<Long> values) {
+        return new QueryResult<>("", 10, values.size(), values.size(), "", "", values);
+    }
+}
@@ -0,0 +1,61 @@
+package org.opencb.opencga.storage.core.io;
+
+import org.junit.Test;
+import org.opencb.commons.io.DataReader;
+import org.opencb.commons.run.Task;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+public class AsyncTaskDataReaderTest {
+
+    @Test
+    public void testReadBatchSize() {
+        List<Integer> values = IntStream.range(0, 100).boxed().collect(Collectors.toList());
+        Iterator<Integer> iterator = values.iterator();
+        DataReader<Integer> source = batchSize -> {
+            List<Integer> batch = new ArrayList<>(batchSize);
+            while (batch.size() < batchSize && iterator.hasNext()) {
+                batch.add(iterator.next());
+            }
+            return batch;
+        };
+        // Each element of the source produces 3 elements, or none if multiple of 10
+        Task<Integer, Integer> task = batch -> {
+            List<Integer> result = new ArrayList<>();
+            for (Integer value : batch) {
+                if (value % 10 != 0) {
+                    result.addAll(Collections.nCopies(3, value));
+                }
+            }
+            return result;
+        };
+
+        AsyncTaskDataReader<Integer, Integer> reader = new AsyncTaskDataReader<>(source, task, 4, 5);
+        reader.open();
+        reader.pre();
+        List<Integer> read = new ArrayList<>();
+        List<Integer> batch = reader.read(7);
+        while (!batch.isEmpty()) {
+            assertTrue(batch.size() <= 7);
+            read.addAll(batch);
+            batch = reader.read(7);
+        }
+        reader.post();
+        reader.close();
+
+        List<Integer> expected = new ArrayList<>();
+        for (Integer value : values) {
+            if (value % 10 != 0) {
+                expected.addAll(Collections.nCopies(3, value));
+            }
+        }
+        assertEquals(expected, read);
+    }
+}
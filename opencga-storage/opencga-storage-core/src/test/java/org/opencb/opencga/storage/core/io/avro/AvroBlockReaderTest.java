@@ -0,0 +1,82 @@
+package org.opencb.opencga.storage.core.io.avro;
+
+import org.junit.Test;
+import org.opencb.biodata.models.variant.avro.VariantAnnotation;
+import org.opencb.commons.io.DataReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AvroBlockReaderTest {
+
+    @Test
+    public void testReadWriteNull() throws Exception {
+        testReadWrite("null");
+    }
+
+    @Test
+    public void testReadWriteDeflate() throws Exception {
+        testReadWrite("deflate");
+    }
+
+    @Test
+    public void testReadWriteSnappy() throws Exception {
+        testReadWrite("snappy");
+    }
+
+    private void testReadWrite(String codec) throws Exception {
+        List<VariantAnnotation> annotations = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            VariantAnnotation annotation = new VariantAnnotation();
+            annotation.setChromosome("1");
+            annotation.setStart(1000 + i);
+            annotation.setEnd(1000 + i);
+            annotation.setReference("A");
+            annotation.setAlternate("C");
+            annotation.setId("1:" + (1000 + i) + ":A:C");
+            annotation.setConsequenceTypes(Collections.emptyList());
+            annotations.add(annotation);
+        }
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        // Small blocks to force multiple blocks
+        AvroBlockWriter<VariantAnnotation> writer = new AvroBlockWriter<>(VariantAnnotation.getClassSchema(), codec, 4096, os);
+        writer.open();
+        writer.pre();
+        for (int i = 0; i < annotations.size(); i += 1000) {
+            writer.write(annotations.subList(i, i + 1000));
+        }
+        writer.post();
+        writer.close();
+
+        AvroBlockReader blockReader = new AvroBlockReader(new ByteArrayInputStream(os.toByteArray()));
+        blockReader.open();
+        assertEquals(codec, blockReader.getCodec());
+        int numBlocks = 0;
+        for (List<AvroBlockReader.Block> blocks = blockReader.read(10); !blocks.isEmpty(); blocks = blockReader.read(10)) {
+            numBlocks += blocks.size();
+        }
+        blockReader.close();
+        assertTrue(numBlocks > 1);
+
+        DataReader<VariantAnnotation> reader = AvroBlockReader.parallelReader(new ByteArrayInputStream(os.toByteArray()),
+                VariantAnnotation.class, 4);
+        reader.open();
+        reader.pre();
+        List<VariantAnnotation> read = new ArrayList<>();
+        for (List<VariantAnnotation> batch = reader.read(100); !batch.isEmpty(); batch = reader.read(100)) {
+            read.addAll(batch);
+        }
+        reader.post();
+        reader.close();
+
+        // Blocks are returned in order
+        assertEquals(annotations, read);
+    }
+}
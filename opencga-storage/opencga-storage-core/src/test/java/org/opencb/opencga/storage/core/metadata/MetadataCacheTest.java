@@ -0,0 +1,149 @@
+package org.opencb.opencga.storage.core.metadata;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class MetadataCacheTest {
+
+    private AtomicInteger loads;
+
+    @Before
+    public void setUp() throws Exception {
+        loads = new AtomicInteger();
+    }
+
+    private String load(int studyId, Integer id) {
+        loads.incrementAndGet();
+        return studyId + ":" + id;
+    }
+
+    @Test
+    public void testGet() {
+        MetadataCache<Integer, String> cache = new MetadataCache<>(this::load);
+
+        assertEquals("1:10", cache.get(1, 10));
+        assertEquals("1:10", cache.get(1, 10));
+        assertEquals("2:10", cache.get(2, 10));
+        assertEquals(2, loads.get());
+
+        MetadataCache.Stats stats = cache.getStats();
+        assertEquals(1, stats.getHitCount());
+        assertEquals(2, stats.getMissCount());
+        assertEquals(2, stats.getSize());
+    }
+
+    @Test
+    public void testInvalidValue() {
+        MetadataCache<Integer, String> cache = new MetadataCache<>(this::load);
+        cache.put(1, 10, "invalid");
+
+        assertEquals("1:10", cache.get(1, 10, "invalid"));
+        assertEquals("1:10", cache.get(1, 10, "invalid"));
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void testNullValuesNotCached() {
+        MetadataCache<Integer, String> cache = new MetadataCache<>((studyId, id) -> {
+            loads.incrementAndGet();
+            return null;
+        });
+
+        assertNull(cache.get(1, 10));
+        assertNull(cache.get(1, 10));
+        assertEquals(2, loads.get());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testInvalidate() {
+        MetadataCache<Integer, String> cache = new MetadataCache<>(this::load);
+
+        cache.get(1, 10);
+        cache.get(1, 11);
+        cache.get(2, 10);
+        cache.invalidate(1, 10);
+        assertEquals(2, cache.size());
+        assertEquals(2, cache.weight());
+
+        cache.get(1, 10);
+        assertEquals(4, loads.get());
+
+        cache.invalidate(1);
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.weight());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.weight());
+    }
+
+    @Test
+    public void testEviction() {
+        MetadataCache<Integer, String> cache = new MetadataCache<>(this::load, v -> 1, 10, 0);
+
+        for (int i = 0; i < 10; i++) {
+            cache.get(1, i);
+        }
+        assertEquals(10, cache.size());
+        assertEquals(0, cache.getStats().getEvictionCount());
+
+        // Access the first element, so it is not the least recently used
+        cache.get(1, 0);
+        cache.get(1, 10);
+        assertTrue(cache.weight() <= 10);
+        assertTrue(cache.getStats().getEvictionCount() > 0);
+
+        int loadsBefore = loads.get();
+        cache.get(1, 0);
+        assertEquals(loadsBefore, loads.get());
+    }
+
+    @Test
+    public void testWeigher() {
+        MetadataCache<Integer, String> cache = new MetadataCache<>(this::load, String::length, 100, 0);
+
+        cache.get(1, 10);
+        cache.get(1, 100);
+        assertEquals("1:10".length() + "1:100".length(), cache.weight());
+    }
+
+    @Test
+    public void testExpiration() throws InterruptedException {
+        MetadataCache<Integer, String> cache = new MetadataCache<>(this::load, v -> 1, 0, 10);
+
+        cache.get(1, 10);
+        Thread.sleep(50);
+        cache.get(1, 10);
+        assertEquals(2, loads.get());
+        assertEquals(1, cache.getStats().getExpirationCount());
+        assertEquals(1, cache.weight());
+    }
+
+    @Test
+    public void testFailedReloadKeepsWeight() {
+        MetadataCache<Integer, String> cache = new MetadataCache<>((studyId, id) -> {
+            if (loads.incrementAndGet() > 1) {
+                throw new IllegalStateException("Load error");
+            }
+            return studyId + ":" + id;
+        });
+        cache.get(1, 10);
+
+        try {
+            cache.get(1, 10, "1:10");
+            fail("Expected load error");
+        } catch (IllegalStateException e) {
+            assertEquals("Load error", e.getMessage());
+        }
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.weight());
+
+        cache.invalidate(1, 10);
+        assertEquals(0, cache.weight());
+    }
+}
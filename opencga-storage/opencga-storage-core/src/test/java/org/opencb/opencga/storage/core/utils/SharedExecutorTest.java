@@ -0,0 +1,222 @@
+package org.opencb.opencga.storage.core.utils;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+public class SharedExecutorTest {
+
+    @Test
+    public void testRunAll() throws Exception {
+        SharedExecutor executor = new SharedExecutor(4);
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        AtomicInteger count = new AtomicInteger();
+        List<Runnable> tasks = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            tasks.add(() -> {
+                threads.add(Thread.currentThread().getName());
+                count.incrementAndGet();
+            });
+        }
+        executor.runAll(tasks, 2);
+        assertEquals(100, count.get());
+        assertTrue(threads.size() <= 2);
+    }
+
+    @Test
+    public void testRunAllBusyExecutor() throws Exception {
+        SharedExecutor executor = new SharedExecutor(1);
+        CountDownLatch latch = new CountDownLatch(1);
+        Future<?> blocking = executor.getExecutorService().submit(() -> {
+            latch.await();
+            return null;
+        });
+
+        // All the tasks are run by the calling thread
+        AtomicInteger count = new AtomicInteger();
+        List<Runnable> tasks = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            tasks.add(count::incrementAndGet);
+        }
+        executor.runAll(tasks, 4);
+        assertEquals(10, count.get());
+
+        latch.countDown();
+        blocking.get();
+    }
+
+    @Test
+    public void testRunAllFail() throws Exception {
+        SharedExecutor executor = new SharedExecutor(2);
+        AtomicInteger count = new AtomicInteger();
+        List<Runnable> tasks = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            int id = i;
+            tasks.add(() -> {
+                if (id == 10) {
+                    throw new IllegalStateException("Task " + id);
+                }
+                count.incrementAndGet();
+            });
+        }
+        try {
+            executor.runAll(tasks, 1);
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("Task 10", e.getMessage());
+        }
+        // Pending tasks are skipped
+        assertEquals(10, count.get());
+    }
+
+    @Test
+    public void testConvertOrderAndBackpressure() throws Exception {
+        SharedExecutor executor = new SharedExecutor(1, 4, 10, 2);
+        List<Integer> input = IntStream.range(0, 1000).boxed().collect(Collectors.toList());
+        CountingIterator<Integer> inputIterator = new CountingIterator<>(input.iterator());
+
+        try (SharedExecutor.Session session = executor.newSession()) {
+            Iterator<String> iterator = session.convert(inputIterator, String::valueOf);
+            int consumed = 0;
+            while (iterator.hasNext()) {
+                assertEquals(String.valueOf(consumed), iterator.next());
+                consumed++;
+                // Current batch plus at most two pending batches
+                assertTrue(inputIterator.read <= consumed + 3 * 10);
+            }
+            assertEquals(input.size(), consumed);
+        }
+        assertEquals(0, executor.getMetrics().getInt("activeSessions"));
+        assertEquals(1000, executor.getMetrics().getLong("convertedElements"));
+    }
+
+    @Test
+    public void testConvertLimitReadAhead() throws Exception {
+        SharedExecutor executor = new SharedExecutor(1, 4, 50, 8);
+        List<Integer> input = IntStream.range(0, 1000).boxed().collect(Collectors.toList());
+
+        try (SharedExecutor.Session session = executor.newSession()) {
+            CountingIterator<Integer> inputIterator = new CountingIterator<>(input.iterator());
+            Iterator<String> iterator = session.convert(inputIterator, String::valueOf, 10);
+            assertTrue(iterator.hasNext());
+            assertEquals(10, inputIterator.read);
+
+            inputIterator = new CountingIterator<>(input.iterator());
+            iterator = session.convert(inputIterator, String::valueOf, 120);
+            assertTrue(iterator.hasNext());
+            assertTrue(inputIterator.read <= 150);
+
+            // The limit does not stop the conversion
+            int consumed = 0;
+            while (iterator.hasNext()) {
+                assertEquals(String.valueOf(consumed), iterator.next());
+                consumed++;
+            }
+            assertEquals(input.size(), consumed);
+        }
+    }
+
+    @Test
+    public void testConvertFairness() throws Exception {
+        SharedExecutor executor = new SharedExecutor(1, 1, 1, 1);
+        List<String> executed = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch latch = new CountDownLatch(1);
+
+        SharedExecutor.Session sessionA = executor.newSession();
+        SharedExecutor.Session sessionB = executor.newSession();
+        List<Future<String>> futures = new ArrayList<>();
+        futures.add(sessionA.submit(() -> {
+            latch.await();
+            executed.add("A0");
+            return "A0";
+        }));
+        for (int i = 1; i < 10; i++) {
+            String id = "A" + i;
+            futures.add(sessionA.submit(() -> {
+                executed.add(id);
+                return id;
+            }));
+        }
+        Future<String> futureB = sessionB.submit(() -> {
+            executed.add("B0");
+            return "B0";
+        });
+        latch.countDown();
+
+        assertEquals("B0", futureB.get());
+        for (Future<String> future : futures) {
+            future.get();
+        }
+        // B0 does not wait for all the tasks from A
+        assertTrue(executed.toString(), executed.indexOf("B0") <= 2);
+        sessionA.close();
+        sessionB.close();
+    }
+
+    @Test
+    public void testCloseCancelsPendingConversions() throws Exception {
+        SharedExecutor executor = new SharedExecutor(1, 1, 1, 1);
+        CountDownLatch latch = new CountDownLatch(1);
+        SharedExecutor.Session blocking = executor.newSession();
+        Future<Object> running = blocking.submit(() -> {
+            latch.await();
+            return null;
+        });
+
+        SharedExecutor.Session session = executor.newSession();
+        Future<String> pending = session.submit(() -> "never");
+        session.close();
+        latch.countDown();
+        running.get();
+        blocking.close();
+
+        assertTrue(pending.isCancelled());
+        assertEquals(0, executor.getMetrics().getInt("conversionQueueDepth"));
+    }
+
+    @Test
+    public void testBackgroundTaskWaitingForConversion() throws Exception {
+        // A background task waiting for a conversion does not block the conversion
+        SharedExecutor executor = new SharedExecutor(1, 1, 10, 2);
+        try (SharedExecutor.Session session = executor.newSession()) {
+            Future<Integer> future = executor.getExecutorService().submit(() -> {
+                Iterator<String> iterator = session.convert(IntStream.range(0, 100).iterator(), String::valueOf);
+                int count = 0;
+                while (iterator.hasNext()) {
+                    iterator.next();
+                    count++;
+                }
+                return count;
+            });
+            assertEquals(100, future.get().intValue());
+        }
+    }
+
+    private static final class CountingIterator<T> implements Iterator<T> {
+        private final Iterator<T> iterator;
+        private int read = 0;
+
+        private CountingIterator(Iterator<T> iterator) {
+            this.iterator = iterator;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        @Override
+        public T next() {
+            read++;
+            return iterator.next();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package org.opencb.opencga.storage.core.variant;
+
+import org.junit.Test;
+import org.opencb.biodata.models.variant.StudyEntry;
+import org.opencb.biodata.models.variant.Variant;
+import org.opencb.opencga.core.results.VariantQueryResult;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class VariantStorageEngineCacheTest {
+
+    @Test
+    public void testCopyResult() {
+        Variant variant = new Variant("1:1000:A:C");
+        StudyEntry studyEntry = new StudyEntry("s1");
+        studyEntry.setFormatAsString("GT");
+        List<List<String>> samplesData = new ArrayList<>();
+        samplesData.add(new ArrayList<>(Collections.singletonList("0/1")));
+        studyEntry.setSamplesData(samplesData);
+        variant.addStudyEntry(studyEntry);
+        Map<String, List<String>> samples = new HashMap<>();
+        samples.put("s1", new ArrayList<>(Collections.singletonList("S1")));
+        VariantQueryResult<Variant> result = new VariantQueryResult<>("", 100, 1, 1, "", "",
+                new ArrayList<>(Collections.singletonList(variant)), samples, "test");
+
+        VariantQueryResult<Variant> copy = VariantStorageEngine.copyResult(result);
+        assertEquals(result.getResult(), copy.getResult());
+        assertEquals(result.getSamples(), copy.getSamples());
+        assertEquals("test", copy.getSource());
+
+        // Modifications of the copy are not visible in the original result
+        copy.getResult().get(0).getStudy("s1").getSamplesData().get(0).set(0, "1/1");
+        copy.getResult().get(0).setId("rs1");
+        copy.getSamples().get("s1").add("S2");
+        assertEquals("0/1", variant.getStudy("s1").getSamplesData().get(0).get(0));
+        assertNotEquals("rs1", variant.getId());
+        assertEquals(Collections.singletonList("S1"), result.getSamples().get("s1"));
+    }
+}
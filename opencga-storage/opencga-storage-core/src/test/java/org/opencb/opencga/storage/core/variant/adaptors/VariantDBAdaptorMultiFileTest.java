@@ -19,6 +19,7 @@ import org.opencb.opencga.storage.core.metadata.models.StudyMetadata;
 import org.opencb.opencga.storage.core.variant.VariantStorageBaseTest;
 import org.opencb.opencga.storage.core.variant.VariantStorageEngine;
 import org.opencb.opencga.storage.core.variant.adaptors.sample.VariantSampleData;
+import org.opencb.opencga.storage.core.variant.query.VariantAggregationExecutor;
 
 import java.io.IOException;
 import java.net.URI;
@@ -1075,6 +1076,45 @@ public abstract class VariantDBAdaptorMultiFileTest extends VariantStorageBaseTe
 //        System.out.println(JacksonUtils.getDefaultObjectMapper().writerWithDefaultPrettyPrinter().writeValueAsString(facet));
     }
 
+    @Test
+    public void testFacetPartitioned() throws IOException, StorageEngineException {
+        Query query = new Query(STUDY.key(), study1).append(SAMPLE.key(), sampleNA12877);
+        String facetQuery = "chromDensity[1:10000-20000,1:60000-70000]:500>>type";
+
+        FacetQueryResult expected = variantStorageEngine.facet(query, new QueryOptions(QueryOptions.FACET, facetQuery)
+                .append(VariantAggregationExecutor.AGGREGATION_PARALLELISM, 1)
+                .append(VariantAggregationExecutor.AGGREGATION_PARTITION_SIZE, Integer.MAX_VALUE));
+        FacetQueryResult actual = variantStorageEngine.facet(query, new QueryOptions(QueryOptions.FACET, facetQuery)
+                .append(VariantAggregationExecutor.AGGREGATION_PARALLELISM, 4)
+                .append(VariantAggregationExecutor.AGGREGATION_PARTITION_SIZE, 1000));
+
+        assertEquals(expected.getNumMatches(), actual.getNumMatches());
+        assertEquals(expected.getResults().size(), actual.getResults().size());
+        for (int i = 0; i < expected.getResults().size(); i++) {
+            assertFacetFieldEquals(expected.getResults().get(i), actual.getResults().get(i));
+        }
+    }
+
+    private static void assertFacetFieldEquals(FacetQueryResult.Field expected, FacetQueryResult.Field actual) {
+        assertEquals(expected.getName(), actual.getName());
+        assertEquals(expected.getCount(), actual.getCount());
+        assertEquals(expected.getBuckets().size(), actual.getBuckets().size());
+        for (int i = 0; i < expected.getBuckets().size(); i++) {
+            FacetQueryResult.Bucket expectedBucket = expected.getBuckets().get(i);
+            FacetQueryResult.Bucket actualBucket = actual.getBuckets().get(i);
+            assertEquals(expectedBucket.getValue(), actualBucket.getValue());
+            assertEquals(expectedBucket.getCount(), actualBucket.getCount());
+            if (expectedBucket.getFields() == null) {
+                assertNull(actualBucket.getFields());
+            } else {
+                assertEquals(expectedBucket.getFields().size(), actualBucket.getFields().size());
+                for (int j = 0; j < expectedBucket.getFields().size(); j++) {
+                    assertFacetFieldEquals(expectedBucket.getFields().get(j), actualBucket.getFields().get(j));
+                }
+            }
+        }
+    }
+
     @Test
     public void testSampleData() throws Exception {
         VariantSampleData sampleData;
@@ -0,0 +1,108 @@
+package org.opencb.opencga.storage.core.variant.adaptors.iterators;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencb.biodata.models.variant.Variant;
+import org.opencb.commons.datastore.core.Query;
+import org.opencb.commons.datastore.core.QueryOptions;
+import org.opencb.opencga.storage.core.variant.adaptors.VariantQueryParam;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+import static org.opencb.opencga.storage.core.variant.VariantStorageEngine.Options.MULTI_ITERATOR_PIPELINE_QUERIES;
+
+public class MultiVariantDBIteratorTest {
+
+    private ExecutorService executor;
+    private List<Variant> variants;
+    private AtomicInteger queries;
+    private AtomicInteger openIterators;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newFixedThreadPool(4);
+        variants = IntStream.range(0, 2000)
+                .mapToObj(i -> new Variant("1:" + (1000 + i) + ":A:C"))
+                .collect(Collectors.toList());
+        queries = new AtomicInteger();
+        openIterators = new AtomicInteger();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testPipelineSameResults() throws Exception {
+        for (int pipelineQueries : new int[]{1, 2, 5}) {
+            QueryOptions options = new QueryOptions(MULTI_ITERATOR_PIPELINE_QUERIES.key(), pipelineQueries);
+            List<Variant> result = new ArrayList<>();
+            try (MultiVariantDBIterator iterator = newIterator(options)) {
+                iterator.forEachRemaining(result::add);
+            }
+            // Only even variants match
+            List<Variant> expected = IntStream.range(0, variants.size()).filter(i -> i % 2 == 0)
+                    .mapToObj(variants::get).collect(Collectors.toList());
+            assertEquals(expected, result);
+            assertEquals(0, openIterators.get());
+        }
+    }
+
+    @Test
+    public void testPipelineLimitSkip() throws Exception {
+        QueryOptions options = new QueryOptions(MULTI_ITERATOR_PIPELINE_QUERIES.key(), 4)
+                .append(QueryOptions.LIMIT, 300)
+                .append(QueryOptions.SKIP, 50);
+        List<Variant> result = new ArrayList<>();
+        try (MultiVariantDBIterator iterator = newIterator(options)) {
+            iterator.forEachRemaining(result::add);
+            assertEquals(300, iterator.getCount());
+            // Pending queries are cancelled once the limit is reached
+            assertEquals(0, openIterators.get());
+        }
+        assertEquals(300, result.size());
+        assertEquals(variants.get(100), result.get(0));
+        assertEquals(variants.get(698), result.get(299));
+        assertEquals(0, openIterators.get());
+    }
+
+    @Test
+    public void testPipelineSmallLimitSingleQuery() throws Exception {
+        QueryOptions options = new QueryOptions(MULTI_ITERATOR_PIPELINE_QUERIES.key(), 4).append(QueryOptions.LIMIT, 10);
+        try (MultiVariantDBIterator iterator = newIterator(options)) {
+            assertEquals(10, iterator.toQueryResult().getNumResults());
+            assertEquals(1, iterator.getNumQueries());
+        }
+        // The first query is never pipelined
+        assertEquals(1, queries.get());
+    }
+
+    private MultiVariantDBIterator newIterator(QueryOptions options) {
+        BiFunction<Query, QueryOptions, VariantDBIterator> factory = (query, queryOptions) -> {
+            assertFalse(queryOptions.containsKey(MULTI_ITERATOR_PIPELINE_QUERIES.key()));
+            queries.incrementAndGet();
+            List<Variant> ids = query.getAsList(VariantQueryParam.ID.key()).stream().map(o -> (Variant) o).collect(Collectors.toList());
+            List<Variant> result = new ArrayList<>();
+            for (Variant variant : ids) {
+                if (variants.indexOf(variant) % 2 == 0) {
+                    result.add(variant);
+                }
+            }
+            openIterators.incrementAndGet();
+            VariantDBIterator iterator = VariantDBIterator.wrapper(result.iterator());
+            iterator.addCloseable(openIterators::decrementAndGet);
+            return iterator;
+        };
+        return new MultiVariantDBIterator(variants.iterator(), 100, new Query(), options, factory).setExecutor(executor);
+    }
+}
@@ -0,0 +1,165 @@
+package org.opencb.opencga.storage.core.variant.adaptors.iterators;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencb.biodata.models.variant.Variant;
+import org.opencb.opencga.storage.core.variant.adaptors.VariantQueryException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+public class PrefetchVariantDBIteratorTest {
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testIterate() throws Exception {
+        List<Variant> variants = variants(1, 1000);
+        PrefetchVariantDBIterator iterator = new PrefetchVariantDBIterator(VariantDBIterator.wrapper(variants.iterator()), executor, 10);
+
+        List<Variant> result = new ArrayList<>();
+        iterator.forEachRemaining(result::add);
+        assertEquals(variants, result);
+        assertEquals(variants.size(), iterator.getCount());
+        assertFalse(iterator.hasNext());
+    }
+
+    @Test
+    public void testUnionMoreIteratorsThanThreads() throws Exception {
+        // Iterators not started by the executor are read from the calling thread
+        List<VariantDBIterator> iterators = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            iterators.add(new PrefetchVariantDBIterator(VariantDBIterator.wrapper(variants(1 + i, 500).iterator()), executor, 5));
+        }
+        UnionMultiVariantKeyIterator union = new UnionMultiVariantKeyIterator(iterators);
+
+        List<Variant> result = new ArrayList<>();
+        union.forEachRemaining(result::add);
+        assertEquals(variants(1, 504), result);
+    }
+
+    @Test
+    public void testIntersect() throws Exception {
+        List<VariantDBIterator> iterators = Arrays.asList(
+                new PrefetchVariantDBIterator(VariantDBIterator.wrapper(variants(1, 100).iterator()), executor, 5),
+                new PrefetchVariantDBIterator(VariantDBIterator.wrapper(variants(50, 100).iterator()), executor, 5));
+        IntersectMultiVariantKeyIterator intersect = new IntersectMultiVariantKeyIterator(iterators, new ArrayList<>());
+
+        List<Variant> result = new ArrayList<>();
+        intersect.forEachRemaining(result::add);
+        assertEquals(variants(50, 51), result);
+    }
+
+    @Test
+    public void testEarlyClose() throws Exception {
+        AtomicBoolean closed = new AtomicBoolean(false);
+        VariantDBIterator delegated = VariantDBIterator.wrapper(infiniteIterator()).addCloseable(() -> closed.set(true));
+        PrefetchVariantDBIterator iterator = new PrefetchVariantDBIterator(delegated, executor, 10);
+
+        for (int i = 0; i < 20; i++) {
+            assertTrue(iterator.hasNext());
+            assertEquals(i + 1, iterator.next().getStart().intValue());
+        }
+        iterator.close();
+        assertTrue(closed.get());
+    }
+
+    @Test
+    public void testConsumerGone() throws Exception {
+        AtomicBoolean closed = new AtomicBoolean(false);
+        VariantDBIterator delegated = VariantDBIterator.wrapper(infiniteIterator()).addCloseable(() -> closed.set(true));
+        PrefetchVariantDBIterator iterator = new PrefetchVariantDBIterator(() -> delegated, executor, 10, 200);
+
+        // Consumer never reads without closing the iterator. The producer gives up and releases the delegated iterator.
+        for (int i = 0; i < 50 && !closed.get(); i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(closed.get());
+
+        // Prefetched variants are still available
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i + 1, iterator.next().getStart().intValue());
+        }
+        try {
+            iterator.hasNext();
+            fail("Expected exception");
+        } catch (VariantQueryException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        iterator.close();
+    }
+
+    @Test
+    public void testException() throws Exception {
+        Iterator<Variant> failing = new Iterator<Variant>() {
+            private int i = 1;
+
+            @Override
+            public boolean hasNext() {
+                if (i > 5) {
+                    throw new IllegalStateException("Scan failed");
+                }
+                return true;
+            }
+
+            @Override
+            public Variant next() {
+                return new Variant("1", i++, "A", "C");
+            }
+        };
+        PrefetchVariantDBIterator iterator = new PrefetchVariantDBIterator(VariantDBIterator.wrapper(failing), executor, 10);
+        for (int i = 0; i < 5; i++) {
+            iterator.next();
+        }
+        try {
+            iterator.hasNext();
+            fail("Expected exception");
+        } catch (IllegalStateException e) {
+            assertEquals("Scan failed", e.getMessage());
+        }
+        iterator.close();
+    }
+
+    private static Iterator<Variant> infiniteIterator() {
+        return new Iterator<Variant>() {
+            private int i = 1;
+
+            @Override
+            public boolean hasNext() {
+                return true;
+            }
+
+            @Override
+            public Variant next() {
+                return new Variant("1", i++, "A", "C");
+            }
+        };
+    }
+
+    private static List<Variant> variants(int start, int count) {
+        return IntStream.range(start, start + count)
+                .mapToObj(i -> new Variant("1", i, "A", "C"))
+                .collect(Collectors.toList());
+    }
+}
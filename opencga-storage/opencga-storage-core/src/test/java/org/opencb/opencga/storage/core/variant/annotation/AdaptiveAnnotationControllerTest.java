@@ -0,0 +1,160 @@
+package org.opencb.opencga.storage.core.variant.annotation;
+
+import org.junit.Test;
+import org.opencb.biodata.models.variant.Variant;
+import org.opencb.biodata.models.variant.avro.VariantAnnotation;
+import org.opencb.commons.datastore.core.ObjectMap;
+import org.opencb.opencga.storage.core.metadata.models.ProjectMetadata;
+import org.opencb.opencga.storage.core.variant.annotation.annotators.VariantAnnotator;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+public class AdaptiveAnnotationControllerTest {
+
+    @Test
+    public void testIncreaseOnFastResponses() throws Exception {
+        AdaptiveAnnotationController controller = newController(new TestAnnotator(0));
+        for (int i = 0; i < 100; i++) {
+            controller.onSuccess(100, 10);
+        }
+        assertEquals(16, controller.getConcurrency());
+        assertEquals(1000, controller.getBatchSize());
+    }
+
+    @Test
+    public void testDecreaseOnSlowResponsesAndErrors() throws Exception {
+        AdaptiveAnnotationController controller = newController(new TestAnnotator(0));
+        controller.onSuccess(100, 2000);
+        assertEquals(6, controller.getConcurrency());
+        assertEquals(160, controller.getBatchSize());
+
+        controller.onError(100, 10);
+        assertEquals(3, controller.getConcurrency());
+        assertEquals(80, controller.getBatchSize());
+
+        // Timeouts count as errors
+        controller.onSuccess(100, 20000);
+        assertEquals(1, controller.getConcurrency());
+        assertEquals(50, controller.getBatchSize());
+
+        for (int i = 0; i < 10; i++) {
+            controller.onError(100, 10);
+        }
+        // Never below the minimum
+        assertEquals(1, controller.getConcurrency());
+        assertEquals(50, controller.getBatchSize());
+    }
+
+    @Test
+    public void testAnnotateSplitsAndRetries() throws Exception {
+        TestAnnotator annotator = new TestAnnotator(2);
+        AdaptiveAnnotationController controller = newController(annotator);
+        List<Variant> variants = IntStream.range(0, 450).mapToObj(i -> new Variant("1:" + (1000 + i) + ":A:C")).collect(Collectors.toList());
+
+        List<VariantAnnotation> annotations = controller.annotate(variants);
+        assertEquals(variants.size(), annotations.size());
+        for (int i = 0; i < variants.size(); i++) {
+            assertEquals(variants.get(i).getStart(), annotations.get(i).getStart());
+        }
+        assertEquals(2, controller.getErrors());
+        assertTrue(annotator.maxBatchSize.get() <= 200);
+    }
+
+    @Test(expected = VariantAnnotatorException.class)
+    public void testAnnotateFailAfterRetries() throws Exception {
+        newController(new TestAnnotator(10)).annotate(Collections.singletonList(new Variant("1:1000:A:C")));
+    }
+
+    @Test
+    public void testDoNotRetryNonTransientErrors() throws Exception {
+        TestAnnotator annotator = new TestAnnotator(10, false, 0);
+        AdaptiveAnnotationController controller = newController(annotator);
+        try {
+            controller.annotate(Collections.singletonList(new Variant("1:1000:A:C")));
+            fail("Expected VariantAnnotatorException");
+        } catch (VariantAnnotatorException e) {
+            assertEquals("Invalid variant", e.getMessage());
+        }
+        assertEquals(1, controller.getErrors());
+        assertEquals(9, annotator.failures.get());
+    }
+
+    @Test
+    public void testRetryTimeout() throws Exception {
+        TestAnnotator annotator = new TestAnnotator(0, true, 1000);
+        AdaptiveAnnotationController controller = new AdaptiveAnnotationController(annotator, 8, 16, 200, 1000, 10, 50, 1, 1);
+        try {
+            controller.annotate(Collections.singletonList(new Variant("1:1000:A:C")));
+            fail("Expected VariantAnnotatorException");
+        } catch (VariantAnnotatorException e) {
+            assertEquals("Timeout annotating variants", e.getMessage());
+        }
+        assertEquals(2, controller.getErrors());
+        controller.close();
+    }
+
+    private AdaptiveAnnotationController newController(VariantAnnotator annotator) {
+        return new AdaptiveAnnotationController(annotator, 8, 16, 200, 1000, 1000, 10000, 3, 1);
+    }
+
+    private static class TestAnnotator extends VariantAnnotator {
+        private final AtomicInteger failures;
+        private final boolean transientErrors;
+        private final long sleepMs;
+        private final AtomicInteger maxBatchSize = new AtomicInteger();
+
+        TestAnnotator(int failures) throws VariantAnnotatorException {
+            this(failures, true, 0);
+        }
+
+        TestAnnotator(int failures, boolean transientErrors, long sleepMs) throws VariantAnnotatorException {
+            super(null, null, null);
+            this.failures = new AtomicInteger(failures);
+            this.transientErrors = transientErrors;
+            this.sleepMs = sleepMs;
+        }
+
+        @Override
+        public List<VariantAnnotation> annotate(List<Variant> variants) throws VariantAnnotatorException {
+            maxBatchSize.accumulateAndGet(variants.size(), Math::max);
+            if (failures.getAndDecrement() > 0) {
+                if (transientErrors) {
+                    throw new VariantAnnotatorException("Service unavailable", new IOException("Connection refused"));
+                } else {
+                    throw new VariantAnnotatorException("Invalid variant");
+                }
+            }
+            if (sleepMs > 0) {
+                try {
+                    Thread.sleep(sleepMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new VariantAnnotatorException("Interrupted", e);
+                }
+            }
+            return variants.stream().map(v -> {
+                VariantAnnotation annotation = new VariantAnnotation();
+                annotation.setChromosome(v.getChromosome());
+                annotation.setStart(v.getStart());
+                return annotation;
+            }).collect(Collectors.toList());
+        }
+
+        @Override
+        public ProjectMetadata.VariantAnnotatorProgram getVariantAnnotatorProgram() {
+            return null;
+        }
+
+        @Override
+        public List<ObjectMap> getVariantAnnotatorSourceVersion() {
+            return null;
+        }
+    }
+}
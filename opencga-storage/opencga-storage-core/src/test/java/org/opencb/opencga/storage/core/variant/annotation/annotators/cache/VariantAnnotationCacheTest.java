@@ -0,0 +1,192 @@
+package org.opencb.opencga.storage.core.variant.annotation.annotators.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencb.biodata.models.variant.Variant;
+import org.opencb.biodata.models.variant.avro.VariantAnnotation;
+import org.opencb.commons.io.DataReader;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class VariantAnnotationCacheTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+    private Path dir;
+    private VariantAnnotationCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = temporaryFolder.newFolder("cache").toPath();
+        cache = VariantAnnotationCache.open(dir, VariantAnnotationCache.DEFAULT_MAX_SIZE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        cache.close();
+    }
+
+    @Test
+    public void testPutGet() throws Exception {
+        VariantAnnotation annotation = annotation("1:1000:A:C");
+        String key = VariantAnnotationCache.key(new Variant("1:1000:A:C"));
+        assertEquals(key, VariantAnnotationCache.key(annotation));
+
+        assertNull(cache.get(key));
+        cache.put(key, annotation);
+        assertEquals(annotation, cache.get(key));
+        assertNull(cache.get(VariantAnnotationCache.key(new Variant("1:1000:A:T"))));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testSharedInstance() throws Exception {
+        VariantAnnotationCache other = VariantAnnotationCache.open(dir.resolve("."), VariantAnnotationCache.DEFAULT_MAX_SIZE);
+        assertSame(cache, other);
+
+        // Still in use by the first user
+        other.close();
+        String key = VariantAnnotationCache.key(new Variant("1:1000:A:C"));
+        cache.put(key, annotation("1:1000:A:C"));
+        assertNotNull(cache.get(key));
+
+        // Closed by the last user. The directory can be opened again
+        cache.close();
+        cache = VariantAnnotationCache.open(dir, VariantAnnotationCache.DEFAULT_MAX_SIZE);
+        assertNotSame(other, cache);
+        assertNotNull(cache.get(key));
+    }
+
+    @Test
+    public void testStructuralVariantsNotCached() throws Exception {
+        assertNull(VariantAnnotationCache.key(new Variant("1:1000:A:<DEL>")));
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        Map<String, VariantAnnotation> annotations = annotations(1000);
+        cache.putAll(annotations);
+        cache.close();
+
+        cache = VariantAnnotationCache.open(dir, VariantAnnotationCache.DEFAULT_MAX_SIZE);
+        assertEquals(annotations.size(), cache.size());
+        for (Map.Entry<String, VariantAnnotation> entry : annotations.entrySet()) {
+            assertEquals(entry.getValue(), cache.get(entry.getKey()));
+        }
+    }
+
+    @Test
+    public void testReopenIncompleteSegment() throws Exception {
+        Map<String, VariantAnnotation> annotations = annotations(100);
+        cache.putAll(annotations);
+        cache.close();
+
+        // Simulate a partial write of the last record
+        Path segment;
+        try (Stream<Path> stream = Files.list(dir)) {
+            segment = stream.filter(path -> path.getFileName().toString().startsWith("segment-")).findFirst().get();
+        }
+        long size = Files.size(segment);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(size - 5);
+        }
+
+        cache = VariantAnnotationCache.open(dir, VariantAnnotationCache.DEFAULT_MAX_SIZE);
+        assertEquals(annotations.size() - 1, cache.size());
+        int found = 0;
+        for (Map.Entry<String, VariantAnnotation> entry : annotations.entrySet()) {
+            VariantAnnotation annotation = cache.get(entry.getKey());
+            if (annotation != null) {
+                assertEquals(entry.getValue(), annotation);
+                found++;
+            }
+        }
+        assertEquals(annotations.size() - 1, found);
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        cache.close();
+        // Min segment size is 1MB
+        long maxSize = 4 * 1024 * 1024;
+        cache = VariantAnnotationCache.open(dir, maxSize);
+        Map<String, VariantAnnotation> annotations = annotations(100000);
+        cache.putAll(annotations);
+
+        assertTrue(cache.sizeInBytes() <= maxSize + 1024 * 1024);
+        assertTrue(cache.size() < annotations.size());
+        // Newest annotations are kept
+        List<String> keys = new ArrayList<>(annotations.keySet());
+        String last = keys.get(keys.size() - 1);
+        assertEquals(annotations.get(last), cache.get(last));
+        assertNull(cache.get(keys.get(0)));
+    }
+
+    @Test
+    public void testPrefill() throws Exception {
+        assertEquals(2500, cache.prefill("dump_v1", reader(annotations(2500).values())));
+        assertEquals(2500, cache.size());
+        assertNotNull(cache.get(VariantAnnotationCache.key(new Variant("1:1100:A:C"))));
+        long sizeInBytes = cache.sizeInBytes();
+
+        // Same dump is not read again
+        DataReader<VariantAnnotation> unexpectedReader = batchSize -> {
+            throw new AssertionError("Dump read twice");
+        };
+        assertEquals(0, cache.prefill("dump_v1", unexpectedReader));
+
+        // New version of the dump. Only new annotations are added
+        assertEquals(500, cache.prefill("dump_v2", reader(annotations(3000).values())));
+        assertEquals(3000, cache.size());
+        assertTrue(cache.sizeInBytes() < sizeInBytes * 2);
+
+        // Dumps already used are kept after reopening the cache
+        cache.close();
+        cache = VariantAnnotationCache.open(dir, VariantAnnotationCache.DEFAULT_MAX_SIZE);
+        assertEquals(0, cache.prefill("dump_v2", unexpectedReader));
+    }
+
+    private static DataReader<VariantAnnotation> reader(Collection<VariantAnnotation> annotations) {
+        Iterator<VariantAnnotation> iterator = annotations.iterator();
+        return batchSize -> {
+            List<VariantAnnotation> batch = new ArrayList<>(batchSize);
+            while (iterator.hasNext() && batch.size() < batchSize) {
+                batch.add(iterator.next());
+            }
+            return batch;
+        };
+    }
+
+    private static Map<String, VariantAnnotation> annotations(int n) throws IOException {
+        Map<String, VariantAnnotation> annotations = new LinkedHashMap<>();
+        for (int i = 0; i < n; i++) {
+            VariantAnnotation annotation = annotation("1:" + (1000 + i) + ":A:C");
+            annotations.put(VariantAnnotationCache.key(annotation), annotation);
+        }
+        return annotations;
+    }
+
+    private static VariantAnnotation annotation(String variantStr) {
+        Variant variant = new Variant(variantStr);
+        VariantAnnotation annotation = new VariantAnnotation();
+        annotation.setChromosome(variant.getChromosome());
+        annotation.setStart(variant.getStart());
+        annotation.setEnd(variant.getEnd());
+        annotation.setReference(variant.getReference());
+        annotation.setAlternate(variant.getAlternate());
+        annotation.setId(variant.toString());
+        annotation.setConsequenceTypes(Collections.emptyList());
+        return annotation;
+    }
+}
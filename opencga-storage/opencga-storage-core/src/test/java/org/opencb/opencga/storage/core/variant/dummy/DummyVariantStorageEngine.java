@@ -96,6 +96,6 @@ public class DummyVariantStorageEngine extends VariantStorageEngine {
 
     @Override
     public VariantStorageMetadataManager getMetadataManager() throws StorageEngineException {
-        return new VariantStorageMetadataManager(new DummyVariantStorageMetadataDBAdaptorFactory());
+        return registerDataChangeListeners(new VariantStorageMetadataManager(new DummyVariantStorageMetadataDBAdaptorFactory()));
     }
 }
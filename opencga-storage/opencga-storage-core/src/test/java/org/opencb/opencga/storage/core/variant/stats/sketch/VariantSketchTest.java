@@ -0,0 +1,128 @@
+package org.opencb.opencga.storage.core.variant.stats.sketch;
+
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+import org.opencb.biodata.models.variant.Variant;
+import org.opencb.biodata.models.variant.avro.VariantType;
+import org.opencb.opencga.storage.core.metadata.models.ProjectMetadata;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class VariantSketchTest {
+
+    @Test
+    public void testHyperLogLogCardinality() {
+        for (int n : new int[]{0, 10, 500, 10000, 200000}) {
+            HyperLogLog hll = new HyperLogLog(12);
+            for (int i = 0; i < n; i++) {
+                hll.add("v" + i);
+                // Duplicated values do not change the cardinality
+                hll.add("v" + i);
+            }
+            assertEquals(n, hll.cardinality(), Math.max(2, n * 0.08));
+        }
+    }
+
+    @Test
+    public void testHyperLogLogMerge() {
+        HyperLogLog a = new HyperLogLog();
+        HyperLogLog b = new HyperLogLog();
+        for (int i = 0; i < 6000; i++) {
+            a.add("v" + i);
+        }
+        for (int i = 4000; i < 10000; i++) {
+            b.add("v" + i);
+        }
+        a.merge(b);
+        assertEquals(10000, a.cardinality(), 10000 * 0.1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testHyperLogLogMergeDifferentPrecision() {
+        new HyperLogLog(10).merge(new HyperLogLog(12));
+    }
+
+    @Test
+    public void testCountMinSketch() {
+        CountMinSketch sketch = new CountMinSketch();
+        for (int i = 0; i < 1000; i++) {
+            sketch.add("missense_variant");
+            if (i % 10 == 0) {
+                sketch.add("stop_gained");
+            }
+            sketch.add("term_" + i);
+        }
+        assertEquals(2100, sketch.getTotal());
+        // Never underestimates
+        assertTrue(sketch.estimateCount("missense_variant") >= 1000);
+        assertTrue(sketch.estimateCount("stop_gained") >= 100);
+        assertEquals(1000, sketch.estimateCount("missense_variant"), 2100 * Math.E / CountMinSketch.DEFAULT_WIDTH);
+        assertEquals(100, sketch.estimateCount("stop_gained"), 2100 * Math.E / CountMinSketch.DEFAULT_WIDTH);
+
+        CountMinSketch copy = sketch.copy();
+        CountMinSketch other = new CountMinSketch().add("stop_gained", 50);
+        sketch.merge(other);
+        assertTrue(sketch.estimateCount("stop_gained") >= 150);
+        assertEquals(2150, sketch.getTotal());
+
+        // Copies do not share the table
+        assertEquals(2100, copy.getTotal());
+        assertEquals(sketch.estimateCount("stop_gained") - 50, copy.estimateCount("stop_gained"));
+        ProjectMetadata projectMetadata = new ProjectMetadata("hsapiens", "grch37", 1).setAnnotationSketch(sketch);
+        projectMetadata.copy().getAnnotationSketch().add("stop_gained");
+        assertEquals(2150, projectMetadata.getAnnotationSketch().getTotal());
+    }
+
+    @Test
+    public void testVariantSketch() {
+        VariantSketch sketch = new VariantSketch();
+        sketch.addAll(variants("1", 4000, 1000));
+        sketch.addAll(variants("chr2", 2000, 1000));
+        sketch.addAll(variants("2", 2000, 1000)); // Same variants, different chromosome name
+
+        assertEquals(4000, sketch.cardinality("1"), 4000 * 0.1);
+        assertEquals(2000, sketch.cardinality("chr2"), 2000 * 0.1);
+        assertEquals(0, sketch.cardinality("3"));
+        assertEquals(6000, sketch.cardinality(), 6000 * 0.1);
+        assertEquals(6000, sketch.typeCardinality(VariantType.SNV), 6000 * 0.1);
+        assertEquals(0, sketch.typeCardinality(VariantType.INDEL));
+    }
+
+    @Test
+    public void testVariantSketchMerge() {
+        VariantSketch a = new VariantSketch().addAll(variants("1", 3000, 1000));
+        VariantSketch b = new VariantSketch().addAll(variants("1", 3000, 2000)).addAll(variants("X", 500, 1000));
+        a.merge(b).merge(null);
+
+        assertEquals(4000, a.cardinality("1"), 4000 * 0.1);
+        assertEquals(500, a.cardinality("X"), 500 * 0.1);
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        VariantSketch sketch = new VariantSketch().addAll(variants("1", 1000, 1000)).addAll(variants("22", 100, 1000));
+        ObjectMapper objectMapper = new ObjectMapper().configure(MapperFeature.REQUIRE_SETTERS_FOR_GETTERS, true);
+
+        VariantSketch read = objectMapper.readValue(objectMapper.writeValueAsString(sketch), VariantSketch.class);
+        assertEquals(sketch.cardinality(), read.cardinality());
+        assertEquals(sketch.cardinality("22"), read.cardinality("22"));
+        assertEquals(sketch.typeCardinality(VariantType.SNV), read.typeCardinality(VariantType.SNV));
+
+        CountMinSketch cms = new CountMinSketch().add("missense_variant", 10);
+        CountMinSketch readCms = objectMapper.readValue(objectMapper.writeValueAsString(cms), CountMinSketch.class);
+        assertEquals(cms.getTotal(), readCms.getTotal());
+        assertEquals(cms.estimateCount("missense_variant"), readCms.estimateCount("missense_variant"));
+    }
+
+    private static List<Variant> variants(String chromosome, int n, int start) {
+        List<Variant> variants = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            variants.add(new Variant(chromosome + ":" + (start + i * 3) + ":A:C"));
+        }
+        return variants;
+    }
+}
@@ -16,35 +16,41 @@
 
 package org.opencb.opencga.storage.hadoop.utils;
 
-import org.apache.commons.lang3.RandomStringUtils;
 import org.apache.commons.lang3.time.StopWatch;
 import org.apache.hadoop.hbase.client.*;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.opencb.commons.datastore.core.ObjectMap;
+import org.opencb.opencga.storage.core.metadata.models.Locked;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.concurrent.TimeoutException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * Concurrent lock using an HBase cell.
+ * Concurrent lease-based lock using an HBase cell.
  *
- * Basic algorithm:
+ * The lock cell contains the fencing token of the current holder and the expiration date of the lease: "{token}:{expireDate}".
+ * The lock is acquired atomically with a checkAndPut, that only succeeds if the cell was not modified since it was read.
+ * Each acquisition increments the fencing token, which is also written into a second column "{column}_TOKEN".
+ * Writes protected by the lock can be fenced using {@link #checkAndPut}, which is rejected if a newer token was issued.
  *
  * Lock:
- *      String token = Random();
- *      HBase.append(row, column, token);
- *      if (HBase.get(row, column).startsWith(token)) {
- *           // Win the token
- *           return TRUE;
+ *      (token, expireDate) = HBase.get(row, column);
+ *      if (expireDate &lt; now) {
+ *          HBase.checkAndPut(row, column, (token, expireDate), (token + 1, now + duration));
  *      } else {
- *           // Token already taken
- *           return FALSE;
+ *          backoff and retry
  *      }
  *
  * Unlock:
- *      HBase.put(row, column, "");
+ *      HBase.checkAndPut(row, column, (token, expireDate), (token, 0));
+ *
+ * HBase does not notify cell modifications, so waiting threads retry with an exponential backoff with jitter.
+ * Threads from the same process are woken up as soon as a lock is released.
  *
  * Created on 19/05/16.
  *
@@ -55,6 +61,12 @@ public class HBaseLock {
     private static final String LOCK_SEPARATOR = "_";
     private static final String LOCK_EXPIRING_DATE_SEPARATOR = ":";
     private static final String CURRENT_LOCK = "CURRENT-";
+    private static final byte[] TOKEN_COLUMN_SUFFIX = Bytes.toBytes("_TOKEN");
+    private static final long MIN_BACKOFF = 20;
+    private static final long MAX_BACKOFF = 1000;
+    // Process-wide monitor, notified every time a lock is released
+    private static final Object RELEASE_MONITOR = new Object();
+    private static volatile ScheduledExecutorService renewalExecutor;
 
     protected final HBaseManager hbaseManager;
     protected final String tableName;
@@ -62,6 +74,16 @@ public class HBaseLock {
     protected final byte[] defaultRow;
     protected static Logger logger = LoggerFactory.getLogger(HBaseLock.class);
 
+    private final LongAdder acquisitions = new LongAdder();
+    private final LongAdder contendedAcquisitions = new LongAdder();
+    private final LongAdder failedAttempts = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder waitTime = new LongAdder();
+    private final LongAdder renewals = new LongAdder();
+    private final LongAdder lostLeases = new LongAdder();
+    private final LongAdder fencedWrites = new LongAdder();
+    private final LongAdder rejectedWrites = new LongAdder();
+
     public HBaseLock(HBaseManager hbaseManager, String tableName, byte[] columnFamily, byte[] row) {
         this.hbaseManager = hbaseManager;
         this.tableName = tableName;
@@ -95,7 +117,7 @@ public class HBaseLock {
      * @param lockDuration  Duration un milliseconds of the token. After this time the token is expired.
      * @param timeout       Max time in milliseconds to wait for the lock
      *
-     * @return              Lock token
+     * @return              Lock token. Fencing token, greater than any previous token of this lock
      *
      * @throws InterruptedException if any thread has interrupted the current thread.
      * @throws TimeoutException if the operations takes more than the timeout value.
@@ -103,53 +125,80 @@ public class HBaseLock {
      */
     public long lock(byte[] row, byte[] column, long lockDuration, long timeout)
             throws InterruptedException, TimeoutException, IOException {
-        String token = RandomStringUtils.randomAlphanumeric(10);
+        return acquire(row, column, Math.max(lockDuration, 100), timeout).token;
+    }
 
-        // Minimum lock duration of 100ms
-        lockDuration = Math.max(lockDuration, 100);
+    /**
+     * Apply for a lease of the lock. The lease is renewed in background until it is released.
+     * If the process dies, the lease expires after the given duration.
+     *
+     * @param row           Row to find the lock cell
+     * @param column        Column to find the lock cell
+     * @param leaseDuration Duration in milliseconds of the lease. Renewed every half of this time.
+     * @param timeout       Max time in milliseconds to wait for the lock
+     *
+     * @return              Lease
+     *
+     * @throws InterruptedException if any thread has interrupted the current thread.
+     * @throws TimeoutException if the operations takes more than the timeout value.
+     * @throws IOException      if there is an error writing or reading from HBase.
+     */
+    public Lease lease(byte[] row, byte[] column, long leaseDuration, long timeout)
+            throws InterruptedException, TimeoutException, IOException {
+        Lease lease = acquire(row, column, Math.max(leaseDuration, 100), timeout);
+        long period = lease.duration / 2;
+        lease.renewal = getRenewalExecutor().scheduleWithFixedDelay(lease::renew, period, period, TimeUnit.MILLISECONDS);
+        return lease;
+    }
 
-        String[] lockValue;
-        String readToken = "";
+    private Lease acquire(byte[] row, byte[] column, long lockDuration, long timeout)
+            throws InterruptedException, TimeoutException, IOException {
         StopWatch stopWatch = new StopWatch();
         stopWatch.start();
-
-        lockValue = readLockValue(row, column);
-        do {
-            // If the lock is taken, wait
-            while (isLockTaken(lockValue)) {
-                Thread.sleep(100);
-                lockValue = readLockValue(row, column);
-                //Check if the lock is still valid
-                if (stopWatch.getTime() > timeout) {
-                    throw new TimeoutException("Unable to get the lock");
+        long backoff = MIN_BACKOFF;
+        boolean contended = false;
+
+        while (true) {
+            LockValue current = readLockValue(row, column);
+            if (current.isExpired()) {
+                long token = current.token + 1;
+                long expireDate = System.currentTimeMillis() + lockDuration;
+                byte[] value = LockValue.toBytes(token, expireDate);
+                Put put = new Put(row)
+                        .addColumn(columnFamily, column, value)
+                        .addColumn(columnFamily, getTokenColumn(column), Bytes.toBytes(token));
+                if (checkAndPut(row, column, current.value, put)) {
+                    acquisitions.increment();
+                    if (contended) {
+                        contendedAcquisitions.increment();
+                    }
+                    waitTime.add(stopWatch.getTime());
+                    logger.debug("Won the lock with token {}", token);
+                    return new Lease(row, column, token, lockDuration, value, expireDate);
                 }
+                // Someone else took the lock between the read and the write
+                failedAttempts.increment();
             }
-            //Check if the lock is still valid
-            if (stopWatch.getTime() > timeout) {
+            contended = true;
+
+            long remaining = timeout - stopWatch.getTime();
+            if (remaining <= 0) {
+                timeouts.increment();
+                waitTime.add(stopWatch.getTime());
                 throw new TimeoutException("Unable to get the lock");
             }
-
-            // Append token to the lock cell
-            appendToken(token, lockDuration, row, column);
-
-            lockValue = readLockValue(row, column);
-
-            // Get the first non expired lock
-            for (String lock : lockValue) {
-                if (!isLockExpired(lock)) {
-                    readToken = lock.split(LOCK_EXPIRING_DATE_SEPARATOR)[0];
-                    break;
-                }
+            // Equal jitter, to spread the retries from concurrent waiters
+            long sleep = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+            synchronized (RELEASE_MONITOR) {
+                RELEASE_MONITOR.wait(Math.max(1, Math.min(sleep, remaining)));
             }
-
-            // You win the lock if the first available lock is yours.
-        } while (!readToken.equals(token));
-
-        logger.debug("Won the lock with token " + token + " (" + token.hashCode() + ") from lock: " + Arrays.toString(lockValue));
-        // Overwrite the lock with the winner current lock. Remove previous expired locks
-        putCurrentLock(token, lockDuration, row, column);
-
-        return token.hashCode();
+            backoff = Math.min(backoff * 2, MAX_BACKOFF);
+            if (stopWatch.getTime() > timeout) {
+                timeouts.increment();
+                waitTime.add(stopWatch.getTime());
+                throw new TimeoutException("Unable to get the lock");
+            }
+        }
     }
 
     /**
@@ -174,123 +223,249 @@ public class HBaseLock {
      * @throws IllegalLockStatusException if the lockToken does not match with the current lockToken
      */
     public void unlock(byte[] row, byte[] column, long lockToken) throws IOException, IllegalLockStatusException {
-        String[] lockValue;
-        lockValue = readLockValue(row, column);
-
-        String currentLock = "";
-        for (String lock : lockValue) {
-            if (lock.startsWith(CURRENT_LOCK)) {
-                currentLock = lock.replace(CURRENT_LOCK, "").split(LOCK_EXPIRING_DATE_SEPARATOR)[0];
-                break;
+        while (true) {
+            LockValue current = readLockValue(row, column);
+            if (current.token != lockToken) {
+                throw new IllegalLockStatusException(row, column, lockToken, current.toString());
+            }
+            // Keep the token, so the next token is greater.
+            Put put = new Put(row).addColumn(columnFamily, column, LockValue.toBytes(lockToken, 0));
+            if (checkAndPut(row, column, current.value, put)) {
+                logger.debug("Unlock lock with token " + lockToken);
+                synchronized (RELEASE_MONITOR) {
+                    RELEASE_MONITOR.notifyAll();
+                }
+                return;
             }
         }
+    }
 
-        if (currentLock.hashCode() != lockToken) {
-            throw new IllegalLockStatusException(row, column, lockToken, currentLock, lockValue);
+    /**
+     * Write only if the given fencing token is still the last token issued for the lock.
+     * The put must be in the same row as the lock.
+     *
+     * @param row       Row of the lock cell
+     * @param column    Column of the lock cell
+     * @param token     Fencing token
+     * @param put       Put to execute
+     * @return          If the put was executed
+     * @throws IOException  if there is an error writing or reading from HBase.
+     */
+    public boolean checkAndPut(byte[] row, byte[] column, long token, Put put) throws IOException {
+        boolean written = checkAndPut(row, getTokenColumn(column), Bytes.toBytes(token), put);
+        if (written) {
+            fencedWrites.increment();
+        } else {
+            rejectedWrites.increment();
         }
+        return written;
+    }
 
-        logger.debug("Unlock lock with token " + lockToken);
-        clearLock(row, column);
+    public ObjectMap getMetrics() {
+        return new ObjectMap()
+                .append("acquisitions", acquisitions.sum())
+                .append("contendedAcquisitions", contendedAcquisitions.sum())
+                .append("failedAttempts", failedAttempts.sum())
+                .append("timeouts", timeouts.sum())
+                .append("waitTimeMs", waitTime.sum())
+                .append("renewals", renewals.sum())
+                .append("lostLeases", lostLeases.sum())
+                .append("fencedWrites", fencedWrites.sum())
+                .append("rejectedWrites", rejectedWrites.sum());
     }
 
-    private void appendToken(String token, long lockDuration, byte[] row, byte[] qualifier) throws IOException {
-        HBaseManager.act(getConnection(), tableName, table -> {
-            Append a = new Append(row);
-            byte[] columnFamily = getColumnFamily();
-
-            a.add(columnFamily, qualifier,
-                    Bytes.toBytes(
-                            token
-                            + LOCK_EXPIRING_DATE_SEPARATOR
-                            + (System.currentTimeMillis() + lockDuration)
-                            + LOCK_SEPARATOR));
-            table.append(a);
+    private boolean checkAndPut(byte[] row, byte[] column, byte[] expectedValue, Put put) throws IOException {
+        return hbaseManager.act(tableName, table -> {
+            return table.checkAndPut(row, columnFamily, column, expectedValue, put);
         });
     }
 
-    private void putCurrentLock(String token, long lockDuration, byte[] row, byte[] qualifier) throws IOException {
-        HBaseManager.act(getConnection(), tableName, table -> {
-            Put p = new Put(row);
-            byte[] columnFamily = getColumnFamily();
-
-            p.addColumn(columnFamily, qualifier,
-                    Bytes.toBytes(
-                            CURRENT_LOCK
-                            + token
-                            + LOCK_EXPIRING_DATE_SEPARATOR
-                            + (System.currentTimeMillis() + lockDuration)
-                            + LOCK_SEPARATOR));
-            table.put(p);
+    private LockValue readLockValue(byte[] row, byte[] qualifier) throws IOException {
+        byte[] value = hbaseManager.act(tableName, table -> {
+            Result result = table.get(new Get(row).addColumn(columnFamily, qualifier));
+            return result.isEmpty() ? null : result.getValue(columnFamily, qualifier);
         });
+        return LockValue.parse(value);
     }
 
-    private void clearLock(byte[] row, byte[] qualifier) throws IOException {
-        HBaseManager.act(getConnection(), tableName, table -> {
-            Put p = new Put(row);
-            byte[] columnFamily = getColumnFamily();
+    private static byte[] getTokenColumn(byte[] column) {
+        return Bytes.add(column, TOKEN_COLUMN_SUFFIX);
+    }
 
-            p.addColumn(columnFamily, qualifier, Bytes.toBytes(""));
-            table.put(p);
-        });
+    private static ScheduledExecutorService getRenewalExecutor() {
+        if (renewalExecutor == null) {
+            synchronized (HBaseLock.class) {
+                if (renewalExecutor == null) {
+                    AtomicInteger threadCount = new AtomicInteger();
+                    renewalExecutor = Executors.newScheduledThreadPool(1, r -> {
+                        Thread t = new Thread(r, "hbase-lock-renewal-" + threadCount.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    });
+                }
+            }
+        }
+        return renewalExecutor;
     }
 
     /**
-     * A lock is taken if there is any lockValue in the array, and
-     * the token has not expired.
-     *
+     * Lease of a lock, renewed in background.
      *
-     * @param lockValue
-     * @return
+     * The lease is lost if someone else took the lock, or if it expired before being renewed.
+     * Check {@link #isValid()} before writing, or use {@link #checkAndPut} with the lease token.
      */
-    private boolean isLockTaken(String[] lockValue) {
-        for (String lock : lockValue) {
-            if (lock.startsWith(CURRENT_LOCK)) {
-                return !isLockExpired(lock);
-            }
+    public final class Lease implements Locked {
+        private final byte[] row;
+        private final byte[] column;
+        private final long token;
+        private final long duration;
+        private byte[] value;
+        private volatile long expireDate;
+        private volatile boolean released = false;
+        private volatile boolean lost = false;
+        private ScheduledFuture<?> renewal;
+
+        private Lease(byte[] row, byte[] column, long token, long duration, byte[] value, long expireDate) {
+            this.row = row;
+            this.column = column;
+            this.token = token;
+            this.duration = duration;
+            this.value = value;
+            this.expireDate = expireDate;
         }
-        return false;
-    }
 
-    private boolean isLockExpired(String lock) {
-        String[] split = lock.split(LOCK_EXPIRING_DATE_SEPARATOR);
-        long expireDate = Long.parseLong(split[1]);
-        return expireDate < System.currentTimeMillis();
-    }
+        public long getToken() {
+            return token;
+        }
 
-    private String[] readLockValue(byte[] row, byte[] qualifier) throws IOException {
-        String lockValue;
-        lockValue = HBaseManager.act(getConnection(), tableName, table -> {
-            byte[] columnFamily = getColumnFamily();
+        /**
+         * Check if the lease is still held by this process.
+         *
+         * @return false if the lease was released, lost, or expired before being renewed.
+         */
+        public boolean isValid() {
+            return !released && !lost && System.currentTimeMillis() < expireDate;
+        }
 
-            Result result = table.get(new Get(row).addColumn(columnFamily, qualifier));
-            if (result.isEmpty()) {
-                return null;
-            } else {
-                return Bytes.toString(result.getValue(columnFamily, qualifier));
+        /**
+         * Check if the lease is still held by this process.
+         *
+         * @throws IllegalLockStatusException if the lease is not valid
+         */
+        public void checkValid() throws IllegalLockStatusException {
+            if (!isValid()) {
+                throw new IllegalLockStatusException(row, column, token);
             }
-        });
+        }
 
-        if (lockValue == null || lockValue.isEmpty()) {
-            return new String[0];
-        } else {
-            return lockValue.split(LOCK_SEPARATOR);
+        private synchronized void renew() {
+            if (released) {
+                return;
+            }
+            try {
+                long newExpireDate = System.currentTimeMillis() + duration;
+                byte[] newValue = LockValue.toBytes(token, newExpireDate);
+                if (HBaseLock.this.checkAndPut(row, column, value, new Put(row).addColumn(columnFamily, column, newValue))) {
+                    value = newValue;
+                    expireDate = newExpireDate;
+                    renewals.increment();
+                } else {
+                    lost = true;
+                    lostLeases.increment();
+                    logger.warn("Lost lease of lock {} with token {}. Lock metrics: {}", Bytes.toStringBinary(column), token,
+                            getMetrics().toJson());
+                    renewal.cancel(false);
+                }
+            } catch (IOException | RuntimeException e) {
+                // Retry on next renewal. The lease is lost if it expires before a successful renewal.
+                logger.warn("Error renewing lease of lock " + Bytes.toStringBinary(column) + " with token " + token, e);
+            }
         }
-    }
 
-    private byte[] getColumnFamily() {
-        return columnFamily;
+        @Override
+        public void unlock() {
+            synchronized (this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+                if (renewal != null) {
+                    renewal.cancel(false);
+                }
+            }
+            try {
+                HBaseLock.this.unlock(row, column, token);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
     }
 
-    private Connection getConnection() {
-        return hbaseManager.getConnection();
+    /**
+     * Parsed value of the lock cell.
+     */
+    private static final class LockValue {
+        private final byte[] value;
+        private final long token;
+        private final long expireDate;
+
+        private LockValue(byte[] value, long token, long expireDate) {
+            this.value = value;
+            this.token = token;
+            this.expireDate = expireDate;
+        }
+
+        static byte[] toBytes(long token, long expireDate) {
+            return Bytes.toBytes(token + LOCK_EXPIRING_DATE_SEPARATOR + expireDate);
+        }
+
+        static LockValue parse(byte[] value) {
+            if (value == null || value.length == 0) {
+                return new LockValue(null, 0, 0);
+            }
+            String str = Bytes.toString(value);
+            String[] split = str.split(LOCK_EXPIRING_DATE_SEPARATOR);
+            if (split.length == 2 && !str.contains(LOCK_SEPARATOR)) {
+                try {
+                    return new LockValue(value, Long.parseLong(split[0]), Long.parseLong(split[1]));
+                } catch (NumberFormatException ignore) {
+                    // Not a fencing token. Fallback to legacy format
+                }
+            }
+            // Legacy format: "CURRENT-{token}:{expireDate}_{token}:{expireDate}_..."
+            long expireDate = 0;
+            for (String lock : str.split(LOCK_SEPARATOR)) {
+                if (lock.startsWith(CURRENT_LOCK)) {
+                    expireDate = Long.parseLong(lock.split(LOCK_EXPIRING_DATE_SEPARATOR)[1]);
+                    break;
+                }
+            }
+            return new LockValue(value, 0, expireDate);
+        }
+
+        boolean isExpired() {
+            return expireDate < System.currentTimeMillis();
+        }
+
+        @Override
+        public String toString() {
+            return value == null ? "" : Bytes.toString(value);
+        }
     }
 
     public static class IllegalLockStatusException extends IllegalStateException {
-        IllegalLockStatusException(byte[] row, byte[] column, long lockToken, String currentLock, String[] lockValue) {
+        IllegalLockStatusException(byte[] row, byte[] column, long lockToken, String currentLock) {
             super("Inconsistent lock status. You don't have the lock! "
                     + "Row: '" + Bytes.toStringBinary(row) + "', "
                     + "column: '" + Bytes.toStringBinary(column) + "'. "
-                    + lockToken + " != " + currentLock.hashCode() + " from " + Arrays.toString(lockValue));
+                    + lockToken + " != " + currentLock);
+        }
+
+        public IllegalLockStatusException(byte[] row, byte[] column, long lockToken) {
+            super("Lock lost. A newer token was issued. "
+                    + "Row: '" + Bytes.toStringBinary(row) + "', "
+                    + "column: '" + Bytes.toStringBinary(column) + "', "
+                    + "token: " + lockToken);
         }
     }
 }
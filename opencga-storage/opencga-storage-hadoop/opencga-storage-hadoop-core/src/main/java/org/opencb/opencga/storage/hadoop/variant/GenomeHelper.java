@@ -23,6 +23,9 @@ import com.google.protobuf.MessageLite;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.opencb.commons.datastore.core.ObjectMap;
+import org.opencb.opencga.storage.core.utils.SharedExecutor;
+import org.opencb.opencga.storage.core.variant.VariantStorageEngine;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -76,6 +79,28 @@ public class GenomeHelper {
         return conf;
     }
 
+    /**
+     * Get the process-wide {@link SharedExecutor}. If not initialized yet, e.g. in a MapReduce task, it is initialized from the
+     * storage engine options copied into the configuration.
+     *
+     * @param conf  Configuration
+     * @return      Shared executor
+     */
+    public static SharedExecutor getSharedExecutor(Configuration conf) {
+        ObjectMap options = new ObjectMap();
+        for (VariantStorageEngine.Options option : Arrays.asList(
+                VariantStorageEngine.Options.QUERY_EXECUTOR_THREADS,
+                VariantStorageEngine.Options.QUERY_CONVERSION_THREADS,
+                VariantStorageEngine.Options.QUERY_CONVERSION_BATCH_SIZE,
+                VariantStorageEngine.Options.QUERY_CONVERSION_MAX_PENDING_BATCHES)) {
+            String value = conf.get(option.key());
+            if (value != null) {
+                options.put(option.key(), value);
+            }
+        }
+        return SharedExecutor.init(options);
+    }
+
     public static void setChunkSize(Configuration conf, Integer size) {
         conf.setInt(HadoopVariantStorageEngine.ARCHIVE_CHUNK_SIZE, size);
     }
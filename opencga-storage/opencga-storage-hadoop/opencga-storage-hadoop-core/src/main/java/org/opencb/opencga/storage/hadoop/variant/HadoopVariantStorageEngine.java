@@ -20,6 +20,8 @@ import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.CommonConfigurationKeysPublic;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.client.HBaseAdmin;
@@ -32,7 +34,6 @@ import org.opencb.commons.datastore.core.ObjectMap;
 import org.opencb.commons.datastore.core.Query;
 import org.opencb.commons.datastore.core.QueryOptions;
 import org.opencb.commons.datastore.core.QueryResult;
-import org.opencb.opencga.core.common.UriUtils;
 import org.opencb.opencga.storage.core.StoragePipelineResult;
 import org.opencb.opencga.storage.core.config.DatabaseCredentials;
 import org.opencb.opencga.storage.core.config.StorageConfiguration;
@@ -43,11 +44,11 @@ import org.opencb.opencga.storage.core.exceptions.VariantSearchException;
 import org.opencb.opencga.storage.core.io.managers.IOConnectorProvider;
 import org.opencb.opencga.storage.core.metadata.VariantMetadataFactory;
 import org.opencb.opencga.storage.core.metadata.VariantStorageMetadataManager;
+import org.opencb.opencga.storage.core.metadata.models.FileMetadata;
 import org.opencb.opencga.storage.core.metadata.models.StudyMetadata;
 import org.opencb.opencga.storage.core.metadata.models.TaskMetadata;
 import org.opencb.opencga.storage.core.utils.CellBaseUtils;
 import org.opencb.opencga.storage.core.variant.VariantStorageEngine;
-import org.opencb.opencga.storage.core.variant.VariantStoragePipeline;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantDBAdaptor;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantQueryException;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantQueryParam;
@@ -58,6 +59,7 @@ import org.opencb.opencga.storage.core.variant.annotation.VariantAnnotationManag
 import org.opencb.opencga.storage.core.variant.annotation.annotators.VariantAnnotator;
 import org.opencb.opencga.storage.core.variant.io.VariantExporter;
 import org.opencb.opencga.storage.core.variant.query.DBAdaptorVariantQueryExecutor;
+import org.opencb.opencga.storage.core.variant.query.VariantAggregationExecutor;
 import org.opencb.opencga.storage.core.variant.query.VariantQueryExecutor;
 import org.opencb.opencga.storage.core.variant.search.SamplesSearchIndexVariantQueryExecutor;
 import org.opencb.opencga.storage.core.variant.search.SearchIndexVariantQueryExecutor;
@@ -78,9 +80,11 @@ import org.opencb.opencga.storage.hadoop.variant.executors.MRExecutor;
 import org.opencb.opencga.storage.hadoop.variant.executors.MRExecutorFactory;
 import org.opencb.opencga.storage.hadoop.variant.gaps.FillGapsDriver;
 import org.opencb.opencga.storage.hadoop.variant.gaps.FillGapsFromArchiveMapper;
+import org.opencb.opencga.storage.hadoop.variant.gaps.FillMissingDirtyRegions;
 import org.opencb.opencga.storage.hadoop.variant.gaps.PrepareFillMissingDriver;
 import org.opencb.opencga.storage.hadoop.variant.gaps.write.FillMissingHBaseWriterDriver;
 import org.opencb.opencga.storage.hadoop.variant.index.SampleIndexCompoundHeterozygousQueryExecutor;
+import org.opencb.opencga.storage.hadoop.variant.index.SampleIndexVariantAggregationExecutor;
 import org.opencb.opencga.storage.hadoop.variant.index.SampleIndexVariantQueryExecutor;
 import org.opencb.opencga.storage.hadoop.variant.index.annotation.mr.SampleIndexAnnotationLoaderDriver;
 import org.opencb.opencga.storage.hadoop.variant.index.family.FamilyIndexDriver;
@@ -89,6 +93,7 @@ import org.opencb.opencga.storage.hadoop.variant.index.sample.SampleIndexDBAdapt
 import org.opencb.opencga.storage.hadoop.variant.index.sample.SampleIndexDriver;
 import org.opencb.opencga.storage.hadoop.variant.index.sample.SampleIndexSchema;
 import org.opencb.opencga.storage.hadoop.variant.io.HadoopVariantExporter;
+import org.opencb.opencga.storage.hadoop.variant.load.VariantLoadScheduler;
 import org.opencb.opencga.storage.hadoop.variant.search.HadoopVariantSearchLoadListener;
 import org.opencb.opencga.storage.hadoop.variant.stats.HadoopDefaultVariantStatisticsManager;
 import org.opencb.opencga.storage.hadoop.variant.stats.HadoopMRVariantStatisticsManager;
@@ -105,7 +110,6 @@ import java.nio.file.Paths;
 import java.sql.SQLException;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
@@ -143,6 +147,14 @@ public class HadoopVariantStorageEngine extends VariantStorageEngine {
 
     public static final String HADOOP_LOAD_ARCHIVE_BATCH_SIZE = "hadoop.load.archive.batch.size";
     public static final String HADOOP_LOAD_VARIANT_BATCH_SIZE = "hadoop.load.variant.batch.size";
+    // Number of files transformed concurrently while loading multiple files. Defaults to HADOOP_LOAD_ARCHIVE_BATCH_SIZE
+    public static final String HADOOP_LOAD_TRANSFORM_THREADS = "hadoop.load.transform.threads";
+    // Max number of files being transformed or loaded at the same time. 0 to derive it from the available memory
+    public static final String HADOOP_LOAD_MAX_IN_FLIGHT_FILES = "hadoop.load.max.in.flight.files";
+    public static final int DEFAULT_HADOOP_LOAD_MAX_IN_FLIGHT_FILES = 0;
+    // Estimated memory in MB required by each file in flight
+    public static final String HADOOP_LOAD_FILE_MEMORY = "hadoop.load.file.memory";
+    public static final int DEFAULT_HADOOP_LOAD_FILE_MEMORY = 512;
     @Deprecated
     public static final String HADOOP_LOAD_DIRECT = "hadoop.load.direct";
     @Deprecated
@@ -193,6 +205,20 @@ public class HadoopVariantStorageEngine extends VariantStorageEngine {
     public static final String SAMPLE_INDEX_TABLE_COMPRESSION = "opencga.sample-index.table.compression";
     public static final String SAMPLE_INDEX_TABLE_PRESPLIT_SIZE = "opencga.sample-index.table.presplit.size";
     public static final int DEFAULT_SAMPLE_INDEX_TABLE_PRESPLIT_SIZE = 15;
+    // Scan the sample index of multiple samples concurrently, using the shared query executor
+    public static final String SAMPLE_INDEX_QUERY_PARALLEL = "opencga.sample-index.query.parallel";
+    public static final boolean DEFAULT_SAMPLE_INDEX_QUERY_PARALLEL = true;
+    // Number of variants to prefetch from each sample index scan
+    public static final String SAMPLE_INDEX_QUERY_PREFETCH_SIZE = "opencga.sample-index.query.prefetch.size";
+    public static final int DEFAULT_SAMPLE_INDEX_QUERY_PREFETCH_SIZE = 1000;
+    // Build the annotation bitmap of samples per batch, used to discard samples before scanning the sample index
+    public static final String SAMPLE_INDEX_ANNOTATION_BITMAP = "opencga.sample-index.annotation.bitmap";
+    public static final boolean DEFAULT_SAMPLE_INDEX_ANNOTATION_BITMAP = true;
+    // Configurable annotation index schema. See AnnotationIndexSchema for default values
+    public static final String SAMPLE_INDEX_ANNOTATION_CONSEQUENCE_TYPES = "opencga.sample-index.annotation.consequence-types";
+    public static final String SAMPLE_INDEX_ANNOTATION_POPULATIONS = "opencga.sample-index.annotation.populations";
+    public static final String SAMPLE_INDEX_ANNOTATION_POP_FREQ_THRESHOLDS = "opencga.sample-index.annotation.pop-freq.thresholds";
+    public static final String SAMPLE_INDEX_ANNOTATION_CLINICAL_SIGNIFICANCE = "opencga.sample-index.annotation.clinical-significance";
 
     // Annotation index table  configuration
     public static final String ANNOTATION_INDEX_TABLE_COMPRESSION = "opencga.annotation-index.table.compression";
@@ -204,6 +230,8 @@ public class HadoopVariantStorageEngine extends VariantStorageEngine {
 
     public static final String DBADAPTOR_PHOENIX_FETCH_SIZE = "dbadaptor.phoenix.fetch_size";
     public static final String MISSING_GENOTYPES_UPDATED = "missing_genotypes_updated";
+    // Progress of the last fill missing operation. Removed once the operation finishes successfully
+    public static final String FILL_MISSING_PROGRESS = "fill_missing_progress";
     public static final int FILL_GAPS_MAX_SAMPLES = 100;
 
     public static final EnumSet<VariantType> TARGET_VARIANT_TYPE_SET = EnumSet.of(
@@ -257,105 +285,51 @@ public class HadoopVariantStorageEngine extends VariantStorageEngine {
         }
 
         final int nThreadArchive = getOptions().getInt(HADOOP_LOAD_ARCHIVE_BATCH_SIZE, 2);
+        final int nThreadTransform = getOptions().getInt(HADOOP_LOAD_TRANSFORM_THREADS, nThreadArchive);
+        int maxInFlightFiles = getOptions().getInt(HADOOP_LOAD_MAX_IN_FLIGHT_FILES, DEFAULT_HADOOP_LOAD_MAX_IN_FLIGHT_FILES);
+        if (maxInFlightFiles <= 0) {
+            maxInFlightFiles = VariantLoadScheduler.getMaxInFlightFiles(
+                    getOptions().getInt(HADOOP_LOAD_FILE_MEMORY, DEFAULT_HADOOP_LOAD_FILE_MEMORY));
+        }
         ObjectMap extraOptions = new ObjectMap();
 
         final List<StoragePipelineResult> concurrResult = new CopyOnWriteArrayList<>();
-        List<VariantStoragePipeline> etlList = new ArrayList<>();
-        ExecutorService executorService = Executors.newFixedThreadPool(
-                nThreadArchive,
-                r -> {
-                    Thread t = new Thread(r);
-                    t.setDaemon(true);
-                    return t;
-                }); // Set Daemon for quick shutdown !!!
-        LinkedList<Future<StoragePipelineResult>> futures = new LinkedList<>();
-        List<Integer> indexedFiles = new CopyOnWriteArrayList<>();
-        AtomicBoolean continueLoading = new AtomicBoolean(true);
-        for (URI inputFile : inputFiles) {
-            //Provide a connected storageETL if load is required.
-
-            VariantStoragePipeline storageETL = newStoragePipeline(doLoad, new ObjectMap(extraOptions));
-            futures.add(executorService.submit(() -> {
-                if (!continueLoading.get()) {
-                    return null;
-                }
-                try {
-                    Thread.currentThread().setName(UriUtils.fileName(inputFile));
-                    StoragePipelineResult storagePipelineResult = new StoragePipelineResult(inputFile);
-                    URI nextUri = inputFile;
-                    boolean error = false;
-                    if (doTransform) {
-                        try {
-                            nextUri = transformFile(storageETL, storagePipelineResult, concurrResult, nextUri, outdirUri);
-
-                        } catch (StoragePipelineException ignore) {
-                            //Ignore here. Errors are stored in the ETLResult
-                            error = true;
-                        }
-                    }
-
-                    if (doLoad && !error) {
-                        try {
-                            loadFile(storageETL, storagePipelineResult, concurrResult, nextUri, outdirUri);
-                        } catch (StoragePipelineException ignore) {
-                            //Ignore here. Errors are stored in the ETLResult
-                            error = true;
-                        }
-                    }
-                    if (doLoad && !error) {
-                        // Read the VariantSource to get the original fileName (it may be different from the
-                        // nextUri.getFileName if this is the transformed file)
-                        String filePath = storageETL.readVariantFileMetadata(nextUri).getPath();
-                        String fileName = Paths.get(filePath).getFileName().toString();
-                        // Get latest study metadata from DB, might have been changed since
-                        StudyMetadata studyMetadata = storageETL.getStudyMetadata();
-                        // Get file ID for the provided file name
-                        Integer fileId = storageETL.getMetadataManager().getFileId(studyMetadata.getId(), fileName);
-                        indexedFiles.add(fileId);
-                    }
-                    return storagePipelineResult;
-                } finally {
-                    try {
-                        storageETL.close();
-                    } catch (StorageEngineException e) {
-                        logger.error("Issue closing DB connection ", e);
+        String study = getOptions().getString(Options.STUDY.key());
+        VariantLoadScheduler scheduler = new VariantLoadScheduler(nThreadTransform, nThreadArchive, maxInFlightFiles,
+                ioConnectorProvider, outdirUri, inputFile -> {
+                    // Do not trust only the persisted progress. The file must be indexed in the metadata
+                    StudyMetadata sm = getMetadataManager().getStudyMetadata(study);
+                    if (sm == null) {
+                        return false;
                     }
-                }
-            }));
-        }
-
-        executorService.shutdown();
-
-        int errors = 0;
+                    FileMetadata fileMetadata = getMetadataManager().getFileMetadata(sm.getId(), inputFile);
+                    return fileMetadata != null && fileMetadata.isIndexed();
+                }, getOptions().getBoolean(Options.RESUME.key(), Options.RESUME.defaultValue()));
         try {
-            while (!futures.isEmpty()) {
-                // Check values
-                if (futures.peek().isDone() || futures.peek().isCancelled()) {
-                    Future<StoragePipelineResult> first = futures.pop();
-                    StoragePipelineResult result = first.get(1, TimeUnit.MINUTES);
-                    if (result == null) {
-                        continue;
-                    }
-                    boolean error = false;
-                    if (result.getTransformError() != null) {
-                        logger.error("Error transforming file " + result.getInput(), result.getTransformError());
-                        error = true;
-                    } else if (result.getLoadError() != null) {
-                        error = true;
-                        logger.error("Error loading file " + result.getInput(), result.getLoadError());
-                    }
-                    if (error) {
-                        //TODO: Handle errors. Retry?
-                        errors++;
-                        if (getOptions().getBoolean("abortOnError", false)) {
-                            continueLoading.set(false);
-                        }
-                    }
-                    concurrResult.add(result);
-                } else {
-                    // Sleep only if the task is not done
-                    executorService.awaitTermination(1, TimeUnit.MINUTES);
+            List<StoragePipelineResult> results = scheduler.run(inputFiles,
+                    () -> newStoragePipeline(doLoad, new ObjectMap(extraOptions)),
+                    doTransform
+                            ? (storageETL, result, input) -> transformFile(storageETL, result, concurrResult, input, outdirUri)
+                            : null,
+                    (storageETL, result, input) -> {
+                        loadFile(storageETL, result, concurrResult, input, outdirUri);
+                        return input;
+                    },
+                    getOptions().getBoolean("abortOnError", false));
+
+            int errors = 0;
+            for (StoragePipelineResult result : results) {
+                if (result == null) {
+                    continue;
                 }
+                if (result.getTransformError() != null) {
+                    logger.error("Error transforming file " + result.getInput(), result.getTransformError());
+                    errors++;
+                } else if (result.getLoadError() != null) {
+                    logger.error("Error loading file " + result.getInput(), result.getLoadError());
+                    errors++;
+                }
+                concurrResult.add(result);
             }
             if (errors > 0) {
                 throw new StoragePipelineException("Errors found", concurrResult);
@@ -366,21 +340,12 @@ public class HadoopVariantStorageEngine extends VariantStorageEngine {
                 calculateStatsForLoadedFiles(outdirUri, inputFiles, concurrResult, getOptions());
                 searchIndexLoadedFiles(inputFiles, getOptions());
             }
+            scheduler.clearProgress();
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             throw new StoragePipelineException("Interrupted!", e, concurrResult);
-        } catch (ExecutionException e) {
-            throw new StoragePipelineException("Execution exception!", e, concurrResult);
-        } catch (TimeoutException e) {
-            throw new StoragePipelineException("Timeout Exception", e, concurrResult);
-        } finally {
-            if (!executorService.isShutdown()) {
-                try {
-                    executorService.shutdownNow();
-                } catch (Exception e) {
-                    logger.error("Problems shutting executer service down", e);
-                }
-            }
+        } catch (IOException e) {
+            throw new StoragePipelineException("Unable to clear load progress", e, concurrResult);
         }
         return concurrResult;
     }
@@ -589,38 +554,82 @@ public class HadoopVariantStorageEngine extends VariantStorageEngine {
             options.put(FillGapsFromArchiveMapper.FILL_GAPS, fillGaps);
             options.put(FillGapsFromArchiveMapper.OVERWRITE, overwrite);
 
+            // Fill missing over a given region scans the whole region.
+            // Without the prepare step there are no dirty regions, so the whole archive table is scanned.
+            boolean skipPrepare = options.getBoolean("skipPrepareFillMissing", false);
+            boolean incremental = !fillGaps && !skipPrepare && StringUtils.isEmpty(options.getString(REGION.key()))
+                    && options.getBoolean(FILL_MISSING_INCREMENTAL, DEFAULT_FILL_MISSING_INCREMENTAL);
+            ObjectMap progress = getFillMissingProgress(studyId, task);
+            Path dirtyRegionsPath = null;
+            boolean prepared = false;
+            if (incremental) {
+                // Regions with new variants, registered by the prepare step
+                dirtyRegionsPath = new Path(options.getString(FILL_MISSING_INTERMEDIATE_FILE) + ".dirty_regions");
+                if (progress.getBoolean("prepared")) {
+                    if (dirtyRegionsExist(dirtyRegionsPath)) {
+                        prepared = true;
+                    } else {
+                        logger.warn("Dirty regions not found at " + dirtyRegionsPath + ". "
+                                + "Unable to resume " + FILL_MISSING_OPERATION_NAME + " incrementally. Fill the whole archive table");
+                        incremental = false;
+                        dirtyRegionsPath = null;
+                    }
+                }
+            }
+            if (incremental) {
+                options.put(FillMissingDirtyRegions.FILL_MISSING_DIRTY_REGIONS, dirtyRegionsPath.toString());
+            } else {
+                options.remove(FillMissingDirtyRegions.FILL_MISSING_DIRTY_REGIONS);
+            }
+
             String[] args = FillGapsDriver.buildArgs(
                     getArchiveTableName(studyId),
                     getVariantTableName(),
                     studyId, fileIds, options);
 
-            // TODO: Save progress in Metadata
-
             // Prepare fill missing
             if (!fillGaps) {
-                if (options.getBoolean("skipPrepareFillMissing", false)) {
+                if (skipPrepare) {
                     logger.info("=================================================");
                     logger.info("SKIP prepare archive table for " + FILL_MISSING_OPERATION_NAME);
                     logger.info("=================================================");
+                } else if (prepared) {
+                    logger.info("Archive table already prepared for " + FILL_MISSING_OPERATION_NAME + ". Resume fill missing");
                 } else {
                     String taskDescription = "Prepare archive table for " + FILL_MISSING_OPERATION_NAME;
+                    if (incremental) {
+                        deleteDirtyRegions(dirtyRegionsPath);
+                    }
                     getMRExecutor().run(PrepareFillMissingDriver.class, args, options, taskDescription);
+                    if (incremental) {
+                        // Each prepare task writes one file, even if empty
+                        if (!dirtyRegionsExist(dirtyRegionsPath)) {
+                            throw new StorageEngineException("Missing dirty regions at " + dirtyRegionsPath
+                                    + " after preparing the archive table for " + FILL_MISSING_OPERATION_NAME);
+                        }
+                        progress.put("prepared", true);
+                        updateFillMissingProgress(study, progress);
+                    }
                 }
             }
 
-            // Execute main operation
-            String taskDescription = jobOperationName + " of samples " + (fillGaps ? sampleIds.toString() : "\"ALL\"")
-                    + " into variants table '" + getVariantTableName() + '\'';
-            getMRExecutor().run(FillGapsDriver.class, args, options, taskDescription);
-
-            // Write results
-            if (!fillGaps) {
-                taskDescription = "Write results in variants table for " + FILL_MISSING_OPERATION_NAME;
-                getMRExecutor().run(FillMissingHBaseWriterDriver.class, args, options, taskDescription);
+            if (incremental) {
+                fillMissingDirtyRegions(study, studyId, fileIds, options, progress, dirtyRegionsPath);
+            } else {
+                // Execute main operation
+                String taskDescription = jobOperationName + " of samples " + (fillGaps ? sampleIds.toString() : "\"ALL\"")
+                        + " into variants table '" + getVariantTableName() + '\'';
+                getMRExecutor().run(FillGapsDriver.class, args, options, taskDescription);
+
+                // Write results
+                if (!fillGaps) {
+                    taskDescription = "Write results in variants table for " + FILL_MISSING_OPERATION_NAME;
+                    getMRExecutor().run(FillMissingHBaseWriterDriver.class, args, options, taskDescription);
+                }
             }
 
             // Consolidate sample index table
-            taskDescription = "Consolidate sample index table";
+            String taskDescription = "Consolidate sample index table";
             getMRExecutor().run(SampleIndexConsolidationDrive.class, args, options, taskDescription);
 
         } catch (RuntimeException e) {
@@ -636,13 +645,137 @@ public class HadoopVariantStorageEngine extends VariantStorageEngine {
                 if (!fillGaps && StringUtils.isEmpty(options.getString(REGION.key()))) {
                     sm.getAttributes().put(MISSING_GENOTYPES_UPDATED, !fail);
                 }
+                if (!fail) {
+                    // Keep the progress only to resume the failed operation
+                    sm.getAttributes().remove(FILL_MISSING_PROGRESS);
+                }
                 return sm;
             });
+            if (!fail && options.containsKey(FillMissingDirtyRegions.FILL_MISSING_DIRTY_REGIONS)) {
+                try {
+                    deleteDirtyRegions(new Path(options.getString(FillMissingDirtyRegions.FILL_MISSING_DIRTY_REGIONS)));
+                } catch (StorageEngineException e) {
+                    logger.warn(e.getMessage(), e);
+                }
+            }
             Runtime.getRuntime().removeShutdownHook(hook);
         }
 
     }
 
+    /**
+     * Fill missing genotypes only over the regions of the archive table with new variants.
+     *
+     * Chromosomes are grouped in chunks of about {@link FillGapsDriver#FILL_MISSING_MAX_BINS_PER_JOB} dirty bins.
+     * A chromosome is never split, so a chunk with a single chromosome may exceed the limit.
+     * The completed chromosomes are registered in the StudyMetadata, so a failed fill missing resumes from the first
+     * incomplete chunk.
+     *
+     * @param study             Study name
+     * @param studyId           Study id
+     * @param fileIds           Files to fill
+     * @param options           Options
+     * @param progress          Progress of the current fill missing operation
+     * @param dirtyRegionsPath  Dirty regions written by the prepare step
+     * @throws StorageEngineException on error
+     */
+    private void fillMissingDirtyRegions(String study, int studyId, Set<Integer> fileIds, ObjectMap options, ObjectMap progress,
+                                         Path dirtyRegionsPath) throws StorageEngineException {
+        Configuration conf = new Configuration(getHadoopConfiguration(options));
+        FillMissingDirtyRegions dirtyRegions;
+        try {
+            dirtyRegions = FillMissingDirtyRegions.read(conf, dirtyRegionsPath);
+        } catch (IOException e) {
+            throw new StorageEngineException("Unable to read dirty regions from " + dirtyRegionsPath, e);
+        }
+        Set<String> completed = new HashSet<>();
+        if (progress.containsKey("completedChromosomes")) {
+            completed.addAll(progress.getAsStringList("completedChromosomes"));
+        }
+        logger.info("Dirty regions: " + dirtyRegions + ". Chromosomes already completed: " + completed);
+
+        int maxBinsPerJob = options.getInt(FILL_MISSING_MAX_BINS_PER_JOB, DEFAULT_FILL_MISSING_MAX_BINS_PER_JOB);
+        List<List<String>> chunks = new ArrayList<>();
+        List<String> chunk = new ArrayList<>();
+        int chunkBins = 0;
+        for (String chromosome : dirtyRegions.getChromosomes()) {
+            if (completed.contains(chromosome)) {
+                continue;
+            }
+            int bins = dirtyRegions.countBins(chromosome);
+            if (!chunk.isEmpty() && chunkBins + bins > maxBinsPerJob) {
+                chunks.add(chunk);
+                chunk = new ArrayList<>();
+                chunkBins = 0;
+            }
+            chunk.add(chromosome);
+            chunkBins += bins;
+        }
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk);
+        }
+        if (chunks.isEmpty()) {
+            logger.info("Nothing to fill. Skip " + FILL_MISSING_OPERATION_NAME);
+        }
+
+        String intermediateFile = options.getString(FILL_MISSING_INTERMEDIATE_FILE);
+        for (int i = 0; i < chunks.size(); i++) {
+            List<String> chromosomes = chunks.get(i);
+            ObjectMap chunkOptions = new ObjectMap(options);
+            chunkOptions.put(FillMissingDirtyRegions.FILL_MISSING_DIRTY_CHROMOSOMES, String.join(",", chromosomes));
+            chunkOptions.put(FILL_MISSING_INTERMEDIATE_FILE, intermediateFile + "_" + i);
+            String[] args = FillGapsDriver.buildArgs(getArchiveTableName(studyId), getVariantTableName(), studyId, fileIds,
+                    chunkOptions);
+            String chunkDescription = " (" + (i + 1) + "/" + chunks.size() + ") of chromosomes " + chromosomes;
+
+            getMRExecutor().run(FillGapsDriver.class, args, chunkOptions,
+                    FILL_MISSING_OPERATION_NAME + chunkDescription + " into variants table '" + getVariantTableName() + '\'');
+            getMRExecutor().run(FillMissingHBaseWriterDriver.class, args, chunkOptions,
+                    "Write results in variants table for " + FILL_MISSING_OPERATION_NAME + chunkDescription);
+
+            completed.addAll(chromosomes);
+            progress.put("completedChromosomes", new ArrayList<>(completed));
+            updateFillMissingProgress(study, progress);
+        }
+    }
+
+    private ObjectMap getFillMissingProgress(int studyId, TaskMetadata task) {
+        StudyMetadata studyMetadata = getMetadataManager().getStudyMetadata(studyId);
+        Map<String, Object> map = studyMetadata.getAttributes().getMap(FILL_MISSING_PROGRESS);
+        ObjectMap progress = map == null ? new ObjectMap() : new ObjectMap(map);
+        if (progress.getLong("timestamp") != task.getTimestamp()) {
+            // Progress from another operation
+            progress = new ObjectMap("timestamp", task.getTimestamp());
+        }
+        return progress;
+    }
+
+    private void updateFillMissingProgress(String study, ObjectMap progress) throws StorageEngineException {
+        getMetadataManager().updateStudyMetadata(study, sm -> {
+            sm.getAttributes().put(FILL_MISSING_PROGRESS, progress);
+            return sm;
+        });
+    }
+
+    private boolean dirtyRegionsExist(Path dirtyRegionsPath) throws StorageEngineException {
+        try {
+            return FillMissingDirtyRegions.exists(getHadoopConfiguration(), dirtyRegionsPath);
+        } catch (IOException e) {
+            throw new StorageEngineException("Unable to read dirty regions from " + dirtyRegionsPath, e);
+        }
+    }
+
+    private void deleteDirtyRegions(Path dirtyRegionsPath) throws StorageEngineException {
+        try {
+            FileSystem fs = dirtyRegionsPath.getFileSystem(getHadoopConfiguration());
+            if (fs.exists(dirtyRegionsPath)) {
+                fs.delete(dirtyRegionsPath, true);
+            }
+        } catch (IOException e) {
+            throw new StorageEngineException("Unable to delete dirty regions " + dirtyRegionsPath, e);
+        }
+    }
+
     public HadoopVariantStoragePipeline newStoragePipeline(boolean connected, Map<? extends String, ?> extraOptions)
             throws StorageEngineException {
         ObjectMap options = getMergedOptions(extraOptions);
@@ -856,8 +989,10 @@ public class HadoopVariantStorageEngine extends VariantStorageEngine {
                     try {
                         Configuration configuration = getHadoopConfiguration();
                         configuration = VariantHadoopDBAdaptor.getHbaseConfiguration(configuration, credentials);
-                        dbAdaptor.set(new VariantHadoopDBAdaptor(getHBaseManager(configuration), credentials,
-                                this.configuration, configuration, getTableNameGenerator()));
+                        VariantHadoopDBAdaptor newDBAdaptor = new VariantHadoopDBAdaptor(getHBaseManager(configuration), credentials,
+                                this.configuration, configuration, getTableNameGenerator());
+                        registerDataChangeListeners(newDBAdaptor.getMetadataManager());
+                        dbAdaptor.set(newDBAdaptor);
                     } catch (IOException e) {
                         throw new StorageEngineException("Error creating DB Adapter", e);
                     }
@@ -1013,6 +1148,12 @@ public class HadoopVariantStorageEngine extends VariantStorageEngine {
         return executors;
     }
 
+    @Override
+    protected VariantAggregationExecutor getVariantAggregationExecutor() throws StorageEngineException {
+        return new SampleIndexVariantAggregationExecutor(
+                getVariantSearchManager(), dbName, this, getMetadataManager(), getSampleIndexDBAdaptor());
+    }
+
     private Configuration getHadoopConfiguration() throws StorageEngineException {
         return getHadoopConfiguration(getOptions());
     }
@@ -191,10 +191,12 @@ public abstract class HadoopVariantStoragePipeline extends VariantStoragePipelin
             Supplier<Task<ImmutablePair<Long, List<Variant>>, VcfSliceProtos.VcfSlice>> supplier =
                     () -> ((Task<ImmutablePair<Long, List<Variant>>, ImmutablePair<Long, List<Variant>>>) ((batch) -> {
                         for (ImmutablePair<Long, List<Variant>> pair : batch) {
-                            statsCalculator.apply(pair.getRight()
+                            List<Variant> variants = pair.getRight()
                                     .stream()
                                     .filter(variant -> variant.getStart() >= pair.getKey())
-                                    .collect(Collectors.toList()));
+                                    .collect(Collectors.toList());
+                            statsCalculator.apply(variants);
+                            transformSketch.addAll(variants);
                         }
                         return batch;
                     })).then(new VariantToVcfSliceConverterTask(progressLogger));
@@ -236,6 +238,7 @@ public abstract class HadoopVariantStoragePipeline extends VariantStoragePipelin
                 while (!read.isEmpty()) {
                     progressLogger.increment(read.size());
                     statsCalculator.apply(read);
+                    transformSketch.addAll(read);
                     List<VcfSliceProtos.VcfSlice> slices = transformTask.apply(read);
                     t[1] += System.nanoTime() - last;
                     last = System.nanoTime();
@@ -335,36 +335,44 @@ public class VariantHBaseQueryParser {
         }
 
         if (selectElements.getFields().contains(VariantField.STUDIES)) {
+            // Same projection as the Phoenix query. Only read the columns of the returned fields.
             for (Integer studyId : selectElements.getStudies()) {
                 scan.addColumn(family, VariantPhoenixHelper.getStudyColumn(studyId).bytes());
                 scan.addColumn(family, VariantPhoenixHelper.getFillMissingColumn(studyId).bytes());
             }
 
-            for (Map.Entry<Integer, List<Integer>> entry : selectElements.getCohorts().entrySet()) {
-                Integer studyId = entry.getKey();
-                for (Integer cohortId : entry.getValue()) {
-                    scan.addColumn(family,
-                            VariantPhoenixHelper.getStatsColumn(studyId, cohortId).bytes());
+            if (selectElements.getFields().contains(VariantField.STUDIES_STATS)) {
+                for (Map.Entry<Integer, List<Integer>> entry : selectElements.getCohorts().entrySet()) {
+                    Integer studyId = entry.getKey();
+                    for (Integer cohortId : entry.getValue()) {
+                        scan.addColumn(family,
+                                VariantPhoenixHelper.getStatsColumn(studyId, cohortId).bytes());
+                    }
                 }
             }
 
-            selectElements.getSamples().forEach((studyId, sampleIds) -> {
-                scan.addColumn(family, VariantPhoenixHelper.getStudyColumn(studyId).bytes());
-                for (Integer sampleId : sampleIds) {
-                    scan.addColumn(family, buildSampleColumnKey(studyId, sampleId));
-                }
-                Set<Integer> fileIds = metadataManager.getFileIdsFromSampleIds(studyId, sampleIds);
-                for (Integer fileId : fileIds) {
-                    scan.addColumn(family, buildFileColumnKey(studyId, fileId));
-                }
-            });
+            if (selectElements.getFields().contains(VariantField.STUDIES_SAMPLES_DATA)) {
+                selectElements.getSamples().forEach((studyId, sampleIds) -> {
+                    scan.addColumn(family, VariantPhoenixHelper.getStudyColumn(studyId).bytes());
+                    for (Integer sampleId : sampleIds) {
+                        scan.addColumn(family, buildSampleColumnKey(studyId, sampleId));
+                    }
+                    // Files from the returned samples are required to build the secondary alternates
+                    Set<Integer> fileIds = metadataManager.getFileIdsFromSampleIds(studyId, sampleIds);
+                    for (Integer fileId : fileIds) {
+                        scan.addColumn(family, buildFileColumnKey(studyId, fileId));
+                    }
+                });
+            }
 
-            selectElements.getFiles().forEach((studyId, fileIds) -> {
-                scan.addColumn(family, VariantPhoenixHelper.getStudyColumn(studyId).bytes());
-                for (Integer fileId : fileIds) {
-                    scan.addColumn(family, VariantPhoenixHelper.buildFileColumnKey(studyId, fileId));
-                }
-            });
+            if (selectElements.getFields().contains(VariantField.STUDIES_FILES)) {
+                selectElements.getFiles().forEach((studyId, fileIds) -> {
+                    scan.addColumn(family, VariantPhoenixHelper.getStudyColumn(studyId).bytes());
+                    for (Integer fileId : fileIds) {
+                        scan.addColumn(family, VariantPhoenixHelper.buildFileColumnKey(studyId, fileId));
+                    }
+                });
+            }
         }
 
         // If we already add a filter that requires a sample from a certain study, we can skip latter the filter for that study
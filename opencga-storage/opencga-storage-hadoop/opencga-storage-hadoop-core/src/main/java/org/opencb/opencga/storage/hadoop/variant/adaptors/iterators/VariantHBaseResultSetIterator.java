@@ -20,6 +20,7 @@ import org.opencb.biodata.models.variant.Variant;
 import org.opencb.commons.datastore.core.Query;
 import org.opencb.commons.datastore.core.QueryOptions;
 import org.opencb.opencga.storage.core.metadata.VariantStorageMetadataManager;
+import org.opencb.opencga.storage.core.utils.SharedExecutor;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantQueryFields;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantQueryUtils;
 import org.opencb.opencga.storage.core.variant.adaptors.iterators.VariantDBIterator;
@@ -34,6 +35,9 @@ import java.sql.Statement;
 import java.util.List;
 
 /**
+ * The converter reads the current row of the ResultSet, so the variants are converted by the calling thread.
+ * The conversion time is reported to the {@link SharedExecutor}.
+ *
  * Created on 16/12/15.
  *
  * @author Jacobo Coll &lt;jacobo167@gmail.com&gt;
@@ -45,6 +49,7 @@ public class VariantHBaseResultSetIterator extends VariantDBIterator {
     private final GenomeHelper genomeHelper;
     private final VariantStorageMetadataManager scm;
     private final HBaseToVariantConverter<ResultSet> converter;
+    private final SharedExecutor conversionExecutor;
     private final Logger logger = LoggerFactory.getLogger(VariantHBaseResultSetIterator.class);
 
     private boolean hasNext = false;
@@ -70,6 +75,7 @@ public class VariantHBaseResultSetIterator extends VariantDBIterator {
                 .setSimpleGenotypes(options.getBoolean(HBaseToVariantConverter.SIMPLE_GENOTYPES, true))
                 .setIncludeIndexStatus(query.getBoolean(VariantQueryUtils.VARIANTS_TO_INDEX.key(), false))
                 .setFormats(formats);
+        conversionExecutor = GenomeHelper.getSharedExecutor(genomeHelper.getConf());
         hasNext = fetch(resultSet::next);
     }
 
@@ -84,6 +90,7 @@ public class VariantHBaseResultSetIterator extends VariantDBIterator {
     @Override
     public void close() throws Exception {
         super.close();
+        conversionExecutor.reportConversion(count, getTimeConverting());
         logger.debug("Close variant iterator. Fetch = {}ms, Convert = {}ms",
                 getTimeFetching() / 1000000.0, getTimeConverting() / 1000000.0);
         resultSet.close();
@@ -16,12 +16,15 @@
 
 package org.opencb.opencga.storage.hadoop.variant.adaptors.iterators;
 
+import com.google.common.collect.Iterators;
+import org.apache.hadoop.hbase.Cell;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
 import org.opencb.biodata.models.variant.Variant;
 import org.opencb.commons.datastore.core.Query;
 import org.opencb.commons.datastore.core.QueryOptions;
 import org.opencb.opencga.storage.core.metadata.VariantStorageMetadataManager;
+import org.opencb.opencga.storage.core.utils.SharedExecutor;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantQueryFields;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantQueryUtils;
 import org.opencb.opencga.storage.core.variant.adaptors.iterators.VariantDBIterator;
@@ -32,13 +35,10 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * Results are read by the calling thread, and converted in background by the {@link SharedExecutor}.
+ *
  * Created on 23/11/15.
  *
  * @author Jacobo Coll &lt;jacobo167@gmail.com&gt;
@@ -49,12 +49,13 @@ public class VariantHBaseScanIterator extends VariantDBIterator {
     private final Iterator<ResultScanner> resultScanners;
     private ResultScanner currentResultScanner;
     private Iterator<Result> resultIterator;
-    private Iterator<Future<Variant>> buffer = Collections.emptyIterator();
+    private final Iterator<Result> results;
+    private Iterator<Variant> variants;
     private final HBaseToVariantConverter<Result> converter;
+    private final SharedExecutor.Session session;
     private long limit = Long.MAX_VALUE;
     private int count = 0;
-    private ExecutorService threadPool;
-    private AtomicLong timeConverting = new AtomicLong();
+    private long bytesRead = 0;
 
     public VariantHBaseScanIterator(Iterator<ResultScanner> resultScanners, GenomeHelper genomeHelper, VariantStorageMetadataManager scm,
                                     Query query, QueryOptions options, String unknownGenotype, List<String> formats,
@@ -71,16 +72,31 @@ public class VariantHBaseScanIterator extends VariantDBIterator {
                 .setIncludeIndexStatus(query.getBoolean(VariantQueryUtils.VARIANTS_TO_INDEX.key(), false))
                 .setFormats(formats);
         setLimit(options.getLong(QueryOptions.LIMIT));
-        threadPool = Executors.newFixedThreadPool(4);
+        results = new Iterator<Result>() {
+            @Override
+            public boolean hasNext() {
+                return hasNextResult();
+            }
+
+            @Override
+            public Result next() {
+                Result result = fetch(resultIterator::next);
+                for (Cell cell : result.rawCells()) {
+                    bytesRead += cell.getRowLength() + cell.getFamilyLength() + cell.getQualifierLength() + cell.getValueLength();
+                }
+                return result;
+            }
+        };
+        session = GenomeHelper.getSharedExecutor(genomeHelper.getConf()).newSession();
     }
 
     @Override
     public boolean hasNext() {
-        if (count >= limit) {
-            // Limit reached
-            return false;
-        }
-        if (buffer.hasNext() || fetch(resultIterator::hasNext)) {
+        return count < limit && getVariants().hasNext();
+    }
+
+    private boolean hasNextResult() {
+        if (fetch(resultIterator::hasNext)) {
             return true;
         } else {
             nextResultSet();
@@ -101,41 +117,30 @@ public class VariantHBaseScanIterator extends VariantDBIterator {
         }
     }
 
+    private Iterator<Variant> getVariants() {
+        if (variants == null) {
+            // Do not read more results than the limit
+            Iterator<Result> input = limit == Long.MAX_VALUE ? results : Iterators.limit(results, (int) Math.min(limit, Integer.MAX_VALUE));
+            variants = session.convert(input, converter::convert);
+        }
+        return variants;
+    }
+
     @Override
     public Variant next() {
-        if (count >= limit || !hasNext()) {
+        if (!hasNext()) {
             throw new NoSuchElementException("Limit reached");
         }
-        if (!buffer.hasNext()) {
-            int i = (int) Math.min(50, limit - count);
-            List<Future<Variant>> variants = new ArrayList<>(50);
-            while (hasNext() && i > 0) {
-                i--;
-                Result result = fetch(resultIterator::next);
-                variants.add(threadPool.submit(() -> {
-                    long start = System.nanoTime();
-                    Variant v = converter.convert(result);
-                    timeConverting.addAndGet(System.nanoTime() - start);
-                    return v;
-                }));
-            }
-            buffer = variants.iterator();
-        }
         count++;
-        try {
-            Future<Variant> next = buffer.next();
-            return next.get();
-        } catch (InterruptedException | ExecutionException e) {
-            throw new IllegalStateException(e);
-        }
+        return getVariants().next();
     }
 
     @Override
     public void close() throws Exception {
         super.close();
-        logger.debug("Close variant iterator. Fetch = {}ms, Convert = {}ms",
-                getTimeFetching() / 1000000.0, getTimeConverting() / 1000000.0);
-        threadPool.shutdownNow();
+        logger.debug("Close variant iterator. Fetch = {}ms, Convert = {}ms, Read = {} bytes",
+                getTimeFetching() / 1000000.0, getTimeConverting() / 1000000.0, bytesRead);
+        session.close();
         if (currentResultScanner != null) {
             currentResultScanner.close();
         }
@@ -143,7 +148,7 @@ public class VariantHBaseScanIterator extends VariantDBIterator {
 
     @Override
     public long getTimeConverting() {
-        return super.timeConverting + timeConverting.get();
+        return super.timeConverting + session.getTimeConverting();
     }
 
     @Override
@@ -151,6 +156,15 @@ public class VariantHBaseScanIterator extends VariantDBIterator {
         return count;
     }
 
+    /**
+     * Size of the cells read from HBase, including the skipped results.
+     *
+     * @return Bytes read
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
     public long getLimit() {
         return limit;
     }
@@ -160,11 +174,12 @@ public class VariantHBaseScanIterator extends VariantDBIterator {
     }
 
     public void skip(int skip) {
-        if (skip > 0) {
-            while (hasNext() && skip > 0) {
-                skip--;
-                fetch(resultIterator::next);
-            }
+        if (variants != null) {
+            throw new IllegalStateException("Unable to skip results after starting the iteration");
+        }
+        while (skip > 0 && results.hasNext()) {
+            skip--;
+            results.next();
         }
     }
 }
@@ -47,10 +47,10 @@ import org.opencb.opencga.storage.hadoop.variant.annotation.pending.PendingVaria
 import org.opencb.opencga.storage.hadoop.variant.converters.annotation.VariantAnnotationToHBaseConverter;
 import org.opencb.opencga.storage.hadoop.variant.executors.MRExecutor;
 import org.opencb.opencga.storage.hadoop.variant.index.annotation.AnnotationIndexDBLoader;
+import org.opencb.opencga.storage.hadoop.variant.index.annotation.AnnotationIndexSchema;
 import org.opencb.opencga.storage.hadoop.variant.index.sample.SampleIndexAnnotationLoader;
 
 import java.io.IOException;
-import java.net.URI;
 import java.util.*;
 
 /**
@@ -175,7 +175,8 @@ public class HadoopDefaultVariantAnnotationManager extends DefaultVariantAnnotat
             VariantAnnotationToHBaseConverter hBaseConverter =
                     new VariantAnnotationToHBaseConverter(dbAdaptor.getGenomeHelper(), progressLogger, currentAnnotationId);
             AnnotationIndexDBLoader annotationIndexDBLoader = new AnnotationIndexDBLoader(
-                    dbAdaptor.getHBaseManager(), dbAdaptor.getTableNameGenerator().getAnnotationIndexTableName());
+                    dbAdaptor.getHBaseManager(), dbAdaptor.getTableNameGenerator().getAnnotationIndexTableName(),
+                    AnnotationIndexSchema.fromStudies(dbAdaptor.getMetadataManager()));
 
             Task<VariantAnnotation, Put> task = Task.join(hBaseConverter, annotationIndexDBLoader.asTask(true));
 
@@ -192,8 +193,9 @@ public class HadoopDefaultVariantAnnotationManager extends DefaultVariantAnnotat
     }
 
     @Override
-    public void loadVariantAnnotation(URI uri, ObjectMap params) throws IOException, StorageEngineException {
-        super.loadVariantAnnotation(uri, params);
+    protected void loadVariantAnnotation(DataReader<VariantAnnotation> annotationReader, ObjectMap params)
+            throws IOException, StorageEngineException {
+        super.loadVariantAnnotation(annotationReader, params);
 
         updateSampleIndexAnnotation(params);
     }
@@ -21,7 +21,6 @@ import htsjdk.variant.vcf.VCFConstants;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.hadoop.hbase.Cell;
-import org.apache.hadoop.hbase.CellUtil;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.phoenix.schema.types.PInteger;
@@ -52,6 +51,7 @@ import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 import static org.opencb.biodata.models.variant.VariantBuilder.REF_ONLY_ALT;
@@ -78,17 +78,17 @@ public class HBaseToStudyEntryConverter extends AbstractPhoenixConverter {
     private final VariantStorageMetadataManager metadataManager;
     private final HBaseToVariantStatsConverter statsConverter;
 
-    // Cached ids
-    private final Map<Integer, LinkedHashMap<String, Integer>> returnedSamplesPositionMap = new HashMap<>();
-    private final Map<Pair<Integer, Integer>, List<Boolean>> missingUpdatedSamplesMap = new HashMap<>();
-    private final Map<Integer, Set<Integer>> returnedSampleIds = new HashMap<>();
-    private final Map<String, List<String>> samplesFromFileMap = new HashMap<>();
-    private final Map<String, String> sampleIdToNameMap = new HashMap<>();
-    private final Map<String, String> fileIdToNameMap = new HashMap<>();
-    private final Map<String, Integer> fileNameToIdMap = new HashMap<>();
-    private final Map<Integer, LinkedHashSet<Integer>> indexedFiles = new HashMap<>();
-    private final Map<String, FileMetadata> fileIdToFileMetadata = new HashMap<>();
-    private final Map<String, String> cohortIdToNameMap = new HashMap<>();
+    // Cached ids. Thread safe, as the converter can be shared by multiple conversion threads
+    private final Map<Integer, LinkedHashMap<String, Integer>> returnedSamplesPositionMap = new ConcurrentHashMap<>();
+    private final Map<Pair<Integer, Integer>, List<Boolean>> missingUpdatedSamplesMap = new ConcurrentHashMap<>();
+    private final Map<Integer, Set<Integer>> returnedSampleIds = new ConcurrentHashMap<>();
+    private final Map<String, List<String>> samplesFromFileMap = new ConcurrentHashMap<>();
+    private final Map<String, String> sampleIdToNameMap = new ConcurrentHashMap<>();
+    private final Map<String, String> fileIdToNameMap = new ConcurrentHashMap<>();
+    private final Map<String, Integer> fileNameToIdMap = new ConcurrentHashMap<>();
+    private final Map<Integer, LinkedHashSet<Integer>> indexedFiles = new ConcurrentHashMap<>();
+    private final Map<String, FileMetadata> fileIdToFileMetadata = new ConcurrentHashMap<>();
+    private final Map<String, String> cohortIdToNameMap = new ConcurrentHashMap<>();
 
     private boolean studyNameAsStudyId = false;
     private boolean simpleGenotypes = false;
@@ -255,33 +255,45 @@ public class HBaseToStudyEntryConverter extends AbstractPhoenixConverter {
         Map<Integer, List<Pair<String, PhoenixArray>>> filesMap = new HashMap<>();
 
         for (Cell cell : result.rawCells()) {
-            byte[] qualifier = CellUtil.cloneQualifier(cell);
             if (cell.getValueLength() == 0) {
                 continue;
             }
-            if (endsWith(qualifier, VariantPhoenixHelper.SAMPLE_DATA_SUFIX_BYTES)) {
-                String columnName = Bytes.toString(qualifier);
+            // Do not copy the qualifier. Check the suffix in place.
+            byte[] qualifierArray = cell.getQualifierArray();
+            int qualifierOffset = cell.getQualifierOffset();
+            int qualifierLength = cell.getQualifierLength();
+            if (endsWith(qualifierArray, qualifierOffset, qualifierLength, VariantPhoenixHelper.SAMPLE_DATA_SUFIX_BYTES)) {
+                String columnName = Bytes.toString(qualifierArray, qualifierOffset, qualifierLength);
                 String[] split = columnName.split(VariantPhoenixHelper.COLUMN_KEY_SEPARATOR_STR);
                 Integer studyId = getStudyId(split);
                 Integer sampleId = getSampleId(split);
+                if (!isReturnedSample(studyId, sampleId)) {
+                    // Column only read to filter. Skip decoding
+                    continue;
+                }
                 PhoenixArray array = (PhoenixArray) PVarcharArray.INSTANCE.toObject(
                         cell.getValueArray(), cell.getValueOffset(), cell.getValueLength());
                 List<String> sampleData = toModifiableList(array);
                 studies.add(studyId);
                 sampleDataMap.computeIfAbsent(studyId, s -> new ArrayList<>()).add(Pair.of(sampleId, sampleData));
-            } else if (endsWith(qualifier, VariantPhoenixHelper.FILE_SUFIX_BYTES)) {
-                String columnName = Bytes.toString(qualifier);
+            } else if (endsWith(qualifierArray, qualifierOffset, qualifierLength, VariantPhoenixHelper.FILE_SUFIX_BYTES)) {
+                String columnName = Bytes.toString(qualifierArray, qualifierOffset, qualifierLength);
                 String[] split = columnName.split(VariantPhoenixHelper.COLUMN_KEY_SEPARATOR_STR);
                 Integer studyId = getStudyId(split);
+                if (!isReturnedStudy(studyId)) {
+                    continue;
+                }
                 String fileId = getFileId(split);
                 studies.add(studyId);
                 PhoenixArray array = (PhoenixArray) PVarcharArray.INSTANCE.toObject(
                         cell.getValueArray(), cell.getValueOffset(), cell.getValueLength());
                 filesMap.computeIfAbsent(studyId, s -> new ArrayList<>()).add(Pair.of(fileId, array));
-            } else if (endsWith(qualifier, VariantPhoenixHelper.STUDY_SUFIX_BYTES)) {
-                String columnName = Bytes.toString(qualifier);
+            } else if (endsWith(qualifierArray, qualifierOffset, qualifierLength, VariantPhoenixHelper.STUDY_SUFIX_BYTES)) {
+                String columnName = Bytes.toString(qualifierArray, qualifierOffset, qualifierLength);
                 Integer studyId = VariantPhoenixHelper.extractStudyId(columnName, true);
-                studies.add(studyId);
+                if (isReturnedStudy(studyId)) {
+                    studies.add(studyId);
+                }
             }
         }
 
@@ -809,15 +821,30 @@ public class HBaseToStudyEntryConverter extends AbstractPhoenixConverter {
     }
 
     private Set<Integer> getReturnedSampleIds(StudyMetadata studyMetadata) {
-        return returnedSampleIds.computeIfAbsent(studyMetadata.getId(), studyId -> {
+        return getReturnedSampleIds(studyMetadata.getId());
+    }
+
+    private Set<Integer> getReturnedSampleIds(int studyId) {
+        return returnedSampleIds.computeIfAbsent(studyId, id -> {
             if (selectVariantElements == null) {
-                return new HashSet<>(metadataManager.getIndexedSamples(studyId));
+                return new HashSet<>(metadataManager.getIndexedSamples(id));
             } else {
-                return new HashSet<>(selectVariantElements.getSamples().get(studyId));
+                return new HashSet<>(selectVariantElements.getSamples().getOrDefault(id, Collections.emptyList()));
             }
         });
     }
 
+    private boolean isReturnedStudy(int studyId) {
+        return selectVariantElements == null || selectVariantElements.getStudies().contains(studyId);
+    }
+
+    private boolean isReturnedSample(int studyId, int sampleId) {
+        if (selectVariantElements == null) {
+            return true;
+        }
+        return isReturnedStudy(studyId) && getReturnedSampleIds(studyId).contains(sampleId);
+    }
+
     private List<String> getSamplesInFile(int studyId, int fileId) {
         List<String> samples = samplesFromFileMap.get(studyId + "_" + fileId);
         if (samples == null) {
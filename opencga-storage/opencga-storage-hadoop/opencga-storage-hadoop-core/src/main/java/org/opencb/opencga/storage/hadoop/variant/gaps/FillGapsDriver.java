@@ -46,6 +46,12 @@ public class FillGapsDriver extends AbstractVariantsTableDriver {
     public static final String FILL_GAPS_INPUT_DEFAULT = "archive";
     public static final String FILL_MISSING_INTERMEDIATE_FILE = "fill_missing.intermediate.file";
     public static final String FILL_MISSING_WRITE_MAPPERS_LIMIT_FACTOR = "fill_missing.write.mappers.limit.factor";
+    // Fill missing only the regions with new variants since the last fill missing
+    public static final String FILL_MISSING_INCREMENTAL = "fill_missing.incremental";
+    public static final boolean DEFAULT_FILL_MISSING_INCREMENTAL = true;
+    // Approximate max number of dirty region bins to fill in each MapReduce job. Chromosomes are never split
+    public static final String FILL_MISSING_MAX_BINS_PER_JOB = "fill_missing.max.bins.per.job";
+    public static final int DEFAULT_FILL_MISSING_MAX_BINS_PER_JOB = 5000;
     public static final String FILL_MISSING_SIMPLIFIED_MULTIALLELIC_VARIANTS = "fill_missing.simplifiedMultiAllelicVariants";
     private Collection<Integer> samples;
     private final Logger logger = LoggerFactory.getLogger(FillGapsDriver.class);
@@ -81,6 +87,15 @@ public class FillGapsDriver extends AbstractVariantsTableDriver {
             String regionStr = getConf().get(VariantQueryParam.REGION.key());
             if (fillGaps) {
                 scans = Collections.singletonList(FillGapsFromArchiveTask.buildScan(getFiles(), regionStr, getConf()));
+            } else if (StringUtils.isNotEmpty(getConf().get(FillMissingDirtyRegions.FILL_MISSING_DIRTY_REGIONS))) {
+                Path dirtyRegionsPath = new Path(getConf().get(FillMissingDirtyRegions.FILL_MISSING_DIRTY_REGIONS));
+                FillMissingDirtyRegions dirtyRegions = FillMissingDirtyRegions.read(getConf(), dirtyRegionsPath);
+                Collection<String> chromosomes = getConf().getStringCollection(FillMissingDirtyRegions.FILL_MISSING_DIRTY_CHROMOSOMES);
+                logger.info("Fill missing only over dirty regions: " + dirtyRegions);
+                scans = FillMissingFromArchiveTask.buildScan(getFiles(), dirtyRegions, chromosomes, getConf());
+                if (scans.isEmpty()) {
+                    throw new IllegalArgumentException("No dirty regions to fill for chromosomes " + chromosomes);
+                }
             } else {
                 scans = FillMissingFromArchiveTask.buildScan(getFiles(), regionStr, getConf());
             }
@@ -0,0 +1,222 @@
+package org.opencb.opencga.storage.hadoop.variant.gaps;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.opencb.biodata.models.core.Region;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Archive regions, per file batch, that gained new variants since the last fill missing.
+ *
+ * Regions are tracked in bins of {@link #FILL_MISSING_REGION_SIZE} bases. The {@link PrepareFillMissingMapper} registers
+ * the archive slices where it writes variants to be filled, so the fill missing only needs to scan those regions
+ * of the archive table instead of the whole table.
+ */
+public class FillMissingDirtyRegions {
+
+    /** Directory where the prepare step writes the dirty regions. */
+    public static final String FILL_MISSING_DIRTY_REGIONS = "fill_missing.dirty_regions";
+    /** Chromosomes to process in the current fill missing job. Empty for all. */
+    public static final String FILL_MISSING_DIRTY_CHROMOSOMES = "fill_missing.dirty_regions.chromosomes";
+    public static final String FILL_MISSING_REGION_SIZE = "fill_missing.region.size";
+    public static final int DEFAULT_FILL_MISSING_REGION_SIZE = 1000000;
+
+    private static final String SEPARATOR = "\t";
+
+    private final int regionSize;
+    // FileBatch -> Chromosome -> Bins
+    private final Map<Integer, Map<String, SortedSet<Long>>> bins = new TreeMap<>();
+
+    public FillMissingDirtyRegions(int regionSize) {
+        if (regionSize <= 0) {
+            throw new IllegalArgumentException(FILL_MISSING_REGION_SIZE + " must be positive");
+        }
+        this.regionSize = regionSize;
+    }
+
+    public static FillMissingDirtyRegions fromConfiguration(Configuration conf) {
+        return new FillMissingDirtyRegions(conf.getInt(FILL_MISSING_REGION_SIZE, DEFAULT_FILL_MISSING_REGION_SIZE));
+    }
+
+    /**
+     * Mark a position as dirty.
+     *
+     * @param fileBatch     File batch of the archive row
+     * @param chromosome    Chromosome
+     * @param position      Start position of the archive slice
+     * @return              this
+     */
+    public FillMissingDirtyRegions add(int fileBatch, String chromosome, long position) {
+        bins.computeIfAbsent(fileBatch, k -> new HashMap<>())
+                .computeIfAbsent(chromosome, k -> new TreeSet<>())
+                .add(position / regionSize);
+        return this;
+    }
+
+    public FillMissingDirtyRegions addAll(FillMissingDirtyRegions other) {
+        if (other.regionSize != regionSize) {
+            throw new IllegalArgumentException("Unable to merge dirty regions with different region size: "
+                    + regionSize + " != " + other.regionSize);
+        }
+        other.bins.forEach((fileBatch, chromosomes) -> chromosomes.forEach((chromosome, otherBins) ->
+                bins.computeIfAbsent(fileBatch, k -> new HashMap<>())
+                        .computeIfAbsent(chromosome, k -> new TreeSet<>())
+                        .addAll(otherBins)));
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return bins.isEmpty();
+    }
+
+    public Set<Integer> getFileBatches() {
+        return bins.keySet();
+    }
+
+    public SortedSet<String> getChromosomes() {
+        SortedSet<String> chromosomes = new TreeSet<>();
+        for (Map<String, SortedSet<Long>> map : bins.values()) {
+            chromosomes.addAll(map.keySet());
+        }
+        return chromosomes;
+    }
+
+    /**
+     * Count the number of dirty bins of a chromosome, adding all the file batches.
+     *
+     * @param chromosome    Chromosome
+     * @return              Number of dirty bins
+     */
+    public int countBins(String chromosome) {
+        int count = 0;
+        for (Map<String, SortedSet<Long>> map : bins.values()) {
+            count += map.getOrDefault(chromosome, Collections.emptySortedSet()).size();
+        }
+        return count;
+    }
+
+    /**
+     * Get the dirty regions of a file batch. Consecutive bins are merged into one region.
+     *
+     * @param fileBatch     File batch
+     * @param chromosomes   Chromosomes to return. Null or empty for all
+     * @return              Dirty regions
+     */
+    public List<Region> getRegions(int fileBatch, Collection<String> chromosomes) {
+        List<Region> regions = new ArrayList<>();
+        for (Map.Entry<String, SortedSet<Long>> entry : bins.getOrDefault(fileBatch, Collections.emptyMap()).entrySet()) {
+            String chromosome = entry.getKey();
+            if (chromosomes != null && !chromosomes.isEmpty() && !chromosomes.contains(chromosome)) {
+                continue;
+            }
+            long first = -1;
+            long last = -1;
+            for (Long bin : entry.getValue()) {
+                if (first >= 0 && bin != last + 1) {
+                    regions.add(toRegion(chromosome, first, last));
+                    first = -1;
+                }
+                if (first < 0) {
+                    first = bin;
+                }
+                last = bin;
+            }
+            if (first >= 0) {
+                regions.add(toRegion(chromosome, first, last));
+            }
+        }
+        regions.sort(Comparator.comparing(Region::getChromosome).thenComparing(Region::getStart));
+        return regions;
+    }
+
+    private Region toRegion(String chromosome, long firstBin, long lastBin) {
+        long start = Math.max(1, firstBin * regionSize);
+        long end = (lastBin + 1) * regionSize - 1;
+        return new Region(chromosome, (int) start, (int) Math.min(Integer.MAX_VALUE, end));
+    }
+
+    public void write(OutputStream os) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
+        for (Map.Entry<Integer, Map<String, SortedSet<Long>>> batchEntry : bins.entrySet()) {
+            for (Map.Entry<String, SortedSet<Long>> entry : batchEntry.getValue().entrySet()) {
+                for (Long bin : entry.getValue()) {
+                    writer.write(batchEntry.getKey() + SEPARATOR + entry.getKey() + SEPARATOR + bin + "\n");
+                }
+            }
+        }
+        writer.flush();
+    }
+
+    public FillMissingDirtyRegions read(InputStream is) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] split = line.split(SEPARATOR);
+            bins.computeIfAbsent(Integer.valueOf(split[0]), k -> new HashMap<>())
+                    .computeIfAbsent(split[1], k -> new TreeSet<>())
+                    .add(Long.valueOf(split[2]));
+        }
+        return this;
+    }
+
+    /**
+     * Read and merge all the dirty regions files from a directory.
+     *
+     * @param conf      Configuration
+     * @param directory Directory with the dirty regions
+     * @return          Merged dirty regions
+     * @throws IOException if there is an error reading the files
+     */
+    public static FillMissingDirtyRegions read(Configuration conf, Path directory) throws IOException {
+        FillMissingDirtyRegions dirtyRegions = fromConfiguration(conf);
+        FileSystem fs = directory.getFileSystem(conf);
+        if (!fs.exists(directory)) {
+            return dirtyRegions;
+        }
+        for (FileStatus fileStatus : fs.listStatus(directory)) {
+            if (fileStatus.isFile() && !fileStatus.getPath().getName().startsWith("_")) {
+                try (InputStream is = fs.open(fileStatus.getPath())) {
+                    dirtyRegions.read(is);
+                }
+            }
+        }
+        return dirtyRegions;
+    }
+
+    /**
+     * Check if a directory contains dirty regions files. Files may be empty if there were no dirty regions.
+     *
+     * @param conf      Configuration
+     * @param directory Directory with the dirty regions
+     * @return          If there is any dirty regions file
+     * @throws IOException if there is an error reading the directory
+     */
+    public static boolean exists(Configuration conf, Path directory) throws IOException {
+        FileSystem fs = directory.getFileSystem(conf);
+        if (!fs.exists(directory)) {
+            return false;
+        }
+        for (FileStatus fileStatus : fs.listStatus(directory)) {
+            if (fileStatus.isFile() && !fileStatus.getPath().getName().startsWith("_")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("FillMissingDirtyRegions{regionSize=").append(regionSize);
+        for (Integer fileBatch : bins.keySet()) {
+            sb.append(", fb=").append(fileBatch).append(": ").append(getRegions(fileBatch, null).size()).append(" regions");
+        }
+        return sb.append('}').toString();
+    }
+}
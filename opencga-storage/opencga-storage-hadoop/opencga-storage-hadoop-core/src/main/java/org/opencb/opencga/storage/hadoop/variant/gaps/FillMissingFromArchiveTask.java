@@ -10,6 +10,7 @@ import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.filter.*;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.phoenix.schema.types.PInteger;
+import org.opencb.biodata.models.core.Region;
 import org.opencb.biodata.models.variant.Variant;
 import org.opencb.biodata.models.variant.protobuf.VcfSliceProtos;
 import org.opencb.opencga.storage.core.metadata.VariantStorageMetadataManager;
@@ -150,6 +151,32 @@ public class FillMissingFromArchiveTask extends AbstractFillFromArchiveTask {
         return scans;
     }
 
+    /**
+     * Build one scan per file batch and dirty region, skipping the regions of the archive table without new variants.
+     *
+     * @param fileIds       Files to fill
+     * @param dirtyRegions  Dirty regions, as registered by the {@link PrepareFillMissingMapper}
+     * @param chromosomes   Chromosomes to process. Null or empty for all
+     * @param conf          Configuration
+     * @return              List of scans. Empty if there is nothing to fill
+     */
+    public static List<Scan> buildScan(Collection<Integer> fileIds, FillMissingDirtyRegions dirtyRegions,
+                                       Collection<String> chromosomes, Configuration conf) {
+        ArchiveRowKeyFactory archiveRowKeyFactory = new ArchiveRowKeyFactory(conf);
+        Set<Integer> fileBatches = new TreeSet<>();
+        for (Integer fileId : fileIds) {
+            fileBatches.add(archiveRowKeyFactory.getFileBatch(fileId));
+        }
+
+        List<Scan> scans = new ArrayList<>();
+        for (Integer fileBatch : fileBatches) {
+            for (Region region : dirtyRegions.getRegions(fileBatch, chromosomes)) {
+                scans.add(buildScan(fileIds, fileBatch, region.toString(), conf));
+            }
+        }
+        return scans;
+    }
+
     private static Scan buildScan(Collection<Integer> fileIds, Integer fileBatch, String regionStr, Configuration conf) {
         ArchiveRowKeyFactory archiveRowKeyFactory = new ArchiveRowKeyFactory(conf);
 
@@ -1,6 +1,9 @@
 package org.opencb.opencga.storage.hadoop.variant.gaps;
 
+import org.apache.commons.lang3.StringUtils;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
@@ -19,6 +22,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -39,6 +43,8 @@ public class PrepareFillMissingMapper extends TableMapper<ImmutableBytesWritable
     private List<Integer> indexedFiles;
     private long timestamp;
     private boolean fillAllFiles;
+    private FillMissingDirtyRegions dirtyRegions;
+    private String dirtyRegionsDirectory;
 
     @Override
     protected void setup(Context context) throws IOException, InterruptedException {
@@ -53,6 +59,8 @@ public class PrepareFillMissingMapper extends TableMapper<ImmutableBytesWritable
             throw new IllegalArgumentException(AbstractVariantsTableDriver.TIMESTAMP + " not defined!");
         }
         fillAllFiles = FillGapsFromArchiveMapper.isOverwrite(context.getConfiguration());
+        dirtyRegionsDirectory = context.getConfiguration().get(FillMissingDirtyRegions.FILL_MISSING_DIRTY_REGIONS);
+        dirtyRegions = FillMissingDirtyRegions.fromConfiguration(context.getConfiguration());
     }
     private final Logger logger = LoggerFactory.getLogger(PrepareFillMissingMapper.class);
 
@@ -79,6 +87,7 @@ public class PrepareFillMissingMapper extends TableMapper<ImmutableBytesWritable
             Put put = new Put(Bytes.toBytes(rowKeyFactory.generateBlockIdFromSliceAndBatch(fileBatch, chromosome, sliceId)), timestamp);
             put.addColumn(family, column, lastFileBytes);
             context.write(EMPTY_IMMUTABLE_BYTES, put);
+            dirtyRegions.add(fileBatch, chromosome, rowKeyFactory.getStartPositionFromSlice(sliceId));
             if (!newVariant) {
                 context.getCounter(VariantsTableMapReduceHelper.COUNTER_GROUP_NAME, "UPDATE_VARIANT_BATCH_" + fileBatch).increment(1);
             }
@@ -92,6 +101,19 @@ public class PrepareFillMissingMapper extends TableMapper<ImmutableBytesWritable
         context.getCounter(VariantsTableMapReduceHelper.COUNTER_GROUP_NAME, "VARIANTS").increment(1);
     }
 
+    @Override
+    protected void cleanup(Context context) throws IOException, InterruptedException {
+        super.cleanup(context);
+        if (StringUtils.isNotEmpty(dirtyRegionsDirectory)) {
+            // One file per task, even if empty. Task retries overwrite the file.
+            Path path = new Path(dirtyRegionsDirectory, "dirty-" + context.getTaskAttemptID().getTaskID());
+            FileSystem fs = path.getFileSystem(context.getConfiguration());
+            try (OutputStream os = fs.create(path, true)) {
+                dirtyRegions.write(os);
+            }
+        }
+    }
+
     private Collection<Integer> buildFileBatches(Integer lastFile) {
         Set<Integer> batches = new HashSet<>();
         // Add only file batches from files beyond the last file
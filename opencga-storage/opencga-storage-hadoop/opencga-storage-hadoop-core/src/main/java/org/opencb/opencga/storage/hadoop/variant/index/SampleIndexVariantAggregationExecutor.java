@@ -0,0 +1,349 @@
+package org.opencb.opencga.storage.hadoop.variant.index;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.time.StopWatch;
+import org.opencb.biodata.models.variant.avro.VariantType;
+import org.opencb.commons.datastore.core.Query;
+import org.opencb.commons.datastore.core.QueryOptions;
+import org.opencb.commons.datastore.core.result.FacetQueryResult;
+import org.opencb.commons.datastore.solr.FacetQueryParser;
+import org.opencb.opencga.storage.core.metadata.VariantStorageMetadataManager;
+import org.opencb.opencga.storage.core.metadata.models.SampleMetadata;
+import org.opencb.opencga.storage.core.metadata.models.TaskMetadata;
+import org.opencb.opencga.storage.core.variant.adaptors.VariantIterable;
+import org.opencb.opencga.storage.core.variant.adaptors.VariantQueryParam;
+import org.opencb.opencga.storage.core.variant.adaptors.VariantQueryUtils;
+import org.opencb.opencga.storage.core.variant.adaptors.VariantQueryUtils.QueryOperation;
+import org.opencb.opencga.storage.core.variant.query.VariantAggregationExecutor;
+import org.opencb.opencga.storage.core.variant.search.solr.VariantSearchManager;
+import org.opencb.opencga.storage.hadoop.variant.index.sample.SampleIndexAnnotationLoader;
+import org.opencb.opencga.storage.hadoop.variant.index.sample.SampleIndexDBAdaptor;
+import org.opencb.opencga.storage.hadoop.variant.index.sample.SampleIndexEntry.SampleIndexGtEntry;
+import org.opencb.opencga.storage.hadoop.variant.index.sample.SampleIndexQuery;
+import org.opencb.opencga.storage.hadoop.variant.index.sample.SampleIndexQueryParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.opencb.opencga.storage.hadoop.variant.index.IndexUtils.EMPTY_MASK;
+import static org.opencb.opencga.storage.hadoop.variant.index.annotation.AnnotationIndexConverter.*;
+
+/**
+ * Aggregation executor able to resolve some facets from the precomputed counters stored at the SampleIndexTable,
+ * without iterating over the variants.
+ *
+ * Accepted facets are any nested combination of {@link #SAMPLE_FACET}, {@link #CHROMOSOME_FACET}, {@link #GENOTYPE_FACET}
+ * and {@link #ANNOTATION_INDEX_FACET}, e.g. "sample&gt;&gt;genotype" or "chromosome&gt;&gt;annotationIndex".
+ * The query must be fully covered by the SampleIndexTable, and can only be filtered by an annotation index bit.
+ * Otherwise, falls back to the default {@link VariantAggregationExecutor}.
+ */
+public class SampleIndexVariantAggregationExecutor extends VariantAggregationExecutor {
+
+    public static final String SAMPLE_INDEX_COUNTERS_FACET = "sample_index_counters_facet";
+
+    public static final String SAMPLE_FACET = "sample";
+    public static final String CHROMOSOME_FACET = "chromosome";
+    public static final String GENOTYPE_FACET = "genotype";
+    public static final String ANNOTATION_INDEX_FACET = "annotationIndex";
+    private static final Set<String> COUNTERS_FACETS = new HashSet<>(Arrays.asList(
+            SAMPLE_FACET, CHROMOSOME_FACET, GENOTYPE_FACET, ANNOTATION_INDEX_FACET));
+
+    // Bucket names for each bit of the annotation index. See AnnotationIndexConverter
+    static final String[] ANNOTATION_INDEX_BIT_NAMES = {
+            "biotype",
+            "popFreqAny001",
+            "lofeProteinCoding",
+            "lofe",
+            "lof",
+            "clinical",
+            "lofeBasic",
+    };
+
+    private final SampleIndexDBAdaptor sampleIndexDBAdaptor;
+    private final VariantStorageMetadataManager metadataManager;
+    private Logger logger = LoggerFactory.getLogger(SampleIndexVariantAggregationExecutor.class);
+
+    public SampleIndexVariantAggregationExecutor(VariantSearchManager searchManager, String dbName, VariantIterable iterable,
+                                                 VariantStorageMetadataManager metadataManager,
+                                                 SampleIndexDBAdaptor sampleIndexDBAdaptor) {
+        super(searchManager, dbName, iterable, metadataManager);
+        this.sampleIndexDBAdaptor = sampleIndexDBAdaptor;
+        this.metadataManager = metadataManager;
+    }
+
+    @Override
+    public FacetQueryResult facet(Query query, QueryOptions options) {
+        if (query == null) {
+            query = new Query();
+        }
+        if (options == null) {
+            options = new QueryOptions();
+        }
+        if (options.getBoolean(SAMPLE_INDEX_COUNTERS_FACET, true)) {
+            FacetQueryResult result = countersFacet(query, options);
+            if (result != null) {
+                return result;
+            }
+        }
+        return super.facet(query, options);
+    }
+
+    /**
+     * Resolve the facet from the genotype counters and annotation counters stored at the SampleIndexTable.
+     *
+     * @param query   Query
+     * @param options Query options
+     * @return FacetQueryResult, or null if the facet can not be resolved from the counters
+     */
+    protected FacetQueryResult countersFacet(Query query, QueryOptions options) {
+        StopWatch stopWatch = StopWatch.createStarted();
+        String facet = options.getString(QueryOptions.FACET);
+        List<List<String>> facets = parseCountersFacet(facet);
+        if (facets == null || !SampleIndexQueryParser.validSampleIndexQuery(query)) {
+            return null;
+        }
+
+        Query remainingQuery = new Query(query);
+        SampleIndexQuery sampleIndexQuery = SampleIndexQueryParser.parseSampleIndexQuery(remainingQuery, metadataManager);
+        Set<VariantQueryParam> params = VariantQueryUtils.validParams(remainingQuery, true);
+        params.remove(VariantQueryParam.STUDY);
+        if (!params.isEmpty()) {
+            logger.debug("Unable to resolve facet from SampleIndex counters. Params not covered : {}", params);
+            return null;
+        }
+        if (!isCountersQuery(sampleIndexQuery, facets)) {
+            return null;
+        }
+        int annotationBit = EMPTY_MASK == sampleIndexQuery.getAnnotationIndexMask()
+                ? -1
+                : getCountersAnnotationBit(sampleIndexQuery.getAnnotationIndexMask());
+        if (EMPTY_MASK != sampleIndexQuery.getAnnotationIndexMask() && annotationBit < 0) {
+            return null;
+        }
+        boolean annotationIndexFacet = facets.stream().anyMatch(f -> f.contains(ANNOTATION_INDEX_FACET));
+        if (annotationIndexFacet) {
+            if (annotationBit >= 0) {
+                // Can not combine annotation index bits
+                return null;
+            }
+            if (!allSamplesAnnotated(sampleIndexQuery)) {
+                return null;
+            }
+        }
+        boolean annotationCounts = annotationIndexFacet || annotationBit >= 0;
+
+        logger.info("Resolve facet '{}' from SampleIndex counters", facet);
+        CountersAccumulator accumulator = new CountersAccumulator(facets);
+        AtomicBoolean missingCounters = new AtomicBoolean(false);
+        for (String sample : sampleIndexQuery.getSamplesMap().keySet()) {
+            sampleIndexDBAdaptor.counters(sampleIndexQuery, sample, annotationCounts, entry -> {
+                for (SampleIndexGtEntry gtEntry : entry.getGts().values()) {
+                    int[] counts = gtEntry.getAnnotationCounts();
+                    if (gtEntry.getCount() == null) {
+                        missingCounters.set(true);
+                        continue;
+                    } else if (gtEntry.getCount() == 0) {
+                        continue;
+                    } else if (annotationCounts && counts == null) {
+                        // Batch not annotated
+                        missingCounters.set(true);
+                        continue;
+                    }
+                    long count = annotationBit >= 0 ? counts[annotationBit] : gtEntry.getCount();
+                    accumulator.add(sample, entry.getChromosome(), gtEntry.getGt(), count, counts);
+                }
+            });
+            if (missingCounters.get()) {
+                logger.info("Missing SampleIndex counters for sample '{}'. Unable to resolve facet from counters", sample);
+                return null;
+            }
+        }
+
+        // Variants from different samples may overlap. Total number of matches is unknown
+        long numMatches = sampleIndexQuery.getSamplesMap().size() == 1 ? accumulator.getCount() : -1;
+        return new FacetQueryResult("", ((int) stopWatch.getTime(TimeUnit.MILLISECONDS)), numMatches, Collections.emptyList(), null,
+                accumulator.toFields(),
+                facet
+        );
+    }
+
+    /**
+     * Parse the facet query, if all the fields can be resolved from the SampleIndex counters.
+     *
+     * @param facet Facet query
+     * @return List of nested facets, or null if not valid
+     */
+    static List<List<String>> parseCountersFacet(String facet) {
+        if (StringUtils.isEmpty(facet)) {
+            return null;
+        }
+        List<List<String>> facets = new ArrayList<>();
+        for (String facetStr : facet.split(FacetQueryParser.FACET_SEPARATOR)) {
+            List<String> fields = new ArrayList<>();
+            for (String field : facetStr.split(NESTED_FACET_SEPARATOR)) {
+                field = field.trim();
+                if (!COUNTERS_FACETS.contains(field) || fields.contains(field)) {
+                    return null;
+                }
+                if (!fields.isEmpty() && fields.get(fields.size() - 1).equals(ANNOTATION_INDEX_FACET)) {
+                    // Annotation index buckets are not disjoint, so can not be nested
+                    return null;
+                }
+                fields.add(field);
+            }
+            facets.add(fields);
+        }
+        return facets;
+    }
+
+    private boolean isCountersQuery(SampleIndexQuery query, List<List<String>> facets) {
+        if (!query.emptyFileIndex()
+                || query.getAnnotationIndexFilter() != null
+                || !query.getMendelianErrorSet().isEmpty()
+                || !query.getFatherFilterMap().isEmpty()
+                || !query.getMotherFilterMap().isEmpty()) {
+            return false;
+        }
+        if (query.getVariantTypes() != null && query.getVariantTypes().size() != VariantType.values().length) {
+            return false;
+        }
+        if (query.getRegions() != null && !query.getRegions().stream().allMatch(SampleIndexDBAdaptor::isBatchAligned)) {
+            return false;
+        }
+        if (query.getSamplesMap().isEmpty()) {
+            return false;
+        } else if (query.getSamplesMap().size() > 1) {
+            // Counters of different samples can not be combined, unless split by sample
+            return query.getQueryOperation() == QueryOperation.OR
+                    && facets.stream().allMatch(f -> f.get(0).equals(SAMPLE_FACET));
+        }
+        return true;
+    }
+
+    private boolean allSamplesAnnotated(SampleIndexQuery query) {
+        int studyId = metadataManager.getStudyId(query.getStudy());
+        for (String sample : query.getSamplesMap().keySet()) {
+            SampleMetadata sampleMetadata = metadataManager.getSampleMetadata(studyId, metadataManager.getSampleId(studyId, sample));
+            if (!TaskMetadata.Status.READY.equals(sampleMetadata.getStatus(SampleIndexAnnotationLoader.SAMPLE_INDEX_STATUS))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the annotation index bit that can be used to count the variants matching the annotation mask.
+     * This is, a bit of the mask that implies all the other bits of the mask.
+     *
+     * @param mask Annotation index mask
+     * @return Annotation index bit, or -1 if the mask can not be counted using the annotation counters
+     */
+    static int getCountersAnnotationBit(byte mask) {
+        for (int bit = 0; bit < ANNOTATION_INDEX_BIT_NAMES.length; bit++) {
+            byte bitMask = (byte) (1 << bit);
+            if ((mask & bitMask) != 0 && (mask & ~impliedAnnotationMask(bitMask)) == 0) {
+                return bit;
+            }
+        }
+        return -1;
+    }
+
+    private static byte impliedAnnotationMask(byte bitMask) {
+        switch (bitMask) {
+            case LOF_MASK:
+                return LOF_MASK | LOF_EXTENDED_MASK;
+            case LOFE_PROTEIN_CODING_MASK:
+                return LOFE_PROTEIN_CODING_MASK | LOF_EXTENDED_MASK | BIOTYPE_MASK;
+            default:
+                return bitMask;
+        }
+    }
+
+    /**
+     * Accumulate the counters of each sample, chromosome and genotype into nested facet fields.
+     */
+    static class CountersAccumulator {
+        private final List<List<String>> facets;
+        private final List<Node> roots;
+        private long count;
+
+        CountersAccumulator(List<List<String>> facets) {
+            this.facets = facets;
+            roots = new ArrayList<>(facets.size());
+            for (int i = 0; i < facets.size(); i++) {
+                roots.add(new Node());
+            }
+        }
+
+        void add(String sample, String chromosome, String gt, long gtCount, int[] annotationCounts) {
+            if (gtCount == 0) {
+                return;
+            }
+            count += gtCount;
+            for (int i = 0; i < facets.size(); i++) {
+                Node node = roots.get(i);
+                node.count += gtCount;
+                for (String field : facets.get(i)) {
+                    switch (field) {
+                        case SAMPLE_FACET:
+                            node = node.child(sample, gtCount);
+                            break;
+                        case CHROMOSOME_FACET:
+                            node = node.child(chromosome, gtCount);
+                            break;
+                        case GENOTYPE_FACET:
+                            node = node.child(gt, gtCount);
+                            break;
+                        case ANNOTATION_INDEX_FACET:
+                            for (int bit = 0; bit < ANNOTATION_INDEX_BIT_NAMES.length; bit++) {
+                                if (annotationCounts[bit] > 0) {
+                                    node.child(ANNOTATION_INDEX_BIT_NAMES[bit], annotationCounts[bit]);
+                                }
+                            }
+                            break;
+                        default:
+                            throw new IllegalStateException("Unknown field " + field);
+                    }
+                }
+            }
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        List<FacetQueryResult.Field> toFields() {
+            List<FacetQueryResult.Field> fields = new ArrayList<>(facets.size());
+            for (int i = 0; i < facets.size(); i++) {
+                fields.add(toField(roots.get(i), facets.get(i), 0));
+            }
+            return fields;
+        }
+
+        private static FacetQueryResult.Field toField(Node node, List<String> fieldNames, int level) {
+            List<FacetQueryResult.Bucket> buckets = new ArrayList<>(node.children.size());
+            for (Map.Entry<String, Node> entry : node.children.entrySet()) {
+                List<FacetQueryResult.Field> nested = null;
+                if (level + 1 < fieldNames.size()) {
+                    nested = Collections.singletonList(toField(entry.getValue(), fieldNames, level + 1));
+                }
+                buckets.add(new FacetQueryResult.Bucket(entry.getKey(), entry.getValue().count, nested));
+            }
+            return new FacetQueryResult.Field(fieldNames.get(level), node.count, buckets);
+        }
+    }
+
+    private static final class Node {
+        private long count;
+        private final Map<String, Node> children = new LinkedHashMap<>();
+
+        private Node child(String key, long childCount) {
+            Node child = children.computeIfAbsent(key, k -> new Node());
+            child.count += childCount;
+            return child;
+        }
+    }
+}
@@ -23,6 +23,8 @@ import org.slf4j.LoggerFactory;
 
 import java.util.Set;
 
+import static org.opencb.opencga.storage.core.variant.VariantStorageEngine.Options.APPROXIMATE_COUNT;
+import static org.opencb.opencga.storage.core.variant.VariantStorageEngine.Options.MULTI_ITERATOR_PIPELINE_QUERIES;
 import static org.opencb.opencga.storage.core.variant.adaptors.VariantQueryParam.REGION;
 import static org.opencb.opencga.storage.core.variant.adaptors.VariantQueryUtils.addSamplesMetadataIfRequested;
 
@@ -95,7 +97,7 @@ public class SampleIndexVariantQueryExecutor extends AbstractTwoPhasedVariantQue
     }
 
     private Object getOrIteratorFullyCovered(QueryOptions options, boolean iterator, Query query, SampleIndexQuery sampleIndexQuery) {
-        VariantDBIterator variantIterator = sampleIndexDBAdaptor.iterator(sampleIndexQuery);
+        VariantDBIterator variantIterator = sampleIndexDBAdaptor.iterator(sampleIndexQuery, options);
         if (iterator) {
             return variantIterator;
         } else {
@@ -118,13 +120,19 @@ public class SampleIndexVariantQueryExecutor extends AbstractTwoPhasedVariantQue
             // SampleIndex iterator will be closed when closing the variants iterator
             return dbAdaptor.iterator(variants, query, options, batchSize);
         } else {
+            QueryOptions iteratorOptions = options;
+            if (!options.getBoolean(QueryOptions.SKIP_COUNT, true) || options.getBoolean(APPROXIMATE_COUNT.key(), false)) {
+                // The approximate count is extrapolated from the variants read from the SampleIndex.
+                // Do not read ahead variants for pipelined queries that might never be consumed.
+                iteratorOptions = new QueryOptions(options).append(MULTI_ITERATOR_PIPELINE_QUERIES.key(), 1);
+            }
             MultiVariantDBIterator variantDBIterator = dbAdaptor.iterator(
                     new org.opencb.opencga.storage.core.variant.adaptors.iterators.DelegatedVariantDBIterator(variants) {
                         @Override
                         public void close() throws Exception {
                             // Do not close this iterator! We'll need to keep iterating to get the approximate count
                         }
-                    }, query, options, batchSize);
+                    }, query, iteratorOptions, batchSize);
             VariantQueryResult<Variant> result =
                     addSamplesMetadataIfRequested(variantDBIterator.toQueryResult(), query, options, getMetadataManager());
             setNumTotalResults(variantDBIterator, variants, result, sampleIndexQuery, query, options);
@@ -8,10 +8,7 @@ import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.opencb.biodata.models.variant.Variant;
-import org.opencb.biodata.models.variant.avro.ConsequenceType;
-import org.opencb.biodata.models.variant.avro.PopulationFrequency;
-import org.opencb.biodata.models.variant.avro.SequenceOntologyTerm;
-import org.opencb.biodata.models.variant.avro.VariantAnnotation;
+import org.opencb.biodata.models.variant.avro.*;
 import org.opencb.cellbase.core.variant.annotation.VariantAnnotationUtils;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantQueryUtils;
 import org.opencb.opencga.storage.hadoop.variant.adaptors.phoenix.VariantPhoenixKeyFactory;
@@ -22,6 +19,7 @@ import java.util.List;
 import java.util.Set;
 
 import static org.opencb.biodata.models.variant.StudyEntry.DEFAULT_COHORT;
+import static org.opencb.opencga.storage.core.variant.adaptors.VariantQueryUtils.STUDY_POP_FREQ_SEPARATOR;
 import static org.opencb.opencga.storage.hadoop.variant.adaptors.phoenix.VariantPhoenixKeyFactory.generateVariantRowKey;
 
 /**
@@ -48,6 +46,7 @@ public class AnnotationIndexConverter {
 
     public static final byte[] COLUMN_FMAILY = Bytes.toBytes("0");
     public static final byte[] VALUE_COLUMN = Bytes.toBytes("v");
+    public static final byte[] EXTENDED_VALUE_COLUMN = Bytes.toBytes("e");
     public static final int VALUE_LENGTH = 1;
     public static final String TRANSCRIPT_FLAG_BASIC = "basic";
 
@@ -74,6 +73,23 @@ public class AnnotationIndexConverter {
 
     }
 
+    private final AnnotationIndexSchema schema;
+
+    public AnnotationIndexConverter() {
+        this(null);
+    }
+
+    /**
+     * @param schema Schema of the extended annotation index. If null, the extended index is not generated.
+     */
+    public AnnotationIndexConverter(AnnotationIndexSchema schema) {
+        this.schema = schema;
+    }
+
+    public AnnotationIndexSchema getSchema() {
+        return schema;
+    }
+
     public static Pair<Variant, Byte> getVariantBytePair(Result result) {
         Variant variant = VariantPhoenixKeyFactory.extractVariantFromVariantRowKey(result.getRow());
         Cell cell = result.getColumnLatestCell(COLUMN_FMAILY, VALUE_COLUMN);
@@ -154,6 +170,60 @@ public class AnnotationIndexConverter {
         return b;
     }
 
+    /**
+     * Build the extended annotation index, as defined by the {@link AnnotationIndexSchema}.
+     *
+     * @param variantAnnotation Variant annotation
+     * @return Extended annotation index
+     */
+    public byte[] convertExtended(VariantAnnotation variantAnnotation) {
+        byte[] value = new byte[schema.getLength()];
+
+        if (variantAnnotation.getConsequenceTypes() != null) {
+            for (ConsequenceType ct : variantAnnotation.getConsequenceTypes()) {
+                if (ct.getSequenceOntologyTerms() == null) {
+                    continue;
+                }
+                for (SequenceOntologyTerm sequenceOntologyTerm : ct.getSequenceOntologyTerms()) {
+                    int bit = schema.getConsequenceTypeBit(sequenceOntologyTerm.getName());
+                    if (bit >= 0) {
+                        AnnotationIndexSchema.setBit(value, schema.getConsequenceTypeOffset(), bit);
+                    }
+                }
+            }
+        }
+
+        // By default, population frequency is 0.
+        double[] freqs = new double[schema.getPopulations().size()];
+        if (variantAnnotation.getPopulationFrequencies() != null) {
+            for (PopulationFrequency populationFrequency : variantAnnotation.getPopulationFrequencies()) {
+                int idx = schema.getPopulationIndex(
+                        populationFrequency.getStudy() + STUDY_POP_FREQ_SEPARATOR + populationFrequency.getPopulation());
+                if (idx >= 0) {
+                    freqs[idx] = populationFrequency.getAltAlleleFreq();
+                }
+            }
+        }
+        for (int i = 0; i < freqs.length; i++) {
+            value[schema.getPopFreqOffset() + i] = (byte) schema.getPopFreqBin(freqs[i]);
+        }
+
+        if (variantAnnotation.getTraitAssociation() != null) {
+            for (EvidenceEntry evidenceEntry : variantAnnotation.getTraitAssociation()) {
+                if (evidenceEntry.getVariantClassification() != null
+                        && evidenceEntry.getVariantClassification().getClinicalSignificance() != null) {
+                    int bit = schema.getClinicalSignificanceBit(
+                            evidenceEntry.getVariantClassification().getClinicalSignificance().toString());
+                    if (bit >= 0) {
+                        AnnotationIndexSchema.setBit(value, schema.getClinicalSignificanceOffset(), bit);
+                    }
+                }
+            }
+        }
+
+        return value;
+    }
+
     public List<Put> convertToPut(List<VariantAnnotation> variantAnnotations) {
         List<Put> puts = new ArrayList<>(variantAnnotations.size());
         for (VariantAnnotation variantAnnotation : variantAnnotations) {
@@ -167,6 +237,9 @@ public class AnnotationIndexConverter {
         Put put = new Put(bytesRowKey);
         byte value = convert(variantAnnotation);
         put.addColumn(COLUMN_FMAILY, VALUE_COLUMN, new byte[]{value});
+        if (schema != null) {
+            put.addColumn(COLUMN_FMAILY, EXTENDED_VALUE_COLUMN, convertExtended(variantAnnotation));
+        }
         return put;
     }
 }
@@ -18,8 +18,12 @@ public class AnnotationIndexDBLoader extends AbstractHBaseDataWriter<VariantAnno
     private final AnnotationIndexConverter converter;
 
     public AnnotationIndexDBLoader(HBaseManager hBaseManager, String tableName) {
+        this(hBaseManager, tableName, null);
+    }
+
+    public AnnotationIndexDBLoader(HBaseManager hBaseManager, String tableName, AnnotationIndexSchema schema) {
         super(hBaseManager, tableName);
-        converter = new AnnotationIndexConverter();
+        converter = new AnnotationIndexConverter(schema);
     }
 
     @Override
@@ -39,6 +39,7 @@ public class AnnotationIndexDriver extends AbstractVariantsTableDriver {
     private static final Logger LOGGER = LoggerFactory.getLogger(AnnotationIndexDriver.class);
     private Region region;
     private String annotationIndexTable;
+    private AnnotationIndexSchema annotationIndexSchema;
 
     @Override
     protected void parseAndValidateParameters() throws IOException {
@@ -53,6 +54,13 @@ public class AnnotationIndexDriver extends AbstractVariantsTableDriver {
         }
 
         annotationIndexTable = getTableNameGenerator().getAnnotationIndexTableName();
+        // Use the versioned schema stored in the studies, so the index matches the one used by the query parser
+        annotationIndexSchema = AnnotationIndexSchema.fromStudies(getMetadataManager());
+        if (annotationIndexSchema == null) {
+            LOGGER.warn("Studies with different annotation index schemas. Skip extended annotation index");
+        } else {
+            LOGGER.info("Annotation index schema : " + annotationIndexSchema);
+        }
     }
 
     @Override
@@ -67,6 +75,11 @@ public class AnnotationIndexDriver extends AbstractVariantsTableDriver {
 
         scan.addColumn(getHelper().getColumnFamily(), VariantPhoenixHelper.VariantColumn.FULL_ANNOTATION.bytes());
 
+        if (annotationIndexSchema != null) {
+            annotationIndexSchema.toConfiguration(job.getConfiguration());
+        } else {
+            job.getConfiguration().unset(AnnotationIndexSchema.VERSION);
+        }
         VariantMapReduceUtil.initTableMapperJob(job, variantTable, scan, getMapperClass());
         VariantMapReduceUtil.setOutputHBaseTable(job, annotationIndexTable);
 
@@ -97,7 +110,9 @@ public class AnnotationIndexDriver extends AbstractVariantsTableDriver {
         @Override
         protected void setup(Context context) throws IOException, InterruptedException {
             annotationConverter = new HBaseToVariantAnnotationConverter(new GenomeHelper(context.getConfiguration()), -1);
-            annotationIndexConverter = new AnnotationIndexConverter();
+            Configuration conf = context.getConfiguration();
+            annotationIndexConverter = new AnnotationIndexConverter(
+                    conf.get(AnnotationIndexSchema.VERSION) == null ? null : AnnotationIndexSchema.fromConfiguration(conf));
         }
 
         @Override
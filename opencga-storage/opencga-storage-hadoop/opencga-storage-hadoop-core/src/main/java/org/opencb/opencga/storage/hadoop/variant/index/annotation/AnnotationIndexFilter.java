@@ -0,0 +1,155 @@
+package org.opencb.opencga.storage.hadoop.variant.index.annotation;
+
+import org.opencb.opencga.storage.core.variant.adaptors.VariantQueryUtils.QueryOperation;
+
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+/**
+ * Filter over the extended annotation index. See {@link AnnotationIndexSchema}.
+ */
+public class AnnotationIndexFilter {
+
+    private final AnnotationIndexSchema schema;
+    // Accept variants with any of these consequence types. Null for no filter
+    private final byte[] consequenceTypeMask;
+    // Accepted frequency bins per population. Null for no filter in that population
+    private final boolean[][] popFreqBins;
+    private final QueryOperation popFreqOperation;
+    // Accept variants with any (or all) of these clinical significance values. Null for no filter
+    private final byte[] clinicalSignificanceMask;
+    private final QueryOperation clinicalSignificanceOperation;
+
+    public AnnotationIndexFilter(AnnotationIndexSchema schema,
+                                 byte[] consequenceTypeMask,
+                                 boolean[][] popFreqBins, QueryOperation popFreqOperation,
+                                 byte[] clinicalSignificanceMask, QueryOperation clinicalSignificanceOperation) {
+        this.schema = schema;
+        this.consequenceTypeMask = consequenceTypeMask;
+        this.popFreqBins = popFreqBins != null && Arrays.stream(popFreqBins).allMatch(bins -> bins == null) ? null : popFreqBins;
+        this.popFreqOperation = popFreqOperation == null ? QueryOperation.AND : popFreqOperation;
+        this.clinicalSignificanceMask = clinicalSignificanceMask;
+        this.clinicalSignificanceOperation = clinicalSignificanceOperation == null
+                ? QueryOperation.OR
+                : clinicalSignificanceOperation;
+    }
+
+    public AnnotationIndexSchema getSchema() {
+        return schema;
+    }
+
+    public boolean isEmpty() {
+        return consequenceTypeMask == null && popFreqBins == null && clinicalSignificanceMask == null;
+    }
+
+    /**
+     * Test the extended annotation index of one variant.
+     *
+     * @param value Extended annotation index of all the variants from the batch
+     * @param index Position of the variant within the batch
+     * @return false if the variant can be discarded
+     */
+    public boolean test(byte[] value, int index) {
+        int offset = index * schema.getLength();
+        if (value.length < offset + schema.getLength()) {
+            // Index generated with a different schema. Can not filter
+            return true;
+        }
+        if (consequenceTypeMask != null
+                && !testAny(value, offset + schema.getConsequenceTypeOffset(), consequenceTypeMask)) {
+            return false;
+        }
+        if (popFreqBins != null && !testPopFreq(value, offset + schema.getPopFreqOffset())) {
+            return false;
+        }
+        if (clinicalSignificanceMask != null) {
+            int clinicalOffset = offset + schema.getClinicalSignificanceOffset();
+            if (clinicalSignificanceOperation == QueryOperation.AND) {
+                return testAll(value, clinicalOffset, clinicalSignificanceMask);
+            } else {
+                return testAny(value, clinicalOffset, clinicalSignificanceMask);
+            }
+        }
+        return true;
+    }
+
+    private boolean testPopFreq(byte[] value, int offset) {
+        boolean and = popFreqOperation == QueryOperation.AND;
+        for (int i = 0; i < popFreqBins.length; i++) {
+            boolean[] bins = popFreqBins[i];
+            if (bins == null) {
+                continue;
+            }
+            int bin = value[offset + i] & 0xFF;
+            boolean pass = bin >= bins.length || bins[bin];
+            if (and && !pass) {
+                return false;
+            } else if (!and && pass) {
+                return true;
+            }
+        }
+        return and;
+    }
+
+    private static boolean testAny(byte[] value, int offset, byte[] mask) {
+        for (int i = 0; i < mask.length; i++) {
+            if ((value[offset + i] & mask[i]) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean testAll(byte[] value, int offset, byte[] mask) {
+        for (int i = 0; i < mask.length; i++) {
+            if ((value[offset + i] & mask[i]) != mask[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("AnnotationIndexFilter{schemaVersion=").append(schema.getVersion());
+        if (consequenceTypeMask != null) {
+            sb.append(", consequenceTypes=[");
+            appendBits(sb, consequenceTypeMask, schema.getConsequenceTypes().size(), i -> schema.getConsequenceTypes().get(i));
+            sb.append(']');
+        }
+        if (popFreqBins != null) {
+            sb.append(", popFreq").append(popFreqOperation).append("={");
+            boolean first = true;
+            for (int i = 0; i < popFreqBins.length; i++) {
+                if (popFreqBins[i] != null) {
+                    if (!first) {
+                        sb.append(", ");
+                    }
+                    first = false;
+                    sb.append(schema.getPopulations().get(i)).append('=').append(Arrays.toString(popFreqBins[i]));
+                }
+            }
+            sb.append('}');
+        }
+        if (clinicalSignificanceMask != null) {
+            sb.append(", clinicalSignificance").append(clinicalSignificanceOperation).append("=[");
+            appendBits(sb, clinicalSignificanceMask, schema.getClinicalSignificance().size(),
+                    i -> schema.getClinicalSignificance().get(i));
+            sb.append(']');
+        }
+        return sb.append('}').toString();
+    }
+
+    private static void appendBits(StringBuilder sb, byte[] mask, int numBits, IntFunction<String> name) {
+        boolean first = true;
+        for (int i = 0; i < numBits; i++) {
+            if (AnnotationIndexSchema.testBit(mask, 0, i)) {
+                if (!first) {
+                    sb.append(", ");
+                }
+                first = false;
+                sb.append(name.apply(i));
+            }
+        }
+    }
+}
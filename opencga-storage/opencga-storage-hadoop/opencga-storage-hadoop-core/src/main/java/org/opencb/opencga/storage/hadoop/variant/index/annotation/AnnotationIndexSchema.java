@@ -0,0 +1,361 @@
+package org.opencb.opencga.storage.hadoop.variant.index.annotation;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.opencb.commons.datastore.core.ObjectMap;
+import org.opencb.opencga.storage.core.metadata.VariantStorageMetadataManager;
+import org.opencb.opencga.storage.core.variant.adaptors.VariantQueryUtils;
+
+import java.util.*;
+
+import static org.opencb.opencga.storage.hadoop.variant.HadoopVariantStorageEngine.*;
+import static org.opencb.opencga.storage.hadoop.variant.index.annotation.AnnotationIndexConverter.GNOMAD_GENOMES;
+import static org.opencb.opencga.storage.hadoop.variant.index.annotation.AnnotationIndexConverter.K_GENOMES;
+
+/**
+ * Layout of the extended annotation index. Each variant is described with a fixed number of bytes:
+ * <ul>
+ *     <li>Consequence types. One bit per consequence type</li>
+ *     <li>Population frequencies. One byte per population, with the bin of the alternate allele frequency</li>
+ *     <li>Clinical significance. One bit per clinical significance value</li>
+ * </ul>
+ *
+ * The schema is stored in the StudyMetadata with a version number. Any change in the layout produces a new version.
+ */
+public class AnnotationIndexSchema {
+
+    public static final String VERSION = "opencga.sample-index.annotation.schema.version";
+
+    public static final List<String> DEFAULT_CONSEQUENCE_TYPES;
+    public static final List<String> DEFAULT_POPULATIONS = Collections.unmodifiableList(Arrays.asList(
+            GNOMAD_GENOMES + VariantQueryUtils.STUDY_POP_FREQ_SEPARATOR + "ALL",
+            K_GENOMES + VariantQueryUtils.STUDY_POP_FREQ_SEPARATOR + "ALL"));
+    public static final List<Double> DEFAULT_POP_FREQ_THRESHOLDS = Collections.unmodifiableList(Arrays.asList(
+            0.001, 0.005, 0.01, 0.05));
+    public static final List<String> DEFAULT_CLINICAL_SIGNIFICANCE = Collections.unmodifiableList(Arrays.asList(
+            "benign", "likely_benign", "uncertain_significance", "likely_pathogenic", "pathogenic"));
+
+    static {
+        List<String> cts = new ArrayList<>(new TreeSet<>(VariantQueryUtils.LOF_EXTENDED_SET));
+        cts.addAll(Arrays.asList(
+                "synonymous_variant",
+                "stop_retained_variant",
+                "protein_altering_variant",
+                "5_prime_UTR_variant",
+                "3_prime_UTR_variant",
+                "intron_variant",
+                "non_coding_transcript_exon_variant",
+                "upstream_gene_variant",
+                "downstream_gene_variant",
+                "regulatory_region_variant"));
+        DEFAULT_CONSEQUENCE_TYPES = Collections.unmodifiableList(cts);
+    }
+
+    private final int version;
+    private final List<String> consequenceTypes;
+    private final List<String> populations;
+    private final double[] popFreqThresholds;
+    private final List<String> clinicalSignificance;
+
+    private final Map<String, Integer> consequenceTypeBits;
+    private final Map<String, Integer> populationIndex;
+    private final Map<String, Integer> clinicalSignificanceBits;
+    private final int popFreqOffset;
+    private final int clinicalSignificanceOffset;
+    private final int length;
+
+    public AnnotationIndexSchema(int version, List<String> consequenceTypes, List<String> populations, double[] popFreqThresholds,
+                                 List<String> clinicalSignificance) {
+        if (popFreqThresholds.length > 0xFF - 1) {
+            throw new IllegalArgumentException("Too many population frequency thresholds: " + popFreqThresholds.length);
+        }
+        for (int i = 1; i < popFreqThresholds.length; i++) {
+            if (popFreqThresholds[i] <= popFreqThresholds[i - 1]) {
+                throw new IllegalArgumentException("Population frequency thresholds must be sorted: "
+                        + Arrays.toString(popFreqThresholds));
+            }
+        }
+        this.version = version;
+        this.consequenceTypes = Collections.unmodifiableList(new ArrayList<>(consequenceTypes));
+        this.populations = Collections.unmodifiableList(new ArrayList<>(populations));
+        this.popFreqThresholds = popFreqThresholds.clone();
+        this.clinicalSignificance = Collections.unmodifiableList(new ArrayList<>(clinicalSignificance));
+
+        consequenceTypeBits = toIndexMap(this.consequenceTypes);
+        populationIndex = toIndexMap(this.populations);
+        clinicalSignificanceBits = toIndexMap(this.clinicalSignificance);
+
+        popFreqOffset = numBytes(this.consequenceTypes.size());
+        clinicalSignificanceOffset = popFreqOffset + this.populations.size();
+        length = clinicalSignificanceOffset + numBytes(this.clinicalSignificance.size());
+    }
+
+    public static AnnotationIndexSchema defaultSchema() {
+        return fromObjectMap(new ObjectMap());
+    }
+
+    /**
+     * Read the schema from the options or from the StudyMetadata attributes. Missing values are filled with the defaults.
+     *
+     * @param options Options
+     * @return AnnotationIndexSchema
+     */
+    public static AnnotationIndexSchema fromObjectMap(ObjectMap options) {
+        List<String> consequenceTypes = DEFAULT_CONSEQUENCE_TYPES;
+        if (options.containsKey(SAMPLE_INDEX_ANNOTATION_CONSEQUENCE_TYPES)) {
+            consequenceTypes = options.getAsStringList(SAMPLE_INDEX_ANNOTATION_CONSEQUENCE_TYPES);
+        }
+        List<String> populations = DEFAULT_POPULATIONS;
+        if (options.containsKey(SAMPLE_INDEX_ANNOTATION_POPULATIONS)) {
+            populations = options.getAsStringList(SAMPLE_INDEX_ANNOTATION_POPULATIONS);
+        }
+        double[] thresholds = DEFAULT_POP_FREQ_THRESHOLDS.stream().mapToDouble(Double::doubleValue).toArray();
+        if (options.containsKey(SAMPLE_INDEX_ANNOTATION_POP_FREQ_THRESHOLDS)) {
+            thresholds = options.getAsStringList(SAMPLE_INDEX_ANNOTATION_POP_FREQ_THRESHOLDS)
+                    .stream().mapToDouble(Double::valueOf).toArray();
+        }
+        List<String> clinicalSignificance = DEFAULT_CLINICAL_SIGNIFICANCE;
+        if (options.containsKey(SAMPLE_INDEX_ANNOTATION_CLINICAL_SIGNIFICANCE)) {
+            clinicalSignificance = options.getAsStringList(SAMPLE_INDEX_ANNOTATION_CLINICAL_SIGNIFICANCE);
+        }
+        return new AnnotationIndexSchema(options.getInt(VERSION, 0), consequenceTypes, populations, thresholds, clinicalSignificance);
+    }
+
+    public static AnnotationIndexSchema fromConfiguration(Configuration conf) {
+        ObjectMap options = new ObjectMap();
+        for (String key : Arrays.asList(VERSION, SAMPLE_INDEX_ANNOTATION_CONSEQUENCE_TYPES, SAMPLE_INDEX_ANNOTATION_POPULATIONS,
+                SAMPLE_INDEX_ANNOTATION_POP_FREQ_THRESHOLDS, SAMPLE_INDEX_ANNOTATION_CLINICAL_SIGNIFICANCE)) {
+            String value = conf.get(key);
+            if (value != null) {
+                options.put(key, value);
+            }
+        }
+        return fromObjectMap(options);
+    }
+
+    /**
+     * Read the schema stored in the StudyMetadata of all the studies. The annotation index table is shared by all the
+     * studies, so it can only contain the extended index if all the stored schemas have the same layout.
+     * Studies without schema are ignored.
+     *
+     * @param metadataManager Metadata manager
+     * @return Stored schema, the default schema if no study has a schema yet,
+     *         or null if the studies have schemas with different layouts
+     */
+    public static AnnotationIndexSchema fromStudies(VariantStorageMetadataManager metadataManager) {
+        AnnotationIndexSchema schema = null;
+        for (Integer studyId : metadataManager.getStudyIds()) {
+            ObjectMap attributes = metadataManager.getStudyMetadata(studyId).getAttributes();
+            if (isDefined(attributes)) {
+                AnnotationIndexSchema studySchema = fromObjectMap(attributes);
+                if (schema == null) {
+                    schema = studySchema;
+                } else if (!schema.sameLayout(studySchema)) {
+                    return null;
+                }
+            }
+        }
+        return schema == null ? defaultSchema() : schema;
+    }
+
+    /**
+     * @param options Options or StudyMetadata attributes
+     * @return if the options contain a schema definition
+     */
+    public static boolean isDefined(ObjectMap options) {
+        return options.containsKey(VERSION);
+    }
+
+    /**
+     * @param conf Configuration
+     * @return if the configuration modifies any value of the default schema
+     */
+    public static boolean isConfigured(Configuration conf) {
+        return conf.get(SAMPLE_INDEX_ANNOTATION_CONSEQUENCE_TYPES) != null
+                || conf.get(SAMPLE_INDEX_ANNOTATION_POPULATIONS) != null
+                || conf.get(SAMPLE_INDEX_ANNOTATION_POP_FREQ_THRESHOLDS) != null
+                || conf.get(SAMPLE_INDEX_ANNOTATION_CLINICAL_SIGNIFICANCE) != null;
+    }
+
+    public ObjectMap toObjectMap() {
+        ObjectMap map = new ObjectMap();
+        map.put(VERSION, version);
+        map.put(SAMPLE_INDEX_ANNOTATION_CONSEQUENCE_TYPES, String.join(",", consequenceTypes));
+        map.put(SAMPLE_INDEX_ANNOTATION_POPULATIONS, String.join(",", populations));
+        map.put(SAMPLE_INDEX_ANNOTATION_POP_FREQ_THRESHOLDS, StringUtils.join(getPopFreqThresholds(), ','));
+        map.put(SAMPLE_INDEX_ANNOTATION_CLINICAL_SIGNIFICANCE, String.join(",", clinicalSignificance));
+        return map;
+    }
+
+    public void toConfiguration(Configuration conf) {
+        for (Map.Entry<String, Object> entry : toObjectMap().entrySet()) {
+            conf.set(entry.getKey(), entry.getValue().toString());
+        }
+    }
+
+    public AnnotationIndexSchema withVersion(int newVersion) {
+        return new AnnotationIndexSchema(newVersion, consequenceTypes, populations, popFreqThresholds, clinicalSignificance);
+    }
+
+    /**
+     * @param other Other schema
+     * @return if both schemas produce the same index, regardless of the version.
+     */
+    public boolean sameLayout(AnnotationIndexSchema other) {
+        return consequenceTypes.equals(other.consequenceTypes)
+                && populations.equals(other.populations)
+                && Arrays.equals(popFreqThresholds, other.popFreqThresholds)
+                && clinicalSignificance.equals(other.clinicalSignificance);
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public List<String> getConsequenceTypes() {
+        return consequenceTypes;
+    }
+
+    public List<String> getPopulations() {
+        return populations;
+    }
+
+    public double[] getPopFreqThresholds() {
+        return popFreqThresholds.clone();
+    }
+
+    public List<String> getClinicalSignificance() {
+        return clinicalSignificance;
+    }
+
+    /**
+     * @return Number of bytes used by each variant
+     */
+    public int getLength() {
+        return length;
+    }
+
+    public int getConsequenceTypeOffset() {
+        return 0;
+    }
+
+    public int getPopFreqOffset() {
+        return popFreqOffset;
+    }
+
+    public int getClinicalSignificanceOffset() {
+        return clinicalSignificanceOffset;
+    }
+
+    /**
+     * @param consequenceType Consequence type name
+     * @return Bit of the consequence type, or -1 if not in the schema
+     */
+    public int getConsequenceTypeBit(String consequenceType) {
+        return consequenceTypeBits.getOrDefault(consequenceType, -1);
+    }
+
+    /**
+     * @param studyPopulation Population, as {@code STUDY:POPULATION}
+     * @return Position of the population, or -1 if not in the schema
+     */
+    public int getPopulationIndex(String studyPopulation) {
+        return populationIndex.getOrDefault(studyPopulation, -1);
+    }
+
+    /**
+     * @param clinicalSignificanceValue Clinical significance value
+     * @return Bit of the clinical significance, or -1 if not in the schema
+     */
+    public int getClinicalSignificanceBit(String clinicalSignificanceValue) {
+        return clinicalSignificanceBits.getOrDefault(clinicalSignificanceValue, -1);
+    }
+
+    public int getNumPopFreqBins() {
+        return popFreqThresholds.length + 1;
+    }
+
+    /**
+     * Bin {@code i} contains the frequencies in the range [threshold[i-1], threshold[i]).
+     *
+     * @param freq Alternate allele frequency
+     * @return Frequency bin
+     */
+    public int getPopFreqBin(double freq) {
+        for (int i = 0; i < popFreqThresholds.length; i++) {
+            if (freq < popFreqThresholds[i]) {
+                return i;
+            }
+        }
+        return popFreqThresholds.length;
+    }
+
+    /**
+     * @param bin Frequency bin
+     * @return Lower bound of the bin. Inclusive.
+     */
+    public double getPopFreqBinStart(int bin) {
+        return bin == 0 ? Double.NEGATIVE_INFINITY : popFreqThresholds[bin - 1];
+    }
+
+    /**
+     * @param bin Frequency bin
+     * @return Upper bound of the bin. Exclusive.
+     */
+    public double getPopFreqBinEnd(int bin) {
+        return bin == popFreqThresholds.length ? Double.POSITIVE_INFINITY : popFreqThresholds[bin];
+    }
+
+    public static boolean testBit(byte[] value, int offset, int bit) {
+        return (value[offset + (bit >> 3)] & (1 << (bit & 7))) != 0;
+    }
+
+    public static void setBit(byte[] value, int offset, int bit) {
+        value[offset + (bit >> 3)] |= (byte) (1 << (bit & 7));
+    }
+
+    private static int numBytes(int bits) {
+        return (bits + 7) / 8;
+    }
+
+    private static Map<String, Integer> toIndexMap(List<String> values) {
+        Map<String, Integer> map = new HashMap<>(values.size());
+        for (int i = 0; i < values.size(); i++) {
+            if (map.put(values.get(i), i) != null) {
+                throw new IllegalArgumentException("Duplicated value '" + values.get(i) + "' in annotation index schema");
+            }
+        }
+        return map;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        AnnotationIndexSchema that = (AnnotationIndexSchema) o;
+        return version == that.version && sameLayout(that);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = Objects.hash(version, consequenceTypes, populations, clinicalSignificance);
+        result = 31 * result + Arrays.hashCode(popFreqThresholds);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "AnnotationIndexSchema{"
+                + "version=" + version
+                + ", consequenceTypes=" + consequenceTypes
+                + ", populations=" + populations
+                + ", popFreqThresholds=" + Arrays.toString(popFreqThresholds)
+                + ", clinicalSignificance=" + clinicalSignificance
+                + ", length=" + length
+                + '}';
+    }
+}
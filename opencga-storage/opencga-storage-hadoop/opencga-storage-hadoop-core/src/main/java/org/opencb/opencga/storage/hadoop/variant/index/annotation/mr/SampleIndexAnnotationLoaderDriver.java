@@ -9,12 +9,14 @@ import org.opencb.biodata.models.core.Region;
 import org.opencb.commons.datastore.core.ObjectMap;
 import org.opencb.opencga.storage.core.exceptions.StorageEngineException;
 import org.opencb.opencga.storage.core.metadata.VariantStorageMetadataManager;
+import org.opencb.opencga.storage.core.metadata.models.TaskMetadata;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantQueryParam;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantQueryUtils;
 import org.opencb.opencga.storage.hadoop.variant.AbstractVariantsTableDriver;
 import org.opencb.opencga.storage.hadoop.variant.adaptors.VariantHBaseQueryParser;
 import org.opencb.opencga.storage.hadoop.variant.adaptors.phoenix.VariantPhoenixHelper;
 import org.opencb.opencga.storage.hadoop.variant.converters.HBaseToVariantConverter;
+import org.opencb.opencga.storage.hadoop.variant.index.annotation.AnnotationIndexSchema;
 import org.opencb.opencga.storage.hadoop.variant.index.sample.SampleIndexAnnotationLoader;
 import org.opencb.opencga.storage.hadoop.variant.index.sample.SampleIndexSchema;
 import org.opencb.opencga.storage.hadoop.variant.mr.VariantAlignedInputFormat;
@@ -25,6 +27,8 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.util.*;
 
+import static org.opencb.opencga.storage.hadoop.variant.index.sample.SampleIndexAnnotationLoader.SAMPLE_INDEX_ANNOTATION_SCHEMA_STATUS;
+
 /**
  * Created on 25/02/19.
  *
@@ -38,6 +42,8 @@ public class SampleIndexAnnotationLoaderDriver extends AbstractVariantsTableDriv
     private List<Integer> sampleIds;
     private boolean hasGenotype;
     private String region;
+    private AnnotationIndexSchema annotationIndexSchema;
+    private boolean newAnnotationIndexSchema;
 
     @Override
     protected Class<SampleIndexAnnotationLoaderMapper> getMapperClass() {
@@ -87,6 +93,48 @@ public class SampleIndexAnnotationLoaderDriver extends AbstractVariantsTableDriv
         }
 
         region = getParam(VariantQueryParam.REGION.key(), "");
+
+        // Use the current schema, unless a different one is configured
+        AnnotationIndexSchema currentSchema = null;
+        if (AnnotationIndexSchema.isDefined(attributes)) {
+            currentSchema = AnnotationIndexSchema.fromObjectMap(attributes);
+        }
+        AnnotationIndexSchema requestedSchema;
+        if (currentSchema != null && !AnnotationIndexSchema.isConfigured(getConf())) {
+            requestedSchema = currentSchema;
+        } else {
+            requestedSchema = AnnotationIndexSchema.fromConfiguration(getConf());
+        }
+        if (currentSchema != null && currentSchema.sameLayout(requestedSchema)) {
+            annotationIndexSchema = currentSchema;
+            newAnnotationIndexSchema = false;
+        } else {
+            annotationIndexSchema = requestedSchema.withVersion(currentSchema == null ? 1 : currentSchema.getVersion() + 1);
+            newAnnotationIndexSchema = true;
+        }
+        LOGGER.info((newAnnotationIndexSchema ? "New annotation index schema : " : "Annotation index schema : ") + annotationIndexSchema);
+    }
+
+    @Override
+    protected void preExecution() throws IOException, StorageEngineException {
+        super.preExecution();
+        if (newAnnotationIndexSchema) {
+            // Samples indexed with the previous schema are no longer valid
+            VariantStorageMetadataManager metadataManager = getMetadataManager();
+            for (Integer sampleId : metadataManager.getIndexedSamples(getStudyId())) {
+                if (metadataManager.getSampleMetadata(getStudyId(), sampleId)
+                        .getStatus(SAMPLE_INDEX_ANNOTATION_SCHEMA_STATUS) != TaskMetadata.Status.NONE) {
+                    metadataManager.updateSampleMetadata(getStudyId(), sampleId, sampleMetadata -> {
+                        sampleMetadata.setStatus(SAMPLE_INDEX_ANNOTATION_SCHEMA_STATUS, TaskMetadata.Status.NONE);
+                        return sampleMetadata;
+                    });
+                }
+            }
+            metadataManager.updateStudyMetadata(getStudyId(), studyMetadata -> {
+                studyMetadata.getAttributes().putAll(annotationIndexSchema.toObjectMap());
+                return studyMetadata;
+            });
+        }
     }
 
     @Override
@@ -104,6 +152,7 @@ public class SampleIndexAnnotationLoaderDriver extends AbstractVariantsTableDriv
         scan.addColumn(getHelper().getColumnFamily(), VariantPhoenixHelper.VariantColumn.FULL_ANNOTATION.bytes());
 
         SampleIndexAnnotationLoaderMapper.setHasGenotype(job, hasGenotype);
+        annotationIndexSchema.toConfiguration(job.getConfiguration());
 
         VariantMapReduceUtil.configureMapReduceScan(scan, getConf());
 
@@ -129,6 +178,12 @@ public class SampleIndexAnnotationLoaderDriver extends AbstractVariantsTableDriv
         super.postExecution(succeed);
         if (succeed && StringUtils.isEmpty(region)) {
             SampleIndexAnnotationLoader.postAnnotationLoad(getStudyId(), sampleIds, getMetadataManager());
+            for (Integer sampleId : sampleIds) {
+                getMetadataManager().updateSampleMetadata(getStudyId(), sampleId, sampleMetadata -> {
+                    sampleMetadata.setStatus(SAMPLE_INDEX_ANNOTATION_SCHEMA_STATUS, TaskMetadata.Status.READY);
+                    return sampleMetadata;
+                });
+            }
         }
     }
 
@@ -8,12 +8,14 @@ import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.phoenix.schema.types.PArrayDataType;
 import org.apache.phoenix.schema.types.PVarchar;
+import org.opencb.biodata.models.variant.avro.VariantAnnotation;
 import org.opencb.opencga.storage.core.variant.adaptors.GenotypeClass;
 import org.opencb.opencga.storage.hadoop.variant.GenomeHelper;
 import org.opencb.opencga.storage.hadoop.variant.adaptors.phoenix.VariantPhoenixHelper;
 import org.opencb.opencga.storage.hadoop.variant.converters.annotation.HBaseToVariantAnnotationConverter;
 import org.opencb.opencga.storage.hadoop.variant.index.IndexUtils;
 import org.opencb.opencga.storage.hadoop.variant.index.annotation.AnnotationIndexConverter;
+import org.opencb.opencga.storage.hadoop.variant.index.annotation.AnnotationIndexSchema;
 import org.opencb.opencga.storage.hadoop.variant.index.sample.SampleIndexAnnotationLoader;
 import org.opencb.opencga.storage.hadoop.variant.index.sample.SampleIndexSchema;
 import org.opencb.opencga.storage.hadoop.variant.mr.VariantsTableMapReduceHelper;
@@ -34,7 +36,10 @@ public class SampleIndexAnnotationLoaderMapper extends VariantTableSampleIndexOr
     private byte[] family;
     private GenomeHelper helper;
     private Map<Integer, Map<String, ByteArrayOutputStream>> annotationIndices = new HashMap<>();
+    private Map<Integer, Map<String, ByteArrayOutputStream>> annotationIndicesExtended = new HashMap<>();
     private boolean hasGenotype;
+    private HBaseToVariantAnnotationConverter annotationConverter;
+    private AnnotationIndexConverter annotationIndexConverter;
 
     public static void setHasGenotype(Job job, boolean hasGenotype) {
         job.getConfiguration().setBoolean(HAS_GENOTYPE, hasGenotype);
@@ -45,13 +50,15 @@ public class SampleIndexAnnotationLoaderMapper extends VariantTableSampleIndexOr
         helper = new GenomeHelper(context.getConfiguration());
         family = helper.getColumnFamily();
         hasGenotype = context.getConfiguration().getBoolean(HAS_GENOTYPE, true);
+        annotationConverter = new HBaseToVariantAnnotationConverter(helper, 0);
+        annotationIndexConverter = new AnnotationIndexConverter(AnnotationIndexSchema.fromConfiguration(context.getConfiguration()));
     }
 
     @Override
     protected void map(ImmutableBytesWritable key, Result result, Context context) throws IOException, InterruptedException {
-        HBaseToVariantAnnotationConverter annotationConverter = new HBaseToVariantAnnotationConverter(helper, 0);
-
-        byte index = new AnnotationIndexConverter().convert(annotationConverter.convert(result));
+        VariantAnnotation variantAnnotation = annotationConverter.convert(result);
+        byte index = annotationIndexConverter.convert(variantAnnotation);
+        byte[] indexExtended = annotationIndexConverter.convertExtended(variantAnnotation);
                 // TODO Get stats given index values
 
         for (Cell cell : result.rawCells()) {
@@ -83,6 +90,9 @@ public class SampleIndexAnnotationLoaderMapper extends VariantTableSampleIndexOr
                     annotationIndices
                             .computeIfAbsent(sampleId, k -> new HashMap<>())
                             .computeIfAbsent(gt, k -> new ByteArrayOutputStream(50)).write(index);
+                    annotationIndicesExtended
+                            .computeIfAbsent(sampleId, k -> new HashMap<>())
+                            .computeIfAbsent(gt, k -> new ByteArrayOutputStream(50 * indexExtended.length)).write(indexExtended);
                 }
 
             }
@@ -112,6 +122,12 @@ public class SampleIndexAnnotationLoaderMapper extends VariantTableSampleIndexOr
                             IndexUtils.countPerBitToBytes(IndexUtils.countPerBit(annotationIndex)));
                 }
             }
+            for (Map.Entry<String, ByteArrayOutputStream> e : annotationIndicesExtended.get(sampleId).entrySet()) {
+                ByteArrayOutputStream value = e.getValue();
+                if (value.size() > 0) {
+                    put.addColumn(family, SampleIndexSchema.toAnnotationIndexExtendedColumn(e.getKey()), value.toByteArray());
+                }
+            }
 
             if (!put.isEmpty()) {
                 context.getCounter(VariantsTableMapReduceHelper.COUNTER_GROUP_NAME, "put").increment(1);
@@ -122,5 +138,6 @@ public class SampleIndexAnnotationLoaderMapper extends VariantTableSampleIndexOr
         }
 
         annotationIndices.values().forEach(map -> map.values().forEach(ByteArrayOutputStream::reset));
+        annotationIndicesExtended.values().forEach(map -> map.values().forEach(ByteArrayOutputStream::reset));
     }
 }
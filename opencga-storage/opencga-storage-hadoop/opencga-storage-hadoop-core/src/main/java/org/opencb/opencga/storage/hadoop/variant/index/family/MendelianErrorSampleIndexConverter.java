@@ -44,6 +44,7 @@ public class MendelianErrorSampleIndexConverter {
         private Variant next;
         private int nextIndex;
         private String nextGt;
+        private final VariantSampleIndexVariantView view = new VariantSampleIndexVariantView();
 
         public MendelianErrorSampleIndexVariantIterator(byte[] value, int offset, int length) {
             variants = split(value, offset, length).listIterator();
@@ -87,6 +88,17 @@ public class MendelianErrorSampleIndexConverter {
             return variant;
         }
 
+        @Override
+        public SampleIndexVariantView nextView() {
+            if (next == null) {
+                fetchNext();
+            }
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            return view.setVariant(next);
+        }
+
         private void fetchNext() {
             if (variants.hasNext()) {
                 String s = variants.next();
@@ -68,6 +68,12 @@ public class HBaseToSampleIndexConverter implements Converter<Result, SampleInde
                 } else if (columnStartsWith(cell, ANNOTATION_COUNT_PREFIX_BYTES)) {
                     gts.computeIfAbsent(getGt(cell, ANNOTATION_COUNT_PREFIX_BYTES), SampleIndexGtEntry::new)
                             .setAnnotationCounts(IndexUtils.countPerBitToObject(CellUtil.cloneValue(cell)));
+                } else if (columnStartsWith(cell, ANNOTATION_EXTENDED_PREFIX_BYTES)) {
+                    gts.computeIfAbsent(getGt(cell, ANNOTATION_EXTENDED_PREFIX_BYTES), SampleIndexGtEntry::new)
+                            .setAnnotationIndexExtendedGt(CellUtil.cloneValue(cell));
+                } else if (columnStartsWith(cell, GENOTYPE_COUNT_PREFIX_BYTES)) {
+                    gts.computeIfAbsent(getGt(cell, GENOTYPE_COUNT_PREFIX_BYTES), SampleIndexGtEntry::new)
+                            .setCount(Bytes.toInt(cell.getValueArray(), cell.getValueOffset(), cell.getValueLength()));
                 } else if (columnStartsWith(cell, FILE_PREFIX_BYTES)) {
                     gts.computeIfAbsent(getGt(cell, FILE_PREFIX_BYTES), SampleIndexGtEntry::new)
                             .setFileIndexGt(CellUtil.cloneValue(cell));
@@ -0,0 +1,142 @@
+package org.opencb.opencga.storage.hadoop.variant.index.sample;
+
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.opencb.opencga.storage.hadoop.variant.index.IndexUtils;
+
+import java.util.BitSet;
+import java.util.Collection;
+
+/**
+ * Compressed bitmap of samples for one batch of the SampleIndex.
+ *
+ * For each bit of the annotation index, contains the set of samples with at least one variant in this batch
+ * with that annotation bit. Used to discard samples and batches before scanning the SampleIndex table.
+ */
+public class SampleIndexAnnotationBitmap {
+
+    public static final int NUM_BITS = 8;
+    private final String chromosome;
+    private final int batchStart;
+    private final BitSet[] bitmaps;
+
+    public SampleIndexAnnotationBitmap(String chromosome, int position) {
+        this.chromosome = chromosome;
+        this.batchStart = position - position % SampleIndexSchema.BATCH_SIZE;
+        bitmaps = new BitSet[NUM_BITS];
+        for (int i = 0; i < NUM_BITS; i++) {
+            bitmaps[i] = new BitSet();
+        }
+    }
+
+    public String getChromosome() {
+        return chromosome;
+    }
+
+    public int getBatchStart() {
+        return batchStart;
+    }
+
+    /**
+     * Add a sample to the bitmaps of the annotation bits with any variant.
+     *
+     * @param sampleId      Sample id
+     * @param countsPerBit  Number of variants with each annotation bit. See {@link IndexUtils#countPerBit(byte[])}
+     */
+    public void add(int sampleId, int[] countsPerBit) {
+        for (int i = 0; i < NUM_BITS; i++) {
+            if (countsPerBit[i] > 0) {
+                bitmaps[i].set(sampleId);
+            }
+        }
+    }
+
+    public void remove(Collection<Integer> sampleIds) {
+        for (BitSet bitmap : bitmaps) {
+            for (Integer sampleId : sampleIds) {
+                bitmap.clear(sampleId);
+            }
+        }
+    }
+
+    /**
+     * Get the samples that may contain variants matching the annotation mask.
+     * A sample is returned only if it has variants with each of the bits of the mask, so the result is a superset.
+     *
+     * @param annotationMask Annotation mask
+     * @return Samples matching the mask
+     */
+    public BitSet getSamples(byte annotationMask) {
+        BitSet samples = null;
+        for (int i = 0; i < NUM_BITS; i++) {
+            if ((annotationMask >>> i & 1) == 1) {
+                if (samples == null) {
+                    samples = (BitSet) bitmaps[i].clone();
+                } else {
+                    samples.and(bitmaps[i]);
+                }
+            }
+        }
+        if (samples == null) {
+            // Empty mask. Union of all bitmaps
+            samples = new BitSet();
+            for (BitSet bitmap : bitmaps) {
+                samples.or(bitmap);
+            }
+        }
+        return samples;
+    }
+
+    public boolean contains(int sampleId, byte annotationMask) {
+        for (int i = 0; i < NUM_BITS; i++) {
+            if ((annotationMask >>> i & 1) == 1 && !bitmaps[i].get(sampleId)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return Size in bytes of the serialized bitmaps
+     */
+    public int size() {
+        int size = 0;
+        for (BitSet bitmap : bitmaps) {
+            size += (bitmap.length() + 7) / 8;
+        }
+        return size;
+    }
+
+    public Put toPut(byte[] family) {
+        Put put = new Put(SampleIndexSchema.toAnnotationBitmapRowKey(chromosome, batchStart));
+        for (int i = 0; i < NUM_BITS; i++) {
+            put.addColumn(family, SampleIndexSchema.toAnnotationBitmapColumn(i), bitmaps[i].toByteArray());
+        }
+        return put;
+    }
+
+    public static SampleIndexAnnotationBitmap fromResult(Result result, byte[] family) {
+        byte[] row = result.getRow();
+        SampleIndexAnnotationBitmap bitmap = new SampleIndexAnnotationBitmap(
+                SampleIndexSchema.chromosomeFromAnnotationBitmapRowKey(row),
+                SampleIndexSchema.batchStartFromRowKey(row));
+        for (int i = 0; i < NUM_BITS; i++) {
+            byte[] value = result.getValue(family, SampleIndexSchema.toAnnotationBitmapColumn(i));
+            if (value != null) {
+                bitmap.bitmaps[i] = BitSet.valueOf(value);
+            }
+        }
+        return bitmap;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("SampleIndexAnnotationBitmap{")
+                .append("chromosome='").append(chromosome).append('\'')
+                .append(", batchStart=").append(batchStart);
+        for (int i = 0; i < NUM_BITS; i++) {
+            sb.append(", ").append(i).append('=').append(bitmaps[i]);
+        }
+        return sb.append('}').toString();
+    }
+}
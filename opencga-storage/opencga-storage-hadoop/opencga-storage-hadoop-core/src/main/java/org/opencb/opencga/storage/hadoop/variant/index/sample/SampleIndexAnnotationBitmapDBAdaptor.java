@@ -0,0 +1,242 @@
+package org.opencb.opencga.storage.hadoop.variant.index.sample;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.client.*;
+import org.apache.hadoop.hbase.filter.ColumnPrefixFilter;
+import org.apache.hadoop.hbase.io.compress.Compression;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.CollectionUtils;
+import org.opencb.biodata.models.core.Region;
+import org.opencb.opencga.storage.hadoop.utils.HBaseManager;
+import org.opencb.opencga.storage.hadoop.variant.index.IndexUtils;
+import org.opencb.opencga.storage.hadoop.variant.utils.HBaseVariantTableNameGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.*;
+
+import static org.opencb.opencga.storage.hadoop.variant.HadoopVariantStorageEngine.SAMPLE_INDEX_TABLE_COMPRESSION;
+
+/**
+ * Read and write the annotation bitmap table. One row per SampleIndex batch, with one bitmap of samples per annotation bit.
+ */
+public class SampleIndexAnnotationBitmapDBAdaptor {
+
+    private final HBaseManager hBaseManager;
+    private final HBaseVariantTableNameGenerator tableNameGenerator;
+    private final byte[] family;
+    private static Logger logger = LoggerFactory.getLogger(SampleIndexAnnotationBitmapDBAdaptor.class);
+
+    private static final byte[] VERSION_COLUMN = SampleIndexSchema.toAnnotationBitmapVersionColumn();
+    private static final int ROWS_PER_GET = 100;
+    private static final int MAX_ATTEMPTS = 20;
+
+    public SampleIndexAnnotationBitmapDBAdaptor(HBaseManager hBaseManager, HBaseVariantTableNameGenerator tableNameGenerator,
+                                                byte[] family) {
+        this.hBaseManager = hBaseManager;
+        this.tableNameGenerator = tableNameGenerator;
+        this.family = family;
+    }
+
+    /**
+     * Update the bitmaps of the given samples, reading the annotation counts from the SampleIndex table.
+     * Bitmaps from other samples are preserved.
+     *
+     * Only the batches with variants from the given samples are read and conflicted. Each row is written with a checkAndPut
+     * over a version column, and retried if it was conflicted since it was read, so concurrent updates of different
+     * samples do not lose each other's bits.
+     *
+     * @param studyId   Study
+     * @param sampleIds Samples to update
+     * @throws IOException on error accessing HBase
+     */
+    public void update(int studyId, Collection<Integer> sampleIds) throws IOException {
+        String bitmapTableName = tableNameGenerator.getSampleIndexBitmapTableName(studyId);
+        hBaseManager.createTableIfNeeded(bitmapTableName, family, Compression.getCompressionAlgorithmByName(
+                hBaseManager.getConf().get(SAMPLE_INDEX_TABLE_COMPRESSION, Compression.Algorithm.SNAPPY.getName())));
+
+        Map<byte[], Map<Integer, int[]>> countsPerBatch = readAnnotationCounts(studyId, sampleIds);
+
+        List<byte[]> pending = new ArrayList<>(countsPerBatch.keySet());
+        int attempts = 0;
+        int conflicts = 0;
+        while (!pending.isEmpty()) {
+            if (attempts == MAX_ATTEMPTS) {
+                throw new IOException("Unable to update the annotation bitmap of " + pending.size() + " batches after "
+                        + MAX_ATTEMPTS + " attempts");
+            }
+            attempts++;
+            List<byte[]> rowKeys = pending;
+            pending = hBaseManager.act(bitmapTableName, table -> {
+                List<byte[]> conflicted = new ArrayList<>();
+                for (int i = 0; i < rowKeys.size(); i += ROWS_PER_GET) {
+                    List<Get> gets = new ArrayList<>(ROWS_PER_GET);
+                    for (byte[] rowKey : rowKeys.subList(i, Math.min(i + ROWS_PER_GET, rowKeys.size()))) {
+                        gets.add(new Get(rowKey).addFamily(family));
+                    }
+                    Result[] results = table.get(gets);
+                    for (int j = 0; j < results.length; j++) {
+                        byte[] rowKey = gets.get(j).getRow();
+                        if (!updateRow(table, rowKey, results[j], countsPerBatch.get(rowKey))) {
+                            conflicted.add(rowKey);
+                        }
+                    }
+                }
+                return conflicted;
+            });
+            conflicts += pending.size();
+        }
+        logger.info("Updated annotation bitmap of " + sampleIds.size() + " samples. "
+                + countsPerBatch.size() + " batches, " + conflicts + " conflicts");
+    }
+
+    /**
+     * Read the annotation counts of the given samples. Only reads the annotation counts columns.
+     * The annotation index and variants are not needed.
+     *
+     * @param studyId   Study
+     * @param sampleIds Samples to read
+     * @return Counts per bit of each sample, grouped by bitmap row
+     * @throws IOException on error accessing HBase
+     */
+    private Map<byte[], Map<Integer, int[]>> readAnnotationCounts(int studyId, Collection<Integer> sampleIds) throws IOException {
+        Map<byte[], Map<Integer, int[]>> countsPerBatch = new TreeMap<>(Bytes.BYTES_COMPARATOR);
+        hBaseManager.act(tableNameGenerator.getSampleIndexTableName(studyId), table -> {
+            for (Integer sampleId : sampleIds) {
+                Scan scan = new Scan();
+                scan.setRowPrefixFilter(SampleIndexSchema.toRowKey(sampleId));
+                scan.addFamily(family);
+                scan.setFilter(new ColumnPrefixFilter(SampleIndexSchema.ANNOTATION_COUNT_PREFIX_BYTES));
+                try (ResultScanner scanner = table.getScanner(scan)) {
+                    for (Result result : scanner) {
+                        byte[] row = result.getRow();
+                        String chromosome = SampleIndexSchema.chromosomeFromRowKey(row);
+                        int batchStart = SampleIndexSchema.batchStartFromRowKey(row);
+                        int[] counts = new int[SampleIndexAnnotationBitmap.NUM_BITS];
+                        for (Cell cell : result.rawCells()) {
+                            int[] gtCounts = IndexUtils.countPerBitToObject(CellUtil.cloneValue(cell));
+                            for (int i = 0; i < counts.length; i++) {
+                                counts[i] += gtCounts[i];
+                            }
+                        }
+                        countsPerBatch.computeIfAbsent(SampleIndexSchema.toAnnotationBitmapRowKey(chromosome, batchStart),
+                                k -> new HashMap<>()).put(sampleId, counts);
+                    }
+                }
+            }
+        });
+        return countsPerBatch;
+    }
+
+    /**
+     * Replace the bits of the given samples in one row of the bitmap table.
+     *
+     * @param table   Bitmap table
+     * @param rowKey  Row to update
+     * @param current Current content of the row
+     * @param counts  Counts per bit of each sample to update
+     * @return If the row was written. False if the row was modified by another process since it was read
+     * @throws IOException on error accessing HBase
+     */
+    private boolean updateRow(Table table, byte[] rowKey, Result current, Map<Integer, int[]> counts) throws IOException {
+        SampleIndexAnnotationBitmap bitmap;
+        if (current.isEmpty()) {
+            bitmap = new SampleIndexAnnotationBitmap(SampleIndexSchema.chromosomeFromAnnotationBitmapRowKey(rowKey),
+                    SampleIndexSchema.batchStartFromRowKey(rowKey));
+        } else {
+            bitmap = SampleIndexAnnotationBitmap.fromResult(current, family);
+        }
+        bitmap.remove(counts.keySet());
+        counts.forEach(bitmap::add);
+
+        byte[] version = current.getValue(family, VERSION_COLUMN);
+        Put put = bitmap.toPut(family);
+        put.addColumn(family, VERSION_COLUMN, Bytes.toBytes(version == null ? 1L : Bytes.toLong(version) + 1));
+        // A null version only matches rows without version column
+        return table.checkAndPut(rowKey, family, VERSION_COLUMN, version, put);
+    }
+
+    /**
+     * Get the regions from each sample that may contain variants matching the annotation mask.
+     *
+     * @param studyId        Study
+     * @param regions        Regions to query. Empty for the whole genome.
+     * @param annotationMask Annotation mask
+     * @param sampleIds      Samples to query
+     * @param intersect      Only return batches where all samples may contain variants.
+     * @return Regions for each sample. Empty list if the sample does not contain any variant matching the annotation mask.
+     * @throws IOException on error accessing HBase
+     */
+    public Map<Integer, List<Region>> getCandidateRegions(int studyId, List<Region> regions, byte annotationMask,
+                                                          Collection<Integer> sampleIds, boolean intersect) throws IOException {
+        Map<Integer, List<Region>> candidates = new HashMap<>(sampleIds.size());
+        for (Integer sampleId : sampleIds) {
+            candidates.put(sampleId, new ArrayList<>());
+        }
+
+        List<Region> scanRegions;
+        if (CollectionUtils.isEmpty(regions)) {
+            scanRegions = Collections.singletonList(null);
+        } else {
+            scanRegions = regions;
+        }
+        hBaseManager.act(tableNameGenerator.getSampleIndexBitmapTableName(studyId), table -> {
+            for (Region region : scanRegions) {
+                Scan scan = new Scan();
+                if (region != null) {
+                    scan.setStartRow(SampleIndexSchema.toAnnotationBitmapRowKey(region.getChromosome(), region.getStart()));
+                    scan.setStopRow(SampleIndexSchema.toAnnotationBitmapRowKey(region.getChromosome(),
+                            region.getEnd() + (region.getEnd() == Integer.MAX_VALUE ? 0 : SampleIndexSchema.BATCH_SIZE)));
+                }
+                // Only read the bitmaps from the bits in the mask
+                for (int i = 0; i < SampleIndexAnnotationBitmap.NUM_BITS; i++) {
+                    if ((annotationMask >>> i & 1) == 1) {
+                        scan.addColumn(family, SampleIndexSchema.toAnnotationBitmapColumn(i));
+                    }
+                }
+                try (ResultScanner scanner = table.getScanner(scan)) {
+                    for (Result result : scanner) {
+                        SampleIndexAnnotationBitmap bitmap = SampleIndexAnnotationBitmap.fromResult(result, family);
+                        BitSet samples = bitmap.getSamples(annotationMask);
+                        if (intersect && !sampleIds.stream().allMatch(samples::get)) {
+                            continue;
+                        }
+                        Region batchRegion = toRegion(bitmap, region);
+                        for (Integer sampleId : sampleIds) {
+                            if (samples.get(sampleId)) {
+                                addRegion(candidates.get(sampleId), batchRegion);
+                            }
+                        }
+                    }
+                }
+            }
+        });
+        return candidates;
+    }
+
+    private static Region toRegion(SampleIndexAnnotationBitmap bitmap, Region region) {
+        int start = bitmap.getBatchStart();
+        int end = bitmap.getBatchStart() + SampleIndexSchema.BATCH_SIZE - 1;
+        if (region != null) {
+            start = Math.max(start, region.getStart());
+            end = Math.min(end, region.getEnd());
+        }
+        return new Region(bitmap.getChromosome(), start, end);
+    }
+
+    /**
+     * Add a region to the list. Merge with the last region if consecutive, to reduce the number of scans.
+     */
+    private static void addRegion(List<Region> list, Region region) {
+        if (!list.isEmpty()) {
+            Region last = list.get(list.size() - 1);
+            if (last.getChromosome().equals(region.getChromosome()) && last.getEnd() + 1 == region.getStart()) {
+                last.setEnd(region.getEnd());
+                return;
+            }
+        }
+        list.add(new Region(region.getChromosome(), region.getStart(), region.getEnd()));
+    }
+}
@@ -28,17 +28,24 @@ import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ExecutionException;
 
+import static org.opencb.opencga.storage.hadoop.variant.HadoopVariantStorageEngine.DEFAULT_SAMPLE_INDEX_ANNOTATION_BITMAP;
+import static org.opencb.opencga.storage.hadoop.variant.HadoopVariantStorageEngine.SAMPLE_INDEX_ANNOTATION_BITMAP;
+
 /**
  * Created by jacobo on 04/01/19.
  */
 public class SampleIndexAnnotationLoader {
 
     public static final String SAMPLE_INDEX_STATUS = "sampleIndex";
+    public static final String SAMPLE_INDEX_ANNOTATION_BITMAP_STATUS = "sampleIndexAnnotationBitmap";
+    // Extended annotation index written with the current AnnotationIndexSchema of the study
+    public static final String SAMPLE_INDEX_ANNOTATION_SCHEMA_STATUS = "sampleIndexAnnotationSchema";
     private final HBaseManager hBaseManager;
     private final HBaseVariantTableNameGenerator tableNameGenerator;
     private final MRExecutor mrExecutor;
     private final AnnotationIndexDBAdaptor annotationIndexDBAdaptor;
     private final SampleIndexDBAdaptor sampleDBAdaptor;
+    private final SampleIndexAnnotationBitmapDBAdaptor bitmapDBAdaptor;
     private final byte[] family;
     private final VariantStorageMetadataManager metadataManager;
     private Logger logger = LoggerFactory.getLogger(SampleIndexAnnotationLoader.class);
@@ -52,6 +59,7 @@ public class SampleIndexAnnotationLoader {
         this.metadataManager = metadataManager;
         this.sampleDBAdaptor = new SampleIndexDBAdaptor(helper, hBaseManager, tableNameGenerator, this.metadataManager);
         family = helper.getColumnFamily();
+        this.bitmapDBAdaptor = new SampleIndexAnnotationBitmapDBAdaptor(hBaseManager, tableNameGenerator, family);
     }
 
     public void updateSampleAnnotation(int studyId, List<Integer> samples, ObjectMap options) throws IOException, StorageEngineException {
@@ -68,6 +76,36 @@ public class SampleIndexAnnotationLoader {
 
 //        updateSampleAnnotationBatchMultiThread(studyId, samples);
         updateSampleAnnotationBatchMapreduce(studyId, samples, options);
+
+        if (options.getBoolean(SAMPLE_INDEX_ANNOTATION_BITMAP, DEFAULT_SAMPLE_INDEX_ANNOTATION_BITMAP)) {
+            updateAnnotationBitmap(studyId, samples);
+        }
+    }
+
+    /**
+     * Update the annotation bitmap of the given samples. The bitmap is built from the annotation counts stored
+     * in the SampleIndex, so the annotation of the samples must be already loaded.
+     *
+     * @param studyId Study
+     * @param samples Samples to update
+     * @throws IOException on error accessing HBase
+     * @throws StorageEngineException on error updating the metadata
+     */
+    public void updateAnnotationBitmap(int studyId, List<Integer> samples) throws IOException, StorageEngineException {
+        // Invalidate current bitmap before modifying it
+        for (Integer sampleId : samples) {
+            metadataManager.updateSampleMetadata(studyId, sampleId, sampleMetadata -> {
+                sampleMetadata.setStatus(SAMPLE_INDEX_ANNOTATION_BITMAP_STATUS, TaskMetadata.Status.NONE);
+                return sampleMetadata;
+            });
+        }
+        bitmapDBAdaptor.update(studyId, samples);
+        for (Integer sampleId : samples) {
+            metadataManager.updateSampleMetadata(studyId, sampleId, sampleMetadata -> {
+                sampleMetadata.setStatus(SAMPLE_INDEX_ANNOTATION_BITMAP_STATUS, TaskMetadata.Status.READY);
+                return sampleMetadata;
+            });
+        }
     }
 
     private void updateSampleAnnotationBatchMapreduce(int studyId, List<Integer> samples, ObjectMap options)
@@ -268,8 +306,9 @@ public class SampleIndexAnnotationLoader {
         return put;
     }
 
-    private void postAnnotationLoad(int studyId, List<Integer> samples) throws StorageEngineException {
+    private void postAnnotationLoad(int studyId, List<Integer> samples) throws IOException, StorageEngineException {
         postAnnotationLoad(studyId, samples, metadataManager);
+        updateAnnotationBitmap(studyId, samples);
     }
 
     public static void postAnnotationLoad(int studyId, List<Integer> samples, VariantStorageMetadataManager metadataManager)
@@ -2,6 +2,7 @@ package org.opencb.opencga.storage.hadoop.variant.index.sample;
 
 import com.google.common.collect.Iterators;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
@@ -14,6 +15,7 @@ import org.opencb.biodata.models.variant.avro.VariantType;
 import org.opencb.commons.datastore.core.Query;
 import org.opencb.commons.datastore.core.QueryOptions;
 import org.opencb.opencga.storage.core.metadata.VariantStorageMetadataManager;
+import org.opencb.opencga.storage.core.utils.SharedExecutor;
 import org.opencb.opencga.storage.core.variant.VariantStorageEngine;
 import org.opencb.opencga.storage.core.variant.adaptors.GenotypeClass;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantIterable;
@@ -21,6 +23,7 @@ import org.opencb.opencga.storage.core.variant.adaptors.VariantQueryException;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantQueryUtils;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantQueryUtils.QueryOperation;
 import org.opencb.opencga.storage.core.variant.adaptors.iterators.IntersectMultiVariantKeyIterator;
+import org.opencb.opencga.storage.core.variant.adaptors.iterators.PrefetchVariantDBIterator;
 import org.opencb.opencga.storage.core.variant.adaptors.iterators.UnionMultiVariantKeyIterator;
 import org.opencb.opencga.storage.core.variant.adaptors.iterators.VariantDBIterator;
 import org.opencb.opencga.storage.hadoop.utils.HBaseManager;
@@ -33,8 +36,11 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
+import static org.opencb.opencga.storage.hadoop.variant.HadoopVariantStorageEngine.*;
 import static org.opencb.opencga.storage.hadoop.variant.adaptors.phoenix.VariantSqlQueryParser.DEFAULT_LOADED_GENOTYPES;
 import static org.opencb.opencga.storage.hadoop.variant.index.IndexUtils.EMPTY_MASK;
 
@@ -49,6 +55,10 @@ public class SampleIndexDBAdaptor implements VariantIterable {
     private final HBaseVariantTableNameGenerator tableNameGenerator;
     private final VariantStorageMetadataManager metadataManager;
     private final byte[] family;
+    private final SampleIndexAnnotationBitmapDBAdaptor bitmapDBAdaptor;
+    private final boolean parallel;
+    private final int prefetchSize;
+    private final Configuration conf;
     private static Logger logger = LoggerFactory.getLogger(SampleIndexDBAdaptor.class);
 
     public SampleIndexDBAdaptor(GenomeHelper helper, HBaseManager hBaseManager, HBaseVariantTableNameGenerator tableNameGenerator,
@@ -57,14 +67,29 @@ public class SampleIndexDBAdaptor implements VariantIterable {
         this.tableNameGenerator = tableNameGenerator;
         this.metadataManager = metadataManager;
         family = helper.getColumnFamily();
+        bitmapDBAdaptor = new SampleIndexAnnotationBitmapDBAdaptor(hBaseManager, tableNameGenerator, family);
+        conf = helper.getConf();
+        parallel = conf.getBoolean(SAMPLE_INDEX_QUERY_PARALLEL, DEFAULT_SAMPLE_INDEX_QUERY_PARALLEL);
+        prefetchSize = conf.getInt(SAMPLE_INDEX_QUERY_PREFETCH_SIZE, DEFAULT_SAMPLE_INDEX_QUERY_PREFETCH_SIZE);
     }
 
     @Override
     public VariantDBIterator iterator(Query query, QueryOptions options) {
-        return iterator(SampleIndexQueryParser.parseSampleIndexQuery(query, metadataManager));
+        return iterator(SampleIndexQueryParser.parseSampleIndexQuery(query, metadataManager), options);
     }
 
     public VariantDBIterator iterator(SampleIndexQuery query) {
+        return iterator(query, null);
+    }
+
+    /**
+     * Iterate over the variants from the sample index matching the query.
+     *
+     * @param query     SampleIndexQuery
+     * @param options   Query options. The limit and skip, if any, bound the rows read ahead from each scan.
+     * @return          Variants iterator
+     */
+    public VariantDBIterator iterator(SampleIndexQuery query, QueryOptions options) {
         String study = query.getStudy();
         Map<String, List<String>> samples = query.getSamplesMap();
 
@@ -73,6 +98,28 @@ public class SampleIndexDBAdaptor implements VariantIterable {
         }
         List<String> allGts = getAllLoadedGenotypes(study);
         QueryOperation operation = query.getQueryOperation();
+        int limit = getLimit(options);
+
+        // Use the annotation bitmap to discard batches from samples without any variant matching the annotation mask
+        Map<String, List<Region>> candidateRegions = null;
+        if (query.isAnnotationBitmapReady()) {
+            List<String> positiveSamples = new ArrayList<>(samples.size());
+            for (Map.Entry<String, List<String>> entry : samples.entrySet()) {
+                List<String> gts = GenotypeClass.filter(entry.getValue(), allGts);
+                if ((entry.getValue().isEmpty() || !gts.isEmpty()) && gts.stream().allMatch(SampleIndexDBLoader::validGenotype)) {
+                    positiveSamples.add(entry.getKey());
+                }
+            }
+            if (!positiveSamples.isEmpty()) {
+                boolean intersect = operation != QueryOperation.OR;
+                candidateRegions = getCandidateRegions(query, positiveSamples, intersect);
+                if ((intersect || samples.size() == 1) && candidateRegions.values().stream().anyMatch(List::isEmpty)) {
+                    // Intersection with an empty sample. Should find none
+                    logger.info("Empty intersection after checking the annotation bitmap");
+                    return VariantDBIterator.emptyIterator();
+                }
+            }
+        }
 
         if (samples.size() == 1) {
             String sample = samples.entrySet().iterator().next().getKey();
@@ -84,7 +131,7 @@ public class SampleIndexDBAdaptor implements VariantIterable {
                 return VariantDBIterator.emptyIterator();
             } else {
                 logger.info("Single sample indexes iterator");
-                return internalIterator(query.forSample(sample, filteredGts));
+                return internalIterator(forSample(query, sample, filteredGts, candidateRegions), limit);
             }
         }
 
@@ -97,8 +144,12 @@ public class SampleIndexDBAdaptor implements VariantIterable {
             if (!entry.getValue().isEmpty() && gts.isEmpty()) {
                 // If empty, should find none. Add empty iterator for this sample
                 iterators.add(VariantDBIterator.emptyIterator());
+            } else if (candidateRegions != null && candidateRegions.containsKey(sample) && candidateRegions.get(sample).isEmpty()) {
+                // No variants matching the annotation mask for this sample
+                iterators.add(VariantDBIterator.emptyIterator());
             } else if (gts.stream().allMatch(SampleIndexDBLoader::validGenotype)) {
-                iterators.add(internalIterator(query.forSample(sample, gts)));
+                Map<String, List<Region>> finalCandidateRegions = candidateRegions;
+                iterators.add(prefetch(() -> internalIterator(forSample(query, sample, gts, finalCandidateRegions), limit)));
             } else {
                 if (operation.equals(QueryOperation.OR)) {
                     throw new IllegalArgumentException("Unable to query by REF or MISS genotypes!");
@@ -109,7 +160,7 @@ public class SampleIndexDBAdaptor implements VariantIterable {
                 // Skip if GTs to query is empty!
                 // Otherwise, it will return ALL genotypes instead of none
                 if (!queryGts.isEmpty()) {
-                    negatedIterators.add(internalIterator(query.forSample(sample, queryGts)));
+                    negatedIterators.add(prefetch(() -> internalIterator(query.forSample(sample, queryGts), 0)));
                 }
             }
         }
@@ -123,18 +174,89 @@ public class SampleIndexDBAdaptor implements VariantIterable {
 
     }
 
+    private SingleSampleIndexQuery forSample(SampleIndexQuery query, String sample, List<String> gts,
+                                             Map<String, List<Region>> candidateRegions) {
+        if (candidateRegions == null || !candidateRegions.containsKey(sample)) {
+            return query.forSample(sample, gts);
+        } else {
+            return query.forSample(sample, gts, candidateRegions.get(sample));
+        }
+    }
+
+    /**
+     * Get the regions from each sample that may contain variants matching the annotation mask of the query.
+     *
+     * @param query     SampleIndexQuery
+     * @param samples   Samples to check
+     * @param intersect Only return batches where all samples may contain variants
+     * @return Regions from each sample
+     */
+    private Map<String, List<Region>> getCandidateRegions(SampleIndexQuery query, List<String> samples, boolean intersect) {
+        int studyId = toStudyId(query.getStudy());
+        Map<Integer, String> sampleNames = new HashMap<>(samples.size());
+        for (String sample : samples) {
+            sampleNames.put(toSampleId(studyId, sample), sample);
+        }
+        Map<Integer, List<Region>> regionsById;
+        try {
+            regionsById = bitmapDBAdaptor.getCandidateRegions(studyId, query.getRegions(), query.getAnnotationIndexMask(),
+                    sampleNames.keySet(), intersect);
+        } catch (IOException e) {
+            throw VariantQueryException.internalException(e);
+        }
+        Map<String, List<Region>> regions = new HashMap<>(samples.size());
+        for (Map.Entry<Integer, List<Region>> entry : regionsById.entrySet()) {
+            String sample = sampleNames.get(entry.getKey());
+            regions.put(sample, entry.getValue());
+            logger.info("Sample '" + sample + "' with " + entry.getValue().size() + " candidate regions after checking annotation bitmap");
+        }
+        return regions;
+    }
+
+    /**
+     * Read the given iterator in background, so the scans from multiple samples are executed concurrently.
+     * The merge of all the iterators is still done by the calling thread, preserving the order of the variants.
+     *
+     * @param supplier Single sample iterator supplier. The iterator is created in background.
+     * @return Prefetch iterator, or the supplied iterator if parallel scans are disabled
+     */
+    private VariantDBIterator prefetch(Supplier<VariantDBIterator> supplier) {
+        if (!parallel) {
+            return supplier.get();
+        }
+        return new PrefetchVariantDBIterator(supplier, getSharedExecutor().getExecutorService(), prefetchSize);
+    }
+
+    /**
+     * Max number of variants to be read from the iterator, if known.
+     *
+     * @param options   Query options
+     * @return          limit + skip, or 0 if there is no limit
+     */
+    private static int getLimit(QueryOptions options) {
+        if (options == null || options.getInt(QueryOptions.LIMIT, 0) <= 0) {
+            return 0;
+        }
+        return options.getInt(QueryOptions.LIMIT) + Math.max(0, options.getInt(QueryOptions.SKIP, 0));
+    }
+
+    SharedExecutor getSharedExecutor() {
+        return GenomeHelper.getSharedExecutor(conf);
+    }
+
     /**
      * Partially processed iterator. Internal usage only.
      *
      * @param query SingleSampleIndexQuery
+     * @param limit Max number of variants to be read, or 0 if unknown
      * @return SingleSampleIndexVariantDBIterator
      */
-    private SingleSampleIndexVariantDBIterator internalIterator(SingleSampleIndexQuery query) {
+    private SingleSampleIndexVariantDBIterator internalIterator(SingleSampleIndexQuery query, int limit) {
         String tableName = tableNameGenerator.getSampleIndexTableName(toStudyId(query.getStudy()));
 
         try {
             return hBaseManager.act(tableName, table -> {
-                return new SingleSampleIndexVariantDBIterator(table, query, family, this);
+                return new SingleSampleIndexVariantDBIterator(table, query, family, this, limit);
             });
         } catch (IOException e) {
             throw VariantQueryException.internalException(e);
@@ -280,6 +402,65 @@ public class SampleIndexDBAdaptor implements VariantIterable {
         }
     }
 
+    /**
+     * Read the precomputed counters of one sample, without reading any variant.
+     * Each {@link SampleIndexEntry} contains the number of variants per genotype
+     * (see {@link SampleIndexEntry.SampleIndexGtEntry#getCount()}) and, if requested, the annotation counts per bit.
+     *
+     * Only the study, samples, genotypes and regions are used from the query. All regions must be aligned with batches.
+     *
+     * @param query            SampleIndexQuery
+     * @param sample           Sample to read
+     * @param annotationCounts Read annotation counts
+     * @param consumer         Consumer of the counters of each batch
+     * @see #isBatchAligned(Region)
+     */
+    public void counters(SampleIndexQuery query, String sample, boolean annotationCounts, Consumer<SampleIndexEntry> consumer) {
+        List<Region> regionsList;
+        if (CollectionUtils.isEmpty(query.getRegions())) {
+            regionsList = Collections.singletonList(null);
+        } else {
+            regionsList = VariantQueryUtils.mergeRegions(query.getRegions());
+            for (Region region : regionsList) {
+                if (!isBatchAligned(region)) {
+                    throw new VariantQueryException("Unable to read SampleIndex counters from region " + region
+                            + ". Region not aligned with batches of " + SampleIndexSchema.BATCH_SIZE);
+                }
+            }
+        }
+
+        List<String> allGts = getAllLoadedGenotypes(query.getStudy());
+        List<String> gts = query.getSamplesMap().get(sample);
+        if (CollectionUtils.isEmpty(gts)) {
+            gts = allGts;
+        } else {
+            gts = GenotypeClass.filter(gts, allGts);
+        }
+        SingleSampleIndexQuery sampleIndexQuery = query.forSample(sample, gts);
+
+        String tableName = tableNameGenerator.getSampleIndexTableName(toStudyId(query.getStudy()));
+        try {
+            hBaseManager.act(tableName, table -> {
+                HBaseToSampleIndexConverter converter = new HBaseToSampleIndexConverter();
+                for (Region region : regionsList) {
+                    Scan scan = parse(sampleIndexQuery, region, true);
+                    if (annotationCounts) {
+                        for (String gt : sampleIndexQuery.getGenotypes()) {
+                            scan.addColumn(family, SampleIndexSchema.toAnnotationIndexCountColumn(gt));
+                        }
+                    }
+                    try (ResultScanner scanner = table.getScanner(scan)) {
+                        for (Result result : scanner) {
+                            consumer.accept(converter.convert(result));
+                        }
+                    }
+                }
+            });
+        } catch (IOException e) {
+            throw VariantQueryException.internalException(e);
+        }
+    }
+
     protected int toStudyId(String study) {
         int studyId;
         if (StringUtils.isEmpty(study)) {
@@ -343,7 +524,19 @@ public class SampleIndexDBAdaptor implements VariantIterable {
     }
 
     protected static boolean endsAtBatch(Region region) {
-        return region.getEnd() + 1 % SampleIndexSchema.BATCH_SIZE == 0;
+        return (region.getEnd() + 1) % SampleIndexSchema.BATCH_SIZE == 0;
+    }
+
+    /**
+     * Check if a region contains only complete batches, so it can be counted from the precomputed counters.
+     *
+     * @param region Region to check
+     * @return If the region is aligned with the batches at SampleIndexTable
+     */
+    public static boolean isBatchAligned(Region region) {
+        return region == null
+                || (region.getStart() <= 1 || startsAtBatch(region))
+                && (region.getEnd() == Integer.MAX_VALUE || endsAtBatch(region));
     }
 
     public Scan parse(SingleSampleIndexQuery query, Region region, boolean count) {
@@ -373,6 +566,9 @@ public class SampleIndexDBAdaptor implements VariantIterable {
                     scan.addColumn(family, SampleIndexSchema.toAnnotationIndexColumn(gt));
                     scan.addColumn(family, SampleIndexSchema.toAnnotationIndexCountColumn(gt));
                 }
+                if (query.getAnnotationIndexFilter() != null) {
+                    scan.addColumn(family, SampleIndexSchema.toAnnotationIndexExtendedColumn(gt));
+                }
                 if (query.getFileIndexMask() != EMPTY_MASK) {
                     scan.addColumn(family, SampleIndexSchema.toFileIndexColumn(gt));
                 }
@@ -396,6 +592,9 @@ public class SampleIndexDBAdaptor implements VariantIterable {
 //        logger.info("Batch = " + scan.getBatch());
 //        logger.info("Caching = " + scan.getCaching());
         logger.info("AnnotationIndex = " + IndexUtils.maskToString(query.getAnnotationIndexMask(), (byte) 0xFF));
+        if (query.getAnnotationIndexFilter() != null) {
+            logger.info("AnnotationIndexFilter = " + query.getAnnotationIndexFilter());
+        }
         logger.info("FileIndex       = " + IndexUtils.maskToString(query.getFileIndexMask(), query.getFileIndex()));
         if (query.hasFatherFilter()) {
             logger.info("FatherFilter       = " + IndexUtils.parentFilterToString(query.getFatherFilter()));
@@ -75,9 +75,11 @@ public class SampleIndexEntry {
         private String gt;
 
         private SampleIndexVariantBiConverter.SampleIndexVariantIterator variants;
+        private Integer count;
         private byte[] fileIndexGt;
         private byte[] annotationIndexGt;
         private int[] annotationCounts;
+        private byte[] annotationIndexExtendedGt;
         private byte[] parentsGt;
 
         public SampleIndexGtEntry(String gt) {
@@ -112,6 +114,18 @@ public class SampleIndexEntry {
             return this;
         }
 
+        /**
+         * @return Number of variants with this genotype, read from the genotype count column. Null if not read.
+         */
+        public Integer getCount() {
+            return count;
+        }
+
+        public SampleIndexGtEntry setCount(Integer count) {
+            this.count = count;
+            return this;
+        }
+
         public byte[] getFileIndexGt() {
             return fileIndexGt;
         }
@@ -139,6 +153,15 @@ public class SampleIndexEntry {
             return this;
         }
 
+        public byte[] getAnnotationIndexExtendedGt() {
+            return annotationIndexExtendedGt;
+        }
+
+        public SampleIndexGtEntry setAnnotationIndexExtendedGt(byte[] annotationIndexExtendedGt) {
+            this.annotationIndexExtendedGt = annotationIndexExtendedGt;
+            return this;
+        }
+
         public byte[] getParentsGt() {
             return parentsGt;
         }
@@ -153,9 +176,11 @@ public class SampleIndexEntry {
             return new ToStringBuilder(this)
                     .append("gt", gt)
                     .append("variants", variants)
+                    .append("count", count)
                     .append("fileIndexGt", fileIndexGt)
                     .append("annotationIndexGt", annotationIndexGt)
                     .append("annotationCounts", annotationCounts)
+                    .append("annotationIndexExtendedGt", annotationIndexExtendedGt)
                     .append("parentsGt", parentsGt)
                     .toString();
         }
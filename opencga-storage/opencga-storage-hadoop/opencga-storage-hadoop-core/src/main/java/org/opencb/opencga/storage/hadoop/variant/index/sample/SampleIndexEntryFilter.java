@@ -3,10 +3,12 @@ package org.opencb.opencga.storage.hadoop.variant.index.sample;
 import org.apache.commons.lang3.mutable.MutableInt;
 import org.opencb.biodata.models.core.Region;
 import org.opencb.biodata.models.variant.Variant;
+import org.opencb.biodata.models.variant.avro.VariantType;
 import org.opencb.opencga.storage.hadoop.variant.index.IndexUtils;
 import org.opencb.opencga.storage.hadoop.variant.index.family.MendelianErrorSampleIndexConverter;
 import org.opencb.opencga.storage.hadoop.variant.index.sample.SampleIndexEntry.SampleIndexGtEntry;
 import org.opencb.opencga.storage.hadoop.variant.index.sample.SampleIndexQuery.SingleSampleIndexQuery;
+import org.opencb.opencga.storage.hadoop.variant.index.sample.SampleIndexVariantBiConverter.SampleIndexVariantView;
 
 import java.util.*;
 
@@ -24,8 +26,14 @@ import static org.opencb.opencga.storage.hadoop.variant.index.sample.SampleIndex
  */
 public class SampleIndexEntryFilter {
 
+    private static final Set<VariantType> SNV_TYPES = EnumSet.of(VariantType.SNV, VariantType.SNP);
+
     private SingleSampleIndexQuery query;
     private Region regionFilter;
+    // Variant types filter accepts SNVs
+    private final boolean acceptSnv;
+    // Variant types filter only accepts SNVs
+    private final boolean onlySnv;
 
     private final List<Integer> annotationIndexPositions;
 
@@ -37,6 +45,15 @@ public class SampleIndexEntryFilter {
         this.query = query;
         this.regionFilter = regionFilter;
 
+        Set<VariantType> types = query.getVariantTypes();
+        if (types == null) {
+            acceptSnv = true;
+            onlySnv = false;
+        } else {
+            acceptSnv = types.contains(VariantType.SNV) || types.contains(VariantType.SNP);
+            onlySnv = !types.isEmpty() && SNV_TYPES.containsAll(types);
+        }
+
         int[] countsPerBit = IndexUtils.countPerBit(new byte[]{query.getAnnotationIndexMask()});
 
         annotationIndexPositions = new ArrayList<>(8);
@@ -119,19 +136,27 @@ public class SampleIndexEntryFilter {
                 || testIndex(gtEntry.getAnnotationIndexGt()[idx], query.getAnnotationIndexMask(), query.getAnnotationIndexMask())) {
             expectedResultsFromAnnotation.decrement();
 
-            // Test file index (if any)
-            if (gtEntry.getFileIndexGt() == null
-                    || testIndex(gtEntry.getFileIndexGt()[idx], query.getFileIndexMask(), query.getFileIndex())) {
+            // Test extended annotation index (if any)
+            if (query.getAnnotationIndexFilter() == null || gtEntry.getAnnotationIndexExtendedGt() == null
+                    || query.getAnnotationIndexFilter().test(gtEntry.getAnnotationIndexExtendedGt(), idx)) {
+
+                // Test file index (if any)
+                if (gtEntry.getFileIndexGt() == null
+                        || testIndex(gtEntry.getFileIndexGt()[idx], query.getFileIndexMask(), query.getFileIndex())) {
 
-                // Test parents filter (if any)
-                if (gtEntry.getParentsGt() == null
-                        || testParentsGenotypeCode(gtEntry.getParentsGt()[idx], query.getFatherFilter(), query.getMotherFilter())) {
+                    // Test parents filter (if any)
+                    if (gtEntry.getParentsGt() == null
+                            || testParentsGenotypeCode(gtEntry.getParentsGt()[idx], query.getFatherFilter(), query.getMotherFilter())) {
 
-                    // Only at this point, get the variant.
-                    Variant variant = variants.next();
+                        // Test the encoded variant before building the Variant object
+                        if (filter(variants.nextView())) {
+                            // Only at this point, get the variant.
+                            Variant variant = variants.next();
 
-                    // Apply rest of filters
-                    return filter(variant);
+                            // Apply rest of filters
+                            return filter(variant);
+                        }
+                    }
                 }
             }
         }
@@ -139,6 +164,28 @@ public class SampleIndexEntryFilter {
         return null;
     }
 
+    /**
+     * Partial filter over the encoded variant. Does not build the Variant object.
+     * Variants passing this filter must be tested with {@link #filter(Variant)}.
+     *
+     * @param view Encoded variant
+     * @return false if the variant can be discarded
+     */
+    private boolean filter(SampleIndexVariantView view) {
+        //Test region filter (if any)
+        if (regionFilter != null && !regionFilter.contains(view.getChromosome(), view.getStart())) {
+            return false;
+        }
+        // Test type filter (if any)
+        if (view.isSnv()) {
+            return acceptSnv;
+        } else if (onlySnv) {
+            // Any SNV has reference and alternate of length 1
+            return view.getReferenceLength() == 1 && view.getAlternateLength() == 1;
+        }
+        return true;
+    }
+
     private Variant filter(Variant variant) {
         //Test region filter (if any)
         if (regionFilter == null || regionFilter.contains(variant.getChromosome(), variant.getStart())) {
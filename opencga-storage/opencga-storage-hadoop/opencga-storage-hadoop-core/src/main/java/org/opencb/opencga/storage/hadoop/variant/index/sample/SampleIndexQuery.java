@@ -3,6 +3,7 @@ package org.opencb.opencga.storage.hadoop.variant.index.sample;
 import org.opencb.biodata.models.core.Region;
 import org.opencb.biodata.models.variant.avro.VariantType;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantQueryUtils;
+import org.opencb.opencga.storage.hadoop.variant.index.annotation.AnnotationIndexFilter;
 import org.opencb.opencga.storage.hadoop.variant.index.family.GenotypeCodec;
 
 import java.util.*;
@@ -35,8 +36,10 @@ public class SampleIndexQuery {
     private final Map<String, boolean[]> motherFilter;
     private final Map<String, byte[]> fileFilterMap; // byte[] = {mask , index}
     private final byte annotationIndexMask;
+    private final AnnotationIndexFilter annotationIndexFilter;
     private final Set<String> mendelianErrorSet;
     private final VariantQueryUtils.QueryOperation queryOperation;
+    private final boolean annotationBitmapReady;
 
     public SampleIndexQuery(List<Region> regions, String study, Map<String, List<String>> samplesMap, QueryOperation queryOperation) {
         this(regions, null, study, samplesMap, Collections.emptyMap(), Collections.emptyMap(), Collections.emptyMap(), EMPTY_MASK,
@@ -47,6 +50,22 @@ public class SampleIndexQuery {
                             Map<String, boolean[]> fatherFilter, Map<String, boolean[]> motherFilter,
                             Map<String, byte[]> fileFilterMap, byte annotationIndexMask, Set<String> mendelianErrorSet,
                             QueryOperation queryOperation) {
+        this(regions, variantTypes, study, samplesMap, fatherFilter, motherFilter, fileFilterMap, annotationIndexMask,
+                mendelianErrorSet, queryOperation, false);
+    }
+
+    public SampleIndexQuery(List<Region> regions, Set<VariantType> variantTypes, String study, Map<String, List<String>> samplesMap,
+                            Map<String, boolean[]> fatherFilter, Map<String, boolean[]> motherFilter,
+                            Map<String, byte[]> fileFilterMap, byte annotationIndexMask, Set<String> mendelianErrorSet,
+                            QueryOperation queryOperation, boolean annotationBitmapReady) {
+        this(regions, variantTypes, study, samplesMap, fatherFilter, motherFilter, fileFilterMap, annotationIndexMask, null,
+                mendelianErrorSet, queryOperation, annotationBitmapReady);
+    }
+
+    public SampleIndexQuery(List<Region> regions, Set<VariantType> variantTypes, String study, Map<String, List<String>> samplesMap,
+                            Map<String, boolean[]> fatherFilter, Map<String, boolean[]> motherFilter,
+                            Map<String, byte[]> fileFilterMap, byte annotationIndexMask, AnnotationIndexFilter annotationIndexFilter,
+                            Set<String> mendelianErrorSet, QueryOperation queryOperation, boolean annotationBitmapReady) {
         this.regions = regions;
         this.variantTypes = variantTypes;
         this.study = study;
@@ -55,8 +74,10 @@ public class SampleIndexQuery {
         this.motherFilter = motherFilter;
         this.fileFilterMap = fileFilterMap;
         this.annotationIndexMask = annotationIndexMask;
+        this.annotationIndexFilter = annotationIndexFilter == null || annotationIndexFilter.isEmpty() ? null : annotationIndexFilter;
         this.mendelianErrorSet = mendelianErrorSet;
         this.queryOperation = queryOperation;
+        this.annotationBitmapReady = annotationBitmapReady;
     }
 
     public List<Region> getRegions() {
@@ -107,8 +128,26 @@ public class SampleIndexQuery {
         return annotationIndexMask;
     }
 
+    /**
+     * @return Filter over the extended annotation index, or null if none.
+     */
+    public AnnotationIndexFilter getAnnotationIndexFilter() {
+        return annotationIndexFilter;
+    }
+
     public boolean emptyAnnotationIndex() {
-        return annotationIndexMask == EMPTY_MASK;
+        return annotationIndexMask == EMPTY_MASK && annotationIndexFilter == null;
+    }
+
+    /**
+     * @return if the annotation bitmap is available for all the samples, and can be used to discard batches before scanning.
+     */
+    public boolean isAnnotationBitmapReady() {
+        return annotationBitmapReady;
+    }
+
+    public Set<String> getMendelianErrorSet() {
+        return mendelianErrorSet;
     }
 
     public VariantQueryUtils.QueryOperation getQueryOperation() {
@@ -126,6 +165,18 @@ public class SampleIndexQuery {
         return new SingleSampleIndexQuery(this, sample, gts);
     }
 
+    /**
+     * Create a SingleSampleIndexQuery, replacing the regions to query.
+     *
+     * @param sample  Sample to query
+     * @param gts     Processed list of GTs. Real GTs only.
+     * @param regions Regions to query
+     * @return SingleSampleIndexQuery
+     */
+    SingleSampleIndexQuery forSample(String sample, List<String> gts, List<Region> regions) {
+        return new SingleSampleIndexQuery(this, sample, gts, regions);
+    }
+
     /**
      * Create a SingleSampleIndexQuery.
      *
@@ -151,7 +202,11 @@ public class SampleIndexQuery {
         }
 
         protected SingleSampleIndexQuery(SampleIndexQuery query, String sample, List<String> gts) {
-            super(query.regions == null ? null : new ArrayList<>(query.regions),
+            this(query, sample, gts, query.regions);
+        }
+
+        protected SingleSampleIndexQuery(SampleIndexQuery query, String sample, List<String> gts, List<Region> regions) {
+            super(regions == null ? null : new ArrayList<>(regions),
                     query.variantTypes == null ? null : new HashSet<>(query.variantTypes),
                     query.study,
                     Collections.singletonMap(sample, gts),
@@ -159,8 +214,10 @@ public class SampleIndexQuery {
                     query.motherFilter,
                     query.fileFilterMap,
                     query.annotationIndexMask,
+                    query.annotationIndexFilter,
                     query.mendelianErrorSet,
-                    query.queryOperation);
+                    query.queryOperation,
+                    query.annotationBitmapReady);
             this.sample = sample;
             this.gts = gts;
             fatherFilter = getFatherFilter(sample);
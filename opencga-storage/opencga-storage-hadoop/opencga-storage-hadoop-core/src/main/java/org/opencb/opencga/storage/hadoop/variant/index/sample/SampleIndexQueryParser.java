@@ -17,6 +17,8 @@ import org.opencb.opencga.storage.core.variant.adaptors.VariantQueryParam;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantQueryUtils;
 import org.opencb.opencga.storage.core.variant.query.VariantQueryParser;
 import org.opencb.opencga.storage.hadoop.variant.index.IndexUtils;
+import org.opencb.opencga.storage.hadoop.variant.index.annotation.AnnotationIndexFilter;
+import org.opencb.opencga.storage.hadoop.variant.index.annotation.AnnotationIndexSchema;
 import org.opencb.opencga.storage.hadoop.variant.index.family.GenotypeCodec;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,6 +38,8 @@ import static org.opencb.opencga.storage.hadoop.variant.index.sample.SampleIndex
  */
 public class SampleIndexQueryParser {
     private static Logger logger = LoggerFactory.getLogger(SampleIndexQueryParser.class);
+    private static final Set<String> POP_FREQ_INDEX_OPERATORS = new HashSet<>(Arrays.asList(
+            "<", "<<", "<=", "<<=", ">", ">>", ">=", ">>=", "=", "=="));
 
     /**
      * Determine if a given query can be used to query with the SampleIndex.
@@ -266,6 +270,9 @@ public class SampleIndexQueryParser {
             fileIndexMap.put(sample, fileMask);
         }
         boolean allSamplesAnnotated = true;
+        boolean annotationBitmapReady = true;
+        // The extended annotation index can be used only if all samples were annotated with the current schema
+        boolean annotationSchemaReady = AnnotationIndexSchema.isDefined(defaultStudy.getAttributes());
         if (otherSamples.isEmpty()) {
             for (String sample : samplesMap.keySet()) {
                 Integer sampleId = metadataManager.getSampleId(studyId, sample);
@@ -274,11 +281,26 @@ public class SampleIndexQueryParser {
                     allSamplesAnnotated = false;
                     break;
                 }
+                if (!sampleMetadata.getStatus(SampleIndexAnnotationLoader.SAMPLE_INDEX_ANNOTATION_BITMAP_STATUS)
+                        .equals(TaskMetadata.Status.READY)) {
+                    annotationBitmapReady = false;
+                }
+                if (!sampleMetadata.getStatus(SampleIndexAnnotationLoader.SAMPLE_INDEX_ANNOTATION_SCHEMA_STATUS)
+                        .equals(TaskMetadata.Status.READY)) {
+                    annotationSchemaReady = false;
+                }
             }
         } else {
             allSamplesAnnotated = false;
         }
         byte annotationMask = parseAnnotationMask(query, allSamplesAnnotated);
+        AnnotationIndexFilter annotationIndexFilter = null;
+        if (allSamplesAnnotated && annotationSchemaReady) {
+            AnnotationIndexSchema schema = AnnotationIndexSchema.fromObjectMap(defaultStudy.getAttributes());
+            annotationIndexFilter = parseAnnotationIndexFilter(query, schema, true);
+        }
+        // The annotation bitmap can be used only if all samples are annotated and included in the bitmap
+        annotationBitmapReady &= allSamplesAnnotated && annotationMask != IndexUtils.EMPTY_MASK;
 
         Set<VariantType> variantTypes = null;
         if (isValidParam(query, TYPE)) {
@@ -293,7 +315,7 @@ public class SampleIndexQueryParser {
         }
 
         return new SampleIndexQuery(regions, variantTypes, study, samplesMap, fatherFilterMap, motherFilterMap, fileIndexMap,
-                annotationMask, mendelianErrorSet, queryOperation);
+                annotationMask, annotationIndexFilter, mendelianErrorSet, queryOperation, annotationBitmapReady);
     }
 
     protected static boolean hasNegatedGenotypeFilter(QueryOperation queryOperation, List<String> gts) {
@@ -599,6 +621,144 @@ public class SampleIndexQueryParser {
         return b;
     }
 
+    /**
+     * Build the filter over the extended annotation index. Consequence types, population frequencies and clinical
+     * significance filters fully covered by the index are removed from the query.
+     *
+     * @param query     Input query. Will be modified.
+     * @param schema    Schema of the extended annotation index
+     * @param covered   If all the samples were annotated with this schema, so covered filters can be removed from the query
+     * @return AnnotationIndexFilter, or null if the query does not filter by any field of the schema
+     */
+    protected static AnnotationIndexFilter parseAnnotationIndexFilter(Query query, AnnotationIndexSchema schema, boolean covered) {
+        byte[] ctMask = null;
+        if (isValidParam(query, ANNOT_CONSEQUENCE_TYPE)) {
+            Pair<QueryOperation, List<String>> pair = splitValue(query.getString(ANNOT_CONSEQUENCE_TYPE.key()));
+            if (pair.getKey() != QueryOperation.AND) {
+                ctMask = new byte[schema.getPopFreqOffset() - schema.getConsequenceTypeOffset()];
+                for (String ct : pair.getValue()) {
+                    String term = ConsequenceTypeMappings.accessionToTerm.get(VariantQueryUtils.parseConsequenceType(ct));
+                    int bit = schema.getConsequenceTypeBit(term);
+                    if (bit < 0) {
+                        // Consequence type not in the index
+                        ctMask = null;
+                        break;
+                    }
+                    AnnotationIndexSchema.setBit(ctMask, 0, bit);
+                }
+                if (ctMask != null && covered) {
+                    // Ensure not filtering by gene, and not combining with other params
+                    if (!isValidParam(query, GENE) && BiotypeConsquenceTypeFlagCombination.fromQuery(query).numParams() == 1) {
+                        query.remove(ANNOT_CONSEQUENCE_TYPE.key());
+                    }
+                }
+            }
+        }
+
+        boolean[][] popFreqBins = null;
+        QueryOperation popFreqOp = null;
+        // TODO: This will skip filters ANNOT_POPULATION_REFERENCE_FREQUENCY and ANNOT_POPULATION_MINNOR_ALLELE_FREQUENCY
+        if (isValidParam(query, ANNOT_POPULATION_ALTERNATE_FREQUENCY)) {
+            Pair<QueryOperation, List<String>> pair = splitValue(query.getString(ANNOT_POPULATION_ALTERNATE_FREQUENCY.key()));
+            popFreqOp = pair.getKey() == null ? QueryOperation.AND : pair.getKey();
+            popFreqBins = new boolean[schema.getPopulations().size()][];
+            boolean exact = true;
+            for (String popFreq : pair.getValue()) {
+                String[] keyOpValue = splitOperator(popFreq);
+                int idx = schema.getPopulationIndex(keyOpValue[0]);
+                String op = keyOpValue[1];
+                if (idx < 0 || !POP_FREQ_INDEX_OPERATORS.contains(op)) {
+                    // Population not in the index, or operator that can not be translated into bins
+                    exact = false;
+                    if (popFreqOp == QueryOperation.OR) {
+                        // Any variant could match this population. Unable to filter.
+                        popFreqBins = null;
+                        break;
+                    }
+                    continue;
+                }
+                double freqFilter = Double.valueOf(keyOpValue[2]);
+                boolean[] bins = new boolean[schema.getNumPopFreqBins()];
+                for (int bin = 0; bin < bins.length; bin++) {
+                    double start = schema.getPopFreqBinStart(bin);
+                    double end = schema.getPopFreqBinEnd(bin);
+                    // Accept the bin if it may contain any matching value. Exact if all values in the bin match
+                    boolean binExact;
+                    switch (op) {
+                        case "<":
+                        case "<<":
+                            bins[bin] = start < freqFilter;
+                            binExact = end <= freqFilter;
+                            break;
+                        case "<=":
+                        case "<<=":
+                            bins[bin] = start <= freqFilter;
+                            binExact = end <= freqFilter;
+                            break;
+                        case ">":
+                        case ">>":
+                            bins[bin] = end > freqFilter;
+                            binExact = start > freqFilter;
+                            break;
+                        case ">=":
+                        case ">>=":
+                            bins[bin] = end > freqFilter;
+                            binExact = start >= freqFilter;
+                            break;
+                        case "=":
+                        case "==":
+                            bins[bin] = start <= freqFilter && (freqFilter < end || bin == bins.length - 1);
+                            binExact = false;
+                            break;
+                        default:
+                            throw new IllegalStateException("Unexpected operator " + op);
+                    }
+                    if (bins[bin] && !binExact) {
+                        exact = false;
+                    }
+                }
+                if (popFreqBins[idx] == null) {
+                    popFreqBins[idx] = bins;
+                } else {
+                    // Multiple filters over the same population
+                    for (int bin = 0; bin < bins.length; bin++) {
+                        if (popFreqOp == QueryOperation.OR) {
+                            popFreqBins[idx][bin] |= bins[bin];
+                        } else {
+                            popFreqBins[idx][bin] &= bins[bin];
+                        }
+                    }
+                }
+            }
+            if (popFreqBins != null && exact && covered) {
+                query.remove(ANNOT_POPULATION_ALTERNATE_FREQUENCY.key());
+            }
+        }
+
+        byte[] clinicalMask = null;
+        QueryOperation clinicalOp = null;
+        if (isValidParam(query, ANNOT_CLINICAL_SIGNIFICANCE)) {
+            Pair<QueryOperation, List<String>> pair = splitValue(query.getString(ANNOT_CLINICAL_SIGNIFICANCE.key()));
+            clinicalOp = pair.getKey();
+            clinicalMask = new byte[schema.getLength() - schema.getClinicalSignificanceOffset()];
+            for (String clinicalSignificance : pair.getValue()) {
+                int bit = schema.getClinicalSignificanceBit(clinicalSignificance);
+                if (bit < 0 || isNegated(clinicalSignificance)) {
+                    // Clinical significance not in the index
+                    clinicalMask = null;
+                    break;
+                }
+                AnnotationIndexSchema.setBit(clinicalMask, 0, bit);
+            }
+            if (clinicalMask != null && covered) {
+                query.remove(ANNOT_CLINICAL_SIGNIFICANCE.key());
+            }
+        }
+
+        AnnotationIndexFilter filter = new AnnotationIndexFilter(schema, ctMask, popFreqBins, popFreqOp, clinicalMask, clinicalOp);
+        return filter.isEmpty() ? null : filter;
+    }
+
     private static List<String> getAllLoadedGenotypes(StudyMetadata studyMetadata) {
         List<String> allGts = studyMetadata
                 .getAttributes()
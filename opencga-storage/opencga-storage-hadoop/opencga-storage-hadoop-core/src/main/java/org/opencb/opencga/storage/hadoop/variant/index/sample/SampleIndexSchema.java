@@ -37,9 +37,13 @@ public final class SampleIndexSchema {
     static final byte[] ANNOTATION_PREFIX_BYTES = Bytes.toBytes(ANNOTATION_PREFIX);
     static final String ANNOTATION_COUNT_PREFIX = META_PREFIX + "AC_";
     static final byte[] ANNOTATION_COUNT_PREFIX_BYTES = Bytes.toBytes(ANNOTATION_COUNT_PREFIX);
+    static final String ANNOTATION_EXTENDED_PREFIX = META_PREFIX + "AE_";
+    static final byte[] ANNOTATION_EXTENDED_PREFIX_BYTES = Bytes.toBytes(ANNOTATION_EXTENDED_PREFIX);
     static final String GENOTYPE_COUNT_PREFIX = META_PREFIX + "C_";
+    static final byte[] GENOTYPE_COUNT_PREFIX_BYTES = Bytes.toBytes(GENOTYPE_COUNT_PREFIX);
     static final String PENDING_VARIANT_PREFIX = META_PREFIX + "V_";
     static final byte[] PENDING_VARIANT_PREFIX_BYTES = Bytes.toBytes(PENDING_VARIANT_PREFIX);
+    static final String ANNOTATION_BITMAP_PREFIX = META_PREFIX + "B_";
 
     private SampleIndexSchema() {
     }
@@ -81,6 +85,34 @@ public final class SampleIndexSchema {
         return offset;
     }
 
+    /**
+     * RowKey for the annotation bitmap table. One row per batch, without sample.
+     *
+     * @param chromosome Chromosome
+     * @param position   Any position within the batch
+     * @return RowKey
+     */
+    public static byte[] toAnnotationBitmapRowKey(String chromosome, int position) {
+        byte[] rk = new byte[chromosome.length() + 1 + SIZEOF_INT];
+        int offset = PVarchar.INSTANCE.toBytes(chromosome, rk, 0);
+        rk[offset] = 0;
+        offset++;
+        PInteger.INSTANCE.toBytes(position / BATCH_SIZE, rk, offset);
+        return rk;
+    }
+
+    public static String chromosomeFromAnnotationBitmapRowKey(byte[] row) {
+        return (String) PVarchar.INSTANCE.toObject(row, 0, row.length - 1 - SIZEOF_INT);
+    }
+
+    public static byte[] toAnnotationBitmapColumn(int bit) {
+        return Bytes.toBytes(ANNOTATION_BITMAP_PREFIX + bit);
+    }
+
+    public static byte[] toAnnotationBitmapVersionColumn() {
+        return Bytes.toBytes(ANNOTATION_BITMAP_PREFIX + "V");
+    }
+
     public static String rowKeyToString(byte[] row) {
         if (row == null || row.length == 0) {
             return null;
@@ -127,6 +159,10 @@ public final class SampleIndexSchema {
         return Bytes.toBytes(ANNOTATION_COUNT_PREFIX + genotype);
     }
 
+    public static byte[] toAnnotationIndexExtendedColumn(String genotype) {
+        return Bytes.toBytes(ANNOTATION_EXTENDED_PREFIX + genotype);
+    }
+
     public static byte[] toFileIndexColumn(String genotype) {
         return Bytes.toBytes(FILE_PREFIX + genotype);
     }
@@ -5,6 +5,7 @@ import org.apache.hadoop.hbase.CellUtil;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.phoenix.schema.types.PVarchar;
 import org.opencb.biodata.models.variant.Variant;
+import org.opencb.biodata.models.variant.avro.VariantType;
 import org.opencb.opencga.storage.hadoop.variant.adaptors.phoenix.VariantPhoenixKeyFactory;
 
 import java.io.ByteArrayOutputStream;
@@ -165,6 +166,14 @@ public class SampleIndexVariantBiConverter {
          */
         Variant next();
 
+        /**
+         * Flyweight view of the next element. Allows testing some fields without building the Variant object.
+         * The returned view is only valid until the next call to {@link #next()} or {@link #skip()}.
+         *
+         * @return view of the next variant
+         */
+        SampleIndexVariantView nextView();
+
 
         static SampleIndexVariantIterator emptyIterator() {
             return EmptySampleIndexVariantIterator.EMPTY_ITERATOR;
@@ -197,10 +206,89 @@ public class SampleIndexVariantBiConverter {
         public Variant next() {
             throw new NoSuchElementException("Empty iterator");
         }
+
+        @Override
+        public SampleIndexVariantView nextView() {
+            throw new NoSuchElementException("Empty iterator");
+        }
+    }
+
+    /**
+     * Read only view of an encoded variant.
+     */
+    public interface SampleIndexVariantView {
+
+        String getChromosome();
+
+        int getStart();
+
+        /**
+         * @return Length of the encoded reference
+         */
+        int getReferenceLength();
+
+        /**
+         * @return Length of the encoded alternate. Symbolic alternates contain extra information.
+         */
+        int getAlternateLength();
+
+        /**
+         * @return If the variant is for sure a SNV. Non SNV variants may return false.
+         */
+        boolean isSnv();
+
+        /**
+         * @return Variant object
+         */
+        Variant toVariant();
+    }
+
+    /**
+     * View over an already built variant.
+     */
+    public static final class VariantSampleIndexVariantView implements SampleIndexVariantView {
+        private Variant variant;
+
+        public VariantSampleIndexVariantView setVariant(Variant variant) {
+            this.variant = variant;
+            return this;
+        }
+
+        @Override
+        public String getChromosome() {
+            return variant.getChromosome();
+        }
+
+        @Override
+        public int getStart() {
+            return variant.getStart();
+        }
+
+        @Override
+        public int getReferenceLength() {
+            return variant.getReference().length();
+        }
+
+        @Override
+        public int getAlternateLength() {
+            return variant.getAlternate().length();
+        }
+
+        @Override
+        public boolean isSnv() {
+            return variant.getType() == VariantType.SNV || variant.getType() == VariantType.SNP;
+        }
+
+        @Override
+        public Variant toVariant() {
+            return variant;
+        }
     }
 
     private class StringSampleIndexVariantIterator implements SampleIndexVariantIterator {
         private final ListIterator<String> variants;
+        private final VariantSampleIndexVariantView view = new VariantSampleIndexVariantView();
+        private Variant next;
 
         StringSampleIndexVariantIterator(byte[] value, int offset, int length) {
             variants = split(value, offset, length).listIterator();
@@ -208,26 +296,45 @@ public class SampleIndexVariantBiConverter {
 
         @Override
         public int nextIndex() {
-            return variants.nextIndex();
+            return next == null ? variants.nextIndex() : variants.nextIndex() - 1;
         }
 
         @Override
         public boolean hasNext() {
-            return variants.hasNext();
+            return next != null || variants.hasNext();
         }
 
         @Override
         public void skip() {
-            variants.next();
+            if (next == null) {
+                variants.next();
+            } else {
+                next = null;
+            }
         }
 
         @Override
         public Variant next() {
-            return new Variant(variants.next());
+            if (next == null) {
+                return new Variant(variants.next());
+            } else {
+                Variant variant = next;
+                next = null;
+                return variant;
+            }
+        }
+
+        @Override
+        public SampleIndexVariantView nextView() {
+            // Old format. Needs to build the variant to read any field
+            if (next == null) {
+                next = new Variant(variants.next());
+            }
+            return view.setVariant(next);
         }
     }
 
-    private class ByteSampleIndexVariantIterator implements SampleIndexVariantIterator {
+    private class ByteSampleIndexVariantIterator implements SampleIndexVariantIterator, SampleIndexVariantView {
         private final String chromosome;
         private final int batchStart;
         private final byte[] bytes;
@@ -266,7 +373,7 @@ public class SampleIndexVariantBiConverter {
 
         @Override
         public Variant next() {
-            Variant variant = toVariant(chromosome, batchStart, bytes, currentOffset, referenceLength, alternateLength);
+            Variant variant = toVariant();
             movePointer();
             return variant;
         }
@@ -276,6 +383,52 @@ public class SampleIndexVariantBiConverter {
             movePointer();
         }
 
+        @Override
+        public SampleIndexVariantView nextView() {
+            if (!hasNext) {
+                throw new NoSuchElementException();
+            }
+            // This iterator is its own view. Reads directly from the current position in the byte array
+            return this;
+        }
+
+        @Override
+        public String getChromosome() {
+            return chromosome;
+        }
+
+        @Override
+        public int getStart() {
+            return batchStart + read24bitInteger(bytes, currentOffset);
+        }
+
+        @Override
+        public int getReferenceLength() {
+            return referenceLength;
+        }
+
+        @Override
+        public int getAlternateLength() {
+            return alternateLength;
+        }
+
+        @Override
+        public boolean isSnv() {
+            if (referenceLength == 1 && alternateLength == 1) {
+                int referenceOffset = currentOffset + INT24_LENGTH;
+                return isNucleotide(bytes[referenceOffset])
+                        && isNucleotide(bytes[referenceOffset + referenceLength + SEPARATOR_LENGTH]);
+            } else {
+                return false;
+            }
+        }
+
+        @Override
+        public Variant toVariant() {
+            return SampleIndexVariantBiConverter.this.toVariant(chromosome, batchStart, bytes, currentOffset,
+                    referenceLength, alternateLength);
+        }
+
         private void movePointer() {
             currentOffset += variantLength;
 
@@ -304,6 +457,10 @@ public class SampleIndexVariantBiConverter {
         return VariantPhoenixKeyFactory.buildVariant(chromosome, start, reference, alternate, null);
     }
 
+    private static boolean isNucleotide(byte b) {
+        return b == 'A' || b == 'C' || b == 'G' || b == 'T';
+    }
+
     private int readNextSeparator(byte[] bytes, int offset) {
         for (int i = offset; i < bytes.length; i++) {
             if (bytes[i] == 0) {
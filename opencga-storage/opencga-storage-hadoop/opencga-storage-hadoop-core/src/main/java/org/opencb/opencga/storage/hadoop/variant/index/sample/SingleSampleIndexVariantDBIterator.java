@@ -8,17 +8,22 @@ import org.apache.hadoop.hbase.client.Table;
 import org.apache.hadoop.hbase.util.CollectionUtils;
 import org.opencb.biodata.models.core.Region;
 import org.opencb.biodata.models.variant.Variant;
+import org.opencb.opencga.storage.core.utils.SharedExecutor;
 import org.opencb.opencga.storage.core.variant.adaptors.iterators.VariantDBIterator;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantQueryException;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantQueryUtils;
 import org.opencb.opencga.storage.hadoop.variant.index.sample.SampleIndexQuery.SingleSampleIndexQuery;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
 /**
+ * Sample index rows are converted and filtered in background by the {@link SharedExecutor}.
+ * If the number of variants to read is known, the rows read ahead are bounded by that limit.
+ *
  * Created on 03/07/18.
  *
  * @author Jacobo Coll &lt;jacobo167@gmail.com&gt;
@@ -28,7 +33,8 @@ public class SingleSampleIndexVariantDBIterator extends VariantDBIterator {
     private final Iterator<Variant> iterator;
     protected int count = 0;
 
-    public SingleSampleIndexVariantDBIterator(Table table, SingleSampleIndexQuery query, byte[] family, SampleIndexDBAdaptor dbAdaptor) {
+    public SingleSampleIndexVariantDBIterator(Table table, SingleSampleIndexQuery query, byte[] family, SampleIndexDBAdaptor dbAdaptor,
+                                              int limit) {
         List<Region> regions;
         if (CollectionUtils.isEmpty(query.getRegions())) {
             // If no regions are defined, get a list of one null element to initialize the stream.
@@ -36,6 +42,8 @@ public class SingleSampleIndexVariantDBIterator extends VariantDBIterator {
         } else {
             regions = VariantQueryUtils.mergeRegions(query.getRegions());
         }
+        SharedExecutor.Session session = dbAdaptor.getSharedExecutor().newSession();
+        addCloseable(session);
 
         Iterator<Iterator<Variant>> iterators = regions.stream()
                 .map(region -> {
@@ -47,12 +55,12 @@ public class SingleSampleIndexVariantDBIterator extends VariantDBIterator {
                         ResultScanner scanner = table.getScanner(scan);
                         addCloseable(scanner);
                         Iterator<Result> resultIterator = scanner.iterator();
-                        Iterator<Iterator<Variant>> transform = Iterators.transform(resultIterator,
+                        Iterator<List<Variant>> converted = session.convert(resultIterator,
                                 result -> {
                                     SampleIndexEntry sampleIndexEntry = converter.convert(result);
-                                    return filter.filter(sampleIndexEntry).iterator();
-                                });
-                        return Iterators.concat(transform);
+                                    return new ArrayList<>(filter.filter(sampleIndexEntry));
+                                }, limit);
+                        return Iterators.concat(Iterators.transform(converted, List::iterator));
                     } catch (IOException e) {
                         throw VariantQueryException.internalException(e);
                     }
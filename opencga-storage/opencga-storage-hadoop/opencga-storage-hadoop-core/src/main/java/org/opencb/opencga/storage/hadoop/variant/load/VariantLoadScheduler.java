@@ -0,0 +1,404 @@
+package org.opencb.opencga.storage.hadoop.variant.load;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.opencb.commons.datastore.core.ObjectMap;
+import org.opencb.opencga.core.common.UriUtils;
+import org.opencb.opencga.storage.core.StoragePipeline;
+import org.opencb.opencga.storage.core.StoragePipelineResult;
+import org.opencb.opencga.storage.core.exceptions.StorageEngineException;
+import org.opencb.opencga.storage.core.io.managers.IOConnectorProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Loads multiple files pipelining the transform and load stages across files.
+ *
+ * Each stage has its own thread pool, so a file can be transformed while others are being loaded, and the load stage
+ * does not wait for a batch of transformations to finish. The number of files in flight, from the start of the transform
+ * until the end of the load, is bounded to limit the memory usage.
+ *
+ * The progress of each file and stage is persisted in the output directory. After a failure, a scheduler created with
+ * resume skips the stages already completed, and only restarts the incomplete ones. The persisted progress is only a hint:
+ * a load is skipped only if the {@link LoadedFileChecker} confirms that the file is loaded. Without resume, any previous
+ * progress is discarded, so the outputs of a previous execution are never reused.
+ */
+public class VariantLoadScheduler {
+
+    public static final String PROGRESS_FILE_NAME = "hadoop_load_progress.json";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(VariantLoadScheduler.class);
+
+    private final int transformThreads;
+    private final int loadThreads;
+    private final int maxInFlightFiles;
+    private final IOConnectorProvider ioConnectorProvider;
+    private final LoadedFileChecker loadedFileChecker;
+    private final URI progressFile;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final Map<String, FileProgress> progress;
+
+    private final AtomicInteger inFlightFiles = new AtomicInteger();
+    private final AtomicInteger maxObservedInFlightFiles = new AtomicInteger();
+    private final Map<Stage, LongAdder> busyTime = new EnumMap<>(Stage.class);
+    private final Map<Stage, LongAdder> queuedTime = new EnumMap<>(Stage.class);
+    private final Map<Stage, LongAdder> completed = new EnumMap<>(Stage.class);
+    private final Map<Stage, LongAdder> skipped = new EnumMap<>(Stage.class);
+    private long wallTime;
+
+    public enum Stage {
+        TRANSFORM,
+        LOAD
+    }
+
+    /**
+     * Task executing one stage of one file.
+     */
+    @FunctionalInterface
+    public interface StageTask {
+        /**
+         * Execute the stage.
+         *
+         * @param pipeline  Storage pipeline of the file
+         * @param result    Result of the file, to be filled by the stage
+         * @param input     Input of the stage
+         * @return          Output of the stage. Input of the next stage
+         * @throws Exception on error
+         */
+        URI run(StoragePipeline pipeline, StoragePipelineResult result, URI input) throws Exception;
+    }
+
+    /**
+     * Creates the storage pipeline of each file.
+     */
+    @FunctionalInterface
+    public interface StoragePipelineFactory {
+        StoragePipeline newStoragePipeline() throws StorageEngineException;
+    }
+
+    /**
+     * Checks in the metadata if a file is already loaded.
+     */
+    @FunctionalInterface
+    public interface LoadedFileChecker {
+        boolean isLoaded(URI inputFile) throws StorageEngineException;
+    }
+
+    public VariantLoadScheduler(int transformThreads, int loadThreads, int maxInFlightFiles,
+                                IOConnectorProvider ioConnectorProvider, URI outdir, LoadedFileChecker loadedFileChecker,
+                                boolean resume)
+            throws StorageEngineException {
+        this.transformThreads = Math.max(1, transformThreads);
+        this.loadThreads = Math.max(1, loadThreads);
+        this.maxInFlightFiles = Math.max(1, maxInFlightFiles);
+        this.ioConnectorProvider = ioConnectorProvider;
+        this.loadedFileChecker = loadedFileChecker;
+        this.progressFile = (outdir.getPath().endsWith("/") ? outdir : URI.create(outdir + "/")).resolve(PROGRESS_FILE_NAME);
+        for (Stage stage : Stage.values()) {
+            busyTime.put(stage, new LongAdder());
+            queuedTime.put(stage, new LongAdder());
+            completed.put(stage, new LongAdder());
+            skipped.put(stage, new LongAdder());
+        }
+        try {
+            if (resume) {
+                this.progress = readProgress();
+            } else {
+                this.progress = Collections.synchronizedMap(new LinkedHashMap<>());
+                if (ioConnectorProvider.exists(progressFile)) {
+                    LOGGER.info("Discard load progress from {}. Resume not requested", progressFile);
+                    ioConnectorProvider.delete(progressFile);
+                }
+            }
+        } catch (IOException e) {
+            throw new StorageEngineException("Unable to " + (resume ? "read" : "clear") + " load progress from " + progressFile, e);
+        }
+    }
+
+    /**
+     * Get the max number of files in flight that fit in the available memory.
+     *
+     * @param fileMemoryMb  Estimated memory in MB required by each file
+     * @return              Max number of files in flight
+     */
+    public static int getMaxInFlightFiles(int fileMemoryMb) {
+        long maxMemoryMb = Runtime.getRuntime().maxMemory() / 1024 / 1024;
+        return (int) Math.max(1, maxMemoryMb / Math.max(1, fileMemoryMb));
+    }
+
+    /**
+     * Transform and load all the files.
+     *
+     * Errors are registered in the results. If abortOnError is set, the files not started yet are skipped after the first error.
+     *
+     * @param inputFiles        Files to load
+     * @param pipelineFactory   Factory of storage pipelines
+     * @param transform         Transform stage. Null to skip the transform
+     * @param load              Load stage
+     * @param abortOnError      Do not start more files after the first error
+     * @return                  Results of each file, in the same order as the input files. Null for skipped files
+     * @throws InterruptedException if the current thread was interrupted
+     */
+    public List<StoragePipelineResult> run(List<URI> inputFiles, StoragePipelineFactory pipelineFactory,
+                                           StageTask transform, StageTask load, boolean abortOnError)
+            throws InterruptedException {
+        long start = System.currentTimeMillis();
+        ExecutorService transformExecutor = newExecutor("transform", transformThreads);
+        ExecutorService loadExecutor = newExecutor("load", loadThreads);
+        Semaphore inFlight = new Semaphore(maxInFlightFiles);
+        AtomicBoolean continueLoading = new AtomicBoolean(true);
+        List<CompletableFuture<StoragePipelineResult>> futures = new ArrayList<>(inputFiles.size());
+
+        try {
+            for (URI inputFile : inputFiles) {
+                FileProgress fileProgress = progress.computeIfAbsent(inputFile.toString(), k -> new FileProgress());
+                if (fileProgress.loaded && !isLoaded(inputFile)) {
+                    LOGGER.warn("Load progress of file {} not found in the metadata. Load file again", UriUtils.fileName(inputFile));
+                    fileProgress.loaded = false;
+                }
+                if (fileProgress.loaded) {
+                    LOGGER.info("File {} already loaded. Skip transform and load stages", UriUtils.fileName(inputFile));
+                    skipped.get(Stage.TRANSFORM).increment();
+                    skipped.get(Stage.LOAD).increment();
+                    futures.add(CompletableFuture.completedFuture(new StoragePipelineResult(inputFile)));
+                    continue;
+                }
+                inFlight.acquire();
+                if (!continueLoading.get()) {
+                    inFlight.release();
+                    futures.add(CompletableFuture.completedFuture(null));
+                    continue;
+                }
+                maxObservedInFlightFiles.accumulateAndGet(inFlightFiles.incrementAndGet(), Math::max);
+
+                FileTask fileTask = new FileTask(inputFile, fileProgress, pipelineFactory);
+                CompletableFuture<StoragePipelineResult> future = CompletableFuture
+                        .supplyAsync(() -> fileTask.runStage(Stage.TRANSFORM, transform), transformExecutor)
+                        .thenApplyAsync(ok -> ok && fileTask.runStage(Stage.LOAD, load), loadExecutor)
+                        .handle((ok, e) -> {
+                            if (e != null) {
+                                LOGGER.error("Error loading file " + inputFile, e);
+                                fileTask.result.setLoadError(e instanceof Exception ? (Exception) e : new RuntimeException(e));
+                                ok = false;
+                            }
+                            fileTask.close();
+                            inFlightFiles.decrementAndGet();
+                            inFlight.release();
+                            if (!ok && abortOnError) {
+                                continueLoading.set(false);
+                            }
+                            return fileTask.result;
+                        });
+                futures.add(future);
+            }
+
+            List<StoragePipelineResult> results = new ArrayList<>(futures.size());
+            for (CompletableFuture<StoragePipelineResult> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    // Should never happen. Errors are registered in the results
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+            return results;
+        } finally {
+            transformExecutor.shutdownNow();
+            loadExecutor.shutdownNow();
+            wallTime += System.currentTimeMillis() - start;
+            LOGGER.info("Load scheduler metrics: {}", getMetrics().toJson());
+        }
+    }
+
+    /**
+     * Remove the persisted progress. To be called once all the files are loaded and the progress is no longer needed.
+     *
+     * @throws IOException if the file can not be deleted
+     */
+    public void clearProgress() throws IOException {
+        synchronized (progress) {
+            progress.clear();
+            if (ioConnectorProvider.exists(progressFile)) {
+                ioConnectorProvider.delete(progressFile);
+            }
+        }
+    }
+
+    public ObjectMap getMetrics() {
+        ObjectMap metrics = new ObjectMap()
+                .append("transformThreads", transformThreads)
+                .append("loadThreads", loadThreads)
+                .append("maxInFlightFiles", maxInFlightFiles)
+                .append("maxObservedInFlightFiles", maxObservedInFlightFiles.get())
+                .append("wallTimeMs", wallTime);
+        for (Stage stage : Stage.values()) {
+            int threads = stage == Stage.TRANSFORM ? transformThreads : loadThreads;
+            long busy = busyTime.get(stage).sum();
+            metrics.append(stage.name().toLowerCase(), new ObjectMap()
+                    .append("completed", completed.get(stage).sum())
+                    .append("skipped", skipped.get(stage).sum())
+                    .append("busyTimeMs", busy)
+                    .append("queuedTimeMs", queuedTime.get(stage).sum())
+                    .append("utilization", wallTime == 0 ? 0 : ((double) busy) / (wallTime * threads)));
+        }
+        return metrics;
+    }
+
+    Map<String, FileProgress> getProgress() {
+        return progress;
+    }
+
+    private Map<String, FileProgress> readProgress() throws IOException {
+        Map<String, FileProgress> map = Collections.synchronizedMap(new LinkedHashMap<>());
+        if (ioConnectorProvider.exists(progressFile)) {
+            try (InputStream is = ioConnectorProvider.newInputStreamRaw(progressFile)) {
+                map.putAll(objectMapper.readValue(is, new TypeReference<Map<String, FileProgress>>() { }));
+            }
+            LOGGER.info("Resume load from {}", progressFile);
+        }
+        return map;
+    }
+
+    private boolean isLoaded(URI inputFile) {
+        try {
+            return loadedFileChecker.isLoaded(inputFile);
+        } catch (StorageEngineException | RuntimeException e) {
+            LOGGER.warn("Unable to check if file " + UriUtils.fileName(inputFile) + " is loaded", e);
+            return false;
+        }
+    }
+
+    /**
+     * Persist the progress. Errors are logged and ignored, as they do not affect the result of the stages.
+     * In the worst case, a resumed load repeats some stages.
+     */
+    private void writeProgress() {
+        synchronized (progress) {
+            try (OutputStream os = ioConnectorProvider.newOutputStreamRaw(progressFile)) {
+                objectMapper.writerWithDefaultPrettyPrinter().writeValue(os, progress);
+            } catch (IOException | RuntimeException e) {
+                LOGGER.warn("Unable to write load progress to " + progressFile, e);
+            }
+        }
+    }
+
+    private ExecutorService newExecutor(String name, int threads) {
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true); // Set Daemon for quick shutdown !!!
+            return t;
+        });
+    }
+
+    private final class FileTask {
+        private final URI inputFile;
+        private final FileProgress fileProgress;
+        private final StoragePipelineFactory pipelineFactory;
+        private final StoragePipelineResult result;
+        private StoragePipeline pipeline;
+        private URI next;
+        private long queued = System.currentTimeMillis();
+
+        private FileTask(URI inputFile, FileProgress fileProgress, StoragePipelineFactory pipelineFactory) {
+            this.inputFile = inputFile;
+            this.fileProgress = fileProgress;
+            this.pipelineFactory = pipelineFactory;
+            this.result = new StoragePipelineResult(inputFile);
+            this.next = inputFile;
+        }
+
+        private boolean runStage(Stage stage, StageTask task) {
+            long start = System.currentTimeMillis();
+            queuedTime.get(stage).add(start - queued);
+            try {
+                if (stage == Stage.TRANSFORM) {
+                    if (task == null) {
+                        return true;
+                    }
+                    if (fileProgress.transformed != null && ioConnectorProvider.exists(URI.create(fileProgress.transformed))) {
+                        LOGGER.info("File {} already transformed. Skip transform stage", UriUtils.fileName(inputFile));
+                        skipped.get(stage).increment();
+                        next = URI.create(fileProgress.transformed);
+                        return true;
+                    }
+                }
+                if (pipeline == null) {
+                    pipeline = pipelineFactory.newStoragePipeline();
+                }
+                Thread.currentThread().setName(stage.name().toLowerCase() + "-" + UriUtils.fileName(inputFile));
+                next = task.run(pipeline, result, next);
+                completed.get(stage).increment();
+            } catch (Exception e) {
+                // Errors are usually registered in the result by the stage task
+                if (result.getTransformError() == null && result.getLoadError() == null) {
+                    if (stage == Stage.TRANSFORM) {
+                        result.setTransformError(e);
+                    } else {
+                        result.setLoadError(e);
+                    }
+                }
+                return false;
+            } finally {
+                long end = System.currentTimeMillis();
+                busyTime.get(stage).add(end - start);
+                queued = end;
+            }
+            synchronized (progress) {
+                if (stage == Stage.TRANSFORM) {
+                    fileProgress.transformed = next.toString();
+                } else {
+                    fileProgress.loaded = true;
+                }
+                writeProgress();
+            }
+            return true;
+        }
+
+        private void close() {
+            if (pipeline != null) {
+                try {
+                    pipeline.close();
+                } catch (Exception e) {
+                    LOGGER.error("Issue closing DB connection ", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Persisted progress of one file.
+     */
+    public static class FileProgress {
+        private String transformed;
+        private boolean loaded;
+
+        public String getTransformed() {
+            return transformed;
+        }
+
+        public FileProgress setTransformed(String transformed) {
+            this.transformed = transformed;
+            return this;
+        }
+
+        public boolean isLoaded() {
+            return loaded;
+        }
+
+        public FileProgress setLoaded(boolean loaded) {
+            this.loaded = loaded;
+            return this;
+        }
+    }
+}
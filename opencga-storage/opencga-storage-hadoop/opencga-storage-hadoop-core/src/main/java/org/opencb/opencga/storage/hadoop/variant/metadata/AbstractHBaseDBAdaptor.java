@@ -23,9 +23,12 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeoutException;
 
 import static org.opencb.opencga.storage.hadoop.variant.metadata.HBaseVariantMetadataUtils.*;
@@ -42,6 +45,8 @@ public abstract class AbstractHBaseDBAdaptor {
     protected final HBaseManager hBaseManager;
     protected final ObjectMapper objectMapper;
     private final HBaseLock lock;
+    // Leases of the row locks held by this process. Writes to these rows are fenced with the lease token.
+    private final Map<ByteBuffer, HBaseLock.Lease> leases = new ConcurrentHashMap<>();
     protected final String tableName;
     private Boolean tableExists = null; // unknown
     protected byte[] family;
@@ -187,22 +192,72 @@ public abstract class AbstractHBaseDBAdaptor {
     protected <T> void putValue(byte[] rowKey, HBaseVariantMetadataUtils.Type type, T value, Long timeStamp) {
         ensureTableExists();
 
-        if (timeStamp == null) {
-            timeStamp = System.currentTimeMillis();
+        try {
+            fencedPut(rowKey, buildPut(rowKey, type, value, timeStamp));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
 
-        try {
-            Put put = new Put(rowKey);
-            put.addColumn(family, getTypeColumn(), timeStamp, type.bytes());
-            put.addColumn(family, getValueColumn(), timeStamp, objectMapper.writeValueAsBytes(value));
+    }
 
+    /**
+     * Execute a put. If this process holds the lock of the row, the put is only executed if the lease is still valid,
+     * and its token is still the last token issued for the lock.
+     *
+     * @param rowKey    Row key
+     * @param put       Put to execute
+     * @throws IOException if there is an error writing or reading from HBase.
+     * @throws HBaseLock.IllegalLockStatusException if the lease of the lock was lost
+     */
+    protected void fencedPut(byte[] rowKey, Put put) throws IOException {
+        HBaseLock.Lease lease = leases.get(ByteBuffer.wrap(rowKey));
+        if (lease == null) {
             hBaseManager.act(tableName, table -> {
                 table.put(put);
             });
+        } else {
+            lease.checkValid();
+            if (!lock.checkAndPut(rowKey, getLockColumn(), lease.getToken(), put)) {
+                throw new HBaseLock.IllegalLockStatusException(rowKey, getLockColumn(), lease.getToken());
+            }
+        }
+    }
+
+    /**
+     * Put a value only if the given fencing token is still the last token issued for the lock of the same row.
+     *
+     * @param rowKey    Row key
+     * @param type      Value type
+     * @param value     Value to write
+     * @param timeStamp Timestamp of the value
+     * @param lockName  Column of the lock
+     * @param token     Fencing token obtained when acquiring the lock
+     * @param <T>       Value type
+     * @throws HBaseLock.IllegalLockStatusException if a newer token was issued, i.e., the lock was lost
+     */
+    protected <T> void putValue(byte[] rowKey, HBaseVariantMetadataUtils.Type type, T value, Long timeStamp,
+                                byte[] lockName, long token) {
+        ensureTableExists();
+
+        boolean written;
+        try {
+            written = lock.checkAndPut(rowKey, lockName, token, buildPut(rowKey, type, value, timeStamp));
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
+        if (!written) {
+            throw new HBaseLock.IllegalLockStatusException(rowKey, lockName, token);
+        }
+    }
 
+    private <T> Put buildPut(byte[] rowKey, Type type, T value, Long timeStamp) throws IOException {
+        if (timeStamp == null) {
+            timeStamp = System.currentTimeMillis();
+        }
+        Put put = new Put(rowKey);
+        put.addColumn(family, getTypeColumn(), timeStamp, type.bytes());
+        put.addColumn(family, getValueColumn(), timeStamp, objectMapper.writeValueAsBytes(value));
+        return put;
     }
 
     protected void deleteRow(byte[] rowKey) {
@@ -215,13 +270,47 @@ public abstract class AbstractHBaseDBAdaptor {
         }
     }
 
+    /**
+     * Lock the row. Until the lock is released, the writes from this process to the row are fenced with the lease token.
+     *
+     * @param rowKey        Row key
+     * @param lockDuration  Duration in milliseconds of the lease
+     * @param timeout       Max time in milliseconds to wait for the lock
+     * @return              Lock
+     * @throws StorageEngineException if the lock could not be acquired
+     */
     protected Locked lock(byte[] rowKey, long lockDuration, long timeout) throws StorageEngineException {
-        return lock(rowKey, getLockColumn(), lockDuration, timeout);
+        HBaseLock.Lease lease = fencedLease(rowKey, lockDuration, timeout);
+        return () -> releaseLease(rowKey, lease);
+    }
+
+    protected HBaseLock.Lease fencedLease(byte[] rowKey, long lockDuration, long timeout) throws StorageEngineException {
+        HBaseLock.Lease lease = lock(rowKey, getLockColumn(), lockDuration, timeout);
+        leases.put(ByteBuffer.wrap(rowKey), lease);
+        return lease;
+    }
+
+    protected HBaseLock.Lease getLease(byte[] rowKey) {
+        return leases.get(ByteBuffer.wrap(rowKey));
     }
 
-    protected Locked lock(byte[] rowKey, byte[] lockName, long lockDuration, long timeout) throws StorageEngineException {
-        long token = lockToken(rowKey, lockName, lockDuration, timeout);
-        return () -> unLock(rowKey, lockName, token);
+    protected void releaseLease(byte[] rowKey, HBaseLock.Lease lease) {
+        leases.remove(ByteBuffer.wrap(rowKey), lease);
+        lease.unlock();
+    }
+
+    protected HBaseLock.Lease lock(byte[] rowKey, byte[] lockName, long lockDuration, long timeout) throws StorageEngineException {
+        try {
+            ensureTableExists();
+            return this.lock.lease(rowKey, lockName, lockDuration, timeout);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }  catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageEngineException("Unable to lock " + Bytes.toString(rowKey), e);
+        } catch (TimeoutException e) {
+            throw new StorageEngineException("Unable to lock " + Bytes.toString(rowKey), e);
+        }
     }
 
     protected long lockToken(byte[] rowKey, byte[] lockName, long lockDuration, long timeout) throws StorageEngineException {
@@ -246,6 +335,4 @@ public abstract class AbstractHBaseDBAdaptor {
         }
     }
 
-
-
 }
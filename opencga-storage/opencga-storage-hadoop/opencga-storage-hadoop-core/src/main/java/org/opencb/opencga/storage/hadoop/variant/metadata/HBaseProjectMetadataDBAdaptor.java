@@ -22,7 +22,6 @@ import java.io.UncheckedIOException;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.TimeoutException;
 
 import static org.opencb.opencga.storage.hadoop.variant.metadata.HBaseVariantMetadataUtils.*;
 
@@ -35,33 +34,35 @@ public class HBaseProjectMetadataDBAdaptor extends AbstractHBaseDBAdaptor implem
 
     private static Logger logger = LoggerFactory.getLogger(HBaseStudyMetadataDBAdaptor.class);
 
-    private final HBaseLock lock;
-
     public HBaseProjectMetadataDBAdaptor(VariantTableHelper helper) {
         this(null, helper.getMetaTableAsString(), helper.getConf());
     }
 
     public HBaseProjectMetadataDBAdaptor(HBaseManager hBaseManager, String metaTableName, Configuration configuration) {
         super(hBaseManager, metaTableName, configuration);
-        lock = new HBaseLock(this.hBaseManager, this.tableName, family, null);
     }
 
+    /**
+     * Lock the project. The lock is renewed in background until it is released, and the updates of the ProjectMetadata
+     * from this process are fenced with the lock token.
+     *
+     * @param lockDuration  Duration in milliseconds of the lease
+     * @param timeout       Max time in milliseconds to wait for the lock
+     * @return              Lock token
+     * @throws StorageEngineException if the lock could not be acquired
+     */
     @Override
-    public long lockProject(long lockDuration, long timeout) throws InterruptedException, TimeoutException, StorageEngineException {
-        try {
-            ensureTableExists();
-            return lock.lock(getProjectRowKey(), getLockColumn(), lockDuration, timeout);
-        } catch (IOException e) {
-            throw new StorageEngineException("Error locking project in HBase", e);
-        }
+    public long lockProject(long lockDuration, long timeout) throws StorageEngineException {
+        return fencedLease(getProjectRowKey(), lockDuration, timeout).getToken();
     }
 
     @Override
     public void unLockProject(long lockId) throws StorageEngineException {
-        try {
-            lock.unlock(getProjectRowKey(), getLockColumn(), lockId);
-        } catch (IOException e) {
-            throw new StorageEngineException("Error locking project in HBase", e);
+        HBaseLock.Lease lease = getLease(getProjectRowKey());
+        if (lease != null && lease.getToken() == lockId) {
+            releaseLease(getProjectRowKey(), lease);
+        } else {
+            unLock(getProjectRowKey(), getLockColumn(), lockId);
         }
     }
 
@@ -107,17 +108,16 @@ public class HBaseProjectMetadataDBAdaptor extends AbstractHBaseDBAdaptor implem
     public QueryResult updateProjectMetadata(ProjectMetadata projectMetadata, boolean updateCounters) {
         try {
             ensureTableExists();
-            hBaseManager.act(tableName, (table -> {
-                Put put = new Put(getProjectRowKey());
-                put.addColumn(family, getValueColumn(), objectMapper.writeValueAsBytes(projectMetadata));
-                put.addColumn(family, getTypeColumn(), Type.PROJECT.bytes());
-                if (updateCounters) {
-                    for (Map.Entry<String, Integer> entry : projectMetadata.getCounters().entrySet()) {
-                        put.addColumn(family, Bytes.toBytes(entry.getKey()), Bytes.toBytes(entry.getValue().longValue()));
-                    }
+            Put put = new Put(getProjectRowKey());
+            put.addColumn(family, getValueColumn(), objectMapper.writeValueAsBytes(projectMetadata));
+            put.addColumn(family, getTypeColumn(), Type.PROJECT.bytes());
+            if (updateCounters) {
+                for (Map.Entry<String, Integer> entry : projectMetadata.getCounters().entrySet()) {
+                    put.addColumn(family, Bytes.toBytes(entry.getKey()), Bytes.toBytes(entry.getValue().longValue()));
                 }
-                table.put(put);
-            }));
+            }
+            // Fenced if this process holds the project lock
+            fencedPut(getProjectRowKey(), put);
 
             return getProjectMetadata();
         } catch (IOException e) {
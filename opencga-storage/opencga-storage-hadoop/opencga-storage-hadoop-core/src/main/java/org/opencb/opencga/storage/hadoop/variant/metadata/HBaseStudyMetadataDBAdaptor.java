@@ -43,6 +43,7 @@ import java.io.UncheckedIOException;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.zip.DataFormatException;
 
@@ -56,7 +57,9 @@ import static org.opencb.opencga.storage.hadoop.variant.metadata.HBaseVariantMet
 public class HBaseStudyMetadataDBAdaptor extends AbstractHBaseDBAdaptor implements StudyMetadataDBAdaptor {
 
     private static Logger logger = LoggerFactory.getLogger(HBaseStudyMetadataDBAdaptor.class);
-
+    // Fencing tokens of the study locks acquired by this process with lockStudy. Updates of the StudyMetadata are rejected
+    // if the lock was lost. Study leases from "lock" are fenced by the AbstractHBaseDBAdaptor.
+    private final Map<Integer, Long> fencingTokens = new ConcurrentHashMap<>();
 
     public HBaseStudyMetadataDBAdaptor(VariantTableHelper helper) {
         this(null, helper.getMetaTableAsString(), helper.getConf());
@@ -87,8 +90,10 @@ public class HBaseStudyMetadataDBAdaptor extends AbstractHBaseDBAdaptor implemen
 
     @Override
     public Locked lock(int studyId, long lockDuration, long timeout, String lockName) throws StorageEngineException {
-        byte[] column = StringUtils.isEmpty(lockName) ? getLockColumn() : Bytes.toBytes(lockName);
-        return lock(getStudyMetadataRowKey(studyId), column, lockDuration, timeout);
+        if (StringUtils.isNotEmpty(lockName)) {
+            return lock(getStudyMetadataRowKey(studyId), Bytes.toBytes(lockName), lockDuration, timeout);
+        }
+        return lock(getStudyMetadataRowKey(studyId), lockDuration, timeout);
     }
 
     @Override
@@ -97,12 +102,19 @@ public class HBaseStudyMetadataDBAdaptor extends AbstractHBaseDBAdaptor implemen
     }
 
     private long lockStudy(int studyId, long lockDuration, long timeout, byte[] lockName) throws StorageEngineException {
-        return lockToken(getStudyMetadataRowKey(studyId), lockName, lockDuration, timeout);
+        long token = lockToken(getStudyMetadataRowKey(studyId), lockName, lockDuration, timeout);
+        if (Bytes.equals(lockName, getLockColumn())) {
+            fencingTokens.put(studyId, token);
+        }
+        return token;
     }
 
     @Override
     public void unLockStudy(int studyId, long lockToken, String lockName) {
         byte[] column = StringUtils.isEmpty(lockName) ? getLockColumn() : Bytes.toBytes(lockName);
+        if (Bytes.equals(column, getLockColumn())) {
+            fencingTokens.remove(studyId, lockToken);
+        }
         unLock(getStudyMetadataRowKey(studyId), column, lockToken);
     }
 
@@ -193,7 +205,12 @@ public class HBaseStudyMetadataDBAdaptor extends AbstractHBaseDBAdaptor implemen
     public void updateStudyMetadata(StudyMetadata sm) {
         sm.setTimeStamp(System.currentTimeMillis());
         updateStudiesSummary(sm.getName(), sm.getId(), null);
-        putValue(getStudyMetadataRowKey(sm.getId()), Type.STUDY, sm, sm.getTimeStamp());
+        Long token = fencingTokens.get(sm.getId());
+        if (token == null) {
+            putValue(getStudyMetadataRowKey(sm.getId()), Type.STUDY, sm, sm.getTimeStamp());
+        } else {
+            putValue(getStudyMetadataRowKey(sm.getId()), Type.STUDY, sm, sm.getTimeStamp(), getLockColumn(), token);
+        }
     }
 
     @Override
@@ -17,6 +17,7 @@ public class HBaseVariantTableNameGenerator {
     private static final String META_SUFIX = "_meta";
     private static final String ARCHIVE_SUFIX = "_archive_";
     private static final String SAMPLE_SUFIX = "_sample_index_";
+    private static final String SAMPLE_BITMAP_SUFIX = "_sample_index_bitmap_";
     private static final String ANNOTATION_SUFIX = "_annotation";
     private static final String PENDING_ANNOTATION_SUFIX = "_pending_annotation";
     private static final int MINIMUM_DB_NAME_SIZE = 1;
@@ -61,6 +62,10 @@ public class HBaseVariantTableNameGenerator {
         return getSampleIndexTableName(namespace, dbName, studyId);
     }
 
+    public String getSampleIndexBitmapTableName(int studyId) {
+        return getSampleIndexBitmapTableName(namespace, dbName, studyId);
+    }
+
     public String getAnnotationIndexTableName() {
         return annotationIndexTableName;
     }
@@ -183,6 +188,10 @@ public class HBaseVariantTableNameGenerator {
         return buildTableName(namespace, dbName, SAMPLE_SUFIX + studyId);
     }
 
+    public static String getSampleIndexBitmapTableName(String namespace, String dbName, int studyId) {
+        return buildTableName(namespace, dbName, SAMPLE_BITMAP_SUFIX + studyId);
+    }
+
     public static String getVariantTableName(String dbName, ObjectMap options) {
         return getVariantTableName(options.getString(HadoopVariantStorageEngine.HBASE_NAMESPACE, ""), dbName);
     }
@@ -16,6 +16,8 @@
 
 package org.opencb.opencga.storage.hadoop.utils;
 
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.io.compress.Compression;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.junit.Before;
@@ -30,8 +32,7 @@ import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.*;
 
 /**
  * Created on 18/05/16
@@ -141,4 +142,74 @@ public class HBaseLockTest extends VariantStorageBaseTest implements HadoopVaria
         hbaseLock.unlock(getColumn(lockId), lock);
 
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testFencingTokensIncrease() throws Exception {
+        int lockId = 5;
+        long previous = 0;
+        for (int i = 0; i < 5; i++) {
+            long lock = hbaseLock.lock(getColumn(lockId), 1000, 1000);
+            assertTrue(lock > previous);
+            previous = lock;
+            hbaseLock.unlock(getColumn(lockId), lock);
+        }
+        // Expired locks also increase the token
+        long lock = hbaseLock.lock(getColumn(lockId), 100, 1000);
+        Thread.sleep(200);
+        long newLock = hbaseLock.lock(getColumn(lockId), 1000, 1000);
+        assertTrue(newLock > lock);
+
+        thrown.expect(HBaseLock.IllegalLockStatusException.class);
+        hbaseLock.unlock(getColumn(lockId), lock);
+    }
+
+    @Test
+    public void testLeaseRenewal() throws Exception {
+        int lockId = 6;
+        byte[] row = Bytes.toBytes("R");
+        HBaseLock.Lease lease = hbaseLock.lease(row, getColumn(lockId), 500, 1000);
+        // Lease is kept beyond its duration
+        Thread.sleep(1500);
+        try {
+            hbaseLock.lock(getColumn(lockId), 500, 500);
+            fail("Lease should be renewed");
+        } catch (TimeoutException ignore) {
+            // Expected
+        }
+        assertTrue(hbaseLock.getMetrics().getLong("renewals") > 0);
+        assertTrue(hbaseLock.getMetrics().getLong("timeouts") > 0);
+
+        lease.unlock();
+        long lock = hbaseLock.lock(getColumn(lockId), 500, 500);
+        assertTrue(lock > lease.getToken());
+        hbaseLock.unlock(getColumn(lockId), lock);
+    }
+
+    @Test
+    public void testFencedWrite() throws Exception {
+        int lockId = 7;
+        byte[] row = Bytes.toBytes("R");
+        byte[] family = Bytes.toBytes("0");
+        long lock = hbaseLock.lock(getColumn(lockId), 100, 1000);
+        assertTrue(hbaseLock.checkAndPut(row, getColumn(lockId), lock,
+                new Put(row).addColumn(family, Bytes.toBytes("V"), Bytes.toBytes("first"))));
+
+        // Lock expires, and is taken by someone else
+        Thread.sleep(200);
+        long newLock = hbaseLock.lock(getColumn(lockId), 1000, 1000);
+
+        // Writes with the old token are rejected
+        assertFalse(hbaseLock.checkAndPut(row, getColumn(lockId), lock,
+                new Put(row).addColumn(family, Bytes.toBytes("V"), Bytes.toBytes("second"))));
+        assertTrue(hbaseLock.checkAndPut(row, getColumn(lockId), newLock,
+                new Put(row).addColumn(family, Bytes.toBytes("V"), Bytes.toBytes("third"))));
+        hbaseLock.unlock(getColumn(lockId), newLock);
+
+        HBaseManager hbaseManager = new HBaseManager(configuration.get());
+        byte[] value = hbaseManager.act(DB_NAME, table -> {
+            return table.get(new Get(row)).getValue(family, Bytes.toBytes("V"));
+        });
+        assertEquals("third", Bytes.toString(value));
+        assertEquals(1, hbaseLock.getMetrics().getLong("rejectedWrites"));
+    }
+}
@@ -9,11 +9,15 @@ import org.opencb.biodata.models.variant.Variant;
 import org.opencb.commons.datastore.core.Query;
 import org.opencb.commons.datastore.core.QueryOptions;
 import org.opencb.opencga.core.results.VariantQueryResult;
+import org.opencb.opencga.storage.core.variant.adaptors.VariantField;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantQueryUtils;
 import org.opencb.opencga.storage.core.variant.adaptors.iterators.VariantDBIterator;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantQueryParam;
 import org.opencb.opencga.storage.core.variant.io.json.mixin.GenericRecordAvroJsonMixin;
+import org.opencb.opencga.storage.hadoop.variant.adaptors.iterators.VariantHBaseScanIterator;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assume.assumeTrue;
 
 /**
@@ -82,6 +86,28 @@ public class HadoopVariantDBAdaptorNativeTest extends HadoopVariantDBAdaptorTest
     }
 
 
+    @Test
+    public void testProjectionPushdown() throws Exception {
+        long[] full = scanStats(new Query(), new QueryOptions());
+        long[] projected = scanStats(new Query(), new QueryOptions(QueryOptions.INCLUDE,
+                VariantField.ID.fieldName() + "," + VariantField.ANNOTATION_CONSEQUENCE_TYPES.fieldName()));
+        long[] sampleSubset = scanStats(new Query(VariantQueryParam.INCLUDE_SAMPLE.key(), "NA19600"), new QueryOptions(QueryOptions.EXCLUDE,
+                VariantField.ANNOTATION.fieldName() + "," + VariantField.STUDIES_STATS.fieldName()));
+
+        assertEquals(full[0], projected[0]);
+        assertEquals(full[0], sampleSubset[0]);
+        assertTrue("Projected scan read " + projected[1] + " bytes, full scan " + full[1] + " bytes", projected[1] < full[1]);
+        assertTrue("Sample subset scan read " + sampleSubset[1] + " bytes, full scan " + full[1] + " bytes", sampleSubset[1] < full[1]);
+    }
+
+    private long[] scanStats(Query query, QueryOptions options) throws Exception {
+        VariantDBIterator iterator = iterator(query, options);
+        assertTrue(iterator instanceof VariantHBaseScanIterator);
+        iterator.forEachRemaining(variant -> { });
+        iterator.close();
+        return new long[]{iterator.getCount(), ((VariantHBaseScanIterator) iterator).getBytesRead()};
+    }
+
     @Test
     public void testGetAllVariants_limit_skip_sorted_multi_regions() {
         limitSkip(new Query(VariantQueryParam.REGION.key(), "1,2,3,4,5,6,7,8,9,10,11,12,13,14,15,16,17,18,19,20"), new QueryOptions(QueryOptions.SORT, true));
@@ -277,6 +277,51 @@ public class FillGapsTest extends VariantStorageBaseTest implements HadoopVarian
         checkSampleIndexTable(dbAdaptor);
     }
 
+    @Test
+    public void testFillMissingIncrementalMatchesFullScan() throws Exception {
+        ObjectMap options = new ObjectMap()
+                .append(VariantStorageEngine.Options.MERGE_MODE.key(), VariantStorageEngine.MergeMode.BASIC)
+                .append(HadoopVariantStorageEngine.ARCHIVE_FILE_BATCH_SIZE, 2);
+        ObjectMap incrementalOptions = new ObjectMap(options).append(FillGapsDriver.FILL_MISSING_INCREMENTAL, true);
+        ObjectMap fullOptions = new ObjectMap(options).append(FillGapsDriver.FILL_MISSING_INCREMENTAL, false);
+        String incrementalStudy = "incremental";
+        String fullStudy = "full";
+        HadoopVariantStorageEngine variantStorageEngine = ((HadoopVariantStorageEngine) this.variantStorageEngine);
+        VariantHadoopDBAdaptor dbAdaptor = variantStorageEngine.getDBAdaptor();
+
+        for (int[] files : new int[][]{{12877, 12878}, {12879, 12881}, {12882, 12882}}) {
+            loadPlatinum(incrementalStudy, options, files[0], files[1]);
+            loadPlatinum(fullStudy, options, files[0], files[1]);
+
+            variantStorageEngine.fillMissing(incrementalStudy, incrementalOptions, false);
+            variantStorageEngine.fillMissing(fullStudy, fullOptions, false);
+            checkSameSamplesData(dbAdaptor, incrementalStudy, fullStudy);
+        }
+
+        // Fill missing without new variants
+        variantStorageEngine.fillMissing(incrementalStudy, incrementalOptions, false);
+        checkSameSamplesData(dbAdaptor, incrementalStudy, fullStudy);
+        StudyMetadata studyMetadata = dbAdaptor.getMetadataManager().getStudyMetadata(incrementalStudy);
+        assertTrue(studyMetadata.getAttributes().getBoolean(MISSING_GENOTYPES_UPDATED));
+        assertFalse(studyMetadata.getAttributes().containsKey(HadoopVariantStorageEngine.FILL_MISSING_PROGRESS));
+    }
+
+    private void checkSameSamplesData(VariantHadoopDBAdaptor dbAdaptor, String study, String expectedStudy) {
+        int numVariants = 0;
+        for (Variant variant : dbAdaptor) {
+            StudyEntry studyEntry = variant.getStudy(study);
+            StudyEntry expectedStudyEntry = variant.getStudy(expectedStudy);
+            assertEquals(variant.toString(), expectedStudyEntry == null, studyEntry == null);
+            if (studyEntry != null) {
+                assertEquals(variant.toString(), expectedStudyEntry.getOrderedSamplesName(), studyEntry.getOrderedSamplesName());
+                assertEquals(variant.toString(), expectedStudyEntry.getSecondaryAlternates(), studyEntry.getSecondaryAlternates());
+                assertEquals(variant.toString(), expectedStudyEntry.getSamplesData(), studyEntry.getSamplesData());
+                numVariants++;
+            }
+        }
+        assertTrue(numVariants > 0);
+    }
+
     public void checkNewMultiAllelicVariants(VariantHadoopDBAdaptor dbAdaptor) {
         Variant v = dbAdaptor.get(new Query(VariantQueryParam.ID.key(), "1:10297:C:G").append(VariantQueryParam.UNKNOWN_GENOTYPE.key(), "?"), null).first();
         assertEquals(1, v.getStudies().get(0).getSecondaryAlternates().size());
@@ -306,6 +351,10 @@ public class FillGapsTest extends VariantStorageBaseTest implements HadoopVarian
     }
 
     private StudyMetadata loadPlatinum(ObjectMap extraParams, int from, int to) throws Exception {
+        return loadPlatinum(STUDY_NAME, extraParams, from, to);
+    }
+
+    private StudyMetadata loadPlatinum(String study, ObjectMap extraParams, int from, int to) throws Exception {
 
         List<URI> inputFiles = new LinkedList<>();
 
@@ -314,7 +363,7 @@ public class FillGapsTest extends VariantStorageBaseTest implements HadoopVarian
             inputFiles.add(getResourceUri(fileName));
         }
 
-        return load(extraParams, inputFiles, newOutputUri(1));
+        return load(study, extraParams, inputFiles, newOutputUri(1));
     }
 
     private StudyMetadata load(ObjectMap extraParams, List<URI> inputFiles) throws Exception {
@@ -322,12 +371,15 @@ public class FillGapsTest extends VariantStorageBaseTest implements HadoopVarian
     }
 
     private StudyMetadata load(ObjectMap extraParams, List<URI> inputFiles, URI outputUri) throws Exception {
-        StudyMetadata studyMetadata = VariantStorageBaseTest.newStudyMetadata();
+        return load(STUDY_NAME, extraParams, inputFiles, outputUri);
+    }
+
+    private StudyMetadata load(String study, ObjectMap extraParams, List<URI> inputFiles, URI outputUri) throws Exception {
         HadoopVariantStorageEngine engine = getVariantStorageEngine();
         VariantHadoopDBAdaptor dbAdaptor = engine.getDBAdaptor();
 
         ObjectMap options = engine.getOptions();
-        options.put(VariantStorageEngine.Options.STUDY.key(), studyMetadata.getName());
+        options.put(VariantStorageEngine.Options.STUDY.key(), study);
         options.put(VariantStorageEngine.Options.GVCF.key(), true);
         options.put(HadoopVariantStorageEngine.VARIANT_TABLE_INDEXES_SKIP, true);
         options.put(HadoopVariantStorageEngine.HADOOP_LOAD_ARCHIVE_BATCH_SIZE, 1);
@@ -339,7 +391,7 @@ public class FillGapsTest extends VariantStorageBaseTest implements HadoopVarian
             System.out.println(storagePipelineResult);
         }
 
-        studyMetadata = dbAdaptor.getMetadataManager().getStudyMetadata(studyMetadata.getId());
+        StudyMetadata studyMetadata = dbAdaptor.getMetadataManager().getStudyMetadata(study);
         printVariants(studyMetadata, dbAdaptor, outputUri);
 
         return studyMetadata;
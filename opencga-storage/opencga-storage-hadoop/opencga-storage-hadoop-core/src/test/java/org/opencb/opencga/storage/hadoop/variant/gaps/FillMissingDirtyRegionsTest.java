@@ -0,0 +1,52 @@
+package org.opencb.opencga.storage.hadoop.variant.gaps;
+
+import org.junit.Test;
+import org.opencb.biodata.models.core.Region;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FillMissingDirtyRegionsTest {
+
+    @Test
+    public void testMergeConsecutiveBins() {
+        FillMissingDirtyRegions dirtyRegions = new FillMissingDirtyRegions(1000)
+                .add(0, "1", 100)
+                .add(0, "1", 1500)
+                .add(0, "1", 1999)
+                .add(0, "1", 5000)
+                .add(0, "2", 2000)
+                .add(1, "1", 300000);
+
+        assertEquals(Arrays.asList(new Region("1", 1, 1999), new Region("1", 5000, 5999), new Region("2", 2000, 2999)),
+                dirtyRegions.getRegions(0, null));
+        assertEquals(Collections.singletonList(new Region("2", 2000, 2999)),
+                dirtyRegions.getRegions(0, Collections.singletonList("2")));
+        assertEquals(Collections.singletonList(new Region("1", 300000, 300999)), dirtyRegions.getRegions(1, null));
+        assertTrue(dirtyRegions.getRegions(2, null).isEmpty());
+        assertEquals(4, dirtyRegions.countBins("1"));
+        assertEquals(Arrays.asList("1", "2"), Arrays.asList(dirtyRegions.getChromosomes().toArray()));
+    }
+
+    @Test
+    public void testWriteRead() throws Exception {
+        FillMissingDirtyRegions dirtyRegions = new FillMissingDirtyRegions(1000)
+                .add(0, "1", 100)
+                .add(3, "X", 150000);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        dirtyRegions.write(os);
+
+        FillMissingDirtyRegions read = new FillMissingDirtyRegions(1000)
+                .add(0, "1", 1200)
+                .read(new ByteArrayInputStream(os.toByteArray()));
+
+        assertEquals(Arrays.asList(0, 3), Arrays.asList(read.getFileBatches().toArray()));
+        assertEquals(Collections.singletonList(new Region("1", 1, 1999)), read.getRegions(0, null));
+        assertEquals(Collections.singletonList(new Region("X", 150000, 150999)), read.getRegions(3, null));
+    }
+}
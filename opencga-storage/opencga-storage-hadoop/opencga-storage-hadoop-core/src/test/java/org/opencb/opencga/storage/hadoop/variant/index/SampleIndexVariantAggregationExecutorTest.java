@@ -0,0 +1,90 @@
+package org.opencb.opencga.storage.hadoop.variant.index;
+
+import org.junit.Test;
+import org.opencb.biodata.models.core.Region;
+import org.opencb.commons.datastore.core.result.FacetQueryResult;
+import org.opencb.opencga.storage.hadoop.variant.index.SampleIndexVariantAggregationExecutor.CountersAccumulator;
+import org.opencb.opencga.storage.hadoop.variant.index.sample.SampleIndexDBAdaptor;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.opencb.opencga.storage.hadoop.variant.index.SampleIndexVariantAggregationExecutor.*;
+import static org.opencb.opencga.storage.hadoop.variant.index.annotation.AnnotationIndexConverter.*;
+
+public class SampleIndexVariantAggregationExecutorTest {
+
+    @Test
+    public void testParseCountersFacet() {
+        assertEquals(Collections.singletonList(Arrays.asList("sample", "genotype")), parseCountersFacet("sample>>genotype"));
+        assertEquals(Arrays.asList(Collections.singletonList("chromosome"), Arrays.asList("sample", "annotationIndex")),
+                parseCountersFacet("chromosome;sample>>annotationIndex"));
+
+        assertNull(parseCountersFacet(""));
+        assertNull(parseCountersFacet("type"));
+        assertNull(parseCountersFacet("chromosome>>type"));
+        assertNull(parseCountersFacet("sample>>sample"));
+        assertNull(parseCountersFacet("annotationIndex>>sample"));
+        assertNull(parseCountersFacet("chromDensity[1]"));
+    }
+
+    @Test
+    public void testGetCountersAnnotationBit() {
+        assertEquals(4, getCountersAnnotationBit(LOF_MASK));
+        assertEquals(4, getCountersAnnotationBit((byte) (LOF_MASK | LOF_EXTENDED_MASK)));
+        assertEquals(3, getCountersAnnotationBit(LOF_EXTENDED_MASK));
+        assertEquals(1, getCountersAnnotationBit(POP_FREQ_ANY_001_MASK));
+        assertEquals(2, getCountersAnnotationBit((byte) (LOFE_PROTEIN_CODING_MASK | BIOTYPE_MASK)));
+        assertEquals(-1, getCountersAnnotationBit((byte) (LOF_MASK | POP_FREQ_ANY_001_MASK)));
+        assertEquals(-1, getCountersAnnotationBit((byte) (LOF_EXTENDED_MASK | BIOTYPE_MASK)));
+    }
+
+    @Test
+    public void testBatchAligned() {
+        assertTrue(SampleIndexDBAdaptor.isBatchAligned(new Region("1")));
+        assertTrue(SampleIndexDBAdaptor.isBatchAligned(new Region("1", 1_000_000, 2_999_999)));
+        assertTrue(SampleIndexDBAdaptor.isBatchAligned(new Region("1", 0, 999_999)));
+        assertFalse(SampleIndexDBAdaptor.isBatchAligned(new Region("1", 1_000_000, 2_000_000)));
+        assertFalse(SampleIndexDBAdaptor.isBatchAligned(new Region("1", 1_000_001, 1_999_999)));
+    }
+
+    @Test
+    public void testAccumulate() {
+        CountersAccumulator accumulator = new CountersAccumulator(parseCountersFacet("sample>>genotype;chromosome>>annotationIndex"));
+        int[] counts1 = {10, 20, 0, 3, 1, 2, 0, 0};
+        int[] counts2 = {5, 5, 0, 0, 0, 1, 0, 0};
+        accumulator.add("S1", "1", "0/1", 30, counts1);
+        accumulator.add("S1", "2", "0/1", 10, counts2);
+        accumulator.add("S1", "2", "1/1", 5, counts2);
+        accumulator.add("S1", "3", "1/1", 0, counts2);
+
+        assertEquals(45, accumulator.getCount());
+        List<FacetQueryResult.Field> fields = accumulator.toFields();
+        assertEquals(2, fields.size());
+
+        FacetQueryResult.Field sample = fields.get(0);
+        assertEquals("sample", sample.getName());
+        assertEquals(45, sample.getCount());
+        assertEquals(1, sample.getBuckets().size());
+        FacetQueryResult.Field gt = sample.getBuckets().get(0).getFields().get(0);
+        assertEquals("genotype", gt.getName());
+        assertEquals("0/1", gt.getBuckets().get(0).getValue());
+        assertEquals(40, gt.getBuckets().get(0).getCount());
+        assertEquals("1/1", gt.getBuckets().get(1).getValue());
+        assertEquals(5, gt.getBuckets().get(1).getCount());
+
+        FacetQueryResult.Field chromosome = fields.get(1);
+        assertEquals(2, chromosome.getBuckets().size());
+        assertEquals("2", chromosome.getBuckets().get(1).getValue());
+        assertEquals(15, chromosome.getBuckets().get(1).getCount());
+        FacetQueryResult.Field annotation = chromosome.getBuckets().get(0).getFields().get(0);
+        assertEquals("annotationIndex", annotation.getName());
+        assertEquals(30, annotation.getCount());
+        assertEquals(5, annotation.getBuckets().size());
+        assertEquals("lof", annotation.getBuckets().get(3).getValue());
+        assertEquals(1, annotation.getBuckets().get(3).getCount());
+        assertNull(annotation.getBuckets().get(3).getFields());
+    }
+}
@@ -2,15 +2,15 @@ package org.opencb.opencga.storage.hadoop.variant.index.annotation;
 
 import org.junit.Before;
 import org.junit.Test;
-import org.opencb.biodata.models.variant.avro.ConsequenceType;
-import org.opencb.biodata.models.variant.avro.PopulationFrequency;
-import org.opencb.biodata.models.variant.avro.SequenceOntologyTerm;
-import org.opencb.biodata.models.variant.avro.VariantAnnotation;
+import org.opencb.biodata.models.variant.avro.*;
+
+import org.opencb.commons.datastore.core.ObjectMap;
 
 import java.util.Arrays;
 import java.util.Collections;
 
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
+import static org.opencb.opencga.storage.core.variant.adaptors.VariantQueryUtils.STUDY_POP_FREQ_SEPARATOR;
 import static org.opencb.opencga.storage.hadoop.variant.index.annotation.AnnotationIndexConverter.*;
 
 /**
@@ -88,13 +88,87 @@ public class AnnotationIndexConverterTest {
                 b = converter.convert(annot(pf(GNOMAD_GENOMES, "ALL", 0.3), pf(K_GENOMES, "ALL", 0.3))));
     }
 
-    protected VariantAnnotation annot(ConsequenceType... value) {
+    @Test
+    public void testExtendedConsequenceType() {
+        AnnotationIndexSchema schema = AnnotationIndexSchema.defaultSchema();
+        AnnotationIndexConverter converter = new AnnotationIndexConverter(schema);
+        byte[] value = converter.convertExtended(annot(ct("missense_variant"), ct("intron_variant")));
+        assertEquals(schema.getLength(), value.length);
+        for (String ct : schema.getConsequenceTypes()) {
+            boolean expected = ct.equals("missense_variant") || ct.equals("intron_variant");
+            assertEquals(ct, expected, AnnotationIndexSchema.testBit(value, 0, schema.getConsequenceTypeBit(ct)));
+        }
+        assertEquals(-1, schema.getConsequenceTypeBit("mature_miRNA_variant"));
+    }
+
+    @Test
+    public void testExtendedPopFreq() {
+        AnnotationIndexSchema schema = AnnotationIndexSchema.defaultSchema();
+        AnnotationIndexConverter converter = new AnnotationIndexConverter(schema);
+        int gnomad = schema.getPopulationIndex(GNOMAD_GENOMES + STUDY_POP_FREQ_SEPARATOR + "ALL");
+        int kg = schema.getPopulationIndex(K_GENOMES + STUDY_POP_FREQ_SEPARATOR + "ALL");
+
+        byte[] value = converter.convertExtended(annot(pf(GNOMAD_GENOMES, "ALL", 0.003), pf(K_GENOMES, "ALL", 0.3)));
+        assertEquals(1, value[schema.getPopFreqOffset() + gnomad]);
+        assertEquals(schema.getNumPopFreqBins() - 1, value[schema.getPopFreqOffset() + kg]);
+
+        // Missing populations are in the first bin
+        value = converter.convertExtended(annot(pf(K_GENOMES, "ALL", 0.0)));
+        assertEquals(0, value[schema.getPopFreqOffset() + gnomad]);
+        assertEquals(0, value[schema.getPopFreqOffset() + kg]);
+
+        assertEquals(0, schema.getPopFreqBin(0));
+        assertEquals(0, schema.getPopFreqBin(0.0009));
+        assertEquals(1, schema.getPopFreqBin(0.001));
+        assertEquals(4, schema.getPopFreqBin(0.5));
+        assertEquals(Double.NEGATIVE_INFINITY, schema.getPopFreqBinStart(0), 0);
+        assertEquals(Double.POSITIVE_INFINITY, schema.getPopFreqBinEnd(schema.getNumPopFreqBins() - 1), 0);
+    }
+
+    @Test
+    public void testExtendedClinicalSignificance() {
+        AnnotationIndexSchema schema = AnnotationIndexSchema.defaultSchema();
+        AnnotationIndexConverter converter = new AnnotationIndexConverter(schema);
+        VariantAnnotation annotation = annot(ct("missense_variant"));
+        EvidenceEntry evidence = new EvidenceEntry();
+        VariantClassification classification = new VariantClassification();
+        classification.setClinicalSignificance(ClinicalSignificance.likely_pathogenic);
+        evidence.setVariantClassification(classification);
+        annotation.setTraitAssociation(Collections.singletonList(evidence));
+
+        byte[] value = converter.convertExtended(annotation);
+        int offset = schema.getClinicalSignificanceOffset();
+        assertTrue(AnnotationIndexSchema.testBit(value, offset, schema.getClinicalSignificanceBit("likely_pathogenic")));
+        assertFalse(AnnotationIndexSchema.testBit(value, offset, schema.getClinicalSignificanceBit("pathogenic")));
+    }
+
+    @Test
+    public void testSchemaSerialization() {
+        AnnotationIndexSchema schema = new AnnotationIndexSchema(3,
+                Arrays.asList("missense_variant", "stop_gained"),
+                Collections.singletonList(GNOMAD_GENOMES + STUDY_POP_FREQ_SEPARATOR + "ALL"),
+                new double[]{0.01, 0.1},
+                Collections.singletonList("pathogenic"));
+        ObjectMap attributes = schema.toObjectMap();
+        assertTrue(AnnotationIndexSchema.isDefined(attributes));
+        assertFalse(AnnotationIndexSchema.isDefined(new ObjectMap()));
+
+        AnnotationIndexSchema read = AnnotationIndexSchema.fromObjectMap(attributes);
+        assertEquals(schema, read);
+        assertEquals(3, read.getVersion());
+        assertEquals(1 + 1 + 1, read.getLength());
+        assertTrue(read.sameLayout(schema.withVersion(4)));
+        assertNotEquals(schema, schema.withVersion(4));
+        assertFalse(read.sameLayout(AnnotationIndexSchema.defaultSchema()));
+    }
+
+    public VariantAnnotation annot(ConsequenceType... value) {
         VariantAnnotation variantAnnotation = new VariantAnnotation();
         variantAnnotation.setConsequenceTypes(Arrays.asList(value));
         return variantAnnotation;
     }
 
-    protected VariantAnnotation annot(PopulationFrequency... value) {
+    public VariantAnnotation annot(PopulationFrequency... value) {
         VariantAnnotation variantAnnotation = new VariantAnnotation();
         variantAnnotation.setPopulationFrequencies(Arrays.asList(value));
         return variantAnnotation;
@@ -0,0 +1,118 @@
+package org.opencb.opencga.storage.hadoop.variant.index.sample;
+
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.io.compress.Compression;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.ExternalResource;
+import org.opencb.opencga.storage.core.variant.VariantStorageBaseTest;
+import org.opencb.opencga.storage.hadoop.utils.HBaseManager;
+import org.opencb.opencga.storage.hadoop.variant.HadoopVariantStorageTest;
+import org.opencb.opencga.storage.hadoop.variant.index.IndexUtils;
+import org.opencb.opencga.storage.hadoop.variant.utils.HBaseVariantTableNameGenerator;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+
+public class SampleIndexAnnotationBitmapDBAdaptorTest extends VariantStorageBaseTest implements HadoopVariantStorageTest {
+
+    @ClassRule
+    public static ExternalResource externalResource = new HadoopExternalResource();
+
+    private static final byte[] FAMILY = Bytes.toBytes("0");
+    private static final int STUDY_ID = 1;
+    private static final int NUM_SAMPLES = 40;
+    private static final int NUM_BATCHES = 20;
+
+    private HBaseManager hBaseManager;
+    private HBaseVariantTableNameGenerator tableNameGenerator;
+
+    @Before
+    public void setUp() throws Exception {
+        clearDB(DB_NAME);
+        hBaseManager = new HBaseManager(configuration.get());
+        tableNameGenerator = new HBaseVariantTableNameGenerator(DB_NAME, configuration.get());
+        hBaseManager.createTableIfNeeded(tableNameGenerator.getSampleIndexTableName(STUDY_ID), FAMILY, Compression.Algorithm.NONE);
+        for (int sampleId = 0; sampleId < NUM_SAMPLES; sampleId++) {
+            writeAnnotationCounts(sampleId, false);
+        }
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int sampleId = 0; sampleId < NUM_SAMPLES; sampleId++) {
+                List<Integer> samples = Collections.singletonList(sampleId);
+                futures.add(executor.submit(() -> {
+                    new SampleIndexAnnotationBitmapDBAdaptor(hBaseManager, tableNameGenerator, FAMILY).update(STUDY_ID, samples);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        checkBitmaps(Collections.emptySet());
+
+        // Update one sample without annotated variants. Bits from the rest of samples are preserved
+        writeAnnotationCounts(0, true);
+        new SampleIndexAnnotationBitmapDBAdaptor(hBaseManager, tableNameGenerator, FAMILY).update(STUDY_ID, Collections.singletonList(0));
+        checkBitmaps(Collections.singleton(0));
+    }
+
+    private void writeAnnotationCounts(int sampleId, boolean empty) throws Exception {
+        List<Put> puts = new ArrayList<>(NUM_BATCHES);
+        for (int batch = 0; batch < NUM_BATCHES; batch++) {
+            int[] counts = new int[SampleIndexAnnotationBitmap.NUM_BITS];
+            for (int bit = 0; bit < counts.length; bit++) {
+                counts[bit] = !empty && hasBit(sampleId, batch, bit) ? 1 + bit : 0;
+            }
+            Put put = new Put(SampleIndexSchema.toRowKey(sampleId, "1", batch * SampleIndexSchema.BATCH_SIZE));
+            put.addColumn(FAMILY, SampleIndexSchema.toAnnotationIndexCountColumn("0/1"), IndexUtils.countPerBitToBytes(counts));
+            puts.add(put);
+        }
+        hBaseManager.act(tableNameGenerator.getSampleIndexTableName(STUDY_ID), table -> {
+            table.put(puts);
+        });
+    }
+
+    private void checkBitmaps(Set<Integer> emptySamples) throws Exception {
+        int[] rows = {0};
+        hBaseManager.act(tableNameGenerator.getSampleIndexBitmapTableName(STUDY_ID), table -> {
+            try (ResultScanner scanner = table.getScanner(new Scan().addFamily(FAMILY))) {
+                for (Result result : scanner) {
+                    SampleIndexAnnotationBitmap bitmap = SampleIndexAnnotationBitmap.fromResult(result, FAMILY);
+                    int batch = bitmap.getBatchStart() / SampleIndexSchema.BATCH_SIZE;
+                    for (int bit = 0; bit < SampleIndexAnnotationBitmap.NUM_BITS; bit++) {
+                        BitSet expected = new BitSet();
+                        for (int sampleId = 0; sampleId < NUM_SAMPLES; sampleId++) {
+                            if (!emptySamples.contains(sampleId) && hasBit(sampleId, batch, bit)) {
+                                expected.set(sampleId);
+                            }
+                        }
+                        assertEquals("Batch " + batch + ", bit " + bit, expected, bitmap.getSamples((byte) (1 << bit)));
+                    }
+                    rows[0]++;
+                }
+            }
+        });
+        assertEquals(NUM_BATCHES, rows[0]);
+    }
+
+    private static boolean hasBit(int sampleId, int batch, int bit) {
+        return (sampleId + batch + bit) % 3 == 0;
+    }
+}
@@ -0,0 +1,70 @@
+package org.opencb.opencga.storage.hadoop.variant.index.sample;
+
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+import org.opencb.opencga.storage.hadoop.variant.index.IndexUtils;
+
+import java.util.BitSet;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+import static org.opencb.opencga.storage.hadoop.variant.index.annotation.AnnotationIndexConverter.*;
+
+public class SampleIndexAnnotationBitmapTest {
+
+    private static final byte[] FAMILY = Bytes.toBytes("0");
+
+    @Test
+    public void testGetSamples() {
+        SampleIndexAnnotationBitmap bitmap = new SampleIndexAnnotationBitmap("1", 2_500_000);
+        assertEquals(2_000_000, bitmap.getBatchStart());
+
+        bitmap.add(1, IndexUtils.countPerBit(new byte[]{LOF_MASK, BIOTYPE_MASK}));
+        bitmap.add(2, IndexUtils.countPerBit(new byte[]{(byte) (LOF_MASK | BIOTYPE_MASK)}));
+        bitmap.add(3, IndexUtils.countPerBit(new byte[]{POP_FREQ_ANY_001_MASK}));
+
+        assertEquals(BitSet.valueOf(new long[]{0b0110}), bitmap.getSamples(LOF_MASK));
+        assertEquals(BitSet.valueOf(new long[]{0b0110}), bitmap.getSamples((byte) (LOF_MASK | BIOTYPE_MASK)));
+        assertEquals(BitSet.valueOf(new long[]{0b1000}), bitmap.getSamples(POP_FREQ_ANY_001_MASK));
+        assertEquals(new BitSet(), bitmap.getSamples((byte) (LOF_MASK | POP_FREQ_ANY_001_MASK)));
+        assertTrue(bitmap.contains(1, LOF_MASK));
+        assertFalse(bitmap.contains(3, LOF_MASK));
+
+        bitmap.remove(Collections.singletonList(2));
+        assertEquals(BitSet.valueOf(new long[]{0b0010}), bitmap.getSamples(LOF_MASK));
+    }
+
+    @Test
+    public void testSerialize() {
+        SampleIndexAnnotationBitmap bitmap = new SampleIndexAnnotationBitmap("22", 16_050_075);
+        for (int sampleId = 0; sampleId < 1000; sampleId += 3) {
+            bitmap.add(sampleId, IndexUtils.countPerBit(new byte[]{(byte) sampleId}));
+        }
+
+        Put put = bitmap.toPut(FAMILY);
+        Result result = Result.create(put.getFamilyCellMap().get(FAMILY));
+        SampleIndexAnnotationBitmap read = SampleIndexAnnotationBitmap.fromResult(result, FAMILY);
+
+        assertEquals("22", read.getChromosome());
+        assertEquals(16_000_000, read.getBatchStart());
+        for (int i = 0; i < SampleIndexAnnotationBitmap.NUM_BITS; i++) {
+            byte mask = (byte) (1 << i);
+            assertEquals(bitmap.getSamples(mask), read.getSamples(mask));
+        }
+    }
+
+    @Test
+    public void testRowKey() {
+        byte[] rowKey = SampleIndexSchema.toAnnotationBitmapRowKey("X", 155_000_123);
+        assertEquals("X", SampleIndexSchema.chromosomeFromAnnotationBitmapRowKey(rowKey));
+        assertEquals(155_000_000, SampleIndexSchema.batchStartFromRowKey(rowKey));
+
+        // Rows sorted by chromosome and position
+        assertTrue(Bytes.compareTo(SampleIndexSchema.toAnnotationBitmapRowKey("1", 1_000_000),
+                SampleIndexSchema.toAnnotationBitmapRowKey("1", 2_000_000)) < 0);
+        assertTrue(Bytes.compareTo(SampleIndexSchema.toAnnotationBitmapRowKey("1", 999_000_000),
+                SampleIndexSchema.toAnnotationBitmapRowKey("10", 0)) < 0);
+    }
+}
@@ -5,6 +5,9 @@ import org.opencb.biodata.models.variant.avro.VariantType;
 import org.opencb.commons.datastore.core.Query;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantQueryUtils;
 import org.opencb.opencga.storage.hadoop.variant.index.annotation.AnnotationIndexConverter;
+import org.opencb.opencga.storage.hadoop.variant.index.annotation.AnnotationIndexConverterTest;
+import org.opencb.opencga.storage.hadoop.variant.index.annotation.AnnotationIndexFilter;
+import org.opencb.opencga.storage.hadoop.variant.index.annotation.AnnotationIndexSchema;
 
 import java.util.ArrayList;
 
@@ -14,6 +17,7 @@ import static org.opencb.opencga.storage.core.variant.adaptors.VariantQueryUtils
 import static org.opencb.opencga.storage.core.variant.adaptors.VariantQueryUtils.OR;
 import static org.opencb.opencga.storage.hadoop.variant.index.IndexUtils.EMPTY_MASK;
 import static org.opencb.opencga.storage.hadoop.variant.index.annotation.AnnotationIndexConverter.*;
+import static org.opencb.opencga.storage.hadoop.variant.index.sample.SampleIndexQueryParser.parseAnnotationIndexFilter;
 import static org.opencb.opencga.storage.hadoop.variant.index.sample.SampleIndexQueryParser.parseAnnotationMask;
 import static org.opencb.opencga.storage.hadoop.variant.index.sample.SampleIndexQueryParser.parseFileMask;
 import static org.opencb.opencga.storage.hadoop.variant.index.sample.SampleIndexToHBaseConverter.*;
@@ -260,4 +264,95 @@ public class SampleIndexQueryParserTest {
         assertTrue(VariantQueryUtils.isValidParam(query, ANNOT_CONSEQUENCE_TYPE));
         assertTrue(VariantQueryUtils.isValidParam(query, ANNOT_BIOTYPE));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void parseAnnotationIndexFilterTest() {
+        AnnotationIndexSchema schema = AnnotationIndexSchema.defaultSchema();
+        AnnotationIndexConverter converter = new AnnotationIndexConverter(schema);
+        AnnotationIndexConverterTest converterTest = new AnnotationIndexConverterTest();
+        byte[] missense = converter.convertExtended(converterTest.annot(converterTest.ct("missense_variant")));
+        byte[] intron = converter.convertExtended(converterTest.annot(converterTest.ct("intron_variant")));
+        byte[] common = converter.convertExtended(converterTest.annot(converterTest.pf(GNOMAD_GENOMES, "ALL", 0.3)));
+        byte[] rare = converter.convertExtended(converterTest.annot(converterTest.pf(GNOMAD_GENOMES, "ALL", 0.003)));
+
+        assertNull(parseAnnotationIndexFilter(new Query(), schema, true));
+
+        // Consequence types
+        Query query = new Query(ANNOT_CONSEQUENCE_TYPE.key(), "missense_variant,stop_gained");
+        AnnotationIndexFilter filter = parseAnnotationIndexFilter(query, schema, true);
+        assertTrue(filter.test(missense, 0));
+        assertFalse(filter.test(intron, 0));
+        assertTrue(query.isEmpty());
+
+        query = new Query(ANNOT_CONSEQUENCE_TYPE.key(), "missense_variant,mature_miRNA_variant");
+        assertNull(parseAnnotationIndexFilter(query, schema, true));
+        assertFalse(query.isEmpty());
+
+        query = new Query(ANNOT_CONSEQUENCE_TYPE.key(), "missense_variant").append(ANNOT_BIOTYPE.key(), "protein_coding");
+        assertNotNull(parseAnnotationIndexFilter(query, schema, true));
+        assertTrue(VariantQueryUtils.isValidParam(query, ANNOT_CONSEQUENCE_TYPE));
+
+        // Population frequencies
+        query = new Query(ANNOT_POPULATION_ALTERNATE_FREQUENCY.key(), GNOMAD_GENOMES + ":ALL<0.005");
+        filter = parseAnnotationIndexFilter(query, schema, true);
+        assertFalse(filter.test(common, 0));
+        assertTrue(filter.test(rare, 0));
+        assertTrue(filter.test(missense, 0)); // Missing frequency
+        assertTrue(query.isEmpty());
+
+        query = new Query(ANNOT_POPULATION_ALTERNATE_FREQUENCY.key(), GNOMAD_GENOMES + ":ALL<0.002");
+        filter = parseAnnotationIndexFilter(query, schema, true);
+        assertFalse(filter.test(common, 0));
+        assertTrue(filter.test(rare, 0)); // Same bin. Not exact
+        assertFalse(query.isEmpty());
+
+        query = new Query(ANNOT_POPULATION_ALTERNATE_FREQUENCY.key(), GNOMAD_GENOMES + ":ALL>=0.05");
+        filter = parseAnnotationIndexFilter(query, schema, true);
+        assertTrue(filter.test(common, 0));
+        assertFalse(filter.test(rare, 0));
+        assertTrue(query.isEmpty());
+
+        query = new Query(ANNOT_POPULATION_ALTERNATE_FREQUENCY.key(), GNOMAD_GENOMES + ":ALL=0.003");
+        filter = parseAnnotationIndexFilter(query, schema, true);
+        assertFalse(filter.test(common, 0));
+        assertTrue(filter.test(rare, 0));
+        assertFalse(query.isEmpty());
+
+        // Operators that can not be translated into bins are not used to filter
+        query = new Query(ANNOT_POPULATION_ALTERNATE_FREQUENCY.key(), GNOMAD_GENOMES + ":ALL!=0.3");
+        assertNull(parseAnnotationIndexFilter(query, schema, true));
+        assertFalse(query.isEmpty());
+
+        query = new Query(ANNOT_POPULATION_ALTERNATE_FREQUENCY.key(), GNOMAD_GENOMES + ":ALL!=0.003" + AND + GNOMAD_GENOMES + ":ALL<0.005");
+        filter = parseAnnotationIndexFilter(query, schema, true);
+        assertTrue(filter.test(rare, 0));
+        assertFalse(filter.test(common, 0));
+        assertFalse(query.isEmpty());
+
+        query = new Query(ANNOT_POPULATION_ALTERNATE_FREQUENCY.key(), GNOMAD_GENOMES + ":ALL!=0.003" + OR + GNOMAD_GENOMES + ":ALL<0.005");
+        assertNull(parseAnnotationIndexFilter(query, schema, true));
+        assertFalse(query.isEmpty());
+
+        query = new Query(ANNOT_POPULATION_ALTERNATE_FREQUENCY.key(), GNOMAD_GENOMES + ":ALL<0.005" + OR + "OTHER:ALL<0.005");
+        assertNull(parseAnnotationIndexFilter(query, schema, true));
+        assertFalse(query.isEmpty());
+
+        query = new Query(ANNOT_POPULATION_ALTERNATE_FREQUENCY.key(), GNOMAD_GENOMES + ":ALL<0.005" + AND + "OTHER:ALL<0.005");
+        filter = parseAnnotationIndexFilter(query, schema, true);
+        assertFalse(filter.test(common, 0));
+        assertFalse(query.isEmpty());
+
+        // Not covered
+        query = new Query(ANNOT_CONSEQUENCE_TYPE.key(), "missense_variant");
+        assertNotNull(parseAnnotationIndexFilter(query, schema, false));
+        assertFalse(query.isEmpty());
+
+        // Index of multiple variants
+        filter = parseAnnotationIndexFilter(new Query(ANNOT_CONSEQUENCE_TYPE.key(), "intron_variant"), schema, true);
+        byte[] batch = new byte[schema.getLength() * 2];
+        System.arraycopy(missense, 0, batch, 0, missense.length);
+        System.arraycopy(intron, 0, batch, schema.getLength(), intron.length);
+        assertFalse(filter.test(batch, 0));
+        assertTrue(filter.test(batch, 1));
+    }
+}
@@ -122,6 +122,43 @@ public class SampleIndexVariantBiConverterTest {
         assertEquals(numVariants, i);
     }
 
+    @Test
+    public void testNextView() {
+        int batchStart = 12000000;
+        List<Variant> variants = Arrays.asList(
+                new Variant("1:12000010:A:T"),
+                new Variant("1:12000020:A:-"),
+                new Variant("1:12000030:A:CT"),
+                new Variant("1:12000040:AC:GT"));
+
+        byte[] bytes = converter.toBytes(variants);
+        checkViews(variants, converter.toVariantsIterator("1", batchStart, bytes, 0, bytes.length));
+
+        byte[] bytesOld = converter.toBytesSimpleString(variants);
+        checkViews(variants, converter.toVariantsIterator("1", batchStart, bytesOld, 0, bytesOld.length));
+    }
+
+    private void checkViews(List<Variant> variants, SampleIndexVariantBiConverter.SampleIndexVariantIterator iterator) {
+        int i = 0;
+        while (iterator.hasNext()) {
+            Variant expected = variants.get(i);
+            SampleIndexVariantBiConverter.SampleIndexVariantView view = iterator.nextView();
+            assertEquals("1", view.getChromosome());
+            assertEquals(expected.getStart().intValue(), view.getStart());
+            assertEquals(i == 0, view.isSnv());
+            assertEquals(expected, view.toVariant());
+            // Reading the view does not move the iterator
+            assertEquals(i, iterator.nextIndex());
+            if (i % 2 == 0) {
+                iterator.skip();
+            } else {
+                assertEquals(expected, iterator.next());
+            }
+            i++;
+        }
+        assertEquals(variants.size(), i);
+    }
+
     @Test
     public void testBatchSizeFitsIn24Bits() {
         assertTrue(SampleIndexSchema.BATCH_SIZE < 0xFFFFFF);
@@ -0,0 +1,202 @@
+package org.opencb.opencga.storage.hadoop.variant.load;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencb.commons.datastore.core.ObjectMap;
+import org.opencb.opencga.storage.core.StoragePipelineResult;
+import org.opencb.opencga.storage.core.io.managers.IOConnectorProvider;
+import org.opencb.opencga.storage.core.io.managers.LocalIOConnector;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class VariantLoadSchedulerTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private IOConnectorProvider ioConnectorProvider;
+    private URI outdir;
+    private List<URI> inputFiles;
+    private final List<String> transformed = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> loaded = Collections.synchronizedList(new ArrayList<>());
+    private final Set<String> loadedInMetadata = Collections.synchronizedSet(new HashSet<>());
+
+    @Before
+    public void setUp() throws Exception {
+        ioConnectorProvider = new IOConnectorProvider(LocalIOConnector.class);
+        outdir = temporaryFolder.newFolder("out").toURI();
+        inputFiles = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            inputFiles.add(temporaryFolder.newFile("file" + i + ".vcf").toURI());
+        }
+    }
+
+    @Test
+    public void testPipelineStages() throws Exception {
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        AtomicInteger transforming = new AtomicInteger();
+        AtomicBoolean transformWhileLoading = new AtomicBoolean();
+
+        VariantLoadScheduler scheduler = new VariantLoadScheduler(2, 1, 3, ioConnectorProvider, outdir, this::isLoaded, false);
+        List<StoragePipelineResult> results = scheduler.run(inputFiles, () -> null,
+                (pipeline, result, input) -> {
+                    maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                    transforming.incrementAndGet();
+                    URI output = transform(input);
+                    transforming.decrementAndGet();
+                    return output;
+                },
+                (pipeline, result, input) -> {
+                    if (transforming.get() > 0) {
+                        transformWhileLoading.set(true);
+                    }
+                    load(input);
+                    inFlight.decrementAndGet();
+                    return input;
+                }, false);
+
+        assertEquals(inputFiles.size(), results.size());
+        assertEquals(inputFiles.size(), loaded.size());
+        assertTrue(maxInFlight.get() <= 3);
+        assertTrue(transformWhileLoading.get());
+
+        ObjectMap metrics = scheduler.getMetrics();
+        assertEquals(10, ((ObjectMap) metrics.get("transform")).getInt("completed"));
+        assertEquals(10, ((ObjectMap) metrics.get("load")).getInt("completed"));
+        assertTrue(metrics.getInt("maxObservedInFlightFiles") <= 3);
+
+        scheduler.clearProgress();
+        assertFalse(new File(outdir.resolve(VariantLoadScheduler.PROGRESS_FILE_NAME)).exists());
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        URI failingFile = inputFiles.get(3);
+        VariantLoadScheduler scheduler = new VariantLoadScheduler(2, 2, 4, ioConnectorProvider, outdir, this::isLoaded, false);
+        List<StoragePipelineResult> results = scheduler.run(inputFiles, () -> null,
+                (pipeline, result, input) -> transform(input),
+                (pipeline, result, input) -> {
+                    if (input.getPath().contains(new File(failingFile).getName())) {
+                        throw new IllegalStateException("Load error");
+                    }
+                    return load(input);
+                }, false);
+        assertNotNull(results.get(3).getLoadError());
+        assertEquals(9, loaded.size());
+        assertEquals(10, transformed.size());
+        assertTrue(new File(outdir.resolve(VariantLoadScheduler.PROGRESS_FILE_NAME)).exists());
+
+        // Resume with a new scheduler. Only the failed load is executed again
+        transformed.clear();
+        loaded.clear();
+        scheduler = new VariantLoadScheduler(2, 2, 4, ioConnectorProvider, outdir, this::isLoaded, true);
+        results = scheduler.run(inputFiles, () -> null,
+                (pipeline, result, input) -> transform(input),
+                (pipeline, result, input) -> load(input), false);
+        assertNull(results.get(3).getLoadError());
+        assertEquals(Collections.emptyList(), transformed);
+        assertEquals(1, loaded.size());
+        ObjectMap metrics = scheduler.getMetrics();
+        assertEquals(10, ((ObjectMap) metrics.get("transform")).getInt("skipped"));
+        assertEquals(9, ((ObjectMap) metrics.get("load")).getInt("skipped"));
+    }
+
+    @Test
+    public void testResumeNotLoadedInMetadata() throws Exception {
+        VariantLoadScheduler scheduler = new VariantLoadScheduler(2, 2, 4, ioConnectorProvider, outdir, this::isLoaded, false);
+        scheduler.run(inputFiles, () -> null,
+                (pipeline, result, input) -> transform(input),
+                (pipeline, result, input) -> load(input), false);
+        assertEquals(10, loaded.size());
+
+        // Progress file says that all files are loaded, but the metadata does not contain the first file
+        URI notLoaded = inputFiles.get(0);
+        loadedInMetadata.remove(new File(notLoaded).getName());
+        transformed.clear();
+        loaded.clear();
+        scheduler = new VariantLoadScheduler(2, 2, 4, ioConnectorProvider, outdir, this::isLoaded, true);
+        scheduler.run(inputFiles, () -> null,
+                (pipeline, result, input) -> transform(input),
+                (pipeline, result, input) -> load(input), false);
+        assertEquals(Collections.emptyList(), transformed);
+        assertEquals(1, loaded.size());
+        assertTrue(isLoaded(notLoaded));
+    }
+
+    @Test
+    public void testNoResumeDiscardsProgress() throws Exception {
+        VariantLoadScheduler scheduler = new VariantLoadScheduler(2, 2, 4, ioConnectorProvider, outdir, this::isLoaded, false);
+        scheduler.run(inputFiles, () -> null,
+                (pipeline, result, input) -> transform(input),
+                (pipeline, result, input) -> load(input), false);
+        assertTrue(new File(outdir.resolve(VariantLoadScheduler.PROGRESS_FILE_NAME)).exists());
+
+        // Without resume, the previous progress is discarded and all the stages are executed again
+        loadedInMetadata.clear();
+        transformed.clear();
+        loaded.clear();
+        scheduler = new VariantLoadScheduler(2, 2, 4, ioConnectorProvider, outdir, this::isLoaded, false);
+        assertEquals(Collections.emptyMap(), scheduler.getProgress());
+        assertFalse(new File(outdir.resolve(VariantLoadScheduler.PROGRESS_FILE_NAME)).exists());
+        scheduler.run(inputFiles, () -> null,
+                (pipeline, result, input) -> transform(input),
+                (pipeline, result, input) -> load(input), false);
+        assertEquals(10, transformed.size());
+        assertEquals(10, loaded.size());
+    }
+
+    @Test
+    public void testErrorWritingProgress() throws Exception {
+        IOConnectorProvider failingIOConnectorProvider = new IOConnectorProvider(LocalIOConnector.class) {
+            @Override
+            public OutputStream newOutputStreamRaw(URI uri) throws IOException {
+                throw new IOException("Disk full");
+            }
+        };
+        VariantLoadScheduler scheduler = new VariantLoadScheduler(2, 2, 4, failingIOConnectorProvider, outdir, this::isLoaded, false);
+        List<StoragePipelineResult> results = scheduler.run(inputFiles, () -> null,
+                (pipeline, result, input) -> transform(input),
+                (pipeline, result, input) -> load(input), false);
+
+        // Stages succeeded, even if the progress could not be persisted
+        for (StoragePipelineResult result : results) {
+            assertNull(result.getTransformError());
+            assertNull(result.getLoadError());
+        }
+        assertEquals(10, loaded.size());
+        ObjectMap metrics = scheduler.getMetrics();
+        assertEquals(10, ((ObjectMap) metrics.get("load")).getInt("completed"));
+        assertFalse(new File(outdir.resolve(VariantLoadScheduler.PROGRESS_FILE_NAME)).exists());
+    }
+
+    private boolean isLoaded(URI inputFile) {
+        return loadedInMetadata.contains(new File(inputFile).getName());
+    }
+
+    private URI transform(URI input) throws Exception {
+        Thread.sleep(20);
+        File output = new File(new File(outdir), new File(input).getName() + ".variants.avro.gz");
+        Files.write(output.toPath(), new byte[]{1});
+        transformed.add(input.toString());
+        return output.toURI();
+    }
+
+    private URI load(URI input) throws Exception {
+        Thread.sleep(20);
+        loaded.add(input.toString());
+        loadedInMetadata.add(new File(input).getName().replace(".variants.avro.gz", ""));
+        return input;
+    }
+}
@@ -0,0 +1,91 @@
+package org.opencb.opencga.storage.hadoop.variant.metadata;
+
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.ExternalResource;
+import org.opencb.commons.datastore.core.ObjectMap;
+import org.opencb.opencga.storage.core.metadata.models.Locked;
+import org.opencb.opencga.storage.core.metadata.models.StudyMetadata;
+import org.opencb.opencga.storage.core.variant.VariantStorageBaseTest;
+import org.opencb.opencga.storage.hadoop.utils.HBaseLock;
+import org.opencb.opencga.storage.hadoop.utils.HBaseManager;
+import org.opencb.opencga.storage.hadoop.variant.GenomeHelper;
+import org.opencb.opencga.storage.hadoop.variant.HadoopVariantStorageTest;
+import org.opencb.opencga.storage.hadoop.variant.utils.HBaseVariantTableNameGenerator;
+
+import static org.junit.Assert.*;
+import static org.opencb.opencga.storage.hadoop.variant.metadata.HBaseVariantMetadataUtils.getLockColumn;
+import static org.opencb.opencga.storage.hadoop.variant.metadata.HBaseVariantMetadataUtils.getStudyMetadataRowKey;
+
+public class HBaseStudyMetadataDBAdaptorTest extends VariantStorageBaseTest implements HadoopVariantStorageTest {
+
+    @ClassRule
+    public static ExternalResource externalResource = new HadoopExternalResource();
+
+    private String metaTableName;
+    private HBaseStudyMetadataDBAdaptor dbAdaptor;
+    // Simulates a second process
+    private HBaseStudyMetadataDBAdaptor otherDBAdaptor;
+
+    @Before
+    public void setUp() throws Exception {
+        metaTableName = HBaseVariantTableNameGenerator.getMetaTableName(null, DB_NAME);
+        clearDB(metaTableName);
+        dbAdaptor = new HBaseStudyMetadataDBAdaptor(null, metaTableName, configuration.get());
+        otherDBAdaptor = new HBaseStudyMetadataDBAdaptor(null, metaTableName, configuration.get());
+    }
+
+    @Test
+    public void testUpdateStudyMetadataAfterLosingLock() throws Exception {
+        StudyMetadata sm = new StudyMetadata(1, "s1").setAttributes(new ObjectMap("writer", "first"));
+        long token = dbAdaptor.lockStudy(1, 500, 1000, null);
+        dbAdaptor.updateStudyMetadata(sm);
+
+        // The lock expires, and is taken by another process
+        Thread.sleep(1000);
+        long otherToken = otherDBAdaptor.lockStudy(1, 10000, 1000, null);
+        assertTrue(otherToken > token);
+        otherDBAdaptor.updateStudyMetadata(new StudyMetadata(1, "s1").setAttributes(new ObjectMap("writer", "other")));
+
+        // Updates with the old token are rejected
+        try {
+            dbAdaptor.updateStudyMetadata(sm.setAttributes(new ObjectMap("writer", "stale")));
+            fail("Expected lock lost");
+        } catch (HBaseLock.IllegalLockStatusException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Lock lost"));
+        }
+        assertEquals("other", dbAdaptor.getStudyMetadata(1, null).getAttributes().getString("writer"));
+        otherDBAdaptor.unLockStudy(1, otherToken, null);
+    }
+
+    @Test
+    public void testUpdateStudyMetadataAfterLosingLease() throws Exception {
+        Locked locked = dbAdaptor.lock(1, 1000, 1000, null);
+        dbAdaptor.updateStudyMetadata(new StudyMetadata(1, "s1").setAttributes(new ObjectMap("writer", "first")));
+
+        // Another process takes the lock, e.g. after a long GC pause of this process
+        byte[] row = getStudyMetadataRowKey(1);
+        byte[] family = new GenomeHelper(configuration.get()).getColumnFamily();
+        new HBaseManager(configuration.get()).act(metaTableName, table -> {
+            table.put(new Put(row)
+                    .addColumn(family, getLockColumn(), Bytes.toBytes("1000:" + (System.currentTimeMillis() + 10000)))
+                    .addColumn(family, Bytes.add(getLockColumn(), Bytes.toBytes("_TOKEN")), Bytes.toBytes(1000L)));
+        });
+
+        try {
+            dbAdaptor.updateStudyMetadata(new StudyMetadata(1, "s1").setAttributes(new ObjectMap("writer", "stale")));
+            fail("Expected lock lost");
+        } catch (HBaseLock.IllegalLockStatusException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Lock lost"));
+        }
+        assertEquals("first", dbAdaptor.getStudyMetadata(1, null).getAttributes().getString("writer"));
+
+        // The renewal detects the lost lease. Releasing a lost lease fails
+        Thread.sleep(1000);
+        thrown.expect(HBaseLock.IllegalLockStatusException.class);
+        locked.unlock();
+    }
+}
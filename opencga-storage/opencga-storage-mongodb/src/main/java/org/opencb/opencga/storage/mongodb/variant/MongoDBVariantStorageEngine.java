@@ -42,6 +42,7 @@ import org.opencb.opencga.storage.core.variant.adaptors.VariantQueryException;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantQueryParam;
 import org.opencb.opencga.storage.core.variant.adaptors.iterators.VariantDBIterator;
 import org.opencb.opencga.storage.core.variant.annotation.VariantAnnotationManager;
+import org.opencb.opencga.storage.core.variant.annotation.VariantAnnotatorException;
 import org.opencb.opencga.storage.core.variant.annotation.annotators.VariantAnnotator;
 import org.opencb.opencga.storage.core.variant.io.VariantImporter;
 import org.opencb.opencga.storage.core.variant.query.VariantQueryExecutor;
@@ -98,6 +99,8 @@ public class MongoDBVariantStorageEngine extends VariantStorageEngine {
         COLLECTION_STAGE("collection.stage",  "stage"),
         COLLECTION_ANNOTATION("collection.annotation",  "annot"),
         COLLECTION_TRASH("collection.trash", "trash"),
+        COLLECTION_HISTOGRAM("collection.histogram", "histogram"),
+        COLLECTION_QUERY_SHAPES("collection.queryShapes", "query_shapes"),
         BULK_SIZE("bulkSize",  100),
         DEFAULT_GENOTYPE("defaultGenotype", Arrays.asList("0/0", "0|0")),
         ALREADY_LOADED_VARIANTS("alreadyLoadedVariants", 0),
@@ -108,6 +111,7 @@ public class MongoDBVariantStorageEngine extends VariantStorageEngine {
         STAGE_RESUME("stage.resume", false),
         STAGE_PARALLEL_WRITE("stage.parallel.write", false),
         STAGE_CLEAN_WHILE_LOAD("stage.clean.while.load", true),
+        STAGE_WRITE_CONCERN("stage.write.concern", "ACKNOWLEDGED"),   // e.g. ACKNOWLEDGED, W1, JOURNALED, MAJORITY
 
         DIRECT_LOAD("direct_load", false),
         DIRECT_LOAD_PARALLEL_WRITE("direct_load.parallel.write", false),
@@ -117,7 +121,20 @@ public class MongoDBVariantStorageEngine extends VariantStorageEngine {
         MERGE_RESUME("merge.resume", false),
         MERGE_IGNORE_OVERLAPPING_VARIANTS("merge.ignore-overlapping-variants", false),   //Do not look for overlapping variants
         MERGE_PARALLEL_WRITE("merge.parallel.write", false),
-        MERGE_BATCH_SIZE("merge.batch.size", 10);          //Number of files to merge directly from first to second collection
+        MERGE_PARALLEL_CHROMOSOMES("merge.parallel.chromosomes", 1),    // Number of chromosomes to merge concurrently
+        MERGE_BATCH_SIZE("merge.batch.size", 10),          //Number of files to merge directly from first to second collection
+
+        STATS_AGGREGATION_PIPELINE("stats.aggregation.pipeline", false), // Calculate cohort stats with a server side aggregation
+        HISTOGRAM("histogram", false),                     // Build the variants histogram of the study while loading
+        HISTOGRAM_BIN_SIZE("histogram.bin.size", 100000),  // Also a study attribute, present if the study has histogram
+        QUERY_PROFILER("query.profiler", false),                 // Record the shape, time and plan of the executed queries
+        QUERY_PROFILER_EXPLAIN("query.profiler.explain", true),  // Explain the first query of each shape
+        QUERY_PROFILER_SLOW_MS("query.profiler.slowMs", 1000),
+        QUERY_PROFILER_MAX_SHAPES("query.profiler.maxShapes", 500),
+        QUERY_PROFILER_FLUSH_MS("query.profiler.flushMs", 60000), // Interval to save the recorded shapes into the shapes collection
+        INDEX_ADVISOR_CREATE("index.advisor.create", false),      // Create the indexes proposed by the advisor with createIndexes
+        INDEX_ADVISOR_MIN_QUERIES("index.advisor.minQueries", 20), // Minimum number of queries of a shape to propose an index
+        GENOTYPES_COMPACT("genotypes.compact", false);     // Internal use only. Study attribute. Sample ids stored as compact binaries
 
         private final String key;
         private final Object value;
@@ -151,6 +168,18 @@ public class MongoDBVariantStorageEngine extends VariantStorageEngine {
             return isParallelWrite(MERGE_PARALLEL_WRITE, options);
         }
 
+        public static boolean hasHistogram(StudyMetadata studyMetadata) {
+            return studyMetadata.getAttributes().containsKey(HISTOGRAM_BIN_SIZE.key());
+        }
+
+        public static int getHistogramBinSize(StudyMetadata studyMetadata) {
+            return studyMetadata.getAttributes().getInt(HISTOGRAM_BIN_SIZE.key(), HISTOGRAM_BIN_SIZE.defaultValue());
+        }
+
+        public static boolean isCompactGenotypes(StudyMetadata studyMetadata) {
+            return studyMetadata.getAttributes().getBoolean(GENOTYPES_COMPACT.key(), GENOTYPES_COMPACT.defaultValue());
+        }
+
         private static boolean isParallelWrite(MongoDBVariantOptions option, ObjectMap options) {
             return options.getBoolean(PARALLEL_WRITE.key(), PARALLEL_WRITE.defaultValue())
                     || options.getBoolean(option.key(), option.defaultValue());
@@ -244,6 +273,7 @@ public class MongoDBVariantStorageEngine extends VariantStorageEngine {
 
     @Override
     public void removeFiles(String study, List<String> files) throws StorageEngineException {
+        boolean compactGenotypes = expandCompactGenotypes(study, "remove files");
 
         TaskMetadata task = preRemoveFiles(study, files);
         List<Integer> fileIds = task.getFileIds();
@@ -257,6 +287,11 @@ public class MongoDBVariantStorageEngine extends VariantStorageEngine {
         try {
             Runtime.getRuntime().addShutdownHook(hook);
             getDBAdaptor().removeFiles(study, files, task.getTimestamp(), new QueryOptions(options));
+            StudyMetadata studyMetadata = scm.getStudyMetadata(studyId);
+            if (hasHistogram(studyMetadata)) {
+                getDBAdaptor().getHistogram().markDirty(studyId);
+                getDBAdaptor().getHistogram().update(studyId, getHistogramBinSize(studyMetadata));
+            }
             postRemoveFiles(study, fileIds, task.getId(), false);
         } catch (Exception e) {
             postRemoveFiles(study, fileIds, task.getId(), true);
@@ -264,6 +299,100 @@ public class MongoDBVariantStorageEngine extends VariantStorageEngine {
         } finally {
             Runtime.getRuntime().removeShutdownHook(hook);
         }
+        if (compactGenotypes) {
+            compactGenotypes(study, true, options);
+        }
+    }
+
+    @Override
+    public void compactGenotypes(String study, boolean compact, ObjectMap options) throws StorageEngineException {
+        VariantStorageMetadataManager metadataManager = getMetadataManager();
+        StudyMetadata studyMetadata = metadataManager.getStudyMetadata(study);
+        if (studyMetadata == null) {
+            throw VariantQueryException.studyNotFound(study);
+        }
+        int batchSize = options.getInt(BULK_SIZE.key(), BULK_SIZE.defaultValue());
+
+        // Genotype filters are evaluated by the client in studies with compact genotypes. See VariantMongoDBCompactGenotypesFilter
+        // Mark the study before compacting, and after expanding, so no query is executed in MongoDB over mixed encodings.
+        if (compact) {
+            setCompactGenotypes(studyMetadata.getId(), true);
+        }
+        StopWatch stopWatch = StopWatch.createStarted();
+        long updatedDocuments = getDBAdaptor().updateGenotypesEncoding(studyMetadata.getId(), compact, batchSize);
+        if (!compact) {
+            setCompactGenotypes(studyMetadata.getId(), false);
+        }
+        logger.info((compact ? "Compacted" : "Expanded") + " genotypes of " + updatedDocuments + " variants from study '" + study
+                + "' in " + stopWatch.getTime(TimeUnit.MILLISECONDS) / 1000.0 + "s");
+    }
+
+    /**
+     * Build the histogram of variants of a study from scratch. Once built, the histogram is updated incrementally
+     * when loading files, annotating or removing files.
+     *
+     * @param study     Study
+     * @param options   Other options. Use {@link MongoDBVariantOptions#HISTOGRAM_BIN_SIZE} to change the size of the bins.
+     * @throws StorageEngineException if the study does not exist
+     */
+    public void buildHistogram(String study, ObjectMap options) throws StorageEngineException {
+        StudyMetadata studyMetadata = getMetadataManager().getStudyMetadata(study);
+        if (studyMetadata == null) {
+            throw VariantQueryException.studyNotFound(study);
+        }
+        int binSize = options.getInt(HISTOGRAM_BIN_SIZE.key(), getHistogramBinSize(studyMetadata));
+        getDBAdaptor().getHistogram().build(studyMetadata.getId(), binSize);
+        getMetadataManager().updateStudyMetadata(studyMetadata.getId(), sm -> {
+            sm.getAttributes().put(HISTOGRAM_BIN_SIZE.key(), binSize);
+            return sm;
+        });
+    }
+
+    @Override
+    public long annotate(Query query, ObjectMap params) throws VariantAnnotatorException, StorageEngineException, IOException {
+        long numAnnotatedVariants = super.annotate(query, params);
+        // Bins were marked as dirty while updating the annotations
+        VariantStorageMetadataManager metadataManager = getMetadataManager();
+        for (Integer studyId : metadataManager.getStudyIds()) {
+            StudyMetadata studyMetadata = metadataManager.getStudyMetadata(studyId);
+            if (hasHistogram(studyMetadata)) {
+                getDBAdaptor().getHistogram().update(studyId, getHistogramBinSize(studyMetadata));
+            }
+        }
+        return numAnnotatedVariants;
+    }
+
+    /**
+     * Expand the genotypes of a study, if stored in compact mode. Loading and removing files require the default encoding.
+     * The caller should compact the genotypes again after the operation. If the operation fails, the genotypes remain expanded.
+     *
+     * @param study     Study
+     * @param operation Operation that requires the default encoding
+     * @return if the genotypes were expanded
+     * @throws StorageEngineException if the genotypes could not be expanded
+     */
+    private boolean expandCompactGenotypes(String study, String operation) throws StorageEngineException {
+        StudyMetadata studyMetadata = StringUtils.isEmpty(study) ? null : getMetadataManager().getStudyMetadata(study);
+        if (studyMetadata != null && isCompactGenotypes(studyMetadata)) {
+            logger.info("Expand genotypes from study '{}' to {}. Genotypes will be compacted again afterwards.", study, operation);
+            compactGenotypes(study, false, getOptions());
+            return true;
+        }
+        return false;
+    }
+
+    static void checkNotCompactGenotypes(StudyMetadata studyMetadata, String operation) throws StorageEngineException {
+        if (studyMetadata != null && isCompactGenotypes(studyMetadata)) {
+            throw new StorageEngineException("Unable to " + operation + " in study '" + studyMetadata.getName() + "'. "
+                    + "Genotypes are stored in compact mode. Expand them before continuing.");
+        }
+    }
+
+    private void setCompactGenotypes(int studyId, boolean compact) throws StorageEngineException {
+        getMetadataManager().updateStudyMetadata(studyId, sm -> {
+            sm.getAttributes().put(GENOTYPES_COMPACT.key(), compact);
+            return sm;
+        });
     }
 
     @Override
@@ -296,6 +425,12 @@ public class MongoDBVariantStorageEngine extends VariantStorageEngine {
 
             metadataManager.removeIndexedFiles(studyId, indexedFiles);
 
+            getDBAdaptor().getHistogram().remove(studyId);
+            metadataManager.updateStudyMetadata(studyId, sm -> {
+                sm.getAttributes().remove(HISTOGRAM_BIN_SIZE.key());
+                return sm;
+            });
+
             metadataManager.setStatus(studyId, taskId, TaskMetadata.Status.READY);
         } catch (Exception e) {
             metadataManager.setStatus(studyId, taskId, TaskMetadata.Status.ERROR);
@@ -350,6 +485,9 @@ public class MongoDBVariantStorageEngine extends VariantStorageEngine {
             }
 
             if (doLoad) {
+                // Merge requires the default encoding of the genotypes
+                String study = getOptions().getString(Options.STUDY.key());
+                boolean compactGenotypes = doMerge && expandCompactGenotypes(study, "load files");
                 int batchLoad = getOptions().getInt(MERGE_BATCH_SIZE.key(), MERGE_BATCH_SIZE.defaultValue());
                 // Files to merge
                 List<Integer> filesToMerge = new ArrayList<>(batchLoad);
@@ -465,6 +603,9 @@ public class MongoDBVariantStorageEngine extends VariantStorageEngine {
                     calculateStatsForLoadedFiles(outdirUri, inputFiles, results, options);
                     searchIndexLoadedFiles(inputFiles, options);
                 }
+                if (compactGenotypes) {
+                    compactGenotypes(study, true, getOptions());
+                }
             }
 
         } finally {
@@ -549,7 +690,8 @@ public class MongoDBVariantStorageEngine extends VariantStorageEngine {
             MongoDataStore db = mongoDataStoreManager.get(
                     getMongoCredentials().getMongoDbName(),
                     getMongoCredentials().getMongoDBConfiguration());
-            metadataManager = new VariantStorageMetadataManager(new MongoDBVariantStorageMetadataDBAdaptorFactory(db, options));
+            metadataManager = registerDataChangeListeners(
+                    new VariantStorageMetadataManager(new MongoDBVariantStorageMetadataDBAdaptorFactory(db, options), options));
             return metadataManager;
         }
     }
@@ -18,6 +18,8 @@ package org.opencb.opencga.storage.mongodb.variant;
 
 import com.google.common.base.Throwables;
 import com.google.common.collect.BiMap;
+import com.mongodb.WriteConcern;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.time.StopWatch;
 import org.bson.Document;
 import org.opencb.biodata.formats.variant.io.VariantReader;
@@ -63,7 +65,11 @@ import java.io.IOException;
 import java.net.URI;
 import java.util.*;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
@@ -92,6 +98,9 @@ public class MongoDBVariantStoragePipeline extends VariantStoragePipeline {
 
     private final VariantMongoDBAdaptor dbAdaptor;
     private final ObjectMap loadStats = new ObjectMap();
+    // Task attribute with the list of chromosomes already merged
+    private static final String MERGED_CHROMOSOMES = "mergedChromosomes";
+
     private final Logger logger = LoggerFactory.getLogger(MongoDBVariantStoragePipeline.class);
     private MongoDBVariantWriteResult writeResult;
     private List<Integer> fileIds;
@@ -116,6 +125,7 @@ public class MongoDBVariantStoragePipeline extends VariantStoragePipeline {
     @Override
     protected void securePreLoad(StudyMetadata studyMetadata, VariantFileMetadata source) throws StorageEngineException {
         super.securePreLoad(studyMetadata, source);
+        MongoDBVariantStorageEngine.checkNotCompactGenotypes(studyMetadata, "load files");
         int fileId = getFileId();
 
         // 1) Determine merge mode
@@ -392,6 +402,14 @@ public class MongoDBVariantStoragePipeline extends VariantStoragePipeline {
         try {
             StudyMetadata studyMetadata = getStudyMetadata();
             MongoDBCollection stageCollection = dbAdaptor.getStageCollection(studyMetadata.getId());
+            String writeConcern = options.getString(STAGE_WRITE_CONCERN.key(), STAGE_WRITE_CONCERN.defaultValue());
+            if (StringUtils.isNotEmpty(writeConcern)) {
+                WriteConcern wc = WriteConcern.valueOf(writeConcern.toUpperCase());
+                if (wc == null) {
+                    throw new StorageEngineException("Unknown write concern '" + writeConcern + "'");
+                }
+                stageCollection = stageCollection.withWriteConcern(wc);
+            }
 
             //Reader
             VariantReader variantReader = variantReaderUtils.getVariantReader(input, metadata, stdin);
@@ -404,7 +422,9 @@ public class MongoDBVariantStoragePipeline extends VariantStoragePipeline {
             MongoDBVariantStageConverterTask converterTask = new MongoDBVariantStageConverterTask(progressLogger);
             MongoDBVariantStageLoader stageLoader =
                     new MongoDBVariantStageLoader(stageCollection, studyMetadata.getId(), fileId,
-                            isResumeStage(options));
+                            isResumeStage(options))
+                            .setBulkSize(bulkSize)
+                            .setWritePartitions(isStageParallelWrite(options) ? loadThreads : 1);
 
             ParallelTaskRunner<Variant, ?> ptr;
             ParallelTaskRunner.Config config = ParallelTaskRunner.Config.builder()
@@ -441,6 +461,8 @@ public class MongoDBVariantStoragePipeline extends VariantStoragePipeline {
             stageLoader.getWriteResult().setSkippedVariants(skippedVariants);
             loadStats.append(MERGE.key(), false);
             loadStats.append("stageWriteResult", stageLoader.getWriteResult());
+            loadStats.append("stageWriteStats", stageLoader.getWriteStats());
+            logger.info("Stage bulk writes: {}", stageLoader.getWriteStats().toJson());
             options.put("skippedVariants", skippedVariants);
             logger.info("Stage Write result: {}", skippedVariants);
         } catch (ExecutionException | RuntimeException e) {
@@ -638,17 +660,163 @@ public class MongoDBVariantStoragePipeline extends VariantStoragePipeline {
     private MongoDBVariantWriteResult mergeByChromosome(List<Integer> fileIds, int batchSize, int loadThreads,
                                                         StudyMetadata studyMetadata)
             throws StorageEngineException {
+        int parallelChromosomes = Math.min(loadThreads,
+                options.getInt(MERGE_PARALLEL_CHROMOSOMES.key(), MERGE_PARALLEL_CHROMOSOMES.defaultValue()));
+        if (parallelChromosomes > 1) {
+            List<String> chromosomes = getChromosomesToMerge(fileIds, studyMetadata);
+            if (chromosomes.size() > 1) {
+                return mergeChromosomesInParallel(fileIds, chromosomes, batchSize, loadThreads, parallelChromosomes, studyMetadata);
+            } else {
+                logger.info("Unable to split merge by chromosome. Merge all variants at once.");
+            }
+        }
+
+        MongoDBVariantStageReader reader = newStageReader(fileIds, studyMetadata, Collections.emptyList());
+        ProgressLogger progressLogger = new ProgressLogger("Write variants in VARIANTS collection:", reader::countNumVariants, 200);
+        progressLogger.setApproximateTotalCount(reader.countAproxNumVariants());
+        return mergeChromosomes(fileIds, reader, batchSize, loadThreads, studyMetadata, progressLogger);
+    }
+
+    /**
+     * Merge each chromosome with an independent stage reader, merger and loader.
+     *
+     * Up to "parallelChromosomes" chromosomes are merged at the same time, sharing the "loadThreads" budget.
+     * Each finished chromosome is registered in the attributes of the current task, so a resumed merge
+     * only has to process the unfinished chromosomes.
+     *
+     * @param fileIds               Files to merge
+     * @param chromosomes           Chromosomes to merge, sorted by priority
+     * @param batchSize             Batch size
+     * @param loadThreads           Total number of threads
+     * @param parallelChromosomes   Number of chromosomes to merge concurrently
+     * @param studyMetadata         Study metadata
+     * @return                      Write Result with times and count
+     * @throws StorageEngineException  If there is a problem merging any chromosome
+     */
+    private MongoDBVariantWriteResult mergeChromosomesInParallel(List<Integer> fileIds, List<String> chromosomes, int batchSize,
+                                                                 int loadThreads, int parallelChromosomes, StudyMetadata studyMetadata)
+            throws StorageEngineException {
+        Set<String> mergedChromosomes = new HashSet<>();
+        if (isResumeMerge(options)) {
+            mergedChromosomes.addAll(currentTask.getAttributes().getAsStringList(MERGED_CHROMOSOMES));
+            if (!mergedChromosomes.isEmpty()) {
+                logger.info("Resume merge. Skip already merged chromosomes " + mergedChromosomes);
+            }
+        }
+        List<String> pendingChromosomes = chromosomes.stream()
+                .filter(chromosome -> !mergedChromosomes.contains(chromosome))
+                .collect(Collectors.toList());
+        int concurrency = Math.max(1, Math.min(parallelChromosomes, pendingChromosomes.size()));
+        int threadsPerChromosome = Math.max(1, loadThreads / concurrency);
+        logger.info("Merging " + pendingChromosomes.size() + " chromosomes, " + concurrency + " at a time, with "
+                + threadsPerChromosome + " threads each");
+
+        MongoDBVariantStageReader allChromosomesReader = newStageReader(fileIds, studyMetadata, pendingChromosomes);
+        ProgressLogger progressLogger = new ProgressLogger("Write variants in VARIANTS collection:",
+                allChromosomesReader::countNumVariants, 200);
+        progressLogger.setApproximateTotalCount(allChromosomesReader.countAproxNumVariants());
+
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency, r -> {
+            Thread thread = new Thread(r, "merge-chromosome-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<Future<MongoDBVariantWriteResult>> futures = new ArrayList<>(pendingChromosomes.size());
+        for (String chromosome : pendingChromosomes) {
+            futures.add(executor.submit(() -> {
+                MongoDBVariantStageReader reader = newStageReader(fileIds, studyMetadata, Collections.singletonList(chromosome));
+                MongoDBVariantWriteResult result = mergeChromosomes(fileIds, reader, batchSize, threadsPerChromosome,
+                        studyMetadata, progressLogger);
+                checkpointMergedChromosome(chromosome);
+                logger.info("Chromosome " + chromosome + " merged");
+                return result;
+            }));
+        }
+        executor.shutdown();
+
+        MongoDBVariantWriteResult writeResult = new MongoDBVariantWriteResult();
+        try {
+            for (Future<MongoDBVariantWriteResult> future : futures) {
+                writeResult.merge(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageEngineException("Interrupted while merging chromosomes", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof StorageEngineException) {
+                throw (StorageEngineException) e.getCause();
+            } else {
+                throw new StorageEngineException("Error merging chromosomes", e.getCause());
+            }
+        } finally {
+            // Stop pending chromosomes on error
+            executor.shutdownNow();
+        }
+        return writeResult;
+    }
+
+    private synchronized void checkpointMergedChromosome(String chromosome) throws StorageEngineException {
+        currentTask = getMetadataManager().updateTask(getStudyId(), currentTask.getId(), task -> {
+            List<String> mergedChromosomes = new ArrayList<>(task.getAttributes().getAsStringList(MERGED_CHROMOSOMES));
+            mergedChromosomes.add(chromosome);
+            task.getAttributes().put(MERGED_CHROMOSOMES, mergedChromosomes);
+            return task;
+        });
+    }
+
+    /**
+     * Get the list of chromosomes to merge from the stats of the files, sorted by number of variants, from largest to smallest.
+     *
+     * @param fileIds       Files to merge
+     * @param studyMetadata Study metadata
+     * @return              List of chromosomes. Empty if the stats of any file are missing.
+     * @throws StorageEngineException if there is a problem reading the metadata
+     */
+    private List<String> getChromosomesToMerge(List<Integer> fileIds, StudyMetadata studyMetadata) throws StorageEngineException {
+        Set<Integer> files = new LinkedHashSet<>(fileIds);
+        if (MergeMode.from(studyMetadata.getAttributes()).equals(MergeMode.ADVANCED)) {
+            // Stage documents from already indexed files are merged as well
+            files.addAll(getMetadataManager().getIndexedFiles(studyMetadata.getId()));
+        }
+        Map<String, Long> chromosomeCounts = new HashMap<>();
+        for (Integer fileId : files) {
+            VariantFileMetadata fileMetadata = getMetadataManager().getVariantFileMetadata(studyMetadata.getId(), fileId, null).first();
+            if (fileMetadata == null || fileMetadata.getStats() == null
+                    || fileMetadata.getStats().getChromosomeCounts() == null
+                    || fileMetadata.getStats().getChromosomeCounts().isEmpty()) {
+                logger.warn("Missing chromosome stats from file " + fileId);
+                return Collections.emptyList();
+            }
+            for (Map.Entry<String, Integer> entry : fileMetadata.getStats().getChromosomeCounts().entrySet()) {
+                chromosomeCounts.merge(entry.getKey(), entry.getValue().longValue(), Long::sum);
+            }
+        }
+        return chromosomeCounts.entrySet()
+                .stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+    }
+
+    private MongoDBVariantStageReader newStageReader(List<Integer> fileIds, StudyMetadata studyMetadata,
+                                                     Collection<String> chromosomes) {
         MongoDBCollection stageCollection = dbAdaptor.getStageCollection(studyMetadata.getId());
-        MongoDBVariantStageReader reader = new MongoDBVariantStageReader(stageCollection, studyMetadata.getId());
+        MongoDBVariantStageReader reader = new MongoDBVariantStageReader(stageCollection, studyMetadata.getId(), chromosomes);
         MergeMode mergeMode = MergeMode.from(studyMetadata.getAttributes());
         if (mergeMode.equals(MergeMode.BASIC)) {
             // Read only files to load when MergeMode is BASIC
             reader.setFileIds(fileIds);
         }
+        return reader;
+    }
+
+    private MongoDBVariantWriteResult mergeChromosomes(List<Integer> fileIds, MongoDBVariantStageReader reader, int batchSize,
+                                                       int loadThreads, StudyMetadata studyMetadata, ProgressLogger progressLogger)
+            throws StorageEngineException {
+        MongoDBCollection stageCollection = dbAdaptor.getStageCollection(studyMetadata.getId());
         boolean resume = isResumeMerge(options);
         boolean cleanWhileLoading = options.getBoolean(STAGE_CLEAN_WHILE_LOAD.key(), STAGE_CLEAN_WHILE_LOAD.defaultValue());
-        ProgressLogger progressLogger = new ProgressLogger("Write variants in VARIANTS collection:", reader::countNumVariants, 200);
-        progressLogger.setApproximateTotalCount(reader.countAproxNumVariants());
 
         boolean ignoreOverlapping = studyMetadata.getAttributes().getBoolean(MERGE_IGNORE_OVERLAPPING_VARIANTS.key(),
                 MERGE_IGNORE_OVERLAPPING_VARIANTS.defaultValue());
@@ -658,6 +826,9 @@ public class MongoDBVariantStoragePipeline extends VariantStoragePipeline {
         MongoDBVariantMergeLoader variantLoader = new MongoDBVariantMergeLoader(
                 dbAdaptor.getVariantsCollection(), stageCollection, dbAdaptor.getStudiesCollection(),
                 studyMetadata, fileIds, resume, cleanWhileLoading, progressLogger);
+        if (hasHistogram(studyMetadata)) {
+            variantLoader.setHistogram(dbAdaptor.getHistogram(), getHistogramBinSize(studyMetadata));
+        }
 
         ParallelTaskRunner<Document, MongoDBOperations> ptrMerge;
         ParallelTaskRunner.Config config = ParallelTaskRunner.Config.builder()
@@ -706,6 +877,18 @@ public class MongoDBVariantStoragePipeline extends VariantStoragePipeline {
         Set<String> genotypes = new HashSet<>(studyMetadata.getAttributes().getAsStringList(LOADED_GENOTYPES.key()));
         genotypes.addAll(writeResult.getGenotypes());
         studyMetadata.getAttributes().put(LOADED_GENOTYPES.key(), genotypes);
+
+        boolean directLoad = options.getBoolean(DIRECT_LOAD.key(), DIRECT_LOAD.defaultValue());
+        if (hasHistogram(studyMetadata) && !directLoad) {
+            // Bins modified by the merge were marked as dirty by the MongoDBVariantMergeLoader
+            dbAdaptor.getHistogram().update(studyMetadata.getId(), getHistogramBinSize(studyMetadata));
+        } else if (hasHistogram(studyMetadata)
+                || options.getBoolean(HISTOGRAM.key(), HISTOGRAM.defaultValue())) {
+            int binSize = studyMetadata.getAttributes().getInt(HISTOGRAM_BIN_SIZE.key(),
+                    options.getInt(HISTOGRAM_BIN_SIZE.key(), HISTOGRAM_BIN_SIZE.defaultValue()));
+            dbAdaptor.getHistogram().build(studyMetadata.getId(), binSize);
+            studyMetadata.getAttributes().put(HISTOGRAM_BIN_SIZE.key(), binSize);
+        }
     }
 
     @Override
@@ -26,10 +26,12 @@ import com.mongodb.client.model.Projections;
 import com.mongodb.client.result.UpdateResult;
 import htsjdk.variant.vcf.VCFConstants;
 import org.apache.commons.lang3.time.StopWatch;
+import org.apache.commons.lang3.tuple.Pair;
 import org.bson.Document;
 import org.bson.conversions.Bson;
 import org.bson.json.JsonMode;
 import org.bson.json.JsonWriterSettings;
+import org.bson.types.Binary;
 import org.opencb.biodata.models.core.Region;
 import org.opencb.biodata.models.variant.StudyEntry;
 import org.opencb.biodata.models.variant.Variant;
@@ -66,6 +68,7 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
@@ -96,6 +99,9 @@ public class VariantMongoDBAdaptor implements VariantDBAdaptor {
     private final StorageConfiguration storageConfiguration;
     private final MongoCredentials credentials;
     private final VariantMongoDBQueryParser queryParser;
+    private final VariantMongoDBHistogram histogram;
+    private final VariantMongoDBQueryProfiler queryProfiler;
+    private final VariantMongoDBIndexAdvisor indexAdvisor;
 
     private VariantStorageMetadataManager metadataManager;
     private final ObjectMap configuration;
@@ -135,6 +141,11 @@ public class VariantMongoDBAdaptor implements VariantDBAdaptor {
                 : storageEngineConfiguration.getVariant().getOptions();
 
         queryParser = new VariantMongoDBQueryParser(variantStorageMetadataManager);
+        histogram = new VariantMongoDBHistogram(
+                db.getCollection(configuration.getString(COLLECTION_HISTOGRAM.key(), COLLECTION_HISTOGRAM.defaultValue())),
+                variantsCollection);
+        queryProfiler = new VariantMongoDBQueryProfiler(db, collectionName, configuration);
+        indexAdvisor = new VariantMongoDBIndexAdvisor(queryProfiler, variantsCollection);
         NUMBER_INSTANCES.incrementAndGet();
     }
 
@@ -142,6 +153,18 @@ public class VariantMongoDBAdaptor implements VariantDBAdaptor {
         return variantsCollection;
     }
 
+    public VariantMongoDBHistogram getHistogram() {
+        return histogram;
+    }
+
+    public VariantMongoDBQueryProfiler getQueryProfiler() {
+        return queryProfiler;
+    }
+
+    public VariantMongoDBIndexAdvisor getIndexAdvisor() {
+        return indexAdvisor;
+    }
+
     public MongoDBCollection getStageCollection(int studyId) {
         String stageCollectionName = configuration.getString(COLLECTION_STAGE.key(), COLLECTION_STAGE.defaultValue());
         // Ensure retro-compatibility.
@@ -393,6 +416,63 @@ public class VariantMongoDBAdaptor implements VariantDBAdaptor {
         return result;
     }
 
+    /**
+     * Change the encoding of the sample ids of the genotypes of a study.
+     * Lists of sample ids are replaced by compact binaries, or the other way around.
+     *
+     * @see SampleIdsBinaryConverter
+     * @param studyId   Study
+     * @param compact   Encode as compact binaries if true, as lists of sample ids if false
+     * @param batchSize Number of documents to update in each bulk write
+     * @return Number of updated documents
+     */
+    public long updateGenotypesEncoding(int studyId, boolean compact, int batchSize) {
+        Bson query = elemMatch(DocumentToVariantConverter.STUDIES_FIELD, eq(STUDYID_FIELD, studyId));
+        Document projection = new Document(DocumentToVariantConverter.STUDIES_FIELD + '.' + STUDYID_FIELD, 1)
+                .append(DocumentToVariantConverter.STUDIES_FIELD + '.' + GENOTYPES_FIELD, 1);
+        MongoPersistentCursor iterator = new MongoPersistentCursor(variantsCollection, query, projection, new QueryOptions());
+
+        long updatedDocuments = 0;
+        List<Bson> queries = new ArrayList<>(batchSize);
+        List<Bson> updates = new ArrayList<>(batchSize);
+        while (iterator.hasNext()) {
+            Document document = iterator.next();
+            List<Document> studies = document.get(DocumentToVariantConverter.STUDIES_FIELD, List.class);
+            for (Document study : studies) {
+                Document gts = study.get(GENOTYPES_FIELD, Document.class);
+                if (study.getInteger(STUDYID_FIELD) != studyId || gts == null) {
+                    continue;
+                }
+                boolean modified = false;
+                Document newGts = new Document();
+                for (Map.Entry<String, Object> entry : gts.entrySet()) {
+                    Object sampleIds = entry.getValue();
+                    if (compact && !(sampleIds instanceof Binary)) {
+                        sampleIds = new Binary(SampleIdsBinaryConverter.encode(SampleIdsBinaryConverter.getSampleIds(sampleIds)));
+                        modified = true;
+                    } else if (!compact && sampleIds instanceof Binary) {
+                        sampleIds = SampleIdsBinaryConverter.getSampleIds(sampleIds);
+                        modified = true;
+                    }
+                    newGts.append(entry.getKey(), sampleIds);
+                }
+                if (modified) {
+                    queries.add(and(eq("_id", document.getString("_id")),
+                            eq(DocumentToVariantConverter.STUDIES_FIELD + '.' + STUDYID_FIELD, studyId)));
+                    updates.add(set(DocumentToVariantConverter.STUDIES_FIELD + ".$." + GENOTYPES_FIELD, newGts));
+                }
+            }
+            if (queries.size() >= batchSize || (!iterator.hasNext() && !queries.isEmpty())) {
+                updatedDocuments += variantsCollection.update(queries, updates, new QueryOptions()).first().getModifiedCount();
+                queries.clear();
+                updates.clear();
+                logger.debug("Updated genotypes encoding of " + updatedDocuments + " documents");
+            }
+        }
+        iterator.close();
+        return updatedDocuments;
+    }
+
     /**
      * Remove empty variants from the variants collection, and move to the trash collection.
      *
@@ -484,6 +564,10 @@ public class VariantMongoDBAdaptor implements VariantDBAdaptor {
             options = new QueryOptions();
         }
 
+        if (queryParser.parseCompactGenotypesFilter(query) != null) {
+            return getFilteringGenotypes(query, options);
+        }
+
         VariantQueryFields selectVariantElements = VariantQueryUtils.parseVariantQueryFields(query, options, metadataManager);
         Document mongoQuery = queryParser.parseQuery(query);
         Document projection = queryParser.createProjection(query, options, selectVariantElements);
@@ -498,8 +582,31 @@ public class VariantMongoDBAdaptor implements VariantDBAdaptor {
         }
 
         DocumentToVariantConverter converter = getDocumentToVariantConverter(query, selectVariantElements);
-        return addSamplesMetadataIfRequested(variantsCollection.find(mongoQuery, projection, converter, options),
-                query, options, getMetadataManager());
+        long start = System.nanoTime();
+        QueryResult<Variant> queryResult = variantsCollection.find(mongoQuery, projection, converter, options);
+        queryProfiler.record(mongoQuery, projection, options, System.nanoTime() - start);
+        return addSamplesMetadataIfRequested(queryResult, query, options, getMetadataManager());
+    }
+
+    /**
+     * Get variants filtering by genotype in a study with compact genotypes.
+     * The genotypes are filtered after reading the documents, so the total count requires reading all the matching variants.
+     */
+    private VariantQueryResult<Variant> getFilteringGenotypes(Query query, QueryOptions options) {
+        StopWatch stopWatch = StopWatch.createStarted();
+        List<Variant> variants = new ArrayList<>();
+        try (VariantDBIterator iterator = iterator(query, options)) {
+            iterator.forEachRemaining(variants::add);
+        } catch (Exception e) {
+            throw VariantQueryException.internalException(e);
+        }
+        long numTotalResults = -1;
+        if (!options.getBoolean(QueryOptions.SKIP_COUNT, DEFAULT_SKIP_COUNT)) {
+            numTotalResults = count(query).first();
+        }
+        QueryResult<Variant> queryResult = new QueryResult<>("", (int) stopWatch.getTime(TimeUnit.MILLISECONDS), variants.size(),
+                numTotalResults, "", "", variants);
+        return addSamplesMetadataIfRequested(queryResult, query, options, getMetadataManager());
     }
 
     @Override
@@ -596,8 +703,28 @@ public class VariantMongoDBAdaptor implements VariantDBAdaptor {
 
     @Override
     public QueryResult<Long> count(Query query) {
+        VariantMongoDBCompactGenotypesFilter genotypesFilter = queryParser.parseCompactGenotypesFilter(query);
+        if (genotypesFilter != null) {
+            // Count the documents matching the genotype filter
+            StopWatch stopWatch = StopWatch.createStarted();
+            Document projection = genotypesFilter.addRequiredFields(new Document("_id", 1));
+            long count = 0;
+            try (MongoCursor<Document> cursor = variantsCollection.nativeQuery()
+                    .find(queryParser.parseQuery(removeGenotypesFilter(query)), projection, new QueryOptions()).iterator()) {
+                while (cursor.hasNext()) {
+                    if (genotypesFilter.test(cursor.next())) {
+                        count++;
+                    }
+                }
+            }
+            return new QueryResult<>("count", (int) stopWatch.getTime(TimeUnit.MILLISECONDS), 1, 1, "", "",
+                    Collections.singletonList(count));
+        }
         Document mongoQuery = queryParser.parseQuery(query);
-        return variantsCollection.count(mongoQuery);
+        long start = System.nanoTime();
+        QueryResult<Long> queryResult = variantsCollection.count(mongoQuery);
+        queryProfiler.record(mongoQuery, null, null, System.nanoTime() - start);
+        return queryResult;
     }
 
     @Override
@@ -641,11 +768,25 @@ public class VariantMongoDBAdaptor implements VariantDBAdaptor {
         }
 
         VariantQueryFields selectVariantElements = VariantQueryUtils.parseVariantQueryFields(query, options, metadataManager);
-        Document mongoQuery = queryParser.parseQuery(query);
         Document projection = queryParser.createProjection(query, options, selectVariantElements);
         DocumentToVariantConverter converter = getDocumentToVariantConverter(query, selectVariantElements);
         options.putIfAbsent(MongoDBCollection.BATCH_SIZE, 100);
 
+        VariantMongoDBCompactGenotypesFilter genotypesFilter = queryParser.parseCompactGenotypesFilter(query);
+        if (genotypesFilter != null) {
+            // Genotypes can not be filtered by MongoDB. Filter the documents, and apply skip and limit, once read.
+            Document mongoQuery = queryParser.parseQuery(removeGenotypesFilter(query));
+            genotypesFilter.addRequiredFields(projection);
+            QueryOptions nativeOptions = new QueryOptions(options);
+            nativeOptions.remove(QueryOptions.SKIP);
+            nativeOptions.remove(QueryOptions.LIMIT);
+            FindIterable<Document> dbCursor = variantsCollection.nativeQuery().find(mongoQuery, projection, nativeOptions);
+            VariantMongoDBIterator dbIterator = new VariantMongoDBIterator(dbCursor, converter)
+                    .filter(genotypesFilter, options.getInt(QueryOptions.SKIP, 0), options.getInt(QueryOptions.LIMIT, 0));
+            return addQueryProfiler(dbIterator, mongoQuery, projection, options);
+        }
+        Document mongoQuery = queryParser.parseQuery(query);
+
         // Short unsorted queries with timeout or limit don't need the persistent cursor.
         if (options.containsKey(QueryOptions.TIMEOUT)
                 || options.containsKey(QueryOptions.LIMIT)
@@ -654,13 +795,31 @@ public class VariantMongoDBAdaptor implements VariantDBAdaptor {
             FindIterable<Document> dbCursor = variantsCollection.nativeQuery().find(mongoQuery, projection, options);
             VariantMongoDBIterator dbIterator = new VariantMongoDBIterator(dbCursor, converter);
             dbIterator.setTimeFetching(dbIterator.getTimeFetching() + stopWatch.getNanoTime());
-            return dbIterator;
+            return addQueryProfiler(dbIterator, mongoQuery, projection, options);
         } else {
             logger.debug("Using mongodb persistent iterator");
-            return VariantMongoDBIterator.persistentIterator(variantsCollection, mongoQuery, projection, options, converter);
+            return addQueryProfiler(VariantMongoDBIterator.persistentIterator(variantsCollection, mongoQuery, projection, options,
+                    converter), mongoQuery, projection, options);
         }
     }
 
+    private static Query removeGenotypesFilter(Query query) {
+        Query queryWithoutGenotypes = new Query(query);
+        queryWithoutGenotypes.remove(GENOTYPE.key());
+        queryWithoutGenotypes.remove(SAMPLE.key());
+        return queryWithoutGenotypes;
+    }
+
+    private VariantDBIterator addQueryProfiler(VariantDBIterator iterator, Document mongoQuery, Document projection,
+                                               QueryOptions options) {
+        if (queryProfiler.isEnabled()) {
+            // Record the time fetching results once the iterator is closed
+            QueryOptions sortOptions = new QueryOptions(QueryOptions.SORT, options.get(QueryOptions.SORT));
+            iterator.addCloseable(() -> queryProfiler.record(mongoQuery, projection, sortOptions, iterator.getTimeFetching()));
+        }
+        return iterator;
+    }
+
     public MongoCursor<Document> nativeIterator(Query query, QueryOptions options, boolean persistent) {
         if (query == null) {
             query = new Query();
@@ -683,6 +842,28 @@ public class VariantMongoDBAdaptor implements VariantDBAdaptor {
         }
     }
 
+    /**
+     * Execute an aggregation pipeline over the variants matching the given query.
+     *
+     * @param query     Variants query
+     * @param pipeline  Aggregation stages to execute after the $match
+     * @param options   Query options
+     * @return          Cursor over the aggregation results
+     */
+    public MongoCursor<Document> nativeAggregate(Query query, List<Bson> pipeline, QueryOptions options) {
+        if (query == null) {
+            query = new Query();
+        }
+        if (options == null) {
+            options = new QueryOptions();
+        }
+        List<Bson> operations = new ArrayList<>(pipeline.size() + 1);
+        operations.add(new Document("$match", queryParser.parseQuery(query)));
+        operations.addAll(pipeline);
+        logger.debug("db." + collectionName + ".aggregate( " + operations + " )");
+        return variantsCollection.nativeQuery().aggregate(operations, options).iterator();
+    }
+
     @Override
     public QueryResult getFrequency(Query query, Region region, int regionIntervalSize) {
         // db.variants.aggregate( { $match: { $and: [ {chr: "1"}, {start: {$gt: 251391, $lt: 2701391}} ] }},
@@ -692,6 +873,22 @@ public class VariantMongoDBAdaptor implements VariantDBAdaptor {
 
         QueryOptions options = new QueryOptions();
 
+        Query queryWithoutRegion = query == null ? new Query() : new Query(query);
+        if (region.toString().equals(queryWithoutRegion.getString(REGION.key()))) {
+            queryWithoutRegion.remove(REGION.key());
+        }
+        Pair<StudyMetadata, String> histogramQuery = getHistogramQuery(queryWithoutRegion);
+        if (histogramQuery != null) {
+            int binSize = getHistogramBinSize(histogramQuery.getKey());
+            if (regionIntervalSize <= 0) {
+                regionIntervalSize = Math.max(1, (region.getEnd() - region.getStart()) / 200 / binSize) * binSize;
+            }
+            if (regionIntervalSize % binSize == 0 && isBinAligned(region, binSize)) {
+                return getFrequencyFromHistogram(histogramQuery.getKey().getId(), histogramQuery.getValue(), binSize, region,
+                        regionIntervalSize);
+            }
+        }
+
         // If interval is not provided is set to the value that returns 200 values
         if (regionIntervalSize <= 0) {
 //            regionIntervalSize = options.getInt("interval", (region.getEnd() - region.getStart()) / 200);
@@ -791,6 +988,120 @@ public class VariantMongoDBAdaptor implements VariantDBAdaptor {
                 resultList.size(), resultList.size(), null, null, resultList);
     }
 
+    /**
+     * Check if the region covers complete bins of the histogram. Otherwise, the bins at the edges would count variants out of the region.
+     *
+     * @param region    Region
+     * @param binSize   Size of the bins
+     * @return          If the region starts at the first position of a bin, and ends at the last position of a bin
+     */
+    private static boolean isBinAligned(Region region, int binSize) {
+        return (region.getStart() <= 1 || region.getStart() % binSize == 0) && (region.getEnd() + 1) % binSize == 0;
+    }
+
+    /**
+     * Get the frequency of variants from the precomputed histogram. The region must be aligned to the bins. See {@link #isBinAligned}.
+     *
+     * @param studyId               Study with histogram
+     * @param field                 Histogram field to read
+     * @param binSize               Size of the bins of the study
+     * @param region                Region
+     * @param regionIntervalSize    Size of the intervals. Must be a multiple of the bin size
+     * @return                      Number of variants per interval
+     */
+    private QueryResult getFrequencyFromHistogram(int studyId, String field, int binSize, Region region, int regionIntervalSize) {
+        long dbTimeStart = System.currentTimeMillis();
+        int fromBin = VariantMongoDBHistogram.getBin(region.getStart(), binSize);
+        int toBin = VariantMongoDBHistogram.getBin(region.getEnd(), binSize);
+        Map<Integer, Integer> bins = histogram.getBins(studyId, binSize, region.getChromosome(), fromBin, toBin, field);
+        long dbTimeEnd = System.currentTimeMillis();
+
+        Map<Integer, Integer> chunks = new HashMap<>();
+        bins.forEach((bin, count) -> chunks.merge(queryParser.getChunkId(bin * binSize, regionIntervalSize), count, Integer::sum));
+
+        BasicDBList resultList = new BasicDBList();
+        int firstChunkId = queryParser.getChunkId(region.getStart(), regionIntervalSize);
+        int lastChunkId = queryParser.getChunkId(region.getEnd(), regionIntervalSize);
+        for (int chunkId = firstChunkId; chunkId <= lastChunkId; chunkId++) {
+            Integer count = chunks.get(chunkId);
+            Document intervalObj = new Document();
+            intervalObj.put("_id", chunkId);
+            intervalObj.put("start", queryParser.getChunkStart(chunkId, regionIntervalSize));
+            intervalObj.put("end", queryParser.getChunkEnd(chunkId, regionIntervalSize));
+            intervalObj.put("chromosome", region.getChromosome());
+            intervalObj.put("features_count", count == null ? 0 : Math.log(count));
+            resultList.add(intervalObj);
+        }
+
+        return new QueryResult(region.toString(), ((Long) (dbTimeEnd - dbTimeStart)).intValue(),
+                resultList.size(), resultList.size(), null, null, resultList);
+    }
+
+    /**
+     * Check if the query can be answered from the histogram of one single study.
+     * Only one filter by {@link VariantQueryParam#TYPE}, {@link VariantQueryParam#ANNOT_CONSEQUENCE_TYPE}
+     * or {@link VariantQueryParam#FILTER}=PASS is allowed.
+     *
+     * @param query Query
+     * @return      Study and histogram field to read, or null if the histogram can not be used.
+     */
+    private Pair<StudyMetadata, String> getHistogramQuery(Query query) {
+        if (query == null) {
+            query = new Query();
+        }
+        Set<VariantQueryParam> params = validParams(query, true);
+        params.remove(STUDY);
+
+        final StudyMetadata studyMetadata;
+        if (isValidParam(query, STUDY)) {
+            String study = query.getString(STUDY.key());
+            if (splitValue(study, checkOperator(study)).size() != 1 || isNegated(study)) {
+                return null;
+            }
+            studyMetadata = metadataManager.getStudyMetadata(study);
+        } else {
+            List<String> studyNames = metadataManager.getStudyNames();
+            studyMetadata = studyNames.size() == 1 ? metadataManager.getStudyMetadata(studyNames.get(0)) : null;
+        }
+        if (studyMetadata == null || !hasHistogram(studyMetadata) || params.size() > 1) {
+            return null;
+        }
+
+        String field = VariantMongoDBHistogram.COUNT_FIELD;
+        if (params.contains(TYPE)) {
+            List<String> types = query.getAsStringList(TYPE.key());
+            if (types.size() != 1 || isNegated(types.get(0))) {
+                return null;
+            }
+            field = VariantMongoDBHistogram.TYPES_FIELD + '.' + types.get(0);
+        } else if (params.contains(ANNOT_CONSEQUENCE_TYPE)) {
+            List<String> cts = query.getAsStringList(ANNOT_CONSEQUENCE_TYPE.key());
+            if (cts.size() != 1 || cts.get(0).equalsIgnoreCase(LOF) || isNegated(cts.get(0))) {
+                return null;
+            }
+            field = VariantMongoDBHistogram.CONSEQUENCE_TYPES_FIELD + '.' + parseConsequenceType(cts.get(0));
+        } else if (params.contains(FILTER)) {
+            if (!query.getString(FILTER.key()).equals(VCFConstants.PASSES_FILTERS_v4)) {
+                return null;
+            }
+            field = VariantMongoDBHistogram.PASS_FIELD;
+        } else if (!params.isEmpty()) {
+            return null;
+        }
+        return Pair.of(studyMetadata, field);
+    }
+
+    private Map<Integer, Integer> getHistogramBinSizes() {
+        Map<Integer, Integer> binSizes = new HashMap<>();
+        for (Integer studyId : metadataManager.getStudyIds()) {
+            StudyMetadata studyMetadata = metadataManager.getStudyMetadata(studyId);
+            if (hasHistogram(studyMetadata)) {
+                binSizes.put(studyId, getHistogramBinSize(studyMetadata));
+            }
+        }
+        return binSizes;
+    }
+
     @Override
     public QueryResult rank(Query query, String field, int numResults, boolean asc) {
         QueryOptions options = new QueryOptions();
@@ -840,11 +1151,18 @@ public class VariantMongoDBAdaptor implements VariantDBAdaptor {
                 break;
         }
 
-        Document mongoQuery = queryParser.parseQuery(query);
-
         boolean count = options.getBoolean("count", false);
         int order = options.getInt("order", -1);
 
+        if (count && (field.equals("ct") || field.equals("consequence_type"))) {
+            Pair<StudyMetadata, String> histogramQuery = getHistogramQuery(query);
+            if (histogramQuery != null && histogramQuery.getValue().equals(VariantMongoDBHistogram.COUNT_FIELD)) {
+                return groupByConsequenceTypeFromHistogram(histogramQuery.getKey(), order, options);
+            }
+        }
+
+        Document mongoQuery = queryParser.parseQuery(query);
+
         Document project;
         Document projectAndCount;
         if (count) {
@@ -908,6 +1226,26 @@ public class VariantMongoDBAdaptor implements VariantDBAdaptor {
         return queryResult;
     }
 
+    private QueryResult<Document> groupByConsequenceTypeFromHistogram(StudyMetadata studyMetadata, int order, QueryOptions options) {
+        StopWatch stopWatch = StopWatch.createStarted();
+        Map<Integer, Integer> counts = histogram.countConsequenceTypes(studyMetadata.getId(),
+                getHistogramBinSize(studyMetadata));
+        Comparator<Map.Entry<Integer, Integer>> comparator = Map.Entry.comparingByValue();
+        if (order < 0) {
+            comparator = comparator.reversed();
+        }
+        int skip = Math.max(0, options.getInt(QueryOptions.SKIP, 0));
+        int limit = options.getInt(QueryOptions.LIMIT, -1) > 0 ? options.getInt(QueryOptions.LIMIT) : 10;
+        List<Document> result = counts.entrySet()
+                .stream()
+                .sorted(comparator)
+                .skip(skip)
+                .limit(limit)
+                .map(entry -> new Document("id", entry.getKey()).append("count", entry.getValue()))
+                .collect(Collectors.toList());
+        return new QueryResult<>("", (int) stopWatch.getTime(TimeUnit.MILLISECONDS), result.size(), counts.size(), "", "", result);
+    }
+
     @Override
     public QueryResult groupBy(Query query, List<String> fields, QueryOptions options) {
         String warningMsg = "Unimplemented VariantMongoDBAdaptor::groupBy list of fields. Using field[0] : '" + fields.get(0) + "'";
@@ -1005,6 +1343,42 @@ public class VariantMongoDBAdaptor implements VariantDBAdaptor {
         return new QueryResult<>("", ((int) (System.nanoTime() - start)), writes, writes, "", "", Collections.singletonList(writeResult));
     }
 
+    /**
+     * Replace the stats of some cohorts in a list of variants. The stats of other cohorts are not modified.
+     *
+     * As in {@link #updateStats}, the old stats of the cohorts are removed with a $pull, and the new ones added with a $push,
+     * so concurrent updates of different cohorts do not overwrite each other.
+     *
+     * @param variantsStats Documents with the "_id" of the variant and the new stats of the cohorts
+     * @param studyId       Study of the cohorts
+     * @param cohortIds     Cohorts to replace
+     * @param timestamp     Timestamp of the update
+     * @return              Bulk write result of the $push
+     */
+    public QueryResult<BulkWriteResult> setStats(List<Document> variantsStats, int studyId, Collection<Integer> cohortIds,
+                                                 long timestamp) {
+        List<Bson> queries = new ArrayList<>(variantsStats.size());
+        List<Bson> pullUpdates = new ArrayList<>(variantsStats.size());
+        List<Bson> pushUpdates = new ArrayList<>(variantsStats.size());
+        // { $pull : { st : {  sid : <studyId>, cid : { $in : [<cohortIds>] } } } }
+        Bson pull = new Document("$pull", new Document(DocumentToVariantConverter.STATS_FIELD,
+                new Document(DocumentToVariantStatsConverter.STUDY_ID, studyId)
+                        .append(DocumentToVariantStatsConverter.COHORT_ID, new Document("$in", cohortIds))));
+        for (Document variantStats : variantsStats) {
+            queries.add(eq("_id", variantStats.get("_id")));
+            pullUpdates.add(pull);
+            pushUpdates.add(combine(pushEach(DocumentToVariantConverter.STATS_FIELD, getStats(variantStats)),
+                    getSetIndexNotSynchronized(timestamp)));
+        }
+        variantsCollection.update(queries, pullUpdates, new QueryOptions());
+        return variantsCollection.update(queries, pushUpdates, new QueryOptions());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Document> getStats(Document variantStats) {
+        return (List<Document>) variantStats.get(DocumentToVariantConverter.STATS_FIELD);
+    }
+
     public QueryResult removeStats(String studyName, String cohortName, QueryOptions options) {
         StudyMetadata sm = metadataManager.getStudyMetadata(studyName);
         int cohortId = metadataManager.getCohortId(sm.getId(), cohortName);
@@ -1033,6 +1407,7 @@ public class VariantMongoDBAdaptor implements VariantDBAdaptor {
     public QueryResult updateAnnotations(List<VariantAnnotation> variantAnnotations, long timestamp, QueryOptions queryOptions) {
         List<Bson> queries = new LinkedList<>();
         List<Bson> updates = new LinkedList<>();
+        List<String> ids = new ArrayList<>(variantAnnotations.size());
 
         StopWatch watch = StopWatch.createStarted();
         DocumentToVariantConverter variantConverter = getDocumentToVariantConverter(new Query(), queryOptions);
@@ -1049,6 +1424,7 @@ public class VariantMongoDBAdaptor implements VariantDBAdaptor {
                 id = variantConverter.buildStorageId(variantAnnotation.getChromosome(), variantAnnotation.getStart(),
                         variantAnnotation.getReference(), variantAnnotation.getAlternate());
             }
+            ids.add(id);
             Document find = new Document("_id", id);
             int currentAnnotationId = getMetadataManager().getProjectMetadata().getAnnotation().getCurrent().getId();
             DocumentToVariantAnnotationConverter converter = new DocumentToVariantAnnotationConverter(currentAnnotationId);
@@ -1061,6 +1437,11 @@ public class VariantMongoDBAdaptor implements VariantDBAdaptor {
         }
         BulkWriteResult writeResult = variantsCollection.update(queries, updates, null).first();
 
+        Map<Integer, Integer> histogramBinSizes = getHistogramBinSizes();
+        if (!histogramBinSizes.isEmpty()) {
+            histogram.markDirty(ids, histogramBinSizes);
+        }
+
         return new QueryResult<>("", (int) watch.getNanoTime(), 1, 1, "", "", Collections.singletonList(writeResult));
     }
 
@@ -1087,6 +1468,7 @@ public class VariantMongoDBAdaptor implements VariantDBAdaptor {
 
     @Override
     public void close() throws IOException {
+        queryProfiler.close();
         if (closeConnection) {
             mongoManager.close();
         }
@@ -1132,6 +1514,22 @@ public class VariantMongoDBAdaptor implements VariantDBAdaptor {
 
     public void createIndexes(QueryOptions options) {
         createIndexes(options, variantsCollection);
+
+        if (options == null) {
+            options = new QueryOptions();
+        }
+        int minQueries = options.getInt(INDEX_ADVISOR_MIN_QUERIES.key(),
+                configuration.getInt(INDEX_ADVISOR_MIN_QUERIES.key(), INDEX_ADVISOR_MIN_QUERIES.defaultValue()));
+        if (options.getBoolean(INDEX_ADVISOR_CREATE.key(),
+                configuration.getBoolean(INDEX_ADVISOR_CREATE.key(), INDEX_ADVISOR_CREATE.defaultValue()))) {
+            indexAdvisor.createIndexes(minQueries);
+        } else {
+            // Only report
+            indexAdvisor.proposeIndexes(minQueries);
+        }
+        for (ObjectMap metrics : queryProfiler.getSlowMetrics()) {
+            logger.info("Slow query shape : {}", metrics.toJson());
+        }
     }
 
     /**
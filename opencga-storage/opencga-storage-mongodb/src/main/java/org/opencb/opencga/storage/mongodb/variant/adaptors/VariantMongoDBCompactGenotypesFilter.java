@@ -0,0 +1,239 @@
+/*
+ * Copyright 2015-2017 OpenCB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opencb.opencga.storage.mongodb.variant.adaptors;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.opencb.opencga.storage.core.variant.adaptors.GenotypeClass;
+import org.opencb.opencga.storage.core.variant.adaptors.VariantQueryUtils.QueryOperation;
+import org.opencb.opencga.storage.mongodb.variant.converters.DocumentToSamplesConverter;
+import org.opencb.opencga.storage.mongodb.variant.converters.DocumentToStudyVariantEntryConverter;
+import org.opencb.opencga.storage.mongodb.variant.converters.DocumentToVariantConverter;
+import org.opencb.opencga.storage.mongodb.variant.converters.SampleIdsBinaryConverter;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+import static org.opencb.opencga.storage.core.variant.adaptors.VariantQueryUtils.isNegated;
+import static org.opencb.opencga.storage.core.variant.adaptors.VariantQueryUtils.removeNegation;
+
+/**
+ * Genotype filter for studies with compact genotypes.
+ *
+ * The sample ids of a compact study are stored as binaries (see {@link SampleIdsBinaryConverter}), that can not be queried from
+ * MongoDB. Instead, the genotype filter is removed from the MongoDB query, and the documents are filtered once read.
+ *
+ * A sample matches if its genotype is any of the requested genotypes, and none of the negated genotypes. Samples not present in
+ * any genotype have the default genotype, or the unknown genotype if none of their files is in the variant.
+ */
+public class VariantMongoDBCompactGenotypesFilter implements Predicate<Document> {
+
+    private static final String STUDY_ID_FIELD = DocumentToVariantConverter.STUDIES_FIELD
+            + '.' + DocumentToStudyVariantEntryConverter.STUDYID_FIELD;
+    private static final String GENOTYPES_FIELD = DocumentToVariantConverter.STUDIES_FIELD
+            + '.' + DocumentToStudyVariantEntryConverter.GENOTYPES_FIELD;
+    private static final String FILES_FIELD = DocumentToVariantConverter.STUDIES_FIELD
+            + '.' + DocumentToStudyVariantEntryConverter.FILES_FIELD;
+    private static final String FILE_ID_FIELD = FILES_FIELD + '.' + DocumentToStudyVariantEntryConverter.FILEID_FIELD;
+
+    private final int studyId;
+    private final QueryOperation operation;
+    private final String defaultGenotype;
+    private final List<SampleFilter> samples = new ArrayList<>();
+
+    // Fields added to the projection only to evaluate this filter. Removed after the evaluation.
+    private boolean removeStudies;
+    private boolean removeGenotypes;
+    private boolean removeFiles;
+
+    VariantMongoDBCompactGenotypesFilter(int studyId, QueryOperation operation, String defaultGenotype) {
+        this.studyId = studyId;
+        this.operation = operation == null ? QueryOperation.AND : operation;
+        this.defaultGenotype = defaultGenotype;
+    }
+
+    /**
+     * Add a sample to the filter.
+     *
+     * @param sampleId  Sample id
+     * @param files     Files of the sample
+     * @param genotypes Accepted genotypes, as returned by {@link GenotypeClass#filter}. May contain negated genotypes.
+     */
+    void addSample(int sampleId, Collection<Integer> files, Collection<String> genotypes) {
+        Set<String> accepted = new HashSet<>();
+        Set<String> rejected = new HashSet<>();
+        for (String genotype : genotypes) {
+            if (genotype.equals(GenotypeClass.NA_GT_VALUE)) {
+                continue;
+            }
+            if (isNegated(genotype)) {
+                rejected.add(removeNegation(genotype));
+            } else {
+                accepted.add(genotype);
+            }
+        }
+        samples.add(new SampleFilter(sampleId, new HashSet<>(files), accepted, rejected));
+    }
+
+    /**
+     * Add to the projection the fields required to evaluate this filter.
+     *
+     * @param projection Projection of the query. Empty projection returns all the fields.
+     * @return the given projection
+     */
+    Document addRequiredFields(Document projection) {
+        boolean containsStudies = projection.containsKey(DocumentToVariantConverter.STUDIES_FIELD);
+        boolean containsStudyFields = false;
+        boolean containsFiles = false;
+        for (String key : projection.keySet()) {
+            containsStudyFields |= key.startsWith(DocumentToVariantConverter.STUDIES_FIELD + '.');
+            containsFiles |= key.equals(FILES_FIELD) || key.startsWith(FILES_FIELD + '.');
+        }
+        if (projection.isEmpty() || containsStudies && !containsStudyFields) {
+            // All study fields are returned
+            return projection;
+        }
+        removeStudies = !containsStudies && !containsStudyFields;
+        removeGenotypes = !projection.containsKey(GENOTYPES_FIELD);
+        removeFiles = !containsFiles;
+
+        projection.putIfAbsent(STUDY_ID_FIELD, 1);
+        projection.putIfAbsent(GENOTYPES_FIELD, 1);
+        if (removeFiles) {
+            projection.put(FILE_ID_FIELD, 1);
+        }
+        return projection;
+    }
+
+    /**
+     * Evaluate the filter over a document from the variants collection.
+     * Fields only added to evaluate this filter (see {@link #addRequiredFields}) are removed from the document.
+     *
+     * @param document Variant document
+     * @return if the document matches the filter
+     */
+    @Override
+    public boolean test(Document document) {
+        boolean match = matches(getStudy(document));
+        cleanDocument(document);
+        return match;
+    }
+
+    private boolean matches(Document study) {
+        if (study == null) {
+            return false;
+        }
+        Document genotypes = study.get(DocumentToStudyVariantEntryConverter.GENOTYPES_FIELD, Document.class);
+        Set<Integer> files = new HashSet<>();
+        List<Document> fileDocuments = getList(study, DocumentToStudyVariantEntryConverter.FILES_FIELD);
+        if (fileDocuments != null) {
+            for (Document file : fileDocuments) {
+                files.add(Math.abs(file.get(DocumentToStudyVariantEntryConverter.FILEID_FIELD, Number.class).intValue()));
+            }
+        }
+
+        for (SampleFilter sample : samples) {
+            boolean match = sample.matches(getGenotype(genotypes, files, sample));
+            if (operation == QueryOperation.OR && match) {
+                return true;
+            } else if (operation != QueryOperation.OR && !match) {
+                return false;
+            }
+        }
+        return operation != QueryOperation.OR;
+    }
+
+    private String getGenotype(Document genotypes, Set<Integer> files, SampleFilter sample) {
+        if (genotypes != null) {
+            for (Map.Entry<String, Object> entry : genotypes.entrySet()) {
+                if (entry.getKey().equals(GenotypeClass.UNKNOWN_GENOTYPE)) {
+                    // Skip legacy genotype
+                    continue;
+                }
+                if (contains(entry.getValue(), sample.sampleId)) {
+                    return DocumentToSamplesConverter.genotypeToDataModelType(entry.getKey());
+                }
+            }
+        }
+        if (Collections.disjoint(files, sample.files)) {
+            return GenotypeClass.UNKNOWN_GENOTYPE;
+        } else {
+            return defaultGenotype;
+        }
+    }
+
+    private static boolean contains(Object value, int sampleId) {
+        if (value instanceof Binary) {
+            return SampleIdsBinaryConverter.contains(((Binary) value).getData(), sampleId);
+        } else {
+            return ((Collection<?>) value).contains(sampleId);
+        }
+    }
+
+    private Document getStudy(Document document) {
+        List<Document> studies = getList(document, DocumentToVariantConverter.STUDIES_FIELD);
+        if (studies != null) {
+            for (Document study : studies) {
+                if (study.get(DocumentToStudyVariantEntryConverter.STUDYID_FIELD, Number.class).intValue() == studyId) {
+                    return study;
+                }
+            }
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Document> getList(Document document, String key) {
+        return (List<Document>) document.get(key);
+    }
+
+    private void cleanDocument(Document document) {
+        if (removeStudies) {
+            document.remove(DocumentToVariantConverter.STUDIES_FIELD);
+        } else if (removeGenotypes || removeFiles) {
+            List<Document> studies = getList(document, DocumentToVariantConverter.STUDIES_FIELD);
+            if (studies != null) {
+                for (Document study : studies) {
+                    if (removeGenotypes) {
+                        study.remove(DocumentToStudyVariantEntryConverter.GENOTYPES_FIELD);
+                    }
+                    if (removeFiles) {
+                        study.remove(DocumentToStudyVariantEntryConverter.FILES_FIELD);
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class SampleFilter {
+        private final int sampleId;
+        private final Set<Integer> files;
+        private final Set<String> accepted;
+        private final Set<String> rejected;
+
+        private SampleFilter(int sampleId, Set<Integer> files, Set<String> accepted, Set<String> rejected) {
+            this.sampleId = sampleId;
+            this.files = files;
+            this.accepted = accepted;
+            this.rejected = rejected;
+        }
+
+        private boolean matches(String genotype) {
+            return (accepted.isEmpty() || accepted.contains(genotype)) && !rejected.contains(genotype);
+        }
+    }
+}
@@ -0,0 +1,404 @@
+package org.opencb.opencga.storage.mongodb.variant.adaptors;
+
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Projections;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.opencb.biodata.models.variant.StudyEntry;
+import org.opencb.commons.datastore.core.ObjectMap;
+import org.opencb.commons.datastore.core.QueryOptions;
+import org.opencb.commons.datastore.mongodb.MongoDBCollection;
+import org.opencb.opencga.storage.mongodb.variant.converters.DocumentToStudyVariantEntryConverter;
+import org.opencb.opencga.storage.mongodb.variant.converters.DocumentToVariantAnnotationConverter;
+import org.opencb.opencga.storage.mongodb.variant.converters.DocumentToVariantConverter;
+import org.opencb.opencga.storage.mongodb.variant.converters.VariantStringIdConverter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+import static com.mongodb.client.model.Filters.*;
+import static com.mongodb.client.model.Updates.*;
+
+/**
+ * Precomputed histogram of variants per study, in bins of fixed size.
+ *
+ * Each document contains the number of variants of a study with the start in the bin, the number of variants of each type,
+ * of each consequence type (SO accession), and the number of variants with FILTER=PASS in any file.
+ * <pre>
+ * { _id : "[sid]_[chr]_[bin]", sid : 1, chr : "1", bin : 12, c : 120, t : { SNV : 100, INDEL : 20 }, ct : { "1583" : 10 }, pass : 90 }
+ * </pre>
+ *
+ * Bins are not updated on each write. Instead, writers mark the modified bins as dirty (see {@link #markDirty}), and those bins
+ * are recomputed later with {@link #update}. Each mark has a unique value, so a bin modified while being recomputed remains dirty.
+ */
+public class VariantMongoDBHistogram {
+
+    public static final String STUDY_FIELD = "sid";
+    public static final String CHROMOSOME_FIELD = "chr";
+    public static final String BIN_FIELD = "bin";
+    public static final String COUNT_FIELD = "c";
+    public static final String TYPES_FIELD = "t";
+    public static final String CONSEQUENCE_TYPES_FIELD = "ct";
+    public static final String PASS_FIELD = "pass";
+    public static final String DIRTY_FIELD = "dirty";
+
+    private static final String PASS = "PASS";
+    private static final String FILTER_FIELD = DocumentToVariantConverter.STUDIES_FIELD + '.'
+            + DocumentToStudyVariantEntryConverter.FILES_FIELD + '.'
+            + DocumentToStudyVariantEntryConverter.ATTRIBUTES_FIELD + '.'
+            + StudyEntry.FILTER;
+    private static final String SO_FIELD = DocumentToVariantConverter.ANNOTATION_FIELD + '.'
+            + DocumentToVariantAnnotationConverter.CONSEQUENCE_TYPE_FIELD + '.'
+            + DocumentToVariantAnnotationConverter.CT_SO_ACCESSION_FIELD;
+    private static final Bson VARIANT_PROJECTION = Projections.include(
+            DocumentToVariantConverter.CHROMOSOME_FIELD,
+            DocumentToVariantConverter.START_FIELD,
+            DocumentToVariantConverter.TYPE_FIELD,
+            DocumentToVariantConverter.STUDIES_FIELD + '.' + DocumentToStudyVariantEntryConverter.STUDYID_FIELD,
+            FILTER_FIELD,
+            SO_FIELD);
+
+    private final MongoDBCollection histogramCollection;
+    private final MongoDBCollection variantsCollection;
+    private final Logger logger = LoggerFactory.getLogger(VariantMongoDBHistogram.class);
+
+    public VariantMongoDBHistogram(MongoDBCollection histogramCollection, MongoDBCollection variantsCollection) {
+        this.histogramCollection = histogramCollection;
+        this.variantsCollection = variantsCollection;
+    }
+
+    public static int getBin(int start, int binSize) {
+        return start / binSize;
+    }
+
+    private static String buildId(int studyId, String chromosome, int bin) {
+        return studyId + "_" + chromosome + "_" + bin;
+    }
+
+    public void createIndexes() {
+        histogramCollection.createIndex(new Document(STUDY_FIELD, 1).append(CHROMOSOME_FIELD, 1).append(BIN_FIELD, 1), new ObjectMap());
+    }
+
+    /**
+     * Mark as dirty the bins of a study containing the given variants.
+     *
+     * @param studyId       Study
+     * @param variantIds    Storage ids of the modified variants
+     * @param binSize       Size of the bins of the study
+     */
+    public void markDirty(int studyId, Collection<String> variantIds, int binSize) {
+        Map<String, Set<Integer>> bins = getBins(variantIds, binSize);
+        if (bins.isEmpty()) {
+            return;
+        }
+        ObjectId mark = new ObjectId();
+        List<Bson> queries = new ArrayList<>();
+        List<Bson> updates = new ArrayList<>();
+        bins.forEach((chromosome, chromosomeBins) -> {
+            for (Integer bin : chromosomeBins) {
+                queries.add(eq("_id", buildId(studyId, chromosome, bin)));
+                updates.add(combine(
+                        set(DIRTY_FIELD, mark),
+                        setOnInsert(STUDY_FIELD, studyId),
+                        setOnInsert(CHROMOSOME_FIELD, chromosome),
+                        setOnInsert(BIN_FIELD, bin),
+                        setOnInsert(COUNT_FIELD, 0)));
+            }
+        });
+        histogramCollection.update(queries, updates, new QueryOptions(MongoDBCollection.UPSERT, true));
+    }
+
+    /**
+     * Mark as dirty the existing bins of any study containing the given variants.
+     * Used when modifying values shared by all the studies, like the annotation.
+     *
+     * @param variantIds    Storage ids of the modified variants
+     * @param binSizes      Size of the bins of each study with histogram
+     */
+    public void markDirty(Collection<String> variantIds, Map<Integer, Integer> binSizes) {
+        ObjectId mark = new ObjectId();
+        List<Bson> queries = new ArrayList<>();
+        List<Bson> updates = new ArrayList<>();
+        binSizes.forEach((studyId, binSize) -> {
+            getBins(variantIds, binSize).forEach((chromosome, chromosomeBins) -> {
+                queries.add(and(eq(STUDY_FIELD, studyId), eq(CHROMOSOME_FIELD, chromosome), in(BIN_FIELD, chromosomeBins)));
+                updates.add(set(DIRTY_FIELD, mark));
+            });
+        });
+        if (!queries.isEmpty()) {
+            histogramCollection.update(queries, updates, new QueryOptions(MongoDBCollection.MULTI, true));
+        }
+    }
+
+    /**
+     * Mark as dirty all the bins of a study.
+     *
+     * @param studyId   Study
+     */
+    public void markDirty(int studyId) {
+        histogramCollection.update(eq(STUDY_FIELD, studyId), set(DIRTY_FIELD, new ObjectId()),
+                new QueryOptions(MongoDBCollection.MULTI, true));
+    }
+
+    private static Map<String, Set<Integer>> getBins(Collection<String> variantIds, int binSize) {
+        Map<String, Set<Integer>> bins = new HashMap<>();
+        for (String variantId : variantIds) {
+            int idx = variantId.indexOf(VariantStringIdConverter.SEPARATOR_CHAR);
+            int idx2 = variantId.indexOf(VariantStringIdConverter.SEPARATOR_CHAR, idx + 1);
+            String chromosome = variantId.substring(0, idx).trim();
+            int start = Integer.parseInt(variantId.substring(idx + 1, idx2).trim());
+            bins.computeIfAbsent(chromosome, k -> new TreeSet<>()).add(getBin(start, binSize));
+        }
+        return bins;
+    }
+
+    /**
+     * Recompute all the dirty bins of a study.
+     *
+     * @param studyId   Study
+     * @param binSize   Size of the bins of the study
+     * @return          Number of updated bins
+     */
+    public int update(int studyId, int binSize) {
+        return update(studyId, binSize, null, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Recompute the dirty bins of a study within a range of bins.
+     *
+     * @param studyId       Study
+     * @param binSize       Size of the bins of the study
+     * @param chromosome    Chromosome. If null, update all the chromosomes
+     * @param fromBin       First bin, inclusive
+     * @param toBin         Last bin, inclusive
+     * @return              Number of updated bins
+     */
+    public int update(int studyId, int binSize, String chromosome, int fromBin, int toBin) {
+        Bson query = and(eq(STUDY_FIELD, studyId), exists(DIRTY_FIELD), gte(BIN_FIELD, fromBin), lte(BIN_FIELD, toBin));
+        if (chromosome != null) {
+            query = and(query, eq(CHROMOSOME_FIELD, chromosome));
+        }
+        Map<String, TreeMap<Integer, Object>> dirtyBins = new HashMap<>();
+        try (MongoCursor<Document> cursor = histogramCollection.nativeQuery()
+                .find(query, Projections.include(CHROMOSOME_FIELD, BIN_FIELD, DIRTY_FIELD), new QueryOptions()).iterator()) {
+            while (cursor.hasNext()) {
+                Document document = cursor.next();
+                dirtyBins.computeIfAbsent(document.getString(CHROMOSOME_FIELD), k -> new TreeMap<>())
+                        .put(document.getInteger(BIN_FIELD), document.get(DIRTY_FIELD));
+            }
+        }
+
+        int updatedBins = 0;
+        for (Map.Entry<String, TreeMap<Integer, Object>> entry : dirtyBins.entrySet()) {
+            String chr = entry.getKey();
+            TreeMap<Integer, Object> bins = entry.getValue();
+            // Read consecutive bins with one single query
+            Iterator<Integer> iterator = bins.keySet().iterator();
+            int first = iterator.next();
+            int last = first;
+            while (first >= 0) {
+                int next = iterator.hasNext() ? iterator.next() : -1;
+                if (next != last + 1) {
+                    Map<Integer, BinCounts> counts = count(studyId, chr, first * binSize, (last + 1) * binSize, binSize);
+                    List<Bson> queries = new ArrayList<>(last - first + 1);
+                    List<Bson> documents = new ArrayList<>(last - first + 1);
+                    for (int bin = first; bin <= last; bin++) {
+                        BinCounts binCounts = counts.getOrDefault(bin, new BinCounts());
+                        queries.add(and(eq("_id", buildId(studyId, chr, bin)), eq(DIRTY_FIELD, bins.get(bin))));
+                        documents.add(binCounts.toDocument(studyId, chr, bin));
+                    }
+                    updatedBins += histogramCollection.update(queries, documents, new QueryOptions(MongoDBCollection.REPLACE, true))
+                            .first().getModifiedCount();
+                    first = next;
+                }
+                last = next;
+            }
+        }
+        if (updatedBins > 0) {
+            logger.info("Updated {} bins from the variants histogram of study {}", updatedBins, studyId);
+        }
+        return updatedBins;
+    }
+
+    /**
+     * Build the histogram of a study from scratch.
+     *
+     * @param studyId   Study
+     * @param binSize   Size of the bins
+     * @return          Number of bins
+     */
+    public int build(int studyId, int binSize) {
+        Map<String, Map<Integer, BinCounts>> counts = new HashMap<>();
+        Bson query = eq(DocumentToVariantConverter.STUDIES_FIELD + '.' + DocumentToStudyVariantEntryConverter.STUDYID_FIELD, studyId);
+        try (MongoCursor<Document> cursor = variantsCollection.nativeQuery().find(query, VARIANT_PROJECTION, new QueryOptions())
+                .iterator()) {
+            while (cursor.hasNext()) {
+                Document variant = cursor.next();
+                int bin = getBin(variant.getInteger(DocumentToVariantConverter.START_FIELD), binSize);
+                counts.computeIfAbsent(variant.getString(DocumentToVariantConverter.CHROMOSOME_FIELD), k -> new HashMap<>())
+                        .computeIfAbsent(bin, k -> new BinCounts())
+                        .add(variant, studyId);
+            }
+        }
+
+        remove(studyId);
+        List<Document> documents = new ArrayList<>();
+        counts.forEach((chromosome, bins) -> bins.forEach((bin, binCounts) -> {
+            documents.add(binCounts.toDocument(studyId, chromosome, bin));
+        }));
+        if (!documents.isEmpty()) {
+            histogramCollection.insert(documents, new QueryOptions());
+        }
+        createIndexes();
+        logger.info("Built variants histogram of study {} with {} bins of {}bp", studyId, documents.size(), binSize);
+        return documents.size();
+    }
+
+    public void remove(int studyId) {
+        histogramCollection.remove(eq(STUDY_FIELD, studyId), new QueryOptions(MongoDBCollection.MULTI, true));
+    }
+
+    /**
+     * Read the histogram of a study within a range of bins. Dirty bins are recomputed before reading.
+     *
+     * @param studyId       Study
+     * @param binSize       Size of the bins of the study
+     * @param chromosome    Chromosome
+     * @param fromBin       First bin, inclusive
+     * @param toBin         Last bin, inclusive
+     * @param field         Field to read. e.g. "c", "t.SNV", "ct.1583" or "pass"
+     * @return              Value of the field for each non empty bin
+     */
+    public Map<Integer, Integer> getBins(int studyId, int binSize, String chromosome, int fromBin, int toBin, String field) {
+        update(studyId, binSize, chromosome, fromBin, toBin);
+
+        Bson query = and(eq(STUDY_FIELD, studyId), eq(CHROMOSOME_FIELD, chromosome), gte(BIN_FIELD, fromBin), lte(BIN_FIELD, toBin));
+        Map<Integer, Integer> bins = new HashMap<>();
+        try (MongoCursor<Document> cursor = histogramCollection.nativeQuery()
+                .find(query, Projections.include(BIN_FIELD, field), new QueryOptions()).iterator()) {
+            while (cursor.hasNext()) {
+                Document document = cursor.next();
+                Object value = document;
+                for (String key : field.split("\\.")) {
+                    value = value == null ? null : ((Document) value).get(key);
+                }
+                if (value != null && ((Number) value).intValue() > 0) {
+                    bins.put(document.getInteger(BIN_FIELD), ((Number) value).intValue());
+                }
+            }
+        }
+        return bins;
+    }
+
+    /**
+     * Count the number of variants of a study for each consequence type. Dirty bins are recomputed before reading.
+     *
+     * @param studyId   Study
+     * @param binSize   Size of the bins of the study
+     * @return          Number of variants for each SO accession
+     */
+    public Map<Integer, Integer> countConsequenceTypes(int studyId, int binSize) {
+        update(studyId, binSize);
+
+        List<Bson> pipeline = Arrays.asList(
+                new Document("$match", new Document(STUDY_FIELD, studyId)),
+                new Document("$project", new Document(CONSEQUENCE_TYPES_FIELD,
+                        new Document("$objectToArray", "$" + CONSEQUENCE_TYPES_FIELD))),
+                new Document("$unwind", "$" + CONSEQUENCE_TYPES_FIELD),
+                new Document("$group", new Document("_id", "$" + CONSEQUENCE_TYPES_FIELD + ".k")
+                        .append(COUNT_FIELD, new Document("$sum", "$" + CONSEQUENCE_TYPES_FIELD + ".v"))));
+        Map<Integer, Integer> counts = new HashMap<>();
+        try (MongoCursor<Document> cursor = histogramCollection.nativeQuery().aggregate(pipeline, new QueryOptions()).iterator()) {
+            while (cursor.hasNext()) {
+                Document document = cursor.next();
+                counts.put(Integer.valueOf(document.getString("_id")), ((Number) document.get(COUNT_FIELD)).intValue());
+            }
+        }
+        return counts;
+    }
+
+    private Map<Integer, BinCounts> count(int studyId, String chromosome, int start, int end, int binSize) {
+        Bson query = and(
+                eq(DocumentToVariantConverter.CHROMOSOME_FIELD, chromosome),
+                gte(DocumentToVariantConverter.START_FIELD, start),
+                lt(DocumentToVariantConverter.START_FIELD, end),
+                eq(DocumentToVariantConverter.STUDIES_FIELD + '.' + DocumentToStudyVariantEntryConverter.STUDYID_FIELD, studyId));
+        Map<Integer, BinCounts> counts = new HashMap<>();
+        try (MongoCursor<Document> cursor = variantsCollection.nativeQuery().find(query, VARIANT_PROJECTION, new QueryOptions())
+                .iterator()) {
+            while (cursor.hasNext()) {
+                Document variant = cursor.next();
+                int bin = getBin(variant.getInteger(DocumentToVariantConverter.START_FIELD), binSize);
+                counts.computeIfAbsent(bin, k -> new BinCounts()).add(variant, studyId);
+            }
+        }
+        return counts;
+    }
+
+    private static class BinCounts {
+        private int count = 0;
+        private int pass = 0;
+        private final Map<String, Integer> types = new HashMap<>();
+        private final Map<String, Integer> consequenceTypes = new HashMap<>();
+
+        @SuppressWarnings("unchecked")
+        void add(Document variant, int studyId) {
+            count++;
+            String type = variant.getString(DocumentToVariantConverter.TYPE_FIELD);
+            if (type != null) {
+                types.merge(type, 1, Integer::sum);
+            }
+
+            List<Document> studies = (List<Document>) variant.get(DocumentToVariantConverter.STUDIES_FIELD);
+            for (Document study : studies) {
+                if (Objects.equals(study.get(DocumentToStudyVariantEntryConverter.STUDYID_FIELD), studyId)) {
+                    List<Document> files = (List<Document>) study.get(DocumentToStudyVariantEntryConverter.FILES_FIELD);
+                    if (files != null && files.stream()
+                            .map(file -> (Document) file.get(DocumentToStudyVariantEntryConverter.ATTRIBUTES_FIELD))
+                            .anyMatch(attributes -> attributes != null && PASS.equals(attributes.get(StudyEntry.FILTER)))) {
+                        pass++;
+                    }
+                }
+            }
+
+            // Count each SO term only once per variant
+            Set<Object> soAccessions = new HashSet<>();
+            List<Document> annotations = (List<Document>) variant.get(DocumentToVariantConverter.ANNOTATION_FIELD);
+            if (annotations != null && !annotations.isEmpty() && annotations.get(0) != null) {
+                List<Document> cts = (List<Document>) annotations.get(0).get(DocumentToVariantAnnotationConverter.CONSEQUENCE_TYPE_FIELD);
+                if (cts != null) {
+                    for (Document ct : cts) {
+                        Object so = ct.get(DocumentToVariantAnnotationConverter.CT_SO_ACCESSION_FIELD);
+                        if (so instanceof List) {
+                            soAccessions.addAll((List<Object>) so);
+                        } else if (so != null) {
+                            soAccessions.add(so);
+                        }
+                    }
+                }
+            }
+            for (Object so : soAccessions) {
+                consequenceTypes.merge(so.toString(), 1, Integer::sum);
+            }
+        }
+
+        Document toDocument(int studyId, String chromosome, int bin) {
+            return new Document("_id", buildId(studyId, chromosome, bin))
+                    .append(STUDY_FIELD, studyId)
+                    .append(CHROMOSOME_FIELD, chromosome)
+                    .append(BIN_FIELD, bin)
+                    .append(COUNT_FIELD, count)
+                    .append(TYPES_FIELD, toDocument(types))
+                    .append(CONSEQUENCE_TYPES_FIELD, toDocument(consequenceTypes))
+                    .append(PASS_FIELD, pass);
+        }
+
+        private static Document toDocument(Map<String, Integer> map) {
+            Document document = new Document();
+            map.forEach(document::append);
+            return document;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package org.opencb.opencga.storage.mongodb.variant.adaptors;
+
+import com.mongodb.MongoException;
+import org.bson.Document;
+import org.opencb.commons.datastore.core.ObjectMap;
+import org.opencb.commons.datastore.mongodb.MongoDBCollection;
+import org.opencb.opencga.storage.mongodb.variant.adaptors.VariantMongoDBQueryProfiler.FilterType;
+import org.opencb.opencga.storage.mongodb.variant.adaptors.VariantMongoDBQueryProfiler.QueryShape;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+import static org.opencb.opencga.storage.mongodb.variant.converters.DocumentToVariantConverter.*;
+
+/**
+ * Proposes compound indexes for the hot query shapes recorded by the {@link VariantMongoDBQueryProfiler}.
+ *
+ * Index keys follow the Equality-Sort-Range rule. If all the filtered and projected fields are scalar, the projected
+ * fields are appended to the index, so the query can be answered from the index without fetching the documents.
+ * Queries over array fields (studies, annotation, stats, ...) can not be covered, and at most one of them is indexed,
+ * as MongoDB does not allow compound indexes over parallel arrays.
+ *
+ * Shapes are read from the shapes collection, so the advice includes the queries executed by any process.
+ */
+public class VariantMongoDBIndexAdvisor {
+
+    /** Max number of keys of a proposed index. */
+    public static final int MAX_INDEX_KEYS = 8;
+    /** Shapes already using an index that examine more documents than this ratio over the returned ones are also improved. */
+    public static final int MAX_EXAMINED_RATIO = 10;
+
+    private static final Set<String> SCALAR_FIELDS = new HashSet<>(Arrays.asList(
+            "_id", CHROMOSOME_FIELD, START_FIELD, END_FIELD, LENGTH_FIELD, REFERENCE_FIELD, ALTERNATE_FIELD, TYPE_FIELD));
+
+    private final VariantMongoDBQueryProfiler profiler;
+    private final MongoDBCollection variantsCollection;
+    private final Logger logger = LoggerFactory.getLogger(VariantMongoDBIndexAdvisor.class);
+
+    public VariantMongoDBIndexAdvisor(VariantMongoDBQueryProfiler profiler, MongoDBCollection variantsCollection) {
+        this.profiler = profiler;
+        this.variantsCollection = variantsCollection;
+    }
+
+    /**
+     * Propose indexes for the query shapes executed at least a given number of times, that are not already covered
+     * or efficiently resolved by an existing index.
+     *
+     * @param minQueries    Minimum number of queries of a shape
+     * @return              Keys of the proposed indexes, in order of total execution time of the shapes
+     */
+    public List<Document> proposeIndexes(int minQueries) {
+        return proposeIndexes(profiler.loadShapes(), minQueries);
+    }
+
+    List<Document> proposeIndexes(List<QueryShape> shapes, int minQueries) {
+        List<Document> indexes = new ArrayList<>();
+        for (QueryShape shape : shapes) {
+            if (shape.getCount() < minQueries || shape.hasOr() || shape.getFilters().isEmpty()) {
+                continue;
+            }
+            if (shape.isCovered()) {
+                continue;
+            }
+            boolean coverable = isCoverable(shape);
+            if (shape.isExplained() && !shape.isCollectionScan() && !coverable
+                    && shape.getDocsExamined() <= Math.max(1, shape.getReturned()) * MAX_EXAMINED_RATIO) {
+                // Already using a selective index, and can not be improved
+                continue;
+            }
+            Document index = buildIndex(shape, coverable);
+            if (index.isEmpty() || index.equals(shape.getIndexKeyPattern()) || isPrefixOfAny(index, indexes)) {
+                continue;
+            }
+            // Remove proposed indexes that are a prefix of this new index
+            indexes.removeIf(other -> isPrefix(other, index));
+            indexes.add(index);
+            logger.info("Proposed index {} for query shape {}", index.toJson(), shape.getKey());
+        }
+        return indexes;
+    }
+
+    /**
+     * Create the proposed indexes.
+     *
+     * @param minQueries    Minimum number of queries of a shape
+     * @return              Keys of the created indexes
+     */
+    public List<Document> createIndexes(int minQueries) {
+        List<Document> created = new ArrayList<>();
+        ObjectMap onBackground = new ObjectMap(MongoDBCollection.BACKGROUND, true);
+        for (Document index : proposeIndexes(minQueries)) {
+            try {
+                logger.info("Create index {}", index.toJson());
+                variantsCollection.createIndex(index, onBackground);
+                created.add(index);
+            } catch (MongoException e) {
+                logger.warn("Unable to create index " + index.toJson(), e);
+            }
+        }
+        return created;
+    }
+
+    static Document buildIndex(QueryShape shape, boolean coverable) {
+        LinkedHashSet<String> keys = new LinkedHashSet<>();
+        boolean arrayField = false;
+
+        List<String> equality = new ArrayList<>();
+        List<String> range = new ArrayList<>();
+        shape.getFilters().forEach((field, type) -> {
+            if (type == FilterType.EQUALITY) {
+                equality.add(field);
+            } else if (type == FilterType.RANGE) {
+                range.add(field);
+            }
+        });
+        List<String> fields = new ArrayList<>(equality);
+        fields.addAll(shape.getSort());
+        fields.addAll(range);
+        if (coverable) {
+            fields.addAll(getProjectedFields(shape));
+        }
+
+        for (String field : fields) {
+            if (keys.size() >= MAX_INDEX_KEYS) {
+                break;
+            }
+            if (!SCALAR_FIELDS.contains(field)) {
+                if (arrayField) {
+                    continue;
+                }
+                arrayField = true;
+            }
+            keys.add(field);
+        }
+        Document index = new Document();
+        for (String key : keys) {
+            index.append(key, 1);
+        }
+        return index;
+    }
+
+    /**
+     * Check if a query shape could be covered by an index. All the filtered and projected fields must be scalar,
+     * and the filters must be index-friendly.
+     *
+     * @param shape Query shape
+     * @return      If the shape is coverable
+     */
+    static boolean isCoverable(QueryShape shape) {
+        for (Map.Entry<String, FilterType> entry : shape.getFilters().entrySet()) {
+            if (entry.getValue() == FilterType.OTHER || !SCALAR_FIELDS.contains(entry.getKey())) {
+                return false;
+            }
+        }
+        for (String field : shape.getSort()) {
+            if (!SCALAR_FIELDS.contains(field)) {
+                return false;
+            }
+        }
+        if (shape.isCount()) {
+            return true;
+        }
+        List<String> projectedFields = getProjectedFields(shape);
+        if (projectedFields == null) {
+            return false;
+        }
+        Set<String> keys = new HashSet<>(projectedFields);
+        keys.addAll(shape.getFilters().keySet());
+        keys.addAll(shape.getSort());
+        return SCALAR_FIELDS.containsAll(projectedFields) && keys.size() <= MAX_INDEX_KEYS;
+    }
+
+    /**
+     * Get the fields returned by a query, if the projection is an inclusion projection.
+     *
+     * @param shape Query shape
+     * @return      Returned fields, or null if the projection excludes fields or uses projection operators
+     */
+    private static List<String> getProjectedFields(QueryShape shape) {
+        if (shape.isCount()) {
+            return Collections.emptyList();
+        }
+        List<String> fields = new ArrayList<>();
+        boolean excludeId = false;
+        for (String field : shape.getProjection()) {
+            if (field.equals("-_id")) {
+                excludeId = true;
+            } else if (field.startsWith("-") || field.contains(":")) {
+                return null;
+            } else {
+                fields.add(field);
+            }
+        }
+        if (fields.isEmpty()) {
+            // Empty projection returns all the fields
+            return null;
+        }
+        if (!excludeId && !fields.contains("_id")) {
+            fields.add("_id");
+        }
+        return fields;
+    }
+
+    private static boolean isPrefixOfAny(Document index, List<Document> indexes) {
+        for (Document other : indexes) {
+            if (isPrefix(index, other)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isPrefix(Document prefix, Document index) {
+        if (prefix.size() > index.size()) {
+            return false;
+        }
+        Iterator<String> iterator = index.keySet().iterator();
+        for (String key : prefix.keySet()) {
+            if (!key.equals(iterator.next())) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -30,6 +30,9 @@ import org.opencb.opencga.storage.mongodb.variant.converters.DocumentToVariantCo
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.NoSuchElementException;
+import java.util.function.Predicate;
+
 /**
  * Created by jacobo on 9/01/15.
  */
@@ -38,6 +41,10 @@ public class VariantMongoDBIterator extends VariantDBIterator {
     private MongoCursor<Document> dbCursor;
     private DocumentToVariantConverter documentToVariantConverter;
     private int count;
+    private Predicate<Document> filter;
+    private int skip;
+    private int limit;
+    private Document nextDocument;
     private Logger logger = LoggerFactory.getLogger(VariantMongoDBIterator.class);
 
     //Package protected
@@ -71,9 +78,38 @@ public class VariantMongoDBIterator extends VariantDBIterator {
         this.dbCursor = cursor;
     }
 
+    /**
+     * Filter the documents before converting them. Skip and limit are applied over the filtered documents.
+     *
+     * @param filter    Document filter
+     * @param skip      Number of filtered documents to skip
+     * @param limit     Maximum number of documents to return. Not limited if not positive
+     * @return this
+     */
+    //Package protected
+    VariantMongoDBIterator filter(Predicate<Document> filter, int skip, int limit) {
+        this.filter = filter;
+        this.skip = skip;
+        this.limit = limit;
+        return this;
+    }
+
     @Override
     public boolean hasNext() {
-        return fetch(() -> dbCursor.hasNext());
+        if (filter == null) {
+            return fetch(() -> dbCursor.hasNext());
+        }
+        while (nextDocument == null && (limit <= 0 || count < limit) && fetch(() -> dbCursor.hasNext())) {
+            Document document = fetch(() -> dbCursor.next());
+            if (filter.test(document)) {
+                if (skip > 0) {
+                    skip--;
+                } else {
+                    nextDocument = document;
+                }
+            }
+        }
+        return nextDocument != null;
     }
 
     @Override
@@ -83,7 +119,15 @@ public class VariantMongoDBIterator extends VariantDBIterator {
 
     @Override
     public Variant next() {
-        Document document = fetch(() -> dbCursor.next());
+        Document document;
+        if (filter == null) {
+            document = fetch(() -> dbCursor.next());
+        } else if (hasNext()) {
+            document = nextDocument;
+            nextDocument = null;
+        } else {
+            throw new NoSuchElementException();
+        }
         try {
             count++;
             return convert(() -> documentToVariantConverter.convertToDataModelType(document));
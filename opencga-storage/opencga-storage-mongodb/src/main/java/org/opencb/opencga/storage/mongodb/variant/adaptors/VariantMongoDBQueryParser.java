@@ -638,42 +638,7 @@ public class VariantMongoDBQueryParser {
             }
 
             Map<Object, List<String>> genotypesFilter = new HashMap<>();
-            QueryOperation gtQueryOperation = null;
-            if (isValidParam(query, GENOTYPE)) {
-                String sampleGenotypes = query.getString(GENOTYPE.key());
-                gtQueryOperation = parseGenotypeFilter(sampleGenotypes, genotypesFilter);
-            } else if (isValidParam(query, SAMPLE)) {
-                String samples = query.getString(SAMPLE.key());
-
-                List<String> genotypes;
-                if (defaultStudy != null) {
-                    genotypes = defaultStudy.getAttributes().getAsStringList(LOADED_GENOTYPES.key()).stream()
-                            .filter(gt -> DocumentToSamplesConverter.genotypeToDataModelType(gt).contains("1"))
-                            .collect(Collectors.toList());
-                } else {
-                    genotypes = Arrays.asList(
-                            "1",
-                            "0/1", "0|1", "1|0",
-                            "1/1", "1|1",
-                            "1/2", "1|2", "2|1"
-                    );
-                }
-                QueryOperation sampleQueryOperation = VariantQueryUtils.checkOperator(samples);
-                if (gtQueryOperation != null && sampleQueryOperation != null && !gtQueryOperation.equals(sampleQueryOperation)) {
-                    throw VariantQueryException.incompatibleSampleAndGenotypeOperators();
-                }
-                if (gtQueryOperation == null) {
-                    gtQueryOperation = sampleQueryOperation;
-                }
-
-                for (String sample : VariantQueryUtils.splitValue(samples, gtQueryOperation)) {
-                    if (isNegated(sample)) {
-                        throw VariantQueryException.malformedParam(SAMPLE, samples, "Unsupported negated samples");
-                    }
-                    int sampleId = metadataManager.getSampleId(defaultStudy.getId(), sample, true);
-                    genotypesFilter.put(sampleId, genotypes);
-                }
-            }
+            QueryOperation gtQueryOperation = parseGenotypesFilter(query, defaultStudy, genotypesFilter);
 
             // Only will contain values if the genotypesOperator is AND
             Set<List<Integer>> fileIdGroupsFromSamples = Collections.emptySet();
@@ -682,22 +647,13 @@ public class VariantMongoDBQueryParser {
                 fileIdGroupsFromSamples = new HashSet<>();
                 fileIdsFromSamples = new HashSet<>();
 
-                List<String> defaultGenotypes;
-                List<String> loadedGenotypes;
-                if (defaultStudy != null) {
-                    defaultGenotypes = defaultStudy.getAttributes().getAsStringList(DEFAULT_GENOTYPE.key());
-                    loadedGenotypes = defaultStudy.getAttributes().getAsStringList(LOADED_GENOTYPES.key());
-                    loadedGenotypes.replaceAll(DocumentToSamplesConverter::genotypeToDataModelType);
-                } else {
-                    defaultGenotypes = DEFAULT_GENOTYPE.defaultValue();
-                    loadedGenotypes = Arrays.asList(
-                            "0/0", "0|0",
-                            "0/1", "1/0", "1/1", "./.",
-                            "0|1", "1|0", "1|1", ".|.",
-                            "0|2", "2|0", "2|1", "1|2", "2|2",
-                            "0/2", "2/0", "2/1", "1/2", "2/2",
-                            GenotypeClass.UNKNOWN_GENOTYPE);
+                if (defaultStudy != null && MongoDBVariantStorageEngine.MongoDBVariantOptions.isCompactGenotypes(defaultStudy)) {
+                    // See VariantMongoDBAdaptor#get, #iterator and #count
+                    throw new VariantQueryException("Unable to filter by genotype in study '" + defaultStudy.getName() + "'. "
+                            + "Genotypes are stored in compact mode, and can only be filtered when fetching or counting variants");
                 }
+                List<String> defaultGenotypes = getDefaultGenotypes(defaultStudy);
+                List<String> loadedGenotypes = getLoadedGenotypes(defaultStudy);
 
                 List<DBObject> genotypeQueries = new ArrayList<>(genotypesFilter.size());
 
@@ -732,13 +688,7 @@ public class VariantMongoDBQueryParser {
                     }
                     QueryBuilder genotypesBuilder = QueryBuilder.start();
                     if (canFilterSampleByFile) {
-                        List<Integer> fileIdsFromSample = new ArrayList<>();
-                        for (Integer file : metadataManager.getIndexedFiles(defaultStudy.getId())) {
-                            FileMetadata fileMetadata = metadataManager.getFileMetadata(defaultStudy.getId(), file);
-                            if (fileMetadata.getSamples().contains(sampleId)) {
-                                fileIdsFromSample.add(file);
-                            }
-                        }
+                        List<Integer> fileIdsFromSample = getFilesFromSample(defaultStudy, sampleId);
 
                         if (defaultGenotypeNegated) {
                             QueryBuilder negatedFileBuilder = new QueryBuilder()
@@ -900,6 +850,115 @@ public class VariantMongoDBQueryParser {
         }
     }
 
+    /**
+     * Build the genotype filter to evaluate over the read documents, if the query filters by genotype or sample in a study
+     * with compact genotypes. The genotype and sample filters must be removed from the query given to {@link #parseQuery}.
+     *
+     * @param query Variants query
+     * @return Genotype filter, or null if not needed
+     */
+    protected VariantMongoDBCompactGenotypesFilter parseCompactGenotypesFilter(Query query) {
+        if (query == null || !isValidParam(query, GENOTYPE) && !isValidParam(query, SAMPLE)) {
+            return null;
+        }
+        StudyMetadata defaultStudy = getDefaultStudy(query, null, metadataManager);
+        if (defaultStudy == null || !MongoDBVariantStorageEngine.MongoDBVariantOptions.isCompactGenotypes(defaultStudy)) {
+            return null;
+        }
+        Map<Object, List<String>> genotypesFilter = new HashMap<>();
+        QueryOperation gtQueryOperation = parseGenotypesFilter(query, defaultStudy, genotypesFilter);
+        List<String> defaultGenotypes = getDefaultGenotypes(defaultStudy);
+        List<String> loadedGenotypes = getLoadedGenotypes(defaultStudy);
+
+        VariantMongoDBCompactGenotypesFilter filter = new VariantMongoDBCompactGenotypesFilter(defaultStudy.getId(), gtQueryOperation,
+                defaultGenotypes.isEmpty() ? GenotypeClass.UNKNOWN_GENOTYPE : defaultGenotypes.get(0));
+        for (Map.Entry<Object, List<String>> entry : genotypesFilter.entrySet()) {
+            List<String> genotypes = GenotypeClass.filter(entry.getValue(), loadedGenotypes, defaultGenotypes);
+            // If empty, should find none. Add non-existing genotype
+            if (!entry.getValue().isEmpty() && genotypes.isEmpty()) {
+                genotypes.add(GenotypeClass.NONE_GT_VALUE);
+            }
+            int sampleId = metadataManager.getSampleId(defaultStudy.getId(), entry.getKey(), true);
+            filter.addSample(sampleId, getFilesFromSample(defaultStudy, sampleId), genotypes);
+        }
+        return filter;
+    }
+
+    private QueryOperation parseGenotypesFilter(Query query, StudyMetadata defaultStudy, Map<Object, List<String>> genotypesFilter) {
+        QueryOperation gtQueryOperation = null;
+        if (isValidParam(query, GENOTYPE)) {
+            String sampleGenotypes = query.getString(GENOTYPE.key());
+            gtQueryOperation = parseGenotypeFilter(sampleGenotypes, genotypesFilter);
+        } else if (isValidParam(query, SAMPLE)) {
+            String samples = query.getString(SAMPLE.key());
+
+            List<String> genotypes;
+            if (defaultStudy != null) {
+                genotypes = defaultStudy.getAttributes().getAsStringList(LOADED_GENOTYPES.key()).stream()
+                        .filter(gt -> DocumentToSamplesConverter.genotypeToDataModelType(gt).contains("1"))
+                        .collect(Collectors.toList());
+            } else {
+                genotypes = Arrays.asList(
+                        "1",
+                        "0/1", "0|1", "1|0",
+                        "1/1", "1|1",
+                        "1/2", "1|2", "2|1"
+                );
+            }
+            QueryOperation sampleQueryOperation = VariantQueryUtils.checkOperator(samples);
+            if (gtQueryOperation != null && sampleQueryOperation != null && !gtQueryOperation.equals(sampleQueryOperation)) {
+                throw VariantQueryException.incompatibleSampleAndGenotypeOperators();
+            }
+            if (gtQueryOperation == null) {
+                gtQueryOperation = sampleQueryOperation;
+            }
+
+            for (String sample : VariantQueryUtils.splitValue(samples, gtQueryOperation)) {
+                if (isNegated(sample)) {
+                    throw VariantQueryException.malformedParam(SAMPLE, samples, "Unsupported negated samples");
+                }
+                int sampleId = metadataManager.getSampleId(defaultStudy.getId(), sample, true);
+                genotypesFilter.put(sampleId, genotypes);
+            }
+        }
+        return gtQueryOperation;
+    }
+
+    private List<String> getDefaultGenotypes(StudyMetadata defaultStudy) {
+        if (defaultStudy != null) {
+            return defaultStudy.getAttributes().getAsStringList(DEFAULT_GENOTYPE.key());
+        } else {
+            return DEFAULT_GENOTYPE.defaultValue();
+        }
+    }
+
+    private List<String> getLoadedGenotypes(StudyMetadata defaultStudy) {
+        if (defaultStudy != null) {
+            List<String> loadedGenotypes = defaultStudy.getAttributes().getAsStringList(LOADED_GENOTYPES.key());
+            loadedGenotypes.replaceAll(DocumentToSamplesConverter::genotypeToDataModelType);
+            return loadedGenotypes;
+        } else {
+            return Arrays.asList(
+                    "0/0", "0|0",
+                    "0/1", "1/0", "1/1", "./.",
+                    "0|1", "1|0", "1|1", ".|.",
+                    "0|2", "2|0", "2|1", "1|2", "2|2",
+                    "0/2", "2/0", "2/1", "1/2", "2/2",
+                    GenotypeClass.UNKNOWN_GENOTYPE);
+        }
+    }
+
+    private List<Integer> getFilesFromSample(StudyMetadata defaultStudy, int sampleId) {
+        List<Integer> fileIdsFromSample = new ArrayList<>();
+        for (Integer file : metadataManager.getIndexedFiles(defaultStudy.getId())) {
+            FileMetadata fileMetadata = metadataManager.getFileMetadata(defaultStudy.getId(), file);
+            if (fileMetadata.getSamples().contains(sampleId)) {
+                fileIdsFromSample.add(file);
+            }
+        }
+        return fileIdsFromSample;
+    }
+
     private void addFileGroupsFilter(QueryBuilder builder, String studyQueryPrefix, QueryOperation operation,
                                      Set<List<Integer>> fileIdGroups, List<Integer> negatedFiles) {
         if (operation == QueryOperation.OR) {
@@ -0,0 +1,560 @@
+package org.opencb.opencga.storage.mongodb.variant.adaptors;
+
+import com.mongodb.client.MongoCursor;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.opencb.commons.datastore.core.ObjectMap;
+import org.opencb.commons.datastore.core.QueryOptions;
+import org.opencb.commons.datastore.mongodb.MongoDBCollection;
+import org.opencb.commons.datastore.mongodb.MongoDataStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+import static com.mongodb.client.model.Filters.eq;
+import static org.opencb.opencga.storage.mongodb.variant.MongoDBVariantStorageEngine.MongoDBVariantOptions.*;
+
+/**
+ * Records the shape of the queries executed over the variants collection.
+ *
+ * The shape of a query is given by the filtered fields and how they are filtered, the projected fields and the sort,
+ * ignoring the actual values. For each shape, counts the number of queries and the execution time, and keeps the
+ * plan obtained explaining the first query of that shape. Queries are explained in background with the "explain" command.
+ *
+ * The recorded shapes are periodically added to the shapes collection, so the shapes from all the processes using
+ * this database are available for the {@link VariantMongoDBIndexAdvisor}.
+ */
+public class VariantMongoDBQueryProfiler {
+
+    public enum FilterType {
+        EQUALITY,
+        RANGE,
+        OTHER
+    }
+
+    public static final String COLLSCAN = "COLLSCAN";
+    public static final String IXSCAN = "IXSCAN";
+    public static final String FETCH = "FETCH";
+    public static final String COUNT_SCAN = "COUNT_SCAN";
+
+    private static final Set<String> EQUALITY_OPERATORS = new HashSet<>(Arrays.asList("$eq", "$in", "$all"));
+    private static final Set<String> RANGE_OPERATORS = new HashSet<>(Arrays.asList("$gt", "$gte", "$lt", "$lte"));
+
+    private final MongoDataStore db;
+    private final String variantsCollectionName;
+    private final MongoDBCollection shapesCollection;
+    private final boolean enabled;
+    private final boolean explainEnabled;
+    private final long slowNanos;
+    private final int maxShapes;
+    private final Map<String, QueryShape> shapes = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService executor;
+    private final Logger logger = LoggerFactory.getLogger(VariantMongoDBQueryProfiler.class);
+
+    public VariantMongoDBQueryProfiler(MongoDataStore db, String variantsCollectionName, ObjectMap options) {
+        this.db = db;
+        this.variantsCollectionName = variantsCollectionName;
+        shapesCollection = db.getCollection(options.getString(COLLECTION_QUERY_SHAPES.key(), COLLECTION_QUERY_SHAPES.defaultValue()));
+        enabled = options.getBoolean(QUERY_PROFILER.key(), QUERY_PROFILER.defaultValue());
+        explainEnabled = options.getBoolean(QUERY_PROFILER_EXPLAIN.key(), QUERY_PROFILER_EXPLAIN.defaultValue());
+        slowNanos = TimeUnit.MILLISECONDS.toNanos(options.getLong(QUERY_PROFILER_SLOW_MS.key(), QUERY_PROFILER_SLOW_MS.defaultValue()));
+        maxShapes = options.getInt(QUERY_PROFILER_MAX_SHAPES.key(), QUERY_PROFILER_MAX_SHAPES.defaultValue());
+        long flushMs = options.getLong(QUERY_PROFILER_FLUSH_MS.key(), QUERY_PROFILER_FLUSH_MS.defaultValue());
+        if (enabled) {
+            // Single daemon thread for the explains and the flushes. Never delays the queries, nor the JVM shutdown.
+            executor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "query-profiler");
+                thread.setDaemon(true);
+                return thread;
+            });
+            if (flushMs > 0) {
+                executor.scheduleWithFixedDelay(this::flushQuietly, flushMs, flushMs, TimeUnit.MILLISECONDS);
+            }
+        } else {
+            executor = null;
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Record an executed query.
+     *
+     * @param filter        Query filter
+     * @param projection    Projection. Null for count queries
+     * @param options       Query options, to read the sort
+     * @param timeNanos     Execution time
+     */
+    public void record(Document filter, Document projection, QueryOptions options, long timeNanos) {
+        if (!enabled) {
+            return;
+        }
+        QueryShape newShape = new QueryShape(filter, projection, options);
+        QueryShape shape = shapes.get(newShape.getKey());
+        if (shape == null) {
+            if (shapes.size() >= maxShapes) {
+                logger.debug("Skip query shape {}. Max number of shapes {} reached", newShape.getKey(), maxShapes);
+                return;
+            }
+            shape = shapes.putIfAbsent(newShape.getKey(), newShape);
+            if (shape == null) {
+                shape = newShape;
+                if (explainEnabled) {
+                    try {
+                        executor.execute(() -> explain(newShape, filter, projection, options));
+                    } catch (RejectedExecutionException e) {
+                        logger.debug("Skip explain of query shape {}. Profiler closed", shape.getKey());
+                    }
+                }
+            }
+        }
+        boolean slow = timeNanos > slowNanos;
+        shape.register(timeNanos, slow);
+        if (slow) {
+            logger.warn("Slow query ({}ms) with shape {} : {}", TimeUnit.NANOSECONDS.toMillis(timeNanos), shape.getKey(), filter.toJson());
+        }
+    }
+
+    /**
+     * Get the metrics of each query shape saved in the shapes collection by any process, sorted by total execution time.
+     *
+     * @return List of metrics
+     */
+    public List<ObjectMap> getMetrics() {
+        List<ObjectMap> metrics = new ArrayList<>();
+        for (QueryShape shape : loadShapes()) {
+            metrics.add(shape.toObjectMap());
+        }
+        return metrics;
+    }
+
+    /**
+     * Get the metrics of the saved query shapes with any query slower than the configured threshold.
+     *
+     * @return List of metrics
+     */
+    public List<ObjectMap> getSlowMetrics() {
+        List<ObjectMap> metrics = new ArrayList<>();
+        for (QueryShape shape : loadShapes()) {
+            if (shape.slow.sum() > 0) {
+                metrics.add(shape.toObjectMap());
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Get the query shapes recorded by this process, sorted by total execution time.
+     *
+     * @return Query shapes
+     */
+    public List<QueryShape> getShapes() {
+        return sort(new ArrayList<>(shapes.values()));
+    }
+
+    /**
+     * Get the query shapes saved in the shapes collection by any process, sorted by total execution time.
+     * The shapes recorded by this process are saved first.
+     *
+     * @return Query shapes
+     */
+    public List<QueryShape> loadShapes() {
+        flush();
+        List<QueryShape> list = new ArrayList<>();
+        try (MongoCursor<Document> cursor = shapesCollection.nativeQuery().find(new Document(), new QueryOptions()).iterator()) {
+            while (cursor.hasNext()) {
+                list.add(QueryShape.fromDocument(cursor.next()));
+            }
+        }
+        return sort(list);
+    }
+
+    /**
+     * Add the queries recorded since the last flush to the shapes collection.
+     */
+    public synchronized void flush() {
+        List<Bson> queries = new ArrayList<>();
+        List<Bson> updates = new ArrayList<>();
+        for (QueryShape shape : shapes.values()) {
+            Document update = shape.toUpdate();
+            if (update != null) {
+                queries.add(eq("_id", shape.getKey()));
+                updates.add(update);
+            }
+        }
+        if (!queries.isEmpty()) {
+            shapesCollection.update(queries, updates, new QueryOptions(MongoDBCollection.UPSERT, true));
+        }
+    }
+
+    /**
+     * Remove the recorded shapes, from this process and from the shapes collection.
+     */
+    public synchronized void clear() {
+        shapes.clear();
+        shapesCollection.remove(new Document(), new QueryOptions(MongoDBCollection.MULTI, true));
+    }
+
+    /**
+     * Stop the background tasks and save the pending queries.
+     */
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+            flushQuietly();
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            logger.warn("Unable to save the query shapes", e);
+        }
+    }
+
+    private static List<QueryShape> sort(List<QueryShape> list) {
+        list.sort(Comparator.comparingLong((QueryShape s) -> s.timeNanos.sum()).reversed());
+        return list;
+    }
+
+    private void explain(QueryShape shape, Document filter, Document projection, QueryOptions options) {
+        try {
+            Document command;
+            if (projection == null) {
+                command = new Document("count", variantsCollectionName).append("query", filter);
+            } else {
+                command = new Document("find", variantsCollectionName).append("filter", filter).append("projection", projection);
+                if (!shape.getSort().isEmpty()) {
+                    int order = "DESCENDING".equalsIgnoreCase(options.getString(QueryOptions.ORDER)) ? -1 : 1;
+                    Document sort = new Document();
+                    for (String field : shape.getSort()) {
+                        sort.append(field, order);
+                    }
+                    command.append("sort", sort);
+                }
+            }
+            Document explain = db.getDb().runCommand(new Document("explain", command).append("verbosity", "executionStats"));
+            shape.setPlan(explain);
+        } catch (RuntimeException e) {
+            logger.warn("Unable to explain query with shape " + shape.getKey(), e);
+        }
+    }
+
+    /**
+     * Shape of a query, and the metrics of the queries with this shape.
+     */
+    public static final class QueryShape {
+        private final String key;
+        private final Map<String, FilterType> filters;
+        private final boolean or;
+        private final boolean countQuery;
+        private final List<String> projection;
+        private final List<String> sort;
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder slow = new LongAdder();
+        private final LongAdder timeNanos = new LongAdder();
+        private final LongAccumulator maxTimeNanos = new LongAccumulator(Long::max, 0);
+
+        private volatile Set<String> planStages = Collections.emptySet();
+        private volatile Document indexKeyPattern;
+        private volatile long docsExamined = -1;
+        private volatile long keysExamined = -1;
+        private volatile long returned = -1;
+
+        // Already saved in the shapes collection. Guarded by the profiler flush.
+        private long flushedCount;
+        private long flushedSlow;
+        private long flushedTimeNanos;
+        private boolean flushedPlan;
+
+        private QueryShape(String key, Map<String, FilterType> filters, boolean or, boolean countQuery, List<String> projection,
+                           List<String> sort) {
+            this.key = key;
+            this.filters = Collections.unmodifiableMap(filters);
+            this.or = or;
+            this.countQuery = countQuery;
+            this.projection = Collections.unmodifiableList(projection);
+            this.sort = Collections.unmodifiableList(sort);
+        }
+
+        QueryShape(Document filter, Document projection, QueryOptions options) {
+            Map<String, FilterType> filters = new TreeMap<>();
+            this.or = parseFilter(filter, "", filters);
+            this.filters = Collections.unmodifiableMap(filters);
+            this.countQuery = projection == null;
+            if (projection == null) {
+                this.projection = Collections.emptyList();
+            } else {
+                List<String> projectedFields = new ArrayList<>();
+                for (Map.Entry<String, Object> entry : projection.entrySet()) {
+                    Object value = entry.getValue();
+                    if (value instanceof Document) {
+                        // $elemMatch, $slice, ...
+                        projectedFields.add(entry.getKey() + ":" + ((Document) value).keySet().iterator().next());
+                    } else if ((value instanceof Number && ((Number) value).intValue() == 0) || Boolean.FALSE.equals(value)) {
+                        projectedFields.add("-" + entry.getKey());
+                    } else {
+                        projectedFields.add(entry.getKey());
+                    }
+                }
+                Collections.sort(projectedFields);
+                this.projection = Collections.unmodifiableList(projectedFields);
+            }
+            if (options != null && options.get(QueryOptions.SORT) instanceof String) {
+                this.sort = Collections.unmodifiableList(options.getAsStringList(QueryOptions.SORT));
+            } else {
+                this.sort = Collections.emptyList();
+            }
+
+            StringBuilder sb = new StringBuilder("{");
+            filters.forEach((field, type) -> sb.append(field).append(':').append(type).append(','));
+            if (or) {
+                sb.append("$or,");
+            }
+            sb.append("} project:").append(projection == null ? "count" : this.projection).append(" sort:").append(sort);
+            key = sb.toString();
+        }
+
+        /**
+         * Walk the filter, registering the filtered fields.
+         *
+         * @param filter    Filter to walk
+         * @param prefix    Prefix of the fields, for nested $elemMatch
+         * @param filters   Filtered fields
+         * @return          If the filter contains any $or or $nor
+         */
+        private static boolean parseFilter(Document filter, String prefix, Map<String, FilterType> filters) {
+            boolean or = false;
+            for (Map.Entry<String, Object> entry : filter.entrySet()) {
+                String key = entry.getKey();
+                Object value = entry.getValue();
+                if (key.equals("$and")) {
+                    for (Object subFilter : (List<?>) value) {
+                        or |= parseFilter((Document) subFilter, prefix, filters);
+                    }
+                } else if (key.equals("$or") || key.equals("$nor")) {
+                    or = true;
+                } else if (key.startsWith("$")) {
+                    // $where, $text, $expr, ...
+                    filters.merge(prefix + key, FilterType.OTHER, QueryShape::merge);
+                } else if (value instanceof Document && !((Document) value).isEmpty()
+                        && ((Document) value).keySet().iterator().next().startsWith("$")) {
+                    String path = prefix + key;
+                    for (Map.Entry<String, Object> operator : ((Document) value).entrySet()) {
+                        if (operator.getKey().equals("$elemMatch") && operator.getValue() instanceof Document) {
+                            or |= parseFilter((Document) operator.getValue(), path + '.', filters);
+                        } else if (EQUALITY_OPERATORS.contains(operator.getKey())) {
+                            filters.merge(path, FilterType.EQUALITY, QueryShape::merge);
+                        } else if (RANGE_OPERATORS.contains(operator.getKey())) {
+                            filters.merge(path, FilterType.RANGE, QueryShape::merge);
+                        } else {
+                            filters.merge(path, FilterType.OTHER, QueryShape::merge);
+                        }
+                    }
+                } else if (value instanceof Pattern) {
+                    filters.merge(prefix + key, FilterType.OTHER, QueryShape::merge);
+                } else {
+                    filters.merge(prefix + key, FilterType.EQUALITY, QueryShape::merge);
+                }
+            }
+            return or;
+        }
+
+        private static FilterType merge(FilterType a, FilterType b) {
+            // The most index-friendly filter wins
+            return a.ordinal() < b.ordinal() ? a : b;
+        }
+
+        void register(long timeNanos, boolean slowQuery) {
+            count.increment();
+            if (slowQuery) {
+                slow.increment();
+            }
+            this.timeNanos.add(timeNanos);
+            maxTimeNanos.accumulate(timeNanos);
+        }
+
+        void setPlan(Document explain) {
+            Set<String> stages = new HashSet<>();
+            Document queryPlanner = (Document) explain.get("queryPlanner");
+            if (queryPlanner != null) {
+                readPlan((Document) queryPlanner.get("winningPlan"), stages);
+            }
+            Document executionStats = (Document) explain.get("executionStats");
+            if (executionStats != null) {
+                docsExamined = getLong(executionStats, "totalDocsExamined");
+                keysExamined = getLong(executionStats, "totalKeysExamined");
+                returned = getLong(executionStats, "nReturned");
+            }
+            planStages = Collections.unmodifiableSet(stages);
+        }
+
+        private void readPlan(Document plan, Set<String> stages) {
+            if (plan == null) {
+                return;
+            }
+            String stage = plan.getString("stage");
+            if (stage != null) {
+                stages.add(stage);
+                if ((stage.equals(IXSCAN) || stage.equals(COUNT_SCAN)) && indexKeyPattern == null) {
+                    indexKeyPattern = (Document) plan.get("keyPattern");
+                }
+            }
+            readPlan((Document) plan.get("inputStage"), stages);
+            Object inputStages = plan.get("inputStages");
+            if (inputStages instanceof List) {
+                for (Object inputStage : (List<?>) inputStages) {
+                    readPlan((Document) inputStage, stages);
+                }
+            }
+        }
+
+        private static long getLong(Document document, String key) {
+            Object value = document.get(key);
+            return value instanceof Number ? ((Number) value).longValue() : -1;
+        }
+
+        /**
+         * Build the update for the shapes collection with the queries registered since the last call.
+         *
+         * @return Update, or null if there is nothing new to save
+         */
+        Document toUpdate() {
+            long count = this.count.sum();
+            long slow = this.slow.sum();
+            long timeNanos = this.timeNanos.sum();
+            boolean explained = isExplained();
+            if (count == flushedCount && explained == flushedPlan) {
+                return null;
+            }
+            List<Document> filterList = new ArrayList<>(filters.size());
+            // Filtered fields may contain dots, so can not be used as keys
+            filters.forEach((field, type) -> filterList.add(new Document("field", field).append("type", type.name())));
+            Document update = new Document("$setOnInsert", new Document("filters", filterList)
+                    .append("or", or)
+                    .append("countQuery", countQuery)
+                    .append("projection", projection)
+                    .append("sort", sort))
+                    .append("$inc", new Document("count", count - flushedCount)
+                            .append("slow", slow - flushedSlow)
+                            .append("timeNanos", timeNanos - flushedTimeNanos))
+                    .append("$max", new Document("maxTimeNanos", maxTimeNanos.get()));
+            if (explained) {
+                update.append("$set", new Document("plan", new ArrayList<>(planStages))
+                        .append("index", indexKeyPattern)
+                        .append("docsExamined", docsExamined)
+                        .append("keysExamined", keysExamined)
+                        .append("returned", returned));
+            }
+            flushedCount = count;
+            flushedSlow = slow;
+            flushedTimeNanos = timeNanos;
+            flushedPlan = explained;
+            return update;
+        }
+
+        @SuppressWarnings("unchecked")
+        static QueryShape fromDocument(Document document) {
+            Map<String, FilterType> filters = new TreeMap<>();
+            for (Document filter : (List<Document>) document.get("filters", Collections.emptyList())) {
+                filters.put(filter.getString("field"), FilterType.valueOf(filter.getString("type")));
+            }
+            QueryShape shape = new QueryShape(document.getString("_id"), filters,
+                    document.getBoolean("or", false),
+                    document.getBoolean("countQuery", false),
+                    (List<String>) document.get("projection", Collections.emptyList()),
+                    (List<String>) document.get("sort", Collections.emptyList()));
+            shape.count.add(getLong(document, "count"));
+            shape.slow.add(getLong(document, "slow"));
+            shape.timeNanos.add(getLong(document, "timeNanos"));
+            shape.maxTimeNanos.accumulate(getLong(document, "maxTimeNanos"));
+            List<String> plan = (List<String>) document.get("plan");
+            if (plan != null) {
+                shape.planStages = Collections.unmodifiableSet(new HashSet<>(plan));
+                shape.indexKeyPattern = (Document) document.get("index");
+                shape.docsExamined = getLong(document, "docsExamined");
+                shape.keysExamined = getLong(document, "keysExamined");
+                shape.returned = getLong(document, "returned");
+            }
+            return shape;
+        }
+
+        ObjectMap toObjectMap() {
+            long count = this.count.sum();
+            return new ObjectMap("shape", key)
+                    .append("count", count)
+                    .append("slow", slow.sum())
+                    .append("totalTimeMs", timeNanos.sum() / 1000000.0)
+                    .append("avgTimeMs", count == 0 ? 0 : timeNanos.sum() / 1000000.0 / count)
+                    .append("maxTimeMs", maxTimeNanos.get() / 1000000.0)
+                    .append("plan", new ArrayList<>(planStages))
+                    .append("index", indexKeyPattern == null ? null : indexKeyPattern.toJson())
+                    .append("covered", isCovered())
+                    .append("docsExamined", docsExamined)
+                    .append("keysExamined", keysExamined)
+                    .append("returned", returned);
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public Map<String, FilterType> getFilters() {
+            return filters;
+        }
+
+        public boolean hasOr() {
+            return or;
+        }
+
+        public List<String> getProjection() {
+            return projection;
+        }
+
+        public boolean isCount() {
+            return countQuery;
+        }
+
+        public List<String> getSort() {
+            return sort;
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public boolean isExplained() {
+            return !planStages.isEmpty();
+        }
+
+        public boolean isCollectionScan() {
+            return planStages.contains(COLLSCAN);
+        }
+
+        public boolean isCovered() {
+            return planStages.contains(COUNT_SCAN)
+                    || (planStages.contains(IXSCAN) && !planStages.contains(FETCH) && !planStages.contains(COLLSCAN));
+        }
+
+        public Document getIndexKeyPattern() {
+            return indexKeyPattern;
+        }
+
+        public long getDocsExamined() {
+            return docsExamined;
+        }
+
+        public long getReturned() {
+            return returned;
+        }
+    }
+}
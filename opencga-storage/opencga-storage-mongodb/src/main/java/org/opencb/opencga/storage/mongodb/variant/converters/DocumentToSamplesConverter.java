@@ -260,11 +260,9 @@ public class DocumentToSamplesConverter extends AbstractDocumentConverter {
                 } else {
                     genotype = genotypeToDataModelType(dbo.getKey());
                 }
-                for (Integer sampleId : (List<Integer>) dbo.getValue()) {
-                    if (idSamples.containsKey(sampleId)) {
-                        samplesData.get(samplesPositionToReturn.get(idSamples.get(sampleId))).set(0, genotype);
-                    }
-                }
+                // Sample ids may be stored as a list or as a compact binary. Only decode the returned samples.
+                SampleIdsBinaryConverter.forEach(dbo.getValue(), idSamples.keySet(), sampleId ->
+                        samplesData.get(samplesPositionToReturn.get(idSamples.get(sampleId))).set(0, genotype));
             }
         }
 
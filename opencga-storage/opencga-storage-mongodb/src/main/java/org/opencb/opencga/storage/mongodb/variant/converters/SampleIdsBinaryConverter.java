@@ -0,0 +1,218 @@
+package org.opencb.opencga.storage.mongodb.variant.converters;
+
+import org.bson.types.Binary;
+import org.opencb.commons.datastore.core.ComplexTypeConverter;
+
+import java.io.ByteArrayOutputStream;
+import java.util.*;
+import java.util.function.IntConsumer;
+
+/**
+ * Compact encoding of the list of sample ids of a genotype, stored as BSON Binary.
+ *
+ * The first byte indicates the encoding. Sorted lists of sample ids are encoded either as varint packed deltas or as a bitmap,
+ * whichever is smaller:
+ * <ul>
+ *   <li>DELTA: [0x01][varint count][varint first][varint delta]...</li>
+ *   <li>BITMAP: [0x02][varint offset][bitmap bytes]. Bit "i" indicates the presence of the sample "offset + i"</li>
+ * </ul>
+ *
+ * Values can be decoded lazily with {@link #forEach(Object, Set, IntConsumer)}, visiting only the requested samples.
+ */
+public class SampleIdsBinaryConverter implements ComplexTypeConverter<List<Integer>, Binary> {
+
+    public static final byte DELTA = 0x01;
+    public static final byte BITMAP = 0x02;
+
+    @Override
+    public List<Integer> convertToDataModelType(Binary binary) {
+        byte[] data = binary.getData();
+        List<Integer> sampleIds = new ArrayList<>();
+        forEach(data, sampleIds::add);
+        return sampleIds;
+    }
+
+    @Override
+    public Binary convertToStorageType(List<Integer> sampleIds) {
+        return new Binary(encode(sampleIds));
+    }
+
+    /**
+     * Decode the sample ids of a genotype, either from a list or from a compact binary.
+     *
+     * @param value Value from the genotypes document
+     * @return      Sample ids
+     */
+    @SuppressWarnings("unchecked")
+    public static Collection<Integer> getSampleIds(Object value) {
+        if (value instanceof Binary) {
+            List<Integer> sampleIds = new ArrayList<>();
+            forEach(((Binary) value).getData(), sampleIds::add);
+            return sampleIds;
+        } else {
+            return (Collection<Integer>) value;
+        }
+    }
+
+    /**
+     * Visit the sample ids of a genotype that are in the given set.
+     * Compact binaries are decoded lazily. Bitmaps are probed directly when only a few samples are requested.
+     *
+     * @param value     Value from the genotypes document. List of sample ids or compact binary.
+     * @param samples   Requested samples
+     * @param consumer  Consumer for the sample ids found
+     */
+    @SuppressWarnings("unchecked")
+    public static void forEach(Object value, Set<Integer> samples, IntConsumer consumer) {
+        if (value instanceof Binary) {
+            byte[] data = ((Binary) value).getData();
+            if (data.length > 0 && data[0] == BITMAP && samples.size() * 8 < data.length) {
+                for (Integer sampleId : samples) {
+                    if (contains(data, sampleId)) {
+                        consumer.accept(sampleId);
+                    }
+                }
+            } else {
+                forEach(data, sampleId -> {
+                    if (samples.contains(sampleId)) {
+                        consumer.accept(sampleId);
+                    }
+                });
+            }
+        } else {
+            for (Integer sampleId : (Collection<Integer>) value) {
+                if (samples.contains(sampleId)) {
+                    consumer.accept(sampleId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Encode a list of sample ids. Duplicated values are removed.
+     *
+     * @param sampleIds Sample ids. Must be positive
+     * @return Encoded sample ids
+     */
+    public static byte[] encode(Collection<Integer> sampleIds) {
+        int[] sorted = sampleIds.stream().mapToInt(Integer::intValue).sorted().distinct().toArray();
+
+        ByteArrayOutputStream delta = new ByteArrayOutputStream(sorted.length * 2 + 4);
+        delta.write(DELTA);
+        writeVarint(delta, sorted.length);
+        int previous = 0;
+        for (int sampleId : sorted) {
+            if (sampleId < 0) {
+                throw new IllegalArgumentException("Unable to encode negative sample id " + sampleId);
+            }
+            writeVarint(delta, sampleId - previous);
+            previous = sampleId;
+        }
+
+        if (sorted.length > 0) {
+            int offset = sorted[0];
+            int bitmapLength = ((sorted[sorted.length - 1] - offset) >> 3) + 1;
+            if (bitmapLength + 6 < delta.size()) {
+                ByteArrayOutputStream bitmap = new ByteArrayOutputStream(bitmapLength + 6);
+                bitmap.write(BITMAP);
+                writeVarint(bitmap, offset);
+                byte[] bits = new byte[bitmapLength];
+                for (int sampleId : sorted) {
+                    int i = sampleId - offset;
+                    bits[i >> 3] |= 1 << (i & 7);
+                }
+                bitmap.write(bits, 0, bits.length);
+                return bitmap.toByteArray();
+            }
+        }
+        return delta.toByteArray();
+    }
+
+    /**
+     * Visit all the sample ids, in ascending order.
+     *
+     * @param data      Encoded sample ids
+     * @param consumer  Consumer
+     */
+    public static void forEach(byte[] data, IntConsumer consumer) {
+        if (data.length == 0) {
+            return;
+        }
+        int[] pos = new int[]{1};
+        switch (data[0]) {
+            case DELTA:
+                int count = readVarint(data, pos);
+                int sampleId = 0;
+                for (int i = 0; i < count; i++) {
+                    sampleId += readVarint(data, pos);
+                    consumer.accept(sampleId);
+                }
+                break;
+            case BITMAP:
+                int offset = readVarint(data, pos);
+                for (int i = pos[0]; i < data.length; i++) {
+                    int b = data[i] & 0xFF;
+                    while (b != 0) {
+                        int bit = Integer.numberOfTrailingZeros(b);
+                        consumer.accept(offset + ((i - pos[0]) << 3) + bit);
+                        b &= b - 1;
+                    }
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown sample ids encoding " + data[0]);
+        }
+    }
+
+    /**
+     * Check if the encoded sample ids contain a sample.
+     *
+     * @param data      Encoded sample ids
+     * @param sampleId  Sample id
+     * @return          If the sample is present
+     */
+    public static boolean contains(byte[] data, int sampleId) {
+        if (data.length == 0) {
+            return false;
+        }
+        int[] pos = new int[]{1};
+        switch (data[0]) {
+            case DELTA:
+                int count = readVarint(data, pos);
+                int value = 0;
+                for (int i = 0; i < count; i++) {
+                    value += readVarint(data, pos);
+                    if (value >= sampleId) {
+                        return value == sampleId;
+                    }
+                }
+                return false;
+            case BITMAP:
+                int i = sampleId - readVarint(data, pos);
+                int idx = pos[0] + (i >> 3);
+                return i >= 0 && idx < data.length && (data[idx] & (1 << (i & 7))) != 0;
+            default:
+                throw new IllegalArgumentException("Unknown sample ids encoding " + data[0]);
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream os, int value) {
+        while ((value & ~0x7F) != 0) {
+            os.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        os.write(value);
+    }
+
+    private static int readVarint(byte[] data, int[] pos) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data[pos[0]++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
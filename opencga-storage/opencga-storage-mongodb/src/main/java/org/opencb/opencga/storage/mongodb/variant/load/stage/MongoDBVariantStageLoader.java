@@ -17,6 +17,7 @@
 package org.opencb.opencga.storage.mongodb.variant.load.stage;
 
 import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
 import com.mongodb.ErrorCategory;
 import com.mongodb.MongoBulkWriteException;
 import com.mongodb.bulk.BulkWriteError;
@@ -37,6 +38,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static com.mongodb.client.model.Filters.*;
 import static com.mongodb.client.model.Updates.*;
@@ -62,6 +66,16 @@ public class MongoDBVariantStageLoader implements DataWriter<ListMultimap<Docume
 
     private final MongoDBVariantWriteResult writeResult = new MongoDBVariantWriteResult();
 
+    // Max number of documents per bulk write. 0 for unlimited
+    private int bulkSize = 0;
+    // Documents are split by id into partitions. Each partition can only be written by one thread at a time,
+    // so concurrent writers never upsert the same non existing document.
+    private ReentrantLock[] partitionLocks = new ReentrantLock[]{new ReentrantLock()};
+    private final LongAdder bulkWrites = new LongAdder();
+    private final LongAdder bulkWriteNanos = new LongAdder();
+    private final AtomicLong maxBulkWriteNanos = new AtomicLong();
+    private final LongAdder retries = new LongAdder();
+
     public static final ComplexTypeConverter<Variant, Binary> VARIANT_CONVERTER_DEFAULT = new VariantToAvroBinaryConverter();
 
     public static final StageDocumentToVariantConverter STAGE_TO_VARIANT_CONVERTER = new StageDocumentToVariantConverter();
@@ -103,13 +117,40 @@ public class MongoDBVariantStageLoader implements DataWriter<ListMultimap<Docume
         return true;
     }
 
-    public MongoDBVariantWriteResult insert(ListMultimap<Document, Binary> ids) {
+    public MongoDBVariantWriteResult insert(ListMultimap<Document, Binary> values) {
         final long start = System.nanoTime();
 
         MongoDBVariantWriteResult result = new MongoDBVariantWriteResult();
-        Set<String> retryKeys = updateMongo(ids, result, null);
-        if (!retryKeys.isEmpty()) {
-            updateMongo(ids, result, retryKeys);
+        List<List<Document>> partitions = partition(values);
+        LinkedList<Integer> pending = new LinkedList<>();
+        for (int i = 0; i < partitions.size(); i++) {
+            if (!partitions.get(i).isEmpty()) {
+                pending.add(i);
+            }
+        }
+        while (!pending.isEmpty()) {
+            // Write first any free partition. If all are in use, wait for the first one.
+            Integer partition = null;
+            for (Iterator<Integer> iterator = pending.iterator(); iterator.hasNext();) {
+                Integer p = iterator.next();
+                if (partitionLocks[p].tryLock()) {
+                    partition = p;
+                    iterator.remove();
+                    break;
+                }
+            }
+            if (partition == null) {
+                partition = pending.removeFirst();
+                partitionLocks[partition].lock();
+            }
+            try {
+                List<Document> ids = partitions.get(partition);
+                for (List<Document> bulk : bulkSize > 0 ? Lists.partition(ids, bulkSize) : Collections.singletonList(ids)) {
+                    writeBulk(values, bulk, result);
+                }
+            } finally {
+                partitionLocks[partition].unlock();
+            }
         }
 
         result.setNewVariantsNanoTime(System.nanoTime() - start);
@@ -121,6 +162,39 @@ public class MongoDBVariantStageLoader implements DataWriter<ListMultimap<Docume
         return result;
     }
 
+    private List<List<Document>> partition(ListMultimap<Document, Binary> values) {
+        if (partitionLocks.length == 1) {
+            return Collections.singletonList(new ArrayList<>(values.keySet()));
+        }
+        List<List<Document>> partitions = new ArrayList<>(partitionLocks.length);
+        for (int i = 0; i < partitionLocks.length; i++) {
+            partitions.add(new ArrayList<>(values.keySet().size() / partitionLocks.length + 1));
+        }
+        for (Document id : values.keySet()) {
+            String mongoId = id.getString(StageDocumentToVariantConverter.ID_FIELD);
+            partitions.get(Math.floorMod(mongoId.hashCode(), partitionLocks.length)).add(id);
+        }
+        return partitions;
+    }
+
+    private void writeBulk(ListMultimap<Document, Binary> values, List<Document> ids, MongoDBVariantWriteResult result) {
+        final long start = System.nanoTime();
+        MongoDBVariantWriteResult bulkResult = new MongoDBVariantWriteResult();
+        Set<String> retryKeys = updateMongo(values, ids, bulkResult, null);
+        result.merge(bulkResult);
+        if (!retryKeys.isEmpty()) {
+            retries.add(retryKeys.size());
+            bulkResult = new MongoDBVariantWriteResult();
+            updateMongo(values, ids, bulkResult, retryKeys);
+            result.merge(bulkResult);
+        }
+        long nanos = System.nanoTime() - start;
+        bulkWrites.increment();
+        bulkWriteNanos.add(nanos);
+        maxBulkWriteNanos.accumulateAndGet(nanos, Math::max);
+        LOGGER.debug("Stage bulk write of {} documents in {}ms", ids.size(), nanos / 1000000.0);
+    }
+
     /**
      * Given a map of id -> binary[], inserts the binary objects in the stage collection.
      *
@@ -139,21 +213,23 @@ public class MongoDBVariantStageLoader implements DataWriter<ListMultimap<Docume
      * In that case, the non inserted values will be returned.
      *
      * @param values        Map with all the values to insert
+     * @param idsToWrite    Documents from the map to write
      * @param result        MongoDBVariantWriteResult to fill
      * @param retryIds      List of IDs to retry. If not null, only will update those documents within this set
      * @return              List of non updated documents.
      * @throws MongoBulkWriteException if the exception was not a DuplicatedKeyException (e:11000)
      */
-    private Set<String> updateMongo(ListMultimap<Document, Binary> values, MongoDBVariantWriteResult result, Set<String> retryIds) {
+    private Set<String> updateMongo(ListMultimap<Document, Binary> values, List<Document> idsToWrite,
+                                    MongoDBVariantWriteResult result, Set<String> retryIds) {
 
         Set<String> nonInsertedIds = Collections.emptySet();
-        if (values.isEmpty()) {
+        if (idsToWrite.isEmpty()) {
             return nonInsertedIds;
         }
-        List<String> ids = new ArrayList<>(retryIds != null ? retryIds.size() : values.size());
-        List<Bson> queries = new ArrayList<>(retryIds != null ? retryIds.size() : values.size());
-        List<Bson> updates = new ArrayList<>(retryIds != null ? retryIds.size() : values.size());
-        for (Document id : values.keySet()) {
+        List<String> ids = new ArrayList<>(retryIds != null ? retryIds.size() : idsToWrite.size());
+        List<Bson> queries = new ArrayList<>(retryIds != null ? retryIds.size() : idsToWrite.size());
+        List<Bson> updates = new ArrayList<>(retryIds != null ? retryIds.size() : idsToWrite.size());
+        for (Document id : idsToWrite) {
             String mongoId = id.getString(StageDocumentToVariantConverter.ID_FIELD);
             if (retryIds == null || retryIds.contains(mongoId)) {
                 ids.add(mongoId);
@@ -178,8 +254,11 @@ public class MongoDBVariantStageLoader implements DataWriter<ListMultimap<Docume
 
         try {
             final BulkWriteResult mongoResult = collection.update(queries, updates, QUERY_OPTIONS).first();
-            result.setNewVariants(mongoResult.getInsertedCount())
-                    .setUpdatedVariants(mongoResult.getModifiedCount());
+            // Unacknowledged writes do not return counts
+            if (mongoResult.wasAcknowledged()) {
+                result.setNewVariants(mongoResult.getInsertedCount())
+                        .setUpdatedVariants(mongoResult.getModifiedCount());
+            }
         } catch (MongoBulkWriteException e) {
             result.setNewVariants(e.getWriteResult().getInsertedCount())
                     .setUpdatedVariants(e.getWriteResult().getModifiedCount());
@@ -298,4 +377,50 @@ public class MongoDBVariantStageLoader implements DataWriter<ListMultimap<Docume
     public MongoDBVariantWriteResult getWriteResult() {
         return writeResult;
     }
+
+    /**
+     * Split the bulk writes in batches of at most this number of documents.
+     *
+     * @param bulkSize Max number of documents per bulk write. 0 for unlimited
+     * @return this
+     */
+    public MongoDBVariantStageLoader setBulkSize(int bulkSize) {
+        this.bulkSize = Math.max(0, bulkSize);
+        return this;
+    }
+
+    /**
+     * Number of id partitions. Should be at least the number of concurrent writer threads.
+     * Use 1 when there is only one writer thread.
+     *
+     * @param numPartitions Number of partitions
+     * @return this
+     */
+    public MongoDBVariantStageLoader setWritePartitions(int numPartitions) {
+        partitionLocks = new ReentrantLock[Math.max(1, numPartitions)];
+        for (int i = 0; i < partitionLocks.length; i++) {
+            partitionLocks[i] = new ReentrantLock();
+        }
+        return this;
+    }
+
+    public long getBulkWrites() {
+        return bulkWrites.sum();
+    }
+
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    /**
+     * @return Bulk write statistics: number of bulk writes, retried documents, and average and max latency.
+     */
+    public ObjectMap getWriteStats() {
+        long numBulkWrites = bulkWrites.sum();
+        return new ObjectMap()
+                .append("bulkWrites", numBulkWrites)
+                .append("retries", retries.sum())
+                .append("avgLatencyMs", numBulkWrites == 0 ? 0 : bulkWriteNanos.sum() / numBulkWrites / 1000000.0)
+                .append("maxLatencyMs", maxBulkWriteNanos.get() / 1000000.0);
+    }
 }
@@ -30,6 +30,7 @@ import org.opencb.commons.datastore.mongodb.MongoDBCollection;
 import org.opencb.commons.io.DataWriter;
 import org.opencb.opencga.storage.core.metadata.models.StudyMetadata;
 import org.opencb.opencga.storage.mongodb.variant.adaptors.VariantMongoDBAdaptor;
+import org.opencb.opencga.storage.mongodb.variant.adaptors.VariantMongoDBHistogram;
 import org.opencb.opencga.storage.mongodb.variant.converters.stage.StageDocumentToVariantConverter;
 import org.opencb.opencga.storage.mongodb.variant.load.MongoDBVariantWriteResult;
 import org.slf4j.Logger;
@@ -85,6 +86,8 @@ public class MongoDBVariantMergeLoader implements DataWriter<MongoDBOperations>
     private final MongoDBVariantWriteResult result;
     private final Bson cleanStageDuplicated;
     private final Bson cleanStage;
+    private VariantMongoDBHistogram histogram;
+    private int histogramBinSize;
 
     public MongoDBVariantMergeLoader(MongoDBCollection variantsCollection, MongoDBCollection stageCollection,
                                      MongoDBCollection studiesCollection, StudyMetadata studyMetadata, List<Integer> fileIds,
@@ -132,6 +135,19 @@ public class MongoDBVariantMergeLoader implements DataWriter<MongoDBOperations>
         return result;
     }
 
+    /**
+     * Keep the histogram of the study up to date. Bins containing modified variants will be marked as dirty.
+     *
+     * @param histogram Variants histogram
+     * @param binSize   Size of the bins of the study
+     * @return          this
+     */
+    public MongoDBVariantMergeLoader setHistogram(VariantMongoDBHistogram histogram, int binSize) {
+        this.histogram = histogram;
+        this.histogramBinSize = binSize;
+        return this;
+    }
+
     /**
      * Execute the set of mongoDB operations.
      *
@@ -156,6 +172,15 @@ public class MongoDBVariantMergeLoader implements DataWriter<MongoDBOperations>
         }
         fillGapsVariants.stop();
 
+        if (histogram != null) {
+            // Must be marked before cleaning the stage collection. Otherwise, these variants would not be marked on resume
+            List<String> ids = new ArrayList<>(mongoDBOps.getNewStudy().getIds());
+            ids.addAll(mongoDBOps.getExistingStudy().getIds());
+            if (!ids.isEmpty()) {
+                histogram.markDirty(studyId, ids, histogramBinSize);
+            }
+        }
+
         updateStage(mongoDBOps);
 
         long updatesNewStudyExistingVariant = mongoDBOps.getNewStudy().getUpdates().size() - newVariants;
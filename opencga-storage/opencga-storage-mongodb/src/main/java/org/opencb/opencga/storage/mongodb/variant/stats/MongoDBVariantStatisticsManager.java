@@ -2,6 +2,7 @@ package org.opencb.opencga.storage.mongodb.variant.stats;
 
 import com.mongodb.client.MongoCursor;
 import org.bson.Document;
+import org.bson.conversions.Bson;
 import org.opencb.biodata.models.variant.metadata.Aggregation;
 import org.opencb.biodata.tools.variant.stats.AggregationUtils;
 import org.opencb.commons.ProgressLogger;
@@ -14,6 +15,7 @@ import org.opencb.opencga.storage.core.exceptions.StorageEngineException;
 import org.opencb.opencga.storage.core.io.json.JsonSerializerTask;
 import org.opencb.opencga.storage.core.io.managers.IOConnectorProvider;
 import org.opencb.opencga.storage.core.io.plain.StringDataWriter;
+import org.opencb.opencga.storage.core.metadata.VariantStorageMetadataManager;
 import org.opencb.opencga.storage.core.metadata.models.CohortMetadata;
 import org.opencb.opencga.storage.core.metadata.models.StudyMetadata;
 import org.opencb.opencga.storage.core.variant.VariantStorageEngine.Options;
@@ -21,7 +23,9 @@ import org.opencb.opencga.storage.core.variant.adaptors.VariantDBAdaptor;
 import org.opencb.opencga.storage.core.variant.stats.DefaultVariantStatisticsManager;
 import org.opencb.opencga.storage.core.variant.stats.VariantStatisticsManager;
 import org.opencb.opencga.storage.core.variant.stats.VariantStatsWrapper;
+import org.opencb.opencga.storage.mongodb.variant.MongoDBVariantStorageEngine.MongoDBVariantOptions;
 import org.opencb.opencga.storage.mongodb.variant.adaptors.VariantMongoDBAdaptor;
+import org.opencb.opencga.storage.mongodb.variant.converters.DocumentToVariantStatsConverter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -29,6 +33,9 @@ import java.io.IOException;
 import java.net.URI;
 import java.util.*;
 import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+
+import static org.opencb.opencga.storage.mongodb.variant.MongoDBVariantStorageEngine.MongoDBVariantOptions.STATS_AGGREGATION_PIPELINE;
 
 /**
  * Created on 18/04/18.
@@ -39,8 +46,113 @@ public class MongoDBVariantStatisticsManager extends DefaultVariantStatisticsMan
 
     private static Logger logger = LoggerFactory.getLogger(MongoDBVariantStatisticsManager.class);
 
+    private final VariantMongoDBAdaptor dbAdaptor;
+
     public MongoDBVariantStatisticsManager(VariantMongoDBAdaptor dbAdaptor, IOConnectorProvider ioConnectorProvider) {
         super(dbAdaptor, ioConnectorProvider);
+        this.dbAdaptor = dbAdaptor;
+    }
+
+    @Override
+    public void calculateStatistics(String study, List<String> cohorts, QueryOptions options) throws IOException, StorageEngineException {
+        if (options == null) {
+            options = new QueryOptions();
+        }
+        StudyMetadata studyMetadata = dbAdaptor.getMetadataManager().getStudyMetadata(study);
+        if (!options.getBoolean(STATS_AGGREGATION_PIPELINE.key(), STATS_AGGREGATION_PIPELINE.defaultValue())
+                || isAggregated(studyMetadata, options)) {
+            super.calculateStatistics(study, cohorts, options);
+        } else if (MongoDBVariantOptions.isCompactGenotypes(studyMetadata)) {
+            logger.info("Genotypes from study '{}' are stored in compact mode. Unable to calculate stats with an aggregation pipeline",
+                    studyMetadata.getName());
+            super.calculateStatistics(study, cohorts, options);
+        } else {
+            calculateStatisticsAggregation(studyMetadata, cohorts, options);
+        }
+    }
+
+    /**
+     * Calculate the stats of the cohorts with an aggregation pipeline executed in the server.
+     * The stats are written back with bulk $set updates, without the intermediate stats file.
+     *
+     * @param studyMetadata Study
+     * @param cohorts       Cohorts to calculate
+     * @param options       Options
+     * @throws StorageEngineException If any error occurs
+     */
+    protected void calculateStatisticsAggregation(StudyMetadata studyMetadata, List<String> cohorts, QueryOptions options)
+            throws StorageEngineException {
+        VariantStorageMetadataManager metadataManager = dbAdaptor.getMetadataManager();
+        int batchSize = options.getInt(Options.LOAD_BATCH_SIZE.key(), Options.LOAD_BATCH_SIZE.defaultValue());
+        int numTasks = options.getInt(Options.LOAD_THREADS.key(), Options.LOAD_THREADS.defaultValue());
+        boolean overwrite = options.getBoolean(Options.OVERWRITE_STATS.key(), false);
+        boolean updateStats = options.getBoolean(Options.UPDATE_STATS.key(), false);
+
+        preCalculateStats(metadataManager, studyMetadata, cohorts, overwrite, updateStats, options);
+
+        Map<String, Set<String>> cohortsMap = new LinkedHashMap<>(cohorts.size());
+        List<CohortMetadata> cohortsMetadata = new ArrayList<>(cohorts.size());
+        for (String cohort : cohorts) {
+            CohortMetadata cohortMetadata = metadataManager.getCohortMetadata(studyMetadata.getId(), cohort);
+            cohortsMetadata.add(cohortMetadata);
+            cohortsMap.put(cohortMetadata.getName(), Collections.emptySet());
+        }
+        overwrite = checkOverwrite(metadataManager, studyMetadata, cohortsMap, overwrite);
+
+        boolean error = false;
+        try {
+            Query readerQuery = VariantStatisticsManager.buildInputQuery(metadataManager,
+                    studyMetadata, cohortsMap.keySet(), overwrite, updateStats, options);
+            logger.info("ReaderQuery: " + readerQuery.toJson());
+            List<Bson> pipeline = MongoDBVariantStatsAggregationCalculator.buildPipeline(studyMetadata.getId(), cohortsMetadata);
+            List<Integer> cohortIds = cohortsMetadata.stream().map(CohortMetadata::getId).collect(Collectors.toList());
+
+            try (MongoCursor<Document> cursor = dbAdaptor.nativeAggregate(readerQuery, pipeline, new QueryOptions())) {
+                DataReader<Document> reader = i -> {
+                    List<Document> documents = new ArrayList<>(i);
+                    while (cursor.hasNext() && i-- > 0) {
+                        documents.add(cursor.next());
+                    }
+                    return documents;
+                };
+
+                long timestamp = System.currentTimeMillis();
+                String unknownGenotype = getUnknownGenotype(options);
+                ProgressLogger progressLogger = buildCreateStatsProgressLogger(dbAdaptor, readerQuery, options);
+                List<Task<Document, Document>> tasks = new ArrayList<>(numTasks);
+                for (int i = 0; i < numTasks; i++) {
+                    tasks.add(new MongoDBVariantStatsAggregationCalculator(studyMetadata, cohortsMetadata, unknownGenotype,
+                            new DocumentToVariantStatsConverter(metadataManager))
+                            .then((Task<Document, Document>) batch -> {
+                                if (!batch.isEmpty()) {
+                                    dbAdaptor.setStats(batch, studyMetadata.getId(), cohortIds, timestamp);
+                                    Object lastId = batch.get(batch.size() - 1).get("_id");
+                                    progressLogger.increment(batch.size(), () -> ", up to variant " + lastId);
+                                }
+                                return Collections.emptyList();
+                            }));
+                }
+
+                ParallelTaskRunner.Config config = ParallelTaskRunner.Config.builder()
+                        .setNumTasks(numTasks)
+                        .setBatchSize(batchSize)
+                        .setAbortOnFail(true)
+                        .build();
+                ParallelTaskRunner<Document, Document> runner = new ParallelTaskRunner<>(reader, tasks, null, config);
+                logger.info("Starting stats calculation with aggregation pipeline for cohorts {}", cohortsMap.keySet());
+                long start = System.currentTimeMillis();
+                runner.run();
+                logger.info("Finishing stats calculation, time: {}ms", System.currentTimeMillis() - start);
+            }
+        } catch (ExecutionException e) {
+            error = true;
+            throw new StorageEngineException("Unable to calculate statistics.", e);
+        } catch (RuntimeException e) {
+            error = true;
+            throw e;
+        } finally {
+            postCalculateStats(metadataManager, studyMetadata, cohortsMap.keySet(), error);
+        }
     }
 
     @Override
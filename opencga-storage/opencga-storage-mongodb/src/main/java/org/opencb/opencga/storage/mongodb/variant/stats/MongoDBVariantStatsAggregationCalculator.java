@@ -0,0 +1,152 @@
+package org.opencb.opencga.storage.mongodb.variant.stats;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.opencb.biodata.models.variant.Variant;
+import org.opencb.biodata.models.variant.stats.VariantStats;
+import org.opencb.commons.run.Task;
+import org.opencb.opencga.storage.core.metadata.models.CohortMetadata;
+import org.opencb.opencga.storage.core.metadata.models.StudyMetadata;
+import org.opencb.opencga.storage.mongodb.variant.converters.AbstractDocumentConverter;
+import org.opencb.opencga.storage.mongodb.variant.converters.DocumentToStudyVariantEntryConverter;
+import org.opencb.opencga.storage.mongodb.variant.converters.DocumentToVariantConverter;
+import org.opencb.opencga.storage.mongodb.variant.converters.DocumentToVariantStatsConverter;
+
+import java.util.*;
+
+import static org.opencb.opencga.storage.mongodb.variant.converters.DocumentToVariantConverter.*;
+
+/**
+ * Calculates variant stats from the genotype counts obtained with a server side aggregation pipeline.
+ *
+ * The pipeline built with {@link #buildPipeline} returns, for each variant, the number of samples of each cohort found in each
+ * stored genotype. Full documents are never transferred to the client.
+ * This task returns, for each variant, a document with the "_id" and the new stats of the cohorts, ready to be written with
+ * {@link org.opencb.opencga.storage.mongodb.variant.adaptors.VariantMongoDBAdaptor#setStats}.
+ *
+ * Genotypes stored as compact binaries are not supported.
+ */
+public class MongoDBVariantStatsAggregationCalculator extends AbstractDocumentConverter implements Task<Document, Document> {
+
+    private static final String GT = "gt";
+    private static final String GT_KEY = "k";
+    private static final String GT_COUNT = "n";
+    private static final String COHORT_PREFIX = "c";
+    private static final String SEEN_SAMPLES = "s";
+
+    private final StudyMetadata studyMetadata;
+    private final Collection<CohortMetadata> cohorts;
+    private final MongoDBVariantStatsCalculator statsCalculator;
+    private final DocumentToVariantStatsConverter statsConverter;
+    private final DocumentToVariantConverter variantConverter;
+
+    public MongoDBVariantStatsAggregationCalculator(StudyMetadata studyMetadata, Collection<CohortMetadata> cohorts,
+                                                    String unknownGenotype, DocumentToVariantStatsConverter statsConverter) {
+        this.studyMetadata = studyMetadata;
+        this.cohorts = cohorts;
+        this.statsConverter = statsConverter;
+        statsCalculator = new MongoDBVariantStatsCalculator(studyMetadata, cohorts, unknownGenotype);
+        variantConverter = new DocumentToVariantConverter();
+    }
+
+    /**
+     * Build the aggregation pipeline to execute after matching the variants to calculate.
+     *
+     * <pre>
+     * { $project : {
+     *      chromosome : 1, start : 1, ... ,
+     *      gt : { $objectToArray : [studies[sid = studyId].gt] }
+     * } },
+     * { $project : {
+     *      chromosome : 1, start : 1, ... ,
+     *      c[cohortId] : { $reduce : { input : "$gt", initialValue : { s : [], c : [] }, in : {
+     *          m : { $setDifference : [ { $setIntersection : [ "$$this.v", [samples] ] }, "$$value.s" ] },
+     *          s : [ "$$value.s" + m ],
+     *          c : [ "$$value.c" + { k : "$$this.k", n : { $size : m } } ]
+     *      } } }.c
+     * } }
+     * </pre>
+     *
+     * As in {@link MongoDBVariantStatsCalculator}, each sample is counted only in the first genotype that contains it.
+     *
+     * @param studyId   Study
+     * @param cohorts   Cohorts to calculate
+     * @return          Aggregation stages
+     */
+    public static List<Bson> buildPipeline(int studyId, Collection<CohortMetadata> cohorts) {
+        Document study = new Document("$arrayElemAt", Arrays.asList(
+                new Document("$filter", new Document("input", "$" + STUDIES_FIELD)
+                        .append("as", "s")
+                        .append("cond", new Document("$eq", Arrays.asList(
+                                "$$s." + DocumentToStudyVariantEntryConverter.STUDYID_FIELD, studyId)))),
+                0));
+
+        Document project = variantFields()
+                .append(GT, new Document("$objectToArray", new Document("$let", new Document("vars", new Document("s", study))
+                        .append("in", "$$s." + DocumentToStudyVariantEntryConverter.GENOTYPES_FIELD))));
+
+        Document countProject = variantFields();
+        for (CohortMetadata cohort : cohorts) {
+            // Samples of the cohort in this genotype, not found in any previous genotype
+            Document newSamples = new Document("$setDifference", Arrays.asList(
+                    new Document("$setIntersection", Arrays.asList("$$this.v", new ArrayList<>(cohort.getSamples()))),
+                    "$$value." + SEEN_SAMPLES));
+            Document reduce = new Document("$reduce", new Document("input", "$" + GT)
+                    .append("initialValue", new Document(SEEN_SAMPLES, Collections.emptyList())
+                            .append(COHORT_PREFIX, Collections.emptyList()))
+                    .append("in", new Document("$let", new Document("vars", new Document("m", newSamples))
+                            .append("in", new Document(SEEN_SAMPLES, new Document("$concatArrays", Arrays.asList(
+                                    "$$value." + SEEN_SAMPLES, "$$m")))
+                                    .append(COHORT_PREFIX, new Document("$concatArrays", Arrays.asList(
+                                            "$$value." + COHORT_PREFIX,
+                                            Collections.singletonList(new Document(GT_KEY, "$$this.k")
+                                                    .append(GT_COUNT, new Document("$size", "$$m")))))))));
+            countProject.append(COHORT_PREFIX + cohort.getId(), new Document("$let", new Document("vars", new Document("r", reduce))
+                    .append("in", "$$r." + COHORT_PREFIX)));
+        }
+
+        return Arrays.asList(new Document("$project", project), new Document("$project", countProject));
+    }
+
+    private static Document variantFields() {
+        return new Document(CHROMOSOME_FIELD, 1)
+                .append(START_FIELD, 1)
+                .append(END_FIELD, 1)
+                .append(REFERENCE_FIELD, 1)
+                .append(ALTERNATE_FIELD, 1)
+                .append(TYPE_FIELD, 1)
+                .append(SV_FIELD, 1);
+    }
+
+    @Override
+    public List<Document> apply(List<Document> batch) {
+        List<Document> result = new ArrayList<>(batch.size());
+        for (Document document : batch) {
+            result.add(apply(document));
+        }
+        return result;
+    }
+
+    public Document apply(Document document) {
+        Variant variant = variantConverter.convertToDataModelType(document);
+
+        Map<String, VariantStats> cohortStats = new HashMap<>(cohorts.size());
+        for (CohortMetadata cohort : cohorts) {
+            Map<String, Integer> gtStrCount = new HashMap<>();
+            List<Document> counts = getList(document, COHORT_PREFIX + cohort.getId());
+            if (counts != null) {
+                for (Document count : counts) {
+                    int n = count.getInteger(GT_COUNT);
+                    if (n > 0) {
+                        gtStrCount.merge(count.getString(GT_KEY), n, Integer::sum);
+                    }
+                }
+            }
+            cohortStats.put(cohort.getName(), statsCalculator.calculateStats(variant, cohort, gtStrCount));
+        }
+
+        return new Document("_id", document.get("_id"))
+                .append(STATS_FIELD, statsConverter.convertCohortsToStorageType(cohortStats, studyMetadata.getId()));
+    }
+
+}
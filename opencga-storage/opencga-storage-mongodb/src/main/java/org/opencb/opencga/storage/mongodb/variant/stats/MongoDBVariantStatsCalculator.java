@@ -13,6 +13,7 @@ import org.opencb.opencga.storage.core.variant.stats.VariantStatsWrapper;
 import org.opencb.opencga.storage.mongodb.variant.converters.AbstractDocumentConverter;
 import org.opencb.opencga.storage.mongodb.variant.converters.DocumentToStudyVariantEntryConverter;
 import org.opencb.opencga.storage.mongodb.variant.converters.DocumentToVariantConverter;
+import org.opencb.opencga.storage.mongodb.variant.converters.SampleIdsBinaryConverter;
 
 import java.util.*;
 import java.util.stream.Collectors;
@@ -80,44 +81,62 @@ public class MongoDBVariantStatsCalculator extends AbstractDocumentConverter imp
         Document gt = study.get(DocumentToStudyVariantEntryConverter.GENOTYPES_FIELD, Document.class);
 
         // Make a Set from the lists of genotypes for fast indexOf
-        Map<String, Set<Integer>> gtsMap = new HashMap<>(gt.size());
+        // Keep the order of the document. Samples are counted only in the first genotype that contains them
+        Map<String, Set<Integer>> gtsMap = new LinkedHashMap<>(gt.size());
         for (Map.Entry<String, Object> entry : gt.entrySet()) {
-            gtsMap.put(entry.getKey(), new HashSet<>((Collection) entry.getValue()));
+            gtsMap.put(entry.getKey(), new HashSet<>(SampleIdsBinaryConverter.getSampleIds(entry.getValue())));
         }
 
         for (CohortMetadata cohort : cohorts.values()) {
             Map<String, Integer> gtStrCount = new HashMap<>();
 
-            int unknownGenotypes = cohort.getSamples().size();
             for (Integer sampleId : cohort.getSamples()) {
                 for (Map.Entry<String, Set<Integer>> entry : gtsMap.entrySet()) {
-                    String gtStr = entry.getKey();
-                    // If any ?/? is present in the DB, must be read as "unknownGenotype", usually "./."
-                    if (GenotypeClass.UNKNOWN_GENOTYPE.equals(gtStr)) {
-                        gtStr = unknownGenotype;
-                    }
                     if ((entry.getValue()).contains(sampleId)) {
-                        addGt(gtStrCount, gtStr, 1);
-                        unknownGenotypes--;
+                        addGt(gtStrCount, entry.getKey(), 1);
                         break;
                     }
                 }
             }
 
-            // All the samples not present in any gt list must count as "defaultGenotype", usually "0/0"
-            addGt(gtStrCount, defaultGenotype, unknownGenotypes);
-
-            Map<Genotype, Integer> gtCountMap = new HashMap<>(gtStrCount.size());
-            gtStrCount.forEach((str, count) -> gtCountMap.compute(new Genotype(str),
-                    (key, value) -> value == null ? count : value + count));
-
-            VariantStats stats = VariantStatsCalculator.calculate(variant, gtCountMap);
+            VariantStats stats = calculateStats(variant, cohort, gtStrCount);
             statsWrapper.getCohortStats().put(cohort.getName(), stats);
         }
 
         return statsWrapper;
     }
 
+    /**
+     * Calculate the stats of a cohort given the number of samples of the cohort found in each of the stored genotypes.
+     *
+     * @param variant       Variant
+     * @param cohort        Cohort
+     * @param gtStrCount    Number of samples of the cohort for each stored genotype
+     * @return              Cohort stats
+     */
+    public VariantStats calculateStats(Variant variant, CohortMetadata cohort, Map<String, Integer> gtStrCount) {
+        Map<Genotype, Integer> gtCountMap = new HashMap<>(gtStrCount.size() + 1);
+
+        int unknownGenotypes = cohort.getSamples().size();
+        for (Map.Entry<String, Integer> entry : gtStrCount.entrySet()) {
+            String gtStr = entry.getKey();
+            // If any ?/? is present in the DB, must be read as "unknownGenotype", usually "./."
+            if (GenotypeClass.UNKNOWN_GENOTYPE.equals(gtStr)) {
+                gtStr = unknownGenotype;
+            }
+            addGenotype(gtCountMap, gtStr, entry.getValue());
+            unknownGenotypes -= entry.getValue();
+        }
+
+        // All the samples not present in any gt list must count as "defaultGenotype", usually "0/0"
+        addGenotype(gtCountMap, defaultGenotype, unknownGenotypes);
+
+        return VariantStatsCalculator.calculate(variant, gtCountMap);
+    }
+
+    private void addGenotype(Map<Genotype, Integer> gtCountMap, String gt, int num) {
+        gtCountMap.compute(new Genotype(gt), (key, value) -> value == null ? num : value + num);
+    }
 
     private void addGt(Map<String, Integer> gtStrCount, String gt, int num) {
         gtStrCount.compute(gt, (key, value) -> value == null ? num : value + num);
@@ -22,13 +22,21 @@ import com.mongodb.client.model.Projections;
 import com.mongodb.client.model.Sorts;
 import org.apache.commons.lang3.RandomUtils;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
 import org.bson.types.Binary;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.opencb.biodata.formats.io.FileFormatException;
+import org.opencb.biodata.models.core.Region;
 import org.opencb.biodata.models.metadata.SampleSetType;
+import org.opencb.biodata.models.variant.Variant;
+import org.opencb.biodata.models.variant.VariantFileMetadata;
+import org.opencb.biodata.models.variant.avro.ConsequenceType;
+import org.opencb.biodata.models.variant.avro.SequenceOntologyTerm;
+import org.opencb.biodata.models.variant.avro.VariantAnnotation;
 import org.opencb.commons.datastore.core.ObjectMap;
 import org.opencb.commons.datastore.core.Query;
 import org.opencb.commons.datastore.core.QueryOptions;
@@ -37,9 +45,11 @@ import org.opencb.commons.datastore.mongodb.MongoDataStore;
 import org.opencb.commons.utils.CompressionUtils;
 import org.opencb.opencga.core.common.UriUtils;
 import org.opencb.opencga.storage.core.StoragePipelineResult;
+import org.opencb.opencga.storage.core.config.StorageConfiguration;
 import org.opencb.opencga.storage.core.exceptions.StorageEngineException;
 import org.opencb.opencga.storage.core.exceptions.StoragePipelineException;
 import org.opencb.opencga.storage.core.metadata.VariantStorageMetadataManager;
+import org.opencb.opencga.storage.core.metadata.models.ProjectMetadata;
 import org.opencb.opencga.storage.core.metadata.models.StudyMetadata;
 import org.opencb.opencga.storage.core.metadata.models.TaskMetadata;
 import org.opencb.opencga.storage.core.variant.VariantStorageBaseTest;
@@ -47,8 +57,14 @@ import org.opencb.opencga.storage.core.variant.VariantStorageEngine;
 import org.opencb.opencga.storage.core.variant.VariantStorageEngineTest;
 import org.opencb.opencga.storage.core.variant.adaptors.GenotypeClass;
 import org.opencb.opencga.storage.core.variant.adaptors.VariantDBAdaptor;
+import org.opencb.opencga.storage.core.variant.adaptors.VariantQueryParam;
+import org.opencb.opencga.storage.core.variant.annotation.VariantAnnotationManager;
+import org.opencb.opencga.storage.core.variant.annotation.VariantAnnotationManagerTest;
+import org.opencb.opencga.storage.core.variant.annotation.VariantAnnotatorException;
+import org.opencb.opencga.storage.core.variant.annotation.annotators.VariantAnnotatorFactory;
 import org.opencb.opencga.storage.mongodb.variant.MongoDBVariantStorageEngine.MongoDBVariantOptions;
 import org.opencb.opencga.storage.mongodb.variant.adaptors.VariantMongoDBAdaptor;
+import org.opencb.opencga.storage.mongodb.variant.adaptors.VariantMongoDBHistogram;
 import org.opencb.opencga.storage.mongodb.variant.converters.DocumentToStudyVariantEntryConverter;
 import org.opencb.opencga.storage.mongodb.variant.converters.DocumentToVariantConverter;
 import org.opencb.opencga.storage.mongodb.variant.exceptions.MongoVariantStorageEngineException;
@@ -241,6 +257,238 @@ public class MongoVariantStorageEngineTest extends VariantStorageEngineTest impl
         assertTrue(count > 0);
     }
 
+    @Test
+    public void mergeParallelChromosomesTest() throws Exception {
+        StudyMetadata studyMetadata = createStudyMetadata();
+
+        runDefaultETL(smallInputUri, variantStorageEngine, studyMetadata, new ObjectMap()
+                .append(VariantStorageEngine.Options.ANNOTATE.key(), false)
+                .append(VariantStorageEngine.Options.LOAD_THREADS.key(), 4)
+                .append(MongoDBVariantOptions.STAGE.key(), true)
+                .append(MongoDBVariantOptions.MERGE.key(), true)
+                .append(MongoDBVariantOptions.MERGE_PARALLEL_CHROMOSOMES.key(), 4));
+
+        int fileId = metadataManager.getFileId(studyMetadata.getId(), UriUtils.fileName(smallInputUri));
+        VariantFileMetadata fileMetadata = metadataManager.getVariantFileMetadata(studyMetadata.getId(), fileId, null).first();
+        TaskMetadata[] tasks = Iterators.toArray(metadataManager.taskIterator(studyMetadata.getId()), TaskMetadata.class);
+        assertEquals(MongoDBVariantOptions.MERGE.key(), tasks[1].getName());
+        assertEquals(TaskMetadata.Status.READY, tasks[1].currentStatus());
+        // Every chromosome was checkpointed
+        assertEquals(fileMetadata.getStats().getChromosomeCounts().keySet(),
+                new HashSet<>(tasks[1].getAttributes().getAsStringList("mergedChromosomes")));
+        assertTrue(variantStorageEngine.getDBAdaptor().count(null).first() > 0);
+        checkLoadedVariants();
+    }
+
+    @Test
+    public void compactGenotypesTest() throws Exception {
+        StudyMetadata studyMetadata = createStudyMetadata();
+        runDefaultETL(smallInputUri, variantStorageEngine, studyMetadata, new ObjectMap()
+                .append(VariantStorageEngine.Options.ANNOTATE.key(), false)
+                .append(VariantStorageEngine.Options.CALCULATE_STATS.key(), false));
+        Query query = new Query(VariantQueryParam.STUDY.key(), studyMetadata.getName());
+
+        long expandedSize = getVariantsCollectionSize();
+        List<String> expected = readAllVariants(query);
+        List<Query> genotypeQueries = Arrays.asList(
+                new Query(query).append(VariantQueryParam.GENOTYPE.key(), "NA19600:0|1"),
+                new Query(query).append(VariantQueryParam.GENOTYPE.key(), "NA19600:0|0"),
+                new Query(query).append(VariantQueryParam.GENOTYPE.key(), "NA19600:!0|0;NA19660:1|1,0|1"),
+                new Query(query).append(VariantQueryParam.GENOTYPE.key(), "NA19600:1|1,NA19685:1|1"),
+                new Query(query).append(VariantQueryParam.SAMPLE.key(), "NA19661"));
+        Map<String, List<String>> expectedByGenotype = new HashMap<>();
+        for (Query gtQuery : genotypeQueries) {
+            expectedByGenotype.put(gtQuery.toJson(), readAllVariants(gtQuery));
+        }
+
+        variantStorageEngine.compactGenotypes(studyMetadata.getName(), true, new ObjectMap());
+        long compactSize = getVariantsCollectionSize();
+        assertEquals(expected, readAllVariants(query));
+        assertTrue("Variants collection size: expanded = " + expandedSize + "B , compact = " + compactSize + "B",
+                compactSize < expandedSize);
+
+        // Genotype filters are evaluated once the documents are read
+        for (Query gtQuery : genotypeQueries) {
+            assertEquals(gtQuery.toJson(), expectedByGenotype.get(gtQuery.toJson()), readAllVariants(gtQuery));
+            assertEquals(gtQuery.toJson(), expectedByGenotype.get(gtQuery.toJson()).size(),
+                    variantStorageEngine.count(gtQuery).first().intValue());
+        }
+        Query gtQuery = genotypeQueries.get(0);
+        List<String> expectedGt = expectedByGenotype.get(gtQuery.toJson());
+        List<String> page = new ArrayList<>();
+        variantStorageEngine.get(gtQuery, new QueryOptions(QueryOptions.SORT, true).append(QueryOptions.SKIP, 2)
+                .append(QueryOptions.LIMIT, 3)).getResult().forEach(variant -> page.add(variant.toJson()));
+        assertEquals(expectedGt.subList(2, Math.min(5, expectedGt.size())), page);
+
+        variantStorageEngine.compactGenotypes(studyMetadata.getName(), false, new ObjectMap());
+        assertEquals(expandedSize, getVariantsCollectionSize());
+        assertEquals(expected, readAllVariants(query));
+    }
+
+    @Test
+    public void histogramTest() throws Exception {
+        StudyMetadata studyMetadata = createStudyMetadata();
+        int binSize = 100000;
+        runDefaultETL(smallInputUri, variantStorageEngine, studyMetadata, new ObjectMap()
+                .append(MongoDBVariantOptions.HISTOGRAM.key(), true)
+                .append(MongoDBVariantOptions.HISTOGRAM_BIN_SIZE.key(), binSize)
+                .append(VariantStorageEngine.Options.ANNOTATE.key(), false)
+                .append(VariantStorageEngine.Options.CALCULATE_STATS.key(), false));
+        studyMetadata = metadataManager.getStudyMetadata(studyMetadata.getId());
+        assertTrue(MongoDBVariantOptions.hasHistogram(studyMetadata));
+        assertEquals(binSize, MongoDBVariantOptions.getHistogramBinSize(studyMetadata));
+
+        checkHistogram(studyMetadata, binSize);
+
+        // getFrequency and groupBy("ct") are answered from the bins. Modify one bin to tell them apart from the aggregation
+        VariantMongoDBAdaptor dbAdaptor = getVariantStorageEngine().getDBAdaptor();
+        MongoDBCollection collection = getHistogramCollection();
+        Query query = new Query(VariantQueryParam.STUDY.key(), studyMetadata.getName());
+        Document bin = collection.find(new Document(VariantMongoDBHistogram.STUDY_FIELD, studyMetadata.getId())
+                .append(VariantMongoDBHistogram.CHROMOSOME_FIELD, "22"), new QueryOptions()).first();
+        Region region = getBinRegion(bin, binSize);
+        collection.update(new Document("_id", bin.get("_id")), new Document("$set", new Document()
+                .append(VariantMongoDBHistogram.COUNT_FIELD, 1000000)
+                .append(VariantMongoDBHistogram.CONSEQUENCE_TYPES_FIELD + ".9999", 1000000)), new QueryOptions());
+
+        Document interval = (Document) dbAdaptor.getFrequency(query, region, binSize).first();
+        assertEquals(Math.log(1000000), interval.getDouble("features_count"), 0.0001);
+        // Regions not aligned to the bins are not answered from the histogram
+        Region unaligned = new Region(region.getChromosome(), region.getStart() + 1, region.getEnd());
+        interval = (Document) dbAdaptor.getFrequency(query, unaligned, binSize).first();
+        assertNotEquals(Math.log(1000000), ((Number) interval.get("features_count")).doubleValue(), 0.0001);
+        Document ct = (Document) dbAdaptor.groupBy(query, "ct", new QueryOptions("count", true)).first();
+        assertEquals(9999, ct.get("id"));
+        assertEquals(1000000, ct.get("count"));
+
+        // Second file. Only the bins with merged variants are updated
+        Map<String, Long> counts = new HashMap<>();
+        for (String chromosome : Arrays.asList("1", "M")) {
+            counts.put(chromosome, countHistogram(studyMetadata, chromosome));
+        }
+        runDefaultETL(getPlatinumFile(0), variantStorageEngine, studyMetadata, new ObjectMap()
+                .append(MongoDBVariantOptions.DIRECT_LOAD.key(), false)
+                .append(VariantStorageEngine.Options.ANNOTATE.key(), false)
+                .append(VariantStorageEngine.Options.CALCULATE_STATS.key(), false));
+        for (Map.Entry<String, Long> entry : counts.entrySet()) {
+            long count = countHistogram(studyMetadata, entry.getKey());
+            assertTrue(count > entry.getValue());
+            assertEquals(variantStorageEngine.count(new Query(query).append(VariantQueryParam.REGION.key(), entry.getKey())).first()
+                    .longValue(), count);
+        }
+        assertEquals(1000000, collection.find(new Document("_id", bin.get("_id")), new QueryOptions()).first()
+                .getInteger(VariantMongoDBHistogram.COUNT_FIELD).intValue());
+
+        // Annotation marks as dirty the bins of all the annotated variants
+        variantStorageEngine.getOptions()
+                .append(VariantAnnotationManager.VARIANT_ANNOTATOR_CLASSNAME, HistogramTestAnnotator.class.getName())
+                .append(VariantAnnotationManager.ANNOTATOR, VariantAnnotatorFactory.AnnotationSource.OTHER);
+        variantStorageEngine.annotate(new Query(), new ObjectMap(VariantAnnotationManagerTest.TestAnnotator.ANNOT_KEY, "v1"));
+        checkHistogram(studyMetadata, binSize);
+
+        long numVariants = variantStorageEngine.count(query).first();
+        ct = (Document) dbAdaptor.groupBy(query, "ct", new QueryOptions("count", true)).first();
+        assertEquals(1583, ct.get("id"));
+        assertEquals(numVariants, ((Number) ct.get("count")).longValue());
+        bin = collection.find(new Document("_id", bin.get("_id")), new QueryOptions()).first();
+        interval = (Document) dbAdaptor.getFrequency(new Query(query)
+                .append(VariantQueryParam.ANNOT_CONSEQUENCE_TYPE.key(), "missense_variant"), region, binSize).first();
+        assertEquals(Math.log(bin.getInteger(VariantMongoDBHistogram.COUNT_FIELD)), interval.getDouble("features_count"), 0.0001);
+
+        // Recompute all the bins
+        VariantMongoDBHistogram histogram = dbAdaptor.getHistogram();
+        histogram.markDirty(studyMetadata.getId());
+        assertTrue(histogram.update(studyMetadata.getId(), binSize) > 0);
+        checkHistogram(studyMetadata, binSize);
+    }
+
+    private MongoDBCollection getHistogramCollection() throws Exception {
+        MongoDataStore mongoDataStore = getMongoDataStoreManager(DB_NAME).get(DB_NAME);
+        return mongoDataStore.getCollection(MongoDBVariantOptions.COLLECTION_HISTOGRAM.defaultValue());
+    }
+
+    private static Region getBinRegion(Document bin, int binSize) {
+        int start = bin.getInteger(VariantMongoDBHistogram.BIN_FIELD) * binSize;
+        return new Region(bin.getString(VariantMongoDBHistogram.CHROMOSOME_FIELD), Math.max(1, start), start + binSize - 1);
+    }
+
+    private long countHistogram(StudyMetadata studyMetadata, String chromosome) throws Exception {
+        long count = 0;
+        for (Document bin : getHistogramCollection().find(new Document(VariantMongoDBHistogram.STUDY_FIELD, studyMetadata.getId())
+                .append(VariantMongoDBHistogram.CHROMOSOME_FIELD, chromosome), new QueryOptions()).getResult()) {
+            assertNull(bin.get(VariantMongoDBHistogram.DIRTY_FIELD));
+            count += bin.getInteger(VariantMongoDBHistogram.COUNT_FIELD);
+        }
+        return count;
+    }
+
+    private void checkHistogram(StudyMetadata studyMetadata, int binSize) throws Exception {
+        long totalCount = 0;
+        for (Document bin : getHistogramCollection().find(new Document(VariantMongoDBHistogram.STUDY_FIELD, studyMetadata.getId()),
+                new QueryOptions()).getResult()) {
+            assertNull(bin.get(VariantMongoDBHistogram.DIRTY_FIELD));
+            Query query = new Query(VariantQueryParam.STUDY.key(), studyMetadata.getName())
+                    .append(VariantQueryParam.REGION.key(), getBinRegion(bin, binSize).toString());
+            // Variants overlapping the edges of the bin are counted only in the bin with their start
+            int count = bin.getInteger(VariantMongoDBHistogram.COUNT_FIELD);
+            assertTrue(count <= variantStorageEngine.count(query).first());
+            Document types = bin.get(VariantMongoDBHistogram.TYPES_FIELD, Document.class);
+            for (String type : types.keySet()) {
+                Query typeQuery = new Query(query).append(VariantQueryParam.TYPE.key(), type);
+                assertTrue(types.getInteger(type) <= variantStorageEngine.count(typeQuery).first());
+            }
+            Document cts = bin.get(VariantMongoDBHistogram.CONSEQUENCE_TYPES_FIELD, Document.class);
+            for (String so : cts.keySet()) {
+                Query ctQuery = new Query(query).append(VariantQueryParam.ANNOT_CONSEQUENCE_TYPE.key(),
+                        String.format("SO:%07d", Integer.valueOf(so)));
+                assertTrue(cts.getInteger(so) <= variantStorageEngine.count(ctQuery).first());
+            }
+            totalCount += count;
+        }
+        assertEquals(variantStorageEngine.count(new Query(VariantQueryParam.STUDY.key(), studyMetadata.getName())).first().longValue(),
+                totalCount);
+    }
+
+    /**
+     * Annotates all the variants as missense_variant (SO:0001583).
+     */
+    public static class HistogramTestAnnotator extends VariantAnnotationManagerTest.TestAnnotator {
+
+        public HistogramTestAnnotator(StorageConfiguration configuration, ProjectMetadata projectMetadata, ObjectMap options)
+                throws VariantAnnotatorException {
+            super(configuration, projectMetadata, options);
+        }
+
+        @Override
+        public List<VariantAnnotation> annotate(List<Variant> variants) throws VariantAnnotatorException {
+            List<VariantAnnotation> annotations = super.annotate(variants);
+            for (VariantAnnotation annotation : annotations) {
+                for (ConsequenceType consequenceType : annotation.getConsequenceTypes()) {
+                    consequenceType.setSequenceOntologyTerms(
+                            Collections.singletonList(new SequenceOntologyTerm("SO:0001583", "missense_variant")));
+                }
+            }
+            return annotations;
+        }
+    }
+
+    private List<String> readAllVariants(Query query) {
+        List<String> variants = new ArrayList<>();
+        variantStorageEngine.iterator(query, new QueryOptions(QueryOptions.SORT, true))
+                .forEachRemaining(variant -> variants.add(variant.toJson()));
+        return variants;
+    }
+
+    private long getVariantsCollectionSize() throws Exception {
+        long size = 0;
+        try (VariantMongoDBAdaptor dbAdaptor = getVariantStorageEngine().getDBAdaptor()) {
+            for (Document document : dbAdaptor.getVariantsCollection().nativeQuery().find(new Document(), new QueryOptions())) {
+                size += new RawBsonDocument(document, new DocumentCodec()).getByteBuffer().remaining();
+            }
+        }
+        return size;
+    }
+
     @Test
     public void loadStageConcurrent() throws Exception {
         StudyMetadata studyMetadata = createStudyMetadata();
@@ -0,0 +1,134 @@
+package org.opencb.opencga.storage.mongodb.variant.adaptors;
+
+import org.bson.Document;
+import org.junit.Test;
+import org.opencb.commons.datastore.core.QueryOptions;
+import org.opencb.opencga.storage.mongodb.variant.adaptors.VariantMongoDBQueryProfiler.FilterType;
+import org.opencb.opencga.storage.mongodb.variant.adaptors.VariantMongoDBQueryProfiler.QueryShape;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class VariantMongoDBIndexAdvisorTest {
+
+    @Test
+    public void shapeIgnoresValues() {
+        QueryShape shape1 = new QueryShape(regionFilter("1", 100, 200), null, null);
+        QueryShape shape2 = new QueryShape(regionFilter("22", 5000, 6000), null, null);
+        assertEquals(shape1.getKey(), shape2.getKey());
+        assertEquals(FilterType.EQUALITY, shape1.getFilters().get("chromosome"));
+        assertEquals(FilterType.RANGE, shape1.getFilters().get("start"));
+        assertEquals(FilterType.RANGE, shape1.getFilters().get("end"));
+        assertTrue(shape1.isCount());
+    }
+
+    @Test
+    public void shapeElemMatch() {
+        Document filter = new Document("studies", new Document("$elemMatch", new Document("sid", 1)
+                .append("gt.0/1", new Document("$in", Arrays.asList(1, 2)))))
+                .append("$or", Arrays.asList(new Document("type", "SNV"), new Document("type", "INDEL")));
+        QueryShape shape = new QueryShape(filter, new Document("_id", 1), null);
+        assertEquals(FilterType.EQUALITY, shape.getFilters().get("studies.sid"));
+        assertEquals(FilterType.EQUALITY, shape.getFilters().get("studies.gt.0/1"));
+        assertTrue(shape.hasOr());
+        assertFalse(shape.isCount());
+    }
+
+    @Test
+    public void buildCoveredIndex() {
+        Document projection = new Document("chromosome", 1).append("start", 1).append("reference", 1).append("alternate", 1);
+        QueryShape shape = new QueryShape(regionFilter("1", 100, 200).append("type", "SNV"), projection,
+                new QueryOptions(QueryOptions.SORT, "_id"));
+        assertTrue(VariantMongoDBIndexAdvisor.isCoverable(shape));
+
+        Document index = VariantMongoDBIndexAdvisor.buildIndex(shape, true);
+        // Equality, Sort, Range, and projected fields
+        assertEquals(Arrays.asList("chromosome", "type", "_id", "end", "start", "alternate", "reference"),
+                Arrays.asList(index.keySet().toArray()));
+    }
+
+    @Test
+    public void buildIndexArrayFields() {
+        Document filter = new Document("studies.sid", 1)
+                .append("annotation.ct.so", 1583)
+                .append("start", new Document("$gt", 100));
+        QueryShape shape = new QueryShape(filter, new Document("studies", 1), null);
+        assertFalse(VariantMongoDBIndexAdvisor.isCoverable(shape));
+
+        Document index = VariantMongoDBIndexAdvisor.buildIndex(shape, false);
+        // Only one array field
+        assertEquals(Arrays.asList("annotation.ct.so", "start"), Arrays.asList(index.keySet().toArray()));
+    }
+
+    @Test
+    public void notCoverableProjection() {
+        QueryShape shape = new QueryShape(regionFilter("1", 100, 200), new Document("annotation", 0), null);
+        assertFalse(VariantMongoDBIndexAdvisor.isCoverable(shape));
+        shape = new QueryShape(regionFilter("1", 100, 200), new Document("_id", 0).append("studies", 1), null);
+        assertFalse(VariantMongoDBIndexAdvisor.isCoverable(shape));
+        shape = new QueryShape(regionFilter("1", 100, 200), new Document("_id", 0).append("type", 1), null);
+        assertTrue(VariantMongoDBIndexAdvisor.isCoverable(shape));
+    }
+
+    @Test
+    public void saveAndLoadShape() {
+        QueryShape shape = new QueryShape(regionFilter("1", 100, 200).append("studies.sid", 1), new Document("_id", 1),
+                new QueryOptions(QueryOptions.SORT, "_id"));
+        shape.register(1000, false);
+        shape.register(3000, true);
+        shape.setPlan(collScanPlan());
+
+        Document update = shape.toUpdate();
+        assertNotNull(update);
+        // Nothing new to save
+        assertNull(shape.toUpdate());
+        shape.register(2000, false);
+        assertEquals(1L, ((Document) shape.toUpdate().get("$inc")).get("count"));
+
+        // Simulate the upsert of the first update
+        Document document = new Document("_id", shape.getKey());
+        document.putAll((Document) update.get("$setOnInsert"));
+        document.putAll((Document) update.get("$inc"));
+        document.putAll((Document) update.get("$max"));
+        document.putAll((Document) update.get("$set"));
+        QueryShape loaded = QueryShape.fromDocument(document);
+        assertEquals(shape.getKey(), loaded.getKey());
+        assertEquals(shape.getFilters(), loaded.getFilters());
+        assertEquals(shape.getProjection(), loaded.getProjection());
+        assertEquals(shape.getSort(), loaded.getSort());
+        assertEquals(2, loaded.getCount());
+        assertTrue(loaded.isCollectionScan());
+        assertEquals(shape.getDocsExamined(), loaded.getDocsExamined());
+        assertEquals(shape.toObjectMap().get("slow"), loaded.toObjectMap().get("slow"));
+    }
+
+    @Test
+    public void proposeIndexes() {
+        QueryShape hot = new QueryShape(regionFilter("1", 100, 200), null, null);
+        QueryShape cold = new QueryShape(new Document("type", "SNV"), null, null);
+        for (int i = 0; i < 20; i++) {
+            hot.register(1000, false);
+        }
+        cold.register(1000, false);
+        hot.setPlan(collScanPlan());
+
+        VariantMongoDBIndexAdvisor advisor = new VariantMongoDBIndexAdvisor(null, null);
+        List<Document> indexes = advisor.proposeIndexes(Arrays.asList(hot, cold), 10);
+        assertEquals(Collections.singletonList(VariantMongoDBIndexAdvisor.buildIndex(hot, true)), indexes);
+    }
+
+    private static Document collScanPlan() {
+        return new Document("queryPlanner", new Document("winningPlan", new Document("stage", "COLLSCAN")))
+                .append("executionStats", new Document("totalDocsExamined", 1000).append("totalKeysExamined", 0).append("nReturned", 10));
+    }
+
+    private static Document regionFilter(String chromosome, int start, int end) {
+        return new Document("$and", Arrays.asList(
+                new Document("chromosome", chromosome),
+                new Document("start", new Document("$lte", end)),
+                new Document("end", new Document("$gte", start))));
+    }
+}
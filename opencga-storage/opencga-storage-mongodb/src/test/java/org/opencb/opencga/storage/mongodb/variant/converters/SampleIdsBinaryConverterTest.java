@@ -0,0 +1,79 @@
+package org.opencb.opencga.storage.mongodb.variant.converters;
+
+import org.bson.types.Binary;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+public class SampleIdsBinaryConverterTest {
+
+    private final SampleIdsBinaryConverter converter = new SampleIdsBinaryConverter();
+
+    @Test
+    public void sparse() {
+        List<Integer> sampleIds = Arrays.asList(3, 500, 1000, 70000);
+        byte[] data = SampleIdsBinaryConverter.encode(sampleIds);
+        assertEquals(SampleIdsBinaryConverter.DELTA, data[0]);
+        assertEquals(sampleIds, converter.convertToDataModelType(new Binary(data)));
+        checkContains(sampleIds, data);
+    }
+
+    @Test
+    public void dense() {
+        List<Integer> sampleIds = IntStream.range(100, 2100).filter(i -> i % 3 != 0).boxed().collect(Collectors.toList());
+        byte[] data = SampleIdsBinaryConverter.encode(sampleIds);
+        assertEquals(SampleIdsBinaryConverter.BITMAP, data[0]);
+        // Much smaller than 4 bytes per sample
+        assertTrue(data.length < sampleIds.size() / 4);
+        assertEquals(sampleIds, converter.convertToDataModelType(new Binary(data)));
+        checkContains(sampleIds, data);
+    }
+
+    @Test
+    public void unsortedAndDuplicated() {
+        List<Integer> sampleIds = Arrays.asList(10, 2, 10, 7, 1);
+        assertEquals(Arrays.asList(1, 2, 7, 10), converter.convertToDataModelType(converter.convertToStorageType(sampleIds)));
+    }
+
+    @Test
+    public void empty() {
+        assertEquals(Collections.emptyList(), converter.convertToDataModelType(converter.convertToStorageType(Collections.emptyList())));
+    }
+
+    @Test
+    public void random() {
+        Random random = new Random(1);
+        for (int i = 0; i < 100; i++) {
+            int numSamples = random.nextInt(3000);
+            int maxSampleId = 1 + random.nextInt(10000);
+            TreeSet<Integer> sampleIds = new TreeSet<>();
+            for (int j = 0; j < numSamples; j++) {
+                sampleIds.add(random.nextInt(maxSampleId));
+            }
+            byte[] data = SampleIdsBinaryConverter.encode(sampleIds);
+            assertEquals(new ArrayList<>(sampleIds), converter.convertToDataModelType(new Binary(data)));
+        }
+    }
+
+    @Test
+    public void forEachRequestedSamples() {
+        List<Integer> sampleIds = IntStream.range(0, 5000).filter(i -> i % 2 == 0).boxed().collect(Collectors.toList());
+        Set<Integer> requested = new HashSet<>(Arrays.asList(1, 2, 3, 4, 4999, 5000, 10000));
+        for (Object value : Arrays.asList(sampleIds, converter.convertToStorageType(sampleIds))) {
+            Set<Integer> found = new HashSet<>();
+            SampleIdsBinaryConverter.forEach(value, requested, found::add);
+            assertEquals(new HashSet<>(Arrays.asList(2, 4)), found);
+        }
+    }
+
+    private void checkContains(List<Integer> sampleIds, byte[] data) {
+        int max = sampleIds.stream().mapToInt(Integer::intValue).max().orElse(0);
+        for (int i = 0; i < max + 10; i++) {
+            assertEquals(String.valueOf(i), sampleIds.contains(i), SampleIdsBinaryConverter.contains(data, i));
+        }
+    }
+}
@@ -32,8 +32,12 @@ import org.opencb.opencga.storage.mongodb.variant.load.stage.MongoDBVariantStage
 import org.opencb.opencga.storage.mongodb.variant.load.stage.MongoDBVariantStageLoader;
 import org.opencb.opencga.storage.mongodb.variant.load.stage.MongoDBVariantStageReader;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static java.util.Arrays.asList;
 import static org.opencb.opencga.storage.core.variant.VariantStorageBaseTest.DB_NAME;
@@ -120,6 +124,49 @@ public class MongoDBVariantStageReaderTest implements MongoDBVariantStorageTest
         Assert.assertEquals(read.size(), 6);
     }
 
+    @Test
+    public void testParallelPartitionedWrite() throws Exception {
+        MongoDBCollection parallelCollection = getMongoDataStoreManager(DB_NAME).get(DB_NAME).getCollection("stage_parallel");
+        int numThreads = 8;
+        MongoDBVariantStageLoader loader = new MongoDBVariantStageLoader(parallelCollection, 1, 1, false)
+                .setWritePartitions(numThreads)
+                .setBulkSize(7);
+        MongoDBVariantStageConverterTask converterTask = new MongoDBVariantStageConverterTask(null);
+        List<Variant> variants = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            Variant variant = new Variant("1:" + (100 + i) + ":A:T");
+            variant.setNames(Collections.emptyList());
+            StudyEntry studyEntry = new StudyEntry("1", "1");
+            studyEntry.setFormat(Collections.emptyList());
+            variant.addStudyEntry(studyEntry);
+            variants.add(variant);
+        }
+
+        loader.open();
+        loader.pre();
+        // All the threads write the same variants at the same time
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < numThreads; i++) {
+            futures.add(executor.submit(() -> loader.write(converterTask.apply(variants))));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        loader.post();
+        loader.close();
+
+        Assert.assertEquals(0, loader.getRetries());
+        // At least 29 bulks of 7 documents per thread
+        Assert.assertTrue(loader.getBulkWrites() >= numThreads * 29);
+        List<Document> documents = parallelCollection.find(new Document(), null).getResult();
+        Assert.assertEquals(200, documents.size());
+        for (Document document : documents) {
+            Assert.assertEquals(numThreads, ((List) ((Document) document.get("1")).get("1")).size());
+        }
+    }
+
     public List<Document> readAll(MongoDBVariantStageReader reader) {
         List<Document> read;
         reader.open();
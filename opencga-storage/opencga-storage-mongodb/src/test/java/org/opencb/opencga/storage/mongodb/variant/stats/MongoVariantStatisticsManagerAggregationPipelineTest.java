@@ -0,0 +1,23 @@
+package org.opencb.opencga.storage.mongodb.variant.stats;
+
+import org.opencb.commons.datastore.core.QueryOptions;
+import org.opencb.opencga.storage.core.exceptions.StorageEngineException;
+import org.opencb.opencga.storage.core.metadata.models.StudyMetadata;
+import org.opencb.opencga.storage.core.variant.stats.VariantStatisticsManagerTest;
+import org.opencb.opencga.storage.mongodb.variant.MongoDBVariantStorageEngine.MongoDBVariantOptions;
+import org.opencb.opencga.storage.mongodb.variant.MongoDBVariantStorageTest;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Map;
+import java.util.Set;
+
+public class MongoVariantStatisticsManagerAggregationPipelineTest extends VariantStatisticsManagerTest implements MongoDBVariantStorageTest {
+
+    @Override
+    public StudyMetadata stats(QueryOptions options, StudyMetadata studyMetadata, Map<String, Set<String>> cohorts, URI output)
+            throws IOException, StorageEngineException {
+        options.put(MongoDBVariantOptions.STATS_AGGREGATION_PIPELINE.key(), true);
+        return super.stats(options, studyMetadata, cohorts, output);
+    }
+}